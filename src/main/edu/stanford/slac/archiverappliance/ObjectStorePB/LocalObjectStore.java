@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.ObjectStorePB;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An object store that keeps each object as a file under a root folder.
+ * This stands in for a real object store in the unit tests and in installations that want to try out the object store plugin on a shared file system.
+ * Objects are written to a temporary file and then moved into place so that readers never see a partially written object.
+ * @author mshankar
+ *
+ */
+public class LocalObjectStore implements ObjectStore {
+	private static Logger logger = Logger.getLogger(LocalObjectStore.class.getName());
+	private static final String TEMP_EXTENSION = ".objtmp";
+	private final Path rootFolder;
+	private final ObjectStoreMetrics metrics = new ObjectStoreMetrics();
+
+	public LocalObjectStore(Path rootFolder) throws IOException {
+		this.rootFolder = rootFolder.toAbsolutePath();
+		Files.createDirectories(this.rootFolder);
+	}
+
+	private Path getPath(String key) throws IOException {
+		Path path = rootFolder.resolve(key).normalize();
+		if(!path.startsWith(rootFolder) || key.endsWith(TEMP_EXTENSION)) {
+			throw new IOException("Invalid object key " + key);
+		}
+		return path;
+	}
+
+	@Override
+	public void putObject(String key, byte[] data) throws IOException {
+		Path path = getPath(key);
+		Files.createDirectories(path.getParent());
+		Path tempPath = path.resolveSibling(path.getFileName().toString() + TEMP_EXTENSION);
+		Files.write(tempPath, data);
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		metrics.putRequests.incrementAndGet();
+		metrics.bytesWritten.addAndGet(data.length);
+	}
+
+	@Override
+	public void putObject(String key, Path file) throws IOException {
+		Path path = getPath(key);
+		Files.createDirectories(path.getParent());
+		Path tempPath = path.resolveSibling(path.getFileName().toString() + TEMP_EXTENSION);
+		Files.copy(file, tempPath, StandardCopyOption.REPLACE_EXISTING);
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		metrics.putRequests.incrementAndGet();
+		metrics.bytesWritten.addAndGet(Files.size(path));
+	}
+
+	@Override
+	public byte[] getObject(String key) throws IOException {
+		Path path = getPath(key);
+		try {
+			byte[] ret = Files.readAllBytes(path);
+			metrics.getRequests.incrementAndGet();
+			metrics.bytesRead.addAndGet(ret.length);
+			return ret;
+		} catch(NoSuchFileException ex) {
+			return null;
+		}
+	}
+
+	@Override
+	public byte[] getObjectRange(String key, long offset, int length) throws IOException {
+		Path path = getPath(key);
+		byte[] ret = new byte[length];
+		try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+			channel.position(offset);
+			ByteBuffer buf = ByteBuffer.wrap(ret);
+			while(buf.hasRemaining()) {
+				if(channel.read(buf) < 0) {
+					throw new IOException("Object " + key + " of size " + channel.size() + " is too short for a read of " + length + " bytes at " + offset);
+				}
+			}
+		}
+		metrics.rangeRequests.incrementAndGet();
+		metrics.bytesRead.addAndGet(length);
+		return ret;
+	}
+
+	@Override
+	public void deleteObject(String key) throws IOException {
+		Files.deleteIfExists(getPath(key));
+		metrics.deleteRequests.incrementAndGet();
+	}
+
+	@Override
+	public List<String> listObjects(String prefix) throws IOException {
+		// The prefix need not end at a folder boundary; so we list the folder containing the prefix and filter.
+		Path prefixPath = rootFolder.resolve(prefix).normalize();
+		Path folder = (prefix.isEmpty() || prefix.endsWith("/")) ? prefixPath : prefixPath.getParent();
+		LinkedList<String> ret = new LinkedList<String>();
+		metrics.listRequests.incrementAndGet();
+		if(folder == null || !folder.startsWith(rootFolder) || !Files.isDirectory(folder)) return ret;
+		addKeys(folder, prefix, ret);
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private void addKeys(Path folder, String prefix, List<String> keys) throws IOException {
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+			for(Path path : stream) {
+				if(Files.isDirectory(path)) {
+					addKeys(path, prefix, keys);
+					continue;
+				}
+				if(path.getFileName().toString().endsWith(TEMP_EXTENSION)) continue;
+				String key = rootFolder.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+				if(key.startsWith(prefix)) keys.add(key);
+			}
+		}
+	}
+
+	@Override
+	public String getDescription() {
+		return "Local object store at " + rootFolder;
+	}
+
+	@Override
+	public Map<String, String> getMetrics() {
+		return metrics.toMap();
+	}
+
+	@Override
+	public void close() {
+		logger.debug("Closing " + getDescription());
+	}
+}
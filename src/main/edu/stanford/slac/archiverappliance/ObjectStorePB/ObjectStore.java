@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.ObjectStorePB;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The small subset of an S3 like object store that the {@link ObjectStorePBStoragePlugin} needs.
+ * Keys are <code>/</code> separated strings; objects are written once and replaced as a whole.
+ * @author mshankar
+ *
+ */
+public interface ObjectStore extends Closeable {
+	/**
+	 * Store the bytes as the object with this key replacing any existing object.
+	 * @param key
+	 * @param data
+	 * @throws IOException
+	 */
+	public void putObject(String key, byte[] data) throws IOException;
+
+	/**
+	 * Store the contents of the file as the object with this key replacing any existing object.
+	 * Implementations are expected to upload large files in parts.
+	 * @param key
+	 * @param file
+	 * @throws IOException
+	 */
+	public void putObject(String key, Path file) throws IOException;
+
+	/**
+	 * Get the contents of the object with this key
+	 * @param key
+	 * @return null if there is no such object
+	 * @throws IOException
+	 */
+	public byte[] getObject(String key) throws IOException;
+
+	/**
+	 * Get length bytes starting at offset of the object with this key.
+	 * @param key
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IOException - If there is no such object or if the object is shorter than offset + length.
+	 */
+	public byte[] getObjectRange(String key, long offset, int length) throws IOException;
+
+	/**
+	 * Delete the object with this key; deleting an object that does not exist is not an error.
+	 * @param key
+	 * @throws IOException
+	 */
+	public void deleteObject(String key) throws IOException;
+
+	/**
+	 * List the keys of all the objects whose key starts with this prefix.
+	 * @param prefix
+	 * @return
+	 * @throws IOException
+	 */
+	public List<String> listObjects(String prefix) throws IOException;
+
+	public String getDescription();
+
+	/**
+	 * Counters for the requests made to this store; these are displayed in the metrics page.
+	 * @return
+	 */
+	public Map<String, String> getMetrics();
+}
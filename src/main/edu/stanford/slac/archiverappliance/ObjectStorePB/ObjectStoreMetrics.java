@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.ObjectStorePB;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counters shared by the object store implementations.
+ * @author mshankar
+ *
+ */
+class ObjectStoreMetrics {
+	final AtomicLong getRequests = new AtomicLong(0);
+	final AtomicLong rangeRequests = new AtomicLong(0);
+	final AtomicLong bytesRead = new AtomicLong(0);
+	final AtomicLong putRequests = new AtomicLong(0);
+	final AtomicLong multipartUploads = new AtomicLong(0);
+	final AtomicLong bytesWritten = new AtomicLong(0);
+	final AtomicLong deleteRequests = new AtomicLong(0);
+	final AtomicLong listRequests = new AtomicLong(0);
+	final AtomicLong failedRequests = new AtomicLong(0);
+
+	Map<String, String> toMap() {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		ret.put("getRequests", Long.toString(getRequests.get()));
+		ret.put("rangeRequests", Long.toString(rangeRequests.get()));
+		ret.put("bytesRead", Long.toString(bytesRead.get()));
+		ret.put("putRequests", Long.toString(putRequests.get()));
+		ret.put("multipartUploads", Long.toString(multipartUploads.get()));
+		ret.put("bytesWritten", Long.toString(bytesWritten.get()));
+		ret.put("deleteRequests", Long.toString(deleteRequests.get()));
+		ret.put("listRequests", Long.toString(listRequests.get()));
+		ret.put("failedRequests", Long.toString(failedRequests.get()));
+		return ret;
+	}
+}
@@ -0,0 +1,609 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.ObjectStorePB;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.StoragePlugin;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.PVNameToKeyMapping;
+import org.epics.archiverappliance.etl.ConversionFunction;
+import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.etl.ETLDest;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+import org.epics.archiverappliance.utils.ui.URIUtils;
+
+/**
+ * A storage plugin that stores PB data in an S3 compatible object store (or a local folder that stands in for one).
+ * This is meant to be used as the last (long term) store in a policy; it can be an ETL dest but not an ETL source.
+ * <ol>
+ * <li>Each ETL run for a PV writes one pack object that contains a segment for each partition that the run touched; so we make one upload per PV per ETL run no matter what the partition granularity is.
+ * Large packs are uploaded using a parallel multipart upload.</li>
+ * <li>The segments for a PV are listed in a per PV manifest object (see {@link PVManifest}) which is written after the pack.
+ * When a PV has more than <code>maxSegments</code> segments, consecutive segments in the same partition are merged into a new pack.</li>
+ * <li>Each segment has a sparse time index; retrieval uses this to read only the portion of the segment that it needs using a range read.</li>
+ * </ol>
+ * For example, <code>objpb://localhost?name=LTS&amp;endpoint=https%3A%2F%2Fs3.us-west-2.amazonaws.com&amp;bucket=archiver&amp;region=us-west-2&amp;partitionGranularity=PARTITION_YEAR</code>.
+ * Use <code>rootFolder</code> instead of the <code>endpoint</code> and <code>bucket</code> to use a local folder.
+ * The credentials for the S3 store are not part of the URL (which is saved in the PVTypeInfo); they are picked up from archappl.properties or the standard AWS environment variables.
+ * Post processors are always computed at retrieval time; we do not cache post processed data in the object store.
+ * @author mshankar
+ *
+ */
+public class ObjectStorePBStoragePlugin implements StoragePlugin, ETLDest {
+	private static Logger logger = Logger.getLogger(ObjectStorePBStoragePlugin.class.getName());
+	public static final String PACK_EXTENSION = ".pbpack";
+	private static final String PACK_PREFIX = "pack_";
+	private static final String MANIFEST_NAME = "manifest.json";
+	private static final String PROPERTY_PREFIX = "edu.stanford.slac.archiverappliance.ObjectStorePB.S3ObjectStore.";
+	/**
+	 * We read segments in chunks of about this size when copying them so that we do not hold entire partitions in memory.
+	 */
+	private static final int COPY_CHUNK_BYTES = 8*1024*1024;
+
+	/**
+	 * The plugin is instantiated every time its URL is parsed; so we share the object stores (and their connection pools) across plugin instances.
+	 */
+	private static ConcurrentHashMap<String, ObjectStore> objectStores = new ConcurrentHashMap<String, ObjectStore>();
+	private static final AtomicLong packsUploaded = new AtomicLong(0);
+	private static final AtomicLong segmentsWritten = new AtomicLong(0);
+	private static final AtomicLong repacks = new AtomicLong(0);
+	private static final AtomicLong retiredPacksDeleted = new AtomicLong(0);
+	private static final AtomicLong orphanPacksDeleted = new AtomicLong(0);
+
+	private String name;
+	private String desc;
+	private String rootFolder;
+	private URI endpoint;
+	private String bucket;
+	private String region = "us-east-1";
+	private String keyPrefix = "";
+	private PartitionGranularity partitionGranularity;
+	private int indexKB = 64;
+	private int maxSegments = 64;
+	private int retireMinutes = 60;
+	private int partMB = 16;
+	private int uploadThreads = 4;
+	private Path stagingFolder;
+	private ObjectStore store;
+	private PVNameToKeyMapping pv2key;
+	private ConcurrentHashMap<String, PackWriter> packWriters = new ConcurrentHashMap<String, PackWriter>();
+	private final Random random = new Random();
+
+	@Override
+	public List<Callable<EventStream>> getDataForPV(BasicContext context, final String pvName, final Timestamp startTime, final Timestamp endTime, PostProcessor postProcessor) throws IOException {
+		PVManifest manifest = loadManifest(pvName);
+		if(manifest == null || manifest.segments.isEmpty()) {
+			logger.debug(desc + ": no data for pv " + pvName);
+			return null;
+		}
+		boolean wrapWithPostProcessor = !".pb".equals("." + postProcessor.getExtension());
+		long startSeconds = TimeUtils.convertToEpochSeconds(startTime);
+		long endSeconds = TimeUtils.convertToEpochSeconds(endTime);
+
+		// We return the segments that overlap the time range and the one that has the last event before the start time.
+		LinkedList<PVManifest.Segment> selectedSegments = new LinkedList<PVManifest.Segment>();
+		PVManifest.Segment previousSegment = null;
+		for(PVManifest.Segment segment : manifest.segments) {
+			if(segment.getLastEventTime().before(startTime)) {
+				previousSegment = segment;
+				continue;
+			}
+			if(segment.getFirstEventTime().after(endTime)) break;
+			selectedSegments.add(segment);
+		}
+		if(previousSegment != null && (selectedSegments.isEmpty() || selectedSegments.getFirst().getFirstEventTime().after(startTime))) {
+			selectedSegments.addFirst(previousSegment);
+		}
+
+		ArrayList<Callable<EventStream>> ret = new ArrayList<Callable<EventStream>>();
+		for(final PVManifest.Segment segment : selectedSegments) {
+			final long readStart = segment.getReadStartOffset(startSeconds);
+			final long readEnd = segment.getReadEndOffset(endSeconds);
+			if(readEnd <= readStart) continue;
+			if(readEnd - readStart > Integer.MAX_VALUE) throw new IOException("Segment " + segment.partition + " for pv " + pvName + " is too large for a single read");
+			// The range read is done when the callable is called so that the retrieval can fetch several segments in parallel.
+			Callable<EventStream> callable = new Callable<EventStream>() {
+				@Override
+				public EventStream call() throws Exception {
+					byte[] data = store.getObjectRange(segment.pack, segment.offset + readStart, (int) (readEnd - readStart));
+					return new SegmentEventStream(pvName, segment, data, startTime, endTime, name + " " + segment.partition);
+				}
+			};
+			ret.add(wrapWithPostProcessor ? postProcessor.wrap(callable) : callable);
+		}
+		logger.debug(desc + ": returning " + ret.size() + " segments for pv " + pvName);
+		return ret;
+	}
+
+	@Override
+	public Event getFirstKnownEvent(BasicContext context, String pvName) throws IOException {
+		PVManifest manifest = loadManifest(pvName);
+		if(manifest == null || manifest.segments.isEmpty()) return null;
+		PVManifest.Segment segment = manifest.segments.getFirst();
+		long readEnd = segment.index.size() > 1 ? segment.index.get(1)[1] : segment.length;
+		for(Event event : readSegment(pvName, segment, segment.headerLength, readEnd)) {
+			return event.makeClone();
+		}
+		return null;
+	}
+
+	@Override
+	public Event getLastKnownEvent(BasicContext context, String pvName) throws IOException {
+		PVManifest manifest = loadManifest(pvName);
+		if(manifest == null || manifest.segments.isEmpty()) return null;
+		PVManifest.Segment segment = manifest.segments.getLast();
+		long readStart = segment.index.isEmpty() ? segment.headerLength : segment.index.get(segment.index.size()-1)[1];
+		Event lastEvent = null;
+		for(Event event : readSegment(pvName, segment, readStart, segment.length)) {
+			lastEvent = event;
+		}
+		return lastEvent != null ? lastEvent.makeClone() : null;
+	}
+
+	private SegmentEventStream readSegment(String pvName, PVManifest.Segment segment, long readStart, long readEnd) throws IOException {
+		byte[] data = store.getObjectRange(segment.pack, segment.offset + readStart, (int) (readEnd - readStart));
+		return new SegmentEventStream(pvName, segment, data, null, null, name + " " + segment.partition);
+	}
+
+	@Override
+	public boolean appendData(BasicContext context, String pvName, EventStream stream) throws IOException {
+		appendToETLAppendData(pvName, stream, null);
+		return commitETLAppendData(pvName, null);
+	}
+
+	@Override
+	public boolean prepareForNewPartition(String pvName, Event ev, ArchDBRTypes archDBRType, ETLContext context) throws IOException {
+		// The pack writer starts new segments as the events cross partitions; so there is nothing to do here other than to make sure we have a writer.
+		getPackWriter(pvName);
+		return true;
+	}
+
+	@Override
+	public boolean appendToETLAppendData(String pvName, EventStream stream, ETLContext context) throws IOException {
+		PackWriter writer = getPackWriter(pvName);
+		int eventsAppended = writer.append(stream);
+		logger.debug(desc + ": staged " + eventsAppended + " events for pv " + pvName);
+		return true;
+	}
+
+	@Override
+	public boolean commitETLAppendData(String pvName, ETLContext context) throws IOException {
+		PackWriter writer = packWriters.remove(pvName);
+		if(writer == null) return true;
+		try {
+			commitPack(pvName, writer, false);
+		} finally {
+			writer.close();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean runPostProcessors(String pvName, ArchDBRTypes dbrtype, ETLContext context) throws IOException {
+		// We do not cache post processed data; post processors are applied at retrieval time.
+		return true;
+	}
+
+	private PackWriter getPackWriter(String pvName) throws IOException {
+		PackWriter writer = packWriters.get(pvName);
+		if(writer == null) {
+			PVManifest manifest = loadManifest(pvName);
+			Timestamp lastKnownTimestamp = (manifest != null && !manifest.segments.isEmpty()) ? manifest.segments.getLast().getLastEventTime() : null;
+			writer = new PackWriter(newStagingFile(), pvName, partitionGranularity, indexKB*1024, lastKnownTimestamp);
+			packWriters.put(pvName, writer);
+		}
+		return writer;
+	}
+
+	private Path newStagingFile() {
+		return stagingFolder.resolve(name + "_" + System.currentTimeMillis() + "_" + Integer.toHexString(random.nextInt()) + PACK_EXTENSION);
+	}
+
+	/**
+	 * Upload the staged pack and then add its segments to the manifest for the PV.
+	 * @param pvName
+	 * @param writer
+	 * @param replaceExisting - If true, the segments in the pack replace all the existing segments for this PV.
+	 * @throws IOException
+	 */
+	private void commitPack(String pvName, PackWriter writer, boolean replaceExisting) throws IOException {
+		List<PVManifest.Segment> newSegments = writer.finish();
+		if(newSegments.isEmpty() && !replaceExisting) {
+			logger.debug(desc + ": nothing to commit for pv " + pvName);
+			return;
+		}
+		PVManifest manifest = loadManifest(pvName);
+		if(manifest == null) manifest = new PVManifest(pvName);
+		if(!newSegments.isEmpty()) {
+			String packKey = newPackKey(pvName);
+			store.putObject(packKey, writer.getStagingFile());
+			for(PVManifest.Segment segment : newSegments) {
+				segment.pack = packKey;
+			}
+			packsUploaded.incrementAndGet();
+			segmentsWritten.addAndGet(newSegments.size());
+		}
+		if(replaceExisting) {
+			Set<String> existingPacks = manifest.getLivePacks();
+			manifest.segments.clear();
+			manifest.segments.addAll(newSegments);
+			manifest.retireUnreferencedPacks(existingPacks, System.currentTimeMillis());
+		} else {
+			manifest.segments.addAll(newSegments);
+		}
+		repackIfNeeded(pvName, manifest);
+		List<String> expiredPacks = removeExpiredRetiredPacks(manifest);
+		manifest.version++;
+		store.putObject(getManifestKey(pvName), manifest.toJSON());
+		logger.debug(desc + ": committed version " + manifest.version + " of the manifest for pv " + pvName + " with " + manifest.segments.size() + " segments");
+
+		// Deletes happen only after the manifest no longer refers to these packs.
+		for(String expiredPack : expiredPacks) {
+			store.deleteObject(expiredPack);
+			retiredPacksDeleted.incrementAndGet();
+		}
+		deleteOrphanPacks(pvName, manifest);
+	}
+
+	/**
+	 * If we have too many segments, merge runs of consecutive segments in the same partition into a new pack.
+	 * This keeps the manifest small and the number of range reads for a time range low when ETL runs more often than the partition granularity.
+	 * @param pvName
+	 * @param manifest
+	 * @throws IOException
+	 */
+	private void repackIfNeeded(String pvName, PVManifest manifest) throws IOException {
+		if(manifest.segments.size() <= maxSegments) return;
+
+		List<List<PVManifest.Segment>> runs = new LinkedList<List<PVManifest.Segment>>();
+		List<PVManifest.Segment> currentRun = null;
+		for(PVManifest.Segment segment : manifest.segments) {
+			if(currentRun == null || !isSamePartition(currentRun.get(0), segment)) {
+				currentRun = new ArrayList<PVManifest.Segment>();
+				runs.add(currentRun);
+			}
+			currentRun.add(segment);
+		}
+		List<List<PVManifest.Segment>> runsToMerge = new LinkedList<List<PVManifest.Segment>>();
+		for(List<PVManifest.Segment> run : runs) {
+			if(run.size() > 1) runsToMerge.add(run);
+		}
+		if(runsToMerge.isEmpty()) {
+			logger.debug(desc + ": pv " + pvName + " has " + manifest.segments.size() + " segments but all of them are in different partitions");
+			return;
+		}
+
+		List<PVManifest.Segment> mergedSegments;
+		String packKey = newPackKey(pvName);
+		try(PackWriter writer = new PackWriter(newStagingFile(), pvName, partitionGranularity, indexKB*1024, null)) {
+			for(List<PVManifest.Segment> run : runsToMerge) {
+				for(PVManifest.Segment segment : run) {
+					copySegment(pvName, segment, writer);
+				}
+				writer.endSegment();
+			}
+			mergedSegments = writer.finish();
+			if(mergedSegments.size() != runsToMerge.size()) {
+				logger.error(desc + ": expected " + runsToMerge.size() + " merged segments for pv " + pvName + "; got " + mergedSegments.size() + ". Skipping repacking.");
+				return;
+			}
+			store.putObject(packKey, writer.getStagingFile());
+		}
+
+		Set<String> packsBeforeRepack = manifest.getLivePacks();
+		Iterator<PVManifest.Segment> mergedIt = mergedSegments.iterator();
+		for(List<PVManifest.Segment> run : runsToMerge) {
+			PVManifest.Segment mergedSegment = mergedIt.next();
+			mergedSegment.pack = packKey;
+			int position = manifest.segments.indexOf(run.get(0));
+			manifest.segments.removeAll(run);
+			manifest.segments.add(position, mergedSegment);
+		}
+		manifest.retireUnreferencedPacks(packsBeforeRepack, System.currentTimeMillis());
+		repacks.incrementAndGet();
+		logger.info(desc + ": repacked pv " + pvName + " into " + manifest.segments.size() + " segments");
+	}
+
+	private static boolean isSamePartition(PVManifest.Segment a, PVManifest.Segment b) {
+		return a.partition.equals(b.partition) && a.year == b.year && a.type == b.type;
+	}
+
+	/**
+	 * Copy the events in this segment into the writer reading the segment in chunks that end at index entries.
+	 */
+	private void copySegment(String pvName, PVManifest.Segment segment, PackWriter writer) throws IOException {
+		long chunkStart = segment.headerLength;
+		while(chunkStart < segment.length) {
+			long chunkEnd = segment.length;
+			if(chunkEnd - chunkStart > COPY_CHUNK_BYTES) {
+				for(long[] entry : segment.index) {
+					if(entry[1] > chunkStart + COPY_CHUNK_BYTES) break;
+					if(entry[1] > chunkStart) chunkEnd = entry[1];
+				}
+				if(chunkEnd == segment.length) {
+					// The index entries are too far apart; find the first one after the chunk start.
+					for(long[] entry : segment.index) {
+						if(entry[1] > chunkStart) {
+							chunkEnd = entry[1];
+							break;
+						}
+					}
+				}
+			}
+			writer.append(readSegment(pvName, segment, chunkStart, chunkEnd));
+			chunkStart = chunkEnd;
+		}
+	}
+
+	private List<String> removeExpiredRetiredPacks(PVManifest manifest) {
+		List<String> ret = new LinkedList<String>();
+		long now = System.currentTimeMillis();
+		Set<String> livePacks = manifest.getLivePacks();
+		for(Iterator<PVManifest.RetiredPack> it = manifest.retiredPacks.iterator(); it.hasNext(); ) {
+			PVManifest.RetiredPack retiredPack = it.next();
+			if(now - retiredPack.retiredAtMillis >= retireMinutes*60*1000L) {
+				it.remove();
+				if(!livePacks.contains(retiredPack.pack)) ret.add(retiredPack.pack);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Delete packs that are not in the manifest; for example, packs that were uploaded just before a crash and never made it into the manifest.
+	 * We leave recent packs alone as they may belong to a commit that is in progress elsewhere.
+	 */
+	private void deleteOrphanPacks(String pvName, PVManifest manifest) throws IOException {
+		Set<String> knownPacks = new HashSet<String>(manifest.getLivePacks());
+		for(PVManifest.RetiredPack retiredPack : manifest.retiredPacks) {
+			knownPacks.add(retiredPack.pack);
+		}
+		String packPrefix = getPVKeyPrefix(pvName) + PACK_PREFIX;
+		long now = System.currentTimeMillis();
+		for(String key : store.listObjects(packPrefix)) {
+			if(knownPacks.contains(key)) continue;
+			String[] nameParts = key.substring(packPrefix.length()).split("_");
+			try {
+				long createdAtMillis = Long.parseLong(nameParts[0]);
+				if(now - createdAtMillis < retireMinutes*60*1000L) continue;
+			} catch(NumberFormatException ex) {
+				logger.warn(desc + ": skipping object with unexpected name " + key);
+				continue;
+			}
+			logger.warn(desc + ": deleting orphaned pack " + key + " for pv " + pvName);
+			store.deleteObject(key);
+			orphanPacksDeleted.incrementAndGet();
+		}
+	}
+
+	private String getPVKeyPrefix(String pvName) {
+		// Empty components in the key are collapsed just like the file system does for the PlainPB plugin.
+		String pvKey = pv2key.convertPVNameToKey(pvName).replaceAll("/+", "/");
+		if(pvKey.startsWith("/")) pvKey = pvKey.substring(1);
+		return keyPrefix + pvKey;
+	}
+
+	private String getManifestKey(String pvName) {
+		return getPVKeyPrefix(pvName) + MANIFEST_NAME;
+	}
+
+	private String newPackKey(String pvName) {
+		return getPVKeyPrefix(pvName) + PACK_PREFIX + System.currentTimeMillis() + "_" + Integer.toHexString(random.nextInt()) + PACK_EXTENSION;
+	}
+
+	PVManifest loadManifest(String pvName) throws IOException {
+		byte[] manifestBytes = store.getObject(getManifestKey(pvName));
+		if(manifestBytes == null) return null;
+		return PVManifest.fromJSON(manifestBytes);
+	}
+
+	@Override
+	public String getDescription() {
+		return desc;
+	}
+
+	@Override
+	public PartitionGranularity getPartitionGranularity() {
+		return partitionGranularity;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	ObjectStore getObjectStore() {
+		return store;
+	}
+
+	@Override
+	public void initialize(String configURL, ConfigService configService) throws IOException {
+		this.pv2key = configService.getPVNameToKeyConverter();
+		try {
+			URI srcURI = new URI(configURL);
+			HashMap<String, String> queryNVPairs = URIUtils.parseQueryString(srcURI);
+			if(queryNVPairs.containsKey("name")) {
+				name = queryNVPairs.get("name");
+			} else {
+				throw new IOException("Cannot initialize the plugin; this needs a name");
+			}
+			if(queryNVPairs.containsKey("partitionGranularity")) {
+				partitionGranularity = PartitionGranularity.valueOf(queryNVPairs.get("partitionGranularity"));
+			} else {
+				throw new IOException("Cannot initialize the plugin; this needs the partitionGranularity to be specified");
+			}
+			if(queryNVPairs.containsKey("rootFolder")) {
+				rootFolder = queryNVPairs.get("rootFolder");
+			} else if(queryNVPairs.containsKey("endpoint") && queryNVPairs.containsKey("bucket")) {
+				endpoint = new URI(queryNVPairs.get("endpoint"));
+				bucket = queryNVPairs.get("bucket");
+			} else {
+				throw new IOException("Cannot initialize the plugin; this needs either a rootFolder or an endpoint and a bucket");
+			}
+			if(queryNVPairs.containsKey("region")) region = queryNVPairs.get("region");
+			if(queryNVPairs.containsKey("prefix")) keyPrefix = queryNVPairs.get("prefix");
+			if(queryNVPairs.containsKey("indexKB")) indexKB = Integer.parseInt(queryNVPairs.get("indexKB"));
+			if(queryNVPairs.containsKey("maxSegments")) maxSegments = Integer.parseInt(queryNVPairs.get("maxSegments"));
+			if(queryNVPairs.containsKey("retireMinutes")) retireMinutes = Integer.parseInt(queryNVPairs.get("retireMinutes"));
+			if(queryNVPairs.containsKey("partMB")) partMB = Integer.parseInt(queryNVPairs.get("partMB"));
+			if(queryNVPairs.containsKey("uploadThreads")) uploadThreads = Integer.parseInt(queryNVPairs.get("uploadThreads"));
+			if(queryNVPairs.containsKey("stagingFolder")) {
+				stagingFolder = Paths.get(queryNVPairs.get("stagingFolder"));
+			} else {
+				stagingFolder = Paths.get(System.getProperty("java.io.tmpdir"), "archappl_objpb");
+			}
+		} catch(URISyntaxException ex) {
+			throw new IOException(ex);
+		}
+
+		this.store = getSharedObjectStore(configService);
+		this.desc = "ObjectStorePB plugin - " + name + " using " + store.getDescription() + " and granularity " + partitionGranularity;
+	}
+
+	private ObjectStore getSharedObjectStore(ConfigService configService) throws IOException {
+		String storeKey = rootFolder != null ? rootFolder : endpoint + "/" + bucket;
+		ObjectStore sharedStore = objectStores.get(storeKey);
+		if(sharedStore != null) return sharedStore;
+		synchronized(objectStores) {
+			sharedStore = objectStores.get(storeKey);
+			if(sharedStore != null) return sharedStore;
+			if(rootFolder != null) {
+				sharedStore = new LocalObjectStore(Paths.get(rootFolder));
+			} else {
+				Properties installationProperties = configService.getInstallationProperties();
+				String accessKey = installationProperties.getProperty(PROPERTY_PREFIX + "accessKey", System.getenv("AWS_ACCESS_KEY_ID"));
+				String secretKey = installationProperties.getProperty(PROPERTY_PREFIX + "secretKey", System.getenv("AWS_SECRET_ACCESS_KEY"));
+				if(accessKey == null || secretKey == null) throw new IOException("Cannot find the credentials for the object store " + storeKey);
+				sharedStore = new S3ObjectStore(endpoint, bucket, region, accessKey, secretKey, partMB*1024*1024, uploadThreads);
+			}
+			objectStores.put(storeKey, sharedStore);
+			final ObjectStore storeToClose = sharedStore;
+			configService.addShutdownHook(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						storeToClose.close();
+					} catch(IOException ex) {
+						logger.error("Exception closing " + storeToClose.getDescription(), ex);
+					}
+				}
+			});
+			logger.info("Created " + sharedStore.getDescription());
+			return sharedStore;
+		}
+	}
+
+	/**
+	 * Return a URL representation of this plugin suitable for parsing by StoragePluginURLParser
+	 * @return
+	 */
+	public String getURLRepresentation() {
+		try {
+			StringBuilder buf = new StringBuilder();
+			buf.append("objpb://localhost?name=");
+			buf.append(URLEncoder.encode(name, "UTF-8"));
+			if(rootFolder != null) {
+				buf.append("&rootFolder=");
+				buf.append(URLEncoder.encode(rootFolder, "UTF-8"));
+			} else {
+				buf.append("&endpoint=");
+				buf.append(URLEncoder.encode(endpoint.toString(), "UTF-8"));
+				buf.append("&bucket=");
+				buf.append(URLEncoder.encode(bucket, "UTF-8"));
+				buf.append("&region=");
+				buf.append(URLEncoder.encode(region, "UTF-8"));
+			}
+			if(!keyPrefix.isEmpty()) {
+				buf.append("&prefix=");
+				buf.append(URLEncoder.encode(keyPrefix, "UTF-8"));
+			}
+			buf.append("&partitionGranularity=");
+			buf.append(partitionGranularity.toString());
+			return buf.toString();
+		} catch(UnsupportedEncodingException ex) {
+			throw new RuntimeException("Exception generating URL representation of plugin", ex);
+		}
+	}
+
+	@Override
+	public void renamePV(BasicContext context, String oldName, String newName) throws IOException {
+		PVManifest manifest = loadManifest(oldName);
+		if(manifest == null || manifest.segments.isEmpty()) return;
+		// We copy the data into packs for the new name; this also puts the new name in the PB headers.
+		try(PackWriter writer = new PackWriter(newStagingFile(), newName, partitionGranularity, indexKB*1024, null)) {
+			for(PVManifest.Segment segment : manifest.segments) {
+				logger.debug("Copying over data from segment " + segment.partition + " of " + oldName + " to new pv " + newName);
+				copySegment(oldName, segment, writer);
+			}
+			commitPack(newName, writer, false);
+		}
+	}
+
+	@Override
+	public void convert(BasicContext context, String pvName, ConversionFunction conversionFuntion) throws IOException {
+		PVManifest manifest = loadManifest(pvName);
+		if(manifest == null || manifest.segments.isEmpty()) return;
+		try(PackWriter writer = new PackWriter(newStagingFile(), pvName, partitionGranularity, indexKB*1024, null)) {
+			for(PVManifest.Segment segment : manifest.segments) {
+				logger.info("Converting data in segment " + segment.partition + " for pv " + pvName);
+				byte[] data = store.getObjectRange(segment.pack, segment.offset + segment.headerLength, (int) (segment.length - segment.headerLength));
+				writer.append(conversionFuntion.convertStream(new SegmentEventStream(pvName, segment, data, null, null, name + " " + segment.partition)));
+			}
+			// The converted segments replace the existing ones only once all of them have been converted.
+			commitPack(pvName, writer, true);
+		}
+	}
+
+	/**
+	 * Metrics for the object stores used by this plugin; these are displayed in the metrics page.
+	 * @return
+	 */
+	public static Map<String, String> getMetrics() {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		ret.put("packsUploaded", Long.toString(packsUploaded.get()));
+		ret.put("segmentsWritten", Long.toString(segmentsWritten.get()));
+		ret.put("repacks", Long.toString(repacks.get()));
+		ret.put("retiredPacksDeleted", Long.toString(retiredPacksDeleted.get()));
+		ret.put("orphanPacksDeleted", Long.toString(orphanPacksDeleted.get()));
+		for(ObjectStore objectStore : objectStores.values()) {
+			for(Map.Entry<String, String> storeMetric : objectStore.getMetrics().entrySet()) {
+				ret.put(objectStore.getDescription() + " " + storeMetric.getKey(), storeMetric.getValue());
+			}
+		}
+		return ret;
+	}
+}
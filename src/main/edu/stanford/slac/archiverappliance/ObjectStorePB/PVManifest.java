@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.ObjectStorePB;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * The list of segments that make up the data for a PV in the object store.
+ * A segment is a byte range in a pack object that is laid out exactly like a PB partition; a PB header followed by one line per event.
+ * A pack holds the segments for all the partitions written by one ETL run (or one repack) for this PV.
+ * Each segment has a sparse time index of (epoch seconds, offset) pairs at event line boundaries so that retrieval can read just the portion of the segment it needs using a range read.
+ * The manifest is stored as a small JSON object and is always written after the packs it refers to.
+ * Packs that are no longer referenced are retired and deleted some time later so that readers using an older manifest can finish.
+ * @author mshankar
+ *
+ */
+class PVManifest {
+	static class Segment {
+		String pack;
+		long offset;
+		long length;
+		int headerLength;
+		short year;
+		ArchDBRTypes type;
+		String partition;
+		long events;
+		long firstSeconds;
+		int firstNanos;
+		long lastSeconds;
+		int lastNanos;
+		/**
+		 * Pairs of epoch seconds of an event and the offset (relative to the start of the segment) of the line for that event, in increasing order of time.
+		 * The first entry is always for the first event in the segment.
+		 */
+		List<long[]> index = new ArrayList<long[]>();
+
+		Timestamp getFirstEventTime() {
+			return TimeUtils.convertFromEpochSeconds(firstSeconds, firstNanos);
+		}
+
+		Timestamp getLastEventTime() {
+			return TimeUtils.convertFromEpochSeconds(lastSeconds, lastNanos);
+		}
+
+		/**
+		 * The offset of the latest indexed line whose time is before the start time; this is where we start reading to get the events after the start time and the one event before it.
+		 * @param startSeconds
+		 * @return
+		 */
+		long getReadStartOffset(long startSeconds) {
+			long ret = headerLength;
+			for(long[] entry : index) {
+				if(entry[0] < startSeconds) {
+					ret = entry[1];
+				} else {
+					break;
+				}
+			}
+			return ret;
+		}
+
+		/**
+		 * The offset of the first indexed line whose time is after the end time; we can stop reading here.
+		 * @param endSeconds
+		 * @return
+		 */
+		long getReadEndOffset(long endSeconds) {
+			for(long[] entry : index) {
+				if(entry[0] > endSeconds) return entry[1];
+			}
+			return length;
+		}
+	}
+
+	static class RetiredPack {
+		String pack;
+		long retiredAtMillis;
+
+		RetiredPack(String pack, long retiredAtMillis) {
+			this.pack = pack;
+			this.retiredAtMillis = retiredAtMillis;
+		}
+	}
+
+	String pvName;
+	long version = 0;
+	/**
+	 * Sorted by time; the segments of a PV do not overlap in time.
+	 */
+	LinkedList<Segment> segments = new LinkedList<Segment>();
+	LinkedList<RetiredPack> retiredPacks = new LinkedList<RetiredPack>();
+
+	PVManifest(String pvName) {
+		this.pvName = pvName;
+	}
+
+	Set<String> getLivePacks() {
+		HashSet<String> ret = new HashSet<String>();
+		for(Segment segment : segments) {
+			ret.add(segment.pack);
+		}
+		return ret;
+	}
+
+	/**
+	 * Retire the packs in candidates that are no longer referenced by any segment.
+	 * @param candidates
+	 * @param nowMillis
+	 */
+	void retireUnreferencedPacks(Set<String> candidates, long nowMillis) {
+		Set<String> livePacks = getLivePacks();
+		for(String pack : candidates) {
+			if(!livePacks.contains(pack)) retiredPacks.add(new RetiredPack(pack, nowMillis));
+		}
+	}
+
+	long getTotalBytes() {
+		long ret = 0;
+		for(Segment segment : segments) {
+			ret += segment.length;
+		}
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	byte[] toJSON() {
+		JSONObject manifest = new JSONObject();
+		manifest.put("pvName", pvName);
+		manifest.put("version", version);
+		JSONArray segmentsArray = new JSONArray();
+		for(Segment segment : segments) {
+			JSONObject segmentObj = new JSONObject();
+			segmentObj.put("pack", segment.pack);
+			segmentObj.put("offset", segment.offset);
+			segmentObj.put("length", segment.length);
+			segmentObj.put("headerLength", segment.headerLength);
+			segmentObj.put("year", segment.year);
+			segmentObj.put("type", segment.type.toString());
+			segmentObj.put("partition", segment.partition);
+			segmentObj.put("events", segment.events);
+			segmentObj.put("firstSeconds", segment.firstSeconds);
+			segmentObj.put("firstNanos", segment.firstNanos);
+			segmentObj.put("lastSeconds", segment.lastSeconds);
+			segmentObj.put("lastNanos", segment.lastNanos);
+			JSONArray indexArray = new JSONArray();
+			for(long[] entry : segment.index) {
+				indexArray.add(entry[0]);
+				indexArray.add(entry[1]);
+			}
+			segmentObj.put("index", indexArray);
+			segmentsArray.add(segmentObj);
+		}
+		manifest.put("segments", segmentsArray);
+		JSONArray retiredArray = new JSONArray();
+		for(RetiredPack retiredPack : retiredPacks) {
+			JSONObject retiredObj = new JSONObject();
+			retiredObj.put("pack", retiredPack.pack);
+			retiredObj.put("retiredAt", retiredPack.retiredAtMillis);
+			retiredArray.add(retiredObj);
+		}
+		manifest.put("retired", retiredArray);
+		return manifest.toJSONString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	static PVManifest fromJSON(byte[] json) throws IOException {
+		try {
+			JSONObject manifestObj = (JSONObject) JSONValue.parse(new String(json, StandardCharsets.UTF_8));
+			PVManifest ret = new PVManifest((String) manifestObj.get("pvName"));
+			ret.version = ((Number) manifestObj.get("version")).longValue();
+			for(Object segmentItem : (JSONArray) manifestObj.get("segments")) {
+				JSONObject segmentObj = (JSONObject) segmentItem;
+				Segment segment = new Segment();
+				segment.pack = (String) segmentObj.get("pack");
+				segment.offset = ((Number) segmentObj.get("offset")).longValue();
+				segment.length = ((Number) segmentObj.get("length")).longValue();
+				segment.headerLength = ((Number) segmentObj.get("headerLength")).intValue();
+				segment.year = ((Number) segmentObj.get("year")).shortValue();
+				segment.type = ArchDBRTypes.valueOf((String) segmentObj.get("type"));
+				segment.partition = (String) segmentObj.get("partition");
+				segment.events = ((Number) segmentObj.get("events")).longValue();
+				segment.firstSeconds = ((Number) segmentObj.get("firstSeconds")).longValue();
+				segment.firstNanos = ((Number) segmentObj.get("firstNanos")).intValue();
+				segment.lastSeconds = ((Number) segmentObj.get("lastSeconds")).longValue();
+				segment.lastNanos = ((Number) segmentObj.get("lastNanos")).intValue();
+				JSONArray indexArray = (JSONArray) segmentObj.get("index");
+				for(int i = 0; i + 1 < indexArray.size(); i += 2) {
+					segment.index.add(new long[] { ((Number) indexArray.get(i)).longValue(), ((Number) indexArray.get(i+1)).longValue() });
+				}
+				ret.segments.add(segment);
+			}
+			for(Object retiredItem : (JSONArray) manifestObj.get("retired")) {
+				JSONObject retiredObj = (JSONObject) retiredItem;
+				ret.retiredPacks.add(new RetiredPack((String) retiredObj.get("pack"), ((Number) retiredObj.get("retiredAt")).longValue()));
+			}
+			return ret;
+		} catch(ClassCastException | NullPointerException | IllegalArgumentException ex) {
+			throw new IOException("Invalid manifest", ex);
+		}
+	}
+}
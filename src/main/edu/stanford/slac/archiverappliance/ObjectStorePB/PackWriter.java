@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.ObjectStorePB;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Writes the events for one PV into a local staging file that is then uploaded as a pack.
+ * A new segment (with its own PB header) is started whenever the events move into a new partition; so a pack can hold many partitions.
+ * While writing, we build the sparse time index for each segment.
+ * Events that are not after the last event we have written (or the last known event in the store) are skipped; this is the same as what the PlainPB plugin does.
+ * @author mshankar
+ *
+ */
+class PackWriter implements Closeable {
+	private static Logger logger = Logger.getLogger(PackWriter.class.getName());
+	private final Path stagingFile;
+	private final String pvName;
+	private final PartitionGranularity granularity;
+	private final int indexBytes;
+	private Timestamp lastWrittenTimestamp;
+	private OutputStream os;
+	private long position = 0;
+	private final LinkedList<PVManifest.Segment> segments = new LinkedList<PVManifest.Segment>();
+	private PVManifest.Segment currentSegment = null;
+	private long lastIndexedOffset = 0;
+
+	/**
+	 * @param stagingFile - This is created (or truncated) now and deleted on close.
+	 * @param pvName - The name that goes into the PB headers
+	 * @param granularity
+	 * @param indexBytes - The approximate number of bytes between index entries
+	 * @param lastKnownTimestamp - Skip events at or before this time; null to accept all events.
+	 * @throws IOException
+	 */
+	PackWriter(Path stagingFile, String pvName, PartitionGranularity granularity, int indexBytes, Timestamp lastKnownTimestamp) throws IOException {
+		this.stagingFile = stagingFile;
+		this.pvName = pvName;
+		this.granularity = granularity;
+		this.indexBytes = indexBytes;
+		this.lastWrittenTimestamp = lastKnownTimestamp;
+		Files.createDirectories(stagingFile.getParent());
+		this.os = new BufferedOutputStream(Files.newOutputStream(stagingFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+	}
+
+	/**
+	 * Append the events in the stream.
+	 * @param stream
+	 * @return The number of events appended
+	 * @throws IOException
+	 */
+	int append(EventStream stream) throws IOException {
+		int eventsAppended = 0;
+		ArchDBRTypes type = stream.getDescription().getArchDBRType();
+		for(Event event : stream) {
+			Timestamp ts = event.getEventTimeStamp();
+			if(lastWrittenTimestamp != null && !ts.after(lastWrittenTimestamp)) continue;
+			long epochSeconds = event.getEpochSeconds();
+			String partition = TimeUtils.getPartitionName(epochSeconds, granularity);
+			if(currentSegment == null || currentSegment.type != type || !currentSegment.partition.equals(partition)) {
+				startSegment(type, TimeUtils.computeYearForEpochSeconds(epochSeconds), partition);
+			}
+
+			long offsetInSegment = position - currentSegment.offset;
+			if(currentSegment.index.isEmpty() || offsetInSegment - lastIndexedOffset >= indexBytes) {
+				currentSegment.index.add(new long[] { epochSeconds, offsetInSegment });
+				lastIndexedOffset = offsetInSegment;
+			}
+			// The raw form is already escaped for new lines
+			ByteArray val = event.getRawForm();
+			os.write(val.data, val.off, val.len);
+			os.write(LineEscaper.NEWLINE_CHAR);
+			position += val.len + 1;
+
+			if(currentSegment.events == 0) {
+				currentSegment.firstSeconds = epochSeconds;
+				currentSegment.firstNanos = ts.getNanos();
+			}
+			currentSegment.lastSeconds = epochSeconds;
+			currentSegment.lastNanos = ts.getNanos();
+			currentSegment.events++;
+			lastWrittenTimestamp = ts;
+			eventsAppended++;
+		}
+		return eventsAppended;
+	}
+
+	/**
+	 * Make sure the next event starts a new segment even if it is in the same partition as the previous event.
+	 */
+	void endSegment() {
+		finishSegment();
+		currentSegment = null;
+	}
+
+	private void startSegment(ArchDBRTypes type, short year, String partition) throws IOException {
+		finishSegment();
+		currentSegment = new PVManifest.Segment();
+		currentSegment.offset = position;
+		currentSegment.type = type;
+		currentSegment.year = year;
+		currentSegment.partition = partition;
+		PayloadInfo payloadInfo = PayloadInfo.newBuilder()
+				.setPvname(pvName)
+				.setType(type.getPBPayloadType())
+				.setYear(year)
+				.build();
+		byte[] headerBytes = LineEscaper.escapeNewLines(payloadInfo.toByteArray());
+		os.write(headerBytes);
+		os.write(LineEscaper.NEWLINE_CHAR);
+		position += headerBytes.length + 1;
+		currentSegment.headerLength = headerBytes.length + 1;
+		lastIndexedOffset = 0;
+		segments.add(currentSegment);
+	}
+
+	private void finishSegment() {
+		if(currentSegment != null) {
+			currentSegment.length = position - currentSegment.offset;
+		}
+	}
+
+	/**
+	 * Flush and close the staging file
+	 * @return The segments written; these do not have a pack yet.
+	 * @throws IOException
+	 */
+	List<PVManifest.Segment> finish() throws IOException {
+		finishSegment();
+		if(os != null) {
+			os.close();
+			os = null;
+		}
+		return segments;
+	}
+
+	Path getStagingFile() {
+		return stagingFile;
+	}
+
+	Timestamp getLastWrittenTimestamp() {
+		return lastWrittenTimestamp;
+	}
+
+	@Override
+	public void close() {
+		try {
+			if(os != null) os.close();
+			os = null;
+		} catch(IOException ex) {
+			logger.error("Exception closing staging file " + stagingFile, ex);
+		}
+		try {
+			Files.deleteIfExists(stagingFile);
+		} catch(IOException ex) {
+			logger.error("Exception deleting staging file " + stagingFile, ex);
+		}
+	}
+}
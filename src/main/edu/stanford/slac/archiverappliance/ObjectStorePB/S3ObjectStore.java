@@ -0,0 +1,387 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.ObjectStorePB;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * An object store that talks to a S3 compatible server (AWS S3, MinIO, Ceph RGW etc) using path style URLs and AWS signature version 4.
+ * Files larger than the part size are uploaded using a multipart upload with the parts uploaded in parallel.
+ * We need to hold a part in memory for each upload thread; so the memory used for uploads is roughly the part size times the number of upload threads.
+ * @author mshankar
+ *
+ */
+public class S3ObjectStore implements ObjectStore {
+	private static Logger logger = Logger.getLogger(S3ObjectStore.class.getName());
+	/**
+	 * S3 does not permit parts smaller than 5MB (except for the last part)
+	 */
+	public static final int MIN_PART_SIZE = 5*1024*1024;
+	private static final int MAX_ATTEMPTS = 3;
+	private static final Pattern UPLOAD_ID_PATTERN = Pattern.compile("<UploadId>(.*?)</UploadId>");
+	private static final Pattern KEY_PATTERN = Pattern.compile("<Key>(.*?)</Key>");
+	private static final Pattern CONTINUATION_TOKEN_PATTERN = Pattern.compile("<NextContinuationToken>(.*?)</NextContinuationToken>");
+	private static final Pattern TRUNCATED_PATTERN = Pattern.compile("<IsTruncated>true</IsTruncated>");
+
+	private final URI endpoint;
+	private final String host;
+	private final String bucket;
+	private final String region;
+	private final String accessKey;
+	private final String secretKey;
+	private final int partSize;
+	private final CloseableHttpClient httpClient;
+	private final ExecutorService uploadExecutor;
+	private final ObjectStoreMetrics metrics = new ObjectStoreMetrics();
+
+	/**
+	 * @param endpoint - For example, https://s3.us-west-2.amazonaws.com or http://minio.slac.stanford.edu:9000
+	 * @param bucket
+	 * @param region - For example, us-west-2; most S3 compatible servers accept us-east-1
+	 * @param accessKey
+	 * @param secretKey
+	 * @param partSize - The size of each part of a multipart upload
+	 * @param uploadThreads - The number of parts that are uploaded in parallel
+	 */
+	public S3ObjectStore(URI endpoint, String bucket, String region, String accessKey, String secretKey, int partSize, int uploadThreads) {
+		String endpointStr = endpoint.toString();
+		this.endpoint = URI.create(endpointStr.endsWith("/") ? endpointStr.substring(0, endpointStr.length() - 1) : endpointStr);
+		this.host = endpoint.getHost() + (endpoint.getPort() != -1 ? ":" + endpoint.getPort() : "");
+		this.bucket = bucket;
+		this.region = region;
+		this.accessKey = accessKey;
+		this.secretKey = secretKey;
+		this.partSize = Math.max(partSize, MIN_PART_SIZE);
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(2*uploadThreads + 16);
+		connectionManager.setDefaultMaxPerRoute(2*uploadThreads + 16);
+		this.httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+		this.uploadExecutor = Executors.newFixedThreadPool(uploadThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName("S3 multipart upload for " + S3ObjectStore.this.bucket);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public void putObject(String key, byte[] data) throws IOException {
+		execute("PUT", key, new TreeMap<String, String>(), data, null);
+		metrics.putRequests.incrementAndGet();
+		metrics.bytesWritten.addAndGet(data.length);
+	}
+
+	@Override
+	public void putObject(String key, Path file) throws IOException {
+		long size = Files.size(file);
+		if(size <= partSize) {
+			putObject(key, Files.readAllBytes(file));
+			return;
+		}
+
+		TreeMap<String, String> initiateParams = new TreeMap<String, String>();
+		initiateParams.put("uploads", "");
+		final String uploadId = match(UPLOAD_ID_PATTERN, execute("POST", key, initiateParams, new byte[0], null).getBodyAsString());
+		if(uploadId == null) throw new IOException("Did not get an upload id when initiating a multipart upload of " + key);
+		logger.debug("Uploading " + file + " of size " + size + " to " + key + " in parts using upload id " + uploadId);
+
+		try {
+			List<Future<String>> partETags = new ArrayList<Future<String>>();
+			int partCount = (int) ((size + partSize - 1)/partSize);
+			for(int i = 0; i < partCount; i++) {
+				final int partNumber = i + 1;
+				final long partStart = (long) i*partSize;
+				final int partLength = (int) Math.min(partSize, size - partStart);
+				final Path partFile = file;
+				final String partKey = key;
+				partETags.add(uploadExecutor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						byte[] partData = new byte[partLength];
+						try(FileChannel channel = FileChannel.open(partFile, StandardOpenOption.READ)) {
+							ByteBuffer buf = ByteBuffer.wrap(partData);
+							while(buf.hasRemaining()) {
+								if(channel.read(buf, partStart + buf.position()) < 0) throw new IOException("File " + partFile + " changed during upload");
+							}
+						}
+						TreeMap<String, String> partParams = new TreeMap<String, String>();
+						partParams.put("partNumber", Integer.toString(partNumber));
+						partParams.put("uploadId", uploadId);
+						String etag = execute("PUT", partKey, partParams, partData, null).etag;
+						if(etag == null) throw new IOException("Did not get an ETag for part " + partNumber + " of " + partKey);
+						metrics.bytesWritten.addAndGet(partLength);
+						return etag;
+					}
+				}));
+			}
+
+			StringBuilder completeXML = new StringBuilder("<CompleteMultipartUpload>");
+			for(int i = 0; i < partETags.size(); i++) {
+				completeXML.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(StringEscapeUtils.escapeXml10(partETags.get(i).get())).append("</ETag></Part>");
+			}
+			completeXML.append("</CompleteMultipartUpload>");
+			TreeMap<String, String> completeParams = new TreeMap<String, String>();
+			completeParams.put("uploadId", uploadId);
+			String completeResponse = execute("POST", key, completeParams, completeXML.toString().getBytes(StandardCharsets.UTF_8), null).getBodyAsString();
+			// Completing a multipart upload can fail even after the server has sent a 200.
+			if(completeResponse.contains("<Error>")) throw new IOException("Error completing multipart upload of " + key + " " + completeResponse);
+			metrics.multipartUploads.incrementAndGet();
+		} catch(IOException | InterruptedException | ExecutionException ex) {
+			logger.error("Aborting multipart upload " + uploadId + " of " + key, ex);
+			try {
+				TreeMap<String, String> abortParams = new TreeMap<String, String>();
+				abortParams.put("uploadId", uploadId);
+				execute("DELETE", key, abortParams, null, null);
+			} catch(IOException abortEx) {
+				logger.error("Exception aborting multipart upload " + uploadId + " of " + key, abortEx);
+			}
+			if(ex instanceof IOException) throw (IOException) ex;
+			throw new IOException(ex);
+		}
+	}
+
+	@Override
+	public byte[] getObject(String key) throws IOException {
+		Response response = execute("GET", key, new TreeMap<String, String>(), null, null);
+		if(response.status == 404) return null;
+		metrics.getRequests.incrementAndGet();
+		metrics.bytesRead.addAndGet(response.body.length);
+		return response.body;
+	}
+
+	@Override
+	public byte[] getObjectRange(String key, long offset, int length) throws IOException {
+		Response response = execute("GET", key, new TreeMap<String, String>(), null, "bytes=" + offset + "-" + (offset + length - 1));
+		if(response.status == 404) throw new IOException("Object " + key + " does not exist");
+		if(response.body.length != length) throw new IOException("Expected " + length + " bytes at " + offset + " from " + key + "; got " + response.body.length);
+		metrics.rangeRequests.incrementAndGet();
+		metrics.bytesRead.addAndGet(length);
+		return response.body;
+	}
+
+	@Override
+	public void deleteObject(String key) throws IOException {
+		execute("DELETE", key, new TreeMap<String, String>(), null, null);
+		metrics.deleteRequests.incrementAndGet();
+	}
+
+	@Override
+	public List<String> listObjects(String prefix) throws IOException {
+		LinkedList<String> ret = new LinkedList<String>();
+		String continuationToken = null;
+		while(true) {
+			TreeMap<String, String> params = new TreeMap<String, String>();
+			params.put("list-type", "2");
+			params.put("prefix", prefix);
+			if(continuationToken != null) params.put("continuation-token", continuationToken);
+			String listing = execute("GET", null, params, null, null).getBodyAsString();
+			metrics.listRequests.incrementAndGet();
+			Matcher keyMatcher = KEY_PATTERN.matcher(listing);
+			while(keyMatcher.find()) {
+				ret.add(StringEscapeUtils.unescapeXml(keyMatcher.group(1)));
+			}
+			if(!TRUNCATED_PATTERN.matcher(listing).find()) break;
+			continuationToken = match(CONTINUATION_TOKEN_PATTERN, listing);
+			if(continuationToken == null) throw new IOException("Truncated listing of " + prefix + " without a continuation token");
+		}
+		return ret;
+	}
+
+	@Override
+	public String getDescription() {
+		return "S3 object store " + endpoint + "/" + bucket;
+	}
+
+	@Override
+	public Map<String, String> getMetrics() {
+		return metrics.toMap();
+	}
+
+	@Override
+	public void close() throws IOException {
+		uploadExecutor.shutdown();
+		httpClient.close();
+	}
+
+	private static class Response {
+		int status;
+		byte[] body;
+		String etag;
+
+		String getBodyAsString() {
+			return new String(body, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Make a signed request, retrying a few times on server errors.
+	 * A 404 is returned as a response; all other failures are thrown as IOExceptions.
+	 * @param method
+	 * @param key - The object key; null for requests on the bucket itself.
+	 * @param queryParams
+	 * @param body - null for requests without a body
+	 * @param range - The value of the Range header if any
+	 * @return
+	 * @throws IOException
+	 */
+	private Response execute(String method, String key, TreeMap<String, String> queryParams, byte[] body, String range) throws IOException {
+		String canonicalURI = "/" + uriEncode(bucket, true) + (key != null ? "/" + uriEncode(key, false) : "");
+		StringBuilder canonicalQuery = new StringBuilder();
+		for(Map.Entry<String, String> param : queryParams.entrySet()) {
+			if(canonicalQuery.length() > 0) canonicalQuery.append("&");
+			canonicalQuery.append(uriEncode(param.getKey(), true)).append("=").append(uriEncode(param.getValue(), true));
+		}
+		URI requestURI = URI.create(endpoint + canonicalURI + (canonicalQuery.length() > 0 ? "?" + canonicalQuery : ""));
+
+		IOException lastException = null;
+		for(int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			HttpRequestBase request;
+			switch(method) {
+			case "GET": request = new HttpGet(requestURI); break;
+			case "PUT": request = new HttpPut(requestURI); break;
+			case "POST": request = new HttpPost(requestURI); break;
+			case "DELETE": request = new HttpDelete(requestURI); break;
+			default: throw new IOException("Unsupported method " + method);
+			}
+			if(body != null) ((HttpEntityEnclosingRequestBase) request).setEntity(new ByteArrayEntity(body));
+			if(range != null) request.setHeader("Range", range);
+			sign(request, method, canonicalURI, canonicalQuery.toString(), body);
+
+			try(CloseableHttpResponse httpResponse = httpClient.execute(request)) {
+				Response response = new Response();
+				response.status = httpResponse.getStatusLine().getStatusCode();
+				response.body = httpResponse.getEntity() != null ? EntityUtils.toByteArray(httpResponse.getEntity()) : new byte[0];
+				Header etagHeader = httpResponse.getFirstHeader("ETag");
+				response.etag = etagHeader != null ? etagHeader.getValue() : null;
+				if(response.status >= 200 && response.status < 300) return response;
+				if(response.status == 404 && key != null && !method.equals("POST")) return response;
+				lastException = new IOException(method + " " + requestURI + " failed with status " + response.status + " " + response.getBodyAsString());
+				if(response.status < 500) break;
+			} catch(IOException ex) {
+				lastException = ex;
+			}
+			logger.warn("Attempt " + attempt + " of " + method + " " + requestURI + " failed", lastException);
+		}
+		metrics.failedRequests.incrementAndGet();
+		throw lastException;
+	}
+
+	/**
+	 * Add the AWS signature version 4 headers to the request.
+	 */
+	private void sign(HttpRequestBase request, String method, String canonicalURI, String canonicalQuery, byte[] body) throws IOException {
+		SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+		timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String amzDate = timestampFormat.format(new Date());
+		String dateStamp = amzDate.substring(0, 8);
+		String payloadHash = DigestUtils.sha256Hex(body != null ? body : new byte[0]);
+		request.setHeader("x-amz-date", amzDate);
+		request.setHeader("x-amz-content-sha256", payloadHash);
+
+		String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+		String canonicalRequest = method + "\n"
+				+ canonicalURI + "\n"
+				+ canonicalQuery + "\n"
+				+ "host:" + host + "\n"
+				+ "x-amz-content-sha256:" + payloadHash + "\n"
+				+ "x-amz-date:" + amzDate + "\n"
+				+ "\n"
+				+ signedHeaders + "\n"
+				+ payloadHash;
+		String scope = dateStamp + "/" + region + "/s3/aws4_request";
+		String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" + DigestUtils.sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+		try {
+			byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), dateStamp);
+			signingKey = hmac(signingKey, region);
+			signingKey = hmac(signingKey, "s3");
+			signingKey = hmac(signingKey, "aws4_request");
+			String signature = Hex.encodeHexString(hmac(signingKey, stringToSign));
+			request.setHeader("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+		} catch(GeneralSecurityException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	private static byte[] hmac(byte[] key, String data) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * URI encode as specified by the AWS signature; everything except the RFC 3986 unreserved characters is percent encoded.
+	 * @param str
+	 * @param encodeSlash - Object keys in the path keep their slashes; everything else encodes them.
+	 * @return
+	 */
+	static String uriEncode(String str, boolean encodeSlash) {
+		StringBuilder ret = new StringBuilder();
+		for(byte b : str.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xFF);
+			if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+				ret.append(c);
+			} else {
+				ret.append('%').append(String.format("%02X", b & 0xFF));
+			}
+		}
+		return ret.toString();
+	}
+
+	private static String match(Pattern pattern, String str) {
+		Matcher matcher = pattern.matcher(str);
+		return matcher.find() ? StringEscapeUtils.unescapeXml(matcher.group(1)) : null;
+	}
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.ObjectStorePB;
+
+import java.lang.reflect.Constructor;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.RemotableOverRaw;
+
+import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * An event stream over event lines read from a segment in the object store.
+ * The bytes always start at a line boundary; this returns the last event before the start time (if the bytes have one) followed by the events between the start and end times.
+ * A null start and end time returns all the events.
+ * @author mshankar
+ *
+ */
+class SegmentEventStream implements EventStream, RemotableOverRaw {
+	private static Logger logger = Logger.getLogger(SegmentEventStream.class.getName());
+	private final RemotableEventStreamDesc desc;
+	private final byte[] data;
+	private final Timestamp startTime;
+	private final Timestamp endTime;
+
+	SegmentEventStream(String pvName, PVManifest.Segment segment, byte[] data, Timestamp startTime, Timestamp endTime, String source) {
+		this.desc = new RemotableEventStreamDesc(segment.type, pvName, segment.year);
+		this.desc.setSource(source);
+		this.data = data;
+		this.startTime = startTime;
+		this.endTime = endTime;
+	}
+
+	@Override
+	public RemotableEventStreamDesc getDescription() {
+		return desc;
+	}
+
+	@Override
+	public void close() {
+		// Nothing to close; the bytes were read when the stream was created.
+	}
+
+	@Override
+	public Iterator<Event> iterator() {
+		final Constructor<? extends DBRTimeEvent> unmarshallingConstructor = DBR2PBTypeMapping.getPBClassFor(desc.getArchDBRType()).getUnmarshallingFromByteArrayConstructor();
+		return new Iterator<Event>() {
+			private int position = 0;
+			private boolean startReached = false;
+			private Event beforeStart = null;
+			private Event held = null;
+			private Event next = null;
+			private boolean done = false;
+
+			private Event readEvent() {
+				while(position < data.length) {
+					int lineEnd = position;
+					while(lineEnd < data.length && data[lineEnd] != LineEscaper.NEWLINE_CHAR) lineEnd++;
+					int lineStart = position;
+					position = lineEnd + 1;
+					if(lineEnd == lineStart) continue;
+					try {
+						return unmarshallingConstructor.newInstance(desc.getYear(), new ByteArray(Arrays.copyOfRange(data, lineStart, lineEnd)));
+					} catch(Exception ex) {
+						logger.error("Skipping event that we could not unmarshall for pv " + desc.getPvName() + " from " + desc.getSource(), ex);
+					}
+				}
+				return null;
+			}
+
+			private void computeNext() {
+				if(next != null || done) return;
+				if(held != null) {
+					Event event = held;
+					held = null;
+					if(endTime != null && event.getEventTimeStamp().after(endTime)) {
+						done = true;
+					} else {
+						next = event;
+					}
+					return;
+				}
+				Event event;
+				while((event = readEvent()) != null) {
+					Timestamp ts = event.getEventTimeStamp();
+					if(!startReached && startTime != null && ts.before(startTime)) {
+						beforeStart = event;
+						continue;
+					}
+					startReached = true;
+					if(beforeStart != null) {
+						// Return the last event before the start first and hold on to this one.
+						next = beforeStart;
+						beforeStart = null;
+						held = event;
+						return;
+					}
+					if(endTime != null && ts.after(endTime)) {
+						done = true;
+						return;
+					}
+					next = event;
+					return;
+				}
+				done = true;
+				next = beforeStart;
+				beforeStart = null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				computeNext();
+				return next != null;
+			}
+
+			@Override
+			public Event next() {
+				computeNext();
+				if(next == null) throw new NoSuchElementException();
+				Event ret = next;
+				next = null;
+				return ret;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
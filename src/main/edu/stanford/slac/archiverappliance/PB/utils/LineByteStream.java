@@ -71,6 +71,44 @@ public class LineByteStream implements Closeable {
 		readNextBatch();
 	}
 
+	/**
+	 * Read lines from a channel that has already been opened on the path; for example, a channel over data that has been prefetched into memory.
+	 * We take over the burden of closing the channel.
+	 * @param path
+	 * @param byteChannel
+	 * @param startPosition
+	 * @throws IOException
+	 */
+	public LineByteStream(Path path, SeekableByteChannel byteChannel, long startPosition) throws IOException {
+		this.path = path;
+		this.byteChannel = byteChannel;
+		this.byteChannel.position(startPosition);
+		buf = new byte[MAX_LINE_SIZE];
+		lastReadPointer = byteChannel.position();
+		byteBuf = ByteBuffer.allocate(MAX_LINE_SIZE); 
+		readNextBatch();
+	}
+
+	/**
+	 * Read lines between the start and end positions from a channel that has already been opened on the path.
+	 * We take over the burden of closing the channel.
+	 * @param path
+	 * @param byteChannel
+	 * @param startPosition
+	 * @param endPosition
+	 * @throws IOException
+	 */
+	public LineByteStream(Path path, SeekableByteChannel byteChannel, long startPosition, long endPosition) throws IOException {
+		this.path = path;
+		this.byteChannel = byteChannel;
+		this.byteChannel.position(startPosition);
+		totalBytesToRead = endPosition - startPosition + 1;
+		buf = new byte[MAX_LINE_SIZE];
+		lastReadPointer = byteChannel.position();
+		byteBuf = ByteBuffer.allocate(MAX_LINE_SIZE); 
+		readNextBatch();
+	}
+
 	private void readNextBatch() throws IOException {
 		if(totalBytesReadSoFar >= totalBytesToRead) {
 			bytesRead = 0;
@@ -217,8 +255,9 @@ public class LineByteStream implements Closeable {
 		while(loopcount < MAX_ITERATIONS_TO_DETERMINE_LINE) {
 			if(seekPos < 0) seekPos = 0L;
 			this.byteChannel.position(seekPos);
-			lastReadPointer = seekPos;
 			readNextBatch();
+			// readNextBatch advances lastReadPointer by the size of the previous batch; so we set it after the read.
+			lastReadPointer = seekPos;
 			// We are shaving off 2 bytes from the end to skip the last newline if indeed the last line is terminated by a newline.
 			for(int i = bytesRead-2; i >= 0; i--) {
 				if(buf[i] == LineEscaper.NEWLINE_CHAR) {
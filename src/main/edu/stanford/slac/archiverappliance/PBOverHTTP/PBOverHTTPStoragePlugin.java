@@ -30,6 +30,7 @@ import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.config.ConfigService;
 import org.epics.archiverappliance.etl.ConversionFunction;
 import org.epics.archiverappliance.retrieval.CallableEventStream;
+import org.epics.archiverappliance.retrieval.RetrievalLanes;
 import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
 import org.epics.archiverappliance.utils.ui.URIUtils;
 
@@ -79,6 +80,8 @@ public class PBOverHTTPStoragePlugin implements StoragePlugin {
 			HttpURLConnection.setFollowRedirects(true);
 			URL url = new URL(getURL);
 			HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+			// Let the other appliance classify this request into its proxy lane.
+			urlConnection.setRequestProperty(RetrievalLanes.CALLER_HEADER, RetrievalLanes.APPLIANCE_CALLER);
 			if(urlConnection.getResponseCode() == 200) {
 				InputStream is = new BufferedInputStream(urlConnection.getInputStream());
 				InputStreamBackedEventStream isStream = new InputStreamBackedEventStream(is, startTime);
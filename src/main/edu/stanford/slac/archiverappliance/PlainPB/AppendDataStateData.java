@@ -3,13 +3,16 @@ package edu.stanford.slac.archiverappliance.PlainPB;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.Constructor;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.sql.Timestamp;
+import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.ByteArray;
@@ -19,10 +22,12 @@ import org.epics.archiverappliance.common.BasicContext;
 import org.epics.archiverappliance.common.PartitionGranularity;
 import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.config.PVNameToKeyMapping;
+import org.epics.archiverappliance.data.DBRTimeEvent;
 import org.epics.archiverappliance.etl.ETLBulkStream;
 import org.epics.archiverappliance.etl.ETLContext;
 
 import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
 import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
 import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin.CompressionMode;
 
@@ -52,20 +57,48 @@ public class AppendDataStateData {
 	private String desc;
 	private CompressionMode compressionMode = CompressionMode.NONE;
 	private PVNameToKeyMapping pv2key;
+	// If not null, we keep the partition catalog up to date as we create and append to partitions.
+	private PlainPBPartitionCatalog partitionCatalog;
+	// If not null, we keep the storage accounting up to date as we append to partitions.
+	private PlainPBStorageAccounting storageAccounting;
+	// If not null, we keep the last known event index up to date as we append to the PV's partitions.
+	private PlainPBLastKnownEventIndex lastKnownEventIndex;
+	private Path currentPath = null;
+	private String currentExtension = null;
+	private long currentPartitionSize = -1;
+	private long partitionSizeAtOpen = 0;
+	private long eventsWrittenToPartition = 0;
+	private long eventBytesWrittenToPartition = 0;
+	// What we know about the current partition; we use this to update the PBFileInfo cache when we close the partition.
+	private PBFileInfo currentFileInfo = null;
+	private byte[] firstEventBytes = null;
+	private byte[] lastEventBytes = new byte[256];
+	private int lastEventLen = -1;
+	private long positionOfLastEvent = -1;
+	// The last event we wrote into an ETL append data file; this becomes the last event of the PV when the append data is committed.
+	private Path pendingLastEventPath = null;
+	private DBRTimeEvent pendingLastEvent = null;
+	private short pendingLastEventYear = 0;
 
 	/**
 	 * @param partitionGranularity - partitionGranularity of the PB plugin.
 	 * @param rootFolder - RootFolder of the PB plugin
 	 * @param desc - Desc for logging purposes
 	 * @param lastKnownTimestamp - This is probably the most important argument here. This is the last known timestamp in this storage. If null, we assume time(0) for the last known timestamp.
+	 * @param partitionCatalog - The partition catalog for the store; this is null if the store does not use a catalog.
+	 * @param storageAccounting - The storage accounting for the store; this is null if the store does not use storage accounting.
+	 * @param lastKnownEventIndex - The last known event index for the store; this is null if the store does not use the index or if we are not appending the PV's latest data.
 	 *  
 	 */
-	public AppendDataStateData(PartitionGranularity partitionGranularity, String rootFolder, String desc, Timestamp lastKnownTimestamp, CompressionMode compressionMode, PVNameToKeyMapping pv2key) {
+	public AppendDataStateData(PartitionGranularity partitionGranularity, String rootFolder, String desc, Timestamp lastKnownTimestamp, CompressionMode compressionMode, PVNameToKeyMapping pv2key, PlainPBPartitionCatalog partitionCatalog, PlainPBStorageAccounting storageAccounting, PlainPBLastKnownEventIndex lastKnownEventIndex) {
 		this.partitionGranularity = partitionGranularity;
 		this.rootFolder = rootFolder;
 		this.desc = desc;
 		this.compressionMode = compressionMode;
 		this.pv2key = pv2key;
+		this.partitionCatalog = partitionCatalog;
+		this.storageAccounting = storageAccounting;
+		this.lastKnownEventIndex = lastKnownEventIndex;
 		if(lastKnownTimestamp != null) { 
 			this.lastKnownTimeStamp = lastKnownTimestamp;
 			this.previousEpochSeconds = TimeUtils.convertToEpochSeconds(lastKnownTimeStamp);
@@ -108,6 +141,8 @@ public class AppendDataStateData {
 				ByteArray val = event.getRawForm();
 				this.os.write(val.data, val.off, val.len);
 				this.os.write(LineEscaper.NEWLINE_CHAR);
+				rememberEventWritten(val);
+				this.currentPartitionSize += val.len + 1;
 				
 				this.previousEpochSeconds = epochSeconds;
 				this.previousYear = this.currentEventsYear;
@@ -121,6 +156,7 @@ public class AppendDataStateData {
 			throw new IOException(t);
 		} finally {
 			if(this.os != null) { try { this.os.close(); this.os = null; } catch(Throwable t) { logger.error("Exception closing os", t); } }
+			partitionClosed(pvName);
 			try { stream.close(); } catch (Throwable t) {} 
 		}
 	}
@@ -155,21 +191,24 @@ public class AppendDataStateData {
 				if(Files.exists(pathToCopyFrom)) {
 					logger.debug("Making a backup from " + pathToCopyFrom.toAbsolutePath().toString() + " to file " + pvPath.toAbsolutePath().toString() + " when appending data for pv " + pvName);
 					Files.copy(pathToCopyFrom, pvPath);
+					if(this.partitionCatalog != null) this.partitionCatalog.partitionCreated(pvName, extension, pvPath);
 					// We still have to create an os so that the logic can continue.
-					updateStateBasedOnExistingFile(pvName, pvPath);
+					updateStateBasedOnExistingFile(pvName, pvPath, extension);
+					// The copy is new space as far as the storage accounting is concerned; the commit accounts for the file it replaces.
+					this.partitionSizeAtOpen = 0;
 					
 					
 				} else {
 					logger.debug("File to copy from " + pathToCopyFrom.toAbsolutePath().toString() + " does not exist when appending data for pv " + pvName);
-					createNewFileAndWriteAHeader(pvName, pvPath, stream);
+					createNewFileAndWriteAHeader(pvName, pvPath, stream, extension);
 				}
 			} else {
 				logger.debug("File to copy from is not specified and the file " + pvPath.toAbsolutePath().toString() + " does not exist when appending data for pv " + pvName);
-				createNewFileAndWriteAHeader(pvName, pvPath, stream);
+				createNewFileAndWriteAHeader(pvName, pvPath, stream, extension);
 			}
 		} else {
 			if(logger.isDebugEnabled()) { logger.debug(desc + ": Appending to existing PB file " + pvPath.toAbsolutePath().toString() + " for PV " + pvName + " for year " + this.currentEventsYear); }
-			updateStateBasedOnExistingFile(pvName, pvPath);
+			updateStateBasedOnExistingFile(pvName, pvPath, extension);
 		}
 		return pvPath;
 	}
@@ -203,6 +242,7 @@ public class AppendDataStateData {
 			if(this.os != null) try { this.os.close(); } catch(Throwable t) {}
 			// Set this to null outside the try/catch so that we are using a new file even if the close fails.
 			this.os = null;
+			partitionClosed(pvName);
 			return nextPath;
 		}
 		return currentPath;
@@ -248,16 +288,26 @@ public class AppendDataStateData {
 	 * @param state
 	 * @param pvName
 	 * @param pvPath
+	 * @param extension
 	 * @throws IOException
 	 */
-	private void updateStateBasedOnExistingFile(String pvName, Path pvPath) throws IOException {
-		PBFileInfo info = new PBFileInfo(pvPath);
+	private void updateStateBasedOnExistingFile(String pvName, Path pvPath, String extension) throws IOException {
+		PBFileInfo info = PBFileInfoCache.getFileInfo(pvPath);
 		if(!info.getPVName().equals(pvName)) throw new IOException("Trying to append data for " + pvName + " to a file " + pvPath + " that has data for " + info.getPVName());
 		this.previousYear = info.getDataYear();
 		this.previousEpochSeconds = info.getLastEventEpochSeconds();
 		if(info.getLastEvent() != null) this.lastKnownTimeStamp = info.getLastEvent().getEventTimeStamp();
 		this.os = new BufferedOutputStream(Files.newOutputStream(pvPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
 		this.previousFileName = pvPath.getFileName().toString();
+		this.currentPath = pvPath;
+		this.currentExtension = extension;
+		this.currentPartitionSize = Files.size(pvPath);
+		this.partitionSizeAtOpen = this.currentPartitionSize;
+		this.eventsWrittenToPartition = 0;
+		this.eventBytesWrittenToPartition = 0;
+		this.currentFileInfo = info;
+		this.firstEventBytes = null;
+		this.lastEventLen = -1;
 	}
 	
 	/**
@@ -266,9 +316,10 @@ public class AppendDataStateData {
 	 * @param pvName
 	 * @param pvPath
 	 * @param stream
+	 * @param extension
 	 * @throws IOException
 	 */
-	private void createNewFileAndWriteAHeader(String pvName, Path pvPath, EventStream stream) throws IOException {
+	private void createNewFileAndWriteAHeader(String pvName, Path pvPath, EventStream stream, String extension) throws IOException {
 		if(Files.exists(pvPath)) throw new IOException("Trying to write a header into a file that exists " + pvPath.toAbsolutePath().toString());
 		if(logger.isDebugEnabled()) logger.debug(desc + ": Writing new PB file" + pvPath.toAbsolutePath().toString() 
 				+ " for PV " + pvName 
@@ -276,14 +327,115 @@ public class AppendDataStateData {
 				+ " of type " + stream.getDescription().getArchDBRType() 
 				+ " of PBPayload " + stream.getDescription().getArchDBRType().getPBPayloadType());
 		this.os = new BufferedOutputStream(Files.newOutputStream(pvPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
-		byte[] headerBytes = LineEscaper.escapeNewLines(PayloadInfo.newBuilder()
+		PayloadInfo payloadInfo = PayloadInfo.newBuilder()
 				.setPvname(pvName)
 				.setType(stream.getDescription().getArchDBRType().getPBPayloadType())
 				.setYear(this.currentEventsYear)
-				.build().toByteArray());
+				.build();
+		byte[] headerBytes = LineEscaper.escapeNewLines(payloadInfo.toByteArray());
 		this.os.write(headerBytes);
 		this.os.write(LineEscaper.NEWLINE_CHAR);
 		this.previousFileName = pvPath.getFileName().toString();
+		this.currentPath = pvPath;
+		this.currentExtension = extension;
+		this.currentPartitionSize = headerBytes.length + 1;
+		this.partitionSizeAtOpen = 0;
+		this.eventsWrittenToPartition = 0;
+		this.eventBytesWrittenToPartition = 0;
+		this.currentFileInfo = new PBFileInfo(payloadInfo, null, null, this.currentPartitionSize, this.currentPartitionSize);
+		this.firstEventBytes = null;
+		this.lastEventLen = -1;
+		if(this.partitionCatalog != null) this.partitionCatalog.partitionCreated(pvName, extension, pvPath);
+	}
+	
+	/**
+	 * Remember the bytes of the event we have just written; these are used to update the PBFileInfo cache and the storage accounting when we close the partition.
+	 * The event's raw form may be reused by the stream; so we make a copy.
+	 * @param val
+	 */
+	private void rememberEventWritten(ByteArray val) {
+		this.eventsWrittenToPartition++;
+		this.eventBytesWrittenToPartition += val.len + 1;
+		if(this.currentFileInfo == null) return;
+		if(this.currentFileInfo.getFirstEvent() == null && this.firstEventBytes == null) {
+			this.firstEventBytes = Arrays.copyOfRange(val.data, val.off, val.off + val.len);
+		}
+		if(this.lastEventBytes.length < val.len) {
+			this.lastEventBytes = new byte[val.len*2];
+		}
+		System.arraycopy(val.data, val.off, this.lastEventBytes, 0, val.len);
+		this.lastEventLen = val.len;
+		this.positionOfLastEvent = this.currentPartitionSize;
+	}
+
+	/**
+	 * @param srcPath - An ETL append data file that is being committed
+	 * @return true if the last event we wrote into an ETL append data file is in this file.
+	 */
+	boolean hasPendingLastEventIn(Path srcPath) {
+		return this.pendingLastEventPath != null && this.pendingLastEventPath.toAbsolutePath().equals(srcPath.toAbsolutePath());
+	}
+
+	/**
+	 * The ETL append data file with the last event we wrote has been committed into this partition; the last event we wrote is now the last event of the PV.
+	 * @param pvName
+	 * @param destPath - The partition the append data file was moved into
+	 * @throws IOException
+	 */
+	void pendingLastEventCommitted(String pvName, Path destPath) throws IOException {
+		if(this.lastKnownEventIndex != null && this.pendingLastEventPath != null) {
+			this.lastKnownEventIndex.lastEventWritten(pvName, destPath, Files.size(destPath), this.pendingLastEvent, this.pendingLastEventYear);
+		}
+		this.pendingLastEventPath = null;
+		this.pendingLastEvent = null;
+	}
+
+	/**
+	 * Let the partition catalog and the storage accounting know the size of the partition we have just closed, checksum the blocks we have written and update the PBFileInfo cache and the last known event index with the events we have written.
+	 * @param pvName
+	 */
+	private void partitionClosed(String pvName) {
+		if(this.partitionCatalog != null && this.currentPath != null) {
+			this.partitionCatalog.partitionModified(pvName, this.currentExtension, this.currentPath, this.currentPartitionSize);
+		}
+		if(this.storageAccounting != null && this.currentPath != null) {
+			this.storageAccounting.bytesWritten(pvName, this.currentPartitionSize - this.partitionSizeAtOpen, this.eventsWrittenToPartition, this.eventBytesWrittenToPartition);
+		}
+		if(this.currentPath != null && this.currentPartitionSize != this.partitionSizeAtOpen) {
+			PBBlockChecksums.partitionWritten(this.currentPath, this.partitionSizeAtOpen);
+		}
+		if(this.currentPath != null && this.currentFileInfo != null && this.lastEventLen >= 0) {
+			try {
+				Constructor<? extends DBRTimeEvent> unmarshallingConstructor = DBR2PBTypeMapping.getPBClassFor(this.currentFileInfo.getType()).getUnmarshallingFromByteArrayConstructor();
+				DBRTimeEvent firstEvent = (this.firstEventBytes != null) ? unmarshallingConstructor.newInstance(this.currentFileInfo.getDataYear(), new ByteArray(this.firstEventBytes)) : null;
+				DBRTimeEvent lastEvent = unmarshallingConstructor.newInstance(this.currentFileInfo.getDataYear(), new ByteArray(Arrays.copyOf(this.lastEventBytes, this.lastEventLen)));
+				PBFileInfoCache.fileAppended(this.currentPath, this.currentFileInfo, firstEvent, lastEvent, this.positionOfLastEvent, this.currentPartitionSize);
+				if(this.lastKnownEventIndex != null && PlainPBStoragePlugin.PB_EXTENSION.equals(this.currentExtension)) {
+					this.lastKnownEventIndex.lastEventWritten(pvName, this.currentPath, this.currentPartitionSize, lastEvent, this.currentFileInfo.getDataYear());
+				} else if(this.lastKnownEventIndex != null && PlainPBStoragePlugin.APPEND_EXTENSION.equals(this.currentExtension)) {
+					this.pendingLastEventPath = this.currentPath;
+					this.pendingLastEvent = lastEvent;
+					this.pendingLastEventYear = this.currentFileInfo.getDataYear();
+				}
+			} catch(Exception ex) {
+				logger.warn("Exception updating the file info cache for " + this.currentPath, ex);
+				PBFileInfoCache.invalidate(this.currentPath);
+				PlainPBReadCache.partitionChanged(this.currentPath);
+				if(this.lastKnownEventIndex != null) this.lastKnownEventIndex.invalidate(pvName);
+				this.pendingLastEventPath = null;
+			}
+		} else if(this.lastKnownEventIndex != null && this.currentPath != null && this.currentPartitionSize != this.partitionSizeAtOpen) {
+			// For example, bulk appends; we do not have the last event at hand.
+			this.lastKnownEventIndex.invalidate(pvName);
+			this.pendingLastEventPath = null;
+		}
+		this.currentPath = null;
+		this.currentFileInfo = null;
+		this.firstEventBytes = null;
+		this.lastEventLen = -1;
+		this.partitionSizeAtOpen = 0;
+		this.eventsWrittenToPartition = 0;
+		this.eventBytesWrittenToPartition = 0;
 	}
 	
 	
@@ -311,25 +463,61 @@ public class AppendDataStateData {
 		
 		// The preparePartition should have created the needed file; so we only append
 		try(ByteChannel destChannel = Files.newByteChannel(pvPath, StandardOpenOption.APPEND); ReadableByteChannel srcChannel = bulkStream.getByteChannel(context)) {
-			logger.debug("ETL bulk appends for pv " + pvName);
-			ByteBuffer buf = ByteBuffer.allocate(1024*1024);
-			int bytesRead = srcChannel.read(buf);
-			while(bytesRead > 0) {
-				buf.flip();
-				destChannel.write(buf);
-				buf.clear();
-				bytesRead = srcChannel.read(buf);
+			if(srcChannel instanceof FileChannel && destChannel instanceof FileChannel) {
+				// Both sides are plain files; let the OS copy the data without bringing it into the JVM.
+				long bytesTransferred = transferFileChannel((FileChannel) srcChannel, (FileChannel) destChannel);
+				logger.debug("ETL bulk appends " + bytesTransferred + " bytes for pv " + pvName + " using a file channel transfer");
+			} else {
+				// Zip files, channels that verify checksums and the like.
+				logger.debug("ETL bulk appends for pv " + pvName);
+				ByteBuffer buf = ByteBuffer.allocate(1024*1024);
+				int bytesRead = srcChannel.read(buf);
+				while(bytesRead > 0) {
+					buf.flip();
+					destChannel.write(buf);
+					buf.clear();
+					bytesRead = srcChannel.read(buf);
+				}
 			}
 		}
 
+		// We do not know the number of events we copied over; so the storage accounting only gets the bytes.
+		long sizeBeforeBulkAppend = this.partitionSizeAtOpen;
 		try { 
 			// Update the last known timestamp and the like...
-			updateStateBasedOnExistingFile(pvName, pvPath);
+			updateStateBasedOnExistingFile(pvName, pvPath, extension);
+			this.partitionSizeAtOpen = sizeBeforeBulkAppend;
 		} finally { 
 			// Close the current stream first and set it to null.
 			if(this.os != null) try { this.os.close(); } catch(Throwable t) {}
 			this.os = null;
+			partitionClosed(pvName);
 		}
 		return true;
 	}	
-}
\ No newline at end of file
+
+	/**
+	 * Copy the rest of the source (from its current position) to the end of the destination.
+	 * transferTo can copy fewer bytes than asked for; so we loop till we are done.
+	 * @param srcChannel
+	 * @param destChannel - This is opened for append.
+	 * @return The number of bytes copied
+	 * @throws IOException
+	 */
+	static long transferFileChannel(FileChannel srcChannel, FileChannel destChannel) throws IOException {
+		long startPosition = srcChannel.position();
+		long endPosition = srcChannel.size();
+		long position = startPosition;
+		while(position < endPosition) {
+			long bytesTransferred = srcChannel.transferTo(position, endPosition - position, destChannel);
+			if(bytesTransferred <= 0) {
+				// The source was truncated while we were copying.
+				if(srcChannel.size() <= position) break;
+				throw new IOException("Unable to transfer data at position " + position + " of " + endPosition);
+			}
+			position += bytesTransferred;
+		}
+		srcChannel.position(position);
+		return position - startPosition;
+	}
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A read only seekable byte channel that verifies each block of a partition against the {@link PBBlockChecksums} before handing out any bytes from the block.
+ * We read entire blocks from the underlying channel; bytes past the end of the checksums are passed thru from the underlying channel as is.
+ * @author mshankar
+ *
+ */
+class ChecksumVerifyingByteChannel implements SeekableByteChannel {
+	private static final Logger logger = Logger.getLogger(ChecksumVerifyingByteChannel.class);
+	private final Path path;
+	private final SeekableByteChannel delegate;
+	private final PBBlockChecksums.BlockChecksums checksums;
+	private final ByteBuffer blockBuf;
+	private final CRC32 crc = new CRC32();
+	private int currentBlock = -1;
+	private long position;
+
+	ChecksumVerifyingByteChannel(Path path, SeekableByteChannel delegate, PBBlockChecksums.BlockChecksums checksums) throws IOException {
+		this.path = path;
+		this.delegate = delegate;
+		this.checksums = checksums;
+		this.blockBuf = ByteBuffer.allocate(checksums.blockSize);
+		this.position = delegate.position();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return delegate.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		delegate.close();
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if(position >= checksums.coveredSize) {
+			delegate.position(position);
+			int bytesRead = delegate.read(dst);
+			if(bytesRead > 0) position += bytesRead;
+			return bytesRead;
+		}
+		int block = (int) (position/checksums.blockSize);
+		if(block != currentBlock) {
+			loadBlock(block);
+		}
+		int offset = (int) (position - checksums.blockStart(block));
+		// The partition has changed and is shorter than when we started reading it.
+		if(offset >= blockBuf.limit()) return -1;
+		int len = Math.min(dst.remaining(), blockBuf.limit() - offset);
+		dst.put(blockBuf.array(), offset, len);
+		position += len;
+		return len;
+	}
+
+	private void loadBlock(int block) throws IOException {
+		currentBlock = -1;
+		long blockStart = checksums.blockStart(block);
+		int blockLength = checksums.blockLength(block);
+		blockBuf.clear();
+		blockBuf.limit(blockLength);
+		delegate.position(blockStart);
+		while(blockBuf.hasRemaining()) {
+			if(delegate.read(blockBuf) < 0) break;
+		}
+		boolean verified = false;
+		if(!blockBuf.hasRemaining()) {
+			crc.reset();
+			crc.update(blockBuf.array(), 0, blockLength);
+			verified = ((int) crc.getValue() == checksums.crcs[block]);
+		}
+		if(!verified) {
+			if(PBBlockChecksums.confirmDamage(path, blockStart, blockLength)) {
+				throw new IOException("The block from " + blockStart + " to " + (blockStart + blockLength) + " in " + path + " does not match its checksum; the partition is damaged");
+			}
+			logger.debug("The block at " + blockStart + " in " + path + " did not match its checksum; but the partition has changed since we started reading it");
+			blockBuf.limit(blockBuf.position());
+		} else {
+			PBBlockChecksums.blockVerifiedOnRead();
+		}
+		currentBlock = block;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long position() throws IOException {
+		return position;
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		this.position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return delegate.size();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+}
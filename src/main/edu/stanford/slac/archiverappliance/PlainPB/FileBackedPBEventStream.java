@@ -23,6 +23,7 @@ import org.epics.archiverappliance.ByteArray;
 import org.epics.archiverappliance.Event;
 import org.epics.archiverappliance.EventStream;
 import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.PartitionSummary;
 import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.common.YearSecondTimestamp;
 import org.epics.archiverappliance.config.ArchDBRTypes;
@@ -30,6 +31,8 @@ import org.epics.archiverappliance.data.DBRTimeEvent;
 import org.epics.archiverappliance.etl.ETLBulkStream;
 import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
 import org.epics.archiverappliance.retrieval.RemotableOverRaw;
+import org.epics.archiverappliance.retrieval.postprocessors.PartitionSummarySource;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
 
 import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
 import edu.stanford.slac.archiverappliance.PB.search.FileEventStreamSearch;
@@ -42,19 +45,36 @@ import edu.stanford.slac.archiverappliance.PB.utils.LineByteStream;
  * @author mshankar
  *
  */
-public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, ETLBulkStream {
+public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, ETLBulkStream, PartitionSummarySource {
 	private static Logger logger = Logger.getLogger(FileBackedPBEventStream.class.getName());
 	private String pvName;
 	private Path path = null;
+	/**
+	 * Where we read the events from; this is the same as path unless retrieval is reading a copy of the partition from the {@link PlainPBReadCache}.
+	 */
+	private Path readPath = null;
 	private long startFilePos = 0;
 	private long endFilePos = 0;
 	private Timestamp startTime = null;
 	private Timestamp endTime = null;
 	private boolean positionBoundaries = true;
+	/**
+	 * Does this stream include all the events in the file?
+	 */
+	private boolean wholePartition = false;
 	private ArchDBRTypes type;
 	private FileBackedPBEventStreamIterator theIterator = null;
 	private RemotableEventStreamDesc desc;
 	private PBFileInfo fileInfo = null;
+	/**
+	 * If this stream is one of many partitions in a retrieval request, the partitions are prefetched as a group.
+	 */
+	private PlainPBPrefetcher.PrefetchGroup prefetchGroup = null;
+	private int prefetchIndex = -1;
+	/**
+	 * If set, post processors can use the summary of the partition when this stream includes the whole partition.
+	 */
+	private PBPartitionSummaries partitionSummaries = null;
 	
 	/**
 	 * Used when we want to include data from the entire file. 
@@ -64,12 +84,26 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 	 * @throws IOException
 	 */
 	public FileBackedPBEventStream(String pvname, Path path, ArchDBRTypes type) throws IOException {
+		this(pvname, path, path, type);
+	}
+
+	/**
+	 * Used when we want to include data from the entire file but read it from a copy of the file.
+	 * @param pvname
+	 * @param path - The partition
+	 * @param readPath - A copy of the partition with the same contents
+	 * @param type
+	 * @throws IOException
+	 */
+	FileBackedPBEventStream(String pvname, Path path, Path readPath, ArchDBRTypes type) throws IOException {
 		this.pvName = pvname;
 		this.path = path;
+		this.readPath = readPath;
 		this.type = type;
 		this.startFilePos = 0L;
-		this.endFilePos = Files.size(path);
+		this.endFilePos = Files.size(readPath);
 		this.positionBoundaries = true;
+		this.wholePartition = true;
 	}
 	
 	/**
@@ -84,6 +118,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 	public FileBackedPBEventStream(String pvname, Path path, ArchDBRTypes type, long startPosition, long endPosition) throws IOException {
 		this.pvName = pvname;
 		this.path = path;
+		this.readPath = path;
 		this.type = type;
 		this.startFilePos = startPosition;
 		this.endFilePos = endPosition;
@@ -103,11 +138,27 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 	 * @throws IOException
 	 */
 	public FileBackedPBEventStream(String pvname, Path path, ArchDBRTypes dbrtype, Timestamp startTime, Timestamp endTime, boolean skipSearch) throws IOException {
+		this(pvname, path, path, dbrtype, startTime, endTime, skipSearch);
+	}
+
+	/**
+	 * Used when we know the start and end times but read the data from a copy of the file; the search for the start and end also uses the copy.
+	 * @param pvname
+	 * @param path - The partition
+	 * @param readPath - A copy of the partition with the same contents
+	 * @param dbrtype
+	 * @param startTime
+	 * @param endTime
+	 * @param skipSearch
+	 * @throws IOException
+	 */
+	FileBackedPBEventStream(String pvname, Path path, Path readPath, ArchDBRTypes dbrtype, Timestamp startTime, Timestamp endTime, boolean skipSearch) throws IOException {
 		this.pvName = pvname;
 		this.path = path;
+		this.readPath = readPath;
 		this.type = dbrtype;
 		this.startFilePos = 0L;
-		this.endFilePos = Files.size(path);
+		this.endFilePos = Files.size(readPath);
 		if(skipSearch) {
 			// We filter events as we are processing the stream...
 			this.positionBoundaries = false;
@@ -115,7 +166,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 			this.endTime = endTime;
 		} else {
 			// We use a search to locate the boundaries of the data and the constrain based on position.
-			seekToTimes(path, dbrtype, startTime, endTime);
+			seekToTimes(readPath, dbrtype, startTime, endTime);
 		}
 	}
 
@@ -128,14 +179,20 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 				return null;
 			}
 			
-			if(fileInfo == null) {
-				readPayLoadInfo();
+			// This waits for the prefetch of this partition (if any) and starts the prefetch of the next few partitions.
+			SeekableByteChannel channel = (prefetchGroup != null) ? prefetchGroup.claim(prefetchIndex) : null;
+			if(channel == null && !readPath.equals(path)) {
+				channel = ArchPaths.newByteChannel(readPath, StandardOpenOption.READ);
 			}
+			// If the partition has checksums, the blocks are verified as we read them.
+			channel = PBBlockChecksums.getVerifyingChannel(path, channel);
+
+			ensurePayLoadInfo();
 			
 			if(this.positionBoundaries) {
-				theIterator = new FileBackedPBEventStreamPositionBasedIterator(path, startFilePos, endFilePos, desc.getYear(), type);
+				theIterator = new FileBackedPBEventStreamPositionBasedIterator(path, channel, startFilePos, endFilePos, desc.getYear(), type);
 			} else {
-				theIterator = new FileBackedPBEventStreamTimeBasedIterator(path, startTime, endTime, desc.getYear(), type);
+				theIterator = new FileBackedPBEventStreamTimeBasedIterator(path, channel, startTime, endTime, desc.getYear(), type);
 			}
 			return theIterator;
 
@@ -147,6 +204,9 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 
 	@Override
 	public void close() {
+		if(prefetchGroup != null) {
+			prefetchGroup.discard(prefetchIndex);
+		}
 		if(theIterator!=null) {
 			try {
 				theIterator.close();
@@ -161,9 +221,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 	@Override
 	public RemotableEventStreamDesc getDescription() {
 		try {
-			if(fileInfo == null) {
-				readPayLoadInfo();
-			}
+			ensurePayLoadInfo();
 		} catch(IOException ex) {
 			logger.error("Exception reading payload info for pv " + pvName + " from path " + path.toString(), ex);
 		}
@@ -171,9 +229,68 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 		return desc;
 	}
 	
+	/**
+	 * The payload info can be read by the prefetcher's threads; so we synchronize this.
+	 * @throws IOException
+	 */
+	private synchronized void ensurePayLoadInfo() throws IOException {
+		if(fileInfo == null) {
+			readPayLoadInfo();
+		}
+	}
+	
+	/**
+	 * Make this stream part of a group of partitions that are prefetched together.
+	 * @param prefetchGroup
+	 * @param prefetchIndex - The index of this stream in the group
+	 */
+	void setPrefetchGroup(PlainPBPrefetcher.PrefetchGroup prefetchGroup, int prefetchIndex) {
+		this.prefetchGroup = prefetchGroup;
+		this.prefetchIndex = prefetchIndex;
+	}
+	
+	/**
+	 * Get the portion of the file that the iterator will read; this is called by the prefetcher.
+	 * The position based iterator can read up to a line past the end position when looking for the newline.
+	 * @return The start and end (exclusive) positions in the file
+	 * @throws IOException
+	 */
+	long[] getPrefetchRange() throws IOException {
+		ensurePayLoadInfo();
+		long size = Files.size(readPath);
+		synchronized(this) {
+			if(this.positionBoundaries) {
+				return new long[] { startFilePos, Math.min(size, endFilePos + LineByteStream.MAX_LINE_SIZE + 1) };
+			} else {
+				return new long[] { 0L, size };
+			}
+		}
+	}
+	
+	Path getPath() {
+		return path;
+	}
+
+	Path getReadPath() {
+		return readPath;
+	}
+	
+	/**
+	 * If this stream includes all the events in the partition, post processors can use the partition's summary instead of going thru the events.
+	 */
+	@Override
+	public PartitionSummary getPartitionSummary() throws IOException {
+		if(!wholePartition || theIterator != null || partitionSummaries == null) return null;
+		return partitionSummaries.getSummary(pvName, path, type);
+	}
+	
+	void setPartitionSummaries(PBPartitionSummaries partitionSummaries) {
+		this.partitionSummaries = partitionSummaries;
+	}
+	
 	private void readPayLoadInfo() throws IOException {
 		try { 
-			fileInfo = new PBFileInfo(path);
+			fileInfo = PBFileInfoCache.getFileInfo(path);
 			desc = new RemotableEventStreamDesc(pvName, fileInfo.getInfo());
 			desc.setSource(path.toString());
 			if(!this.pvName.equals(fileInfo.getPVName())) {
@@ -366,7 +483,8 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 		PBFileInfo fileInfo = new PBFileInfo(path, false);
 		SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ);
 		channel.position(fileInfo.getPositionOfFirstSample());
-		return channel;
+		// We do not want to copy damaged blocks into the destination; this fails the bulk copy instead.
+		return PBBlockChecksums.getVerifyingChannel(path, channel);
 	}
 }
 
@@ -10,6 +10,7 @@ package edu.stanford.slac.archiverappliance.PlainPB;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 
 import org.apache.log4j.Logger;
@@ -39,6 +40,19 @@ public class FileBackedPBEventStreamPositionBasedIterator implements FileBackedP
 	
 
 	public FileBackedPBEventStreamPositionBasedIterator(Path path, long startFilePos, long endFilePos, short year, ArchDBRTypes type) throws IOException {
+		this(path, null, startFilePos, endFilePos, year, type);
+	}
+
+	/**
+	 * @param path
+	 * @param prefetchedChannel - If not null, we read from this channel instead of opening the path; we take over the burden of closing this channel.
+	 * @param startFilePos
+	 * @param endFilePos
+	 * @param year
+	 * @param type
+	 * @throws IOException
+	 */
+	public FileBackedPBEventStreamPositionBasedIterator(Path path, SeekableByteChannel prefetchedChannel, long startFilePos, long endFilePos, short year, ArchDBRTypes type) throws IOException {
 		this.startFilePos = startFilePos;
 		this.endFilePos = endFilePos;
 		this.type = type;
@@ -48,7 +62,7 @@ public class FileBackedPBEventStreamPositionBasedIterator implements FileBackedP
 		assert(endFilePos >= 0);
 		assert(endFilePos >= startFilePos);
 		this.year = year;
-		lbs = new LineByteStream(path, this.startFilePos, this.endFilePos);
+		lbs = (prefetchedChannel != null) ? new LineByteStream(path, prefetchedChannel, this.startFilePos, this.endFilePos) : new LineByteStream(path, this.startFilePos, this.endFilePos);
 		lbs.seekToFirstNewLine();
 	}
 
@@ -10,6 +10,7 @@ package edu.stanford.slac.archiverappliance.PlainPB;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 import java.sql.Timestamp;
 
@@ -145,6 +146,19 @@ public class FileBackedPBEventStreamTimeBasedIterator implements FileBackedPBEve
 	
 
 	public FileBackedPBEventStreamTimeBasedIterator(Path path, Timestamp startTime, Timestamp endTime, short year, ArchDBRTypes type) throws IOException {
+		this(path, null, startTime, endTime, year, type);
+	}
+
+	/**
+	 * @param path
+	 * @param prefetchedChannel - If not null, we read from this channel instead of opening the path; we take over the burden of closing this channel.
+	 * @param startTime
+	 * @param endTime
+	 * @param year
+	 * @param type
+	 * @throws IOException
+	 */
+	public FileBackedPBEventStreamTimeBasedIterator(Path path, SeekableByteChannel prefetchedChannel, Timestamp startTime, Timestamp endTime, short year, ArchDBRTypes type) throws IOException {
 		this.startTimeEpochSeconds = TimeUtils.convertToEpochSeconds(startTime);
 		this.endTimeEpochSeconds = TimeUtils.convertToEpochSeconds(endTime);
 		this.type = type;
@@ -154,7 +168,7 @@ public class FileBackedPBEventStreamTimeBasedIterator implements FileBackedPBEve
 		assert(endTimeEpochSeconds >= 0);
 		assert(endTimeEpochSeconds >= startTimeEpochSeconds);
 		this.year = year;
-		lbs = new LineByteStream(path);
+		lbs = (prefetchedChannel != null) ? new LineByteStream(path, prefetchedChannel, 0L) : new LineByteStream(path);
 		try {
 			lbs.readLine(events.line1); // This should read the header..
 			events.readEvents(lbs);
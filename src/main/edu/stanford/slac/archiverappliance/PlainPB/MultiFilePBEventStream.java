@@ -51,13 +51,13 @@ public class MultiFilePBEventStream implements EventStream, RemotableOverRaw {
 		
 		// We need at least two files for this event stream to work correctly.
 		assert(paths.length > 1);
-		PBFileInfo pbinfo = new PBFileInfo(paths[0]);
+		PBFileInfo pbinfo = PBFileInfoCache.getFileInfo(paths[0]);
 		this.desc = new RemotableEventStreamDesc(this.pvName, pbinfo.getInfo());
 		
 		istreams = new LineByteStreamCreator[paths.length];
 		for(int i = 0; i < paths.length; i++) {
 			Path path = paths[i];
-			pbinfo = new PBFileInfo(path);
+			pbinfo = PBFileInfoCache.getFileInfo(path);
 			try {
 				if(i == 0) {
 					if(pbinfo.getDataYear() == startYTS.getYear()) {
@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ConfigService;
+
+/**
+ * Verifies the partitions in a store against their {@link PBBlockChecksums} in the background.
+ * <ul>
+ * <li>Each pass walks the store's root folder and verifies all the partitions that have checksums.
+ * This reads the partitions sequentially but does not parse the events; so this is limited by the I/O bandwidth that we allow the scrubber to use.
+ * All the damaged blocks in a partition are found in one read of the partition; the damaged partitions and the damaged portions are reported in the metrics and in the logs.</li>
+ * <li>Partitions that do not have checksums yet (for example, partitions written before the checksums were turned on) are validated by parsing them once and then checksummed; after this, they are verified using the checksums.
+ * Partitions that have been modified recently are left alone; these get their checksums when they are next appended to.</li>
+ * </ul>
+ * The scrubber runs only if the checksums are turned on; there is one scrubber for each root folder in this process.
+ *
+ * These can be configured in archappl.properties
+ * <ul>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksumScrubber.scrubMBPerSecond</code> - The I/O bandwidth the scrubber can use for each store. Set this to 0 to turn off the scrubber.</li>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksumScrubber.scrubIntervalHours</code> - How often we start a new pass over the store.</li>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksumScrubber.addMissingChecksums</code> - Set this to false to only verify partitions that already have checksums.</li>
+ * </ul>
+ *
+ * @author mshankar
+ *
+ */
+public class PBBlockChecksumScrubber {
+	private static final Logger logger = Logger.getLogger(PBBlockChecksumScrubber.class);
+	public static final String SCRUB_MB_PER_SECOND_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksumScrubber.scrubMBPerSecond";
+	public static final String SCRUB_INTERVAL_HOURS_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksumScrubber.scrubIntervalHours";
+	public static final String ADD_MISSING_CHECKSUMS_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksumScrubber.addMissingChecksums";
+	/**
+	 * Partitions without checksums that have been modified within this interval are probably still being written to.
+	 */
+	private static final long ADD_CHECKSUMS_AFTER_MILLIS = 60*60*1000L;
+
+	private static ConcurrentHashMap<String, PBBlockChecksumScrubber> scrubbers = new ConcurrentHashMap<String, PBBlockChecksumScrubber>();
+	private static ScheduledExecutorService scrubExecutor = null;
+
+	private final String rootFolder;
+	private final long bytesPerSecond;
+	private final long scrubIntervalMillis;
+	private final boolean addMissingChecksums;
+	private long lastPassStartedMillis = -1;
+	private long lastPassCompletedMillis = -1;
+	// The damaged partitions we found in the last pass (and so far in the current pass); indexed by path.
+	private final ConcurrentHashMap<String, String> damagedPartitions = new ConcurrentHashMap<String, String>();
+
+	private AtomicLong passes = new AtomicLong(0);
+	private AtomicLong partitionsVerified = new AtomicLong(0);
+	private AtomicLong bytesVerified = new AtomicLong(0);
+	private AtomicLong damagedPartitionsFound = new AtomicLong(0);
+	private AtomicLong checksumsAdded = new AtomicLong(0);
+	private AtomicLong invalidPartitionsWithoutChecksums = new AtomicLong(0);
+
+	/**
+	 * Start scrubbing this store if the checksums are turned on; this does nothing if we are already scrubbing this store.
+	 * @param rootFolder
+	 * @param configService
+	 * @return The scrubber; null if the store is not being scrubbed.
+	 */
+	static PBBlockChecksumScrubber getScrubber(String rootFolder, ConfigService configService) {
+		PBBlockChecksumScrubber scrubber = scrubbers.get(rootFolder);
+		if(scrubber != null) return scrubber;
+		if(!PBBlockChecksums.isEnabled()) return null;
+		long scrubMBPerSecond = Long.parseLong(configService.getInstallationProperties().getProperty(SCRUB_MB_PER_SECOND_PROPERTY, "20"));
+		if(scrubMBPerSecond <= 0) {
+			logger.debug("Checksum scrubbing is turned off for " + rootFolder);
+			return null;
+		}
+		long scrubIntervalHours = Long.parseLong(configService.getInstallationProperties().getProperty(SCRUB_INTERVAL_HOURS_PROPERTY, "168"));
+		boolean addMissingChecksums = Boolean.parseBoolean(configService.getInstallationProperties().getProperty(ADD_MISSING_CHECKSUMS_PROPERTY, "true"));
+		PBBlockChecksumScrubber newScrubber = new PBBlockChecksumScrubber(rootFolder, scrubMBPerSecond*1024*1024, scrubIntervalHours*60*60*1000, addMissingChecksums);
+		scrubber = scrubbers.putIfAbsent(rootFolder, newScrubber);
+		if(scrubber == null) {
+			logger.info("Scrubbing the checksums in " + rootFolder + " at " + scrubMBPerSecond + " MB/s every " + scrubIntervalHours + " hours");
+			startScrub(configService);
+			scrubber = newScrubber;
+		}
+		return scrubber;
+	}
+
+	PBBlockChecksumScrubber(String rootFolder, long bytesPerSecond, long scrubIntervalMillis, boolean addMissingChecksums) {
+		this.rootFolder = rootFolder;
+		this.bytesPerSecond = bytesPerSecond;
+		this.scrubIntervalMillis = scrubIntervalMillis;
+		this.addMissingChecksums = addMissingChecksums;
+	}
+
+	private static synchronized void startScrub(ConfigService configService) {
+		if(scrubExecutor != null) return;
+		scrubExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PB checksum scrub");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		scrubExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for(PBBlockChecksumScrubber scrubber : scrubbers.values()) {
+					try {
+						if(scrubber.isPassDue()) scrubber.scrubPass();
+					} catch(InterruptedException ex) {
+						logger.info("Checksum scrub interrupted for " + scrubber.rootFolder);
+						return;
+					} catch(Throwable t) {
+						logger.error("Exception scrubbing checksums for " + scrubber.rootFolder, t);
+					}
+				}
+			}
+		}, 10, 10, TimeUnit.MINUTES);
+		configService.addShutdownHook(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(PBBlockChecksumScrubber.class) {
+					if(scrubExecutor != null) {
+						scrubExecutor.shutdownNow();
+						scrubExecutor = null;
+					}
+				}
+			}
+		});
+	}
+
+	private synchronized boolean isPassDue() {
+		return lastPassStartedMillis < 0 || (System.currentTimeMillis() - lastPassStartedMillis) >= scrubIntervalMillis;
+	}
+
+	/**
+	 * Go thru all the partitions in the store once.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void scrubPass() throws IOException, InterruptedException {
+		synchronized(this) {
+			lastPassStartedMillis = System.currentTimeMillis();
+		}
+		Path rootPath = Paths.get(rootFolder);
+		if(!Files.isDirectory(rootPath)) return;
+		final PBBlockChecksums.ReadThrottle throttle = new PBBlockChecksums.ReadThrottle() {
+			private final long startNanos = System.nanoTime();
+			private long totalBytes = 0;
+			@Override
+			public void bytesRead(long bytes) throws InterruptedException {
+				totalBytes += bytes;
+				long aheadNanos = (long) (totalBytes*1.0e9/bytesPerSecond) - (System.nanoTime() - startNanos);
+				if(aheadNanos > 1000000) Thread.sleep(aheadNanos/1000000);
+			}
+		};
+		final Map<String, String> foundInThisPass = new TreeMap<String, String>();
+		try {
+			Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					if(!attrs.isRegularFile() || PBBlockChecksums.isChecksumFile(file) || PBPartitionSummaries.isSummaryFile(file)) return FileVisitResult.CONTINUE;
+					try {
+						scrubPartition(file, attrs, throttle, foundInThisPass);
+					} catch(InterruptedException ex) {
+						throw new ScrubInterruptedException(ex);
+					} catch(IOException ex) {
+						// For example, ETL deleted the partition while we were looking at it.
+						logger.debug("Exception scrubbing " + file, ex);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch(ScrubInterruptedException ex) {
+			throw (InterruptedException) ex.getCause();
+		}
+		// Damage that has gone away in this pass (for example, the partition was fixed or deleted) is no longer reported.
+		damagedPartitions.keySet().retainAll(foundInThisPass.keySet());
+		passes.incrementAndGet();
+		synchronized(this) {
+			lastPassCompletedMillis = System.currentTimeMillis();
+		}
+		logger.info("Completed a checksum scrub of " + rootFolder + "; found " + foundInThisPass.size() + " damaged partitions");
+	}
+
+	private void scrubPartition(Path path, BasicFileAttributes attrs, PBBlockChecksums.ReadThrottle throttle, Map<String, String> foundInThisPass) throws IOException, InterruptedException {
+		if(PBBlockChecksums.hasChecksums(path)) {
+			PBBlockChecksums.VerificationResult result = PBBlockChecksums.verify(path, throttle);
+			partitionsVerified.incrementAndGet();
+			bytesVerified.addAndGet(result.getBytesVerified());
+			if(result.isDamaged()) {
+				String description = result.toString();
+				String previous = damagedPartitions.put(path.toString(), description);
+				if(previous == null) {
+					damagedPartitionsFound.incrementAndGet();
+					logger.error("Partition is damaged - " + description);
+				}
+				foundInThisPass.put(path.toString(), description);
+			}
+			return;
+		}
+
+		if(!addMissingChecksums || !path.getFileName().toString().endsWith(PlainPBStoragePlugin.PB_EXTENSION)) return;
+		if(System.currentTimeMillis() - attrs.lastModifiedTime().toMillis() < ADD_CHECKSUMS_AFTER_MILLIS) return;
+		if(!isValidPartition(path, throttle)) {
+			invalidPartitionsWithoutChecksums.incrementAndGet();
+			logger.warn("Partition " + path + " does not have checksums and does not parse; not adding checksums to it");
+			return;
+		}
+		PBBlockChecksums.addChecksums(path);
+		BasicFileAttributes attrsAfter = Files.readAttributes(path, BasicFileAttributes.class);
+		if(attrsAfter.size() != attrs.size() || !attrsAfter.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+			logger.debug("Partition " + path + " changed while we were adding checksums to it");
+			PBBlockChecksums.partitionDeleted(path);
+			return;
+		}
+		throttle.bytesRead(attrs.size());
+		checksumsAdded.incrementAndGet();
+	}
+
+	/**
+	 * Parse all the events in the partition and check that the timestamps are in order.
+	 */
+	private static boolean isValidPartition(Path path, PBBlockChecksums.ReadThrottle throttle) throws InterruptedException {
+		try {
+			PBFileInfo info = new PBFileInfo(path);
+			long previousEpochSeconds = Long.MIN_VALUE;
+			try(FileBackedPBEventStream strm = new FileBackedPBEventStream(info.getPVName(), path, info.getType())) {
+				Iterator<Event> it = strm.iterator();
+				if(it == null) return false;
+				while(it.hasNext()) {
+					Event ev = it.next();
+					if(ev == null) return false;
+					long epochSeconds = ev.getEpochSeconds();
+					if(epochSeconds < previousEpochSeconds) return false;
+					previousEpochSeconds = epochSeconds;
+				}
+			}
+			throttle.bytesRead(Files.size(path));
+			return true;
+		} catch(IOException ex) {
+			logger.debug("Exception validating " + path, ex);
+			return false;
+		}
+	}
+
+	Map<String, String> getDamagedPartitions() {
+		return new TreeMap<String, String>(damagedPartitions);
+	}
+
+	public Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		ret.put("passes", Long.toString(passes.get()));
+		ret.put("partitionsVerified", Long.toString(partitionsVerified.get()));
+		ret.put("bytesVerified", Long.toString(bytesVerified.get()));
+		ret.put("damagedPartitions", Integer.toString(damagedPartitions.size()));
+		ret.put("damagedPartitionsFound", Long.toString(damagedPartitionsFound.get()));
+		ret.put("checksumsAdded", Long.toString(checksumsAdded.get()));
+		ret.put("invalidPartitionsWithoutChecksums", Long.toString(invalidPartitionsWithoutChecksums.get()));
+		synchronized(this) {
+			ret.put("lastPassStarted", lastPassStartedMillis > 0 ? TimeUtils.convertToHumanReadableString(lastPassStartedMillis/1000) : "Never");
+			ret.put("lastPassCompleted", lastPassCompletedMillis > 0 ? TimeUtils.convertToHumanReadableString(lastPassCompletedMillis/1000) : "Never");
+		}
+		for(Map.Entry<String, String> damagedPartition : damagedPartitions.entrySet()) {
+			ret.put("damaged " + damagedPartition.getKey(), damagedPartition.getValue());
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the metrics for all the stores in this process; indexed by root folder.
+	 * @return
+	 */
+	public static Map<String, Map<String, String>> getAllMetrics() {
+		TreeMap<String, Map<String, String>> ret = new TreeMap<String, Map<String, String>>();
+		for(PBBlockChecksumScrubber scrubber : scrubbers.values()) {
+			ret.put(scrubber.rootFolder, scrubber.getMetrics());
+		}
+		return ret;
+	}
+
+	/**
+	 * Lets us get an InterruptedException out of the file visitor.
+	 */
+	private static class ScrubInterruptedException extends IOException {
+		private static final long serialVersionUID = 4617063405867328126L;
+
+		ScrubInterruptedException(InterruptedException cause) {
+			super(cause);
+		}
+	}
+}
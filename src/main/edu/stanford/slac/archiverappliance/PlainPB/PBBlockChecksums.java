@@ -0,0 +1,529 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+
+/**
+ * Per block checksums for PB partitions.
+ * Finding corruption in a PB partition (torn writes after a power loss, bit rot on long term storage) otherwise means parsing every line in the partition.
+ * <ul>
+ * <li>The partition is divided into fixed size blocks and we keep a CRC32 for each block in a checksum file next to the partition; for example, <code>XYZ:2014_03.pbcrc</code> for <code>XYZ:2014_03.pb</code>.
+ * The PB partitions themselves are not changed; so these are still plain lines and older releases and tools can read them as before.</li>
+ * <li>The checksums are maintained as we append to partitions; only the blocks that change are checksummed again.
+ * Bytes that are appended to the partition by something that does not maintain the checksums show up as an unverified tail.</li>
+ * <li>Retrieval verifies each block before the events in the block are used; a damaged block ends the stream with an error that identifies the block.</li>
+ * <li>Verifying a partition using the checksums does not parse the events; all the damaged blocks in a partition are found in one sequential read of the partition.
+ * The {@link PBBlockChecksumScrubber} does this in the background.</li>
+ * </ul>
+ * Maintaining the checksums is off by default; turn this on using <code>edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksums.enabled</code>.
+ * The block size is <code>edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksums.blockSizeKB</code>; checksum files with a different block size are checksummed again on the next append.
+ * Verification on read applies to any partition that has a checksum file; this can be turned off using <code>edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksums.verifyOnRead</code>.
+ * Only partitions on the default file system have checksums.
+ * @author mshankar
+ *
+ */
+public class PBBlockChecksums {
+	private static final Logger logger = Logger.getLogger(PBBlockChecksums.class);
+	private static final String PROPERTY_PREFIX = "edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksums.";
+	public static final String CHECKSUM_EXTENSION = ".pbcrc";
+	private static final int MAGIC = 0x50424352;
+	private static final int VERSION = 1;
+	private static final int DEFAULT_BLOCK_SIZE = 64*1024;
+
+	private static volatile boolean enabled = false;
+	private static volatile boolean verifyOnRead = true;
+	private static volatile int blockSize = DEFAULT_BLOCK_SIZE;
+	private static boolean configured = false;
+
+	private static AtomicLong checksumFilesWritten = new AtomicLong(0);
+	private static AtomicLong bytesChecksummed = new AtomicLong(0);
+	private static AtomicLong blocksVerifiedOnRead = new AtomicLong(0);
+	private static AtomicLong damagedBlocksOnRead = new AtomicLong(0);
+	private static AtomicLong checksumFileFailures = new AtomicLong(0);
+
+	/**
+	 * The checksums for a partition.
+	 * Block <code>i</code> is the bytes from <code>i*blockSize</code> to <code>min((i+1)*blockSize, coveredSize)</code>; so the last block can be a partial block.
+	 */
+	public static class BlockChecksums {
+		final int blockSize;
+		final long coveredSize;
+		final int[] crcs;
+
+		BlockChecksums(int blockSize, long coveredSize, int[] crcs) {
+			this.blockSize = blockSize;
+			this.coveredSize = coveredSize;
+			this.crcs = crcs;
+		}
+
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		/**
+		 * @return The number of bytes at the start of the partition that are covered by these checksums.
+		 */
+		public long getCoveredSize() {
+			return coveredSize;
+		}
+
+		public int getBlockCount() {
+			return crcs.length;
+		}
+
+		long blockStart(int block) {
+			return ((long) block)*blockSize;
+		}
+
+		int blockLength(int block) {
+			return (int) (Math.min(blockStart(block) + blockSize, coveredSize) - blockStart(block));
+		}
+	}
+
+	/**
+	 * The result of verifying a partition using its checksums.
+	 */
+	public static class VerificationResult {
+		private final Path path;
+		private final boolean hasChecksums;
+		private long blocksVerified = 0;
+		private long bytesVerified = 0;
+		private long unverifiedBytes = 0;
+		private final List<long[]> damagedRanges = new ArrayList<long[]>();
+
+		VerificationResult(Path path, boolean hasChecksums) {
+			this.path = path;
+			this.hasChecksums = hasChecksums;
+		}
+
+		void addDamagedRange(long start, long end) {
+			if(!damagedRanges.isEmpty()) {
+				long[] last = damagedRanges.get(damagedRanges.size()-1);
+				if(last[1] == start) {
+					last[1] = end;
+					return;
+				}
+			}
+			damagedRanges.add(new long[] { start, end });
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		/**
+		 * @return false if the partition does not have a (usable) checksum file; nothing has been verified in this case.
+		 */
+		public boolean hasChecksums() {
+			return hasChecksums;
+		}
+
+		public long getBlocksVerified() {
+			return blocksVerified;
+		}
+
+		public long getBytesVerified() {
+			return bytesVerified;
+		}
+
+		/**
+		 * @return The bytes at the end of the partition that are not covered by the checksums.
+		 */
+		public long getUnverifiedBytes() {
+			return unverifiedBytes;
+		}
+
+		public boolean isDamaged() {
+			return !damagedRanges.isEmpty();
+		}
+
+		/**
+		 * @return The damaged portions of the partition as start and end (exclusive) positions; adjacent damaged blocks are combined.
+		 */
+		public List<long[]> getDamagedRanges() {
+			return Collections.unmodifiableList(damagedRanges);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder buf = new StringBuilder();
+			buf.append(path).append(": ").append(blocksVerified).append(" blocks (").append(bytesVerified).append(" bytes) verified");
+			if(unverifiedBytes > 0) buf.append("; ").append(unverifiedBytes).append(" bytes at the end have no checksums");
+			for(long[] damagedRange : damagedRanges) {
+				buf.append("; damaged from ").append(damagedRange[0]).append(" to ").append(damagedRange[1]);
+			}
+			return buf.toString();
+		}
+	}
+
+	/**
+	 * Something that wants to limit the rate at which we read partitions when verifying them; for example, the scrubber.
+	 */
+	public interface ReadThrottle {
+		public void bytesRead(long bytes) throws InterruptedException;
+	}
+
+	/**
+	 * Configure the checksums based on the installation properties.
+	 * This takes effect only the first time it is called; subsequent calls are ignored.
+	 * @param configService
+	 */
+	public static synchronized void configure(ConfigService configService) {
+		if(configured || configService == null) return;
+		configured = true;
+		Properties installationProperties = configService.getInstallationProperties();
+		enabled = Boolean.parseBoolean(installationProperties.getProperty(PROPERTY_PREFIX + "enabled", "false"));
+		verifyOnRead = Boolean.parseBoolean(installationProperties.getProperty(PROPERTY_PREFIX + "verifyOnRead", "true"));
+		blockSize = Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "blockSizeKB", Integer.toString(DEFAULT_BLOCK_SIZE/1024)))*1024;
+		if(blockSize <= 0) {
+			logger.error("Invalid block size " + blockSize + " for PB block checksums; using the default instead");
+			blockSize = DEFAULT_BLOCK_SIZE;
+		}
+		if(enabled) {
+			logger.info("Maintaining checksums for PB partitions using blocks of " + blockSize + " bytes");
+		}
+	}
+
+	/**
+	 * Used by the unit tests to turn the checksums on and off.
+	 * @param enabled
+	 */
+	static void setEnabled(boolean enabled) {
+		PBBlockChecksums.enabled = enabled;
+	}
+
+	/**
+	 * @return Are we maintaining checksums for the partitions we write?
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Called after we have written to a partition; we checksum the blocks that have changed.
+	 * @param path - The partition
+	 * @param unchangedBytes - The number of bytes at the start of the partition that have not changed since the checksums were last maintained; for example, the size of the partition before we appended to it.
+	 * If we created or replaced the partition, this is 0.
+	 */
+	public static void partitionWritten(Path path, long unchangedBytes) {
+		if(!enabled || path.getFileSystem() != FileSystems.getDefault()) return;
+		Path checksumPath = getChecksumPath(path);
+		try {
+			BlockChecksums existing = (unchangedBytes > 0) ? readChecksumFile(checksumPath) : null;
+			int blocksToKeep = 0;
+			if(existing != null && existing.blockSize == blockSize) {
+				blocksToKeep = (int) (Math.min(existing.coveredSize, unchangedBytes)/blockSize);
+			}
+			writeChecksumFile(checksumPath, computeChecksums(path, blockSize, existing, blocksToKeep));
+		} catch(IOException ex) {
+			logger.error("Exception maintaining the checksums for " + path + "; removing the checksum file", ex);
+			checksumFileFailures.incrementAndGet();
+			deleteChecksumFile(checksumPath);
+		}
+	}
+
+	/**
+	 * Called when a partition is moved into place (for example, when ETL commits the append data or after a conversion).
+	 * The checksums move along with the partition; if the source does not have any, we remove the destination's checksums as they no longer apply.
+	 * @param srcPath
+	 * @param destPath
+	 */
+	public static void partitionMoved(Path srcPath, Path destPath) {
+		if(destPath.getFileSystem() != FileSystems.getDefault()) return;
+		Path srcChecksumPath = getChecksumPath(srcPath);
+		Path destChecksumPath = getChecksumPath(destPath);
+		try {
+			if(Files.exists(srcChecksumPath)) {
+				Files.move(srcChecksumPath, destChecksumPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} else {
+				Files.deleteIfExists(destChecksumPath);
+			}
+		} catch(IOException ex) {
+			logger.error("Exception moving the checksums from " + srcPath + " to " + destPath + "; removing the checksum file", ex);
+			checksumFileFailures.incrementAndGet();
+			deleteChecksumFile(destChecksumPath);
+		}
+	}
+
+	/**
+	 * Called when a partition has been rewritten in place by a tool (for example, when fixing a partition).
+	 * If the partition had checksums, we checksum the new contents.
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void partitionRewritten(Path path) throws IOException {
+		Path checksumPath = getChecksumPath(path);
+		if(path.getFileSystem() != FileSystems.getDefault() || !Files.exists(checksumPath)) return;
+		BlockChecksums existing = readChecksumFile(checksumPath);
+		writeChecksumFile(checksumPath, computeChecksums(path, (existing != null) ? existing.blockSize : blockSize, null, 0));
+	}
+
+	/**
+	 * Called when a partition is deleted; we delete the checksum file as well.
+	 * @param path
+	 */
+	public static void partitionDeleted(Path path) {
+		if(path.getFileSystem() != FileSystems.getDefault()) return;
+		deleteChecksumFile(getChecksumPath(path));
+	}
+
+	/**
+	 * Checksum a partition that does not have checksums yet; the caller should have validated the partition first.
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void addChecksums(Path path) throws IOException {
+		writeChecksumFile(getChecksumPath(path), computeChecksums(path, blockSize, null, 0));
+	}
+
+	/**
+	 * @param path - The partition
+	 * @return Does this partition have a checksum file?
+	 */
+	public static boolean hasChecksums(Path path) {
+		return path.getFileSystem() == FileSystems.getDefault() && Files.exists(getChecksumPath(path));
+	}
+
+	/**
+	 * Verify all the blocks in the partition using the checksums.
+	 * We do not stop at the first damaged block; the result has all the damaged portions of the partition.
+	 * @param path - The partition
+	 * @param throttle - Can be null
+	 * @return The result; if the partition does not have checksums, the result says so.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static VerificationResult verify(Path path, ReadThrottle throttle) throws IOException, InterruptedException {
+		BlockChecksums checksums = (path.getFileSystem() == FileSystems.getDefault()) ? readChecksumFile(getChecksumPath(path)) : null;
+		if(checksums == null) return new VerificationResult(path, false);
+		VerificationResult result = new VerificationResult(path, true);
+		CRC32 crc = new CRC32();
+		try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			ByteBuffer buf = ByteBuffer.allocate(checksums.blockSize);
+			for(int block = 0; block < checksums.crcs.length; block++) {
+				int blockLength = checksums.blockLength(block);
+				if(checksums.blockStart(block) + blockLength > size) {
+					// The partition has been truncated.
+					result.addDamagedRange(checksums.blockStart(block), checksums.coveredSize);
+					break;
+				}
+				buf.clear();
+				buf.limit(blockLength);
+				readFully(channel, buf);
+				if(throttle != null) throttle.bytesRead(blockLength);
+				crc.reset();
+				crc.update(buf.array(), 0, blockLength);
+				if((int) crc.getValue() != checksums.crcs[block]) {
+					result.addDamagedRange(checksums.blockStart(block), checksums.blockStart(block) + blockLength);
+				}
+				result.blocksVerified++;
+				result.bytesVerified += blockLength;
+			}
+			result.unverifiedBytes = Math.max(0, size - checksums.coveredSize);
+		}
+		return result;
+	}
+
+	/**
+	 * If the partition has checksums, wrap the channel used to read the partition so that blocks are verified before they are used.
+	 * @param path - The partition
+	 * @param channel - The channel to read the partition; if this is null and the partition has checksums, we open a channel.
+	 * @return The channel to use; this is null if the channel passed in is null and we do not need to verify the partition.
+	 * @throws IOException
+	 */
+	static SeekableByteChannel getVerifyingChannel(Path path, SeekableByteChannel channel) throws IOException {
+		if(!verifyOnRead || path.getFileSystem() != FileSystems.getDefault()) return channel;
+		BlockChecksums checksums = readChecksumFile(getChecksumPath(path));
+		if(checksums == null) return channel;
+		return new ChecksumVerifyingByteChannel(path, (channel != null) ? channel : ArchPaths.newByteChannel(path, StandardOpenOption.READ), checksums);
+	}
+
+	/**
+	 * A block failed verification when reading; check again using the current checksums and contents of the partition.
+	 * The partition may have been replaced (for example, by ETL) after we opened it; we do not want to report that as damage.
+	 * @param path
+	 * @param blockStart
+	 * @param blockLength
+	 * @return true if the block is damaged.
+	 */
+	static boolean confirmDamage(Path path, long blockStart, int blockLength) {
+		try {
+			BlockChecksums checksums = readChecksumFile(getChecksumPath(path));
+			if(checksums == null || blockStart % checksums.blockSize != 0) return false;
+			int block = (int) (blockStart/checksums.blockSize);
+			if(block >= checksums.crcs.length || checksums.blockLength(block) != blockLength) return false;
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+				if(channel.size() < blockStart + blockLength) return true;
+				ByteBuffer buf = ByteBuffer.allocate(blockLength);
+				channel.position(blockStart);
+				readFully(channel, buf);
+				CRC32 crc = new CRC32();
+				crc.update(buf.array(), 0, blockLength);
+				if((int) crc.getValue() != checksums.crcs[block]) {
+					damagedBlocksOnRead.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		} catch(IOException ex) {
+			logger.warn("Exception confirming the damage in " + path + " at " + blockStart, ex);
+			return true;
+		}
+	}
+
+	static void blockVerifiedOnRead() {
+		blocksVerifiedOnRead.incrementAndGet();
+	}
+
+	public static Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		ret.put("enabled", Boolean.toString(enabled));
+		ret.put("checksumFilesWritten", Long.toString(checksumFilesWritten.get()));
+		ret.put("bytesChecksummed", Long.toString(bytesChecksummed.get()));
+		ret.put("blocksVerifiedOnRead", Long.toString(blocksVerifiedOnRead.get()));
+		ret.put("damagedBlocksOnRead", Long.toString(damagedBlocksOnRead.get()));
+		ret.put("checksumFileFailures", Long.toString(checksumFileFailures.get()));
+		return ret;
+	}
+
+	/**
+	 * Tools that go thru all the files in a folder should skip the checksum files.
+	 * @param path
+	 * @return true if this is a checksum file.
+	 */
+	public static boolean isChecksumFile(Path path) {
+		return path.getFileName().toString().endsWith(CHECKSUM_EXTENSION);
+	}
+
+	static Path getChecksumPath(Path path) {
+		String fileName = path.getFileName().toString();
+		if(fileName.endsWith(PlainPBStoragePlugin.PB_EXTENSION)) {
+			fileName = fileName.substring(0, fileName.length() - PlainPBStoragePlugin.PB_EXTENSION.length());
+		}
+		return path.resolveSibling(fileName + CHECKSUM_EXTENSION);
+	}
+
+	/**
+	 * Checksum the partition; we keep the first few blocks from the existing checksums and checksum the rest of the partition.
+	 */
+	private static BlockChecksums computeChecksums(Path path, int blockSize, BlockChecksums existing, int blocksToKeep) throws IOException {
+		try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			int blockCount = (int) ((size + blockSize - 1)/blockSize);
+			int[] crcs = new int[blockCount];
+			blocksToKeep = Math.min(blocksToKeep, blockCount);
+			if(blocksToKeep > 0) System.arraycopy(existing.crcs, 0, crcs, 0, blocksToKeep);
+			channel.position(((long) blocksToKeep)*blockSize);
+			ByteBuffer buf = ByteBuffer.allocate(blockSize);
+			CRC32 crc = new CRC32();
+			for(int block = blocksToKeep; block < blockCount; block++) {
+				int blockLength = (int) (Math.min(((long) block + 1)*blockSize, size) - ((long) block)*blockSize);
+				buf.clear();
+				buf.limit(blockLength);
+				readFully(channel, buf);
+				crc.reset();
+				crc.update(buf.array(), 0, blockLength);
+				crcs[block] = (int) crc.getValue();
+				bytesChecksummed.addAndGet(blockLength);
+			}
+			return new BlockChecksums(blockSize, size, crcs);
+		}
+	}
+
+	private static void readFully(SeekableByteChannel channel, ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			if(channel.read(buf) < 0) throw new IOException("Unexpected end of file");
+		}
+	}
+
+	/**
+	 * @param checksumPath
+	 * @return The checksums; null if there is no checksum file or if we cannot understand it.
+	 */
+	static BlockChecksums readChecksumFile(Path checksumPath) {
+		if(!Files.exists(checksumPath)) return null;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checksumPath)))) {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				logger.warn("Checksum file " + checksumPath + " is not something we understand");
+				return null;
+			}
+			int fileBlockSize = in.readInt();
+			long coveredSize = in.readLong();
+			int blockCount = in.readInt();
+			if(fileBlockSize <= 0 || coveredSize < 0 || blockCount != (int) ((coveredSize + fileBlockSize - 1)/fileBlockSize)) {
+				logger.warn("Checksum file " + checksumPath + " is not consistent");
+				return null;
+			}
+			int[] crcs = new int[blockCount];
+			for(int i = 0; i < blockCount; i++) {
+				crcs[i] = in.readInt();
+			}
+			return new BlockChecksums(fileBlockSize, coveredSize, crcs);
+		} catch(IOException ex) {
+			logger.warn("Exception reading checksum file " + checksumPath, ex);
+			checksumFileFailures.incrementAndGet();
+			return null;
+		}
+	}
+
+	private static void writeChecksumFile(Path checksumPath, BlockChecksums checksums) throws IOException {
+		Path tmpFile = Files.createTempFile(checksumPath.getParent(), checksumPath.getFileName().toString(), ".tmp");
+		try {
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(checksums.blockSize);
+				out.writeLong(checksums.coveredSize);
+				out.writeInt(checksums.crcs.length);
+				for(int crc : checksums.crcs) {
+					out.writeInt(crc);
+				}
+			}
+			Files.move(tmpFile, checksumPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmpFile = null;
+			checksumFilesWritten.incrementAndGet();
+		} finally {
+			if(tmpFile != null) {
+				try { Files.deleteIfExists(tmpFile); } catch(IOException ex) { }
+			}
+		}
+	}
+
+	private static void deleteChecksumFile(Path checksumPath) {
+		try {
+			Files.deleteIfExists(checksumPath);
+		} catch(IOException ex) {
+			logger.warn("Exception deleting the checksum file " + checksumPath, ex);
+		}
+	}
+}
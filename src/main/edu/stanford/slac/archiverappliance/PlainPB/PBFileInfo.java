@@ -70,7 +70,18 @@ public class PBFileInfo {
 			throw new IOException(e);
 		}
 	}
-	
+
+	/**
+	 * Used when we already know the header and the events at the start and end of the file; for example, just after appending to the file.
+	 */
+	PBFileInfo(PayloadInfo info, DBRTimeEvent firstEvent, DBRTimeEvent lastEvent, long positionOfFirstSample, long positionOfLastSample) {
+		this.info = info;
+		this.firstEvent = firstEvent;
+		this.lastEvent = lastEvent;
+		this.positionOfFirstSample = positionOfFirstSample;
+		this.positionOfLastSample = positionOfLastSample;
+	}
+
 	public String getPVName() {
 		return info.getPvname();
 	}
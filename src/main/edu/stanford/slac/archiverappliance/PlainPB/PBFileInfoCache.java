@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A cache of the PBFileInfo (header, first and last event) for PB files.
+ * Computing a PBFileInfo involves opening the file, parsing the header and seeking backwards from the end of the file to find the last event.
+ * This is done on every retrieval request, on every ETL cycle and every time the engine appends to a partition; mostly on files that have not changed since the last time.
+ * <ul>
+ * <li>Entries are keyed by the absolute path and are valid only as long as the file's size, modification time and file key are the same as when the entry was created.
+ * We stat the file before each use; so changes made by other processes are always picked up.</li>
+ * <li>AppendDataStateData updates the entry for the partition it has just appended to using the events it has written.
+ * So, the engine's next write cycle and retrieval requests for the current partition do not have to read the file again.</li>
+ * <li>Files that are moved or deleted by this process are removed from the cache explicitly.</li>
+ * </ul>
+ * The events in the cached PBFileInfo's are shared; callers that hand these events out should clone them.
+ * Only files on the default file system are cached; files within zip files etc are always read afresh.
+ * The cache is shared by all the PlainPBStoragePlugin instances in this process (or webapp).
+ *
+ * The size of the cache can be configured in archappl.properties using <code>edu.stanford.slac.archiverappliance.PlainPB.PBFileInfoCache.maxEntries</code>; set this to 0 to turn off the cache.
+ *
+ * @author mshankar
+ *
+ */
+public class PBFileInfoCache {
+	private static final Logger logger = Logger.getLogger(PBFileInfoCache.class);
+	public static final String MAX_ENTRIES_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PBFileInfoCache.maxEntries";
+	private static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private static volatile Cache<String, CachedFileInfo> cache = CacheBuilder.newBuilder().maximumSize(DEFAULT_MAX_ENTRIES).build();
+	private static volatile boolean enabled = true;
+	private static boolean configured = false;
+
+	private static AtomicLong hits = new AtomicLong(0);
+	private static AtomicLong misses = new AtomicLong(0);
+	private static AtomicLong updates = new AtomicLong(0);
+	private static AtomicLong invalidations = new AtomicLong(0);
+
+	/**
+	 * The PBFileInfo together with the attributes of the file when the PBFileInfo was computed.
+	 */
+	private static class CachedFileInfo {
+		final long size;
+		final long lastModifiedMillis;
+		final Object fileKey;
+		final PBFileInfo fileInfo;
+
+		CachedFileInfo(BasicFileAttributes attrs, PBFileInfo fileInfo) {
+			this.size = attrs.size();
+			this.lastModifiedMillis = attrs.lastModifiedTime().toMillis();
+			this.fileKey = attrs.fileKey();
+			this.fileInfo = fileInfo;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return this.size == attrs.size()
+					&& this.lastModifiedMillis == attrs.lastModifiedTime().toMillis()
+					&& (this.fileKey == null ? attrs.fileKey() == null : this.fileKey.equals(attrs.fileKey()));
+		}
+	}
+
+	/**
+	 * Size the cache based on the installation properties.
+	 * This takes effect only the first time it is called; subsequent calls are ignored.
+	 * @param configService
+	 */
+	public static synchronized void configure(ConfigService configService) {
+		if(configured || configService == null) return;
+		configured = true;
+		int maxEntries = Integer.parseInt(configService.getInstallationProperties().getProperty(MAX_ENTRIES_PROPERTY, Integer.toString(DEFAULT_MAX_ENTRIES)));
+		if(maxEntries <= 0) {
+			logger.info("Turning off the PBFileInfo cache");
+			enabled = false;
+			cache.invalidateAll();
+			return;
+		}
+		if(maxEntries != DEFAULT_MAX_ENTRIES) {
+			logger.info("Sizing the PBFileInfo cache to " + maxEntries + " entries");
+			cache = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+		}
+	}
+
+	/**
+	 * Get the PBFileInfo for the specified file; either from the cache or by reading the file.
+	 * @param path
+	 * @return PBFileInfo
+	 * @throws IOException
+	 */
+	public static PBFileInfo getFileInfo(Path path) throws IOException {
+		if(!isCacheable(path)) {
+			return new PBFileInfo(path);
+		}
+		String key = getKey(path);
+		// We get the attributes before reading the file; if the file changes while we are reading it, the entry will not match the next time around.
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		CachedFileInfo cachedInfo = cache.getIfPresent(key);
+		if(cachedInfo != null && cachedInfo.matches(attrs)) {
+			hits.incrementAndGet();
+			return cachedInfo.fileInfo;
+		}
+		misses.incrementAndGet();
+		PBFileInfo fileInfo = new PBFileInfo(path);
+		cache.put(key, new CachedFileInfo(attrs, fileInfo));
+		return fileInfo;
+	}
+
+	/**
+	 * Called after appending events to a file that we have just closed.
+	 * If we know the events that are now at the start and end of the file, we update the cache with these; otherwise we simply remove the entry.
+	 * @param path - The file that was appended to.
+	 * @param previousInfo - The PBFileInfo before we started appending. This is used for the header and the first event.
+	 * @param firstEvent - The first event in the file; if null, we use the first event from previousInfo.
+	 * @param lastEvent - The last event that was written into the file.
+	 * @param positionOfLastEvent - The position in the file where the last event starts.
+	 * @param expectedSize - The size of the file as we expect it to be after the append.
+	 */
+	static void fileAppended(Path path, PBFileInfo previousInfo, DBRTimeEvent firstEvent, DBRTimeEvent lastEvent, long positionOfLastEvent, long expectedSize) {
+		if(!isCacheable(path)) return;
+		String key = getKey(path);
+		if(previousInfo == null || lastEvent == null) {
+			invalidate(path);
+			return;
+		}
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			if(attrs.size() != expectedSize) {
+				logger.debug("File " + path + " has size " + attrs.size() + " after appending; we were expecting " + expectedSize + ". Invalidating cached info.");
+				invalidate(path);
+				return;
+			}
+			PBFileInfo fileInfo = new PBFileInfo(previousInfo.getInfo(),
+					firstEvent != null ? firstEvent : previousInfo.getFirstEvent(),
+					lastEvent,
+					previousInfo.getPositionOfFirstSample(),
+					positionOfLastEvent);
+			cache.put(key, new CachedFileInfo(attrs, fileInfo));
+			updates.incrementAndGet();
+		} catch(IOException ex) {
+			logger.warn("Exception updating cached file info for " + path, ex);
+			invalidate(path);
+		}
+	}
+
+	/**
+	 * Remove any cached information about this file.
+	 * This should be called when a file is moved, deleted or rewritten.
+	 * @param path
+	 */
+	public static void invalidate(Path path) {
+		if(!isCacheable(path)) return;
+		cache.invalidate(getKey(path));
+		invalidations.incrementAndGet();
+	}
+
+	public static Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		ret.put("cachedEntries", Long.toString(cache.size()));
+		ret.put("hits", Long.toString(hits.get()));
+		ret.put("misses", Long.toString(misses.get()));
+		ret.put("updates", Long.toString(updates.get()));
+		ret.put("invalidations", Long.toString(invalidations.get()));
+		return ret;
+	}
+
+	private static boolean isCacheable(Path path) {
+		return enabled && path.getFileSystem() == FileSystems.getDefault();
+	}
+
+	private static String getKey(Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.PartitionSummary;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.ConfigService.WAR_FILE;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Summaries (count, min, max, sum, sum of squares, first/last times and a severity histogram) of the events in PB partitions.
+ * Post processors like mean, min, max and count use these when a bin completely covers a partition; so they do not have to go thru every event in the partition.
+ * <ul>
+ * <li>The summary is computed the first time it is asked for and is saved in a summary file next to the partition; for example, <code>XYZ:2014_03.pbsummary</code> for <code>XYZ:2014_03.pb</code>.
+ * The PB partitions themselves are not changed.</li>
+ * <li>The summary file records the size and modification time of the partition when the summary was computed; if the partition has changed since, the summary is computed again.
+ * Partitions that have been modified within the last {@link PlainPBPartitionCatalog#RACY_INTERVAL_MILLIS} are not summarized as they are probably still being written to.</li>
+ * <li>Summaries are also kept in memory; as with the {@link PBFileInfoCache}, these are validated against the file's attributes before each use.</li>
+ * <li>Summary files are deleted when ETL deletes the partition.</li>
+ * </ul>
+ * Only scalar numeric types on the default file system are summarized.
+ * Each webapp has its own summaries; these are created by the config service (see {@link ConfigService#getPartitionSummaries()}).
+ * Summaries can be turned off using <code>edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries.enabled</code>.
+ * Summary files are not written by default; these can be turned on using <code>edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries.writeSummaryFiles</code>.
+ * The retrieval webapp never writes summary files into the stores; it reads the summary files written by the other webapps and keeps the summaries it computes in memory.
+ * @author mshankar
+ *
+ */
+public class PBPartitionSummaries {
+	private static final Logger logger = Logger.getLogger(PBPartitionSummaries.class);
+	private static final String PROPERTY_PREFIX = "edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries.";
+	public static final String SUMMARY_EXTENSION = ".pbsummary";
+	private static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private final Cache<String, CachedSummary> cache;
+	private final boolean writeSummaryFiles;
+
+	private final AtomicLong memoryHits = new AtomicLong(0);
+	private final AtomicLong summaryFileHits = new AtomicLong(0);
+	private final AtomicLong summariesComputed = new AtomicLong(0);
+	private final AtomicLong summaryFilesWritten = new AtomicLong(0);
+	private final AtomicLong staleSummaryFiles = new AtomicLong(0);
+	private final AtomicLong summaryFileFailures = new AtomicLong(0);
+
+	/**
+	 * The summary together with the attributes of the partition when the summary was computed.
+	 */
+	private static class CachedSummary {
+		final long size;
+		final long lastModifiedMillis;
+		final PartitionSummary summary;
+
+		CachedSummary(long size, long lastModifiedMillis, PartitionSummary summary) {
+			this.size = size;
+			this.lastModifiedMillis = lastModifiedMillis;
+			this.summary = summary;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return this.size == attrs.size() && this.lastModifiedMillis == attrs.lastModifiedTime().toMillis();
+		}
+	}
+
+	/**
+	 * Create the summaries for a webapp based on the installation properties; this is called by the config service.
+	 * @param installationProperties
+	 * @param warFile - The retrieval webapp does not write summary files.
+	 * @return null if summaries are turned off.
+	 */
+	public static PBPartitionSummaries fromProperties(Properties installationProperties, WAR_FILE warFile) {
+		if(!Boolean.parseBoolean(installationProperties.getProperty(PROPERTY_PREFIX + "enabled", "true"))) {
+			logger.info("Partition summaries are turned off");
+			return null;
+		}
+		boolean writeSummaryFiles = Boolean.parseBoolean(installationProperties.getProperty(PROPERTY_PREFIX + "writeSummaryFiles", "false"));
+		if(writeSummaryFiles && warFile == WAR_FILE.RETRIEVAL) {
+			logger.info("The retrieval webapp does not write summary files into the stores; keeping the partition summaries in memory only");
+			writeSummaryFiles = false;
+		}
+		int maxEntries = Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "maxEntries", Integer.toString(DEFAULT_MAX_ENTRIES)));
+		logger.info("Partition summaries for " + warFile + " with " + maxEntries + " entries in memory" + (writeSummaryFiles ? " and summary files" : ""));
+		return new PBPartitionSummaries(maxEntries, writeSummaryFiles);
+	}
+
+	PBPartitionSummaries(int maxEntries, boolean writeSummaryFiles) {
+		this.cache = CacheBuilder.newBuilder().maximumSize(Math.max(0, maxEntries)).build();
+		this.writeSummaryFiles = writeSummaryFiles;
+	}
+
+	boolean isWriteSummaryFiles() {
+		return writeSummaryFiles;
+	}
+
+	/**
+	 * Get the summary of all the events in this partition.
+	 * @param pvName
+	 * @param path - The partition
+	 * @param type - The type of the PV
+	 * @return The summary; null if we do not summarize this partition.
+	 * @throws IOException
+	 */
+	public PartitionSummary getSummary(String pvName, Path path, ArchDBRTypes type) throws IOException {
+		if(!PartitionSummary.isSummarizable(type) || path.getFileSystem() != FileSystems.getDefault()) {
+			return null;
+		}
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		if(System.currentTimeMillis() - attrs.lastModifiedTime().toMillis() < PlainPBPartitionCatalog.RACY_INTERVAL_MILLIS) {
+			logger.debug("Partition " + path + " has been modified recently; not summarizing it");
+			return null;
+		}
+		String key = getKey(path);
+		CachedSummary cachedSummary = cache.getIfPresent(key);
+		if(cachedSummary != null && cachedSummary.matches(attrs)) {
+			memoryHits.incrementAndGet();
+			return cachedSummary.summary;
+		}
+
+		Path summaryPath = getSummaryPath(path);
+		cachedSummary = readSummaryFile(summaryPath);
+		if(cachedSummary != null) {
+			if(cachedSummary.matches(attrs)) {
+				summaryFileHits.incrementAndGet();
+				cache.put(key, cachedSummary);
+				return cachedSummary.summary;
+			}
+			logger.debug("Summary file " + summaryPath + " is out of date");
+			staleSummaryFiles.incrementAndGet();
+		}
+
+		PartitionSummary summary = new PartitionSummary();
+		try(FileBackedPBEventStream strm = new FileBackedPBEventStream(pvName, path, type)) {
+			Iterator<Event> it = strm.iterator();
+			if(it == null) {
+				// The stream has already logged the reason; the caller will go thru the events and run into the same issue.
+				return null;
+			}
+			while(it.hasNext()) {
+				summary.addEvent((DBRTimeEvent) it.next());
+			}
+		}
+		summariesComputed.incrementAndGet();
+		BasicFileAttributes attrsAfter = Files.readAttributes(path, BasicFileAttributes.class);
+		if(attrsAfter.size() != attrs.size() || !attrsAfter.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+			logger.debug("Partition " + path + " changed while we were summarizing it");
+			return null;
+		}
+		cachedSummary = new CachedSummary(attrs.size(), attrs.lastModifiedTime().toMillis(), summary);
+		cache.put(key, cachedSummary);
+		if(writeSummaryFiles) {
+			writeSummaryFile(summaryPath, cachedSummary);
+		}
+		return summary;
+	}
+
+	/**
+	 * Called when a partition is deleted; we delete the summary file as well.
+	 * The summary file is deleted even if summaries are turned off in this webapp as the other webapps may have written one.
+	 * @param configService
+	 * @param path
+	 */
+	public static void partitionDeleted(ConfigService configService, Path path) {
+		if(path.getFileSystem() != FileSystems.getDefault()) return;
+		PBPartitionSummaries partitionSummaries = (configService != null) ? configService.getPartitionSummaries() : null;
+		if(partitionSummaries != null) {
+			partitionSummaries.cache.invalidate(getKey(path));
+		}
+		try {
+			Files.deleteIfExists(getSummaryPath(path));
+		} catch(IOException ex) {
+			logger.warn("Exception deleting the summary file for " + path, ex);
+		}
+	}
+
+	public Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		ret.put("cachedSummaries", Long.toString(cache.size()));
+		ret.put("memoryHits", Long.toString(memoryHits.get()));
+		ret.put("summaryFileHits", Long.toString(summaryFileHits.get()));
+		ret.put("summariesComputed", Long.toString(summariesComputed.get()));
+		ret.put("summaryFilesWritten", Long.toString(summaryFilesWritten.get()));
+		ret.put("staleSummaryFiles", Long.toString(staleSummaryFiles.get()));
+		ret.put("summaryFileFailures", Long.toString(summaryFileFailures.get()));
+		return ret;
+	}
+
+	/**
+	 * Tools that go thru all the files in a folder should skip the summary files.
+	 * @param path
+	 * @return true if this is a summary file.
+	 */
+	public static boolean isSummaryFile(Path path) {
+		return path.getFileName().toString().endsWith(SUMMARY_EXTENSION);
+	}
+
+	static Path getSummaryPath(Path path) {
+		String fileName = path.getFileName().toString();
+		if(fileName.endsWith(PlainPBStoragePlugin.PB_EXTENSION)) {
+			fileName = fileName.substring(0, fileName.length() - PlainPBStoragePlugin.PB_EXTENSION.length());
+		}
+		return path.resolveSibling(fileName + SUMMARY_EXTENSION);
+	}
+
+	private CachedSummary readSummaryFile(Path summaryPath) {
+		if(!Files.exists(summaryPath)) return null;
+		try(Reader in = Files.newBufferedReader(summaryPath, StandardCharsets.UTF_8)) {
+			JSONObject root = (JSONObject) JSONValue.parse(in);
+			if(root == null) return null;
+			PartitionSummary summary = PartitionSummary.fromJSON((JSONObject) root.get("summary"));
+			if(summary == null) return null;
+			return new CachedSummary(((Number) root.get("partitionSize")).longValue(), ((Number) root.get("partitionLastModified")).longValue(), summary);
+		} catch(Exception ex) {
+			logger.warn("Exception reading summary file " + summaryPath + "; we'll compute the summary again", ex);
+			summaryFileFailures.incrementAndGet();
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void writeSummaryFile(Path summaryPath, CachedSummary cachedSummary) {
+		Path tmpFile = null;
+		try {
+			JSONObject root = new JSONObject();
+			root.put("partitionSize", cachedSummary.size);
+			root.put("partitionLastModified", cachedSummary.lastModifiedMillis);
+			root.put("summary", cachedSummary.summary.toJSON());
+			tmpFile = Files.createTempFile(summaryPath.getParent(), summaryPath.getFileName().toString(), ".tmp");
+			try(Writer out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+				root.writeJSONString(out);
+			}
+			Files.move(tmpFile, summaryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmpFile = null;
+			summaryFilesWritten.incrementAndGet();
+		} catch(IOException ex) {
+			// For example, the store is read only for this process.
+			logger.debug("Exception writing summary file " + summaryPath, ex);
+			summaryFileFailures.incrementAndGet();
+		} finally {
+			if(tmpFile != null) {
+				try { Files.deleteIfExists(tmpFile); } catch(IOException ex) { }
+			}
+		}
+	}
+
+	private static String getKey(Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+}
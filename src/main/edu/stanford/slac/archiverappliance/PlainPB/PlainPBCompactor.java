@@ -0,0 +1,705 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.etl.ETLDest;
+import org.epics.archiverappliance.etl.ETLSource;
+import org.epics.archiverappliance.etl.common.ETLPVLookupItems;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBPathNameUtility.StartEndTimeFromName;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin.CompressionMode;
+
+/**
+ * Merges the small partitions of a PV into partitions of a coarser granularity in the background.
+ * PVs that were paused, disconnected for a long time or whose partition granularity was changed end up with many small partitions; each of these costs a directory entry and a file open on retrieval.
+ * <ul>
+ * <li>Only the stores named in <code>stores</code> are compacted and only if the store is the last store for the PV (that is, ETL moves data into this store but not out of it) and is not compressed.</li>
+ * <li>A PV is compacted if it has more than <code>maxPartitionsPerPV</code> partitions or at least <code>minSmallPartitions</code> partitions that are smaller than <code>smallPartitionKB</code>.</li>
+ * <li>We merge all the partitions in a year (or month, day or hour; whichever is the coarsest granularity that keeps the result under <code>targetPartitionMB</code>) into one partition with the name for that coarser granularity.
+ * The store reads partitions that are coarser than its own granularity; so retrieval sees the same data before and after.
+ * Only periods that ended more than <code>minAgeDays</code> ago and partitions that have not been modified in the last hour are compacted; so we do not get in the way of ETL.</li>
+ * <li>The merged partition is written to a temporary file and synced; we then check that the partitions have not changed in the meantime, record an intent with the list of partitions that it replaces and move the merged partition into place.
+ * A retrieval that listed the folder before the move still reads the partitions that were replaced; so these are deleted only after <code>deleteAfterMinutes</code>.
+ * Till then, readers that see the merged partition skip the partitions it replaces (see {@link #getSupersededPartitionNames}).
+ * If we crash in between, the intent is used to finish the compaction (or to discard the temporary file) when we next look at the PV.</li>
+ * <li>Data that arrives for a period after it has been compacted goes into a partition of the store's granularity that overlaps the merged partition; the PV is compacted again to fold this in.</li>
+ * <li>The I/O is rate limited to <code>MBPerSecond</code>.</li>
+ * </ul>
+ *
+ * These can be configured in archappl.properties using the prefix <code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor.</code>; compaction is turned off if <code>stores</code> is empty.
+ *
+ * @author mshankar
+ *
+ */
+public class PlainPBCompactor {
+	private static final Logger logger = Logger.getLogger(PlainPBCompactor.class);
+	public static final String STORES_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor.stores";
+	public static final String MAX_PARTITIONS_PER_PV_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor.maxPartitionsPerPV";
+	public static final String SMALL_PARTITION_KB_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor.smallPartitionKB";
+	public static final String MIN_SMALL_PARTITIONS_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor.minSmallPartitions";
+	public static final String TARGET_PARTITION_MB_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor.targetPartitionMB";
+	public static final String MIN_AGE_DAYS_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor.minAgeDays";
+	public static final String MB_PER_SECOND_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor.MBPerSecond";
+	public static final String INTERVAL_HOURS_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor.intervalHours";
+	public static final String DELETE_AFTER_MINUTES_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor.deleteAfterMinutes";
+	/**
+	 * The merged partition is written to a file with this extension before it is moved into place.
+	 */
+	static final String TEMP_EXTENSION = PlainPBStoragePlugin.PB_EXTENSION + "_compacting";
+	/**
+	 * The list of partitions that a merged partition replaces.
+	 */
+	static final String INTENT_EXTENSION = ".pbcompact";
+	/**
+	 * Partitions that have been modified within this interval are probably still being written to.
+	 */
+	private static final long COLD_AFTER_MILLIS = 60*60*1000L;
+	private static final PartitionGranularity[] TARGET_GRANULARITIES = new PartitionGranularity[] { PartitionGranularity.PARTITION_YEAR, PartitionGranularity.PARTITION_MONTH, PartitionGranularity.PARTITION_DAY, PartitionGranularity.PARTITION_HOUR };
+
+	private static PlainPBCompactor compactor = null;
+	private static ScheduledExecutorService compactionExecutor = null;
+
+	private final Set<String> storeNames;
+	private final int maxPartitionsPerPV;
+	private final long smallPartitionBytes;
+	private final int minSmallPartitions;
+	private final long targetPartitionBytes;
+	private final long minAgeSeconds;
+	private final RateLimiter rateLimiter;
+	private final long deleteAfterMillis;
+	private long lastPassStartedMillis = -1;
+	private long lastPassCompletedMillis = -1;
+
+	private AtomicLong passes = new AtomicLong(0);
+	private AtomicLong pvsExamined = new AtomicLong(0);
+	private AtomicLong pvsCompacted = new AtomicLong(0);
+	private AtomicLong groupsCompacted = new AtomicLong(0);
+	private AtomicLong partitionsRemoved = new AtomicLong(0);
+	private AtomicLong bytesCompacted = new AtomicLong(0);
+	private AtomicLong groupsAbandoned = new AtomicLong(0);
+	private AtomicLong recoveries = new AtomicLong(0);
+	private AtomicLong failures = new AtomicLong(0);
+
+	/**
+	 * Start compacting in the background if any stores are configured for compaction; this does nothing if we have already started.
+	 * @param configService
+	 */
+	public static synchronized void startCompaction(final ConfigService configService) {
+		if(compactor != null) return;
+		Set<String> storeNames = new HashSet<String>();
+		for(String storeName : configService.getInstallationProperties().getProperty(STORES_PROPERTY, "").split(",")) {
+			if(!storeName.trim().isEmpty()) storeNames.add(storeName.trim());
+		}
+		if(storeNames.isEmpty()) {
+			logger.debug("Compaction of PlainPB partitions is turned off");
+			return;
+		}
+		int maxPartitionsPerPV = Integer.parseInt(configService.getInstallationProperties().getProperty(MAX_PARTITIONS_PER_PV_PROPERTY, "500"));
+		long smallPartitionKB = Long.parseLong(configService.getInstallationProperties().getProperty(SMALL_PARTITION_KB_PROPERTY, "64"));
+		int minSmallPartitions = Integer.parseInt(configService.getInstallationProperties().getProperty(MIN_SMALL_PARTITIONS_PROPERTY, "50"));
+		long targetPartitionMB = Long.parseLong(configService.getInstallationProperties().getProperty(TARGET_PARTITION_MB_PROPERTY, "256"));
+		long minAgeDays = Long.parseLong(configService.getInstallationProperties().getProperty(MIN_AGE_DAYS_PROPERTY, "30"));
+		long mbPerSecond = Long.parseLong(configService.getInstallationProperties().getProperty(MB_PER_SECOND_PROPERTY, "10"));
+		long intervalHours = Long.parseLong(configService.getInstallationProperties().getProperty(INTERVAL_HOURS_PROPERTY, "24"));
+		long deleteAfterMinutes = Long.parseLong(configService.getInstallationProperties().getProperty(DELETE_AFTER_MINUTES_PROPERTY, "60"));
+		compactor = new PlainPBCompactor(storeNames, maxPartitionsPerPV, smallPartitionKB*1024, minSmallPartitions, targetPartitionMB*1024*1024, minAgeDays*24*60*60, mbPerSecond*1024*1024, deleteAfterMinutes*60*1000);
+		logger.info("Compacting the partitions in " + storeNames + " at " + mbPerSecond + " MB/s every " + intervalHours + " hours");
+
+		compactionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PB compaction");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compactor.compactionPass(configService);
+				} catch(InterruptedException ex) {
+					logger.info("Compaction interrupted");
+				} catch(Throwable t) {
+					logger.error("Exception compacting partitions", t);
+				}
+			}
+		}, 1, intervalHours, TimeUnit.HOURS);
+
+		configService.addShutdownHook(new Runnable() {
+			@Override
+			public void run() {
+				logger.info("Shutting down the compaction of PlainPB partitions");
+				compactionExecutor.shutdownNow();
+			}
+		});
+	}
+
+	/**
+	 * @return The compactor for this process; null if compaction is turned off.
+	 */
+	public static synchronized PlainPBCompactor getCompactor() {
+		return compactor;
+	}
+
+	PlainPBCompactor(Set<String> storeNames, int maxPartitionsPerPV, long smallPartitionBytes, int minSmallPartitions, long targetPartitionBytes, long minAgeSeconds, long bytesPerSecond, long deleteAfterMillis) {
+		this.storeNames = storeNames;
+		this.maxPartitionsPerPV = maxPartitionsPerPV;
+		this.smallPartitionBytes = smallPartitionBytes;
+		this.minSmallPartitions = minSmallPartitions;
+		this.targetPartitionBytes = targetPartitionBytes;
+		this.minAgeSeconds = minAgeSeconds;
+		this.rateLimiter = (bytesPerSecond > 0) ? RateLimiter.create(bytesPerSecond) : null;
+		this.deleteAfterMillis = deleteAfterMillis;
+	}
+
+	/**
+	 * Look at all the PVs in this appliance and compact the ones that need it.
+	 * @param configService
+	 * @throws InterruptedException
+	 */
+	void compactionPass(ConfigService configService) throws InterruptedException {
+		lastPassStartedMillis = System.currentTimeMillis();
+		passes.incrementAndGet();
+		for(String pvName : configService.getPVsForThisAppliance()) {
+			if(Thread.currentThread().isInterrupted()) throw new InterruptedException();
+			LinkedList<ETLPVLookupItems> lookupItems = configService.getETLLookup().getLookupItemsForPV(pvName);
+			for(PlainPBStoragePlugin storagePlugin : getStoresToCompact(lookupItems)) {
+				try {
+					compactPV(pvName, storagePlugin);
+				} catch(IOException ex) {
+					failures.incrementAndGet();
+					logger.error("Exception compacting " + pvName + " in " + storagePlugin.getName(), ex);
+				}
+			}
+		}
+		lastPassCompletedMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * The stores that we should compact for a PV; these are the stores we are configured to compact that ETL moves data into but not out of.
+	 * @param lookupItems
+	 * @return
+	 */
+	private List<PlainPBStoragePlugin> getStoresToCompact(List<ETLPVLookupItems> lookupItems) {
+		LinkedList<PlainPBStoragePlugin> ret = new LinkedList<PlainPBStoragePlugin>();
+		HashSet<String> etlSources = new HashSet<String>();
+		for(ETLPVLookupItems lookupItem : lookupItems) {
+			ETLSource etlSource = lookupItem.getETLSource();
+			if(etlSource instanceof PlainPBStoragePlugin) etlSources.add(((PlainPBStoragePlugin) etlSource).getName());
+		}
+		for(ETLPVLookupItems lookupItem : lookupItems) {
+			ETLDest etlDest = lookupItem.getETLDest();
+			if(!(etlDest instanceof PlainPBStoragePlugin)) continue;
+			PlainPBStoragePlugin storagePlugin = (PlainPBStoragePlugin) etlDest;
+			if(storeNames.contains(storagePlugin.getName()) && !etlSources.contains(storagePlugin.getName()) && storagePlugin.getCompressionMode() == CompressionMode.NONE) {
+				ret.add(storagePlugin);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * A partition and what we knew about it when we decided to compact it.
+	 */
+	private static class Partition {
+		Path path;
+		StartEndTimeFromName times;
+		long size;
+		long lastModifiedMillis;
+	}
+
+	/**
+	 * Compact the partitions of this PV in this store if needed.
+	 * @param pvName
+	 * @param storagePlugin
+	 * @return The number of merged partitions that we created.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	int compactPV(String pvName, PlainPBStoragePlugin storagePlugin) throws IOException, InterruptedException {
+		pvsExamined.incrementAndGet();
+		try(ArchPaths archPaths = new ArchPaths()) {
+			if(recoverPV(pvName, storagePlugin, archPaths) > 0) {
+				// We have not yet deleted the partitions replaced by an earlier compaction; merging again now could lose track of these.
+				return 0;
+			}
+
+			PartitionGranularity storeGranularity = storagePlugin.getPartitionGranularity();
+			Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(archPaths, storagePlugin.getRootFolder(), pvName, PlainPBStoragePlugin.PB_EXTENSION, storeGranularity, CompressionMode.NONE, storagePlugin.getPVNameToKeyMapping());
+			LinkedList<Partition> partitions = new LinkedList<Partition>();
+			ArrayList<Partition> mergedEarlier = new ArrayList<Partition>();
+			int smallPartitions = 0;
+			for(Path path : paths) {
+				Partition partition = new Partition();
+				partition.path = path;
+				try {
+					partition.times = PlainPBPathNameUtility.determineTimesFromFileName(pvName, path.getFileName().toString(), storeGranularity, storagePlugin.getPVNameToKeyMapping());
+					BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+					partition.size = attrs.size();
+					partition.lastModifiedMillis = attrs.lastModifiedTime().toMillis();
+				} catch(NoSuchFileException ex) {
+					continue;
+				} catch(Exception ex) {
+					// The file pattern for a PV also matches other PVs whose names start with this PV's name.
+					logger.debug("Skipping " + path + " when compacting " + pvName, ex);
+					continue;
+				}
+				if(partition.size < smallPartitionBytes) smallPartitions++;
+				if(partition.times.chunkGranularity != storeGranularity) mergedEarlier.add(partition);
+				partitions.add(partition);
+			}
+			if(partitions.size() <= maxPartitionsPerPV && smallPartitions < minSmallPartitions && !hasLatePartitions(partitions, mergedEarlier)) {
+				return 0;
+			}
+
+			int mergedPartitions = 0;
+			long nowEpochSeconds = System.currentTimeMillis()/1000;
+			long nowMillis = System.currentTimeMillis();
+			for(PartitionGranularity targetGranularity : TARGET_GRANULARITIES) {
+				if(!storeGranularity.isSmallerThan(targetGranularity)) continue;
+				TreeMap<String, List<Partition>> groups = new TreeMap<String, List<Partition>>();
+				for(Partition partition : partitions) {
+					if(targetGranularity.isSmallerThan(partition.times.chunkGranularity)) continue;
+					String periodName = TimeUtils.getPartitionName(partition.times.chunkStartEpochSeconds, targetGranularity);
+					List<Partition> group = groups.get(periodName);
+					if(group == null) {
+						group = new ArrayList<Partition>();
+						groups.put(periodName, group);
+					}
+					group.add(partition);
+				}
+				for(List<Partition> group : groups.values()) {
+					if(Thread.currentThread().isInterrupted()) throw new InterruptedException();
+					if(!isGroupEligible(group, targetGranularity, nowEpochSeconds, nowMillis)) continue;
+					if(compactGroup(pvName, storagePlugin, archPaths, targetGranularity, group)) mergedPartitions++;
+					// Whether we merged these or not, we do not consider these partitions for the finer granularities.
+					partitions.removeAll(group);
+				}
+			}
+			if(mergedPartitions > 0) pvsCompacted.incrementAndGet();
+			return mergedPartitions;
+		}
+	}
+
+	/**
+	 * Do we have partitions that were written after we merged the period they belong to?
+	 */
+	private static boolean hasLatePartitions(List<Partition> partitions, List<Partition> mergedEarlier) {
+		for(Partition merged : mergedEarlier) {
+			for(Partition partition : partitions) {
+				if(partition != merged
+						&& partition.times.chunkGranularity.isSmallerThan(merged.times.chunkGranularity)
+						&& partition.times.chunkStartEpochSeconds >= merged.times.chunkStartEpochSeconds
+						&& partition.times.chunkEndEpochSeconds <= merged.times.chunkEndEpochSeconds) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean isGroupEligible(List<Partition> group, PartitionGranularity targetGranularity, long nowEpochSeconds, long nowMillis) {
+		if(group.size() < 2) return false;
+		long periodEndEpochSeconds = TimeUtils.getNextPartitionFirstSecond(group.get(0).times.chunkStartEpochSeconds, targetGranularity);
+		if(periodEndEpochSeconds > nowEpochSeconds - minAgeSeconds) return false;
+		long totalSize = 0;
+		for(Partition partition : group) {
+			if(partition.lastModifiedMillis > nowMillis - COLD_AFTER_MILLIS) return false;
+			totalSize += partition.size;
+		}
+		return totalSize <= targetPartitionBytes;
+	}
+
+	/**
+	 * Merge these partitions into one partition of the target granularity.
+	 * @return true if we merged the partitions; false if we abandoned the merge because the partitions changed while we were merging them.
+	 */
+	private boolean compactGroup(String pvName, PlainPBStoragePlugin storagePlugin, ArchPaths archPaths, PartitionGranularity targetGranularity, List<Partition> group) throws IOException, InterruptedException {
+		long periodStartEpochSeconds = group.get(0).times.chunkStartEpochSeconds;
+		Path targetPath = PlainPBPathNameUtility.getFileName(storagePlugin.getRootFolder(), pvName, periodStartEpochSeconds, PlainPBStoragePlugin.PB_EXTENSION, targetGranularity, false, archPaths, CompressionMode.NONE, storagePlugin.getPVNameToKeyMapping());
+		Path tempPath = PlainPBPathNameUtility.getFileName(storagePlugin.getRootFolder(), pvName, periodStartEpochSeconds, TEMP_EXTENSION, targetGranularity, false, archPaths, CompressionMode.NONE, storagePlugin.getPVNameToKeyMapping());
+		Path intentPath = PlainPBPathNameUtility.getFileName(storagePlugin.getRootFolder(), pvName, periodStartEpochSeconds, INTENT_EXTENSION, targetGranularity, false, archPaths, CompressionMode.NONE, storagePlugin.getPVNameToKeyMapping());
+		logger.debug("Compacting " + group.size() + " partitions of " + pvName + " into " + targetPath);
+
+		long totalSize = 0;
+		for(Partition partition : group) {
+			totalSize += partition.size;
+		}
+		boolean published = false;
+		try {
+			if(rateLimiter != null) {
+				// The rate limiter takes an int; so we acquire large sizes in chunks.
+				for(long remaining = totalSize; remaining > 0; remaining -= Integer.MAX_VALUE) {
+					rateLimiter.acquire((int) Math.min(remaining, Integer.MAX_VALUE));
+				}
+			}
+			mergePartitions(pvName, group, tempPath);
+
+			// Make sure the partitions did not change while we were merging them.
+			for(Partition partition : group) {
+				BasicFileAttributes attrs = Files.readAttributes(partition.path, BasicFileAttributes.class);
+				if(attrs.size() != partition.size || attrs.lastModifiedTime().toMillis() != partition.lastModifiedMillis) {
+					logger.info("Abandoning the compaction of " + targetPath + " as " + partition.path + " changed while we were merging it");
+					groupsAbandoned.incrementAndGet();
+					return false;
+				}
+			}
+
+			writeIntent(intentPath, targetPath, group);
+			PBBlockChecksums.partitionWritten(tempPath, 0);
+			Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			published = true;
+			storagePlugin.partitionMoved(tempPath, targetPath);
+			deletePostProcessorCaches(storagePlugin, targetPath);
+
+			if(deleteAfterMillis <= 0) {
+				deleteReplacedPartitions(pvName, storagePlugin, intentPath, targetPath.getFileName().toString(), Long.MAX_VALUE);
+			} else {
+				scheduleDeletion(pvName, storagePlugin);
+			}
+			groupsCompacted.incrementAndGet();
+			bytesCompacted.addAndGet(totalSize);
+			return true;
+		} catch(NoSuchFileException ex) {
+			// ETL (or something else) deleted one of the partitions; we'll look at this PV again in the next pass.
+			logger.info("Abandoning the compaction of " + targetPath + " as a partition was deleted", ex);
+			groupsAbandoned.incrementAndGet();
+			return false;
+		} finally {
+			if(!published) {
+				Files.deleteIfExists(tempPath);
+				Files.deleteIfExists(intentPath);
+			}
+			invalidateCaches(pvName, storagePlugin);
+		}
+	}
+
+	private static void invalidateCaches(String pvName, PlainPBStoragePlugin storagePlugin) {
+		PlainPBPartitionCatalog catalog = storagePlugin.getPartitionCatalog();
+		if(catalog != null) catalog.invalidate(pvName);
+		PlainPBStorageAccounting accounting = storagePlugin.getStorageAccounting();
+		if(accounting != null) accounting.invalidate(pvName);
+		PlainPBLastKnownEventIndex lastKnownEventIndex = storagePlugin.getLastKnownEventIndex();
+		if(lastKnownEventIndex != null) lastKnownEventIndex.invalidate(pvName);
+	}
+
+	/**
+	 * A partition being merged; we keep the current event of each partition and advance a partition only after we have written its current event.
+	 */
+	private static class MergeCursor implements Comparable<MergeCursor> {
+		final int order;
+		final FileBackedPBEventStream strm;
+		final Iterator<Event> it;
+		Event current;
+
+		MergeCursor(int order, FileBackedPBEventStream strm) {
+			this.order = order;
+			this.strm = strm;
+			this.it = strm.iterator();
+		}
+
+		boolean advance() {
+			current = it.hasNext() ? it.next() : null;
+			return current != null;
+		}
+
+		@Override
+		public int compareTo(MergeCursor other) {
+			int cmp = current.getEventTimeStamp().compareTo(other.current.getEventTimeStamp());
+			return (cmp != 0) ? cmp : Integer.compare(order, other.order);
+		}
+	}
+
+	/**
+	 * Merge the events in these partitions by time into the temporary file, dropping duplicates.
+	 * The partitions usually do not overlap; so we open a partition only when the merge reaches the start of its chunk.
+	 */
+	private static void mergePartitions(String pvName, List<Partition> group, Path tempPath) throws IOException {
+		ArrayList<Partition> sortedGroup = new ArrayList<Partition>(group);
+		Collections.sort(sortedGroup, new Comparator<Partition>() {
+			@Override
+			public int compare(Partition o1, Partition o2) {
+				return Long.compare(o1.times.chunkStartEpochSeconds, o2.times.chunkStartEpochSeconds);
+			}
+		});
+		PBFileInfo firstInfo = new PBFileInfo(sortedGroup.get(0).path, false);
+		PriorityQueue<MergeCursor> active = new PriorityQueue<MergeCursor>();
+		int nextPartition = 0;
+		try(OutputStream os = new BufferedOutputStream(Files.newOutputStream(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+			os.write(LineEscaper.escapeNewLines(firstInfo.getInfo().toByteArray()));
+			os.write(LineEscaper.NEWLINE_CHAR);
+			Timestamp lastTimestamp = null;
+			while(true) {
+				while(nextPartition < sortedGroup.size() && (active.isEmpty() || sortedGroup.get(nextPartition).times.chunkStartEpochSeconds <= active.peek().current.getEpochSeconds())) {
+					Partition partition = sortedGroup.get(nextPartition);
+					PBFileInfo info = new PBFileInfo(partition.path, false);
+					if(info.getType() != firstInfo.getType() || info.getDataYear() != firstInfo.getDataYear()) {
+						throw new IOException("Cannot merge " + partition.path + " with " + sortedGroup.get(0).path + " as they have a different type or year");
+					}
+					MergeCursor cursor = new MergeCursor(nextPartition, new FileBackedPBEventStream(pvName, partition.path, info.getType()));
+					if(cursor.advance()) {
+						active.add(cursor);
+					} else {
+						cursor.strm.close();
+					}
+					nextPartition++;
+				}
+				MergeCursor cursor = active.poll();
+				if(cursor == null) break;
+				Timestamp ts = cursor.current.getEventTimeStamp();
+				if(lastTimestamp == null || ts.after(lastTimestamp)) {
+					ByteArray val = cursor.current.getRawForm();
+					os.write(val.data, val.off, val.len);
+					os.write(LineEscaper.NEWLINE_CHAR);
+					lastTimestamp = ts;
+				}
+				if(cursor.advance()) {
+					active.add(cursor);
+				} else {
+					cursor.strm.close();
+				}
+			}
+		} finally {
+			for(MergeCursor cursor : active) {
+				try { cursor.strm.close(); } catch(Throwable t) { }
+			}
+		}
+		try(FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * The intent has the name of the merged partition on the first line followed by the names of the partitions it replaces; these are all in the same folder.
+	 */
+	private static void writeIntent(Path intentPath, Path targetPath, List<Partition> group) throws IOException {
+		StringBuilder buf = new StringBuilder();
+		buf.append(targetPath.getFileName().toString()).append("\n");
+		for(Partition partition : group) {
+			buf.append(partition.path.getFileName().toString()).append("\n");
+		}
+		Path tempIntentPath = intentPath.resolveSibling(intentPath.getFileName().toString() + "_tmp");
+		try(FileChannel channel = FileChannel.open(tempIntentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.write(ByteBuffer.wrap(buf.toString().getBytes(StandardCharsets.UTF_8)));
+			channel.force(true);
+		}
+		Files.move(tempIntentPath, intentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Finish or discard any compactions of this PV that were interrupted by a crash; and delete the partitions replaced by earlier compactions once <code>deleteAfterMinutes</code> have passed.
+	 * If the temporary file is still around, the merged partition was not moved into place and we discard it; otherwise, we delete the partitions it replaces.
+	 * @return The number of compactions whose replaced partitions we have not yet deleted.
+	 */
+	private int recoverPV(String pvName, PlainPBStoragePlugin storagePlugin, ArchPaths archPaths) throws IOException {
+		PartitionGranularity storeGranularity = storagePlugin.getPartitionGranularity();
+		Path[] intentPaths = PlainPBPathNameUtility.getAllPathsForPV(archPaths, storagePlugin.getRootFolder(), pvName, INTENT_EXTENSION, storeGranularity, CompressionMode.NONE, storagePlugin.getPVNameToKeyMapping());
+		HashSet<String> pendingTempFiles = new HashSet<String>();
+		int pendingDeletes = 0;
+		for(Path intentPath : intentPaths) {
+			List<String> lines = Files.readAllLines(intentPath, StandardCharsets.UTF_8);
+			if(lines.isEmpty() || !isPartitionOfPV(pvName, lines.get(0), storagePlugin)) continue;
+			String targetName = lines.get(0);
+			Path targetPath = intentPath.resolveSibling(targetName);
+			Path tempPath = intentPath.resolveSibling(targetName.substring(0, targetName.length() - PlainPBStoragePlugin.PB_EXTENSION.length()) + TEMP_EXTENSION);
+			pendingTempFiles.add(tempPath.getFileName().toString());
+			if(Files.exists(tempPath)) {
+				logger.info("Discarding the interrupted compaction of " + targetPath);
+				Files.delete(tempPath);
+				PBBlockChecksums.partitionDeleted(tempPath);
+				Files.delete(intentPath);
+				recoveries.incrementAndGet();
+			} else {
+				long intentModifiedMillis = Files.getLastModifiedTime(intentPath).toMillis();
+				if(intentModifiedMillis > System.currentTimeMillis() - deleteAfterMillis) {
+					pendingDeletes++;
+					continue;
+				}
+				logger.debug("Deleting the partitions replaced by " + targetPath);
+				deleteReplacedPartitions(pvName, storagePlugin, intentPath, targetName, intentModifiedMillis);
+			}
+			invalidateCaches(pvName, storagePlugin);
+		}
+
+		// Temporary files without an intent are from merges that crashed before the intent was written.
+		for(Path tempPath : PlainPBPathNameUtility.getAllPathsForPV(archPaths, storagePlugin.getRootFolder(), pvName, TEMP_EXTENSION, storeGranularity, CompressionMode.NONE, storagePlugin.getPVNameToKeyMapping())) {
+			String tempName = tempPath.getFileName().toString();
+			if(pendingTempFiles.contains(tempName)) continue;
+			String partitionName = tempName.substring(0, tempName.length() - TEMP_EXTENSION.length()) + PlainPBStoragePlugin.PB_EXTENSION;
+			if(!isPartitionOfPV(pvName, partitionName, storagePlugin)) continue;
+			logger.info("Deleting the temporary file of an interrupted compaction " + tempPath);
+			Files.deleteIfExists(tempPath);
+			PBBlockChecksums.partitionDeleted(tempPath);
+			recoveries.incrementAndGet();
+		}
+		return pendingDeletes;
+	}
+
+	/**
+	 * Delete the partitions that were merged into the target partition and then the intent.
+	 * A partition that was modified after the intent was written has data that is not in the target partition; we leave this alone and the next compaction of the PV merges it in.
+	 */
+	private void deleteReplacedPartitions(String pvName, PlainPBStoragePlugin storagePlugin, Path intentPath, String targetName, long intentModifiedMillis) throws IOException {
+		List<String> lines = Files.readAllLines(intentPath, StandardCharsets.UTF_8);
+		for(String sourceName : lines.subList(1, lines.size())) {
+			if(sourceName.isEmpty() || sourceName.equals(targetName)) continue;
+			Path sourcePath = intentPath.resolveSibling(sourceName);
+			try {
+				if(Files.getLastModifiedTime(sourcePath).toMillis() > intentModifiedMillis) {
+					logger.warn("Not deleting " + sourcePath + " as it was modified after it was merged into " + targetName);
+					continue;
+				}
+			} catch(NoSuchFileException ex) {
+				continue;
+			}
+			deletePartition(pvName, storagePlugin, sourcePath);
+			partitionsRemoved.incrementAndGet();
+		}
+		Files.delete(intentPath);
+	}
+
+	/**
+	 * Delete the partitions replaced by a compaction of this PV once <code>deleteAfterMinutes</code> have passed; if this does not happen (for example, we are restarted), the next pass takes care of it.
+	 */
+	private void scheduleDeletion(final String pvName, final PlainPBStoragePlugin storagePlugin) {
+		ScheduledExecutorService executor;
+		synchronized(PlainPBCompactor.class) {
+			executor = compactionExecutor;
+		}
+		if(executor == null) return;
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try(ArchPaths archPaths = new ArchPaths()) {
+					recoverPV(pvName, storagePlugin, archPaths);
+				} catch(Throwable t) {
+					failures.incrementAndGet();
+					logger.error("Exception deleting the partitions replaced by the compaction of " + pvName + " in " + storagePlugin.getName(), t);
+				}
+			}
+		}, deleteAfterMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The partitions that this merged partition replaces and that we have not yet deleted; readers skip these.
+	 * This is empty unless the merged partition has been moved into place; before this, the partitions it replaces are the only copy of their data.
+	 * @param mergedPath - A partition (or a post processor cache for a partition) of a coarser granularity than the store.
+	 * @param extension - The extension of mergedPath; the names returned have the same extension.
+	 * @return The file names of the replaced partitions.
+	 */
+	static Set<String> getSupersededPartitionNames(Path mergedPath, String extension) {
+		HashSet<String> ret = new HashSet<String>();
+		String mergedName = mergedPath.getFileName().toString();
+		if(!mergedName.endsWith(extension)) return ret;
+		String baseName = mergedName.substring(0, mergedName.length() - extension.length());
+		Path intentPath = mergedPath.resolveSibling(baseName + INTENT_EXTENSION);
+		try {
+			if(!Files.exists(intentPath) || Files.exists(mergedPath.resolveSibling(baseName + TEMP_EXTENSION))) return ret;
+			List<String> lines = Files.readAllLines(intentPath, StandardCharsets.UTF_8);
+			for(String sourceName : lines.subList(Math.min(1, lines.size()), lines.size())) {
+				if(!sourceName.endsWith(PlainPBStoragePlugin.PB_EXTENSION)) continue;
+				String sourceBaseName = sourceName.substring(0, sourceName.length() - PlainPBStoragePlugin.PB_EXTENSION.length());
+				if(sourceBaseName.equals(baseName)) continue;
+				ret.add(sourceBaseName + extension);
+			}
+		} catch(NoSuchFileException ex) {
+			// The compactor deleted the intent (and the partitions it replaces) in the meantime.
+		} catch(IOException ex) {
+			logger.warn("Exception reading the compaction intent " + intentPath, ex);
+		}
+		return ret;
+	}
+
+	private static boolean isPartitionOfPV(String pvName, String partitionName, PlainPBStoragePlugin storagePlugin) {
+		try {
+			PlainPBPathNameUtility.determineTimesFromFileName(pvName, partitionName, storagePlugin.getPartitionGranularity(), storagePlugin.getPVNameToKeyMapping());
+			return true;
+		} catch(Exception ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Delete a partition that has been merged into a coarser partition, along with everything we keep about it.
+	 */
+	private static void deletePartition(String pvName, PlainPBStoragePlugin storagePlugin, Path path) throws IOException {
+		storagePlugin.partitionRemoved(pvName, path);
+		deletePostProcessorCaches(storagePlugin, path);
+	}
+
+	/**
+	 * The post processor caches for a partition are regenerated when needed; so we delete them when the partition changes.
+	 */
+	private static void deletePostProcessorCaches(PlainPBStoragePlugin storagePlugin, Path path) throws IOException {
+		String pathName = path.getFileName().toString();
+		String baseName = pathName.substring(0, pathName.length() - PlainPBStoragePlugin.PB_EXTENSION.length());
+		for(String ppExtension : storagePlugin.getPPExtensions()) {
+			Files.deleteIfExists(path.resolveSibling(baseName + ppExtension));
+		}
+	}
+
+	public Map<String, String> getMetrics() {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		ret.put("stores", storeNames.toString());
+		ret.put("passes", Long.toString(passes.get()));
+		ret.put("lastPassStarted", (lastPassStartedMillis > 0) ? TimeUtils.convertToHumanReadableString(lastPassStartedMillis/1000) : "Never");
+		ret.put("lastPassCompleted", (lastPassCompletedMillis > 0) ? TimeUtils.convertToHumanReadableString(lastPassCompletedMillis/1000) : "Never");
+		ret.put("pvsExamined", Long.toString(pvsExamined.get()));
+		ret.put("pvsCompacted", Long.toString(pvsCompacted.get()));
+		ret.put("mergedPartitionsCreated", Long.toString(groupsCompacted.get()));
+		ret.put("partitionsRemoved", Long.toString(partitionsRemoved.get()));
+		ret.put("bytesCompacted", Long.toString(bytesCompacted.get()));
+		ret.put("abandonedForChanges", Long.toString(groupsAbandoned.get()));
+		ret.put("recoveredAfterCrash", Long.toString(recoveries.get()));
+		ret.put("failures", Long.toString(failures.get()));
+		return ret;
+	}
+}
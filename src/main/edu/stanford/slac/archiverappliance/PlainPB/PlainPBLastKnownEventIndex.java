@@ -0,0 +1,385 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigService;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
+
+/**
+ * Per PV index of the last event in a PlainPB store.
+ * Without this, finding the last event of a PV lists the PV's partitions and reads the last line of the most recent partition; for PVs that change slowly (setpoints, status bits etc) we do this in every tier on every retrieval request.
+ * <ul>
+ * <li>The index is updated when this process appends to a PV's partitions (both engine writes and ETL writes go thru AppendDataStateData); ETL writes are recorded when the ETL append data is committed.
+ * Deletes, renames and conversions drop the PV; the next lookup re-establishes the entry from the partitions.</li>
+ * <li>Other processes (for example, the engine appending to the STS while retrieval reads from it) can change the store behind our back.
+ * So, each entry remembers the size of the partition containing the last event and the modification time of the PV's folder; we stat these before each use.
+ * If the partition has grown or partitions have been added or removed, we drop the entry.
+ * Because modification times may have coarse granularity, entries recorded within {@link PlainPBPartitionCatalog#RACY_INTERVAL_MILLIS} of the folder's modification time are not trusted; events written by this process are used once this interval has passed.</li>
+ * <li>If a persist folder is configured, the index is persisted periodically (and on shutdown) and loaded on startup; entries are validated before use so stale entries do no harm.
+ * Otherwise, the index is kept in memory only.</li>
+ * </ul>
+ * The index is shared across all the PlainPBStoragePlugin instances in this process that use the same root folder.
+ * This only applies to the uncompressed layout.
+ *
+ * These can be configured in archappl.properties
+ * <ul>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBLastKnownEventIndex.enabled</code> - Set this to false to always look for the last event in the PV's partitions.</li>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBLastKnownEventIndex.persistIntervalSeconds</code> - How often we persist the index.</li>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBLastKnownEventIndex.persistFolder</code> - The folder where we persist the index; there is no default and the index is not persisted unless this is set.</li>
+ * </ul>
+ *
+ * @author mshankar
+ *
+ */
+public class PlainPBLastKnownEventIndex {
+	private static final Logger logger = Logger.getLogger(PlainPBLastKnownEventIndex.class);
+
+	public static final String ENABLED_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBLastKnownEventIndex.enabled";
+	public static final String PERSIST_INTERVAL_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBLastKnownEventIndex.persistIntervalSeconds";
+	public static final String PERSIST_FOLDER_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBLastKnownEventIndex.persistFolder";
+
+	private static ConcurrentHashMap<String, PlainPBLastKnownEventIndex> indexes = new ConcurrentHashMap<String, PlainPBLastKnownEventIndex>();
+	private static ScheduledExecutorService persistExecutor = null;
+
+	/**
+	 * The last event of a PV together with what we need to validate it.
+	 */
+	static class LastKnownEvent {
+		final String partition;
+		final long partitionSize;
+		final long folderModifiedMillis;
+		final long recordedAtMillis;
+		final ArchDBRTypes dbrType;
+		final short year;
+		final byte[] rawEvent;
+
+		LastKnownEvent(String partition, long partitionSize, long folderModifiedMillis, long recordedAtMillis, ArchDBRTypes dbrType, short year, byte[] rawEvent) {
+			this.partition = partition;
+			this.partitionSize = partitionSize;
+			this.folderModifiedMillis = folderModifiedMillis;
+			this.recordedAtMillis = recordedAtMillis;
+			this.dbrType = dbrType;
+			this.year = year;
+			this.rawEvent = rawEvent;
+		}
+
+		Event makeEvent() throws IOException {
+			try {
+				return DBR2PBTypeMapping.getPBClassFor(dbrType).getUnmarshallingFromByteArrayConstructor().newInstance(year, new ByteArray(rawEvent));
+			} catch(Exception ex) {
+				throw new IOException("Exception unmarshalling the last known event from " + partition, ex);
+			}
+		}
+	}
+
+	private final String rootFolder;
+	private final Path persistFile;
+	private final long persistIntervalMillis;
+	private final ConcurrentHashMap<String, LastKnownEvent> lastKnownEvents = new ConcurrentHashMap<String, LastKnownEvent>();
+	private long lastPersistedMillis = System.currentTimeMillis();
+	private volatile boolean modifiedSinceLastPersist = false;
+
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong misses = new AtomicLong(0);
+	private AtomicLong staleEntries = new AtomicLong(0);
+	private AtomicLong updates = new AtomicLong(0);
+
+	/**
+	 * Get the index for the specified root folder; creating one if necessary.
+	 * @param rootFolder
+	 * @param configService
+	 * @return The index or null if this is turned off in this installation.
+	 */
+	static PlainPBLastKnownEventIndex getIndex(String rootFolder, ConfigService configService) {
+		PlainPBLastKnownEventIndex index = indexes.get(rootFolder);
+		if(index != null) return index;
+
+		if(!Boolean.parseBoolean(configService.getInstallationProperties().getProperty(ENABLED_PROPERTY, "true"))) {
+			logger.debug("Last known event index is turned off for " + rootFolder);
+			return null;
+		}
+		long persistIntervalSeconds = Long.parseLong(configService.getInstallationProperties().getProperty(PERSIST_INTERVAL_PROPERTY, "600"));
+		String persistFolder = configService.getInstallationProperties().getProperty(PERSIST_FOLDER_PROPERTY);
+		String persistName = (configService.getWarFile() != null ? configService.getWarFile().toString() : "NONE") + "_" + Integer.toHexString(rootFolder.hashCode()) + ".json";
+		PlainPBLastKnownEventIndex newIndex = new PlainPBLastKnownEventIndex(rootFolder, (persistFolder != null) ? Paths.get(persistFolder, persistName) : null, persistIntervalSeconds);
+		index = indexes.putIfAbsent(rootFolder, newIndex);
+		if(index == null) {
+			logger.info("Created last known event index for " + rootFolder + ((newIndex.persistFile != null) ? " persisted in " + newIndex.persistFile : " in memory only"));
+			newIndex.load();
+			startPersisting(configService);
+			index = newIndex;
+		}
+		return index;
+	}
+
+	PlainPBLastKnownEventIndex(String rootFolder, Path persistFile, long persistIntervalSeconds) {
+		this.rootFolder = rootFolder;
+		this.persistFile = persistFile;
+		this.persistIntervalMillis = persistIntervalSeconds*1000;
+	}
+
+	private static synchronized void startPersisting(ConfigService configService) {
+		if(persistExecutor != null) return;
+		persistExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Last known event index persistence");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		persistExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for(PlainPBLastKnownEventIndex index : indexes.values()) {
+					index.persistIfNeeded(false);
+				}
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+		configService.addShutdownHook(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(PlainPBLastKnownEventIndex.class) {
+					if(persistExecutor != null) {
+						persistExecutor.shutdownNow();
+						persistExecutor = null;
+					}
+				}
+				for(PlainPBLastKnownEventIndex index : indexes.values()) {
+					index.persistIfNeeded(true);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the last event of this PV in this store if we have a valid entry for it.
+	 * @param pvName
+	 * @return null if we do not know the last event; the caller should look in the partitions and call {@link #lastEventFound}.
+	 */
+	public Event getLastKnownEvent(String pvName) {
+		LastKnownEvent lastKnownEvent = lastKnownEvents.get(pvName);
+		if(lastKnownEvent == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		try {
+			if(System.currentTimeMillis() < lastKnownEvent.recordedAtMillis) {
+				// We wrote this event ourselves and the folder's modification time has not settled yet.
+				misses.incrementAndGet();
+				return null;
+			}
+			Path partition = Paths.get(lastKnownEvent.partition);
+			if(lastKnownEvent.recordedAtMillis - lastKnownEvent.folderModifiedMillis >= PlainPBPartitionCatalog.RACY_INTERVAL_MILLIS
+					&& Files.size(partition) == lastKnownEvent.partitionSize
+					&& Files.getLastModifiedTime(partition.getParent()).toMillis() == lastKnownEvent.folderModifiedMillis) {
+				hits.incrementAndGet();
+				return lastKnownEvent.makeEvent();
+			}
+		} catch(NoSuchFileException ex) {
+			logger.debug("The partition " + lastKnownEvent.partition + " for the last known event of " + pvName + " no longer exists");
+		} catch(IOException ex) {
+			logger.warn("Exception validating the last known event for " + pvName + " in " + lastKnownEvent.partition, ex);
+		}
+		staleEntries.incrementAndGet();
+		lastKnownEvents.remove(pvName, lastKnownEvent);
+		modifiedSinceLastPersist = true;
+		return null;
+	}
+
+	/**
+	 * We looked in the partitions and found the last event of this PV in this partition.
+	 * The attributes of the partition and the folder should be determined before reading the last event; so that if the partition changes in between, the entry is invalid.
+	 * @param pvName
+	 * @param partition
+	 * @param partitionAttrs - The attributes of the partition before we read the last event.
+	 * @param folderModifiedMillis - The modification time of the PV's folder before we read the last event.
+	 * @param lastEvent
+	 * @param year
+	 */
+	public void lastEventFound(String pvName, Path partition, BasicFileAttributes partitionAttrs, long folderModifiedMillis, Event lastEvent, short year) {
+		record(pvName, partition, partitionAttrs.size(), folderModifiedMillis, System.currentTimeMillis(), lastEvent, year);
+	}
+
+	/**
+	 * This process appended to this PV's partition; the last event written is now the last event of the PV.
+	 * As we just wrote the partition, the folder may have just changed; so the entry is used only once {@link PlainPBPartitionCatalog#RACY_INTERVAL_MILLIS} have passed since the folder's modification time.
+	 * @param pvName
+	 * @param partition
+	 * @param partitionSize - The size of the partition after the append.
+	 * @param lastEvent
+	 * @param year
+	 */
+	public void lastEventWritten(String pvName, Path partition, long partitionSize, Event lastEvent, short year) {
+		try {
+			long folderModifiedMillis = Files.getLastModifiedTime(partition.getParent()).toMillis();
+			record(pvName, partition, partitionSize, folderModifiedMillis, Math.max(System.currentTimeMillis(), folderModifiedMillis + PlainPBPartitionCatalog.RACY_INTERVAL_MILLIS), lastEvent, year);
+		} catch(IOException ex) {
+			logger.warn("Exception updating the last known event for " + pvName + " in " + partition, ex);
+			invalidate(pvName);
+		}
+	}
+
+	private void record(String pvName, Path partition, long partitionSize, long folderModifiedMillis, long recordedAtMillis, Event lastEvent, short year) {
+		ByteArray raw = lastEvent.getRawForm();
+		byte[] rawEvent = new byte[raw.len];
+		System.arraycopy(raw.data, raw.off, rawEvent, 0, raw.len);
+		lastKnownEvents.put(pvName, new LastKnownEvent(partition.toAbsolutePath().toString(), partitionSize, folderModifiedMillis, recordedAtMillis, lastEvent.getDBRType(), year, rawEvent));
+		updates.incrementAndGet();
+		modifiedSinceLastPersist = true;
+	}
+
+	/**
+	 * Forget what we know about this PV; the next lookup looks in the partitions.
+	 * @param pvName
+	 */
+	public void invalidate(String pvName) {
+		if(lastKnownEvents.remove(pvName) != null) modifiedSinceLastPersist = true;
+	}
+
+	/**
+	 * This partition was deleted; if it has the last known event of this PV, we forget what we know about this PV.
+	 * @param pvName
+	 * @param partition
+	 */
+	public void partitionDeleted(String pvName, Path partition) {
+		LastKnownEvent lastKnownEvent = lastKnownEvents.get(pvName);
+		if(lastKnownEvent != null && lastKnownEvent.partition.equals(partition.toAbsolutePath().toString())) {
+			invalidate(pvName);
+		}
+	}
+
+	/**
+	 * Get some metrics about the index.
+	 * @return
+	 */
+	public Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		ret.put("pvs", Integer.toString(lastKnownEvents.size()));
+		ret.put("hits", Long.toString(hits.get()));
+		ret.put("misses", Long.toString(misses.get()));
+		ret.put("staleEntries", Long.toString(staleEntries.get()));
+		ret.put("updates", Long.toString(updates.get()));
+		return ret;
+	}
+
+	/**
+	 * Get the metrics for all the stores in this process; indexed by root folder.
+	 * @return
+	 */
+	public static Map<String, Map<String, String>> getAllMetrics() {
+		TreeMap<String, Map<String, String>> ret = new TreeMap<String, Map<String, String>>();
+		for(PlainPBLastKnownEventIndex index : indexes.values()) {
+			ret.put(index.rootFolder, index.getMetrics());
+		}
+		return ret;
+	}
+
+	void persistIfNeeded(boolean force) {
+		if(persistFile == null || !modifiedSinceLastPersist) return;
+		if(!force && (System.currentTimeMillis() - lastPersistedMillis) < persistIntervalMillis) return;
+		try {
+			persist();
+		} catch(IOException ex) {
+			logger.error("Exception persisting the last known event index for " + rootFolder + " into " + persistFile, ex);
+		}
+	}
+
+	/**
+	 * Write the index out into a temporary file and move it into place.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void persist() throws IOException {
+		modifiedSinceLastPersist = false;
+		lastPersistedMillis = System.currentTimeMillis();
+		JSONObject pvs = new JSONObject();
+		for(Map.Entry<String, LastKnownEvent> entry : lastKnownEvents.entrySet()) {
+			LastKnownEvent lastKnownEvent = entry.getValue();
+			JSONArray fields = new JSONArray();
+			fields.add(lastKnownEvent.partition);
+			fields.add(lastKnownEvent.partitionSize);
+			fields.add(lastKnownEvent.folderModifiedMillis);
+			fields.add(lastKnownEvent.recordedAtMillis);
+			fields.add(lastKnownEvent.dbrType.toString());
+			fields.add(lastKnownEvent.year);
+			fields.add(Base64.encodeBase64String(lastKnownEvent.rawEvent));
+			pvs.put(entry.getKey(), fields);
+		}
+		JSONObject root = new JSONObject();
+		root.put("rootFolder", rootFolder);
+		root.put("pvs", pvs);
+		Files.createDirectories(persistFile.getParent());
+		Path tmpFile = persistFile.resolveSibling(persistFile.getFileName().toString() + ".tmp");
+		try(Writer out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+			root.writeJSONString(out);
+		}
+		Files.move(tmpFile, persistFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.debug("Persisted the last known events for " + lastKnownEvents.size() + " PVs in " + rootFolder + " into " + persistFile);
+	}
+
+	/**
+	 * Load the index from the last time we persisted it.
+	 * Entries are validated before use; so entries for partitions that have since changed are simply dropped.
+	 */
+	void load() {
+		if(persistFile == null || !Files.exists(persistFile)) return;
+		try(Reader in = Files.newBufferedReader(persistFile, StandardCharsets.UTF_8)) {
+			JSONObject root = (JSONObject) JSONValue.parse(in);
+			if(root == null || !rootFolder.equals(root.get("rootFolder"))) {
+				logger.warn("Persisted last known event index in " + persistFile + " is not for " + rootFolder + "; ignoring it");
+				return;
+			}
+			JSONObject pvs = (JSONObject) root.get("pvs");
+			for(Object pvName : pvs.keySet()) {
+				List<?> fields = (List<?>) pvs.get(pvName);
+				LastKnownEvent lastKnownEvent = new LastKnownEvent((String) fields.get(0),
+						((Number) fields.get(1)).longValue(),
+						((Number) fields.get(2)).longValue(),
+						((Number) fields.get(3)).longValue(),
+						ArchDBRTypes.valueOf((String) fields.get(4)),
+						((Number) fields.get(5)).shortValue(),
+						Base64.decodeBase64((String) fields.get(6)));
+				lastKnownEvents.putIfAbsent((String) pvName, lastKnownEvent);
+			}
+			logger.info("Loaded the last known events for " + pvs.size() + " PVs in " + rootFolder + " from " + persistFile);
+		} catch(Exception ex) {
+			logger.error("Exception loading the last known event index for " + rootFolder + " from " + persistFile + "; we'll look in the partitions again", ex);
+			lastKnownEvents.clear();
+		}
+	}
+}
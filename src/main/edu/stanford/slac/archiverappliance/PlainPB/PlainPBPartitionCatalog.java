@@ -0,0 +1,463 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.PVNameToKeyMapping;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBPathNameUtility.StartEndTimeFromName;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin.CompressionMode;
+
+/**
+ * An in-memory catalog of the partitions for each PV in a PlainPB store.
+ * The PlainPBPathNameUtility methods list the PV's folder and parse each file name on each call; on folders with thousands of partitions (for example, hourly partitions on a NFS LTS), this dominates short queries.
+ * The catalog maintains a sorted list of partitions (file name, time bounds from the name and size if known) per PV and extension.
+ * <ul>
+ * <li>Entries are built lazily from a directory listing the first time a PV/extension is requested.</li>
+ * <li>Appends, ETL moves/deletes, renames and conversions in this process update the catalog directly so that this process sees its own changes immediately.</li>
+ * <li>Before using an entry, we stat the PV's parent folder and compare the modification time and the file key; any other process adding/removing partitions changes the folder's modification time and causes a fresh listing.
+ * Because modification times may have coarse granularity, entries built within {@link #RACY_INTERVAL_MILLIS} of the folder's modification time are not trusted.</li>
+ * <li>Entries older than <code>maxAgeSeconds</code> are rebuilt regardless; when rebuilding an entry we check the cached list against the disk and log any inconsistencies.</li>
+ * </ul>
+ * Catalogs are shared across all the PlainPBStoragePlugin instances in this process that use the same root folder and partition granularity.
+ * This only applies to the uncompressed layout; the ZIP_PER_PV layout always lists the zip file.
+ *
+ * These can be configured in archappl.properties
+ * <ul>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBPartitionCatalog.maxPVs</code> - The maximum number of PV/extension combinations that are cached per store. Set this to 0 to turn off the catalog.</li>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBPartitionCatalog.maxAgeSeconds</code> - The maximum age of a catalog entry; after this we list the folder again.</li>
+ * </ul>
+ *
+ * @author mshankar
+ *
+ */
+public class PlainPBPartitionCatalog {
+	private static final Logger logger = Logger.getLogger(PlainPBPartitionCatalog.class);
+
+	public static final String MAX_PVS_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBPartitionCatalog.maxPVs";
+	public static final String MAX_AGE_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBPartitionCatalog.maxAgeSeconds";
+	/**
+	 * If the folder was modified within this many milliseconds of when we listed it, we cannot be sure that we have seen all the changes.
+	 */
+	public static final long RACY_INTERVAL_MILLIS = 2000;
+
+	private static ConcurrentHashMap<String, PlainPBPartitionCatalog> catalogs = new ConcurrentHashMap<String, PlainPBPartitionCatalog>();
+
+	private final String rootFolder;
+	private final PartitionGranularity granularity;
+	private final PVNameToKeyMapping pv2key;
+	private final long maxAgeMillis;
+	private final Cache<String, PVPartitions> pvPartitions;
+
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong listings = new AtomicLong(0);
+	private AtomicLong inconsistencies = new AtomicLong(0);
+
+	/**
+	 * Get the catalog for the specified root folder and granularity; creating one if necessary.
+	 * @param rootFolder
+	 * @param granularity
+	 * @param configService
+	 * @return The catalog or null if the catalog is turned off in this installation.
+	 */
+	public static PlainPBPartitionCatalog getCatalog(String rootFolder, PartitionGranularity granularity, ConfigService configService) {
+		String key = rootFolder + "|" + granularity.toString();
+		PlainPBPartitionCatalog catalog = catalogs.get(key);
+		if(catalog != null) return catalog;
+
+		int maxPVs = Integer.parseInt(configService.getInstallationProperties().getProperty(MAX_PVS_PROPERTY, "100000"));
+		if(maxPVs <= 0) {
+			logger.debug("Partition catalog is turned off for " + rootFolder);
+			return null;
+		}
+		long maxAgeSeconds = Long.parseLong(configService.getInstallationProperties().getProperty(MAX_AGE_PROPERTY, "600"));
+		PlainPBPartitionCatalog newCatalog = new PlainPBPartitionCatalog(rootFolder, granularity, configService.getPVNameToKeyConverter(), maxPVs, maxAgeSeconds);
+		catalog = catalogs.putIfAbsent(key, newCatalog);
+		if(catalog == null) {
+			logger.info("Created partition catalog for " + rootFolder + " for granularity " + granularity + " with maxPVs " + maxPVs + " and maxAge " + maxAgeSeconds + "(s)");
+			catalog = newCatalog;
+		}
+		return catalog;
+	}
+
+	PlainPBPartitionCatalog(String rootFolder, PartitionGranularity granularity, PVNameToKeyMapping pv2key, int maxPVs, long maxAgeSeconds) {
+		this.rootFolder = rootFolder;
+		this.granularity = granularity;
+		this.pv2key = pv2key;
+		this.maxAgeMillis = maxAgeSeconds*1000;
+		this.pvPartitions = CacheBuilder.newBuilder().maximumSize(maxPVs).build();
+	}
+
+	/**
+	 * A partition as seen in the catalog.
+	 * The start and end times are determined from the name of the partition; if the name could not be parsed, these are -1 and the partition is returned only by getAllPathsForPV.
+	 */
+	public static class Partition {
+		private final Path path;
+		private final long chunkStartEpochSeconds;
+		private final long chunkEndEpochSeconds;
+		private final StartEndTimeFromName times;
+		private volatile long size;
+
+		Partition(Path path, StartEndTimeFromName times, long size) {
+			this.path = path;
+			this.chunkStartEpochSeconds = (times != null) ? times.chunkStartEpochSeconds : -1;
+			this.chunkEndEpochSeconds = (times != null) ? times.chunkEndEpochSeconds : -1;
+			this.times = times;
+			this.size = size;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public long getChunkStartEpochSeconds() {
+			return chunkStartEpochSeconds;
+		}
+
+		public long getChunkEndEpochSeconds() {
+			return chunkEndEpochSeconds;
+		}
+
+		boolean hasTimes() {
+			return chunkStartEpochSeconds != -1;
+		}
+
+		/**
+		 * The size of this partition; this is the size as of the last time this process wrote to this partition.
+		 * If we do not know the size, we stat the file.
+		 * @return
+		 * @throws IOException
+		 */
+		public long getSize() throws IOException {
+			if(size == -1) {
+				size = Files.size(path);
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * The partitions for one PV and one extension sorted by name (and hence by time).
+	 * The partitions map is copied on write so readers can use it without locking.
+	 */
+	private static class PVPartitions {
+		volatile TreeMap<String, Partition> partitions;
+		volatile FileTime folderModifiedTime;
+		volatile Object folderKey;
+		volatile long builtAtMillis;
+		/**
+		 * We trust this entry from this time onwards; Long.MAX_VALUE if we never trust it.
+		 */
+		volatile long trustedAfterMillis;
+
+		PVPartitions(TreeMap<String, Partition> partitions, BasicFileAttributes folderAttrs, long builtAtMillis) {
+			this.partitions = partitions;
+			this.folderModifiedTime = folderAttrs.lastModifiedTime();
+			this.folderKey = folderAttrs.fileKey();
+			this.builtAtMillis = builtAtMillis;
+			this.trustedAfterMillis = ((builtAtMillis - folderModifiedTime.toMillis()) >= RACY_INTERVAL_MILLIS) ? 0 : Long.MAX_VALUE;
+		}
+
+		boolean isCurrent(BasicFileAttributes folderAttrs, long maxAgeMillis) {
+			if(!folderAttrs.lastModifiedTime().equals(folderModifiedTime)) return false;
+			if(folderKey != null && !folderKey.equals(folderAttrs.fileKey())) return false;
+			if(!wasTrusted()) return false;
+			if((System.currentTimeMillis() - builtAtMillis) > maxAgeMillis) return false;
+			return true;
+		}
+
+		boolean wasTrusted() {
+			return System.currentTimeMillis() >= trustedAfterMillis;
+		}
+	}
+
+
+	/**
+	 * Equivalent of {@link PlainPBPathNameUtility#getPathsWithData PlainPBPathNameUtility.getPathsWithData} using the catalog.
+	 */
+	public Path[] getPathsWithData(ArchPaths archPaths, String pvName, Timestamp startts, Timestamp endts, String extension) throws IOException {
+		long reqStartEpochSeconds = TimeUtils.convertToEpochSeconds(startts);
+		long reqEndEpochSeconds = TimeUtils.convertToEpochSeconds(endts);
+		ArrayList<Path> ret = new ArrayList<Path>();
+		ArrayList<StartEndTimeFromName> retTimes = new ArrayList<StartEndTimeFromName>();
+		for(Partition partition : getPartitions(archPaths, pvName, extension).values()) {
+			if(!partition.hasTimes()) continue;
+			if((partition.chunkEndEpochSeconds < reqStartEpochSeconds) || (partition.chunkStartEpochSeconds > reqEndEpochSeconds)) continue;
+			ret.add(partition.path);
+			retTimes.add(partition.times);
+		}
+		PlainPBPathNameUtility.removeSupersededPartitions(ret, retTimes, granularity, extension);
+		return ret.toArray(new Path[0]);
+	}
+
+	/**
+	 * Equivalent of {@link PlainPBPathNameUtility#getPathsBeforeCurrentPartition PlainPBPathNameUtility.getPathsBeforeCurrentPartition} using the catalog.
+	 */
+	public Path[] getPathsBeforeCurrentPartition(ArchPaths archPaths, String pvName, Timestamp currentTime, String extension) throws IOException {
+		long reqEndEpochSeconds = TimeUtils.getPreviousPartitionLastSecond(TimeUtils.convertToEpochSeconds(currentTime), granularity);
+		return getPathsWithData(archPaths, pvName, TimeUtils.convertFromEpochSeconds(1, 0), TimeUtils.convertFromEpochSeconds(reqEndEpochSeconds, 0), extension);
+	}
+
+	/**
+	 * Equivalent of {@link PlainPBPathNameUtility#getAllPathsForPV PlainPBPathNameUtility.getAllPathsForPV} using the catalog.
+	 */
+	public Path[] getAllPathsForPV(ArchPaths archPaths, String pvName, String extension) throws IOException {
+		ArrayList<Path> ret = new ArrayList<Path>();
+		for(Partition partition : getPartitions(archPaths, pvName, extension).values()) {
+			ret.add(partition.path);
+		}
+		return ret.toArray(new Path[0]);
+	}
+
+	/**
+	 * Equivalent of {@link PlainPBPathNameUtility#getMostRecentPathBeforeTime PlainPBPathNameUtility.getMostRecentPathBeforeTime} using the catalog.
+	 */
+	public Path getMostRecentPathBeforeTime(ArchPaths archPaths, String pvName, Timestamp startts, String extension) throws IOException {
+		long reqStartEpochSeconds = TimeUtils.convertToEpochSeconds(startts);
+		TreeMap<String, Partition> partitions = getPartitions(archPaths, pvName, extension);
+		for(Partition partition : partitions.descendingMap().values()) {
+			if(partition.hasTimes() && partition.chunkStartEpochSeconds < reqStartEpochSeconds) {
+				Path chosenPath = chooseEnclosingPartition(partitions, partition, pvName, extension, reqStartEpochSeconds, false);
+				if(chosenPath != null) return chosenPath;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Equivalent of {@link PlainPBPathNameUtility#getPreviousPartitionBeforeTime PlainPBPathNameUtility.getPreviousPartitionBeforeTime} using the catalog.
+	 */
+	public Path getPreviousPartitionBeforeTime(ArchPaths archPaths, String pvName, Timestamp startts, String extension) throws IOException {
+		long reqStartEpochSeconds = TimeUtils.convertToEpochSeconds(startts);
+		TreeMap<String, Partition> partitions = getPartitions(archPaths, pvName, extension);
+		for(Partition partition : partitions.descendingMap().values()) {
+			if(partition.hasTimes() && partition.chunkEndEpochSeconds < reqStartEpochSeconds) {
+				Path chosenPath = chooseEnclosingPartition(partitions, partition, pvName, extension, reqStartEpochSeconds, true);
+				if(chosenPath != null) return chosenPath;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Equivalent of PlainPBPathNameUtility.chooseEnclosingPartition using the catalog; a partition that sorts later can be enclosed by a coarser partition created by compaction.
+	 * @return The partition or the enclosing partition whose last event is closest to reqStartEpochSeconds; null if the partition has been merged into an enclosing partition.
+	 */
+	private Path chooseEnclosingPartition(TreeMap<String, Partition> partitions, Partition partition, String pvName, String extension, long reqStartEpochSeconds, boolean mustEndBefore) throws IOException {
+		String pvFinalNameComponent = PlainPBPathNameUtility.getFinalNameComponent(pvName, pv2key);
+		Partition chosen = partition;
+		long chosenLastEventEpochSeconds = -1;
+		for(PartitionGranularity coarserGranularity = partition.times.chunkGranularity.getNextLargerGranularity(); coarserGranularity != null; coarserGranularity = coarserGranularity.getNextLargerGranularity()) {
+			if(coarserGranularity.isSmallerThan(PartitionGranularity.PARTITION_HOUR)) continue;
+			Partition enclosing = partitions.get(pvFinalNameComponent + TimeUtils.getPartitionName(partition.chunkStartEpochSeconds, coarserGranularity) + extension);
+			if(enclosing == null || !enclosing.hasTimes()) continue;
+			if(PlainPBCompactor.getSupersededPartitionNames(enclosing.path, extension).contains(partition.path.getFileName().toString())) return null;
+			if(mustEndBefore && enclosing.chunkEndEpochSeconds >= reqStartEpochSeconds) continue;
+			if(chosenLastEventEpochSeconds == -1) chosenLastEventEpochSeconds = PBFileInfoCache.getFileInfo(chosen.path).getLastEventEpochSeconds();
+			long enclosingLastEventEpochSeconds = PBFileInfoCache.getFileInfo(enclosing.path).getLastEventEpochSeconds();
+			if(Math.min(enclosingLastEventEpochSeconds, reqStartEpochSeconds) >= Math.min(chosenLastEventEpochSeconds, reqStartEpochSeconds)) {
+				chosen = enclosing;
+				chosenLastEventEpochSeconds = enclosingLastEventEpochSeconds;
+			}
+		}
+		return chosen.path;
+	}
+
+	/**
+	 * Get the partitions for this PV for this extension sorted by name.
+	 * The returned map should not be modified.
+	 * @param archPaths
+	 * @param pvName
+	 * @param extension
+	 * @return
+	 * @throws IOException
+	 */
+	public TreeMap<String, Partition> getPartitions(ArchPaths archPaths, String pvName, String extension) throws IOException {
+		Path parentFolder = PlainPBPathNameUtility.getParentPath(archPaths, rootFolder, pvName, granularity, CompressionMode.NONE, pv2key);
+		BasicFileAttributes folderAttrs;
+		try {
+			folderAttrs = Files.readAttributes(parentFolder, BasicFileAttributes.class);
+		} catch(NoSuchFileException ex) {
+			logger.debug("Most likely the parent folder for this pv does not exist. Returning an empty list");
+			pvPartitions.invalidate(cacheKey(pvName, extension));
+			return new TreeMap<String, Partition>();
+		}
+
+		String cacheKey = cacheKey(pvName, extension);
+		PVPartitions cached = pvPartitions.getIfPresent(cacheKey);
+		if(cached != null && cached.isCurrent(folderAttrs, maxAgeMillis)) {
+			hits.incrementAndGet();
+			return cached.partitions;
+		}
+
+		long builtAtMillis = System.currentTimeMillis();
+		TreeMap<String, Partition> partitions = listPartitions(archPaths, pvName, extension);
+		listings.incrementAndGet();
+		if(cached != null && cached.wasTrusted() && cached.folderModifiedTime.equals(folderAttrs.lastModifiedTime())) {
+			// The folder has not changed; so we expect the cached list to match the disk.
+			checkConsistency(pvName, extension, cached.partitions, partitions);
+		}
+		pvPartitions.put(cacheKey, new PVPartitions(partitions, folderAttrs, builtAtMillis));
+		return partitions;
+	}
+
+	/**
+	 * This process created a new partition (or a new file with the extension).
+	 * @param pvName
+	 * @param extension
+	 * @param path
+	 */
+	public void partitionCreated(String pvName, String extension, Path path) {
+		PVPartitions cached = pvPartitions.getIfPresent(cacheKey(pvName, extension));
+		if(cached == null) return;
+		synchronized(cached) {
+			TreeMap<String, Partition> newPartitions = new TreeMap<String, Partition>(cached.partitions);
+			newPartitions.put(path.getFileName().toString(), makePartition(pvName, path, -1));
+			updateAfterChange(pvName, extension, cached, newPartitions, path);
+		}
+	}
+
+	/**
+	 * This process wrote to a partition; update the size
+	 * @param pvName
+	 * @param extension
+	 * @param path
+	 * @param size
+	 */
+	public void partitionModified(String pvName, String extension, Path path, long size) {
+		PVPartitions cached = pvPartitions.getIfPresent(cacheKey(pvName, extension));
+		if(cached == null) return;
+		Partition partition = cached.partitions.get(path.getFileName().toString());
+		if(partition != null) {
+			partition.size = size;
+		} else {
+			partitionCreated(pvName, extension, path);
+		}
+	}
+
+	/**
+	 * This process deleted a partition (or moved it elsewhere).
+	 * @param pvName
+	 * @param extension
+	 * @param path
+	 */
+	public void partitionDeleted(String pvName, String extension, Path path) {
+		PVPartitions cached = pvPartitions.getIfPresent(cacheKey(pvName, extension));
+		if(cached == null) return;
+		synchronized(cached) {
+			TreeMap<String, Partition> newPartitions = new TreeMap<String, Partition>(cached.partitions);
+			newPartitions.remove(path.getFileName().toString());
+			updateAfterChange(pvName, extension, cached, newPartitions, path);
+		}
+	}
+
+	/**
+	 * Remove all information about this PV from the catalog; the next request will list the folder again.
+	 * @param pvName
+	 */
+	public void invalidate(String pvName) {
+		String prefix = cacheKey(pvName, "");
+		for(String key : pvPartitions.asMap().keySet()) {
+			if(key.startsWith(prefix)) {
+				pvPartitions.invalidate(key);
+			}
+		}
+	}
+
+	/**
+	 * Get some metrics about this catalog; the number of PV/extensions cached, cache hits, folder listings and the number of inconsistencies found.
+	 * @return
+	 */
+	public Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		ret.put("cachedEntries", Long.toString(pvPartitions.size()));
+		ret.put("hits", Long.toString(hits.get()));
+		ret.put("listings", Long.toString(listings.get()));
+		ret.put("inconsistencies", Long.toString(inconsistencies.get()));
+		return ret;
+	}
+
+	/**
+	 * Swap in the new list of partitions and record the folder's modification time after our change so that the next request does not list the folder again.
+	 * Another process could have changed the folder within the same tick of the modification time as our change; so, as with a listing, we trust the entry only after {@link #RACY_INTERVAL_MILLIS} have passed.
+	 * If we did not trust the entry before the change, we do not trust it after the change either and the next request lists the folder again.
+	 */
+	private void updateAfterChange(String pvName, String extension, PVPartitions cached, TreeMap<String, Partition> newPartitions, Path path) {
+		BasicFileAttributes folderAttrs;
+		try {
+			folderAttrs = Files.readAttributes(path.getParent(), BasicFileAttributes.class);
+		} catch(IOException ex) {
+			logger.debug("Exception getting the attributes of the parent folder of " + path + "; the next request will list the folder again", ex);
+			pvPartitions.invalidate(cacheKey(pvName, extension));
+			return;
+		}
+		boolean wasTrusted = cached.wasTrusted();
+		cached.partitions = newPartitions;
+		cached.folderModifiedTime = folderAttrs.lastModifiedTime();
+		cached.folderKey = folderAttrs.fileKey();
+		cached.trustedAfterMillis = wasTrusted ? (folderAttrs.lastModifiedTime().toMillis() + RACY_INTERVAL_MILLIS) : Long.MAX_VALUE;
+	}
+
+	private TreeMap<String, Partition> listPartitions(ArchPaths archPaths, String pvName, String extension) throws IOException {
+		TreeMap<String, Partition> ret = new TreeMap<String, Partition>();
+		try(DirectoryStream<Path> paths = PlainPBPathNameUtility.getDirectoryStreamsForPV(archPaths, rootFolder, pvName, extension, granularity, CompressionMode.NONE, pv2key)) {
+			for(Path path : paths) {
+				ret.put(path.getFileName().toString(), makePartition(pvName, path, -1));
+			}
+		} catch(NoSuchFileException nex) {
+			logger.debug("Most likely the parent folder for this pv does not exist. Returning an empty list");
+		}
+		if(logger.isDebugEnabled()) logger.debug("Listed " + ret.size() + " partitions for pv " + pvName + " with extension " + extension + " in " + rootFolder);
+		return ret;
+	}
+
+	private Partition makePartition(String pvName, Path path, long size) {
+		String name = path.getFileName().toString();
+		try {
+			StartEndTimeFromName pathNameTimes = new StartEndTimeFromName(pvName, name, PlainPBPathNameUtility.getFinalNameComponent(pvName, pv2key), granularity);
+			return new Partition(path, pathNameTimes, size);
+		} catch(Exception ex) {
+			logger.warn("Cannot determine times from file name " + name + " for pv " + pvName, ex);
+			return new Partition(path, null, size);
+		}
+	}
+
+	private void checkConsistency(String pvName, String extension, TreeMap<String, Partition> cachedPartitions, TreeMap<String, Partition> diskPartitions) {
+		if(!cachedPartitions.keySet().equals(diskPartitions.keySet())) {
+			inconsistencies.incrementAndGet();
+			logger.warn("Partition catalog for " + pvName + " with extension " + extension + " in " + rootFolder
+					+ " was inconsistent with the disk. Cached " + cachedPartitions.size() + " partitions; found " + diskPartitions.size() + " partitions on disk.");
+		}
+	}
+
+	private static String cacheKey(String pvName, String extension) {
+		return pvName + "|" + extension;
+	}
+}
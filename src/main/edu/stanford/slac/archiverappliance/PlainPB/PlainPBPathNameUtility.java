@@ -18,7 +18,9 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.common.PartitionGranularity;
@@ -69,12 +71,25 @@ public class PlainPBPathNameUtility {
 	/**
 	 * The PlainPBStorage plugin has a naming scheme that provides much information.
 	 * This class encapsulates the potential start and end times of a particular chunk.
+	 * Besides partitions of the store's granularity, a folder can also have partitions of a coarser granularity; these are the result of compacting the smaller partitions of a PV (see {@link PlainPBCompactor}).
+	 * A coarser partition can overlap partitions of the store's granularity in two cases.
+	 * <ol>
+	 * <li>The partitions that were merged into it are kept around for a while after the merge; these are skipped (see {@link #removeSupersededPartitions}).</li>
+	 * <li>Data that arrived for the period after the merge goes into a new partition of the store's granularity.
+	 * This partition sorts after the coarser partition (<code>pv:2024_03.pb</code> sorts before <code>pv:2024_03_05.pb</code>) but most of the data for the period is in the coarser partition.
+	 * When looking for the partition before a time, we therefore also check the last event of the coarser partitions that enclose the partition we find (see {@link #chooseEnclosingPartition}).
+	 * In a retrieval, the events in the later partition that are before the last event of the coarser partition are dropped as out of order; this lasts till the next compaction of the PV merges the late partition in.</li>
+	 * </ol>
 	 */
 	static class StartEndTimeFromName {
 		DateTime pathDataStartTime;
 		DateTime pathDataEndTime;
 		long chunkStartEpochSeconds;
 		long chunkEndEpochSeconds;
+		/**
+		 * The granularity of this chunk; this is the same as or coarser than the granularity of the store.
+		 */
+		PartitionGranularity chunkGranularity;
 		
 		/**
 		 * Determine the chunk start anf end times from the name
@@ -91,7 +106,19 @@ public class PlainPBPathNameUtility {
 			// logger.debug("Just the time component is " + justtheTimeComponent);
 			String[] timecomponents = justtheTimeComponent.split("_");
 
-			switch(granularity) {
+			chunkGranularity = granularity;
+			switch(timecomponents.length) {
+			case 1: chunkGranularity = PartitionGranularity.PARTITION_YEAR; break;
+			case 2: chunkGranularity = PartitionGranularity.PARTITION_MONTH; break;
+			case 3: chunkGranularity = PartitionGranularity.PARTITION_DAY; break;
+			case 4: chunkGranularity = PartitionGranularity.PARTITION_HOUR; break;
+			default: break;
+			}
+			if(chunkGranularity.isSmallerThan(granularity)) {
+				throw new IOException("We cannot mix and match partitions in a folder. Skipping " + pathName + " when including data for PV " + pvName + " and granularity " + granularity.toString());
+			}
+
+			switch(chunkGranularity) {
 			case PARTITION_YEAR: {
 				if(timecomponents.length != 1) {
 					throw new IOException("We cannot mix and match partitions in a folder. Skipping " + pathName + " when including yearly data for PV " + pvName);
@@ -185,6 +212,7 @@ public class PlainPBPathNameUtility {
 		String pvFinalNameComponent = getFinalNameComponent(pvName, pv2key);
 		
 		ArrayList<Path> retVal = new ArrayList<Path>();
+		ArrayList<StartEndTimeFromName> retValTimes = new ArrayList<StartEndTimeFromName>();
 		try(DirectoryStream<Path> paths = getDirectoryStreamsForPV(archPaths, rootFolder, pvName, extension, granularity, compressionMode, pv2key)) {
 			for(Path path : paths) {
 				String name = path.getFileName().toString();
@@ -197,6 +225,7 @@ public class PlainPBPathNameUtility {
 					}
 					logger.debug("File " + name + " matched the times requested");
 					retVal.add(path);
+					retValTimes.add(pathNameTimes);
 				} catch(IOException ex) {
 					logger.warn("Skipping file " + name + " when geting FilesWithData. Exception", ex);
 					continue;
@@ -205,6 +234,7 @@ public class PlainPBPathNameUtility {
 		} catch(NoSuchFileException nex) {
 			logger.debug("Most likely the parent folder for this pv does not exist. Returning an empty list");
 		}
+		removeSupersededPartitions(retVal, retValTimes, granularity, extension);
 		
 		Collections.sort(retVal, new Comparator<Path>() {
 			@Override
@@ -306,8 +336,10 @@ public class PlainPBPathNameUtility {
 				StartEndTimeFromName fileNameTimes = new StartEndTimeFromName(pvName, name, pvFinalNameComponent, granularity);
 
 				if(fileNameTimes.chunkStartEpochSeconds < reqStartEpochSeconds)  {
-					logger.debug("File " + name + " is the latest chunk with data for pv " + pvName);
-					return path;
+					Path chosenPath = chooseEnclosingPartition(paths, i, fileNameTimes, pvName, pvFinalNameComponent, extension, granularity, reqStartEpochSeconds, false);
+					if(chosenPath == null) continue;
+					logger.debug("File " + chosenPath.getFileName().toString() + " is the latest chunk with data for pv " + pvName);
+					return chosenPath;
 				}
 			} catch(IOException ex) {
 				logger.warn("Skipping file " + name + " when geting FilesWithData. Exception", ex);
@@ -345,8 +377,10 @@ public class PlainPBPathNameUtility {
 				StartEndTimeFromName fileNameTimes = new StartEndTimeFromName(pvName, name, pvFinalNameComponent, granularity);
 
 				if(fileNameTimes.chunkEndEpochSeconds < reqStartEpochSeconds)  {
-					logger.debug("File " + name + " is the previous partition chunk with data for pv " + pvName);
-					return path;
+					Path chosenPath = chooseEnclosingPartition(paths, i, fileNameTimes, pvName, pvFinalNameComponent, extension, granularity, reqStartEpochSeconds, true);
+					if(chosenPath == null) continue;
+					logger.debug("File " + chosenPath.getFileName().toString() + " is the previous partition chunk with data for pv " + pvName);
+					return chosenPath;
 				}
 			} catch(IOException ex) {
 				logger.warn("Skipping file " + name + " when geting getPreviousPartitionBeforeTime. Exception", ex);
@@ -357,6 +391,83 @@ public class PlainPBPathNameUtility {
 		return null;
 	}
 
+	/**
+	 * Remove the partitions that have been merged into a coarser partition in this list but not yet deleted.
+	 * We only look for the compaction intent of a coarser partition if it overlaps other partitions in the list; so this does not cost anything for PVs that were never compacted.
+	 * @param paths - The partitions; this is modified in place.
+	 * @param times - The times for each of the partitions in paths.
+	 * @param granularity - The granularity of the store.
+	 * @param extension
+	 */
+	static void removeSupersededPartitions(List<Path> paths, List<StartEndTimeFromName> times, PartitionGranularity granularity, String extension) {
+		HashSet<String> superseded = new HashSet<String>();
+		for(int i = 0; i < paths.size(); i++) {
+			StartEndTimeFromName mergedTimes = times.get(i);
+			if(mergedTimes.chunkGranularity == granularity) continue;
+			for(int j = 0; j < paths.size(); j++) {
+				StartEndTimeFromName partitionTimes = times.get(j);
+				if(partitionTimes.chunkGranularity.isSmallerThan(mergedTimes.chunkGranularity)
+						&& partitionTimes.chunkStartEpochSeconds >= mergedTimes.chunkStartEpochSeconds
+						&& partitionTimes.chunkEndEpochSeconds <= mergedTimes.chunkEndEpochSeconds) {
+					superseded.addAll(PlainPBCompactor.getSupersededPartitionNames(paths.get(i), extension));
+					break;
+				}
+			}
+		}
+		if(superseded.isEmpty()) return;
+		for(int i = paths.size() - 1; i >= 0; i--) {
+			if(superseded.contains(paths.get(i).getFileName().toString())) {
+				logger.debug("Skipping " + paths.get(i) + " as it has been merged into a coarser partition");
+				paths.remove(i);
+				times.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * We found the partition at index in sortedPaths when looking for the partition before a time; check if a coarser partition that encloses it is a better choice.
+	 * The coarser partitions sort before the partition; all the names in between are for the period of the coarser partition.
+	 * @param sortedPaths - All the partitions for the PV sorted by name.
+	 * @param index - The partition we found.
+	 * @param times - The times for the partition we found.
+	 * @param reqStartEpochSeconds - The time we are looking for partitions before.
+	 * @param mustEndBefore - If true, the partition has to end before reqStartEpochSeconds; otherwise, it has to start before reqStartEpochSeconds.
+	 * @return The partition we found or the enclosing partition whose last event is closest to reqStartEpochSeconds; null if the partition we found has been merged into an enclosing partition.
+	 */
+	private static Path chooseEnclosingPartition(Path[] sortedPaths, int index, StartEndTimeFromName times, String pvName, String pvFinalNameComponent, String extension, PartitionGranularity granularity, long reqStartEpochSeconds, boolean mustEndBefore) throws IOException {
+		Path chosenPath = sortedPaths[index];
+		long chosenLastEventEpochSeconds = -1;
+		for(PartitionGranularity coarserGranularity = times.chunkGranularity.getNextLargerGranularity(); coarserGranularity != null; coarserGranularity = coarserGranularity.getNextLargerGranularity()) {
+			// The compactor only creates hourly or coarser partitions.
+			if(coarserGranularity.isSmallerThan(PartitionGranularity.PARTITION_HOUR)) continue;
+			String enclosingName = pvFinalNameComponent + TimeUtils.getPartitionName(times.chunkStartEpochSeconds, coarserGranularity) + extension;
+			Path enclosingPath = null;
+			for(int i = index - 1; i >= 0; i--) {
+				String name = sortedPaths[i].getFileName().toString();
+				if(name.equals(enclosingName)) {
+					enclosingPath = sortedPaths[i];
+					break;
+				}
+				if(name.compareTo(enclosingName) < 0) break;
+			}
+			if(enclosingPath == null) continue;
+			if(PlainPBCompactor.getSupersededPartitionNames(enclosingPath, extension).contains(sortedPaths[index].getFileName().toString())) {
+				logger.debug("Skipping " + sortedPaths[index] + " as it has been merged into " + enclosingPath);
+				return null;
+			}
+			StartEndTimeFromName enclosingTimes = new StartEndTimeFromName(pvName, enclosingName, pvFinalNameComponent, granularity);
+			if(mustEndBefore && enclosingTimes.chunkEndEpochSeconds >= reqStartEpochSeconds) continue;
+			// If both partitions have events after the requested time, we cannot tell which one has the later event before it without searching; so ties go to the coarser partition as it has most of the data for the period.
+			if(chosenLastEventEpochSeconds == -1) chosenLastEventEpochSeconds = PBFileInfoCache.getFileInfo(chosenPath).getLastEventEpochSeconds();
+			long enclosingLastEventEpochSeconds = PBFileInfoCache.getFileInfo(enclosingPath).getLastEventEpochSeconds();
+			if(Math.min(enclosingLastEventEpochSeconds, reqStartEpochSeconds) >= Math.min(chosenLastEventEpochSeconds, reqStartEpochSeconds)) {
+				chosenPath = enclosingPath;
+				chosenLastEventEpochSeconds = enclosingLastEventEpochSeconds;
+			}
+		}
+		return chosenPath;
+	}
+
 	
 	/**
 	 * This method returns the path for a given pv for a given time based on the partitionGranularity
@@ -392,7 +503,7 @@ public class PlainPBPathNameUtility {
 	 * @param pvName
 	 * @return
 	 */
-	private static String getFinalNameComponent(String pvName, PVNameToKeyMapping pv2key) {
+	static String getFinalNameComponent(String pvName, PVNameToKeyMapping pv2key) {
 		Path pvPathAlone = Paths.get(pv2key.convertPVNameToKey(pvName));
 		String pvFinalNameComponent = pvPathAlone.getFileName().toString();
 		return pvFinalNameComponent;
@@ -410,7 +521,7 @@ public class PlainPBPathNameUtility {
 	 * @param compressionMode
 	 * @return
 	 */
-	private static Path getParentPath(ArchPaths paths, String rootFolder, final String pvName, final PartitionGranularity granularity, CompressionMode compressionMode, PVNameToKeyMapping pv2key) throws IOException {
+	static Path getParentPath(ArchPaths paths, String rootFolder, final String pvName, final PartitionGranularity granularity, CompressionMode compressionMode, PVNameToKeyMapping pv2key) throws IOException {
 		String pvKey = pv2key.convertPVNameToKey(pvName);
 		boolean createParentFolder = false; // should we create parent folder if it does not exist
 		switch(compressionMode) {
@@ -455,7 +566,7 @@ public class PlainPBPathNameUtility {
 	 * @return
 	 * @throws IOException
 	 */
-	private static DirectoryStream<Path> getDirectoryStreamsForPV(ArchPaths paths, String rootFolder, final String pvName, final String extension, final PartitionGranularity granularity, CompressionMode compressionMode, PVNameToKeyMapping pv2key) throws IOException {
+	static DirectoryStream<Path> getDirectoryStreamsForPV(ArchPaths paths, String rootFolder, final String pvName, final String extension, final PartitionGranularity granularity, CompressionMode compressionMode, PVNameToKeyMapping pv2key) throws IOException {
 		try {
 			Path parentFolder = getParentPath(paths, rootFolder, pvName, granularity, compressionMode, pv2key);
 			String pvFinalNameComponent = getFinalNameComponent(pvName, pv2key);
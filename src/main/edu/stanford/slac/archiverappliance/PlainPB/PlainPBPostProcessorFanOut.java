@@ -0,0 +1,440 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.EventStreamDesc;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.retrieval.CallableEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.SummaryStatsPostProcessor;
+
+import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
+
+/**
+ * Generates the cached post processor data (the <code>pp</code> parameter of the PlainPB plugin) for all the post processors of a PV in one pass over each raw partition.
+ * Each raw partition is read and decoded once in the ETL thread; the decoded events are handed off in batches to a thread per post processor.
+ * Each post processor sees exactly the same sequence of events that it would see if it read the partition by itself; so the cached data is the same as that generated one post processor at a time.
+ * <br>
+ * The cached data is generated incrementally.
+ * For the binning operators (mean_3600 etc), we only need the events after the last bin that is already cached; so we start reading the raw partition from there.
+ * Operators whose output depends on all the previous events (deadband, nth etc) are always fed the entire partition.
+ * @author mshankar
+ *
+ */
+public class PlainPBPostProcessorFanOut implements Closeable {
+	private static Logger logger = Logger.getLogger(PlainPBPostProcessorFanOut.class.getName());
+	private static final int BATCH_SIZE = 1000;
+	private static final int QUEUED_BATCHES_PER_POST_PROCESSOR = 4;
+	private static final AtomicLong partitionsDecoded = new AtomicLong(0);
+	private static final AtomicLong decodesSaved = new AtomicLong(0);
+	private static final AtomicLong eventsDecoded = new AtomicLong(0);
+	private static final AtomicLong eventsSkippedOnResume = new AtomicLong(0);
+	private static final AtomicLong failures = new AtomicLong(0);
+
+	private final String pvName;
+	private final ArchDBRTypes dbrType;
+	private final PlainPBStoragePlugin storagePlugin;
+	private ExecutorService executor = null;
+
+	/**
+	 * A post processor whose cached data is generated from the raw data.
+	 * The same instance is used for all the raw partitions of the PV; this lets bins span partitions.
+	 */
+	static class Target {
+		final String userArg;
+		final PostProcessor postProcessor;
+		final String ppExt;
+
+		Target(String userArg, PostProcessor postProcessor) {
+			this.userArg = userArg;
+			this.postProcessor = postProcessor;
+			this.ppExt = "." + postProcessor.getExtension();
+		}
+	}
+
+	PlainPBPostProcessorFanOut(String pvName, ArchDBRTypes dbrType, PlainPBStoragePlugin storagePlugin) {
+		this.pvName = pvName;
+		this.dbrType = dbrType;
+		this.storagePlugin = storagePlugin;
+	}
+
+	/**
+	 * Generate the cached data for the targets from this raw partition.
+	 * @param context
+	 * @param srcPath - The raw partition
+	 * @param targets - The post processors whose cached data for this partition is missing or older than the raw partition.
+	 * @throws IOException
+	 */
+	void generate(BasicContext context, Path srcPath, List<Target> targets) throws IOException {
+		if(targets.isEmpty()) return;
+		ArrayList<Timestamp> resumeAfter = new ArrayList<Timestamp>(targets.size());
+		Timestamp decodeFrom = null;
+		boolean decodeEverything = false;
+		for(Target target : targets) {
+			Timestamp lastCachedTimestamp = getLastCachedTimestamp(context, srcPath, target);
+			resumeAfter.add(lastCachedTimestamp);
+			if(lastCachedTimestamp == null) {
+				decodeEverything = true;
+			} else if(decodeFrom == null || lastCachedTimestamp.before(decodeFrom)) {
+				decodeFrom = lastCachedTimestamp;
+			}
+		}
+
+		partitionsDecoded.incrementAndGet();
+		decodesSaved.addAndGet(targets.size() - 1);
+		try(FileBackedPBEventStream strm = openRawPartition(srcPath, decodeEverything ? null : decodeFrom)) {
+			if(strm == null) return;
+			if(targets.size() == 1) {
+				// Nothing to fan out to; run the post processor in this thread.
+				try {
+					appendPostProcessorData(context, targets.get(0), new ResumingEventStream(strm, resumeAfter.get(0)));
+				} catch(Exception ex) {
+					failures.incrementAndGet();
+					logger.error("Exception appending pp data for pv " + pvName + " for source " + srcPath + " for " + targets.get(0).userArg, ex);
+				}
+				return;
+			}
+
+			RemotableEventStreamDesc desc = strm.getDescription();
+			List<QueuedEventStream> queues = new ArrayList<QueuedEventStream>(targets.size());
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>(targets.size());
+			for(int i = 0; i < targets.size(); i++) {
+				final Target target = targets.get(i);
+				final QueuedEventStream queue = new QueuedEventStream(desc, resumeAfter.get(i));
+				queues.add(queue);
+				futures.add(getExecutor().submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						try(BasicContext consumerContext = new BasicContext()) {
+							return appendPostProcessorData(consumerContext, target, queue);
+						} finally {
+							queue.drain();
+						}
+					}
+				}));
+			}
+
+			boolean decodedEntirePartition = false;
+			try {
+				Constructor<? extends DBRTimeEvent> unmarshallingConstructor = DBR2PBTypeMapping.getPBClassFor(desc.getArchDBRType()).getUnmarshallingFromByteArrayConstructor();
+				short year = desc.getYear();
+				ArrayList<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+				for(Event e : strm) {
+					// The iterator reuses its line buffer; so each event gets its own copy of the bytes.
+					// We also decode the event here so that the post processor threads only read the decoded event.
+					Event event = unmarshallingConstructor.newInstance(year, new ByteArray(e.getRawForm().toBytes()));
+					event.getEventTimeStamp();
+					batch.add(event);
+					if(batch.size() >= BATCH_SIZE) {
+						putBatch(queues, batch);
+						batch = new ArrayList<Event>(BATCH_SIZE);
+					}
+				}
+				putBatch(queues, batch);
+				decodedEntirePartition = true;
+			} catch(InterruptedException ex) {
+				throw new IOException("Interrupted generating post processor data for " + pvName + " from " + srcPath, ex);
+			} catch(ReflectiveOperationException ex) {
+				throw new IOException("Exception decoding " + srcPath + " for pv " + pvName, ex);
+			} finally {
+				for(QueuedEventStream queue : queues) {
+					queue.endOfStream(decodedEntirePartition);
+				}
+				for(int i = 0; i < futures.size(); i++) {
+					try {
+						int eventsAppended = futures.get(i).get();
+						if(logger.isDebugEnabled()) logger.debug("Appended " + eventsAppended + " events for " + targets.get(i).userArg + " for pv " + pvName + " from " + srcPath);
+					} catch(InterruptedException ex) {
+						logger.error("Interrupted generating " + targets.get(i).userArg + " data for pv " + pvName + " from " + srcPath);
+					} catch(ExecutionException ex) {
+						failures.incrementAndGet();
+						logger.error("Exception appending pp data for pv " + pvName + " for source " + srcPath + " for " + targets.get(i).userArg, ex.getCause());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the post processor on the input and append its output to the cached data.
+	 * @return The number of events appended
+	 */
+	private int appendPostProcessorData(BasicContext context, Target target, EventStream input) throws Exception {
+		Callable<EventStream> callable = CallableEventStream.makeOneStreamCallable(input, target.postProcessor, true);
+		try(EventStream stream = callable.call()) {
+			AppendDataStateData state = storagePlugin.makeAppendDataStateForPostProcessor();
+			return state.partitionBoundaryAwareAppendData(context, pvName, stream, target.ppExt, null);
+		}
+	}
+
+	/**
+	 * The binning operators compute each bin from the events in that bin.
+	 * The last cached bin may have been computed from part of its events; since we never replace cached events, we do not need any of the events before it.
+	 * @return The timestamp of the last cached event or null if this post processor needs the entire partition.
+	 */
+	private Timestamp getLastCachedTimestamp(BasicContext context, Path srcPath, Target target) {
+		if(!(target.postProcessor instanceof SummaryStatsPostProcessor)) return null;
+		try {
+			Path ppPath = context.getPaths().get(srcPath.toUri().toString().replace(PlainPBStoragePlugin.PB_EXTENSION, target.ppExt));
+			if(!Files.exists(ppPath)) return null;
+			PBFileInfo info = new PBFileInfo(ppPath);
+			return info.getLastEvent() != null ? info.getLastEvent().getEventTimeStamp() : null;
+		} catch(Exception ex) {
+			logger.warn("Cannot determine the last cached event for " + target.userArg + " for pv " + pvName + "; regenerating from the start of " + srcPath, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * @param decodeFrom - If not null, we only need the events after this time.
+	 * @return null if there is nothing to decode.
+	 */
+	private FileBackedPBEventStream openRawPartition(Path srcPath, Timestamp decodeFrom) throws IOException {
+		if(decodeFrom == null) {
+			FileBackedPBEventStream strm = new FileBackedPBEventStream(pvName, srcPath, dbrType);
+			strm.setPartitionSummaries(storagePlugin.getPartitionSummaries());
+			return strm;
+		}
+		PBFileInfo srcInfo = new PBFileInfo(srcPath);
+		if(srcInfo.getLastEvent() == null || !srcInfo.getLastEvent().getEventTimeStamp().after(decodeFrom)) {
+			logger.debug("No events after the cached data in " + srcPath + " for pv " + pvName);
+			return null;
+		}
+		Timestamp end = TimeUtils.convertFromEpochSeconds(srcInfo.getLastEventEpochSeconds() + 1, 0);
+		return new FileBackedPBEventStream(pvName, srcPath, dbrType, decodeFrom, end, false);
+	}
+
+	private static void putBatch(List<QueuedEventStream> queues, List<Event> batch) throws InterruptedException {
+		if(batch.isEmpty()) return;
+		eventsDecoded.addAndGet(batch.size());
+		for(QueuedEventStream queue : queues) {
+			queue.put(batch);
+		}
+	}
+
+	private ExecutorService getExecutor() {
+		if(executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(0);
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Post processors for " + pvName + " " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	@Override
+	public void close() {
+		if(executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	public static Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		ret.put("partitionsDecoded", Long.toString(partitionsDecoded.get()));
+		ret.put("partitionDecodesSaved", Long.toString(decodesSaved.get()));
+		ret.put("eventsDecoded", Long.toString(eventsDecoded.get()));
+		ret.put("eventsSkippedOnResume", Long.toString(eventsSkippedOnResume.get()));
+		ret.put("failures", Long.toString(failures.get()));
+		return ret;
+	}
+
+	/**
+	 * Skips the events at or before the last cached event.
+	 */
+	private static class ResumingEventStream implements EventStream {
+		private final EventStream strm;
+		private final Timestamp resumeAfter;
+
+		ResumingEventStream(EventStream strm, Timestamp resumeAfter) {
+			this.strm = strm;
+			this.resumeAfter = resumeAfter;
+		}
+
+		@Override
+		public Iterator<Event> iterator() {
+			final Iterator<Event> it = strm.iterator();
+			return new Iterator<Event>() {
+				private Event next = null;
+
+				@Override
+				public boolean hasNext() {
+					while(next == null && it.hasNext()) {
+						Event e = it.next();
+						eventsDecoded.incrementAndGet();
+						if(resumeAfter != null && !e.getEventTimeStamp().after(resumeAfter)) {
+							eventsSkippedOnResume.incrementAndGet();
+							continue;
+						}
+						next = e;
+					}
+					return next != null;
+				}
+
+				@Override
+				public Event next() {
+					if(!hasNext()) throw new NoSuchElementException();
+					Event ret = next;
+					next = null;
+					return ret;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public EventStreamDesc getDescription() {
+			return strm.getDescription();
+		}
+
+		@Override
+		public void close() throws IOException {
+			strm.close();
+		}
+	}
+
+	/**
+	 * The events for one post processor thread.
+	 * If the ETL thread does not get thru the entire partition, the post processor fails instead of caching data for part of the partition.
+	 */
+	private static class QueuedEventStream implements EventStream {
+		private static final List<Event> END_OF_STREAM = new LinkedList<Event>();
+		private final BlockingQueue<List<Event>> queue = new ArrayBlockingQueue<List<Event>>(QUEUED_BATCHES_PER_POST_PROCESSOR);
+		private final RemotableEventStreamDesc desc;
+		private final Timestamp resumeAfter;
+		private volatile boolean complete = false;
+		private boolean ended = false;
+
+		QueuedEventStream(RemotableEventStreamDesc desc, Timestamp resumeAfter) {
+			this.desc = desc;
+			this.resumeAfter = resumeAfter;
+		}
+
+		void put(List<Event> batch) throws InterruptedException {
+			queue.put(batch);
+		}
+
+		void endOfStream(boolean complete) {
+			this.complete = complete;
+			try {
+				queue.put(END_OF_STREAM);
+			} catch(InterruptedException ex) {
+				logger.error("Interrupted ending the event stream for " + desc.getPvName());
+			}
+		}
+
+		/**
+		 * The post processor need not read all its input; we read the rest so that the ETL thread is not blocked.
+		 */
+		void drain() throws InterruptedException {
+			while(!ended) {
+				if(queue.take() == END_OF_STREAM) ended = true;
+			}
+		}
+
+		@Override
+		public Iterator<Event> iterator() {
+			return new Iterator<Event>() {
+				private Iterator<Event> batch = null;
+				private Event next = null;
+
+				@Override
+				public boolean hasNext() {
+					while(next == null && !ended) {
+						if(batch == null || !batch.hasNext()) {
+							List<Event> nextBatch;
+							try {
+								nextBatch = queue.take();
+							} catch(InterruptedException ex) {
+								throw new RuntimeException("Interrupted waiting for events for " + desc.getPvName(), ex);
+							}
+							if(nextBatch == END_OF_STREAM) {
+								ended = true;
+								if(!complete) throw new RuntimeException("Did not get all the events in the partition for " + desc.getPvName());
+								break;
+							}
+							batch = nextBatch.iterator();
+							continue;
+						}
+						Event e = batch.next();
+						if(resumeAfter != null && !e.getEventTimeStamp().after(resumeAfter)) {
+							eventsSkippedOnResume.incrementAndGet();
+							continue;
+						}
+						next = e;
+					}
+					return next != null;
+				}
+
+				@Override
+				public Event next() {
+					if(!hasNext()) throw new NoSuchElementException();
+					Event ret = next;
+					next = null;
+					return ret;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public RemotableEventStreamDesc getDescription() {
+			return desc;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
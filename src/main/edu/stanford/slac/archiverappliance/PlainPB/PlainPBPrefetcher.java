@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+
+/**
+ * Prefetch the partitions of a retrieval request that spans many partitions.
+ * Without this, each partition is opened and read only after the previous partition has been consumed; so the consumer waits on the latency of the file system (often NFS) for each partition.
+ * When the consumer starts on a partition, we read the portions of the next few partitions that will be consumed into memory on a pool of threads.
+ * This works for both the plain and the ZIP_PER_PV layouts as we read thru the same channels as the iterators.
+ * <br>
+ * The memory used for prefetched data is limited both per request and for the webapp as a whole.
+ * Partitions that do not fit into the budget are simply read from the file system as before.
+ * @author mshankar
+ *
+ */
+public class PlainPBPrefetcher {
+	private static Logger logger = Logger.getLogger(PlainPBPrefetcher.class.getName());
+	private static final String PROPERTY_PREFIX = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBPrefetcher.";
+	/**
+	 * Prefetched data that has not been released after this long is assumed to be abandoned (for example, the client went away) and no longer counts against the budget.
+	 */
+	static final long ABANDONED_AFTER_MILLIS = 5*60*1000;
+	private static PlainPBPrefetcher thePrefetcher = null;
+	private static boolean configured = false;
+
+	private final ThreadPoolExecutor executor;
+	private final int partitionsAhead;
+	private final long maxBytesPerRequest;
+	private final long maxBytesTotal;
+	private final AtomicLong bytesInUse = new AtomicLong(0);
+	private final ConcurrentHashMap<Prefetch, Long> outstandingPrefetches = new ConcurrentHashMap<Prefetch, Long>();
+
+	private final AtomicLong partitionsPrefetched = new AtomicLong(0);
+	private final AtomicLong bytesPrefetched = new AtomicLong(0);
+	private final AtomicLong prefetchHits = new AtomicLong(0);
+	private final AtomicLong waitsForPrefetch = new AtomicLong(0);
+	private final AtomicLong skippedForBudget = new AtomicLong(0);
+	private final AtomicLong prefetchFailures = new AtomicLong(0);
+
+	/**
+	 * Get the prefetcher for this webapp; this is created on first use.
+	 * @param configService
+	 * @return null if prefetching is turned off.
+	 */
+	public static synchronized PlainPBPrefetcher getPrefetcher(ConfigService configService) {
+		if(configured) return thePrefetcher;
+		configured = true;
+		Properties installationProperties = configService.getInstallationProperties();
+		if(!Boolean.parseBoolean(installationProperties.getProperty(PROPERTY_PREFIX + "enabled", "true"))) {
+			logger.info("Prefetching of PlainPB partitions is turned off");
+			return null;
+		}
+		final PlainPBPrefetcher prefetcher = new PlainPBPrefetcher(
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "threads", "8")),
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "partitionsAhead", "2")),
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "maxMBPerRequest", "64"))*1024*1024,
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "maxMBTotal", "512"))*1024*1024);
+		configService.addShutdownHook(new Runnable() {
+			@Override
+			public void run() {
+				logger.info("Shutting down the PlainPB prefetcher");
+				prefetcher.executor.shutdownNow();
+			}
+		});
+		thePrefetcher = prefetcher;
+		return thePrefetcher;
+	}
+
+	/**
+	 * @return The prefetcher for this webapp; null if we have not created one yet.
+	 */
+	public static PlainPBPrefetcher getExistingPrefetcher() {
+		return thePrefetcher;
+	}
+
+	/**
+	 * @param threads - The size of the I/O pool
+	 * @param partitionsAhead - How many partitions we prefetch ahead of the consumer
+	 * @param maxBytesPerRequest - The most prefetched data we hold for a request
+	 * @param maxBytesTotal - The most prefetched data we hold for all requests
+	 */
+	PlainPBPrefetcher(int threads, int partitionsAhead, long maxBytesPerRequest, long maxBytesTotal) {
+		this.partitionsAhead = Math.max(1, partitionsAhead);
+		this.maxBytesPerRequest = maxBytesPerRequest;
+		this.maxBytesTotal = maxBytesTotal;
+		final AtomicInteger threadNum = new AtomicInteger(0);
+		this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "PlainPB prefetch " + threadNum.incrementAndGet());
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+		logger.info("Prefetching " + this.partitionsAhead + " PlainPB partitions ahead using " + threads + " threads; at most " + maxBytesPerRequest + " bytes per request and " + maxBytesTotal + " bytes in all");
+	}
+
+	/**
+	 * Prefetch these partitions as a group; the streams should be in the order in which they will be consumed.
+	 * We start prefetching the first few partitions right away.
+	 * @param streams
+	 */
+	public void prefetch(List<FileBackedPBEventStream> streams) {
+		if(streams.size() < 2) return;
+		PrefetchGroup group = new PrefetchGroup(streams.toArray(new FileBackedPBEventStream[0]));
+		for(int i = 0; i < streams.size(); i++) {
+			streams.get(i).setPrefetchGroup(group, i);
+		}
+		group.submitAfter(-1);
+	}
+
+	/**
+	 * The partitions for one retrieval request.
+	 * @author mshankar
+	 *
+	 */
+	class PrefetchGroup {
+		private final FileBackedPBEventStream[] streams;
+		private final Prefetch[] prefetches;
+		private final AtomicLong bytesReserved = new AtomicLong(0);
+
+		PrefetchGroup(FileBackedPBEventStream[] streams) {
+			this.streams = streams;
+			this.prefetches = new Prefetch[streams.length];
+		}
+
+		private synchronized void submitAfter(int currentIndex) {
+			for(int i = currentIndex + 1; i <= Math.min(currentIndex + partitionsAhead, streams.length - 1); i++) {
+				if(prefetches[i] == null) {
+					prefetches[i] = new Prefetch(this, streams[i]);
+					prefetches[i].future = executor.submit(prefetches[i]);
+				}
+			}
+		}
+
+		/**
+		 * Called when the consumer starts on a partition.
+		 * We wait for the prefetch of this partition to complete and start prefetching the next few partitions.
+		 * @param index
+		 * @return A channel over the prefetched data; null if we did not prefetch this partition.
+		 */
+		SeekableByteChannel claim(int index) {
+			submitAfter(index);
+			Prefetch prefetch;
+			synchronized(this) {
+				prefetch = prefetches[index];
+			}
+			if(prefetch == null) return null;
+			return prefetch.claim();
+		}
+
+		/**
+		 * Called when the stream for a partition is closed; we release any prefetched data that was not claimed.
+		 * @param index
+		 */
+		void discard(int index) {
+			Prefetch prefetch;
+			synchronized(this) {
+				prefetch = prefetches[index];
+			}
+			if(prefetch != null) prefetch.discard();
+		}
+	}
+
+	/**
+	 * The prefetch of one partition.
+	 * @author mshankar
+	 *
+	 */
+	private class Prefetch implements Callable<PrefetchedByteChannel> {
+		private final PrefetchGroup group;
+		private final FileBackedPBEventStream stream;
+		private Future<PrefetchedByteChannel> future;
+		private long reservedBytes = 0;
+		private boolean claimed = false;
+		private boolean released = false;
+
+		Prefetch(PrefetchGroup group, FileBackedPBEventStream stream) {
+			this.group = group;
+			this.stream = stream;
+		}
+
+		@Override
+		public PrefetchedByteChannel call() throws Exception {
+			Path path = stream.getReadPath();
+			try {
+				long[] range = stream.getPrefetchRange();
+				long len = range[1] - range[0];
+				if(len <= 0 || !reserve(len)) {
+					return null;
+				}
+				byte[] data = new byte[(int) len];
+				int totalRead = 0;
+				long fileSize;
+				try(SeekableByteChannel channel = ArchPaths.newByteChannel(path, StandardOpenOption.READ)) {
+					fileSize = channel.size();
+					channel.position(range[0]);
+					ByteBuffer buf = ByteBuffer.wrap(data);
+					while(buf.hasRemaining()) {
+						int bytesRead = channel.read(buf);
+						if(bytesRead <= 0) break;
+						totalRead += bytesRead;
+					}
+				}
+				if(totalRead < data.length) {
+					// The file is shorter than we expected; reads past what we have will go to the file.
+					data = Arrays.copyOf(data, totalRead);
+				}
+				partitionsPrefetched.incrementAndGet();
+				bytesPrefetched.addAndGet(totalRead);
+				PrefetchedByteChannel ret = new PrefetchedByteChannel(path, data, range[0], fileSize, new Runnable() {
+					@Override
+					public void run() {
+						release();
+					}
+				});
+				synchronized(this) {
+					if(released) {
+						// The stream was closed while we were reading.
+						return null;
+					}
+				}
+				return ret;
+			} catch(Exception ex) {
+				prefetchFailures.incrementAndGet();
+				logger.warn("Exception prefetching " + path.toString() + "; this will be read when it is consumed", ex);
+				release();
+				return null;
+			}
+		}
+
+		private boolean reserve(long len) {
+			if(group.bytesReserved.get() + len > maxBytesPerRequest) {
+				skippedForBudget.incrementAndGet();
+				return false;
+			}
+			if(!reserveGlobal(len)) {
+				releaseAbandonedPrefetches();
+				if(!reserveGlobal(len)) {
+					skippedForBudget.incrementAndGet();
+					return false;
+				}
+			}
+			group.bytesReserved.addAndGet(len);
+			synchronized(this) {
+				reservedBytes = len;
+			}
+			outstandingPrefetches.put(this, System.currentTimeMillis());
+			return true;
+		}
+
+		private boolean reserveGlobal(long len) {
+			while(true) {
+				long current = bytesInUse.get();
+				if(current + len > maxBytesTotal) return false;
+				if(bytesInUse.compareAndSet(current, current + len)) return true;
+			}
+		}
+
+		/**
+		 * Release our share of the budget; this is called once when the data has been consumed, discarded or abandoned.
+		 */
+		void release() {
+			long toRelease;
+			synchronized(this) {
+				if(released) return;
+				released = true;
+				toRelease = reservedBytes;
+				reservedBytes = 0;
+			}
+			outstandingPrefetches.remove(this);
+			if(toRelease > 0) {
+				bytesInUse.addAndGet(-toRelease);
+				group.bytesReserved.addAndGet(-toRelease);
+			}
+		}
+
+		SeekableByteChannel claim() {
+			synchronized(this) {
+				if(claimed || released) return null;
+				claimed = true;
+			}
+			try {
+				if(!future.isDone()) waitsForPrefetch.incrementAndGet();
+				PrefetchedByteChannel channel = future.get();
+				if(channel != null) prefetchHits.incrementAndGet();
+				return channel;
+			} catch(InterruptedException | ExecutionException ex) {
+				logger.warn("Exception waiting for the prefetch of " + stream.getPath().toString(), ex);
+				release();
+				return null;
+			}
+		}
+
+		void discard() {
+			boolean wasClaimed;
+			synchronized(this) {
+				wasClaimed = claimed;
+			}
+			// Claimed data is released when the iterator closes the channel.
+			if(!wasClaimed) {
+				future.cancel(false);
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Prefetched data that has been around for too long is assumed to be abandoned.
+	 * We stop counting it against the budget; the memory itself is reclaimed by the garbage collector once the streams are gone.
+	 */
+	private void releaseAbandonedPrefetches() {
+		long now = System.currentTimeMillis();
+		for(Prefetch prefetch : outstandingPrefetches.keySet()) {
+			Long reservedAt = outstandingPrefetches.get(prefetch);
+			if(reservedAt != null && now - reservedAt > ABANDONED_AFTER_MILLIS) {
+				logger.debug("Releasing abandoned prefetch of " + prefetch.stream.getPath().toString());
+				prefetch.release();
+			}
+		}
+	}
+
+	/**
+	 * @return Metrics for the appliance metrics page
+	 */
+	public LinkedHashMap<String, String> getMetrics() {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		ret.put("partitionsPrefetched", Long.toString(partitionsPrefetched.get()));
+		ret.put("bytesPrefetched", Long.toString(bytesPrefetched.get()));
+		ret.put("prefetchHits", Long.toString(prefetchHits.get()));
+		ret.put("waitsForPrefetch", Long.toString(waitsForPrefetch.get()));
+		ret.put("skippedForBudget", Long.toString(skippedForBudget.get()));
+		ret.put("prefetchFailures", Long.toString(prefetchFailures.get()));
+		ret.put("bytesInUse", Long.toString(bytesInUse.get()));
+		ret.put("queuedPrefetches", Integer.toString(executor.getQueue().size()));
+		return ret;
+	}
+}
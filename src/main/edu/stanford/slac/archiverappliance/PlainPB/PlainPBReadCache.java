@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ConfigService;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A read cache of partitions on a local (typically SSD) folder for stores that live on a large but slow file system (typically a NAS).
+ * Partitions that are read often are copied into the cache folder in the background; retrieval then reads the local copy instead of the partition.
+ * <ul>
+ * <li>A partition is copied only after it has been read <code>minReadsToCache</code> times; so a one time scan of a large time range does not flush the cache.
+ * Partitions that have been modified in the last <code>minAgeMinutes</code> (typically, those that ETL is still writing to) and partitions larger than <code>maxPartitionMB</code> are not copied.</li>
+ * <li>The copies are limited to <code>maxGB</code>; the least recently read copies are evicted first.</li>
+ * <li>Before we use a copy, we check that the size and modification time of the partition are the same as when we made the copy.
+ * As ETL and retrieval usually run in different webapps, this is what keeps the copies consistent; moves, deletes and rewrites of partitions within this webapp also drop the copies right away.</li>
+ * <li>The copies are read using the partition's checksums (if any); the partition summaries and file info are also kept against the partition and not the copy.</li>
+ * </ul>
+ * We do not know which partitions the files in the cache folder are copies of after a restart; so the cache folder is emptied when the cache is created.
+ * The cache is turned off unless <code>folder</code> is set; <code>stores</code> limits the cache to the named stores.
+ * @author mshankar
+ *
+ */
+public class PlainPBReadCache {
+	private static Logger logger = Logger.getLogger(PlainPBReadCache.class.getName());
+	private static final String PROPERTY_PREFIX = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBReadCache.";
+	private static final String COPY_SUFFIX = ".copying";
+	private static volatile PlainPBReadCache theCache = null;
+	private static boolean configured = false;
+
+	private final Path cacheFolder;
+	private final Set<String> storeNames;
+	private final long maxBytes;
+	private final long maxPartitionBytes;
+	private final int minReadsToCache;
+	private final long minAgeMillis;
+	private final ThreadPoolExecutor copyExecutor;
+	/**
+	 * The copies indexed by the partition's path in least recently read order; this and bytesCached are guarded by this.
+	 */
+	private final LinkedHashMap<String, CachedCopy> copies = new LinkedHashMap<String, CachedCopy>(1024, 0.75f, true);
+	private long bytesCached = 0;
+	/**
+	 * The number of reads of partitions that we have not copied yet.
+	 */
+	private final Cache<String, AtomicInteger> readCounts = CacheBuilder.newBuilder().maximumSize(100000).build();
+	private final Set<String> copiesInProgress = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicLong copySequence = new AtomicLong(0);
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong copiesMade = new AtomicLong(0);
+	private final AtomicLong bytesCopied = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+	private final AtomicLong staleCopies = new AtomicLong(0);
+	private final AtomicLong invalidations = new AtomicLong(0);
+	private final AtomicLong copyFailures = new AtomicLong(0);
+
+	private static class CachedCopy {
+		final Path copyPath;
+		final long size;
+		final long lastModifiedMillis;
+
+		CachedCopy(Path copyPath, long size, long lastModifiedMillis) {
+			this.copyPath = copyPath;
+			this.size = size;
+			this.lastModifiedMillis = lastModifiedMillis;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return this.size == attrs.size() && this.lastModifiedMillis == attrs.lastModifiedTime().toMillis();
+		}
+	}
+
+	/**
+	 * Get the read cache for this webapp; this is created on first use.
+	 * @param configService
+	 * @return null if the read cache is turned off.
+	 */
+	public static synchronized PlainPBReadCache getReadCache(ConfigService configService) {
+		if(configured) return theCache;
+		configured = true;
+		Properties installationProperties = configService.getInstallationProperties();
+		String folder = installationProperties.getProperty(PROPERTY_PREFIX + "folder", "");
+		if(folder.trim().isEmpty()) {
+			logger.debug("The PlainPB read cache is turned off");
+			return null;
+		}
+		Set<String> storeNames = new HashSet<String>();
+		for(String storeName : installationProperties.getProperty(PROPERTY_PREFIX + "stores", "").split(",")) {
+			if(!storeName.trim().isEmpty()) storeNames.add(storeName.trim());
+		}
+		try {
+			final PlainPBReadCache readCache = new PlainPBReadCache(Paths.get(folder.trim()), storeNames,
+					Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "maxGB", "100"))*1024*1024*1024,
+					Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "maxPartitionMB", "1024"))*1024*1024,
+					Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "minReadsToCache", "2")),
+					Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "minAgeMinutes", "60"))*60*1000,
+					Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "copyThreads", "2")));
+			configService.addShutdownHook(new Runnable() {
+				@Override
+				public void run() {
+					logger.info("Shutting down the PlainPB read cache");
+					readCache.copyExecutor.shutdownNow();
+				}
+			});
+			theCache = readCache;
+		} catch(IOException ex) {
+			logger.error("Cannot create the PlainPB read cache in " + folder + "; turning off the read cache", ex);
+		}
+		return theCache;
+	}
+
+	/**
+	 * @return The read cache for this webapp; null if we have not created one yet.
+	 */
+	public static PlainPBReadCache getExistingReadCache() {
+		return theCache;
+	}
+
+	/**
+	 * Called when a partition is moved, deleted or rewritten in this webapp; we drop the copy of the partition if we have one.
+	 * @param path
+	 */
+	public static void partitionChanged(Path path) {
+		PlainPBReadCache readCache = theCache;
+		if(readCache != null) {
+			readCache.invalidate(path);
+		}
+	}
+
+	/**
+	 * @param cacheFolder - The local folder for the copies; this is emptied.
+	 * @param storeNames - The stores we cache; all stores if this is empty.
+	 * @param maxBytes - The most space the copies can use
+	 * @param maxPartitionBytes - Partitions larger than this are not copied.
+	 * @param minReadsToCache - How many times a partition is read before we copy it.
+	 * @param minAgeMillis - Partitions modified more recently than this are not copied.
+	 * @param copyThreads - The number of threads making copies
+	 * @throws IOException
+	 */
+	PlainPBReadCache(Path cacheFolder, Set<String> storeNames, long maxBytes, long maxPartitionBytes, int minReadsToCache, long minAgeMillis, int copyThreads) throws IOException {
+		this.cacheFolder = cacheFolder;
+		this.storeNames = storeNames;
+		this.maxBytes = maxBytes;
+		this.maxPartitionBytes = Math.min(maxPartitionBytes, maxBytes);
+		this.minReadsToCache = Math.max(1, minReadsToCache);
+		this.minAgeMillis = minAgeMillis;
+		File cacheFolderFile = cacheFolder.toFile();
+		if(cacheFolderFile.exists()) {
+			FileUtils.cleanDirectory(cacheFolderFile);
+		}
+		Files.createDirectories(cacheFolder);
+		final AtomicInteger threadNum = new AtomicInteger(0);
+		// If we fall behind, we simply skip copying some partitions; these are copied when they are read again.
+		this.copyExecutor = new ThreadPoolExecutor(Math.max(1, copyThreads), Math.max(1, copyThreads), 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1000), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "PlainPB read cache " + threadNum.incrementAndGet());
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		this.copyExecutor.allowCoreThreadTimeOut(true);
+		logger.info("Caching PlainPB partitions " + (storeNames.isEmpty() ? "" : "of " + storeNames + " ") + "in " + cacheFolder + " using at most " + maxBytes + " bytes");
+	}
+
+	/**
+	 * @param storeName
+	 * @return true if we cache the partitions of this store.
+	 */
+	public boolean isCachingStore(String storeName) {
+		return storeNames.isEmpty() || storeNames.contains(storeName);
+	}
+
+	/**
+	 * Get the path that retrieval should read this partition from.
+	 * This is our copy of the partition if we have an up to date copy; otherwise, this is the partition itself and we may copy the partition in the background.
+	 * @param path - The partition
+	 * @return The path to read the partition from
+	 */
+	public Path getPathForRead(Path path) {
+		if(path.getFileSystem() != FileSystems.getDefault()) return path;
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch(IOException ex) {
+			// The caller will run into the same issue when reading the partition.
+			return path;
+		}
+		String key = path.toAbsolutePath().toString();
+		CachedCopy staleCopy = null;
+		synchronized(this) {
+			CachedCopy copy = copies.get(key);
+			if(copy != null) {
+				if(copy.matches(attrs)) {
+					hits.incrementAndGet();
+					return copy.copyPath;
+				}
+				staleCopy = removeCopy(key);
+			}
+		}
+		if(staleCopy != null) {
+			logger.debug("Partition " + path + " changed after we copied it");
+			staleCopies.incrementAndGet();
+			deleteCopy(staleCopy);
+		}
+		misses.incrementAndGet();
+		copyIfReadOften(path, key, attrs);
+		return path;
+	}
+
+	private void copyIfReadOften(final Path path, final String key, BasicFileAttributes attrs) {
+		if(attrs.size() <= 0 || attrs.size() > maxPartitionBytes) return;
+		if(System.currentTimeMillis() - attrs.lastModifiedTime().toMillis() < minAgeMillis) return;
+		AtomicInteger newReadCount = new AtomicInteger(0);
+		AtomicInteger readCount = readCounts.asMap().putIfAbsent(key, newReadCount);
+		if(readCount == null) readCount = newReadCount;
+		if(readCount.incrementAndGet() < minReadsToCache) return;
+		if(!copiesInProgress.add(key)) return;
+		try {
+			copyExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						copyPartition(path, key);
+					} catch(Throwable t) {
+						copyFailures.incrementAndGet();
+						logger.error("Exception copying " + path + " into the read cache", t);
+					} finally {
+						copiesInProgress.remove(key);
+					}
+				}
+			});
+		} catch(RejectedExecutionException ex) {
+			logger.debug("Skipping the copy of " + path + " into the read cache as we are busy");
+			copiesInProgress.remove(key);
+		}
+	}
+
+	/**
+	 * Copy the partition into the cache folder; if the partition changes while we copy it, we discard the copy.
+	 */
+	void copyPartition(Path path, String key) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		Path copyPath = cacheFolder.resolve(copySequence.incrementAndGet() + "_" + path.getFileName().toString());
+		Path tempPath = copyPath.resolveSibling(copyPath.getFileName().toString() + COPY_SUFFIX);
+		try {
+			Files.copy(path, tempPath, StandardCopyOption.REPLACE_EXISTING);
+			BasicFileAttributes attrsAfter = Files.readAttributes(path, BasicFileAttributes.class);
+			if(attrsAfter.size() != attrs.size() || !attrsAfter.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+				logger.debug("Partition " + path + " changed while we were copying it");
+				return;
+			}
+			Files.move(tempPath, copyPath, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempPath);
+		}
+
+		CachedCopy previousCopy;
+		synchronized(this) {
+			previousCopy = copies.put(key, new CachedCopy(copyPath, attrs.size(), attrs.lastModifiedTime().toMillis()));
+			bytesCached += attrs.size();
+			if(previousCopy != null) bytesCached -= previousCopy.size;
+		}
+		if(previousCopy != null) deleteCopy(previousCopy);
+		readCounts.invalidate(key);
+		copiesMade.incrementAndGet();
+		bytesCopied.addAndGet(attrs.size());
+		evictIfNeeded();
+	}
+
+	/**
+	 * Evict the least recently read copies until we are within our budget.
+	 */
+	private void evictIfNeeded() {
+		List<CachedCopy> evicted = new LinkedList<CachedCopy>();
+		synchronized(this) {
+			Iterator<Map.Entry<String, CachedCopy>> it = copies.entrySet().iterator();
+			while(bytesCached > maxBytes && it.hasNext()) {
+				CachedCopy copy = it.next().getValue();
+				it.remove();
+				bytesCached -= copy.size;
+				evicted.add(copy);
+			}
+		}
+		for(CachedCopy copy : evicted) {
+			evictions.incrementAndGet();
+			deleteCopy(copy);
+		}
+	}
+
+	void invalidate(Path path) {
+		if(path.getFileSystem() != FileSystems.getDefault()) return;
+		String key = path.toAbsolutePath().toString();
+		readCounts.invalidate(key);
+		CachedCopy copy;
+		synchronized(this) {
+			copy = removeCopy(key);
+		}
+		if(copy != null) {
+			invalidations.incrementAndGet();
+			deleteCopy(copy);
+		}
+	}
+
+	/**
+	 * Remove the copy from our index; the caller should hold the lock and delete the copy after releasing the lock.
+	 */
+	private CachedCopy removeCopy(String key) {
+		CachedCopy copy = copies.remove(key);
+		if(copy != null) bytesCached -= copy.size;
+		return copy;
+	}
+
+	/**
+	 * Readers that already have the copy open continue to read it; on POSIX file systems, the space is reclaimed when they are done.
+	 */
+	private static void deleteCopy(CachedCopy copy) {
+		try {
+			Files.deleteIfExists(copy.copyPath);
+		} catch(IOException ex) {
+			logger.warn("Exception deleting " + copy.copyPath + " from the read cache", ex);
+		}
+	}
+
+	public LinkedHashMap<String, String> getMetrics() {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		long hitCount = hits.get();
+		long missCount = misses.get();
+		ret.put("hits", Long.toString(hitCount));
+		ret.put("misses", Long.toString(missCount));
+		ret.put("hitRatePercent", Long.toString((hitCount + missCount) > 0 ? (hitCount*100)/(hitCount + missCount) : 0));
+		synchronized(this) {
+			ret.put("cachedPartitions", Integer.toString(copies.size()));
+			ret.put("bytesCached", Long.toString(bytesCached));
+		}
+		ret.put("maxBytes", Long.toString(maxBytes));
+		ret.put("copiesMade", Long.toString(copiesMade.get()));
+		ret.put("bytesCopied", Long.toString(bytesCopied.get()));
+		ret.put("evictions", Long.toString(evictions.get()));
+		ret.put("staleCopies", Long.toString(staleCopies.get()));
+		ret.put("invalidations", Long.toString(invalidations.get()));
+		ret.put("copyFailures", Long.toString(copyFailures.get()));
+		ret.put("queuedCopies", Integer.toString(copyExecutor.getQueue().size()));
+		return ret;
+	}
+}
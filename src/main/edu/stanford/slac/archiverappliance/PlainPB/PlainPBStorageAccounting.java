@@ -0,0 +1,452 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ConfigService;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Per PV accounting of the space (and an estimate of the number of events) consumed in a PlainPB store.
+ * Without this, the storage reports list and stat every partition of every PV; on a NFS LTS with many PVs this takes a long time and generates a lot of metadata traffic.
+ * <ul>
+ * <li>The space consumed by a PV is established once by walking the PV's partitions; after this it is maintained incrementally.
+ * Appends (both engine writes and ETL writes go thru AppendDataStateData) add the bytes written; ETL deletes subtract the size of the partition being deleted.
+ * Changes to a PV that we cannot track incrementally (conversions, renames etc) simply drop the PV; the next request walks the PV again.</li>
+ * <li>The number of events is an estimate; we count the events and the event bytes written in this process and scale the space consumed by the average event size.</li>
+ * <li>A background scrub walks a few PVs every minute and reconciles the counters with the disk.
+ * This picks up changes made by other processes (for example, the engine appending to the STS while ETL moves data out of the STS).</li>
+ * <li>The counters are persisted periodically (and on shutdown) and loaded on startup so that a restart does not need a full walk.</li>
+ * </ul>
+ * The accounting is shared across all the PlainPBStoragePlugin instances in this process that use the same root folder.
+ * This only applies to the uncompressed layout.
+ *
+ * These can be configured in archappl.properties
+ * <ul>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBStorageAccounting.enabled</code> - Set this to false to always walk the PV's partitions.</li>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBStorageAccounting.scrubPVsPerMinute</code> - The number of PVs the scrub walks every minute for each store. Set this to 0 to turn off the scrub.</li>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBStorageAccounting.persistIntervalSeconds</code> - How often we persist the counters.</li>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBStorageAccounting.persistFolder</code> - The folder where we persist the counters; this defaults to a folder in java.io.tmpdir.</li>
+ * </ul>
+ *
+ * @author mshankar
+ *
+ */
+public class PlainPBStorageAccounting {
+	private static final Logger logger = Logger.getLogger(PlainPBStorageAccounting.class);
+
+	public static final String ENABLED_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBStorageAccounting.enabled";
+	public static final String SCRUB_PVS_PER_MINUTE_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBStorageAccounting.scrubPVsPerMinute";
+	public static final String PERSIST_INTERVAL_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBStorageAccounting.persistIntervalSeconds";
+	public static final String PERSIST_FOLDER_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBStorageAccounting.persistFolder";
+
+	private static ConcurrentHashMap<String, PlainPBStorageAccounting> accountings = new ConcurrentHashMap<String, PlainPBStorageAccounting>();
+	private static ScheduledExecutorService scrubExecutor = null;
+
+	/**
+	 * Walks the partitions of a PV and returns the space consumed; this is the PlainPBStoragePlugin.
+	 */
+	interface SpaceWalker {
+		public long walkSpaceConsumedByPV(String pvName) throws IOException;
+	}
+
+	/**
+	 * The counters for one PV.
+	 * The modification count lets the scrub detect that the counters changed while it was walking the PV.
+	 */
+	static class PVUsage {
+		long bytes;
+		long eventsWritten;
+		long eventBytesWritten;
+		long modifications;
+
+		PVUsage(long bytes, long eventsWritten, long eventBytesWritten) {
+			this.bytes = bytes;
+			this.eventsWritten = eventsWritten;
+			this.eventBytesWritten = eventBytesWritten;
+		}
+
+		synchronized long estimatedEvents() {
+			if(eventsWritten <= 0 || eventBytesWritten <= 0) return -1;
+			return Math.round(((double) bytes)*eventsWritten/eventBytesWritten);
+		}
+	}
+
+	private final String rootFolder;
+	private final Path persistFile;
+	private final int scrubPVsPerMinute;
+	private final long persistIntervalMillis;
+	private final ConfigService configService;
+	private final ConcurrentHashMap<String, PVUsage> pvUsages = new ConcurrentHashMap<String, PVUsage>();
+	volatile SpaceWalker walker;
+	private Iterator<String> scrubCursor = null;
+	private long lastPersistedMillis = System.currentTimeMillis();
+	private volatile boolean modifiedSinceLastPersist = false;
+
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong walks = new AtomicLong(0);
+	private AtomicLong scrubbed = new AtomicLong(0);
+	private AtomicLong scrubCorrections = new AtomicLong(0);
+	private AtomicLong scrubCorrectionBytes = new AtomicLong(0);
+
+	/**
+	 * Get the accounting for the specified root folder; creating one if necessary.
+	 * @param rootFolder
+	 * @param walker - Used to establish the counters for a PV and by the scrub
+	 * @param configService
+	 * @return The accounting or null if this is turned off in this installation.
+	 */
+	static PlainPBStorageAccounting getAccounting(String rootFolder, SpaceWalker walker, ConfigService configService) {
+		PlainPBStorageAccounting accounting = accountings.get(rootFolder);
+		if(accounting != null) {
+			accounting.walker = walker;
+			return accounting;
+		}
+
+		if(!Boolean.parseBoolean(configService.getInstallationProperties().getProperty(ENABLED_PROPERTY, "true"))) {
+			logger.debug("Storage accounting is turned off for " + rootFolder);
+			return null;
+		}
+		int scrubPVsPerMinute = Integer.parseInt(configService.getInstallationProperties().getProperty(SCRUB_PVS_PER_MINUTE_PROPERTY, "600"));
+		long persistIntervalSeconds = Long.parseLong(configService.getInstallationProperties().getProperty(PERSIST_INTERVAL_PROPERTY, "600"));
+		String persistFolder = configService.getInstallationProperties().getProperty(PERSIST_FOLDER_PROPERTY, System.getProperty("java.io.tmpdir") + "/archappl_storage_accounting");
+		String persistName = (configService.getWarFile() != null ? configService.getWarFile().toString() : "NONE") + "_" + Integer.toHexString(rootFolder.hashCode()) + ".json";
+		PlainPBStorageAccounting newAccounting = new PlainPBStorageAccounting(rootFolder, Paths.get(persistFolder, persistName), scrubPVsPerMinute, persistIntervalSeconds, configService);
+		newAccounting.walker = walker;
+		accounting = accountings.putIfAbsent(rootFolder, newAccounting);
+		if(accounting == null) {
+			logger.info("Created storage accounting for " + rootFolder + " persisted in " + newAccounting.persistFile + " scrubbing " + scrubPVsPerMinute + " PVs per minute");
+			newAccounting.load();
+			startScrub(configService);
+			accounting = newAccounting;
+		}
+		return accounting;
+	}
+
+	PlainPBStorageAccounting(String rootFolder, Path persistFile, int scrubPVsPerMinute, long persistIntervalSeconds, ConfigService configService) {
+		this.rootFolder = rootFolder;
+		this.persistFile = persistFile;
+		this.scrubPVsPerMinute = scrubPVsPerMinute;
+		this.persistIntervalMillis = persistIntervalSeconds*1000;
+		this.configService = configService;
+	}
+
+	private static synchronized void startScrub(ConfigService configService) {
+		if(scrubExecutor != null) return;
+		scrubExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Storage accounting scrub");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scrubExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for(PlainPBStorageAccounting accounting : accountings.values()) {
+					try {
+						accounting.scrub();
+						accounting.persistIfNeeded(false);
+					} catch(Throwable t) {
+						logger.error("Exception scrubbing storage accounting for " + accounting.rootFolder, t);
+					}
+				}
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+		configService.addShutdownHook(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(PlainPBStorageAccounting.class) {
+					if(scrubExecutor != null) {
+						scrubExecutor.shutdownNow();
+						scrubExecutor = null;
+					}
+				}
+				for(PlainPBStorageAccounting accounting : accountings.values()) {
+					accounting.persistIfNeeded(true);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the space consumed by this PV; if we have not established the counters for this PV yet, we walk the PV's partitions.
+	 * @param pvName
+	 * @return
+	 * @throws IOException
+	 */
+	public long spaceConsumedByPV(String pvName) throws IOException {
+		PVUsage usage = pvUsages.get(pvName);
+		if(usage != null) {
+			hits.incrementAndGet();
+			synchronized(usage) {
+				return usage.bytes;
+			}
+		}
+		return establish(pvName).bytes;
+	}
+
+	/**
+	 * Get an estimate of the number of events for this PV.
+	 * @param pvName
+	 * @return -1 if we do not have an estimate.
+	 * @throws IOException
+	 */
+	public long estimatedEventsForPV(String pvName) throws IOException {
+		PVUsage usage = pvUsages.get(pvName);
+		if(usage == null) usage = establish(pvName);
+		return usage.estimatedEvents();
+	}
+
+	/**
+	 * The total space consumed by all the PVs that we know of in this store.
+	 * @return
+	 */
+	public long spaceConsumedByAllPVs() {
+		long total = 0;
+		for(PVUsage usage : pvUsages.values()) {
+			synchronized(usage) {
+				total += usage.bytes;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * This process wrote to a partition of this PV.
+	 * @param pvName
+	 * @param bytesAdded - The change in the size of the partition including any header we wrote.
+	 * @param eventsWritten - The number of events written.
+	 * @param eventBytesWritten - The number of bytes in these events.
+	 */
+	public void bytesWritten(String pvName, long bytesAdded, long eventsWritten, long eventBytesWritten) {
+		PVUsage usage = pvUsages.get(pvName);
+		if(usage == null) return;
+		synchronized(usage) {
+			usage.bytes += bytesAdded;
+			usage.eventsWritten += eventsWritten;
+			usage.eventBytesWritten += eventBytesWritten;
+			usage.modifications++;
+		}
+		modifiedSinceLastPersist = true;
+	}
+
+	/**
+	 * This process deleted (or overwrote) a partition of this PV.
+	 * @param pvName
+	 * @param size - The size of the partition that was deleted.
+	 */
+	public void bytesDeleted(String pvName, long size) {
+		PVUsage usage = pvUsages.get(pvName);
+		if(usage == null) return;
+		synchronized(usage) {
+			// Other processes can add data to the store; so we never go below zero and let the scrub fix things up.
+			usage.bytes = Math.max(0, usage.bytes - size);
+			usage.modifications++;
+		}
+		modifiedSinceLastPersist = true;
+	}
+
+	/**
+	 * Forget what we know about this PV; the next request walks the PV's partitions.
+	 * @param pvName
+	 */
+	public void invalidate(String pvName) {
+		if(pvUsages.remove(pvName) != null) modifiedSinceLastPersist = true;
+	}
+
+	/**
+	 * Get some metrics about the accounting.
+	 * @return
+	 */
+	public Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		ret.put("pvs", Integer.toString(pvUsages.size()));
+		ret.put("hits", Long.toString(hits.get()));
+		ret.put("walks", Long.toString(walks.get()));
+		ret.put("scrubbed", Long.toString(scrubbed.get()));
+		ret.put("scrubCorrections", Long.toString(scrubCorrections.get()));
+		ret.put("scrubCorrectionBytes", Long.toString(scrubCorrectionBytes.get()));
+		return ret;
+	}
+
+	/**
+	 * Get the metrics for all the stores in this process; indexed by root folder.
+	 * @return
+	 */
+	public static Map<String, Map<String, String>> getAllMetrics() {
+		TreeMap<String, Map<String, String>> ret = new TreeMap<String, Map<String, String>>();
+		for(PlainPBStorageAccounting accounting : accountings.values()) {
+			ret.put(accounting.rootFolder, accounting.getMetrics());
+		}
+		return ret;
+	}
+
+	private PVUsage establish(String pvName) throws IOException {
+		SpaceWalker currentWalker = walker;
+		long bytes = currentWalker.walkSpaceConsumedByPV(pvName);
+		walks.incrementAndGet();
+		PVUsage newUsage = new PVUsage(bytes, 0, 0);
+		PVUsage usage = pvUsages.putIfAbsent(pvName, newUsage);
+		if(usage == null) {
+			modifiedSinceLastPersist = true;
+			return newUsage;
+		}
+		return usage;
+	}
+
+	/**
+	 * Walk the next few PVs and reconcile the counters with the disk.
+	 * We go thru the PVs we know about and the PVs in this appliance; so over time all the PVs are established.
+	 */
+	void scrub() {
+		if(scrubPVsPerMinute <= 0 || walker == null) return;
+		for(int i = 0; i < scrubPVsPerMinute; i++) {
+			String pvName = nextPVToScrub();
+			if(pvName == null) return;
+			try {
+				scrubPV(pvName);
+			} catch(IOException ex) {
+				logger.warn("Exception scrubbing storage accounting for " + pvName + " in " + rootFolder, ex);
+			}
+		}
+	}
+
+	void scrubPV(String pvName) throws IOException {
+		PVUsage usage = pvUsages.get(pvName);
+		if(usage == null) {
+			establish(pvName);
+			scrubbed.incrementAndGet();
+			return;
+		}
+		long modificationsBefore;
+		synchronized(usage) {
+			modificationsBefore = usage.modifications;
+		}
+		long walkedBytes = walker.walkSpaceConsumedByPV(pvName);
+		walks.incrementAndGet();
+		scrubbed.incrementAndGet();
+		synchronized(usage) {
+			if(usage.modifications != modificationsBefore) {
+				logger.debug("Storage accounting for " + pvName + " changed while we were scrubbing; we'll get it next time");
+				return;
+			}
+			if(usage.bytes != walkedBytes) {
+				scrubCorrections.incrementAndGet();
+				scrubCorrectionBytes.addAndGet(Math.abs(usage.bytes - walkedBytes));
+				if(logger.isDebugEnabled()) logger.debug("Storage accounting for " + pvName + " in " + rootFolder + " had " + usage.bytes + " bytes; the disk has " + walkedBytes);
+				usage.bytes = walkedBytes;
+				modifiedSinceLastPersist = true;
+			}
+		}
+	}
+
+	private synchronized String nextPVToScrub() {
+		if(scrubCursor == null || !scrubCursor.hasNext()) {
+			// Take a snapshot of the PVs to scrub; this is the PVs we know about followed by the PVs in this appliance that we do not know about.
+			LinkedHashMap<String, Boolean> pvNames = new LinkedHashMap<String, Boolean>();
+			for(String pvName : pvUsages.keySet()) pvNames.put(pvName, Boolean.TRUE);
+			if(configService != null) {
+				for(String pvName : configService.getPVsForThisAppliance()) pvNames.put(pvName, Boolean.TRUE);
+			}
+			if(pvNames.isEmpty()) return null;
+			scrubCursor = new ArrayList<String>(pvNames.keySet()).iterator();
+		}
+		return scrubCursor.next();
+	}
+
+	void persistIfNeeded(boolean force) {
+		if(!modifiedSinceLastPersist) return;
+		if(!force && (System.currentTimeMillis() - lastPersistedMillis) < persistIntervalMillis) return;
+		try {
+			persist();
+		} catch(IOException ex) {
+			logger.error("Exception persisting storage accounting for " + rootFolder + " into " + persistFile, ex);
+		}
+	}
+
+	/**
+	 * Write the counters out into a temporary file and move it into place.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void persist() throws IOException {
+		modifiedSinceLastPersist = false;
+		lastPersistedMillis = System.currentTimeMillis();
+		JSONObject pvs = new JSONObject();
+		for(Map.Entry<String, PVUsage> entry : pvUsages.entrySet()) {
+			PVUsage usage = entry.getValue();
+			JSONArray counters = new JSONArray();
+			synchronized(usage) {
+				counters.add(usage.bytes);
+				counters.add(usage.eventsWritten);
+				counters.add(usage.eventBytesWritten);
+			}
+			pvs.put(entry.getKey(), counters);
+		}
+		JSONObject root = new JSONObject();
+		root.put("rootFolder", rootFolder);
+		root.put("pvs", pvs);
+		Files.createDirectories(persistFile.getParent());
+		Path tmpFile = persistFile.resolveSibling(persistFile.getFileName().toString() + ".tmp");
+		try(Writer out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+			root.writeJSONString(out);
+		}
+		Files.move(tmpFile, persistFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.debug("Persisted storage accounting for " + pvUsages.size() + " PVs in " + rootFolder + " into " + persistFile);
+	}
+
+	/**
+	 * Load the counters from the last time we persisted them.
+	 * These may be somewhat stale; the scrub will correct them.
+	 */
+	void load() {
+		if(!Files.exists(persistFile)) return;
+		try(Reader in = Files.newBufferedReader(persistFile, StandardCharsets.UTF_8)) {
+			JSONObject root = (JSONObject) JSONValue.parse(in);
+			if(root == null || !rootFolder.equals(root.get("rootFolder"))) {
+				logger.warn("Persisted storage accounting in " + persistFile + " is not for " + rootFolder + "; ignoring it");
+				return;
+			}
+			JSONObject pvs = (JSONObject) root.get("pvs");
+			for(Object pvName : pvs.keySet()) {
+				List<?> counters = (List<?>) pvs.get(pvName);
+				PVUsage usage = new PVUsage(((Number) counters.get(0)).longValue(), ((Number) counters.get(1)).longValue(), ((Number) counters.get(2)).longValue());
+				pvUsages.putIfAbsent((String) pvName, usage);
+			}
+			logger.info("Loaded storage accounting for " + pvs.size() + " PVs in " + rootFolder + " from " + persistFile);
+		} catch(Exception ex) {
+			logger.error("Exception loading storage accounting for " + rootFolder + " from " + persistFile + "; we'll walk the PVs again", ex);
+			pvUsages.clear();
+		}
+	}
+}
@@ -18,13 +18,16 @@ import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -85,11 +88,21 @@ import edu.stanford.slac.archiverappliance.PB.EPICSEvent;
  * Otherwise, the post processor is applied and the data is computed at runtime.
  * To specify multiple post processors, use standard URL syntax like so <code>pp=rms&pp=mean_3600</code>
  * </dd>
+ * <dt>ppFanOut</dt><dd>An optional parameter; by default, ETL reads each raw partition once and generates the cached data for all the <code>pp</code> post processors that need it from that one pass.
+ * Binning post processors like <code>mean_3600</code> also resume from their last cached bin instead of going thru the entire partition.
+ * Set this to <code>false</code> to generate the cached data one post processor at a time.
+ * </dd>
  * <dt>consolidateOnShutdown</dt><dd>This lets you control if ETL should push data to the subsequent store on appserver shutdown. This is useful if you are using a RAMDisk for the short term store.</dd>
  * <dt>reducedata</dt><dd>An optional parameter; use this parameter to reduce the data as you move it into this store. You can use any of the <a href="http://slacmshankar.github.io/epicsarchiver_docs/userguide.html#post_processing">post processors</a> that can be used with the <code>pp</code> argument.
  * For example, if you define the LTS as <code>pb://localhost?name=LTS&rootFolder=${ARCHAPPL_LONG_TERM_FOLDER}&partitionGranularity=PARTITION_YEAR&reducedata=firstSample_3600</code>, then when moving data into this store, ETL will apply the <code>firstSample_3600</code> operator on the raw data to reduce the data and store only the reduced data.
  * The difference between this parameter and the <code>pp</code> parameter is that in the <code>reducedata</code> case, only the reduced data is stored. The raw data is thrown away.
  * If you specify both the <code>pp</code> and the <code>reducedata</code>, you may get unpredictable results because the raw data is necessary to precompute the caches. 
+ * By default, the data in each ETL run is reduced by itself; so a bin that spans two ETL runs is written out in parts.
+ * </dd>
+ * <dt>reducedataIncremental</dt><dd>An optional parameter; set this to <code>true</code> to apply binning <code>reducedata</code> operators like <code>firstSample_3600</code> or <code>mean_600</code> (whose interval divides a day) incrementally; see {@link PlainPBStreamingReducer}.
+ * The raw events in the last bin are held back in a small state file for each PV and reduced along with the data in the next ETL run.
+ * So, each bin is written out once and the reduced data is the same as that obtained by reducing all the raw data in one go.
+ * The last bin shows up in this store only after the next ETL run.
  * </dd>
  * <dt>etlIntoStoreIf</dt><dd>An optional parameter; use this parameter to control if ETL should move data into this store. 
  * If the named flag specified by this parameter is false, this plugin will behave like the blackhole plugin (and you will lose data).
@@ -107,7 +120,7 @@ import edu.stanford.slac.archiverappliance.PB.EPICSEvent;
  * @author mshankar
  *
  */
-public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest, StorageMetrics {
+public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest, StorageMetrics, PlainPBStorageAccounting.SpaceWalker {
 	private static Logger logger = Logger.getLogger(PlainPBStoragePlugin.class.getName());
 
 	public static final String PB_EXTENSION = ".pb";
@@ -146,6 +159,8 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	private int holdETLForPartions = 0;
 	private int gatherETLinPartitions = 0;
 	private boolean consolidateOnShutdown = false;
+	private boolean ppFanOut = true;
+	private boolean reducedataIncremental = false;
 	/**
 	 * Most of the time; this will be null.
 	 * However; if specified; we should use the value of the named flag identified by this variable to control if this plugin behaves like a black hole plugin or not.
@@ -166,6 +181,18 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	@Override
 	public List<Callable<EventStream>> getDataForPV(BasicContext context, String pvName, Timestamp startTime, Timestamp endTime, PostProcessor postProcessor) throws IOException {
 		try {
+			// For PVs that change slowly, the last known event is often before the start time; this is then all the data we have.
+			PlainPBLastKnownEventIndex lastKnownEventIndex = getLastKnownEventIndex();
+			Event indexedLastEvent = (lastKnownEventIndex != null) ? lastKnownEventIndex.getLastKnownEvent(pvName) : null;
+			if(indexedLastEvent != null && !indexedLastEvent.getEventTimeStamp().after(startTime)) {
+				logger.debug("The last known event for " + pvName + " from the index is at " + TimeUtils.convertToISO8601String(indexedLastEvent.getEventTimeStamp()) + " before the start time");
+				RemotableEventStreamDesc lastKnownEventDesc = new RemotableEventStreamDesc(indexedLastEvent.getDBRType(), pvName, TimeUtils.computeYearForEpochSeconds(indexedLastEvent.getEpochSeconds()));
+				lastKnownEventDesc.setSource("Last known event from " + this.getName());
+				ArrayList<Callable<EventStream>> ret = new ArrayList<Callable<EventStream>>();
+				ret.add(CallableEventStream.makeOneEventCallable(indexedLastEvent, lastKnownEventDesc, postProcessor, !PB_EXTENSION.equals("." + postProcessor.getExtension())));
+				return ret;
+			}
+
 			Path[] paths = null;
 			String extension = "." + postProcessor.getExtension();
 			boolean userWantsRawData = extension.equals(PB_EXTENSION);
@@ -176,13 +203,13 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 			// If this is not the case, we should switch to the more accurate algorithm.
 			if(userWantsRawData) {
 				logger.debug("User wants raw data.");
-				paths = PlainPBPathNameUtility.getPathsWithData(context.getPaths(), rootFolder, pvName, startTime, endTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+				paths = getPathsWithData(context.getPaths(), pvName, startTime, endTime, PB_EXTENSION);
 			} else {
-				paths = PlainPBPathNameUtility.getPathsWithData(context.getPaths(), rootFolder, pvName, startTime, endTime, extension, partitionGranularity, this.compressionMode, this.pv2key);
+				paths = getPathsWithData(context.getPaths(), pvName, startTime, endTime, extension);
 				if(paths == null || paths.length == 0) {
 					logger.debug("Did not find any cached entries for " + pvName + " for post processor " + extension + ". Defaulting to using the raw streams and computing the data at runtime.");
 					askingForProcessedDataButAbsentInCache = true;
-					paths = PlainPBPathNameUtility.getPathsWithData(context.getPaths(), rootFolder, pvName, startTime, endTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+					paths = getPathsWithData(context.getPaths(), pvName, startTime, endTime, PB_EXTENSION);
 				} else {
 					logger.debug("Found " + paths.length + " cached entries for " + pvName + " for post processor " + extension);
 				}
@@ -190,6 +217,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 			logger.debug(desc + " Found " + (paths != null ? paths.length : 0) + " matching files for pv " + pvName + " in store " + this.getName());
 			boolean useSearchForPositions = (this.compressionMode == CompressionMode.NONE);
 			boolean doNotuseSearchForPositions = !useSearchForPositions;
+			PlainPBReadCache readCache = getReadCache();
 			
 			ArrayList<Callable<EventStream>> ret = new ArrayList<Callable<EventStream>>();
 			// Regardless of what we find, we add the last event from the partition before the start time
@@ -199,26 +227,36 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 			if(lastEventOfPreviousStream != null) ret.add(lastEventOfPreviousStream);
 
 			if(paths != null && paths.length == 1) {
-				PBFileInfo fileInfo = new PBFileInfo(paths[0]); 
+				PBFileInfo fileInfo = PBFileInfoCache.getFileInfo(paths[0]); 
 				ArchDBRTypes dbrtype = fileInfo.getType();
 				if(fileInfo.getLastEventEpochSeconds() <= TimeUtils.convertToEpochSeconds(startTime)) { 
 					logger.debug("All we can get from this store is the last known event at " + TimeUtils.convertToHumanReadableString(fileInfo.getLastEventEpochSeconds()));
-					ret.add(CallableEventStream.makeOneEventCallable(fileInfo.getLastEvent(), new RemotableEventStreamDesc(dbrtype, pvName, fileInfo.getDataYear()), postProcessor, askingForProcessedDataButAbsentInCache));
+					ret.add(CallableEventStream.makeOneEventCallable(fileInfo.getLastEvent().makeClone(), new RemotableEventStreamDesc(dbrtype, pvName, fileInfo.getDataYear()), postProcessor, askingForProcessedDataButAbsentInCache));
 				} else { 
-					ret.add(CallableEventStream.makeOneStreamCallable(new FileBackedPBEventStream(pvName, paths[0], dbrtype, startTime, endTime, doNotuseSearchForPositions), postProcessor, askingForProcessedDataButAbsentInCache));
+					ret.add(CallableEventStream.makeOneStreamCallable(new FileBackedPBEventStream(pvName, paths[0], getPathForRead(readCache, paths[0]), dbrtype, startTime, endTime, doNotuseSearchForPositions), postProcessor, askingForProcessedDataButAbsentInCache));
 				}
 			} else if(paths != null && paths.length > 1) {
-				PBFileInfo fileInfo = new PBFileInfo(paths[0]); 
+				PBFileInfo fileInfo = PBFileInfoCache.getFileInfo(paths[0]); 
 				ArchDBRTypes dbrtype = fileInfo.getType();
 				int pathsCount = paths.length;
+				ArrayList<FileBackedPBEventStream> partitionStreams = new ArrayList<FileBackedPBEventStream>(pathsCount);
 				for(int pathid = 0; pathid < pathsCount; pathid++) {
+					FileBackedPBEventStream partitionStream;
 					if(pathid == 0) {
-						ret.add(CallableEventStream.makeOneStreamCallable(new FileBackedPBEventStream(pvName, paths[pathid], dbrtype, startTime, endTime, doNotuseSearchForPositions), postProcessor, askingForProcessedDataButAbsentInCache));						
+						partitionStream = new FileBackedPBEventStream(pvName, paths[pathid], getPathForRead(readCache, paths[pathid]), dbrtype, startTime, endTime, doNotuseSearchForPositions);
 					} else if(pathid == pathsCount -1 ) {
-						ret.add(CallableEventStream.makeOneStreamCallable(new FileBackedPBEventStream(pvName, paths[pathid], dbrtype, startTime, endTime, doNotuseSearchForPositions), postProcessor, askingForProcessedDataButAbsentInCache));
+						partitionStream = new FileBackedPBEventStream(pvName, paths[pathid], getPathForRead(readCache, paths[pathid]), dbrtype, startTime, endTime, doNotuseSearchForPositions);
 					} else {
-						ret.add(CallableEventStream.makeOneStreamCallable(new FileBackedPBEventStream(pvName, paths[pathid], dbrtype), postProcessor, askingForProcessedDataButAbsentInCache));
+						partitionStream = new FileBackedPBEventStream(pvName, paths[pathid], getPathForRead(readCache, paths[pathid]), dbrtype);
+						partitionStream.setPartitionSummaries(getPartitionSummaries());
 					}
+					partitionStreams.add(partitionStream);
+					ret.add(CallableEventStream.makeOneStreamCallable(partitionStream, postProcessor, askingForProcessedDataButAbsentInCache));
+				}
+				// Read the next few partitions into memory while the consumer works on the current one.
+				PlainPBPrefetcher prefetcher = getPrefetcher();
+				if(prefetcher != null) {
+					prefetcher.prefetch(partitionStreams);
 				}
 			} else {
 				logger.debug("Ret should have only the last event of the previous partition for pv " + pvName);
@@ -235,17 +273,19 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	}
 
 	private Callable<EventStream> getLastEventOfPreviousPartitionBeforeTimeAsStream(BasicContext context, String pvName, Timestamp startTime, PostProcessor postProcessor, boolean askingForProcessedDataButAbsentInCache) throws Exception, IOException {
-		Path mostRecentPath = PlainPBPathNameUtility.getPreviousPartitionBeforeTime(context.getPaths(), rootFolder, pvName, startTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+		PlainPBPartitionCatalog catalog = getPartitionCatalog();
+		Path mostRecentPath = (catalog != null) ? catalog.getPreviousPartitionBeforeTime(context.getPaths(), pvName, startTime, PB_EXTENSION) 
+				: PlainPBPathNameUtility.getPreviousPartitionBeforeTime(context.getPaths(), rootFolder, pvName, startTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
 		if(mostRecentPath != null) {
 			// Should we use these two here?
 			// boolean useSearchForPositions = (this.compressionMode == CompressionMode.NONE);
 			// boolean doNotuseSearchForPositions = !useSearchForPositions;
 			logger.debug("Last known event for PV comes from " + mostRecentPath.toString());
-			PBFileInfo fileInfo = new PBFileInfo(mostRecentPath); 
+			PBFileInfo fileInfo = PBFileInfoCache.getFileInfo(mostRecentPath); 
 			ArchDBRTypes dbrtype = fileInfo.getType();
 			RemotableEventStreamDesc lastKnownEventDesc = new RemotableEventStreamDesc(dbrtype, pvName, fileInfo.getDataYear());
 			lastKnownEventDesc.setSource("Last known event from " + this.getName() + " from " + mostRecentPath.getFileName());
-			return CallableEventStream.makeOneEventCallable(fileInfo.getLastEvent(), lastKnownEventDesc, postProcessor, askingForProcessedDataButAbsentInCache);
+			return CallableEventStream.makeOneEventCallable(fileInfo.getLastEvent().makeClone(), lastKnownEventDesc, postProcessor, askingForProcessedDataButAbsentInCache);
 		}
 		
 		logger.debug(desc + ": did not even find the most recent file with data for " + pvName + " returning null.");
@@ -258,7 +298,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 			return appendDataStates.get(pvName);
 		} else {
 			logger.debug("Creating new append data state for pv " + pvName);
-			AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, getLastKnownTimestampForAppend(context, pvName), this.compressionMode, this.pv2key);
+			AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, getLastKnownTimestampForAppend(context, pvName), this.compressionMode, this.pv2key, getPartitionCatalog(), getStorageAccounting(), getLastKnownEventIndex());
 			appendDataStates.put(pvName, state);
 			return state;
 		}
@@ -293,15 +333,24 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 		
 		AppendDataStateData state = getAppendDataState(context, pvName);
 		
+		PlainPBStreamingReducer streamingReducer = null;
 		if(this.reducedataPostProcessor != null) {
 			try { 
 				PostProcessor postProcessor = PostProcessors.findPostProcessor(this.reducedataPostProcessor);
 				postProcessor.initialize(reducedataPostProcessor, pvName);
-				stream = CallableEventStream.makeOneStreamCallable(stream, postProcessor, true).call();
-				logger.debug("Wrapped stream with post processor " + this.reducedataPostProcessor + " for pv " + pvName);
-				if(postProcessor instanceof PostProcessorWithConsolidatedEventStream) {
-					stream = ((PostProcessorWithConsolidatedEventStream) postProcessor).getConsolidatedEventStream();
-					logger.debug("Using consolidated event stream for pv " + pvName);
+				if(this.reducedataIncremental && compressionMode == CompressionMode.NONE && PlainPBStreamingReducer.canReduceIncrementally(postProcessor)) {
+					streamingReducer = new PlainPBStreamingReducer(pvName, reducedataPostProcessor, 
+							getReducedataStatePath(context.getPaths(), pvName, PlainPBStreamingReducer.STATE_EXTENSION), 
+							backupFilesBeforeETL ? getReducedataStatePath(context.getPaths(), pvName, PlainPBStreamingReducer.PENDING_STATE_EXTENSION) : null);
+					stream = streamingReducer.reduce(postProcessor, stream);
+					logger.debug("Reduced stream incrementally with post processor " + this.reducedataPostProcessor + " for pv " + pvName);
+				} else { 
+					stream = CallableEventStream.makeOneStreamCallable(stream, postProcessor, true).call();
+					logger.debug("Wrapped stream with post processor " + this.reducedataPostProcessor + " for pv " + pvName);
+					if(postProcessor instanceof PostProcessorWithConsolidatedEventStream) {
+						stream = ((PostProcessorWithConsolidatedEventStream) postProcessor).getConsolidatedEventStream();
+						logger.debug("Using consolidated event stream for pv " + pvName);
+					}
 				}
 			} catch (Exception ex) { 
 				logger.error("Exception moving reduced data for pv " + pvName + " to store " + this.getName() + " using operator " + this.reducedataPostProcessor, ex);
@@ -326,8 +375,17 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 				state.partitionBoundaryAwareAppendData(context, pvName, stream, PB_EXTENSION, null);			
 			}
 		}
+		
+		if(streamingReducer != null) {
+			// We save the events in the last bin only after the reduced data for the previous bins has been appended.
+			streamingReducer.saveState();
+		}
 		return true;
 	}
+	
+	private Path getReducedataStatePath(ArchPaths paths, String pvName, String extension) throws IOException {
+		return PlainPBStreamingReducer.getStatePath(paths, rootFolder, pv2key.convertPVNameToKey(pvName), extension);
+	}
 
 	@Override
 	public String getDescription() {
@@ -340,6 +398,8 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 		this.configService = configService;
 		this.pv2key = this.configService.getPVNameToKeyConverter();
 		assert(pv2key != null);
+		PBFileInfoCache.configure(configService);
+		PBBlockChecksums.configure(configService);
 		
 		try {
 			URI srcURI = new URI(configURL);
@@ -383,6 +443,9 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 			}
 			
 			setRootFolder(rootFolderStr);
+			if(compressionMode == CompressionMode.NONE) {
+				PBBlockChecksumScrubber.getScrubber(this.rootFolder, configService);
+			}
 			
 			this.postProcessorUserArgs = URIUtils.getMultiValuedParamFromQueryString(srcURI, "pp");
 			
@@ -394,6 +457,14 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 				this.consolidateOnShutdown = Boolean.parseBoolean(queryNVPairs.get("consolidateOnShutdown"));
 			}
 
+			if(queryNVPairs.containsKey("ppFanOut")) {
+				this.ppFanOut = Boolean.parseBoolean(queryNVPairs.get("ppFanOut"));
+			}
+
+			if(queryNVPairs.containsKey("reducedataIncremental")) {
+				this.reducedataIncremental = Boolean.parseBoolean(queryNVPairs.get("reducedataIncremental"));
+			}
+
 			if(queryNVPairs.containsKey("etlIntoStoreIf")) { 
 				this.etlIntoStoreIf = queryNVPairs.get("etlIntoStoreIf");
 			}
@@ -446,11 +517,17 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 					buf.append("&pp=");
 					buf.append(postProcessorUserArg);
 				}
+				if(!this.ppFanOut) {
+					buf.append("&ppFanOut=false");
+				}
 			}
 			
 			if(this.reducedataPostProcessor != null) { 
 				buf.append("&reducedata=");
 				buf.append(reducedataPostProcessor);
+				if(this.reducedataIncremental) {
+					buf.append("&reducedataIncremental=true");
+				}
 			}
 			
 			if(this.etlIntoStoreIf != null) { 
@@ -555,7 +632,9 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 			}
 		}
 
-		Path[] paths = PlainPBPathNameUtility.getPathsBeforeCurrentPartition(context.getPaths(), rootFolder, pvName, currentTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+		PlainPBPartitionCatalog catalog = getPartitionCatalog();
+		Path[] paths = (catalog != null) ? catalog.getPathsBeforeCurrentPartition(context.getPaths(), pvName, currentTime, PB_EXTENSION) 
+				: PlainPBPathNameUtility.getPathsBeforeCurrentPartition(context.getPaths(), rootFolder, pvName, currentTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
 		if(paths == null || paths.length == 0) { 
 			if(logger.isInfoEnabled()) { 
 				logger.debug("No files for ETL for pv " + pvName + " for time " + TimeUtils.convertToISO8601String(currentTime));
@@ -580,7 +659,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 					logger.warn("Path " + path + " does not seem to exist for ETL at time " + TimeUtils.convertToISO8601String(currentTime));
 					continue;
 				}
-				PBFileInfo fileinfo = new PBFileInfo(path);
+				PBFileInfo fileinfo = PBFileInfoCache.getFileInfo(path);
 				ETLInfo etlInfo = new ETLInfo(pvName, fileinfo.getType(), path.toAbsolutePath().toString(), partitionGranularity, new FileStreamCreator(pvName, path, fileinfo), fileinfo.getFirstEvent(), Files.size(path));
 				if(skipHoldAndGather) {
 					logger.debug("Skipping computation of hold and gather");
@@ -625,10 +704,10 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 			long sizeFromInfo = info.getSize();
 			if(sizeFromInfo == -1) { 
 				logger.error("We are missing size information from ETLInfo for " + info.getKey());
-				Files.delete(path);
+				partitionRemoved(info.getPvName(), path);
 			} else { 
 				if(sizeFromInfo == size) { 
-					Files.delete(path);
+					partitionRemoved(info.getPvName(), path);
 				} else { 
 					logger.error("The path " + info.getKey() + " has changed since we generate the ETLInfo. Not deleting it this time around. If this persists, please manually remove the file. Current Size " + size + ". Size from info " + sizeFromInfo);
 				}
@@ -640,15 +719,26 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 
 	@Override
 	public Event getLastKnownEvent(BasicContext context, String pvName) throws IOException {
+		PlainPBLastKnownEventIndex lastKnownEventIndex = getLastKnownEventIndex();
+		if(lastKnownEventIndex != null) {
+			Event indexedLastEvent = lastKnownEventIndex.getLastKnownEvent(pvName);
+			if(indexedLastEvent != null) return indexedLastEvent;
+		}
 		try {
-			Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, pvName, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+			Path[] paths = getAllPathsForPV(context.getPaths(), pvName, PB_EXTENSION);
 			logger.debug(desc + " Found " + (paths != null ? paths.length : 0) + " matching files for pv " + pvName);
 			if(paths != null && paths.length > 0) {
 				for(int i = paths.length-1; i >=0; i--) {
 					if(logger.isDebugEnabled()) logger.debug("Looking for last known event in file " + paths[i].toAbsolutePath().toString());
 					try { 
-						PBFileInfo fileInfo = new PBFileInfo(paths[i]);
-						if(fileInfo.getLastEvent() != null) return fileInfo.getLastEvent();
+						// We stat the partition and the folder before reading the last event; so that if these change in between, the index entry is invalid.
+						BasicFileAttributes partitionAttrs = (lastKnownEventIndex != null && i == paths.length-1) ? Files.readAttributes(paths[i], BasicFileAttributes.class) : null;
+						long folderModifiedMillis = (partitionAttrs != null) ? Files.getLastModifiedTime(paths[i].getParent()).toMillis() : 0;
+						PBFileInfo fileInfo = PBFileInfoCache.getFileInfo(paths[i]);
+						if(fileInfo.getLastEvent() != null) {
+							if(partitionAttrs != null) lastKnownEventIndex.lastEventFound(pvName, paths[i], partitionAttrs, folderModifiedMillis, fileInfo.getLastEvent(), fileInfo.getDataYear());
+							return fileInfo.getLastEvent().makeClone();
+						}
 					} catch(Exception ex) { 
 						logger.warn("Exception determing header information from file " + paths[i].toAbsolutePath().toString(), ex);
 					}
@@ -667,14 +757,14 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	@Override
 	public Event getFirstKnownEvent(BasicContext context, String pvName) throws IOException {
 		try {
-			Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, pvName, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+			Path[] paths = getAllPathsForPV(context.getPaths(), pvName, PB_EXTENSION);
 			logger.debug(desc + " Found " + (paths != null ? paths.length : 0) + " matching files for pv " + pvName);
 			if(paths != null && paths.length > 0) {
 				for(int i = 0; i < paths.length; i++) {
 					if(logger.isDebugEnabled()) logger.debug("Looking for first known event in file " + paths[i].toAbsolutePath().toString());
 					try { 
-						PBFileInfo fileInfo = new PBFileInfo(paths[i]);
-						if(fileInfo.getFirstEvent() != null) return fileInfo.getFirstEvent();
+						PBFileInfo fileInfo = PBFileInfoCache.getFileInfo(paths[i]);
+						if(fileInfo.getFirstEvent() != null) return fileInfo.getFirstEvent().makeClone();
 					} catch(Exception ex) { 
 						logger.warn("Exception determing header information from file " + paths[i].toAbsolutePath().toString(), ex);
 					}
@@ -716,28 +806,64 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 		if(compressionMode == CompressionMode.NONE) {
 			if(backupFilesBeforeETL) {
 				// Get all append data files for the specified PV name and partition granularity.
-				Path[] appendDataPaths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, pvName, APPEND_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+				Path[] appendDataPaths = getAllPathsForPV(context.getPaths(), pvName, APPEND_EXTENSION);
 				if (appendDataPaths == null) {
 					logger.debug("No " + APPEND_EXTENSION + " files found for PV " + pvName);
+					commitReducedataState(context, pvName);
 					return true;
 				}
 				
 				if(logger.isDebugEnabled()) logger.debug(desc + " Found " + (appendDataPaths != null ? appendDataPaths.length : 0) + " matching files for pv " + pvName);
 
+				PlainPBPartitionCatalog catalog = getPartitionCatalog();
+				PlainPBStorageAccounting accounting = getStorageAccounting();
+				AppendDataStateData state = appendDataStates.get(pvName);
+				Path lastEventDestPath = null;
 				for(Path srcPath : appendDataPaths) {
-					Path destPath = context.getPaths().get(srcPath.toUri().toString().replace(APPEND_EXTENSION, PB_EXTENSION));
+					Path destPath = srcPath.resolveSibling(srcPath.getFileName().toString().replace(APPEND_EXTENSION, PB_EXTENSION));
+					// The append data file replaces the existing partition; the space consumed by the existing partition is freed up.
+					long replacedSize = (accounting != null && Files.exists(destPath)) ? Files.size(destPath) : 0;
 					Files.move(srcPath, destPath, REPLACE_EXISTING, ATOMIC_MOVE);
+					partitionMoved(srcPath, destPath);
+					if(accounting != null && replacedSize > 0) accounting.bytesDeleted(pvName, replacedSize);
+					if(catalog != null) { 
+						catalog.partitionDeleted(pvName, APPEND_EXTENSION, srcPath);
+						catalog.partitionCreated(pvName, PB_EXTENSION, destPath);
+					}
+					if(state != null && state.hasPendingLastEventIn(srcPath)) lastEventDestPath = destPath;
 				}
+				// The last event we appended is now the last event of the PV; we record this after all the moves as these change the PV's folder.
+				// If we do not have the last event at hand (for example, we restarted after appending), the next lookup looks in the partitions.
+				PlainPBLastKnownEventIndex lastKnownEventIndex = getLastKnownEventIndex();
+				if(lastKnownEventIndex != null) {
+					if(lastEventDestPath != null) {
+						state.pendingLastEventCommitted(pvName, lastEventDestPath);
+					} else {
+						lastKnownEventIndex.invalidate(pvName);
+					}
+				}
+				// The state for the reducedata is committed after the reduced data that it follows.
+				commitReducedataState(context, pvName);
 			}
 		}
 		
 		return true;
 	}
 	
+	private void commitReducedataState(ETLContext context, String pvName) throws IOException {
+		if(this.reducedataPostProcessor == null || !this.reducedataIncremental) return;
+		PlainPBStreamingReducer.commitState(getReducedataStatePath(context.getPaths(), pvName, PlainPBStreamingReducer.PENDING_STATE_EXTENSION), 
+				getReducedataStatePath(context.getPaths(), pvName, PlainPBStreamingReducer.STATE_EXTENSION));
+	}
+	
 	
 	@Override
 	public boolean runPostProcessors(String pvName, ArchDBRTypes dbrtype, ETLContext context) throws IOException {
 		if(postProcessorUserArgs != null && !postProcessorUserArgs.isEmpty()) {
+			if(this.ppFanOut) {
+				runPostProcessorsInOnePass(pvName, dbrtype, context);
+				return true;
+			}
 			for(String postProcessorUserArg : postProcessorUserArgs) {
 				PostProcessor postProcessor = PostProcessors.findPostProcessor(postProcessorUserArg);
 				if(postProcessor == null) {
@@ -752,10 +878,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 						if(logger.isDebugEnabled()) logger.debug("Generating pp data for " + missingOrOlderPath.ppsPath.toString() + " from " + missingOrOlderPath.srcPath.toString() + " and pp with extension" + ppExt + ". Size of src before " + Files.size(missingOrOlderPath.srcPath));
 						Callable<EventStream> callable = CallableEventStream.makeOneStreamCallable(new FileBackedPBEventStream(pvName, missingOrOlderPath.srcPath, dbrtype), postProcessor, true);
 						try(EventStream stream = callable.call()) {
-							// The post processor data can be generated at any time in any sequence; so we suspend the initial monotonicity checks for the post processor where we compare with the last known event.
-							// Ideally this should be the first event of the source stream minus some buffer.
-							Timestamp timezero = TimeUtils.convertFromEpochSeconds(0, 0);
-							AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, timezero, this.compressionMode, this.pv2key);
+							AppendDataStateData state = makeAppendDataStateForPostProcessor();
 							int eventsAppended = state.partitionBoundaryAwareAppendData(context, pvName, stream, ppExt, null);
 							if(logger.isDebugEnabled()) logger.debug("Done generating pp data for " + missingOrOlderPath.ppsPath.toString() + " from " + missingOrOlderPath.srcPath.toString() + " appending " + eventsAppended + " events. Size of src after " + Files.size(missingOrOlderPath.srcPath));
 						} catch(Exception ex) {
@@ -771,6 +894,63 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 		return true;
 	}
 
+	/**
+	 * Generate the cached data for all the post processors from one pass over each raw partition.
+	 * @param pvName
+	 * @param dbrtype
+	 * @param context
+	 * @throws IOException
+	 */
+	private void runPostProcessorsInOnePass(String pvName, ArchDBRTypes dbrtype, ETLContext context) throws IOException {
+		// The raw partitions and the post processors that need each of them; in the order of the raw partitions.
+		TreeMap<String, List<PlainPBPostProcessorFanOut.Target>> targetsForSrcPath = new TreeMap<String, List<PlainPBPostProcessorFanOut.Target>>();
+		HashMap<String, Path> srcPaths = new HashMap<String, Path>();
+		for(String postProcessorUserArg : postProcessorUserArgs) {
+			PostProcessor postProcessor = PostProcessors.findPostProcessor(postProcessorUserArg);
+			if(postProcessor == null) {
+				logger.error("Cannot find post processor for " + postProcessorUserArg);
+				continue;
+			}
+			postProcessor.initialize(postProcessorUserArg, pvName);
+			PlainPBPostProcessorFanOut.Target target = new PlainPBPostProcessorFanOut.Target(postProcessorUserArg, postProcessor);
+			List<PPMissingPaths> missingOrOlderPPPaths = getListOfPathsWithMissingOrOlderPostProcessorData(context, pvName, postProcessor);
+			if(missingOrOlderPPPaths == null || missingOrOlderPPPaths.isEmpty()) {
+				logger.debug("All paths are current for pv " + pvName + " for pp " + postProcessorUserArg);
+				continue;
+			}
+			for(PPMissingPaths missingOrOlderPath : missingOrOlderPPPaths) {
+				String srcPathStr = missingOrOlderPath.srcPath.toUri().toString();
+				srcPaths.put(srcPathStr, missingOrOlderPath.srcPath);
+				if(!targetsForSrcPath.containsKey(srcPathStr)) {
+					targetsForSrcPath.put(srcPathStr, new LinkedList<PlainPBPostProcessorFanOut.Target>());
+				}
+				targetsForSrcPath.get(srcPathStr).add(target);
+			}
+		}
+
+		try(PlainPBPostProcessorFanOut fanOut = new PlainPBPostProcessorFanOut(pvName, dbrtype, this)) {
+			for(Map.Entry<String, List<PlainPBPostProcessorFanOut.Target>> entry : targetsForSrcPath.entrySet()) {
+				Path srcPath = srcPaths.get(entry.getKey());
+				if(logger.isDebugEnabled()) logger.debug("Generating pp data for " + entry.getValue().size() + " post processors from " + srcPath.toString());
+				try {
+					fanOut.generate(context, srcPath, entry.getValue());
+				} catch(Exception ex) {
+					logger.error("Exception generating pp data for pv " + pvName + " from source " + srcPath.toString(), ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The post processor data can be generated at any time in any sequence; so we suspend the initial monotonicity checks for the post processor where we compare with the last known event.
+	 * Ideally this should be the first event of the source stream minus some buffer.
+	 * @return
+	 */
+	AppendDataStateData makeAppendDataStateForPostProcessor() {
+		Timestamp timezero = TimeUtils.convertFromEpochSeconds(0, 0);
+		return new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, timezero, this.compressionMode, this.pv2key, getPartitionCatalog(), getStorageAccounting(), null);
+	}
+
 
 	public boolean isBackupFilesBeforeETL() {
 		return backupFilesBeforeETL;
@@ -824,8 +1004,35 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 
 	@Override
 	public long spaceConsumedByPV(String pvName) throws IOException {
+		PlainPBStorageAccounting accounting = getStorageAccounting();
+		if(accounting != null) return accounting.spaceConsumedByPV(pvName);
+		return walkSpaceConsumedByPV(pvName);
+	}
+
+	@Override
+	public long estimatedEventsForPV(String pvName) throws IOException {
+		PlainPBStorageAccounting accounting = getStorageAccounting();
+		if(accounting != null) return accounting.estimatedEventsForPV(pvName);
+		return -1;
+	}
+
+	@Override
+	public long spaceConsumedByAllPVs() throws IOException {
+		PlainPBStorageAccounting accounting = getStorageAccounting();
+		if(accounting != null) return accounting.spaceConsumedByAllPVs();
+		return -1;
+	}
+
+	/**
+	 * Compute the space consumed by this PV by listing the PV's partitions and adding up their sizes.
+	 * @param pvName
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public long walkSpaceConsumedByPV(String pvName) throws IOException {
 		// Using a blank extension should fetch everything?
-		Path[] rawPaths = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), rootFolder, pvName, "", partitionGranularity, this.compressionMode, this.pv2key);
+		Path[] rawPaths = getAllPathsForPV(new ArchPaths(), pvName, "");
 		long spaceConsumed = 0;
 		if(rawPaths != null) {
 			for(Path f : rawPaths) {
@@ -857,8 +1064,8 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	private List<PPMissingPaths> getListOfPathsWithMissingOrOlderPostProcessorData(BasicContext context, String pvName, PostProcessor postProcessor) throws IOException {
 		String ppExt = "." + postProcessor.getExtension();
 		logger.debug("Looking for missing " + ppExt + " paths based on the list of " + PB_EXTENSION + " paths");
-		Path[] rawPaths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), this.rootFolder, pvName, PB_EXTENSION, this.partitionGranularity, this.compressionMode, this.pv2key);
-		Path[] ppPaths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), this.rootFolder, pvName, ppExt, this.partitionGranularity, this.compressionMode, this.pv2key);
+		Path[] rawPaths = getAllPathsForPV(context.getPaths(), pvName, PB_EXTENSION);
+		Path[] ppPaths = getAllPathsForPV(context.getPaths(), pvName, ppExt);
 		
 		HashMap<String, Path> ppPathsMap = new HashMap<String, Path>();
 		for(Path ppPath : ppPaths) {
@@ -892,7 +1099,258 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 		return consolidateOnShutdown;
 	}
 	
-	private List<String> getPPExtensions() { 
+	/**
+	 * @return The prefetcher for multi partition requests; null if we are not initialized or if prefetching is turned off.
+	 */
+	private PlainPBPrefetcher getPrefetcher() {
+		if(this.configService == null) return null;
+		return PlainPBPrefetcher.getPrefetcher(this.configService);
+	}
+
+	/**
+	 * @return The partition summaries for this webapp; null if we are not initialized or if summaries are turned off.
+	 */
+	PBPartitionSummaries getPartitionSummaries() {
+		if(this.configService == null) return null;
+		return this.configService.getPartitionSummaries();
+	}
+
+	/**
+	 * @return The config service this plugin was initialized with; null if we are not initialized.
+	 */
+	ConfigService getConfigService() {
+		return this.configService;
+	}
+
+	/**
+	 * The contents of this partition have changed (or the partition is gone); we drop everything we have cached about it.
+	 * @param path - The partition
+	 */
+	void partitionChanged(Path path) {
+		PBFileInfoCache.invalidate(path);
+		PlainPBReadCache.partitionChanged(path);
+		PBPartitionSummaries.partitionDeleted(configService, path);
+	}
+
+	/**
+	 * A partition was moved into place, possibly replacing an existing partition.
+	 * @param srcPath - Where the partition was
+	 * @param destPath - Where the partition is now
+	 */
+	void partitionMoved(Path srcPath, Path destPath) {
+		PBBlockChecksums.partitionMoved(srcPath, destPath);
+		partitionChanged(srcPath);
+		partitionChanged(destPath);
+	}
+
+	/**
+	 * Delete this partition of this PV and update everything we keep about it.
+	 * @param pvName - The name of the PV
+	 * @param path - The partition
+	 * @return The size of the deleted partition; 0 if the partition did not exist.
+	 * @throws IOException
+	 */
+	long partitionRemoved(String pvName, Path path) throws IOException {
+		long size = 0;
+		try {
+			size = Files.size(path);
+		} catch(NoSuchFileException ex) {
+			// Someone else deleted the partition; we still clean up after it.
+		}
+		Files.deleteIfExists(path);
+		partitionChanged(path);
+		PBBlockChecksums.partitionDeleted(path);
+		PlainPBPartitionCatalog catalog = getPartitionCatalog();
+		if(catalog != null) catalog.partitionDeleted(pvName, PB_EXTENSION, path);
+		PlainPBStorageAccounting accounting = getStorageAccounting();
+		if(accounting != null && size > 0) accounting.bytesDeleted(pvName, size);
+		PlainPBLastKnownEventIndex lastKnownEventIndex = getLastKnownEventIndex();
+		if(lastKnownEventIndex != null) lastKnownEventIndex.partitionDeleted(pvName, path);
+		return size;
+	}
+
+	/**
+	 * @return The local read cache for retrieval; null if we are not initialized or if this store is not cached.
+	 */
+	private PlainPBReadCache getReadCache() {
+		if(this.configService == null) return null;
+		PlainPBReadCache readCache = PlainPBReadCache.getReadCache(this.configService);
+		return (readCache != null && readCache.isCachingStore(this.name)) ? readCache : null;
+	}
+
+	private static Path getPathForRead(PlainPBReadCache readCache, Path path) {
+		return (readCache != null) ? readCache.getPathForRead(path) : path;
+	}
+
+	/**
+	 * Get the partition catalog for this store.
+	 * The catalog is shared across all instances of this plugin using the same root folder in this process.
+	 * @return null if we are not using a catalog for this store.
+	 */
+	public PlainPBPartitionCatalog getPartitionCatalog() {
+		if(this.configService == null || this.compressionMode != CompressionMode.NONE) return null;
+		return PlainPBPartitionCatalog.getCatalog(this.rootFolder, this.partitionGranularity, this.configService);
+	}
+	
+	/**
+	 * Get the storage accounting for this store.
+	 * The accounting is shared across all instances of this plugin using the same root folder in this process.
+	 * @return null if we are not using storage accounting for this store.
+	 */
+	public PlainPBStorageAccounting getStorageAccounting() {
+		if(this.configService == null || this.compressionMode != CompressionMode.NONE) return null;
+		return PlainPBStorageAccounting.getAccounting(this.rootFolder, this, this.configService);
+	}
+	
+	/**
+	 * Get the last known event index for this store.
+	 * The index is shared across all instances of this plugin using the same root folder in this process.
+	 * @return null if we are not using the index for this store.
+	 */
+	public PlainPBLastKnownEventIndex getLastKnownEventIndex() {
+		if(this.configService == null || this.compressionMode != CompressionMode.NONE) return null;
+		return PlainPBLastKnownEventIndex.getIndex(this.rootFolder, this.configService);
+	}
+	
+	/**
+	 * Estimate the number of bytes we'd read to retrieve data for this PV for this time range.
+	 * This is the size of the partitions in the partition catalog that overlap the time range; this is used before admitting a retrieval request and so we do not list the folder ourselves.
+	 * @param context
+	 * @param pvName
+	 * @param startTime
+	 * @param endTime
+	 * @return The estimate; -1 if this store does not have a partition catalog.
+	 * @throws IOException
+	 */
+	public long estimateBytesToRead(BasicContext context, String pvName, Timestamp startTime, Timestamp endTime) throws IOException {
+		PlainPBPartitionCatalog catalog = getPartitionCatalog();
+		if(catalog == null) return -1;
+		long totalSize = 0;
+		long reqStartEpochSeconds = TimeUtils.convertToEpochSeconds(startTime);
+		long reqEndEpochSeconds = TimeUtils.convertToEpochSeconds(endTime);
+		for(PlainPBPartitionCatalog.Partition partition : catalog.getPartitions(context.getPaths(), pvName, PB_EXTENSION).values()) {
+			if(!partition.hasTimes()) continue;
+			if((partition.getChunkEndEpochSeconds() < reqStartEpochSeconds) || (partition.getChunkStartEpochSeconds() > reqEndEpochSeconds)) continue;
+			try {
+				totalSize += partition.getSize();
+			} catch(NoSuchFileException ex) {
+				logger.debug("Partition " + partition.getPath() + " was deleted while estimating the size of the request");
+			}
+		}
+		return totalSize;
+	}
+
+	/**
+	 * Get the last event at or before a time and the first event after the time for a PV.
+	 * This is used for point in time lookups over many PVs; so we avoid listing the PV's folder where possible.
+	 * The name of the partition containing the time is computed from the time and we search within that partition.
+	 * Only if the partition does not have these events do we look at the previous or next partitions (using the catalog if we have one).
+	 * @param context
+	 * @param pvName
+	 * @param atTime
+	 * @param lookForEventBefore - Look in the previous partitions if the partition containing atTime does not have an event before atTime.
+	 * @param lookForEventAfter - Look in the next partitions if the partition containing atTime does not have an event after atTime.
+	 * @return A two element array; the event at or before atTime and the event after atTime. Either of these could be null.
+	 * @throws IOException
+	 */
+	public Event[] getEventsAroundTime(BasicContext context, String pvName, Timestamp atTime, boolean lookForEventBefore, boolean lookForEventAfter) throws IOException {
+		Event[] ret = new Event[2];
+		try {
+			Path containingPath = PlainPBPathNameUtility.getPathNameForTime(this, pvName, TimeUtils.convertToEpochSeconds(atTime), context.getPaths(), this.pv2key);
+			if(containingPath != null && Files.exists(containingPath)) {
+				ret = getEventsAroundTimeInPartition(pvName, containingPath, atTime);
+			}
+
+			if(ret[0] == null && lookForEventBefore) {
+				PlainPBPartitionCatalog catalog = getPartitionCatalog();
+				Path previousPath = (catalog != null) ? catalog.getPreviousPartitionBeforeTime(context.getPaths(), pvName, atTime, PB_EXTENSION)
+						: PlainPBPathNameUtility.getPreviousPartitionBeforeTime(context.getPaths(), rootFolder, pvName, atTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+				if(previousPath != null) {
+					Event lastEvent = PBFileInfoCache.getFileInfo(previousPath).getLastEvent();
+					if(lastEvent != null) ret[0] = lastEvent.makeClone();
+				}
+			}
+
+			if(ret[1] == null && lookForEventAfter) {
+				for(Path laterPath : getPathsWithData(context.getPaths(), pvName, atTime, TimeUtils.plusHours(TimeUtils.now(), 24), PB_EXTENSION)) {
+					if(laterPath.equals(containingPath)) continue;
+					Event firstEvent = PBFileInfoCache.getFileInfo(laterPath).getFirstEvent();
+					if(firstEvent != null && firstEvent.getEventTimeStamp().after(atTime)) {
+						ret[1] = firstEvent.makeClone();
+						break;
+					}
+				}
+			}
+			return ret;
+		} catch(NoSuchFileException ex) {
+			logger.debug("Partition was deleted when looking up data for " + pvName + " at " + TimeUtils.convertToISO8601String(atTime), ex);
+			return ret;
+		} catch(IOException ex) {
+			throw ex;
+		} catch(Exception ex) {
+			throw new IOException("Exception looking up data for " + pvName + " at " + TimeUtils.convertToISO8601String(atTime) + " in " + desc, ex);
+		}
+	}
+
+	private Event[] getEventsAroundTimeInPartition(String pvName, Path path, Timestamp atTime) throws IOException {
+		Event[] ret = new Event[2];
+		PBFileInfo fileInfo = PBFileInfoCache.getFileInfo(path);
+		Event firstEvent = fileInfo.getFirstEvent();
+		Event lastEvent = fileInfo.getLastEvent();
+		if(firstEvent == null || lastEvent == null) return ret;
+		if(!lastEvent.getEventTimeStamp().after(atTime)) {
+			ret[0] = lastEvent.makeClone();
+			return ret;
+		}
+		if(firstEvent.getEventTimeStamp().after(atTime)) {
+			ret[1] = firstEvent.makeClone();
+			return ret;
+		}
+		// The search is to the second; so we start a second earlier to make sure we see all the events in atTime's second.
+		Timestamp searchStart = TimeUtils.convertFromEpochSeconds(TimeUtils.convertToEpochSeconds(atTime) - 1, 0);
+		Timestamp searchEnd = TimeUtils.convertFromEpochSeconds(fileInfo.getLastEventEpochSeconds() + 1, 0);
+		boolean doNotuseSearchForPositions = (this.compressionMode != CompressionMode.NONE);
+		scanForEventsAroundTime(new FileBackedPBEventStream(pvName, path, fileInfo.getType(), searchStart, searchEnd, doNotuseSearchForPositions), atTime, ret);
+		if(ret[0] == null) {
+			// The search could not position us before atTime; so we fall back to scanning the partition.
+			logger.debug("Scanning " + path + " for the event before " + TimeUtils.convertToISO8601String(atTime));
+			scanForEventsAroundTime(new FileBackedPBEventStream(pvName, path, fileInfo.getType()), atTime, ret);
+		}
+		return ret;
+	}
+
+	private static void scanForEventsAroundTime(EventStream strm, Timestamp atTime, Event[] ret) throws IOException {
+		try {
+			for(Event e : strm) {
+				if(!e.getEventTimeStamp().after(atTime)) {
+					ret[0] = e.makeClone();
+				} else {
+					ret[1] = e.makeClone();
+					break;
+				}
+			}
+		} finally {
+			strm.close();
+		}
+	}
+
+	private Path[] getPathsWithData(ArchPaths archPaths, String pvName, Timestamp startTime, Timestamp endTime, String extension) throws IOException {
+		PlainPBPartitionCatalog catalog = getPartitionCatalog();
+		if(catalog != null) return catalog.getPathsWithData(archPaths, pvName, startTime, endTime, extension);
+		return PlainPBPathNameUtility.getPathsWithData(archPaths, rootFolder, pvName, startTime, endTime, extension, partitionGranularity, this.compressionMode, this.pv2key);
+	}
+	
+	PVNameToKeyMapping getPVNameToKeyMapping() {
+		return pv2key;
+	}
+
+	Path[] getAllPathsForPV(ArchPaths archPaths, String pvName, String extension) throws IOException {
+		PlainPBPartitionCatalog catalog = getPartitionCatalog();
+		if(catalog != null) return catalog.getAllPathsForPV(archPaths, pvName, extension);
+		return PlainPBPathNameUtility.getAllPathsForPV(archPaths, rootFolder, pvName, extension, partitionGranularity, this.compressionMode, this.pv2key);
+	}
+	
+	List<String> getPPExtensions() { 
 		LinkedList<String> ret = new LinkedList<String>();
 		for(String postProcessorUserArg : postProcessorUserArgs) {
 			PostProcessor postProcessor = PostProcessors.findPostProcessor(postProcessorUserArg);
@@ -917,11 +1375,11 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	public void renamePV(BasicContext context, String oldName, String newName) throws IOException {
 		// Copy data for the main pb file.
 		{ 
-			Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, oldName, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+			Path[] paths = getAllPathsForPV(context.getPaths(), oldName, PB_EXTENSION);
 			if(paths != null && paths.length > 0) {
 				for(Path path : paths) { 
 					logger.debug("Copying over data from " + path.toString() + " to new pv " + newName);
-					PBFileInfo info = new PBFileInfo(path);
+					PBFileInfo info = PBFileInfoCache.getFileInfo(path);
 					this.appendData(context, newName, new FileBackedPBEventStream(oldName, path, info.getType()));
 				}
 			}
@@ -929,16 +1387,30 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 		
 		// Copy data for the post processors...
 		for(String ppExt : getPPExtensions()) { 
-			Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, oldName, ppExt, partitionGranularity, this.compressionMode, this.pv2key);
+			Path[] paths = getAllPathsForPV(context.getPaths(), oldName, ppExt);
 			if(paths != null && paths.length > 0) {
 				for(Path path : paths) { 
 					logger.debug("Copying over data from " + path.toString() + " to new pv " + newName + " for extension " + ppExt);
-					PBFileInfo info = new PBFileInfo(path);
+					PBFileInfo info = PBFileInfoCache.getFileInfo(path);
 					AppendDataStateData state = getAppendDataState(context, newName);
 					state.partitionBoundaryAwareAppendData(context, newName, new FileBackedPBEventStream(oldName, path, info.getType()), ppExt, null);
 				}
 			}
+		}		
+		
+		// Carry over the events in the last bin that have not been reduced yet.
+		if(this.reducedataPostProcessor != null && compressionMode == CompressionMode.NONE) {
+			Path oldStatePath = getReducedataStatePath(context.getPaths(), oldName, PlainPBStreamingReducer.STATE_EXTENSION);
+			if(Files.exists(oldStatePath)) {
+				Files.copy(oldStatePath, getReducedataStatePath(context.getPaths(), newName, PlainPBStreamingReducer.STATE_EXTENSION), REPLACE_EXISTING);
+			}
 		}
+		PlainPBPartitionCatalog catalog = getPartitionCatalog();
+		if(catalog != null) catalog.invalidate(newName);
+		PlainPBStorageAccounting accounting = getStorageAccounting();
+		if(accounting != null) accounting.invalidate(newName);
+		PlainPBLastKnownEventIndex lastKnownEventIndex = getLastKnownEventIndex();
+		if(lastKnownEventIndex != null) lastKnownEventIndex.invalidate(newName);
 	}
 	
 	/* (non-Javadoc)
@@ -954,12 +1426,12 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 		int randomInt = r.nextInt();
 		String randSuffix = "_tmp_" + randomInt;
 		{ 
-			Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, pvName, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+			Path[] paths = getAllPathsForPV(context.getPaths(), pvName, PB_EXTENSION);
 			if(paths != null && paths.length > 0) {
 				for(Path path : paths) { 
 					logger.info("Converting data in " + path.toString() + " for pv " + pvName);
-					PBFileInfo info = new PBFileInfo(path);
-					AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, new Timestamp(0), this.compressionMode, this.pv2key);
+					PBFileInfo info = PBFileInfoCache.getFileInfo(path);
+					AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, new Timestamp(0), this.compressionMode, this.pv2key, getPartitionCatalog(), getStorageAccounting(), null);
 					state.partitionBoundaryAwareAppendData(context, pvName, conversionFuntion.convertStream(new FileBackedPBEventStream(pvName, path, info.getType())), PB_EXTENSION + randSuffix, null);
 				}
 			}
@@ -967,12 +1439,12 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 		
 		// Convert data for the post processors...
 		for(String ppExt : getPPExtensions()) { 
-			Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, pvName, ppExt, partitionGranularity, this.compressionMode, this.pv2key);
+			Path[] paths = getAllPathsForPV(context.getPaths(), pvName, ppExt);
 			if(paths != null && paths.length > 0) {
 				for(Path path : paths) { 
 					logger.info("Converting data in " + path.toString() + " for pv " + pvName + " for extension " + ppExt);
-					PBFileInfo info = new PBFileInfo(path);
-					AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, new Timestamp(0), this.compressionMode, this.pv2key);
+					PBFileInfo info = PBFileInfoCache.getFileInfo(path);
+					AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, new Timestamp(0), this.compressionMode, this.pv2key, getPartitionCatalog(), getStorageAccounting(), null);
 					state.partitionBoundaryAwareAppendData(context, pvName, conversionFuntion.convertStream(new FileBackedPBEventStream(pvName, path, info.getType())), ppExt + randSuffix, null);
 				}
 			}
@@ -986,6 +1458,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 					Path destPath = context.getPaths().get(path.toString().replace(randSuffix, ""));
 					logger.info("Moving path " + path + " to " + destPath);
 					Files.move(path, destPath, StandardCopyOption.ATOMIC_MOVE);
+					partitionMoved(path, destPath);
 				}
 			}
 		}
@@ -999,9 +1472,17 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 						Path destPath = context.getPaths().get(path.toString().replace(randSuffix, ""));
 						logger.info("Moving path " + path + " to " + destPath);
 						Files.move(path, destPath, StandardCopyOption.ATOMIC_MOVE);
+						partitionMoved(path, destPath);
 					}
 				}
 			}
-		}
+		}		
+		// The conversion replaced the partitions in place; we simply have the catalog look at the disk again.
+		PlainPBPartitionCatalog catalog = getPartitionCatalog();
+		if(catalog != null) catalog.invalidate(pvName);
+		PlainPBStorageAccounting accounting = getStorageAccounting();
+		if(accounting != null) accounting.invalidate(pvName);
+		PlainPBLastKnownEventIndex lastKnownEventIndex = getLastKnownEventIndex();
+		if(lastKnownEventIndex != null) lastKnownEventIndex.invalidate(pvName);
 	}
 }
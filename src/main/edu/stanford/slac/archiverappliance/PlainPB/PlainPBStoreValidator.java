@@ -0,0 +1,625 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import edu.stanford.slac.archiverappliance.PlainPB.utils.ValidateAndFixPBFile;
+
+/**
+ * Validates (and optionally repairs) all the partitions of all the PVs in a PlainPB store.
+ * This is the store wide version of {@link edu.stanford.slac.archiverappliance.PlainPB.utils.ValidatePBFile} and {@link ValidateAndFixPBFile} and is started from the ETL BPL.
+ * <ul>
+ * <li>The PVs are validated by a fixed number of worker threads; all the workers share one I/O budget so that validation does not starve ETL and retrieval.</li>
+ * <li>Partitions that have block checksums are verified using the checksums; others are parsed and checked for monotonically increasing timestamps.</li>
+ * <li>The result for each partition is appended to a checkpoint file together with the partition's size and modification time.
+ * Partitions that have not changed since they were last validated are skipped; so, a run that was interrupted (for example, by a restart) resumes where it left off and subsequent runs only validate what has changed.</li>
+ * <li>When repairing, invalid partitions that have not been modified within the last hour are fixed using {@link ValidateAndFixPBFile}; recently modified partitions are left alone as ETL may still be writing to them.</li>
+ * <li>The results for each PV are kept in memory and are shown in the ETL PV details.</li>
+ * </ul>
+ * There is one validator for each PlainPB store (identified by name) in this process; only one run is active at a time for a store.
+ *
+ * These can be configured in archappl.properties
+ * <ul>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoreValidator.threads</code> - The number of worker threads for each run.</li>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoreValidator.MBPerSecond</code> - The I/O bandwidth all the workers of a run can use together. Set this to 0 for no limit.</li>
+ * <li><code>edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoreValidator.checkpointFolder</code> - The folder where we keep the checkpoint files.</li>
+ * </ul>
+ *
+ * @author mshankar
+ *
+ */
+public class PlainPBStoreValidator {
+	private static final Logger logger = Logger.getLogger(PlainPBStoreValidator.class);
+	public static final String THREADS_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoreValidator.threads";
+	public static final String MB_PER_SECOND_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoreValidator.MBPerSecond";
+	public static final String CHECKPOINT_FOLDER_PROPERTY = "edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoreValidator.checkpointFolder";
+	/**
+	 * Invalid partitions that have been modified within this interval are not repaired as they are probably still being written to.
+	 */
+	private static final long REPAIR_AFTER_MILLIS = 60*60*1000L;
+	/**
+	 * We only keep these many problems for each PV.
+	 */
+	private static final int MAX_PROBLEMS_PER_PV = 10;
+	private static final String VALID = "valid";
+	private static final String INVALID = "invalid";
+	private static final String REPAIRED = "repaired";
+
+	private static ConcurrentHashMap<String, PlainPBStoreValidator> validators = new ConcurrentHashMap<String, PlainPBStoreValidator>();
+
+	private final String storeName;
+	private final Path checkpointFile;
+	private final int threads;
+	private final long bytesPerSecond;
+
+	private Thread runner = null;
+	private volatile boolean cancelled = false;
+	private boolean repair = false;
+	private long runStartedMillis = 0;
+	private long runCompletedMillis = 0;
+	private String lastRunOutcome = "Never run";
+	private ConcurrentHashMap<String, PVResult> pvResults = new ConcurrentHashMap<String, PVResult>();
+	/**
+	 * What we have in the checkpoint file; this is only kept in memory while a run is active.
+	 */
+	private ConcurrentHashMap<String, PartitionRecord> checkpoint = new ConcurrentHashMap<String, PartitionRecord>();
+	private Writer checkpointWriter = null;
+
+	private AtomicInteger pvsToValidate = new AtomicInteger(0);
+	private AtomicInteger pvsValidated = new AtomicInteger(0);
+	private AtomicLong partitionsValidated = new AtomicLong(0);
+	private AtomicLong partitionsUnchanged = new AtomicLong(0);
+	private AtomicLong partitionsChangedWhileValidating = new AtomicLong(0);
+	private AtomicLong invalidPartitions = new AtomicLong(0);
+	private AtomicLong repairedPartitions = new AtomicLong(0);
+	private AtomicLong bytesValidated = new AtomicLong(0);
+
+	/**
+	 * The validation results for one partition; these are what we save in the checkpoint file.
+	 */
+	private static class PartitionRecord {
+		final String pvName;
+		final long size;
+		final long lastModifiedMillis;
+		final long validatedMillis;
+		final String status;
+		final String problem;
+
+		PartitionRecord(String pvName, long size, long lastModifiedMillis, long validatedMillis, String status, String problem) {
+			this.pvName = pvName;
+			this.size = size;
+			this.lastModifiedMillis = lastModifiedMillis;
+			this.validatedMillis = validatedMillis;
+			this.status = status;
+			this.problem = problem;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return this.size == attrs.size() && this.lastModifiedMillis == attrs.lastModifiedTime().toMillis();
+		}
+
+		String toLine(String path) {
+			return clean(path) + "\t" + size + "\t" + lastModifiedMillis + "\t" + validatedMillis + "\t" + status + "\t" + clean(pvName) + "\t" + (problem == null ? "" : clean(problem));
+		}
+
+		private static String clean(String str) {
+			return str.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+		}
+	}
+
+	/**
+	 * The validation results for one PV in the latest run.
+	 */
+	private static class PVResult {
+		long validatedMillis = 0;
+		int partitions = 0;
+		int unchangedPartitions = 0;
+		int invalidPartitions = 0;
+		int repairedPartitions = 0;
+		List<String> problems = new ArrayList<String>();
+
+		synchronized void add(String path, PartitionRecord record, boolean unchanged) {
+			partitions++;
+			if(unchanged) unchangedPartitions++;
+			validatedMillis = Math.max(validatedMillis, record.validatedMillis);
+			if(record.status.equals(INVALID)) {
+				invalidPartitions++;
+				if(problems.size() < MAX_PROBLEMS_PER_PV) problems.add(path + " - " + record.problem);
+			} else if(record.status.equals(REPAIRED)) {
+				repairedPartitions++;
+				if(problems.size() < MAX_PROBLEMS_PER_PV) problems.add(path + " was repaired - " + record.problem);
+			}
+		}
+	}
+
+	/**
+	 * Get the validator for this store; creating one if necessary.
+	 * @param storeName
+	 * @param configService
+	 * @return The validator
+	 */
+	public static PlainPBStoreValidator getValidator(String storeName, ConfigService configService) {
+		PlainPBStoreValidator validator = validators.get(storeName);
+		if(validator != null) return validator;
+		int threads = Integer.parseInt(configService.getInstallationProperties().getProperty(THREADS_PROPERTY, "2"));
+		long mbPerSecond = Long.parseLong(configService.getInstallationProperties().getProperty(MB_PER_SECOND_PROPERTY, "20"));
+		String checkpointFolder = configService.getInstallationProperties().getProperty(CHECKPOINT_FOLDER_PROPERTY, System.getProperty("java.io.tmpdir") + "/archappl_store_validation");
+		String checkpointName = (configService.getWarFile() != null ? configService.getWarFile().toString() : "NONE") + "_" + Integer.toHexString(storeName.hashCode()) + ".txt";
+		PlainPBStoreValidator newValidator = new PlainPBStoreValidator(storeName, Paths.get(checkpointFolder, checkpointName), threads, mbPerSecond*1024*1024);
+		validator = validators.putIfAbsent(storeName, newValidator);
+		if(validator == null) {
+			logger.info("Created the validator for " + storeName + " checkpointed in " + newValidator.checkpointFile);
+			final PlainPBStoreValidator createdValidator = newValidator;
+			configService.addShutdownHook(new Runnable() {
+				@Override
+				public void run() {
+					createdValidator.cancel();
+				}
+			});
+			validator = newValidator;
+		}
+		return validator;
+	}
+
+	/**
+	 * @param storeName
+	 * @return The validator for this store if one has been created in this process; else null.
+	 */
+	public static PlainPBStoreValidator getExistingValidator(String storeName) {
+		return validators.get(storeName);
+	}
+
+	PlainPBStoreValidator(String storeName, Path checkpointFile, int threads, long bytesPerSecond) {
+		this.storeName = storeName;
+		this.checkpointFile = checkpointFile;
+		this.threads = Math.max(1, threads);
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Start validating these PVs in the background.
+	 * @param pvs - The PVs to validate and the storage plugin for this store for each PV.
+	 * @param repair - Should we repair invalid partitions?
+	 * @return false if a run is already active for this store.
+	 */
+	public synchronized boolean start(final Map<String, PlainPBStoragePlugin> pvs, final boolean repair) {
+		if(runner != null) {
+			logger.warn("Validation of " + storeName + " is already running");
+			return false;
+		}
+		runner = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runValidation(pvs, repair);
+				} catch(Throwable t) {
+					logger.error("Exception validating " + storeName, t);
+				} finally {
+					synchronized(PlainPBStoreValidator.this) {
+						runner = null;
+					}
+				}
+			}
+		}, "Validating " + storeName);
+		runner.setDaemon(true);
+		runner.start();
+		return true;
+	}
+
+	/**
+	 * Stop the active run, if any. The partitions validated so far are in the checkpoint; so the next run continues from here.
+	 */
+	public void cancel() {
+		Thread currentRunner;
+		synchronized(this) {
+			currentRunner = runner;
+		}
+		if(currentRunner != null) {
+			logger.info("Cancelling the validation of " + storeName);
+			cancelled = true;
+			currentRunner.interrupt();
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return runner != null;
+	}
+
+	/**
+	 * Validate these PVs; this returns when all the PVs have been validated or if the run is cancelled.
+	 * @param pvs
+	 * @param repair
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void runValidation(Map<String, PlainPBStoragePlugin> pvs, boolean repair) throws IOException, InterruptedException {
+		synchronized(this) {
+			this.repair = repair;
+			this.cancelled = false;
+			this.runStartedMillis = System.currentTimeMillis();
+			this.runCompletedMillis = 0;
+			this.lastRunOutcome = "Running";
+		}
+		pvsToValidate.set(pvs.size());
+		pvsValidated.set(0);
+		partitionsValidated.set(0);
+		partitionsUnchanged.set(0);
+		partitionsChangedWhileValidating.set(0);
+		invalidPartitions.set(0);
+		repairedPartitions.set(0);
+		bytesValidated.set(0);
+		logger.info("Validating " + pvs.size() + " PVs in " + storeName + (repair ? " and repairing invalid partitions" : "") + " using " + threads + " threads");
+
+		loadCheckpoint();
+		final Set<String> seenPaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final PBBlockChecksums.ReadThrottle throttle = makeThrottle();
+		ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Validating " + storeName + " " + count.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		boolean completed = false;
+		try {
+			Files.createDirectories(checkpointFile.getParent());
+			checkpointWriter = Files.newBufferedWriter(checkpointFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			for(final Map.Entry<String, PlainPBStoragePlugin> pv : pvs.entrySet()) {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						if(cancelled) return;
+						try {
+							validatePV(pv.getKey(), pv.getValue(), throttle, seenPaths);
+						} catch(InterruptedException ex) {
+							logger.debug("Interrupted validating " + pv.getKey());
+						} catch(Throwable t) {
+							logger.error("Exception validating " + pv.getKey() + " in " + storeName, t);
+						} finally {
+							pvsValidated.incrementAndGet();
+						}
+					}
+				});
+			}
+			workers.shutdown();
+			try {
+				while(!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+					logger.debug("Validated " + pvsValidated.get() + " of " + pvs.size() + " PVs in " + storeName);
+				}
+			} catch(InterruptedException ex) {
+				cancelled = true;
+				workers.shutdownNow();
+				workers.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			completed = !cancelled;
+		} finally {
+			workers.shutdownNow();
+			synchronized(this) {
+				if(checkpointWriter != null) {
+					try { checkpointWriter.close(); } catch(IOException ex) { }
+					checkpointWriter = null;
+				}
+			}
+			if(completed) {
+				// Forget the partitions that are no longer there (for example, they were moved by ETL).
+				checkpoint.keySet().retainAll(seenPaths);
+				compactCheckpoint();
+			}
+			checkpoint.clear();
+			synchronized(this) {
+				this.runCompletedMillis = System.currentTimeMillis();
+				this.lastRunOutcome = completed ? "Completed" : "Cancelled";
+			}
+		}
+		logger.info((completed ? "Completed" : "Cancelled") + " the validation of " + storeName + "; validated " + partitionsValidated.get() + " partitions and skipped " + partitionsUnchanged.get() + " unchanged partitions; found " + invalidPartitions.get() + " invalid partitions and repaired " + repairedPartitions.get());
+	}
+
+	private PBBlockChecksums.ReadThrottle makeThrottle() {
+		if(bytesPerSecond <= 0) {
+			return new PBBlockChecksums.ReadThrottle() {
+				@Override
+				public void bytesRead(long bytes) throws InterruptedException {
+					if(cancelled) throw new InterruptedException();
+				}
+			};
+		}
+		// One budget for all the workers.
+		final RateLimiter rateLimiter = RateLimiter.create(bytesPerSecond);
+		return new PBBlockChecksums.ReadThrottle() {
+			@Override
+			public void bytesRead(long bytes) throws InterruptedException {
+				while(bytes > 0) {
+					if(cancelled) throw new InterruptedException();
+					int permits = (int) Math.min(bytes, 1024*1024);
+					rateLimiter.acquire(permits);
+					bytes -= permits;
+				}
+			}
+		};
+	}
+
+	private void validatePV(String pvName, PlainPBStoragePlugin storagePlugin, PBBlockChecksums.ReadThrottle throttle, Set<String> seenPaths) throws IOException, InterruptedException {
+		PVResult pvResult = new PVResult();
+		Path[] paths;
+		try(ArchPaths archPaths = new ArchPaths()) {
+			paths = storagePlugin.getAllPathsForPV(archPaths, pvName, PlainPBStoragePlugin.PB_EXTENSION);
+		}
+		if(paths != null) {
+			for(Path path : paths) {
+				if(cancelled) throw new InterruptedException();
+				String key = path.toString();
+				seenPaths.add(key);
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(path, BasicFileAttributes.class);
+				} catch(NoSuchFileException ex) {
+					logger.debug("Partition " + path + " was deleted before we could validate it");
+					continue;
+				}
+				PartitionRecord record = checkpoint.get(key);
+				if(record != null && record.matches(attrs)) {
+					partitionsUnchanged.incrementAndGet();
+					if(record.status.equals(INVALID)) invalidPartitions.incrementAndGet();
+					pvResult.add(key, record, true);
+					continue;
+				}
+				record = validatePartition(pvName, path, attrs, throttle);
+				if(record == null) continue;
+				checkpoint.put(key, record);
+				appendToCheckpoint(key, record);
+				pvResult.add(key, record, false);
+			}
+		}
+		pvResults.put(pvName, pvResult);
+	}
+
+	/**
+	 * Validate and, if asked to, repair one partition.
+	 * @return The record to save in the checkpoint; null if the partition changed while we were validating it.
+	 */
+	private PartitionRecord validatePartition(String pvName, Path path, BasicFileAttributes attrs, PBBlockChecksums.ReadThrottle throttle) throws IOException, InterruptedException {
+		String problem;
+		try {
+			problem = findProblem(path, attrs.size(), throttle);
+		} catch(NoSuchFileException ex) {
+			partitionsChangedWhileValidating.incrementAndGet();
+			return null;
+		}
+		partitionsValidated.incrementAndGet();
+		bytesValidated.addAndGet(attrs.size());
+		BasicFileAttributes attrsAfter = Files.readAttributes(path, BasicFileAttributes.class);
+		if(attrsAfter.size() != attrs.size() || !attrsAfter.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+			// ETL appended to the partition while we were looking at it; we'll validate this in the next run.
+			logger.debug("Partition " + path + " changed while we were validating it");
+			partitionsChangedWhileValidating.incrementAndGet();
+			return null;
+		}
+		if(problem == null) {
+			return new PartitionRecord(pvName, attrs.size(), attrs.lastModifiedTime().toMillis(), System.currentTimeMillis(), VALID, null);
+		}
+
+		logger.warn("Partition " + path + " for PV " + pvName + " is invalid - " + problem);
+		if(repair && System.currentTimeMillis() - attrs.lastModifiedTime().toMillis() > REPAIR_AFTER_MILLIS) {
+			ValidateAndFixPBFile.fixPBFile(path, false, false);
+			BasicFileAttributes repairedAttrs = Files.readAttributes(path, BasicFileAttributes.class);
+			String problemAfterRepair = findProblem(path, repairedAttrs.size(), throttle);
+			if(problemAfterRepair == null) {
+				logger.info("Repaired partition " + path + " for PV " + pvName);
+				repairedPartitions.incrementAndGet();
+				return new PartitionRecord(pvName, repairedAttrs.size(), repairedAttrs.lastModifiedTime().toMillis(), System.currentTimeMillis(), REPAIRED, problem);
+			}
+			logger.error("Partition " + path + " for PV " + pvName + " is still invalid after repairing it - " + problemAfterRepair);
+			invalidPartitions.incrementAndGet();
+			return new PartitionRecord(pvName, repairedAttrs.size(), repairedAttrs.lastModifiedTime().toMillis(), System.currentTimeMillis(), INVALID, problemAfterRepair);
+		}
+		invalidPartitions.incrementAndGet();
+		return new PartitionRecord(pvName, attrs.size(), attrs.lastModifiedTime().toMillis(), System.currentTimeMillis(), INVALID, problem);
+	}
+
+	/**
+	 * Partitions with block checksums are verified using the checksums; others are parsed.
+	 * @return A description of what is wrong with the partition; null if the partition is valid.
+	 */
+	private static String findProblem(Path path, long size, PBBlockChecksums.ReadThrottle throttle) throws IOException, InterruptedException {
+		if(PBBlockChecksums.hasChecksums(path)) {
+			PBBlockChecksums.VerificationResult result = PBBlockChecksums.verify(path, throttle);
+			if(result.isDamaged()) return result.toString();
+			if(result.getUnverifiedBytes() == 0) return null;
+		}
+		throttle.bytesRead(size);
+		long eventnum = 0;
+		try {
+			PBFileInfo info = new PBFileInfo(path);
+			long previousEpochSeconds = Long.MIN_VALUE;
+			try(FileBackedPBEventStream strm = new FileBackedPBEventStream(info.getPVName(), path, info.getType())) {
+				Iterator<Event> it = strm.iterator();
+				if(it == null) return "Cannot read the events";
+				while(it.hasNext()) {
+					Event ev = it.next();
+					if(ev == null) return "Cannot parse event " + eventnum;
+					long epochSeconds = ev.getEpochSeconds();
+					if(epochSeconds < previousEpochSeconds) {
+						return "The timestamps are not monotonically increasing at event " + eventnum
+								+ "; the previous time stamp is " + TimeUtils.convertToISO8601String(TimeUtils.convertFromEpochSeconds(previousEpochSeconds, 0))
+								+ " and the current time stamp is " + TimeUtils.convertToISO8601String(TimeUtils.convertFromEpochSeconds(epochSeconds, 0));
+					}
+					previousEpochSeconds = epochSeconds;
+					eventnum++;
+				}
+			}
+			return null;
+		} catch(NoSuchFileException ex) {
+			throw ex;
+		} catch(Exception ex) {
+			logger.debug("Exception parsing " + path + " at event " + eventnum, ex);
+			return "Exception parsing event " + eventnum + " - " + ex.getMessage();
+		}
+	}
+
+	private void loadCheckpoint() {
+		checkpoint.clear();
+		if(!Files.exists(checkpointFile)) return;
+		int lines = 0;
+		try(BufferedReader reader = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", -1);
+				if(parts.length != 7) {
+					// Probably a partial line from a crash.
+					logger.debug("Skipping line " + lines + " in the checkpoint file " + checkpointFile);
+					continue;
+				}
+				try {
+					checkpoint.put(parts[0], new PartitionRecord(parts[5], Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4], parts[6].isEmpty() ? null : parts[6]));
+					lines++;
+				} catch(NumberFormatException ex) {
+					logger.debug("Skipping line " + lines + " in the checkpoint file " + checkpointFile);
+				}
+			}
+		} catch(IOException ex) {
+			logger.error("Exception loading the checkpoint file " + checkpointFile + "; we'll validate all the partitions", ex);
+			checkpoint.clear();
+		}
+		logger.info("Loaded " + checkpoint.size() + " partitions from the checkpoint file " + checkpointFile);
+	}
+
+	private void appendToCheckpoint(String path, PartitionRecord record) {
+		synchronized(this) {
+			try {
+				if(checkpointWriter == null) return;
+				checkpointWriter.write(record.toLine(path));
+				checkpointWriter.write("\n");
+				checkpointWriter.flush();
+			} catch(IOException ex) {
+				logger.error("Exception writing to the checkpoint file " + checkpointFile, ex);
+			}
+		}
+	}
+
+	/**
+	 * The checkpoint file has an entry for each time we validated a partition; rewrite it with just the latest entries.
+	 */
+	private void compactCheckpoint() {
+		Path tmpFile = checkpointFile.resolveSibling(checkpointFile.getFileName().toString() + ".tmp");
+		try {
+			try(Writer out = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+				for(Map.Entry<String, PartitionRecord> entry : new TreeMap<String, PartitionRecord>(checkpoint).entrySet()) {
+					out.write(entry.getValue().toLine(entry.getKey()));
+					out.write("\n");
+				}
+			}
+			Files.move(tmpFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException ex) {
+			logger.error("Exception compacting the checkpoint file " + checkpointFile, ex);
+		}
+	}
+
+	public Map<String, String> getStatus() {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		synchronized(this) {
+			ret.put("store", storeName);
+			ret.put("running", Boolean.toString(runner != null));
+			ret.put("lastRun", lastRunOutcome);
+			ret.put("repair", Boolean.toString(repair));
+			ret.put("runStarted", runStartedMillis > 0 ? TimeUtils.convertToHumanReadableString(runStartedMillis/1000) : "Never");
+			ret.put("runCompleted", runCompletedMillis > 0 ? TimeUtils.convertToHumanReadableString(runCompletedMillis/1000) : "Never");
+		}
+		ret.put("pvsToValidate", Integer.toString(pvsToValidate.get()));
+		ret.put("pvsValidated", Integer.toString(pvsValidated.get()));
+		ret.put("partitionsValidated", Long.toString(partitionsValidated.get()));
+		ret.put("partitionsUnchanged", Long.toString(partitionsUnchanged.get()));
+		ret.put("partitionsChangedWhileValidating", Long.toString(partitionsChangedWhileValidating.get()));
+		ret.put("invalidPartitions", Long.toString(invalidPartitions.get()));
+		ret.put("repairedPartitions", Long.toString(repairedPartitions.get()));
+		ret.put("bytesValidated", Long.toString(bytesValidated.get()));
+		ret.put("threads", Integer.toString(threads));
+		ret.put("MBPerSecond", bytesPerSecond > 0 ? Long.toString(bytesPerSecond/(1024*1024)) : "Unlimited");
+		ret.put("checkpointFile", checkpointFile.toString());
+		return ret;
+	}
+
+	/**
+	 * @return The PVs with invalid or repaired partitions in the latest run and a description of the problems.
+	 */
+	public Map<String, List<String>> getPVsWithProblems() {
+		TreeMap<String, List<String>> ret = new TreeMap<String, List<String>>();
+		for(Map.Entry<String, PVResult> entry : pvResults.entrySet()) {
+			PVResult pvResult = entry.getValue();
+			synchronized(pvResult) {
+				if(!pvResult.problems.isEmpty()) ret.put(entry.getKey(), new ArrayList<String>(pvResult.problems));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the validation results for this PV from all the stores that have been validated in this process.
+	 * @param pvName
+	 * @return The results as name value pairs; empty if this PV has not been validated.
+	 */
+	public static Map<String, String> getResultsForPV(String pvName) {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		for(PlainPBStoreValidator validator : new TreeMap<String, PlainPBStoreValidator>(validators).values()) {
+			validator.addResultsForPV(pvName, ret);
+		}
+		return ret;
+	}
+
+	void addResultsForPV(String pvName, Map<String, String> results) {
+		PVResult pvResult = pvResults.get(pvName);
+		if(pvResult == null) return;
+		String prefix = "Validation of " + storeName + " ";
+		synchronized(pvResult) {
+			results.put(prefix + "last validated", pvResult.validatedMillis > 0 ? TimeUtils.convertToHumanReadableString(pvResult.validatedMillis/1000) : "Never");
+			results.put(prefix + "partitions", Integer.toString(pvResult.partitions));
+			results.put(prefix + "unchanged partitions", Integer.toString(pvResult.unchangedPartitions));
+			results.put(prefix + "invalid partitions", Integer.toString(pvResult.invalidPartitions));
+			results.put(prefix + "repaired partitions", Integer.toString(pvResult.repairedPartitions));
+			for(int i = 0; i < pvResult.problems.size(); i++) {
+				results.put(prefix + "problem " + (i+1), pvResult.problems.get(i));
+			}
+		}
+	}
+}
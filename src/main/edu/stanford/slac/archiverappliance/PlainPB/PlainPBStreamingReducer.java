@@ -0,0 +1,522 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.CallableEventStream;
+import org.epics.archiverappliance.retrieval.ChangeInYearsException;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.postprocessors.BinnedPostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessorWithConsolidatedEventStream;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessors;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.FieldValue;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
+import edu.stanford.slac.archiverappliance.PB.utils.LineByteStream;
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Reduces the data that ETL moves into a store that has the <code>reducedata</code> option one ETL append at a time.
+ * Without this, each ETL append is reduced by itself; so a bin that spans two ETL runs is written out twice, once with each part of the bin.
+ * This is used if the store has the <code>reducedataIncremental=true</code> option.
+ * <br>
+ * For {@link BinnedPostProcessor binning operators}, we hold back the last bin as it may not be complete.
+ * The raw events in this bin are kept in a small state file next to the partitions of the PV; this is a PB file whose header has the operator.
+ * In the next ETL run, these events are fed to the operator before the new events; so each bin is written out once and the reduced data is the same as that obtained by reducing all the raw data in one go.
+ * Use {@link #verify(String, String, List, List) verify} (or the VerifyReducedData utility) to check this against the raw data.
+ * <br>
+ * The data in the last bin is visible in this store only after ETL moves some data from the next bin.
+ * This works only for intervals that divide a day; so bins never span years.
+ * @author mshankar
+ *
+ */
+public class PlainPBStreamingReducer {
+	private static Logger logger = Logger.getLogger(PlainPBStreamingReducer.class.getName());
+	public static final String STATE_EXTENSION = ".pbstate";
+	public static final String PENDING_STATE_EXTENSION = ".pbstatepending";
+	private static final String STATE_NAME_COMPONENT = "reducedata";
+	private static final String OPERATOR_HEADER = "reducedata";
+
+	private final String pvName;
+	private final String reducedataPostProcessor;
+	private final Path statePath;
+	private final Path pendingStatePath;
+	private ArchDBRTypes dbrType = null;
+	private LinkedList<Event> pendingEvents = new LinkedList<Event>();
+
+	/**
+	 * @param pvName
+	 * @param reducedataPostProcessor - The reducedata operator; for example, firstSample_3600
+	 * @param statePath - The state file for this PV.
+	 * @param pendingStatePath - If not null, we save the state here and {@link #commitState(Path, Path) commit} it when the ETL append data is committed.
+	 */
+	public PlainPBStreamingReducer(String pvName, String reducedataPostProcessor, Path statePath, Path pendingStatePath) {
+		this.pvName = pvName;
+		this.reducedataPostProcessor = reducedataPostProcessor;
+		this.statePath = statePath;
+		this.pendingStatePath = pendingStatePath;
+	}
+
+	/**
+	 * Can we reduce incrementally using this (initialized) post processor?
+	 * @param postProcessor
+	 * @return true if the post processor bins its data using an interval that divides a day.
+	 */
+	public static boolean canReduceIncrementally(PostProcessor postProcessor) {
+		if(!(postProcessor instanceof BinnedPostProcessor)) return false;
+		int intervalSecs = ((BinnedPostProcessor) postProcessor).getIntervalSecs();
+		return intervalSecs > 0 && (86400 % intervalSecs) == 0;
+	}
+
+	/**
+	 * The state file for a PV; this lives next to the partitions of the PV.
+	 * @param paths
+	 * @param rootFolder
+	 * @param pvKey - The key for the PV
+	 * @param extension - Either STATE_EXTENSION or PENDING_STATE_EXTENSION
+	 * @return
+	 * @throws IOException
+	 */
+	public static Path getStatePath(ArchPaths paths, String rootFolder, String pvKey, String extension) throws IOException {
+		return paths.get(true, rootFolder, pvKey + STATE_NAME_COMPONENT + extension);
+	}
+
+	/**
+	 * Reduce the events in this ETL append.
+	 * The caller appends the returned events to the store and then calls {@link #saveState()}.
+	 * @param postProcessor - A freshly initialized instance of the reducedata operator.
+	 * @param stream - The raw events in this ETL append.
+	 * @return The reduced data for the bins that are complete.
+	 * @throws Exception
+	 */
+	public EventStream reduce(PostProcessor postProcessor, EventStream stream) throws Exception {
+		int intervalSecs = ((BinnedPostProcessor) postProcessor).getIntervalSecs();
+		RemotableEventStreamDesc desc = new RemotableEventStreamDesc((RemotableEventStreamDesc) stream.getDescription());
+		loadState(desc.getArchDBRType());
+		this.dbrType = desc.getArchDBRType();
+		ReducerInput input = new ReducerInput(desc, intervalSecs, pendingEvents, stream, true);
+		EventStream reduced = runPostProcessor(postProcessor, input);
+		pendingEvents = input.lastBinEvents;
+		if(input.lastBin == Long.MIN_VALUE) {
+			return new ArrayListEventStream(0, desc);
+		}
+		long pendingBinStartEpochSeconds = input.lastBin*intervalSecs;
+		ArrayListEventStream ret = new ArrayListEventStream(0, (RemotableEventStreamDesc) reduced.getDescription());
+		for(Event e : new YearChangeTolerantIterable(reduced)) {
+			if(e.getEpochSeconds() < pendingBinStartEpochSeconds) {
+				ret.add(e);
+			}
+		}
+		if(logger.isDebugEnabled()) logger.debug("Reduced " + input.eventsFed + " events for pv " + pvName + " using " + reducedataPostProcessor + " into " + ret.size() + " events holding back " + pendingEvents.size() + " events from " + TimeUtils.convertToHumanReadableString(pendingBinStartEpochSeconds));
+		return ret;
+	}
+
+	/**
+	 * Save the events in the last bin so that we can continue from here in the next ETL run.
+	 * We write to a temporary file and then move it into place; so a failure leaves the old state as is.
+	 * @throws IOException
+	 */
+	public void saveState() throws IOException {
+		if(pendingEvents.isEmpty()) return;
+		Path path = (pendingStatePath != null) ? pendingStatePath : statePath;
+		Path tempPath = path.resolveSibling(path.getFileName().toString() + "tmp");
+		short year = TimeUtils.computeYearForEpochSeconds(pendingEvents.getFirst().getEpochSeconds());
+		PayloadInfo payloadInfo = PayloadInfo.newBuilder()
+				.setPvname(pvName)
+				.setType(dbrType.getPBPayloadType())
+				.setYear(year)
+				.addHeaders(FieldValue.newBuilder().setName(OPERATOR_HEADER).setVal(reducedataPostProcessor).build())
+				.build();
+		try(OutputStream os = new BufferedOutputStream(Files.newOutputStream(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+			os.write(LineEscaper.escapeNewLines(payloadInfo.toByteArray()));
+			os.write(LineEscaper.NEWLINE_CHAR);
+			for(Event e : pendingEvents) {
+				ByteArray val = e.getRawForm();
+				os.write(val.data, val.off, val.len);
+				os.write(LineEscaper.NEWLINE_CHAR);
+			}
+		}
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Move the pending state into place once ETL has committed the append data.
+	 * @param pendingStatePath
+	 * @param statePath
+	 * @throws IOException
+	 */
+	public static void commitState(Path pendingStatePath, Path statePath) throws IOException {
+		if(Files.exists(pendingStatePath)) {
+			Files.move(pendingStatePath, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Load the events in the last bin from the state file.
+	 * State from a different operator or for a different DBR type is discarded; we then start afresh from the events in this ETL run.
+	 */
+	private void loadState(ArchDBRTypes expectedType) throws IOException {
+		pendingEvents = new LinkedList<Event>();
+		Path path = (pendingStatePath != null && Files.exists(pendingStatePath)) ? pendingStatePath : statePath;
+		if(!Files.exists(path)) return;
+		try(LineByteStream lis = new LineByteStream(path)) {
+			PayloadInfo info = PayloadInfo.parseFrom(LineEscaper.unescapeNewLines(lis.readLine()));
+			String operator = null;
+			for(FieldValue header : info.getHeadersList()) {
+				if(header.getName().equals(OPERATOR_HEADER)) operator = header.getVal();
+			}
+			ArchDBRTypes type = ArchDBRTypes.valueOf(info.getType());
+			if(!reducedataPostProcessor.equals(operator) || type != expectedType) {
+				logger.warn("Discarding the reducedata state in " + path + " for pv " + pvName + " as it is for " + operator + " and " + type + " and not " + reducedataPostProcessor + " and " + expectedType);
+				return;
+			}
+			Constructor<? extends DBRTimeEvent> unmarshallingConstructor = DBR2PBTypeMapping.getPBClassFor(type).getUnmarshallingFromByteArrayConstructor();
+			short year = (short) info.getYear();
+			byte[] line = lis.readLine();
+			while(line != null) {
+				if(line.length > 0) pendingEvents.add(unmarshallingConstructor.newInstance(year, new ByteArray(line)));
+				line = lis.readLine();
+			}
+		} catch(IOException ex) {
+			throw ex;
+		} catch(Exception ex) {
+			throw new IOException("Exception loading the reducedata state for pv " + pvName + " from " + path, ex);
+		}
+		logger.debug("Loaded " + pendingEvents.size() + " events in the last bin for pv " + pvName + " from " + path);
+	}
+
+	private static EventStream runPostProcessor(PostProcessor postProcessor, EventStream input) throws Exception {
+		EventStream reduced = postProcessor.wrap(new CallableEventStream(input)).call();
+		if(postProcessor instanceof PostProcessorWithConsolidatedEventStream) {
+			reduced = ((PostProcessorWithConsolidatedEventStream) postProcessor).getConsolidatedEventStream();
+		}
+		return reduced;
+	}
+
+	/**
+	 * The result of comparing the reduced data in a store against the reduced data computed from the raw data.
+	 * @author mshankar
+	 *
+	 */
+	public static class VerificationResult {
+		long startEpochSeconds;
+		long endEpochSeconds;
+		long matched = 0;
+		long mismatched = 0;
+		long missing = 0;
+		long extra = 0;
+		Timestamp firstDifference = null;
+
+		public boolean isOK() {
+			return mismatched == 0 && missing == 0 && extra == 0;
+		}
+		public long getMatched() {
+			return matched;
+		}
+		public long getMismatched() {
+			return mismatched;
+		}
+		public long getMissing() {
+			return missing;
+		}
+		public long getExtra() {
+			return extra;
+		}
+
+		private void difference(Timestamp ts) {
+			if(firstDifference == null || ts.before(firstDifference)) firstDifference = ts;
+		}
+
+		@Override
+		public String toString() {
+			return "Compared reduced data from " + TimeUtils.convertToHumanReadableString(startEpochSeconds) + " to " + TimeUtils.convertToHumanReadableString(endEpochSeconds)
+					+ ": matched=" + matched + " mismatched=" + mismatched + " missing=" + missing + " extra=" + extra
+					+ (firstDifference != null ? " first difference at " + TimeUtils.convertToHumanReadableString(firstDifference) : "");
+		}
+	}
+
+	/**
+	 * Reduce the raw data in one go and compare the result byte for byte against the reduced data in a store.
+	 * We can only compare the bins that are complete in the raw data; so we skip the bin with the first raw event and everything from the bin with the last raw event.
+	 * @param pvName
+	 * @param reducedataPostProcessor - The reducedata operator; for example, firstSample_3600
+	 * @param rawPaths - PB files with the raw data, in time order.
+	 * @param reducedPaths - PB files with the reduced data, in time order.
+	 * @return
+	 * @throws Exception
+	 */
+	public static VerificationResult verify(String pvName, String reducedataPostProcessor, List<Path> rawPaths, List<Path> reducedPaths) throws Exception {
+		PostProcessor postProcessor = PostProcessors.findPostProcessor(reducedataPostProcessor);
+		if(postProcessor == null) throw new IOException("Cannot find the post processor for " + reducedataPostProcessor);
+		postProcessor.initialize(reducedataPostProcessor, pvName);
+		if(!canReduceIncrementally(postProcessor)) throw new IOException(reducedataPostProcessor + " is not reduced incrementally");
+		int intervalSecs = ((BinnedPostProcessor) postProcessor).getIntervalSecs();
+		VerificationResult result = new VerificationResult();
+		if(rawPaths.isEmpty()) return result;
+
+		TreeMap<Timestamp, byte[]> expected = new TreeMap<Timestamp, byte[]>();
+		LinkedList<EventStream> rawStreams = new LinkedList<EventStream>();
+		try {
+			for(Path rawPath : rawPaths) {
+				PBFileInfo info = new PBFileInfo(rawPath, false);
+				rawStreams.add(new FileBackedPBEventStream(pvName, rawPath, info.getType()));
+			}
+			RemotableEventStreamDesc desc = new RemotableEventStreamDesc((RemotableEventStreamDesc) rawStreams.getFirst().getDescription());
+			ReducerInput input = new ReducerInput(desc, intervalSecs, new LinkedList<Event>(), new ConcatenatedEventStream(desc, rawStreams), false);
+			EventStream reduced = runPostProcessor(postProcessor, input);
+			for(Event e : new YearChangeTolerantIterable(reduced)) {
+				expected.put(e.getEventTimeStamp(), e.getRawForm().toBytes());
+			}
+			if(input.secondBin == Long.MIN_VALUE) return result;
+			result.startEpochSeconds = input.secondBin*intervalSecs;
+			result.endEpochSeconds = input.lastBin*intervalSecs;
+		} finally {
+			for(EventStream rawStream : rawStreams) {
+				try { rawStream.close(); } catch(Throwable t) { }
+			}
+		}
+
+		Timestamp start = TimeUtils.convertFromEpochSeconds(result.startEpochSeconds, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(result.endEpochSeconds, 0);
+		for(Path reducedPath : reducedPaths) {
+			PBFileInfo info = new PBFileInfo(reducedPath, false);
+			try(FileBackedPBEventStream strm = new FileBackedPBEventStream(pvName, reducedPath, info.getType())) {
+				for(Event e : strm) {
+					Timestamp ts = e.getEventTimeStamp();
+					if(ts.before(start) || !ts.before(end)) continue;
+					byte[] expectedBytes = expected.remove(ts);
+					if(expectedBytes == null) {
+						result.extra++;
+						result.difference(ts);
+					} else if(Arrays.equals(expectedBytes, e.getRawForm().toBytes())) {
+						result.matched++;
+					} else {
+						result.mismatched++;
+						result.difference(ts);
+					}
+				}
+			}
+		}
+		for(Timestamp ts : expected.subMap(start, end).keySet()) {
+			result.missing++;
+			result.difference(ts);
+		}
+		return result;
+	}
+
+	/**
+	 * Iterate thru a stream that can throw a ChangeInYearsException (for example, SummaryStatsCollectorEventStream) ignoring the change in years.
+	 * The events themselves have the right year.
+	 */
+	private static class YearChangeTolerantIterable implements Iterable<Event>, Iterator<Event> {
+		private final Iterator<Event> it;
+		YearChangeTolerantIterable(EventStream strm) {
+			this.it = strm.iterator();
+		}
+		@Override
+		public Iterator<Event> iterator() {
+			return this;
+		}
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+		@Override
+		public Event next() {
+			while(true) {
+				try {
+					return it.next();
+				} catch(ChangeInYearsException ex) {
+					logger.debug("Change in years from " + ex.getPreviousYear() + " to " + ex.getCurrentYear());
+				}
+			}
+		}
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * The raw events in several streams one after the other.
+	 */
+	private static class ConcatenatedEventStream implements EventStream {
+		private final RemotableEventStreamDesc desc;
+		private final List<EventStream> streams;
+		ConcatenatedEventStream(RemotableEventStreamDesc desc, List<EventStream> streams) {
+			this.desc = desc;
+			this.streams = streams;
+		}
+		@Override
+		public RemotableEventStreamDesc getDescription() {
+			return desc;
+		}
+		@Override
+		public void close() throws IOException {
+		}
+		@Override
+		public Iterator<Event> iterator() {
+			final Iterator<EventStream> streamsIt = streams.iterator();
+			// The iterators of the PB event streams move to the next event in hasNext; so we call hasNext only once for each event.
+			return new Iterator<Event>() {
+				Iterator<Event> current = null;
+				Event nextEvent = null;
+				@Override
+				public boolean hasNext() {
+					if(nextEvent != null) return true;
+					while(current == null || !current.hasNext()) {
+						if(!streamsIt.hasNext()) return false;
+						current = streamsIt.next().iterator();
+					}
+					nextEvent = current.next();
+					return true;
+				}
+				@Override
+				public Event next() {
+					if(!hasNext()) throw new NoSuchElementException();
+					Event ret = nextEvent;
+					nextEvent = null;
+					return ret;
+				}
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/**
+	 * What we feed the operator; the events in the last bin from the previous run followed by the new events.
+	 * Events that are not newer than the previous event are skipped; ETL is not transactional and we may see the same event twice.
+	 * As we go along, we keep track of the bins we see and (optionally) copies of the events in the last bin.
+	 * This is not a PartitionSummarySource; so the operator always goes thru the events.
+	 */
+	private static class ReducerInput implements EventStream, Iterator<Event> {
+		private final RemotableEventStreamDesc desc;
+		private final int intervalSecs;
+		private final Iterator<Event> pendingIt;
+		private final EventStream newEvents;
+		private Iterator<Event> newEventsIt = null;
+		private final boolean keepLastBinEvents;
+		private final Constructor<? extends DBRTimeEvent> unmarshallingConstructor;
+		private Event nextEvent = null;
+		private Timestamp previousEventTimestamp = null;
+		LinkedList<Event> lastBinEvents = new LinkedList<Event>();
+		long firstBin = Long.MIN_VALUE;
+		long secondBin = Long.MIN_VALUE;
+		long lastBin = Long.MIN_VALUE;
+		long eventsFed = 0;
+
+		ReducerInput(RemotableEventStreamDesc desc, int intervalSecs, List<Event> pendingEvents, EventStream newEvents, boolean keepLastBinEvents) {
+			this.desc = desc;
+			this.intervalSecs = intervalSecs;
+			this.pendingIt = pendingEvents.iterator();
+			this.newEvents = newEvents;
+			this.keepLastBinEvents = keepLastBinEvents;
+			this.unmarshallingConstructor = DBR2PBTypeMapping.getPBClassFor(desc.getArchDBRType()).getUnmarshallingFromByteArrayConstructor();
+		}
+
+		@Override
+		public RemotableEventStreamDesc getDescription() {
+			return desc;
+		}
+
+		@Override
+		public Iterator<Event> iterator() {
+			return this;
+		}
+
+		@Override
+		public void close() throws IOException {
+			newEvents.close();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while(nextEvent == null) {
+				Event e;
+				boolean pending = pendingIt.hasNext();
+				if(pending) {
+					e = pendingIt.next();
+				} else {
+					if(newEventsIt == null) newEventsIt = newEvents.iterator();
+					if(!newEventsIt.hasNext()) return false;
+					e = newEventsIt.next();
+				}
+				Timestamp ts = e.getEventTimeStamp();
+				if(previousEventTimestamp != null && !ts.after(previousEventTimestamp)) continue;
+				previousEventTimestamp = ts;
+				long binNumber = e.getEpochSeconds()/intervalSecs;
+				if(binNumber != lastBin) {
+					if(firstBin == Long.MIN_VALUE) {
+						firstBin = binNumber;
+					} else if(secondBin == Long.MIN_VALUE) {
+						secondBin = binNumber;
+					}
+					lastBin = binNumber;
+					lastBinEvents = new LinkedList<Event>();
+				}
+				if(keepLastBinEvents) {
+					// The iterators of the PB event streams reuse their buffers; so we make a copy of the events we keep.
+					lastBinEvents.add(pending ? e : copyEvent(e));
+				}
+				eventsFed++;
+				nextEvent = e;
+			}
+			return true;
+		}
+
+		@Override
+		public Event next() {
+			if(!hasNext()) throw new NoSuchElementException();
+			Event ret = nextEvent;
+			nextEvent = null;
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private Event copyEvent(Event e) {
+			try {
+				return unmarshallingConstructor.newInstance(TimeUtils.computeYearForEpochSeconds(e.getEpochSeconds()), new ByteArray(e.getRawForm().toBytes()));
+			} catch(Exception ex) {
+				throw new RuntimeException("Exception copying event for " + desc.getPvName(), ex);
+			}
+		}
+	}
+}
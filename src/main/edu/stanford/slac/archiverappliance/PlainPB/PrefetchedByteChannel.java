@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+
+/**
+ * A read only seekable byte channel over a portion of a partition that has been read into memory by the {@link PlainPBPrefetcher}.
+ * Reads outside the prefetched portion (which should not happen unless the partition has changed) are delegated to a channel on the partition itself.
+ * @author mshankar
+ *
+ */
+class PrefetchedByteChannel implements SeekableByteChannel {
+	private final Path path;
+	private final byte[] data;
+	private final long dataStartPosition;
+	private final long size;
+	private final Runnable onClose;
+	private long position;
+	private SeekableByteChannel delegate = null;
+	private boolean open = true;
+
+	/**
+	 * @param path - The partition
+	 * @param data - The prefetched bytes
+	 * @param dataStartPosition - The position in the partition of the first prefetched byte
+	 * @param size - The size of the partition when it was prefetched
+	 * @param onClose - Called once when this channel is closed; can be null.
+	 */
+	PrefetchedByteChannel(Path path, byte[] data, long dataStartPosition, long size, Runnable onClose) {
+		this.path = path;
+		this.data = data;
+		this.dataStartPosition = dataStartPosition;
+		this.size = size;
+		this.onClose = onClose;
+		this.position = dataStartPosition;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(!open) return;
+		open = false;
+		try {
+			if(delegate != null) delegate.close();
+			delegate = null;
+		} finally {
+			if(onClose != null) onClose.run();
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if(position >= dataStartPosition && position < dataStartPosition + data.length) {
+			int offset = (int) (position - dataStartPosition);
+			int len = Math.min(dst.remaining(), data.length - offset);
+			dst.put(data, offset, len);
+			position += len;
+			return len;
+		}
+		if(delegate == null) {
+			delegate = ArchPaths.newByteChannel(path, StandardOpenOption.READ);
+		}
+		delegate.position(position);
+		int bytesRead = delegate.read(dst);
+		if(bytesRead > 0) position += bytesRead;
+		return bytesRead;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long position() throws IOException {
+		return position;
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		this.position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+}
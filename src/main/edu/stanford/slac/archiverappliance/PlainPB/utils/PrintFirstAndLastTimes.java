@@ -18,7 +18,9 @@ import java.util.LinkedList;
 
 import org.epics.archiverappliance.common.TimeUtils;
 
+import edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksums;
 import edu.stanford.slac.archiverappliance.PlainPB.PBFileInfo;
+import edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries;
 
 /**
  * Print the timestamp of the first and last sample in a PB files/PB files in a directory
@@ -77,6 +79,7 @@ public class PrintFirstAndLastTimes {
 
 					@Override
 					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						if(PBPartitionSummaries.isSummaryFile(file) || PBBlockChecksums.isChecksumFile(file)) return FileVisitResult.CONTINUE;
 						printFirstAndLastTimes(file, verboseMode);
 						return FileVisitResult.CONTINUE;
 					}
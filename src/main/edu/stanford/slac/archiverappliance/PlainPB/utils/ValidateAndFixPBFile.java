@@ -11,6 +11,7 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.Constructor;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
@@ -22,21 +23,28 @@ import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.LinkedList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.ByteArray;
 import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.data.DBRTimeEvent;
 import org.epics.archiverappliance.utils.nio.ArchPaths;
 
 import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
+import edu.stanford.slac.archiverappliance.PB.utils.LineByteStream;
 import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
 import edu.stanford.slac.archiverappliance.PlainPB.FileBackedPBEventStream;
+import edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksums;
+import edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries;
 import edu.stanford.slac.archiverappliance.PlainPB.PBFileInfo;
 
 /**
  * Validate every line in a PB file by unmarshalling it and accessing the timestamp.
  * If there are any exceptions, then copy only the events that can be unmarshalled correctly and are monotonically sequenced correctly to a temporary file and then replace the original file with the temporary file.
  * If the -b option is specified; then the original file is moved to a new file with a <code>.bak.</code> extension. 
+ * If the file has block checksums, the events in the damaged blocks are skipped; the events after the damaged blocks are kept.
  *  
  * @author mshankar
  *
@@ -88,6 +96,7 @@ public class ValidateAndFixPBFile {
 
 					@Override
 					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						if(PBPartitionSummaries.isSummaryFile(file) || PBBlockChecksums.isChecksumFile(file)) return FileVisitResult.CONTINUE;
 						boolean isValid = ValidatePBFile.validatePBFile(file, verboseMode);
 						if(!isValid) { 
 							logger.debug("Path " + file + " is not a valid PB file");
@@ -144,7 +153,10 @@ public class ValidateAndFixPBFile {
 				PBFileInfo info = new PBFileInfo(path);
 				long previousEpochSeconds = Long.MIN_VALUE;
 				long eventnum = 0;
-				try(FileBackedPBEventStream strm = new FileBackedPBEventStream(info.getPVName(), path, info.getType()); 
+				List<long[]> damagedRanges = PBBlockChecksums.verify(path, null).getDamagedRanges();
+				if(!damagedRanges.isEmpty()) {
+					skippedEvents = copyEventsSkippingDamagedBlocks(path, info, damagedRanges, tempPath, verboseMode);
+				} else try(FileBackedPBEventStream strm = new FileBackedPBEventStream(info.getPVName(), path, info.getType()); 
 						OutputStream os = new BufferedOutputStream(Files.newOutputStream(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)))  {
 					byte[] headerBytes = LineEscaper.escapeNewLines(PayloadInfo.newBuilder()
 							.setPvname(info.getPVName())
@@ -182,6 +194,7 @@ public class ValidateAndFixPBFile {
 				} else { 
 					Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
 				}
+				PBBlockChecksums.partitionRewritten(path);
 			} catch(Exception ex) { 
 				logger.error("Exception fixing PB file " + path, ex);
 			}
@@ -190,4 +203,60 @@ public class ValidateAndFixPBFile {
 		}
 		if(verboseMode) logger.info("Skipped events " + skippedEvents + " when fixing " + path.toString());
 	}
+
+	/**
+	 * Copy the events that are not in the damaged blocks into the temp file.
+	 * We go thru the lines in the file ourselves as we need to know where each line is; lines that overlap a damaged block are skipped.
+	 * @return The number of lines that were skipped.
+	 */
+	private static long copyEventsSkippingDamagedBlocks(Path path, PBFileInfo info, List<long[]> damagedRanges, Path tempPath, boolean verboseMode) throws Exception {
+		if(verboseMode) logger.info("Skipping the damaged blocks in " + path.toString());
+		long skippedEvents = 0;
+		long previousEpochSeconds = Long.MIN_VALUE;
+		Constructor<? extends DBRTimeEvent> unmarshallingConstructor = DBR2PBTypeMapping.getPBClassFor(info.getType()).getUnmarshallingFromByteArrayConstructor();
+		try(LineByteStream lis = new LineByteStream(path);
+				OutputStream os = new BufferedOutputStream(Files.newOutputStream(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+			byte[] headerBytes = LineEscaper.escapeNewLines(PayloadInfo.newBuilder()
+					.setPvname(info.getPVName())
+					.setType(info.getType().getPBPayloadType())
+					.setYear(info.getDataYear())
+					.build().toByteArray());
+			os.write(headerBytes);
+			os.write(LineEscaper.NEWLINE_CHAR);
+			// Skip the header in the original
+			lis.readLine();
+			long lineStart = lis.getCurrentPosition();
+			byte[] line = lis.readLine();
+			while(line != null) {
+				long lineEnd = lis.getCurrentPosition();
+				boolean damaged = false;
+				for(long[] damagedRange : damagedRanges) {
+					if(lineStart < damagedRange[1] && lineEnd > damagedRange[0]) {
+						damaged = true;
+						break;
+					}
+				}
+				if(damaged) {
+					skippedEvents++;
+				} else if(line.length > 0) {
+					try {
+						long epochSeconds = unmarshallingConstructor.newInstance(info.getDataYear(), new ByteArray(line)).getEpochSeconds();
+						if(epochSeconds >= previousEpochSeconds) {
+							previousEpochSeconds = epochSeconds;
+							os.write(line);
+							os.write(LineEscaper.NEWLINE_CHAR);
+						} else {
+							skippedEvents++;
+						}
+					} catch(Throwable t) {
+						if(verboseMode) logger.debug("Skipping line at " + lineStart + " in file " + path.toString());
+						skippedEvents++;
+					}
+				}
+				lineStart = lineEnd;
+				line = lis.readLine();
+			}
+		}
+		return skippedEvents;
+	}
 }
\ No newline at end of file
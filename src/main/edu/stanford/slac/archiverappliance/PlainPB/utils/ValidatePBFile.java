@@ -21,11 +21,15 @@ import org.epics.archiverappliance.Event;
 import org.epics.archiverappliance.common.TimeUtils;
 
 import edu.stanford.slac.archiverappliance.PlainPB.FileBackedPBEventStream;
+import edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksums;
+import edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries;
 import edu.stanford.slac.archiverappliance.PlainPB.PBFileInfo;
 
 /**
  * Various validations for a PB file.
- * 1) Checks that the times in the PB file are sequential.
+ * 1) If the PB file has block checksums, checks that all the blocks match their checksums.
+ * 2) Checks that the times in the PB file are sequential.
+ * With the -c option, PB files that have block checksums are only verified using the checksums; this is much faster as we do not parse the events.
  *  
  * @author mshankar
  *
@@ -34,6 +38,32 @@ public class ValidatePBFile {
 	private static Logger logger = Logger.getLogger(ValidatePBFile.class.getName());
 	
 	public static boolean validatePBFile(Path path, boolean verboseMode) throws IOException {
+		return validatePBFile(path, verboseMode, false);
+	}
+
+	/**
+	 * @param path
+	 * @param verboseMode
+	 * @param checksumsOnly - If the PB file has block checksums, only verify the checksums and do not parse the events.
+	 * @return true if the PB file is valid
+	 * @throws IOException
+	 */
+	public static boolean validatePBFile(Path path, boolean verboseMode, boolean checksumsOnly) throws IOException {
+		if(PBBlockChecksums.hasChecksums(path)) {
+			try {
+				PBBlockChecksums.VerificationResult result = PBBlockChecksums.verify(path, null);
+				if(result.isDamaged()) {
+					System.out.println(path + " is an invalid PB file. " + result);
+					return false;
+				}
+				if(checksumsOnly && result.getUnverifiedBytes() == 0) {
+					if(verboseMode) { System.out.println(path + " matches its block checksums."); }
+					return true;
+				}
+			} catch(InterruptedException ex) {
+				throw new IOException(ex);
+			}
+		}
 		PBFileInfo info = new PBFileInfo(path);
 		long previousEpochSeconds = Long.MIN_VALUE;
 		long eventnum = 0;
@@ -85,10 +115,13 @@ public class ValidatePBFile {
 		}
 		
 		boolean verboseMode = false;
+		boolean checksumsOnly = false;
 		LinkedList<String> argsAfterOptions = new LinkedList<String>();
 		for(String arg : args) { 
 			if(arg.equals("-v")) { 
 				verboseMode = true;
+			} else if(arg.equals("-c")) {
+				checksumsOnly = true;
 			} else if(arg.equals("-h")) {
 				printHelpMsg();
 				return;
@@ -102,8 +135,10 @@ public class ValidatePBFile {
 			if(Files.isDirectory(path)) { 
 				Files.walkFileTree(path, new FileVisitor<Path>() {
 					private boolean verboseMode = false;
-					FileVisitor<Path> init(boolean verboseMode) { 
+					private boolean checksumsOnly = false;
+					FileVisitor<Path> init(boolean verboseMode, boolean checksumsOnly) { 
 						this.verboseMode = verboseMode;
+						this.checksumsOnly = checksumsOnly;
 						return this;
 					}
 
@@ -114,7 +149,8 @@ public class ValidatePBFile {
 
 					@Override
 					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-						validatePBFile(file, verboseMode);
+						if(PBPartitionSummaries.isSummaryFile(file) || PBBlockChecksums.isChecksumFile(file)) return FileVisitResult.CONTINUE;
+						validatePBFile(file, verboseMode, checksumsOnly);
 						return FileVisitResult.CONTINUE;
 					}
 
@@ -127,9 +163,9 @@ public class ValidatePBFile {
 					public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
 						return FileVisitResult.CONTINUE;
 					}
-				}.init(verboseMode));
+				}.init(verboseMode, checksumsOnly));
 			} else { 
-				validatePBFile(path, verboseMode);
+				validatePBFile(path, verboseMode, checksumsOnly);
 			}
 		}
 	}
@@ -140,6 +176,7 @@ public class ValidatePBFile {
 		System.out.println();
 		System.out.println("\t-h Prints this help");
 		System.out.println("\t-v Turns on verbose logging.");
+		System.out.println("\t-c Files with block checksums are only verified using the checksums; this does not parse the events.");
 		System.out.println();
 		System.out.println();
 		System.out.println();
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB.utils;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedList;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PBFileInfo;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStreamingReducer;
+
+/**
+ * Checks the reduced data in a store with the <code>reducedata</code> option against the raw data.
+ * The raw data is reduced in one go and compared byte for byte against the reduced data.
+ * For example, to check the LTS against the raw data for a PV that is still in the MTS, use
+ * <pre>VerifyReducedData firstSample_3600 mts/ABC/DEF:2015_*.pb --reduced lts/ABC/DEF:2015.pb</pre>
+ *
+ * @author mshankar
+ *
+ */
+public class VerifyReducedData {
+	public static void main(String[] args) throws Exception {
+		if(args == null || args.length < 4) {
+			printHelpMsg();
+			return;
+		}
+
+		String reducedataPostProcessor = args[0];
+		LinkedList<Path> rawPaths = new LinkedList<Path>();
+		LinkedList<Path> reducedPaths = new LinkedList<Path>();
+		boolean reduced = false;
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].equals("--reduced")) {
+				reduced = true;
+			} else if(reduced) {
+				reducedPaths.add(Paths.get(args[i]));
+			} else {
+				rawPaths.add(Paths.get(args[i]));
+			}
+		}
+		if(rawPaths.isEmpty() || reducedPaths.isEmpty()) {
+			printHelpMsg();
+			return;
+		}
+		// The partition names sort by time.
+		Collections.sort(rawPaths);
+		Collections.sort(reducedPaths);
+
+		String pvName = new PBFileInfo(rawPaths.getFirst(), false).getPVName();
+		PlainPBStreamingReducer.VerificationResult result = PlainPBStreamingReducer.verify(pvName, reducedataPostProcessor, rawPaths, reducedPaths);
+		System.out.println(pvName + " " + reducedataPostProcessor + " " + result.toString());
+		if(!result.isOK()) {
+			System.exit(1);
+		}
+	}
+
+	private static void printHelpMsg() {
+		System.out.println();
+		System.out.println("Usage: java " + VerifyReducedData.class.getName() + " <reducedata operator> <raw PB files> --reduced <reduced PB files>");
+		System.out.println();
+		System.out.println("The raw data is reduced using the operator (for example, firstSample_3600) and compared against the reduced data.");
+		System.out.println("Only the bins that are complete in the raw data are compared.");
+		System.out.println();
+	}
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.common;
+
+import java.sql.Timestamp;
+
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Summary statistics for all the events in a partition.
+ * Post processors that compute summaries over bins that span entire partitions can use these instead of going thru all the events in the partition.
+ * <ul>
+ * <li>As with the post processors, NaN's are not included in the value statistics; they are included in the event count and the severity histogram.</li>
+ * <li>We maintain the mean and the second moment (sum of squared deviations from the mean) using Welford's method so that summaries can be merged without loss of precision.</li>
+ * </ul>
+ * This is only supported for scalar numeric types.
+ * @author mshankar
+ *
+ */
+public class PartitionSummary {
+	/**
+	 * NO_ALARM, MINOR, MAJOR and INVALID; severities larger than INVALID are counted as INVALID.
+	 */
+	public static final int SEVERITY_BUCKETS = 4;
+	private static final int VERSION = 1;
+
+	private long eventCount = 0;
+	private long valueCount = 0;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	private double sum = 0.0;
+	private double sumOfSquares = 0.0;
+	private double mean = 0.0;
+	private double secondMoment = 0.0;
+	private long firstEpochSeconds = 0;
+	private int firstNanos = 0;
+	private long lastEpochSeconds = 0;
+	private int lastNanos = 0;
+	private int maxSeverity = 0;
+	private long[] severityCounts = new long[SEVERITY_BUCKETS];
+	private boolean connectionChanged = false;
+
+	/**
+	 * Can we summarize events of this type?
+	 * @param type
+	 * @return true for scalar numeric types.
+	 */
+	public static boolean isSummarizable(ArchDBRTypes type) {
+		return type != null && !type.isWaveForm() && type != ArchDBRTypes.DBR_SCALAR_STRING && type != ArchDBRTypes.DBR_V4_GENERIC_BYTES;
+	}
+
+	/**
+	 * Add an event to this summary; events are expected to be added in time order.
+	 * @param e
+	 */
+	public void addEvent(DBRTimeEvent e) {
+		Timestamp ts = e.getEventTimeStamp();
+		if(eventCount == 0) {
+			firstEpochSeconds = TimeUtils.convertToEpochSeconds(ts);
+			firstNanos = ts.getNanos();
+		}
+		lastEpochSeconds = TimeUtils.convertToEpochSeconds(ts);
+		lastNanos = ts.getNanos();
+		eventCount++;
+
+		int severity = e.getSeverity();
+		if(eventCount == 1 || severity > maxSeverity) maxSeverity = severity;
+		severityCounts[Math.max(0, Math.min(severity, SEVERITY_BUCKETS-1))]++;
+		if(e.hasFieldValues() && e.getFields().containsKey("cnxregainedepsecs")) {
+			connectionChanged = true;
+		}
+
+		double val = e.getSampleValue().getValue().doubleValue();
+		if(Double.isNaN(val)) return;
+		valueCount++;
+		if(valueCount == 1) {
+			min = val;
+			max = val;
+		} else {
+			if(val < min) min = val;
+			if(val > max) max = val;
+		}
+		sum += val;
+		sumOfSquares += val*val;
+		double dev = val - mean;
+		mean += dev/valueCount;
+		secondMoment += dev*(val - mean);
+	}
+
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * @return The number of events whose value is not a NaN.
+	 */
+	public long getValueCount() {
+		return valueCount;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	public double getSumOfSquares() {
+		return sumOfSquares;
+	}
+
+	public double getMean() {
+		return valueCount > 0 ? mean : Double.NaN;
+	}
+
+	/**
+	 * @return The sum of the squared deviations from the mean.
+	 */
+	public double getSecondMoment() {
+		return secondMoment;
+	}
+
+	public long getFirstEpochSeconds() {
+		return firstEpochSeconds;
+	}
+
+	public long getLastEpochSeconds() {
+		return lastEpochSeconds;
+	}
+
+	public Timestamp getFirstEventTimestamp() {
+		return TimeUtils.convertFromEpochSeconds(firstEpochSeconds, firstNanos);
+	}
+
+	public Timestamp getLastEventTimestamp() {
+		return TimeUtils.convertFromEpochSeconds(lastEpochSeconds, lastNanos);
+	}
+
+	public int getMaxSeverity() {
+		return maxSeverity;
+	}
+
+	/**
+	 * @param severity - One of 0 (NO_ALARM), 1 (MINOR), 2 (MAJOR) or 3 (INVALID).
+	 * @return The number of events with this severity.
+	 */
+	public long getSeverityCount(int severity) {
+		return severityCounts[severity];
+	}
+
+	/**
+	 * @return Did any of the events in this partition mark a reconnect?
+	 */
+	public boolean isConnectionChanged() {
+		return connectionChanged;
+	}
+
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON() {
+		JSONObject ret = new JSONObject();
+		ret.put("version", VERSION);
+		ret.put("eventCount", eventCount);
+		ret.put("valueCount", valueCount);
+		// Doubles are saved as strings so that we round trip NaN's and infinities.
+		ret.put("min", Double.toString(min));
+		ret.put("max", Double.toString(max));
+		ret.put("sum", Double.toString(sum));
+		ret.put("sumOfSquares", Double.toString(sumOfSquares));
+		ret.put("mean", Double.toString(mean));
+		ret.put("secondMoment", Double.toString(secondMoment));
+		ret.put("firstEpochSeconds", firstEpochSeconds);
+		ret.put("firstNanos", firstNanos);
+		ret.put("lastEpochSeconds", lastEpochSeconds);
+		ret.put("lastNanos", lastNanos);
+		ret.put("maxSeverity", maxSeverity);
+		JSONArray severities = new JSONArray();
+		for(long severityCount : severityCounts) severities.add(severityCount);
+		ret.put("severityCounts", severities);
+		ret.put("connectionChanged", connectionChanged);
+		return ret;
+	}
+
+	/**
+	 * @param obj
+	 * @return The summary; null if this is from a version that we do not understand.
+	 */
+	public static PartitionSummary fromJSON(JSONObject obj) {
+		if(!Integer.toString(VERSION).equals(String.valueOf(obj.get("version")))) return null;
+		PartitionSummary ret = new PartitionSummary();
+		ret.eventCount = ((Number) obj.get("eventCount")).longValue();
+		ret.valueCount = ((Number) obj.get("valueCount")).longValue();
+		ret.min = Double.parseDouble((String) obj.get("min"));
+		ret.max = Double.parseDouble((String) obj.get("max"));
+		ret.sum = Double.parseDouble((String) obj.get("sum"));
+		ret.sumOfSquares = Double.parseDouble((String) obj.get("sumOfSquares"));
+		ret.mean = Double.parseDouble((String) obj.get("mean"));
+		ret.secondMoment = Double.parseDouble((String) obj.get("secondMoment"));
+		ret.firstEpochSeconds = ((Number) obj.get("firstEpochSeconds")).longValue();
+		ret.firstNanos = ((Number) obj.get("firstNanos")).intValue();
+		ret.lastEpochSeconds = ((Number) obj.get("lastEpochSeconds")).longValue();
+		ret.lastNanos = ((Number) obj.get("lastNanos")).intValue();
+		ret.maxSeverity = ((Number) obj.get("maxSeverity")).intValue();
+		JSONArray severities = (JSONArray) obj.get("severityCounts");
+		for(int i = 0; i < SEVERITY_BUCKETS && i < severities.size(); i++) {
+			ret.severityCounts[i] = ((Number) severities.get(i)).longValue();
+		}
+		ret.connectionChanged = Boolean.TRUE.equals(obj.get("connectionChanged"));
+		return ret;
+	}
+}
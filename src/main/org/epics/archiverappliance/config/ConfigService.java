@@ -27,6 +27,8 @@ import org.epics.archiverappliance.retrieval.RetrievalState;
 
 import com.google.common.eventbus.EventBus;
 
+import edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries;
+
 /**
  * Interface for appliance configuration.
  * One gets to a config service implementation thru dependency injection of one kind or the other.
@@ -435,6 +437,13 @@ public interface ConfigService {
 	public PBThreeTierETLPVLookup getETLLookup();
 	
 	
+	/**
+	 * Return the summaries of the PB partitions for this webapp; these are created on first use.
+	 * @return null if partition summaries are turned off.
+	 */
+	public PBPartitionSummaries getPartitionSummaries();
+	
+	
 	/**
 	 * Return the runtime state for the engine. 
 	 * @return
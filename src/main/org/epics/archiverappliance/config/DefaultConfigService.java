@@ -100,6 +100,7 @@ import com.hazelcast.core.Message;
 import com.hazelcast.core.MessageListener;
 
 import edu.stanford.slac.archiverappliance.PB.data.PBTypeSystem;
+import edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries;
 
 
 
@@ -147,6 +148,8 @@ public class DefaultConfigService implements ConfigService {
 	protected RetrievalState retrievalState = null;
 	protected MgmtRuntimeState mgmtRuntime = null;;
 	protected EngineContext engineContext = null;
+	private volatile PBPartitionSummaries partitionSummaries = null;
+	private volatile boolean partitionSummariesCreated = false;
 	protected ConcurrentSkipListSet<String> appliancesInCluster = new ConcurrentSkipListSet<String>();
 	// Runtime state ends here 
 
@@ -1300,6 +1303,20 @@ public class DefaultConfigService implements ConfigService {
 	public RetrievalState getRetrievalRuntimeState() {
 		return retrievalState;
 	}
+	
+	
+	@Override
+	public PBPartitionSummaries getPartitionSummaries() {
+		if(!partitionSummariesCreated) {
+			synchronized(this) {
+				if(!partitionSummariesCreated) {
+					partitionSummaries = PBPartitionSummaries.fromProperties(this.getInstallationProperties(), this.warFile);
+					partitionSummariesCreated = true;
+				}
+			}
+		}
+		return partitionSummaries;
+	}
 
 	
 	@Override
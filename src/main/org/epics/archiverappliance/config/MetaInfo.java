@@ -122,6 +122,11 @@ public class MetaInfo {
 	 */
 	private double storageRate;
 
+	/**
+	 * the number of seconds over which eventCount and storageSize were measured.
+	 */
+	private double rateWindowSeconds = 60;
+
 	/**
 	 *  the element count of the pv's value.
 	 */
@@ -383,23 +388,39 @@ public class MetaInfo {
 	}
 
 	/**
-	 * get the average event rate in 1 minute
+	 * get the average event rate over the rate window
 	 * @return  average event rate
 	 */
 	public double getEventRate() {
-		eventRate=((double)eventCount)/60;
+		eventRate=((double)eventCount)/rateWindowSeconds;
 		return eventRate;
 	}
 
 	/**
-	 *  get the average storage rate in 1 minute
+	 *  get the average storage rate over the rate window
 	 * @return average storage rate
 	 */
 	public double getStorageRate() {
-		storageRate=((double)storageSize)/60;
+		storageRate=((double)storageSize)/rateWindowSeconds;
 		return storageRate;
 	}
 
+	/**
+	 * The number of seconds over which the event count and storage size were measured; defaults to a minute.
+	 * @return rate window in seconds
+	 */
+	public double getRateWindowSeconds() {
+		return rateWindowSeconds;
+	}
+
+	/**
+	 * Set the number of seconds over which the event count and storage size were measured.
+	 * @param rateWindowSeconds
+	 */
+	public void setRateWindowSeconds(double rateWindowSeconds) {
+		this.rateWindowSeconds = rateWindowSeconds;
+	}
+
 	/**
 	 * get the element count of the pv's value. 
 	 * @return count
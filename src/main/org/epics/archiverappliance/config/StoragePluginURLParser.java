@@ -20,6 +20,7 @@ import org.epics.archiverappliance.etl.ETLSource;
 import org.epics.archiverappliance.retrieval.channelarchiver.ChannelArchiverReadOnlyPlugin;
 import org.epics.archiverappliance.utils.blackhole.BlackholeStoragePlugin;
 
+import edu.stanford.slac.archiverappliance.ObjectStorePB.ObjectStorePBStoragePlugin;
 import edu.stanford.slac.archiverappliance.PBOverHTTP.PBOverHTTPStoragePlugin;
 import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
 
@@ -33,6 +34,7 @@ import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
  * <li>The <code>pbraw</code> prefix initializes {@link edu.stanford.slac.archiverappliance.PBOverHTTP.PBOverHTTPStoragePlugin PBOverHTTPStoragePlugin}.</li>
  * <li>The <code>blackhole</code> prefix initializes {@link org.epics.archiverappliance.utils.blackhole.BlackholeStoragePlugin BlackholeStoragePlugin}.</li>
  * <li>The <code>rtree</code> prefix initializes {@link org.epics.archiverappliance.retrieval.channelarchiver.ChannelArchiverReadOnlyPlugin ChannelArchiverReadOnlyPlugin}.</li>
+ * <li>The <code>objpb</code> prefix initializes {@link edu.stanford.slac.archiverappliance.ObjectStorePB.ObjectStorePBStoragePlugin ObjectStorePBStoragePlugin}.</li>
  * </ol>
  * @author mshankar
  *
@@ -59,6 +61,9 @@ public class StoragePluginURLParser {
 			case "rtree" : {
 				return parseChannelArchiverPlugin(srcURIStr, configService);
 			}
+			case "objpb" : {
+				return parseObjectStorePBPlugin(srcURIStr, configService);
+			}
 			default : { 
 				logger.error("Unsupported plugin " + pluginIdentifier + ". Did you forget to register this?");
 			}
@@ -105,6 +110,9 @@ public class StoragePluginURLParser {
 			case "blackhole" : {
 				return parseBlackHolePlugin(srcURIStr, configService);
 			}
+			case "objpb" : {
+				return parseObjectStorePBPlugin(srcURIStr, configService);
+			}
 			default : { 
 				logger.error("Unsupported plugin " + pluginIdentifier + ". Did you forget to register this?");
 			}
@@ -141,6 +149,12 @@ public class StoragePluginURLParser {
 		ret.initialize(srcURIStr, configService);
 		return ret;
 	}
+
+	private static ObjectStorePBStoragePlugin parseObjectStorePBPlugin(String srcURIStr, ConfigService configService) throws IOException {
+		ObjectStorePBStoragePlugin ret = new ObjectStorePBStoragePlugin();
+		ret.initialize(srcURIStr, configService);
+		return ret;
+	}
 	
 	/**
 	 * Expands macros in the plugin definition strings.
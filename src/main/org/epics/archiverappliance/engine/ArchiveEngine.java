@@ -17,8 +17,6 @@ package org.epics.archiverappliance.engine;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.StoragePlugin;
@@ -130,7 +128,6 @@ public class ArchiveEngine {
 			final ConfigService configservice, final ArchDBRTypes archdbrtype,
 			final Timestamp lastKnownEventTimeStamp, final boolean start, final String controlPVname, final String[] metaFields, final String iocHostName, final boolean usePVAccess, final boolean useDBEProperties) throws Exception {
 		EngineContext engineContext = configservice.getEngineContext();
-		ScheduledThreadPoolExecutor scheduler = engineContext.getScheduler();
 
 		if (!engineContext.isWriteThreadStarted()) {
 			engineContext.startWriteThread(configservice);
@@ -146,8 +143,7 @@ public class ArchiveEngine {
 				channel.start();
 			}
 
-			scheduler.scheduleAtFixedRate((ScannedArchiveChannel) channel, 0,
-					(long) (samplingPeriod * 1000), TimeUnit.MILLISECONDS);
+			engineContext.getScanTimingWheel().add(pvName, (ScannedArchiveChannel) channel, samplingPeriod);
 
 
 
@@ -440,8 +436,7 @@ public class ArchiveEngine {
 					// do nothing
 				} else {
 					// different period
-					engineContext.getScheduler().remove((ScannedArchiveChannel) channel);
-					engineContext.getScheduler().purge();
+					engineContext.getScanTimingWheel().remove((ScannedArchiveChannel) channel);
 					// stop channel and remove id from ChannelList and buffer
 
 					channel.stop();
@@ -462,8 +457,7 @@ public class ArchiveEngine {
 				ArchiveEngine.archivePV(pvName, samplingPeriod, SamplingMethod.MONITOR, (int) engineContext.getWritePeriod(), writer, configservice, pvMetrics.getArchDBRTypes(), null, usePVAccess, useDBEPropeties);
 			} else {
 				// mode is changed from scan to monitor ,new mode is monitor
-				engineContext.getScheduler().remove((ScannedArchiveChannel) channel);
-				engineContext.getScheduler().purge();
+				engineContext.getScanTimingWheel().remove((ScannedArchiveChannel) channel);
 				channel.stop();
 				engineContext.getWriteThead().removeChannel(pvName);
 				engineContext.getChannelList().remove(pvName);
@@ -501,8 +495,7 @@ public class ArchiveEngine {
 		} else {
 			// pv is in scan mode
 			// remove the channel in scan mode
-			engineContext.getScheduler().remove((ScannedArchiveChannel) channel);
-			engineContext.getScheduler().purge();
+			engineContext.getScanTimingWheel().remove((ScannedArchiveChannel) channel);
 			channel.stop();
 			engineContext.getWriteThead().removeChannel(pvName);
 			engineContext.getChannelList().remove(pvName);
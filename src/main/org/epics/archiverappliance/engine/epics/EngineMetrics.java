@@ -20,6 +20,7 @@ import org.epics.archiverappliance.config.ConfigService;
 import org.epics.archiverappliance.engine.metadata.MetaGet;
 import org.epics.archiverappliance.engine.model.ArchiveChannel;
 import org.epics.archiverappliance.engine.pv.EngineContext;
+import org.epics.archiverappliance.engine.pv.JCACommandThread;
 import org.epics.archiverappliance.engine.pv.PVContext;
 import org.epics.archiverappliance.engine.pv.PVMetrics;
 import org.json.simple.JSONAware;
@@ -100,6 +101,48 @@ public class EngineMetrics implements JSONAware {
 		addDetailedStatus(details, "Paused PV count", Integer.toString(pausedPVCount));
 		addDetailedStatus(details, "Total channels", Integer.toString(totalEPICSChannels));
 		addDetailedStatus(details, "Approx pending jobs in engine queue", Long.toString((context.getScheduler().getQueue().size())));
+		Map<String, String> scanMetrics = context.getScanTimingWheel().getMetrics();
+		addDetailedStatus(details, "Scanned channels", scanMetrics.get("scannedChannels"));
+		addDetailedStatus(details, "Scan groups", scanMetrics.get("scanGroups"));
+		addDetailedStatus(details, "Scans run", scanMetrics.get("scansRun"));
+		addDetailedStatus(details, "Scans missed as the previous scan was still running", scanMetrics.get("missedScans"));
+		addDetailedStatus(details, "Scan batches that started more than a tick late", scanMetrics.get("lateBatches"));
+		addDetailedStatus(details, "Average scan lateness (ms)", scanMetrics.get("avgLatenessMillis"));
+		addDetailedStatus(details, "Maximum scan lateness (ms)", scanMetrics.get("maxLatenessMillis"));
+		addDetailedStatus(details, "Approx pending scan batches", scanMetrics.get("pendingBatches"));
+		int commandQueueDepth = 0;
+		int maxCommandQueueDepth = 0;
+		long commandsExecuted = 0;
+		long searchesDelayed = 0;
+		long[] batchSizes = JCACommandThread.Histogram.newTotals();
+		long[] queueLatencies = JCACommandThread.Histogram.newTotals();
+		for(int threadNum = 0; threadNum < context.getJCACommandThreadCount(); threadNum++) {
+			JCACommandThread commandThread = context.getJCACommandThread(threadNum);
+			commandQueueDepth += commandThread.getQueueSize();
+			maxCommandQueueDepth = Math.max(maxCommandQueueDepth, commandThread.getMaxQueueSize());
+			commandsExecuted += commandThread.getCommandsExecuted();
+			searchesDelayed += commandThread.getSearchesDelayed();
+			commandThread.getBatchSizes().addTo(batchSizes);
+			commandThread.getQueueLatencyMillis().addTo(queueLatencies);
+		}
+		addDetailedStatus(details, "JCA command queue depth", Integer.toString(commandQueueDepth));
+		addDetailedStatus(details, "JCA command queue max depth (per thread)", Integer.toString(maxCommandQueueDepth));
+		addDetailedStatus(details, "JCA commands executed", Long.toString(commandsExecuted));
+		addDetailedStatus(details, "JCA command batches delayed by the search rate limit", Long.toString(searchesDelayed));
+		addDetailedStatus(details, "JCA command batch sizes (size:count)", JCACommandThread.Histogram.format(batchSizes));
+		addDetailedStatus(details, "JCA command queue latency (ms:count)", JCACommandThread.Histogram.format(queueLatencies));
+		Map<String, String> dispatcherMetrics = JCAEventDispatcherBasedOnPVName.getMetrics();
+		if(!dispatcherMetrics.get("dispatchers").equals("0")) {
+			addDetailedStatus(details, "CA event dispatcher queue depth", dispatcherMetrics.get("queueDepth"));
+			addDetailedStatus(details, "CA event dispatcher queue max depth (per worker)", dispatcherMetrics.get("maxQueueDepth"));
+			addDetailedStatus(details, "CA events dispatched", dispatcherMetrics.get("eventsDispatched"));
+			addDetailedStatus(details, "CA events dropped as the dispatcher queue was full", dispatcherMetrics.get("eventsDropped"));
+			addDetailedStatus(details, "CA events that waited for space in the dispatcher queue", dispatcherMetrics.get("producerWaits"));
+			addDetailedStatus(details, "CA event dispatcher events per worker (min/max)", dispatcherMetrics.get("minWorkerEvents") + "/" + dispatcherMetrics.get("maxWorkerEvents"));
+			addDetailedStatus(details, "CA event dispatcher PVs moved to rebalance workers", dispatcherMetrics.get("pvsMoved"));
+			addDetailedStatus(details, "CA event dispatcher batch sizes (size:count)", dispatcherMetrics.get("batchSizes"));
+			addDetailedStatus(details, "CA event dispatch latency (us:count)", dispatcherMetrics.get("dispatchLatencyMicros"));
+		}
 		addDetailedStatus(details, "Event Rate (in events/sec)", twoSignificantDigits.format(eventRate));
 		addDetailedStatus(details, "Data Rate (in bytes/sec)", twoSignificantDigits.format(dataRate));
 		addDetailedStatus(details, "Data Rate in (GB/day)", twoSignificantDigits.format((dataRate*60*60*24)/(1024*1024*1024)));
@@ -112,6 +155,8 @@ public class EngineMetrics implements JSONAware {
 			addDetailedStatus(details, "Benchmark - writing at (MB/sec)", twoSignificantDigits.format(writeBytesPerSec));
 		}
 		addDetailedStatus(details, "PVs pending computation of meta info", Integer.toString(MetaGet.getPendingMetaGetsSize()));
+		addDetailedStatus(details, "PVs waiting for channels to compute meta info", Integer.toString(MetaGet.getWaitingMetaGetsSize()));
+		addDetailedStatus(details, "Channels in flight for computing meta info", Integer.toString(MetaGet.getInFlightChannelCount()));
 		addDetailedStatus(details, "Total number of reference counted channels", Integer.toString(PVContext.getChannelCount()));
 		addDetailedStatus(details, "Total number of CAJ channels", Integer.toString(context.getCAJChannelCount()));
 		
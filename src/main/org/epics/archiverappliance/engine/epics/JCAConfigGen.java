@@ -156,6 +156,9 @@ public class JCAConfigGen {
 		out.println("  <max_array_bytes>" + EPICS_CA_MAX_ARRAY_BYTES + "</max_array_bytes>");
 		
 		String dispatcher = props.getProperty("org.epics.archiverappliance.engine.epics.JCAConfigGen.dispatcher", "gov.aps.jca.event.QueuedEventDispatcher");
+		if(dispatcher.equals(JCAEventDispatcherBasedOnPVName.class.getName())) {
+			JCAEventDispatcherBasedOnPVName.configure(props);
+		}
 		out.println("  <event_dispatcher class=\"" + dispatcher + "\"/>");
 		out.println("</context>");
 		out.close();
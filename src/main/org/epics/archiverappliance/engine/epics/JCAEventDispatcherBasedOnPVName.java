@@ -17,259 +17,720 @@ import gov.aps.jca.event.MonitorListener;
 import gov.aps.jca.event.PutEvent;
 import gov.aps.jca.event.PutListener;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
+import org.epics.archiverappliance.engine.pv.JCACommandThread;
 
 /**
  * Attempt to distribute the load of serializing the event across multiple threads
- * All events that have a Channel as the source are sent to a thread based on the hash of the pv name.
- * Everything else uses one thread similar to QueuedEventDispacther.
+ * All events that have a Channel as the source are sent to a worker based on the pv name.
+ * Everything else uses one worker similar to QueuedEventDispacther.
+ * <p>
+ * Each worker has a preallocated bounded ring buffer that it drains in batches; so there is no allocation per event in the dispatch path.
+ * PVs are assigned to workers using consistent hashing of the pv name (without the field); the assignment is sticky so all events for a PV are processed in order by one worker.
+ * Every so often, we check if one worker is getting a disproportionate share of the events; if so, we move some of the busy PVs on that worker to the least loaded worker.
+ * A PV is moved only when it has no events pending in the ring buffer so that we do not reorder events for that PV.
+ * <p>
+ * If a ring buffer is full, the thread calling dispatch waits till there is space; this pushes back on CA instead of losing events. We log a warning if this takes too long.
+ * Optionally, monitor events can be dropped after waiting for <code>maxMonitorWaitMillis</code>; connection, access rights and all other events are never dropped as losing these leaves the channel in the wrong state.
+ * Dropped monitor events are counted per PV; see {@link #getDroppedEvents(String)}.
+ * If a listener running on a worker dispatches an event to the same worker (for example, a connection event for a PV on this worker) and the ring buffer is full, we call the listeners inline as waiting for space would wait forever.
+ * Drops, queue depth and dispatch latency are available using {@link #getMetrics()}.
  * @author mshankar
  *
  */
 public class JCAEventDispatcherBasedOnPVName extends AbstractEventDispatcher {
-	ExecutorService allOtherEventsHandler = null;
-	ExecutorService[] pvNameEventsHandlers = new ExecutorService[Math.max(Runtime.getRuntime().availableProcessors()/4, 4)];
-	int numThreads =  pvNameEventsHandlers.length;
 	private static Logger logger = Logger.getLogger(JCAEventDispatcherBasedOnPVName.class.getName());
 
+	public static final String WORKER_THREADS_PROPERTY = "org.epics.archiverappliance.engine.epics.JCAEventDispatcherBasedOnPVName.workerThreads";
+	public static final String RING_SIZE_PROPERTY = "org.epics.archiverappliance.engine.epics.JCAEventDispatcherBasedOnPVName.ringSize";
+	public static final String BATCH_SIZE_PROPERTY = "org.epics.archiverappliance.engine.epics.JCAEventDispatcherBasedOnPVName.batchSize";
+	public static final String MONITOR_WAIT_PROPERTY = "org.epics.archiverappliance.engine.epics.JCAEventDispatcherBasedOnPVName.maxMonitorWaitMillis";
+	public static final String OTHER_WAIT_PROPERTY = "org.epics.archiverappliance.engine.epics.JCAEventDispatcherBasedOnPVName.maxOtherWaitMillis";
+	public static final String REBALANCE_INTERVAL_PROPERTY = "org.epics.archiverappliance.engine.epics.JCAEventDispatcherBasedOnPVName.rebalanceIntervalSecs";
+	public static final String REBALANCE_THRESHOLD_PROPERTY = "org.epics.archiverappliance.engine.epics.JCAEventDispatcherBasedOnPVName.rebalanceThreshold";
+
+	/**
+	 * Number of points each worker has on the consistent hash ring.
+	 */
+	private static final int VIRTUAL_NODES_PER_WORKER = 64;
+	/**
+	 * PVs that have not had any events for these many rebalance intervals are removed from the assignment map.
+	 */
+	private static final int IDLE_INTERVALS_BEFORE_EVICTION = 6;
+
+	static final int CONTEXT_MESSAGE = 0;
+	static final int CONTEXT_EXCEPTION = 1;
+	static final int CONNECTION = 2;
+	static final int ACCESS_RIGHTS = 3;
+	static final int MONITOR = 4;
+	static final int GET = 5;
+	static final int PUT = 6;
+
+	/*
+	 * The JCA context instantiates the dispatcher using the class name; so we use static configuration that is set from archappl.properties by JCAConfigGen.
+	 */
+	private static volatile int configuredWorkerThreads = Math.max(Runtime.getRuntime().availableProcessors()/4, 4);
+	private static volatile int configuredRingSize = 16384;
+	private static volatile int configuredBatchSize = 256;
+	private static volatile long configuredMonitorWaitMillis = 0;
+	private static volatile long configuredOtherWaitMillis = 10000;
+	private static volatile long configuredRebalanceIntervalSecs = 10;
+	private static volatile double configuredRebalanceThreshold = 1.5;
+
+	/**
+	 * All the dispatchers that are currently active; used to aggregate the metrics.
+	 */
+	private static final CopyOnWriteArrayList<JCAEventDispatcherBasedOnPVName> activeDispatchers = new CopyOnWriteArrayList<JCAEventDispatcherBasedOnPVName>();
+
+	private final Worker allOtherEventsHandler;
+	private final Worker[] pvNameEventsHandlers;
+	private final int numThreads;
+	private final TreeMap<Integer, Integer> hashRing = new TreeMap<Integer, Integer>();
+	private final ConcurrentHashMap<String, Assignment> assignments = new ConcurrentHashMap<String, Assignment>();
+	private final long monitorWaitNanos;
+	private final long otherWaitNanos;
+	private final long rebalanceIntervalNanos;
+	private final double rebalanceThreshold;
+	private final ReentrantLock rebalanceLock = new ReentrantLock();
+	private volatile long nextRebalanceNanos;
+	private final AtomicLong pvsMoved = new AtomicLong(0);
+	/**
+	 * Monitor events dropped per PV (without the field); only PVs that have had drops are in here.
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> droppedEventsByPV = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Sticky assignment of a PV to a worker.
+	 * All fields are guarded by the Assignment's monitor except for the event count which is only used as a hint for rebalancing.
+	 */
+	private static class Assignment {
+		int worker;
+		int pending;
+		boolean retired;
+		int idleIntervals;
+		volatile long eventsThisInterval;
+		Assignment(int worker) {
+			this.worker = worker;
+		}
+	}
+
+	/**
+	 * Configure the dispatchers created after this call using the installation properties.
+	 * @param props
+	 */
+	public static void configure(Properties props) {
+		if(props == null) return;
+		configuredWorkerThreads = Math.max(1, Integer.parseInt(props.getProperty(WORKER_THREADS_PROPERTY, Integer.toString(configuredWorkerThreads))));
+		configuredRingSize = Math.max(16, Integer.parseInt(props.getProperty(RING_SIZE_PROPERTY, Integer.toString(configuredRingSize))));
+		configuredBatchSize = Math.max(1, Integer.parseInt(props.getProperty(BATCH_SIZE_PROPERTY, Integer.toString(configuredBatchSize))));
+		configuredMonitorWaitMillis = Math.max(0, Long.parseLong(props.getProperty(MONITOR_WAIT_PROPERTY, Long.toString(configuredMonitorWaitMillis))));
+		configuredOtherWaitMillis = Math.max(0, Long.parseLong(props.getProperty(OTHER_WAIT_PROPERTY, Long.toString(configuredOtherWaitMillis))));
+		configuredRebalanceIntervalSecs = Long.parseLong(props.getProperty(REBALANCE_INTERVAL_PROPERTY, Long.toString(configuredRebalanceIntervalSecs)));
+		configuredRebalanceThreshold = Double.parseDouble(props.getProperty(REBALANCE_THRESHOLD_PROPERTY, Double.toString(configuredRebalanceThreshold)));
+	}
+
 	public JCAEventDispatcherBasedOnPVName() {
+		this(configuredWorkerThreads, configuredRingSize, configuredBatchSize, configuredMonitorWaitMillis, configuredOtherWaitMillis, configuredRebalanceIntervalSecs, configuredRebalanceThreshold);
+	}
+
+	/**
+	 * @param workerThreads - Number of workers for the events that have a Channel as the source.
+	 * @param ringSize - Size of each worker's ring buffer
+	 * @param batchSize - Maximum number of events a worker takes out of its ring buffer at a time.
+	 * @param monitorWaitMillis - How long to wait for space in a full ring buffer before dropping a monitor event; 0 or less to never drop monitor events.
+	 * @param otherWaitMillis - Other events are never dropped; we log a warning every so often if we have been waiting for space in a full ring buffer for longer than this.
+	 * @param rebalanceIntervalSecs - How often we check if the workers are balanced; 0 or less disables rebalancing.
+	 * @param rebalanceThreshold - We move PVs off a worker if it has more than this multiple of the average events per worker.
+	 */
+	public JCAEventDispatcherBasedOnPVName(int workerThreads, int ringSize, int batchSize, long monitorWaitMillis, long otherWaitMillis, long rebalanceIntervalSecs, double rebalanceThreshold) {
 		super();
-		allOtherEventsHandler = Executors.newFixedThreadPool(1, new ThreadFactory() {
-			@Override
-			public Thread newThread(Runnable r) {
-				Thread t = new Thread(r, "PVNameDispatcherAllOtherEvents");
-				return t;
-			}
-		});
-		
+		this.numThreads = workerThreads;
+		this.monitorWaitNanos = TimeUnit.MILLISECONDS.toNanos(monitorWaitMillis);
+		this.otherWaitNanos = TimeUnit.MILLISECONDS.toNanos(otherWaitMillis);
+		this.rebalanceIntervalNanos = rebalanceIntervalSecs > 0 ? TimeUnit.SECONDS.toNanos(rebalanceIntervalSecs) : 0;
+		this.rebalanceThreshold = rebalanceThreshold;
+		this.nextRebalanceNanos = System.nanoTime() + rebalanceIntervalNanos;
+
+		allOtherEventsHandler = new Worker("PVNameDispatcherAllOtherEvents", -1, ringSize, batchSize);
+		pvNameEventsHandlers = new Worker[numThreads];
 		for (int i = 0; i < numThreads; i++) {
-			final int tnum = i;
-			pvNameEventsHandlers[i] = Executors.newFixedThreadPool(1, new ThreadFactory() {
-				@Override
-				public Thread newThread(Runnable r) {
-					Thread t = new Thread(r, "PVNameDispatcherPVNameEvents " + tnum);
-					return t;
-				}
-			});
+			pvNameEventsHandlers[i] = new Worker("PVNameDispatcherPVNameEvents " + i, i, ringSize, batchSize);
+			for(int v = 0; v < VIRTUAL_NODES_PER_WORKER; v++) {
+				hashRing.put(mix(("PVNameDispatcherPVNameEvents" + i + "#" + v).hashCode()), i);
+			}
+		}
+		allOtherEventsHandler.start();
+		for(Worker worker : pvNameEventsHandlers) {
+			worker.start();
+		}
+		activeDispatchers.add(this);
+	}
+
+	@Override
+	public void dispose() {
+		activeDispatchers.remove(this);
+		allOtherEventsHandler.shutdown();
+		for(Worker worker : pvNameEventsHandlers) {
+			worker.shutdown();
 		}
+		super.dispose();
 	}
-	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+
+	@SuppressWarnings("rawtypes")
 	@Override
 	public void dispatch(ContextMessageEvent arg0, List arg1) {
-		try { 
-			allOtherEventsHandler.submit(new Runnable() {
-				ContextMessageEvent arg0;
-				List<ContextMessageListener> arg1;
-				public Runnable initialize(ContextMessageEvent arg0, List<ContextMessageListener> arg1) { 
-					this.arg0 = arg0;
-					this.arg1 = arg1;
-					return this;
-				}
-				@Override
-				public void run() {
-					for(ContextMessageListener listener : arg1) {
-						try { 
-							listener.contextMessage(arg0);
-						} catch(Throwable t) { 
-							logger.warn("Exception dispatching context message event", t);
-						}
-					}
-				}
-			}.initialize(arg0, (List<ContextMessageListener>) arg1));
-		} catch(Throwable t) { 
+		try {
+			allOtherEventsHandler.enqueue(CONTEXT_MESSAGE, arg0, arg1, null, otherWaitNanos);
+		} catch(Throwable t) {
 			logger.warn("Exception dispatching context message event", t);
 		}
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@SuppressWarnings("rawtypes")
 	@Override
 	public void dispatch(ContextExceptionEvent arg0, List arg1) {
-		try { 
-			allOtherEventsHandler.submit(new Runnable() {
-				ContextExceptionEvent arg0;
-				List<ContextExceptionListener> arg1;
-				public Runnable initialize(ContextExceptionEvent arg0, List<ContextExceptionListener> arg1) { 
-					this.arg0 = arg0;
-					this.arg1 = arg1;
-					return this;
-				}
-				@Override
-				public void run() {
-					for(ContextExceptionListener listener : arg1) {
-						try { 
-							listener.contextException(arg0);
-						} catch(Throwable t) { 
-							logger.warn("Exception dispatching context exception event", t);		
-						}
-					}
-				}
-			}.initialize(arg0, (List<ContextExceptionListener>) arg1));
-		} catch(Throwable t) { 
-			logger.warn("Exception dispatching context exception event", t);		
+		try {
+			allOtherEventsHandler.enqueue(CONTEXT_EXCEPTION, arg0, arg1, null, otherWaitNanos);
+		} catch(Throwable t) {
+			logger.warn("Exception dispatching context exception event", t);
 		}
 	}
 
-	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@SuppressWarnings("rawtypes")
 	@Override
 	public void dispatch(ConnectionEvent arg0, List arg1) {
-		String pvName = ((Channel)arg0.getSource()).getName();
-		String pvNameOnly = pvName.split("\\.")[0];
-		int threadId =  Math.abs(pvNameOnly.hashCode()) % numThreads;
-		try { 
-			pvNameEventsHandlers[threadId].submit(new Runnable() {
-				ConnectionEvent arg0;
-				List<ConnectionListener> arg1;
-				public Runnable initialize(ConnectionEvent arg0, List<ConnectionListener> arg1) { 
-					this.arg0 = arg0;
-					this.arg1 = arg1;
-					return this;
-				}
-				@Override
-				public void run() {
-					for(ConnectionListener listener : arg1) {
-						try { 
-							listener.connectionChanged(arg0);
-						} catch(Throwable t) { 
-							logger.warn("Exception dispatching connection event", t);		
-						}
-					}
-				}
-			}.initialize(arg0, (List<ConnectionListener>) arg1));
-		} catch(Throwable t) { 
-			logger.warn("Exception dispatching connection event", t);		
+		try {
+			dispatchByPVName(CONNECTION, arg0, (Channel)arg0.getSource(), arg1, otherWaitNanos);
+		} catch(Throwable t) {
+			logger.warn("Exception dispatching connection event", t);
 		}
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@SuppressWarnings("rawtypes")
 	@Override
 	public void dispatch(AccessRightsEvent arg0, List arg1) {
-		String pvName = ((Channel)arg0.getSource()).getName();
-		String pvNameOnly = pvName.split("\\.")[0];
-		int threadId =  Math.abs(pvNameOnly.hashCode()) % numThreads;
-		try { 
-			pvNameEventsHandlers[threadId].submit(new Runnable() {
-				AccessRightsEvent arg0;
-				List<AccessRightsListener> arg1;
-				public Runnable initialize(AccessRightsEvent arg0, List<AccessRightsListener> arg1) { 
-					this.arg0 = arg0;
-					this.arg1 = arg1;
-					return this;
-				}
-				@Override
-				public void run() {
-					for(AccessRightsListener listener : arg1) {
-						try { 
-							listener.accessRightsChanged(arg0);
-						} catch(Throwable t) { 
-							logger.warn("Exception dispatching access rights event", t);		
-						}
-					}
-				}
-			}.initialize(arg0, (List<AccessRightsListener>) arg1));
-		} catch(Throwable t) { 
-			logger.warn("Exception dispatching access rights event", t);		
+		try {
+			dispatchByPVName(ACCESS_RIGHTS, arg0, (Channel)arg0.getSource(), arg1, otherWaitNanos);
+		} catch(Throwable t) {
+			logger.warn("Exception dispatching access rights event", t);
 		}
-
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@SuppressWarnings("rawtypes")
 	@Override
 	public void dispatch(MonitorEvent arg0, List arg1) {
-		String pvName = ((Channel)arg0.getSource()).getName();
-		String pvNameOnly = pvName.split("\\.")[0];
-		int threadId =  Math.abs(pvNameOnly.hashCode()) % numThreads;
-		try { 
-			pvNameEventsHandlers[threadId].submit(new Runnable() {
-				MonitorEvent arg0;
-				List<MonitorListener> arg1;
-				public Runnable initialize(MonitorEvent arg0, List<MonitorListener> arg1) { 
-					this.arg0 = arg0;
-					this.arg1 = arg1;
-					return this;
-				}
-				@Override
-				public void run() {
-					for(MonitorListener listener : arg1) {
-						try { 
-							listener.monitorChanged(arg0);
-						} catch(Throwable t) { 
-							logger.warn("Exception dispatching monitor event", t);		
-						}
-					}
-				}
-			}.initialize(arg0, (List<MonitorListener>) arg1));
-		} catch(Throwable t) { 
-			logger.warn("Exception dispatching monitor event", t);		
+		try {
+			dispatchByPVName(MONITOR, arg0, (Channel)arg0.getSource(), arg1, monitorWaitNanos);
+		} catch(Throwable t) {
+			logger.warn("Exception dispatching monitor event", t);
 		}
 	}
-	
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@SuppressWarnings("rawtypes")
 	@Override
 	public void dispatch(GetEvent arg0, List arg1) {
-		String pvName = ((Channel)arg0.getSource()).getName();
-		String pvNameOnly = pvName.split("\\.")[0];
-		int threadId =  Math.abs(pvNameOnly.hashCode()) % numThreads;
-		try { 
-			pvNameEventsHandlers[threadId].submit(new Runnable() {
-				GetEvent arg0;
-				List<GetListener> arg1;
-				public Runnable initialize(GetEvent arg0, List<GetListener> arg1) { 
-					this.arg0 = arg0;
-					this.arg1 = arg1;
-					return this;
-				}
-				@Override
-				public void run() {
-					for(GetListener listener : arg1) {
-						try { 
-							listener.getCompleted(arg0);
-						} catch(Throwable t) { 
-							logger.warn("Exception dispatching get event", t);		
-						}
-					}
-				}
-			}.initialize(arg0, (List<GetListener>) arg1));
-		} catch(Throwable t) { 
-			logger.warn("Exception dispatching get event", t);		
+		try {
+			dispatchByPVName(GET, arg0, (Channel)arg0.getSource(), arg1, otherWaitNanos);
+		} catch(Throwable t) {
+			logger.warn("Exception dispatching get event", t);
 		}
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@SuppressWarnings("rawtypes")
 	@Override
 	public void dispatch(PutEvent arg0, List arg1) {
-		String pvName = ((Channel)arg0.getSource()).getName();
-		String pvNameOnly = pvName.split("\\.")[0];
-		int threadId =  Math.abs(pvNameOnly.hashCode()) % numThreads;
-		try { 
-			pvNameEventsHandlers[threadId].submit(new Runnable() {
-				PutEvent arg0;
-				List<PutListener> arg1;
-				public Runnable initialize(PutEvent arg0, List<PutListener> arg1) { 
-					this.arg0 = arg0;
-					this.arg1 = arg1;
-					return this;
+		try {
+			dispatchByPVName(PUT, arg0, (Channel)arg0.getSource(), arg1, otherWaitNanos);
+		} catch(Throwable t) {
+			logger.warn("Exception dispatching put event", t);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void dispatchByPVName(int eventType, Object event, Channel channel, List listeners, long maxWaitNanos) throws InterruptedException {
+		dispatchByPVName(eventType, event, channel.getName(), listeners, maxWaitNanos);
+	}
+
+	/**
+	 * Enqueue the event onto the worker that this PV is assigned to.
+	 * Package visible for unit tests; the listeners are called with the event.
+	 * @param maxWaitNanos - For monitor events, how long to wait for space before dropping the event (0 or less to wait till there is space); for other events, how long to wait before logging a warning.
+	 * @return true if the event was enqueued, false if it was dropped
+	 */
+	@SuppressWarnings("rawtypes")
+	boolean dispatchByPVName(int eventType, Object event, String pvName, List listeners, long maxWaitNanos) throws InterruptedException {
+		maybeRebalance();
+		String pvNameOnly = pvNameWithoutField(pvName);
+		while(true) {
+			Assignment assignment = assignments.get(pvNameOnly);
+			if(assignment == null) {
+				Assignment newAssignment = new Assignment(workerForPVName(pvNameOnly));
+				assignment = assignments.putIfAbsent(pvNameOnly, newAssignment);
+				if(assignment == null) assignment = newAssignment;
+			}
+			int workerId;
+			synchronized(assignment) {
+				if(assignment.retired) continue;
+				workerId = assignment.worker;
+				assignment.pending++;
+				assignment.idleIntervals = 0;
+			}
+			assignment.eventsThisInterval++;
+			Worker worker = pvNameEventsHandlers[workerId];
+			boolean enqueued = worker.enqueue(eventType, event, listeners, assignment, maxWaitNanos);
+			if(!enqueued) {
+				eventProcessed(assignment);
+				if(!worker.shutdown) {
+					AtomicLong droppedForPV = droppedEventsByPV.get(pvNameOnly);
+					if(droppedForPV == null) {
+						AtomicLong newCount = new AtomicLong(0);
+						droppedForPV = droppedEventsByPV.putIfAbsent(pvNameOnly, newCount);
+						if(droppedForPV == null) droppedForPV = newCount;
+					}
+					droppedForPV.incrementAndGet();
 				}
-				@Override
-				public void run() {
-					for(PutListener listener : arg1) {
-						try { 
-							listener.putCompleted(arg0);
-						} catch(Throwable t) { 
-							logger.warn("Exception dispatching put event", t);		
+			}
+			return enqueued;
+		}
+	}
+
+	/**
+	 * @param pvName
+	 * @return The number of monitor events for this PV dropped by all the active dispatchers as their ring buffer was full.
+	 */
+	public static long getDroppedEvents(String pvName) {
+		String pvNameOnly = pvNameWithoutField(pvName);
+		long dropped = 0;
+		for(JCAEventDispatcherBasedOnPVName dispatcher : activeDispatchers) {
+			AtomicLong droppedForPV = dispatcher.droppedEventsByPV.get(pvNameOnly);
+			if(droppedForPV != null) dropped += droppedForPV.get();
+		}
+		return dropped;
+	}
+
+	private static void eventProcessed(Assignment assignment) {
+		synchronized(assignment) {
+			assignment.pending--;
+		}
+	}
+
+	private static String pvNameWithoutField(String pvName) {
+		int dotPos = pvName.indexOf('.');
+		return dotPos < 0 ? pvName : pvName.substring(0, dotPos);
+	}
+
+	/**
+	 * Spread the bits of the String hashcode so that similar PV names land on different parts of the hash ring.
+	 */
+	private static int mix(int h) {
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		h *= 0xc2b2ae35;
+		h ^= (h >>> 16);
+		return h;
+	}
+
+	/**
+	 * Where the PV would go on the consistent hash ring
+	 * @param pvNameOnly - PV name without the field
+	 * @return
+	 */
+	int workerForPVName(String pvNameOnly) {
+		Map.Entry<Integer, Integer> entry = hashRing.ceilingEntry(mix(pvNameOnly.hashCode()));
+		if(entry == null) entry = hashRing.firstEntry();
+		return entry.getValue();
+	}
+
+	/**
+	 * The worker this PV is currently assigned to; -1 if we have not seen this PV yet.
+	 * @param pvName
+	 * @return
+	 */
+	int getAssignedWorker(String pvName) {
+		Assignment assignment = assignments.get(pvNameWithoutField(pvName));
+		if(assignment == null) return -1;
+		synchronized(assignment) {
+			return assignment.worker;
+		}
+	}
+
+	private void maybeRebalance() {
+		if(rebalanceIntervalNanos <= 0 || System.nanoTime() < nextRebalanceNanos) return;
+		if(!rebalanceLock.tryLock()) return;
+		try {
+			if(System.nanoTime() < nextRebalanceNanos) return;
+			nextRebalanceNanos = System.nanoTime() + rebalanceIntervalNanos;
+			rebalance();
+		} catch(Throwable t) {
+			logger.error("Exception rebalancing the PV name dispatcher", t);
+		} finally {
+			rebalanceLock.unlock();
+		}
+	}
+
+	/**
+	 * Look at the events each worker got in the last interval; if the busiest worker has more than rebalanceThreshold times the average, move some of its busy PVs to the least loaded worker.
+	 * We also use this to evict PVs that have been idle for a while from the assignment map.
+	 * Package visible for unit tests.
+	 */
+	void rebalance() {
+		long[] workerLoad = new long[numThreads];
+		HashMap<Integer, List<Map.Entry<String, Assignment>>> pvsByWorker = new HashMap<Integer, List<Map.Entry<String, Assignment>>>();
+		HashMap<Assignment, Long> intervalCounts = new HashMap<Assignment, Long>();
+		Iterator<Map.Entry<String, Assignment>> it = assignments.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, Assignment> entry = it.next();
+			Assignment assignment = entry.getValue();
+			long events = assignment.eventsThisInterval;
+			assignment.eventsThisInterval = 0;
+			int workerId;
+			synchronized(assignment) {
+				if(events == 0 && assignment.pending == 0 && ++assignment.idleIntervals >= IDLE_INTERVALS_BEFORE_EVICTION) {
+					assignment.retired = true;
+					it.remove();
+					continue;
+				}
+				workerId = assignment.worker;
+			}
+			if(events == 0) continue;
+			workerLoad[workerId] += events;
+			intervalCounts.put(assignment, events);
+			List<Map.Entry<String, Assignment>> pvs = pvsByWorker.get(workerId);
+			if(pvs == null) {
+				pvs = new ArrayList<Map.Entry<String, Assignment>>();
+				pvsByWorker.put(workerId, pvs);
+			}
+			pvs.add(entry);
+		}
+
+		long totalLoad = 0;
+		int busiest = 0;
+		int idlest = 0;
+		for(int i = 0; i < numThreads; i++) {
+			totalLoad += workerLoad[i];
+			if(workerLoad[i] > workerLoad[busiest]) busiest = i;
+			if(workerLoad[i] < workerLoad[idlest]) idlest = i;
+		}
+		if(totalLoad == 0 || busiest == idlest) return;
+		double average = ((double) totalLoad)/numThreads;
+		if(workerLoad[busiest] <= average*rebalanceThreshold) return;
+
+		// Move the busiest PVs that fit in the gap between the busiest and idlest worker.
+		final HashMap<Assignment, Long> counts = intervalCounts;
+		List<Map.Entry<String, Assignment>> candidates = pvsByWorker.get(busiest);
+		if(candidates == null || candidates.size() < 2) return;
+		Collections.sort(candidates, new Comparator<Map.Entry<String, Assignment>>() {
+			@Override
+			public int compare(Map.Entry<String, Assignment> o1, Map.Entry<String, Assignment> o2) {
+				return Long.compare(counts.get(o2.getValue()), counts.get(o1.getValue()));
+			}
+		});
+		for(Map.Entry<String, Assignment> candidate : candidates) {
+			long gap = workerLoad[busiest] - workerLoad[idlest];
+			if(workerLoad[busiest] <= average*rebalanceThreshold || gap <= 0) break;
+			long events = counts.get(candidate.getValue());
+			// Moving this PV would simply make the idlest worker the busiest.
+			if(events*2 > gap) continue;
+			Assignment assignment = candidate.getValue();
+			synchronized(assignment) {
+				// We can only move PVs that have nothing in flight; otherwise we'd reorder events for this PV.
+				if(assignment.pending != 0 || assignment.retired || assignment.worker != busiest) continue;
+				assignment.worker = idlest;
+			}
+			workerLoad[busiest] -= events;
+			workerLoad[idlest] += events;
+			pvsMoved.incrementAndGet();
+			logger.debug("Moved PV " + candidate.getKey() + " from dispatcher worker " + busiest + " to " + idlest);
+			for(int i = 0; i < numThreads; i++) {
+				if(workerLoad[i] < workerLoad[idlest]) idlest = i;
+			}
+		}
+	}
+
+	/**
+	 * A worker thread with a bounded ring buffer of preallocated slots.
+	 * Producers copy the event into the next free slot; the worker takes out up to batchSize events at a time and calls the listeners.
+	 */
+	private class Worker extends Thread {
+		private final int workerId;
+		private final int ringSize;
+		private final int batchSize;
+		private final int[] types;
+		private final Object[] events;
+		private final List<?>[] listenerLists;
+		private final Assignment[] owners;
+		private final long[] enqueueTimes;
+		private int head = 0;
+		private int count = 0;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notEmpty = lock.newCondition();
+		private final Condition notFull = lock.newCondition();
+		private volatile boolean shutdown = false;
+
+		private volatile int maxQueueDepth = 0;
+		private final AtomicLong eventsDispatched = new AtomicLong(0);
+		private final AtomicLong eventsDropped = new AtomicLong(0);
+		private final AtomicLong producerWaits = new AtomicLong(0);
+		private final AtomicLong inlineDispatches = new AtomicLong(0);
+		private final JCACommandThread.Histogram batchSizes = new JCACommandThread.Histogram();
+		private final JCACommandThread.Histogram dispatchLatencyMicros = new JCACommandThread.Histogram();
+
+		Worker(String name, int workerId, int ringSize, int batchSize) {
+			super(name);
+			this.setDaemon(true);
+			this.workerId = workerId;
+			this.ringSize = ringSize;
+			this.batchSize = batchSize;
+			this.types = new int[ringSize];
+			this.events = new Object[ringSize];
+			this.listenerLists = new List<?>[ringSize];
+			this.owners = new Assignment[ringSize];
+			this.enqueueTimes = new long[ringSize];
+		}
+
+		/**
+		 * Add the event to the ring buffer.
+		 * If the ring buffer is full, monitor events are dropped after waiting for maxWaitNanos if this is positive; all other events wait till there is space.
+		 * If we are called from this worker's thread and the ring buffer is full, the listeners are called inline.
+		 * @return true if the event was enqueued or dispatched, false if it was dropped.
+		 */
+		boolean enqueue(int eventType, Object event, List<?> listeners, Assignment owner, long maxWaitNanos) throws InterruptedException {
+			lock.lock();
+			try {
+				if(count == ringSize && Thread.currentThread() != this) {
+					producerWaits.incrementAndGet();
+					boolean dropWhenFull = (eventType == MONITOR && maxWaitNanos > 0);
+					long nanos = (eventType == MONITOR && !dropWhenFull) ? otherWaitNanos : maxWaitNanos;
+					long waitStartNanos = System.nanoTime();
+					while(count == ringSize && !shutdown) {
+						if(nanos <= 0) {
+							if(dropWhenFull) {
+								long dropped = eventsDropped.incrementAndGet();
+								if(dropped == 1 || dropped % 10000 == 0) {
+									logger.error("Dropped " + dropped + " monitor events as the ring buffer for dispatcher worker " + workerId + " is full");
+								}
+								return false;
+							}
+							logger.warn("Event of type " + eventType + " has been waiting for " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStartNanos) + "(ms) for space in the ring buffer for dispatcher worker " + workerId);
+							nanos = Math.max(maxWaitNanos, TimeUnit.SECONDS.toNanos(1));
 						}
+						nanos = notFull.awaitNanos(nanos);
+					}
+				}
+				if(shutdown) return false;
+				if(count < ringSize) {
+					int tail = (head + count) % ringSize;
+					types[tail] = eventType;
+					events[tail] = event;
+					listenerLists[tail] = listeners;
+					owners[tail] = owner;
+					enqueueTimes[tail] = System.nanoTime();
+					count++;
+					if(count > maxQueueDepth) maxQueueDepth = count;
+					if(count == 1) notEmpty.signal();
+					return true;
+				}
+				// A listener on this worker is dispatching to this worker; we cannot wait for ourselves to make space.
+				inlineDispatches.incrementAndGet();
+			} finally {
+				lock.unlock();
+			}
+			callListeners(eventType, event, listeners);
+			if(owner != null) eventProcessed(owner);
+			eventsDispatched.incrementAndGet();
+			return true;
+		}
+
+		int getQueueDepth() {
+			lock.lock();
+			try {
+				return count;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void shutdown() {
+			lock.lock();
+			try {
+				shutdown = true;
+				notEmpty.signalAll();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void run() {
+			int[] batchTypes = new int[batchSize];
+			Object[] batchEvents = new Object[batchSize];
+			List<?>[] batchListeners = new List<?>[batchSize];
+			Assignment[] batchOwners = new Assignment[batchSize];
+			long[] batchEnqueueTimes = new long[batchSize];
+			while(!shutdown) {
+				int taken = 0;
+				lock.lock();
+				try {
+					while(count == 0 && !shutdown) {
+						notEmpty.await();
 					}
+					if(shutdown) break;
+					taken = Math.min(count, batchSize);
+					for(int i = 0; i < taken; i++) {
+						int slot = (head + i) % ringSize;
+						batchTypes[i] = types[slot];
+						batchEvents[i] = events[slot];
+						batchListeners[i] = listenerLists[slot];
+						batchOwners[i] = owners[slot];
+						batchEnqueueTimes[i] = enqueueTimes[slot];
+						events[slot] = null;
+						listenerLists[slot] = null;
+						owners[slot] = null;
+					}
+					head = (head + taken) % ringSize;
+					boolean wasFull = (count == ringSize);
+					count -= taken;
+					if(wasFull) notFull.signalAll();
+				} catch(InterruptedException ex) {
+					break;
+				} finally {
+					lock.unlock();
+				}
+
+				batchSizes.record(taken);
+				for(int i = 0; i < taken; i++) {
+					dispatchLatencyMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - batchEnqueueTimes[i]));
+					callListeners(batchTypes[i], batchEvents[i], batchListeners[i]);
+					if(batchOwners[i] != null) eventProcessed(batchOwners[i]);
+					batchEvents[i] = null;
+					batchListeners[i] = null;
+					batchOwners[i] = null;
+				}
+				eventsDispatched.addAndGet(taken);
+			}
+		}
+	}
+
+	private static void callListeners(int eventType, Object event, List<?> listeners) {
+		for(Object listener : listeners) {
+			try {
+				switch(eventType) {
+				case CONTEXT_MESSAGE:
+					((ContextMessageListener)listener).contextMessage((ContextMessageEvent)event);
+					break;
+				case CONTEXT_EXCEPTION:
+					((ContextExceptionListener)listener).contextException((ContextExceptionEvent)event);
+					break;
+				case CONNECTION:
+					((ConnectionListener)listener).connectionChanged((ConnectionEvent)event);
+					break;
+				case ACCESS_RIGHTS:
+					((AccessRightsListener)listener).accessRightsChanged((AccessRightsEvent)event);
+					break;
+				case MONITOR:
+					((MonitorListener)listener).monitorChanged((MonitorEvent)event);
+					break;
+				case GET:
+					((GetListener)listener).getCompleted((GetEvent)event);
+					break;
+				case PUT:
+					((PutListener)listener).putCompleted((PutEvent)event);
+					break;
+				default:
+					logger.error("Unknown event type " + eventType);
 				}
-			}.initialize(arg0, (List<PutListener>) arg1));
-		} catch(Throwable t) { 
-			logger.warn("Exception dispatching put event", t);		
+			} catch(Throwable t) {
+				logger.warn("Exception dispatching event of type " + eventType, t);
+			}
+		}
+	}
+
+	/**
+	 * Metrics for this dispatcher
+	 * @return
+	 */
+	public Map<String, String> getDispatcherMetrics() {
+		return computeMetrics(Collections.singletonList(this));
+	}
+
+	/**
+	 * Metrics aggregated across all the active dispatchers in this JVM; one per JCA context.
+	 * @return
+	 */
+	public static Map<String, String> getMetrics() {
+		return computeMetrics(activeDispatchers);
+	}
+
+	private static Map<String, String> computeMetrics(List<JCAEventDispatcherBasedOnPVName> dispatchers) {
+		int queueDepth = 0;
+		int maxQueueDepth = 0;
+		long eventsDispatched = 0;
+		long eventsDropped = 0;
+		long producerWaits = 0;
+		long inlineDispatches = 0;
+		long pvsMoved = 0;
+		long assignedPVs = 0;
+		int pvsWithDrops = 0;
+		long minWorkerEvents = Long.MAX_VALUE;
+		long maxWorkerEvents = 0;
+		long[] batchSizes = JCACommandThread.Histogram.newTotals();
+		long[] latencies = JCACommandThread.Histogram.newTotals();
+		for(JCAEventDispatcherBasedOnPVName dispatcher : dispatchers) {
+			pvsMoved += dispatcher.pvsMoved.get();
+			pvsWithDrops += dispatcher.droppedEventsByPV.size();
+			assignedPVs += dispatcher.assignments.size();
+			ArrayList<Worker> workers = new ArrayList<Worker>();
+			workers.add(dispatcher.allOtherEventsHandler);
+			for(Worker worker : dispatcher.pvNameEventsHandlers) {
+				workers.add(worker);
+				long workerEvents = worker.eventsDispatched.get();
+				minWorkerEvents = Math.min(minWorkerEvents, workerEvents);
+				maxWorkerEvents = Math.max(maxWorkerEvents, workerEvents);
+			}
+			for(Worker worker : workers) {
+				queueDepth += worker.getQueueDepth();
+				maxQueueDepth = Math.max(maxQueueDepth, worker.maxQueueDepth);
+				eventsDispatched += worker.eventsDispatched.get();
+				eventsDropped += worker.eventsDropped.get();
+				producerWaits += worker.producerWaits.get();
+				inlineDispatches += worker.inlineDispatches.get();
+				worker.batchSizes.addTo(batchSizes);
+				worker.dispatchLatencyMicros.addTo(latencies);
+			}
 		}
+		HashMap<String, String> metrics = new HashMap<String, String>();
+		metrics.put("dispatchers", Integer.toString(dispatchers.size()));
+		metrics.put("queueDepth", Integer.toString(queueDepth));
+		metrics.put("maxQueueDepth", Integer.toString(maxQueueDepth));
+		metrics.put("eventsDispatched", Long.toString(eventsDispatched));
+		metrics.put("eventsDropped", Long.toString(eventsDropped));
+		metrics.put("producerWaits", Long.toString(producerWaits));
+		metrics.put("inlineDispatches", Long.toString(inlineDispatches));
+		metrics.put("pvsWithDrops", Integer.toString(pvsWithDrops));
+		metrics.put("pvsMoved", Long.toString(pvsMoved));
+		metrics.put("assignedPVs", Long.toString(assignedPVs));
+		metrics.put("minWorkerEvents", Long.toString(minWorkerEvents == Long.MAX_VALUE ? 0 : minWorkerEvents));
+		metrics.put("maxWorkerEvents", Long.toString(maxWorkerEvents));
+		metrics.put("batchSizes", JCACommandThread.Histogram.format(batchSizes));
+		metrics.put("dispatchLatencyMicros", JCACommandThread.Histogram.format(latencies));
+		return metrics;
 	}
 }
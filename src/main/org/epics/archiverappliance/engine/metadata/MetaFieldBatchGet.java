@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.metadata;
+
+import gov.aps.jca.Channel;
+import gov.aps.jca.dbr.DBR;
+import gov.aps.jca.dbr.DBRType;
+import gov.aps.jca.dbr.DBR_Byte;
+import gov.aps.jca.dbr.DBR_Double;
+import gov.aps.jca.dbr.DBR_LABELS_Enum;
+import gov.aps.jca.dbr.DBR_String;
+import gov.aps.jca.event.ConnectionEvent;
+import gov.aps.jca.event.ConnectionListener;
+import gov.aps.jca.event.GetEvent;
+import gov.aps.jca.event.GetListener;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.engine.pv.PVContext;
+import org.epics.archiverappliance.engine.pv.RefCountedChannel;
+
+/**
+ * Get the values of the metadata fields of a PV (.NAME, .NAME$, .SCAN etc) using one-shot CA gets.
+ * All the field channels are created in one JCA command and each get is issued as soon as the field connects.
+ * Since all the fields of a PV live on the same IOC and the JCACommandThread flushes once per batch of commands, the gets for a PV go out to the IOC together.
+ * Each field channel is released as soon as its get completes; so these channels are short lived.
+ * The values are converted to either a String or a Double.
+ * @author mshankar
+ *
+ */
+public class MetaFieldBatchGet implements ConnectionListener {
+	private static final Logger logger = Logger.getLogger(MetaFieldBatchGet.class.getName());
+
+	/**
+	 * Called when a field channel is released; used to keep track of the number of metadata channels in flight.
+	 */
+	public interface ChannelReleasedListener {
+		public void channelReleased();
+	}
+
+	private final String pvName;
+	private final int jcaCommandThreadId;
+	private final ChannelReleasedListener releasedListener;
+	/** Field name to channel name */
+	private final LinkedHashMap<String, String> fieldChannels;
+	/** Channel name to field name */
+	private final HashMap<String, String> channelFields = new HashMap<String, String>();
+	private final ConcurrentHashMap<String, RefCountedChannel> openChannels = new ConcurrentHashMap<String, RefCountedChannel>();
+	private final Set<String> getsIssued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<String, Object>();
+	private volatile boolean released = false;
+	private final AtomicInteger channelsPending;
+	private volatile long startTime = 0;
+
+	private final GetListener getListener = new GetListener() {
+		@Override
+		public void getCompleted(GetEvent event) {
+			// This runs in a CA thread
+			final Channel channel = (Channel) event.getSource();
+			String fieldName = channelFields.get(channel.getName());
+			try {
+				if(event.getStatus().isSuccessful()) {
+					Object value = convertValue(fieldName, event.getDBR());
+					if(value != null) values.put(fieldName, value);
+				} else {
+					logger.warn("Get of metadata field " + fieldName + " for pv " + pvName + " was not successful " + event.getStatus());
+				}
+			} catch(Exception ex) {
+				logger.error("Exception processing metadata field " + fieldName + " for pv " + pvName, ex);
+			}
+			PVContext.scheduleCommand(pvName, jcaCommandThreadId, null, "metaFieldGetCompleted", new Runnable() {
+				@Override
+				public void run() {
+					releaseChannel(channel.getName());
+				}
+			});
+		}
+	};
+
+	/**
+	 * @param pvName - The PV whose fields we are getting; used for logging.
+	 * @param fieldChannels - Map of field name to the CA channel name for that field
+	 * @param jcaCommandThreadId - The JCA command thread for the PV.
+	 * @param releasedListener - Called once for each field channel when it is released.
+	 */
+	public MetaFieldBatchGet(String pvName, LinkedHashMap<String, String> fieldChannels, int jcaCommandThreadId, ChannelReleasedListener releasedListener) {
+		this.pvName = pvName;
+		this.fieldChannels = fieldChannels;
+		this.jcaCommandThreadId = jcaCommandThreadId;
+		this.releasedListener = releasedListener;
+		this.channelsPending = new AtomicInteger(fieldChannels.size());
+		for(Map.Entry<String, String> entry : fieldChannels.entrySet()) {
+			channelFields.put(entry.getValue(), entry.getKey());
+		}
+	}
+
+	/**
+	 * Create the channels for all the fields in one JCA command.
+	 */
+	public void start() {
+		startTime = System.currentTimeMillis();
+		PVContext.scheduleCommand(pvName, jcaCommandThreadId, null, "metaFieldBatchGet", new Runnable() {
+			@Override
+			public void run() {
+				for(String channelName : fieldChannels.values()) {
+					if(released) return;
+					try {
+						RefCountedChannel channelRef = PVContext.getChannel(channelName, jcaCommandThreadId, MetaFieldBatchGet.this);
+						openChannels.put(channelName, channelRef);
+						if(channelRef.getChannel().getConnectionState() == Channel.CONNECTED) {
+							issueGet(channelRef.getChannel());
+						}
+					} catch(Exception ex) {
+						logger.error("Exception creating channel for metadata field " + channelName, ex);
+						channelsPending.decrementAndGet();
+						if(releasedListener != null) releasedListener.channelReleased();
+					}
+				}
+			}
+		}, true);
+	}
+
+	@Override
+	public void connectionChanged(final ConnectionEvent ev) {
+		// This runs in a CA thread
+		if(!ev.isConnected()) return;
+		PVContext.scheduleCommand(pvName, jcaCommandThreadId, null, "metaFieldConnected", new Runnable() {
+			@Override
+			public void run() {
+				issueGet((Channel) ev.getSource());
+			}
+		});
+	}
+
+	private void issueGet(Channel channel) {
+		String channelName = channel.getName();
+		if(released || !openChannels.containsKey(channelName) || !getsIssued.add(channelName)) return;
+		try {
+			if(channel.getConnectionState() != Channel.CONNECTED) {
+				getsIssued.remove(channelName);
+				return;
+			}
+			DBRType fieldType = channel.getFieldType();
+			int elementCount = channel.getElementCount();
+			if(fieldType.isENUM()) {
+				channel.get(DBRType.LABELS_ENUM, 1, getListener);
+			} else if(fieldType.isSTRING()) {
+				channel.get(DBRType.STRING, 1, getListener);
+			} else if(fieldType.isBYTE() && elementCount > 1) {
+				channel.get(DBRType.BYTE, elementCount, getListener);
+			} else {
+				channel.get(DBRType.DOUBLE, 1, getListener);
+			}
+		} catch(Exception ex) {
+			logger.error("Exception getting metadata field " + channelName + " for pv " + pvName, ex);
+			releaseChannel(channelName);
+		}
+	}
+
+	/**
+	 * Convert the DBR for a field into either a Double or a String.
+	 * @param fieldName
+	 * @param dbr
+	 * @return
+	 */
+	public static Object convertValue(String fieldName, DBR dbr) {
+		if(dbr == null) return null;
+		if(dbr instanceof DBR_LABELS_Enum) {
+			DBR_LABELS_Enum labelsEnum = (DBR_LABELS_Enum) dbr;
+			int enumIndex = labelsEnum.getEnumValue()[0];
+			if(fieldName.equals("SCAN")) {
+				String[] labels = labelsEnum.getLabels();
+				if(labels != null && enumIndex >= 0 && enumIndex < labels.length) {
+					return labels[enumIndex];
+				}
+				logger.warn("SCAN does not seem to be a valid label");
+				return Integer.toString(enumIndex);
+			}
+			return Double.valueOf(enumIndex);
+		} else if(dbr instanceof DBR_String) {
+			String[] strs = ((DBR_String) dbr).getStringValue();
+			return (strs != null && strs.length > 0) ? strs[0] : null;
+		} else if(dbr instanceof DBR_Byte) {
+			byte[] bytes = ((DBR_Byte) dbr).getByteValue();
+			if(bytes == null || bytes.length == 0) return null;
+			if(fieldName.endsWith("$")) {
+				// Long strings; these are NULL terminated char arrays.
+				int len = 0;
+				while(len < bytes.length && bytes[len] != 0) len++;
+				try {
+					return new String(bytes, 0, len, "UTF-8");
+				} catch (UnsupportedEncodingException ex) {
+					logger.fatal(ex.getMessage(), ex);
+					return null;
+				}
+			}
+			return Double.valueOf(bytes[0]);
+		} else if(dbr instanceof DBR_Double) {
+			double[] dbls = ((DBR_Double) dbr).getDoubleValue();
+			return (dbls != null && dbls.length > 0) ? Double.valueOf(dbls[0]) : null;
+		}
+		logger.warn("Unexpected DBR type " + dbr.getClass().getName() + " for metadata field " + fieldName);
+		return null;
+	}
+
+	private void releaseChannel(String channelName) {
+		RefCountedChannel channelRef = openChannels.remove(channelName);
+		if(channelRef == null) return;
+		try {
+			PVContext.releaseChannel(channelRef, this);
+		} catch(Exception ex) {
+			logger.warn("Exception releasing channel for metadata field " + channelName, ex);
+		}
+		channelsPending.decrementAndGet();
+		if(releasedListener != null) releasedListener.channelReleased();
+	}
+
+	/**
+	 * Release all the channels that are still open; for example, fields that do not exist on this IOC never connect.
+	 * Any gets still in flight are ignored.
+	 */
+	public void releaseAll() {
+		released = true;
+		PVContext.scheduleCommand(pvName, jcaCommandThreadId, null, "metaFieldBatchRelease", new Runnable() {
+			@Override
+			public void run() {
+				for(String channelName : fieldChannels.values()) {
+					releaseChannel(channelName);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Have all the gets completed (or failed)?
+	 * Fields that do not exist on the IOC never connect; so callers should also use a timeout based on {@link #getStartTime()}.
+	 * @return
+	 */
+	public boolean isComplete() {
+		return channelsPending.get() <= 0;
+	}
+
+	/**
+	 * When we started creating the channels; in epoch milliseconds
+	 * @return
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Field name to value; the value is either a String or a Double
+	 * @return
+	 */
+	public Map<String, Object> getValues() {
+		return values;
+	}
+}
@@ -11,11 +11,19 @@ package org.epics.archiverappliance.engine.metadata;
 import java.io.UnsupportedEncodingException;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.config.ConfigService;
 import org.epics.archiverappliance.config.MetaInfo;
 import org.epics.archiverappliance.config.PVNames;
@@ -30,11 +38,35 @@ import org.epics.archiverappliance.engine.pv.PVFactory;
 import org.epics.archiverappliance.engine.pv.PVListener;
 /**
  * this class is used to create channel for pv and compute the meta info for one pv.
+ * <p>
+ * For Channel Access PVs, the metadata fields (.NAME, .NAME$ and the extra fields) are obtained using one batch of one-shot gets (see {@link MetaFieldBatchGet}) once the main PV has its first value.
+ * Fields that are part of the main PV's DBR_CTRL data (EGU, HOPR, HIHI etc) are not fetched again for scalar numeric PVs.
+ * Instead of waiting a fixed 60 seconds, we compute the event and storage rates once we have seen enough events over a minimum window; slow PVs still take the maximum window.
+ * The total number of metadata channels in flight is capped; MetaGets that would exceed the cap wait in a queue and are started as channels are released.
+ * For Channel Access PVs, only the main channel counts against the cap till the field batch starts; MetaGets whose main channel does not connect within connectTimeoutSecs stop counting against the cap so that unreachable PVs do not hold up everything else.
+ * A single periodic task on the engine scheduler checks for MetaGets that are ready to complete.
  * @author Luofeng Li
  *
  */
-public class MetaGet implements Runnable {
+public class MetaGet implements Runnable, MetaFieldBatchGet.ChannelReleasedListener {
 	private static ConcurrentHashMap<String, MetaGet> metaGets = new ConcurrentHashMap<String, MetaGet>();
+	private static ConcurrentLinkedQueue<MetaGet> waitingMetaGets = new ConcurrentLinkedQueue<MetaGet>();
+	private static AtomicInteger inFlightChannels = new AtomicInteger(0);
+	private static volatile int maxInFlightChannels = 10000;
+	private static ScheduledThreadPoolExecutor checkerScheduler = null;
+	private static final Object startLock = new Object();
+
+	public static final String MAX_IN_FLIGHT_CHANNELS_PROPERTY = "org.epics.archiverappliance.engine.metadata.MetaGet.maxInFlightChannels";
+	public static final String MIN_RATE_WINDOW_PROPERTY = "org.epics.archiverappliance.engine.metadata.MetaGet.minRateWindowSecs";
+	public static final String MAX_RATE_WINDOW_PROPERTY = "org.epics.archiverappliance.engine.metadata.MetaGet.maxRateWindowSecs";
+	public static final String MIN_EVENTS_PROPERTY = "org.epics.archiverappliance.engine.metadata.MetaGet.minEventsForRateEstimate";
+	public static final String FIELD_TIMEOUT_PROPERTY = "org.epics.archiverappliance.engine.metadata.MetaGet.fieldConnectTimeoutSecs";
+	public static final String CONNECT_TIMEOUT_PROPERTY = "org.epics.archiverappliance.engine.metadata.MetaGet.connectTimeoutSecs";
+
+	/**
+	 * These fields are part of the DBR_CTRL data for scalar numeric PVs; so we do not need separate channels for these.
+	 */
+	private static final String[] CTRL_FIELDS = new String[] {"EGU", "HOPR", "LOPR", "HIHI", "HIGH", "LOW", "LOLO"};
 
 	private String pvName;
 	private String metadatafields[];
@@ -44,7 +76,19 @@ public class MetaGet implements Runnable {
 
 	final private ConfigService configservice;
 	private static final Logger logger = Logger.getLogger(MetaGet.class.getName());
-	private boolean isScheduled = false;
+	private int jcaCommandThreadId;
+	private volatile boolean started = false;
+	private volatile long startedAt = 0;
+	private volatile long connectedAt = 0;
+	private volatile MetaFieldBatchGet fieldBatch = null;
+	private LinkedList<String> fieldsFromCtrl = new LinkedList<String>();
+	private final AtomicInteger reservedChannels = new AtomicInteger(0);
+	private final AtomicBoolean finished = new AtomicBoolean(false);
+	private long minRateWindowMillis = TimeUnit.SECONDS.toMillis(10);
+	private long maxRateWindowMillis = TimeUnit.SECONDS.toMillis(60);
+	private long minEventsForRateEstimate = 100;
+	private long fieldConnectTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+	private long connectTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
 
 	public MetaGet(String pvName, ConfigService configservice,
 			String metadatafields[], boolean usePVAccess, MetaCompletedListener metaListener) {
@@ -53,55 +97,162 @@ public class MetaGet implements Runnable {
 		this.metadatafields = metadatafields;
 		this.metaListener = metaListener;
 		this.configservice = configservice;
+		Properties props = configservice.getInstallationProperties();
+		if(props != null) {
+			maxInFlightChannels = Integer.parseInt(props.getProperty(MAX_IN_FLIGHT_CHANNELS_PROPERTY, "10000"));
+			minRateWindowMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(props.getProperty(MIN_RATE_WINDOW_PROPERTY, "10")));
+			maxRateWindowMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(props.getProperty(MAX_RATE_WINDOW_PROPERTY, "60")));
+			minEventsForRateEstimate = Long.parseLong(props.getProperty(MIN_EVENTS_PROPERTY, "100"));
+			fieldConnectTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(props.getProperty(FIELD_TIMEOUT_PROPERTY, "10")));
+			connectTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(props.getProperty(CONNECT_TIMEOUT_PROPERTY, "30")));
+		}
 		metaGets.put(pvName, this);
 	}
 /**
  * create channel of pv and its meta field
+ * If this would exceed the number of metadata channels in flight, this MetaGet waits till channels are released.
  * @throws Exception error when creating channel for pv and its meta field
  */
 	public void initpv() throws Exception {
-		try {
+		startChecker(configservice.getEngineContext().getScheduler());
+		if(waitingMetaGets.isEmpty() && tryReserveChannels()) {
+			startChannels();
+		} else {
+			logger.debug("Too many metadata channels in flight; queueing the MetaGet for pv " + pvName);
+			waitingMetaGets.add(this);
+			startWaitingMetaGets();
+		}
+	}
 
-			int jcaCommandThreadId = configservice.getEngineContext().assignJCACommandThread(pvName, null);
-			PV pv = PVFactory.createPV(pvName, configservice, jcaCommandThreadId, usePVAccess);
-			pv.addListener(new PVListener() {
-				@Override
-				public void pvValueUpdate(PV pv) {
-				}
+	/**
+	 * The channels we need to start this MetaGet.
+	 * For PVAccess, we start one channel for the main PV, NAME and NAME$ and one for each of the extra fields right away.
+	 * For Channel Access, we start only the main channel; the channels for the fields are reserved when the field batch starts.
+	 * @return
+	 */
+	private int channelsNeeded() {
+		if(!usePVAccess) return 1;
+		return 3 + (metadatafields != null ? metadatafields.length : 0);
+	}
 
-				@Override
-				public void pvDisconnected(PV pv) {
-				}
+	private boolean tryReserveChannels() {
+		int needed = channelsNeeded();
+		while(true) {
+			int current = inFlightChannels.get();
+			// Let one MetaGet through even if it by itself exceeds the cap.
+			if(current > 0 && current + needed > maxInFlightChannels) return false;
+			if(inFlightChannels.compareAndSet(current, current + needed)) {
+				reservedChannels.addAndGet(needed);
+				return true;
+			}
+		}
+	}
 
-				@Override
-				public void pvConnected(PV pv) {
-					if (!isScheduled) {
-						logger.debug("Starting the timer to measure event and storage rates for about 60 seconds for pv " + MetaGet.this.pvName);
-						ScheduledThreadPoolExecutor scheduler = configservice.getEngineContext().getScheduler();
-						scheduler.schedule(MetaGet.this, 60, TimeUnit.SECONDS);
-						isScheduled = true;
-					}
+	@Override
+	public void channelReleased() {
+		while(true) {
+			int reserved = reservedChannels.get();
+			if(reserved <= 0) return;
+			if(reservedChannels.compareAndSet(reserved, reserved - 1)) break;
+		}
+		inFlightChannels.decrementAndGet();
+		startWaitingMetaGets();
+	}
+
+	/**
+	 * The main PV has connected; these channels are used for a short time only. So, we go over the cap if needed.
+	 * @param channels
+	 */
+	private void reserveFieldChannels(int channels) {
+		inFlightChannels.addAndGet(channels);
+		reservedChannels.addAndGet(channels);
+	}
+
+	/**
+	 * If the main PV has not connected within the connect timeout, this MetaGet stops counting against the cap.
+	 * We still wait for the PV to connect (or for the MetaGet to be aborted).
+	 * @param now - Current time in epoch millis
+	 */
+	synchronized void releaseIfNotConnected(long now) {
+		if(!started || connectedAt != 0 || fieldBatch != null || finished.get() || reservedChannels.get() <= 0) return;
+		if(now - startedAt < connectTimeoutMillis) return;
+		logger.debug("PV " + pvName + " has not connected in " + (now - startedAt) + "(ms); releasing its reserved channels");
+		releaseAllReservedChannels();
+	}
+
+	private void releaseAllReservedChannels() {
+		int reserved = reservedChannels.getAndSet(0);
+		if(reserved > 0) {
+			inFlightChannels.addAndGet(-reserved);
+			startWaitingMetaGets();
+		}
+	}
+
+	private static void startWaitingMetaGets() {
+		synchronized(startLock) {
+			MetaGet waiting;
+			while((waiting = waitingMetaGets.peek()) != null) {
+				if(waiting.finished.get()) {
+					waitingMetaGets.remove(waiting);
+					continue;
+				}
+				if(!waiting.tryReserveChannels()) return;
+				waitingMetaGets.remove(waiting);
+				try {
+					waiting.startChannels();
+				} catch(Exception ex) {
+					logger.error("Exception starting MetaGet for pv " + waiting.pvName, ex);
+					waiting.releaseAllReservedChannels();
 				}
+			}
+		}
+	}
 
-				@Override
-				public void pvConnectionRequestMade(PV pv) {
+	private void startChannels() throws Exception {
+		startedAt = System.currentTimeMillis();
+		started = true;
+		jcaCommandThreadId = configservice.getEngineContext().assignJCACommandThread(pvName, null);
+		PV pv = PVFactory.createPV(pvName, configservice, jcaCommandThreadId, usePVAccess);
+		pv.addListener(new PVListener() {
+			@Override
+			public void pvValueUpdate(PV pv) {
+				if(!usePVAccess && fieldBatch == null) {
+					startFieldBatch(pv);
 				}
+			}
+
+			@Override
+			public void pvDisconnected(PV pv) {
+			}
 
-				@Override
-				public void pvDroppedSample(PV pv, DroppedReason reason) {
+			@Override
+			public void pvConnected(PV pv) {
+				if (connectedAt == 0) {
+					logger.debug("Starting to measure event and storage rates for pv " + MetaGet.this.pvName);
+					connectedAt = System.currentTimeMillis();
 				}
-			});
-			pvList.put("main", pv);
-			pv.start();
+			}
+
+			@Override
+			public void pvConnectionRequestMade(PV pv) {
+			}
 
+			@Override
+			public void pvDroppedSample(PV pv, DroppedReason reason) {
+			}
+		});
+		pvList.put("main", pv);
+		pv.start();
+
+		if(usePVAccess) {
 			PV pv2 = PVFactory.createPV(pvName + ".NAME", configservice, jcaCommandThreadId, usePVAccess);
 			pvList.put("NAME", pv2);
 			pv2.start();
-			
+
 			PV pv3 = PVFactory.createPV(pvName + ".NAME$", configservice, jcaCommandThreadId, usePVAccess);
 			pvList.put("NAME$", pv3);
 			pv3.start();
-			
+
 			if (metadatafields != null) {
 				for (int i = 0; i < metadatafields.length; i++) {
 					String metaField = metadatafields[i];
@@ -111,72 +262,240 @@ public class MetaGet implements Runnable {
 					pvList.put(metaField, pvTemp);
 				}
 			}
-		} catch (Exception e) {
-			throw (e);
 		}
 	}
 
-	@Override
-	public void run() {
-		logger.debug("Finished the timer to measure event and storage rates for about 60 seconds for pv " + MetaGet.this.pvName);
-		try {
-			PV pvMain = pvList.get("main");
-			MetaInfo mainMeta = pvMain.getTotalMetaInfo();
-			// Per Dirk Zimoch, we first check the NAME$.
-			// If that exists, we use it. If not, we use the NAME
-			PV pv_NameDollar = pvList.get("NAME$");
-			DBRTimeEvent nameDollarValue = pv_NameDollar.getDBRTimeEvent();
-			if (nameDollarValue != null && nameDollarValue.getSampleValue() != null) {
-				logger.debug("Using the NAME$ value as the NAME for pv " + pvName);
-				SampleValue sampleValue = nameDollarValue.getSampleValue();
-				parseAliasInfo(sampleValue, mainMeta);
-			} else { 
-				logger.debug("Using the NAME value as the NAME for pv " + pvName);
-				PV pv_Name = pvList.get("NAME");
-				DBRTimeEvent nameValue = pv_Name.getDBRTimeEvent();
-				if (nameValue != null && nameValue.getSampleValue() != null) {
-					SampleValue sampleValue = nameValue.getSampleValue();
-					parseAliasInfo(sampleValue, mainMeta);
-				} else { 
-					logger.warn("Either we probably did not have time to determine .NAME for " + MetaGet.this.pvName + " or the field does not exist");
+	/**
+	 * The main PV has its first value and therefore its DBR_CTRL data; get the remaining fields in one batch.
+	 * @param mainPV
+	 */
+	private synchronized void startFieldBatch(PV mainPV) {
+		if(fieldBatch != null || finished.get()) return;
+		MetaInfo mainMeta = mainPV.getTotalMetaInfo();
+		ArchDBRTypes dbrType = mainMeta.getArchDBRTypes();
+		boolean ctrlAvailable = mainMeta.getUnit() != null
+				&& (dbrType == ArchDBRTypes.DBR_SCALAR_DOUBLE || dbrType == ArchDBRTypes.DBR_SCALAR_FLOAT || dbrType == ArchDBRTypes.DBR_SCALAR_INT || dbrType == ArchDBRTypes.DBR_SCALAR_SHORT);
+		boolean precAvailable = ctrlAvailable && (dbrType == ArchDBRTypes.DBR_SCALAR_DOUBLE || dbrType == ArchDBRTypes.DBR_SCALAR_FLOAT);
+		LinkedHashMap<String, String> fieldChannels = new LinkedHashMap<String, String>();
+		fieldChannels.put("NAME", pvName + ".NAME");
+		fieldChannels.put("NAME$", pvName + ".NAME$");
+		if (metadatafields != null) {
+			for (String metaField : metadatafields) {
+				if((ctrlAvailable && isCtrlField(metaField)) || (precAvailable && metaField.equals("PREC"))) {
+					fieldsFromCtrl.add(metaField);
+					continue;
 				}
+				// We return the fields of the src PV even if we are archiving a field...
+				fieldChannels.put(metaField, PVNames.normalizePVNameWithField(pvName, metaField));
 			}
-			
-			Enumeration<String> fieldNameList = pvList.keys();
-			while (fieldNameList.hasMoreElements()) {
-				String fieldName = fieldNameList.nextElement();
-				if (fieldName.equals("main") || fieldName.equals("NAME") || fieldName.equals("NAME$")) {
-					// These have already been processed; so do nothing.
-				} else { 
-					if (fieldName.endsWith("RTYP")) {
-						if(pvList.get(fieldName) != null && pvList.get(fieldName).getDBRTimeEvent() != null && pvList.get(fieldName).getDBRTimeEvent().getSampleValue() != null) { 
-							String rtyp = pvList.get(fieldName).getDBRTimeEvent().getSampleValue().toString();
-							mainMeta.addOtherMetaInfo(fieldName, rtyp);
-							logger.info("The RTYP for the PV " + MetaGet.this.pvName + " is " + rtyp);
-						} else { 
-							logger.debug("Something about RTYP is null for PV " + MetaGet.this.pvName);
-						}
-					} else {
-						DBRTimeEvent valueTemp = pvList.get(fieldName).getDBRTimeEvent();
-						if (valueTemp != null) {
-							SampleValue tempvalue = valueTemp.getSampleValue();
-							parseOtherInfo(tempvalue, mainMeta, fieldName);
-						} else { 
-							logger.warn("Either we probably did not have time to determine " + fieldName + " for " + MetaGet.this.pvName + " or the field does not exist");
+		}
+		logger.debug("Getting " + fieldChannels.size() + " fields for pv " + pvName + " and using the DBR_CTRL data for " + fieldsFromCtrl.size() + " fields");
+		reserveFieldChannels(fieldChannels.size());
+		fieldBatch = new MetaFieldBatchGet(pvName, fieldChannels, jcaCommandThreadId, this);
+		fieldBatch.start();
+	}
+
+	private static boolean isCtrlField(String fieldName) {
+		for(String ctrlField : CTRL_FIELDS) {
+			if(ctrlField.equals(fieldName)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Do we have enough data to compute the MetaInfo?
+	 * @param now - Current time in epoch millis
+	 * @return
+	 */
+	boolean isReadyToComplete(long now) {
+		if(!started || connectedAt == 0 || finished.get()) return false;
+		if(now - connectedAt >= maxRateWindowMillis) return true;
+		if(usePVAccess) return false;
+		MetaFieldBatchGet batch = fieldBatch;
+		if(batch == null) return false;
+		boolean fieldsDone = batch.isComplete() || (now - batch.getStartTime() >= fieldConnectTimeoutMillis);
+		MetaInfo mainMeta = pvList.get("main").getTotalMetaInfo();
+		long rateStart = mainMeta.getStartTime() > 0 ? mainMeta.getStartTime() : connectedAt;
+		boolean rateDone = (now - rateStart >= minRateWindowMillis) && mainMeta.getEventCount() >= minEventsForRateEstimate;
+		return fieldsDone && rateDone;
+	}
+
+	/**
+	 * Start the periodic task that looks for MetaGets that are ready to complete, if we have not already done so on this scheduler.
+	 * @param scheduler
+	 */
+	private static void startChecker(ScheduledThreadPoolExecutor scheduler) {
+		synchronized(startLock) {
+			if(checkerScheduler == scheduler) return;
+			checkerScheduler = scheduler;
+		}
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				long now = System.currentTimeMillis();
+				for(MetaGet metaGet : metaGets.values()) {
+					try {
+						if(metaGet.isReadyToComplete(now)) {
+							metaGet.run();
+						} else {
+							metaGet.releaseIfNotConnected(now);
 						}
+					} catch(Throwable t) {
+						logger.error("Exception checking MetaGet for pv " + metaGet.pvName, t);
 					}
 				}
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
 
-				pvList.get(fieldName).stop();
+	@Override
+	public void run() {
+		if(!finished.compareAndSet(false, true)) return;
+		logger.debug("Finished measuring event and storage rates for pv " + MetaGet.this.pvName);
+		try {
+			PV pvMain = pvList.get("main");
+			MetaInfo mainMeta = pvMain.getTotalMetaInfo();
+			long rateStart = mainMeta.getStartTime() > 0 ? mainMeta.getStartTime() : connectedAt;
+			mainMeta.setRateWindowSeconds(Math.max(1.0, (System.currentTimeMillis() - rateStart)/1000.0));
+			if(usePVAccess) {
+				applyFieldPVs(mainMeta);
+			} else {
+				applyFieldBatch(mainMeta);
 			}
+			pvMain.stop();
 			// Make sure we have at least the DBR type here. 
 			if(mainMeta.getArchDBRTypes() == null) { 
 				logger.error("Cannot determine DBR type for pv " + MetaGet.this.pvName);
 			}  
 			metaListener.completed(mainMeta);
-			metaGets.remove(pvName);
 		} catch (Exception ex) {
 			logger.error("Exception when schecule MetaGet " + pvName, ex);
+		} finally {
+			if(fieldBatch != null) fieldBatch.releaseAll();
+			releaseAllReservedChannels();
+			metaGets.remove(pvName, this);
+		}
+	}
+
+	/**
+	 * Add the values from the batched field gets and the DBR_CTRL data into the MetaInfo
+	 * @param mainMeta
+	 */
+	private void applyFieldBatch(MetaInfo mainMeta) {
+		Map<String, Object> fieldValues = fieldBatch != null ? fieldBatch.getValues() : new ConcurrentHashMap<String, Object>();
+		// Per Dirk Zimoch, we first check the NAME$.
+		// If that exists, we use it. If not, we use the NAME
+		Object nameDollarValue = fieldValues.get("NAME$");
+		Object nameValue = fieldValues.get("NAME");
+		if (nameDollarValue instanceof String && !((String) nameDollarValue).isEmpty()) {
+			logger.debug("Using the NAME$ value as the NAME for pv " + pvName);
+			mainMeta.setAliasName((String) nameDollarValue);
+			mainMeta.addOtherMetaInfo("NAME", (String) nameDollarValue);
+		} else if (nameValue instanceof String) {
+			logger.debug("Using the NAME value as the NAME for pv " + pvName);
+			mainMeta.setAliasName((String) nameValue);
+			mainMeta.addOtherMetaInfo("NAME", (String) nameValue);
+		} else if (nameValue instanceof Double) {
+			// We have a number for a NAME????
+			mainMeta.setAliasName("" + nameValue);
+		} else {
+			logger.warn("Either we probably did not have time to determine .NAME for " + MetaGet.this.pvName + " or the field does not exist");
+		}
+
+		if (metadatafields != null) {
+			for (String fieldName : metadatafields) {
+				if(fieldsFromCtrl.contains(fieldName)) {
+					addCtrlField(mainMeta, fieldName);
+					continue;
+				}
+				Object value = fieldValues.get(fieldName);
+				if (value == null) {
+					logger.warn("Either we probably did not have time to determine " + fieldName + " for " + MetaGet.this.pvName + " or the field does not exist");
+				} else if (value instanceof Double) {
+					mainMeta.addOtherMetaInfo(fieldName, (Double) value);
+				} else {
+					mainMeta.addOtherMetaInfo(fieldName, value.toString());
+					if (fieldName.endsWith("RTYP")) {
+						logger.info("The RTYP for the PV " + MetaGet.this.pvName + " is " + value);
+					}
+				}
+			}
+		}
+	}
+
+	private static void addCtrlField(MetaInfo mainMeta, String fieldName) {
+		if(fieldName.equals("EGU")) {
+			mainMeta.addOtherMetaInfo(fieldName, mainMeta.getUnit());
+		} else if(fieldName.equals("PREC")) {
+			mainMeta.addOtherMetaInfo(fieldName, Double.valueOf(mainMeta.getPrecision()));
+		} else if(fieldName.equals("HOPR")) {
+			mainMeta.addOtherMetaInfo(fieldName, mainMeta.getUpperDisplayLimit());
+		} else if(fieldName.equals("LOPR")) {
+			mainMeta.addOtherMetaInfo(fieldName, mainMeta.getLowerDisplayLimit());
+		} else if(fieldName.equals("HIHI")) {
+			mainMeta.addOtherMetaInfo(fieldName, mainMeta.getUpperAlarmLimit());
+		} else if(fieldName.equals("HIGH")) {
+			mainMeta.addOtherMetaInfo(fieldName, mainMeta.getUpperWarningLimit());
+		} else if(fieldName.equals("LOW")) {
+			mainMeta.addOtherMetaInfo(fieldName, mainMeta.getLowerWarningLimit());
+		} else if(fieldName.equals("LOLO")) {
+			mainMeta.addOtherMetaInfo(fieldName, mainMeta.getLowerAlarmLimit());
+		}
+	}
+
+	/**
+	 * Add the values from the separate field PVs into the MetaInfo; used for PVAccess.
+	 * @param mainMeta
+	 */
+	private void applyFieldPVs(MetaInfo mainMeta) {
+		// Per Dirk Zimoch, we first check the NAME$.
+		// If that exists, we use it. If not, we use the NAME
+		PV pv_NameDollar = pvList.get("NAME$");
+		DBRTimeEvent nameDollarValue = pv_NameDollar.getDBRTimeEvent();
+		if (nameDollarValue != null && nameDollarValue.getSampleValue() != null) {
+			logger.debug("Using the NAME$ value as the NAME for pv " + pvName);
+			SampleValue sampleValue = nameDollarValue.getSampleValue();
+			parseAliasInfo(sampleValue, mainMeta);
+		} else { 
+			logger.debug("Using the NAME value as the NAME for pv " + pvName);
+			PV pv_Name = pvList.get("NAME");
+			DBRTimeEvent nameValue = pv_Name.getDBRTimeEvent();
+			if (nameValue != null && nameValue.getSampleValue() != null) {
+				SampleValue sampleValue = nameValue.getSampleValue();
+				parseAliasInfo(sampleValue, mainMeta);
+			} else { 
+				logger.warn("Either we probably did not have time to determine .NAME for " + MetaGet.this.pvName + " or the field does not exist");
+			}
+		}
+
+		Enumeration<String> fieldNameList = pvList.keys();
+		while (fieldNameList.hasMoreElements()) {
+			String fieldName = fieldNameList.nextElement();
+			if (fieldName.equals("main")) {
+				continue;
+			} else if (fieldName.equals("NAME") || fieldName.equals("NAME$")) {
+				// These have already been processed; so do nothing.
+			} else { 
+				if (fieldName.endsWith("RTYP")) {
+					if(pvList.get(fieldName) != null && pvList.get(fieldName).getDBRTimeEvent() != null && pvList.get(fieldName).getDBRTimeEvent().getSampleValue() != null) { 
+						String rtyp = pvList.get(fieldName).getDBRTimeEvent().getSampleValue().toString();
+						mainMeta.addOtherMetaInfo(fieldName, rtyp);
+						logger.info("The RTYP for the PV " + MetaGet.this.pvName + " is " + rtyp);
+					} else { 
+						logger.debug("Something about RTYP is null for PV " + MetaGet.this.pvName);
+					}
+				} else {
+					DBRTimeEvent valueTemp = pvList.get(fieldName).getDBRTimeEvent();
+					if (valueTemp != null) {
+						SampleValue tempvalue = valueTemp.getSampleValue();
+						parseOtherInfo(tempvalue, mainMeta, fieldName);
+					} else { 
+						logger.warn("Either we probably did not have time to determine " + fieldName + " for " + MetaGet.this.pvName + " or the field does not exist");
+					}
+				}
+			}
+
+			pvList.get(fieldName).stop();
 		}
 	}
 /**
@@ -263,12 +582,15 @@ public class MetaGet implements Runnable {
 	
 	
 	public static boolean abortMetaGet(String pvName) { 
-		MetaGet metaGet = metaGets.get(pvName);
+		MetaGet metaGet = metaGets.remove(pvName);
 		if(metaGet != null) { 
-			metaGets.remove(pvName);
+			metaGet.finished.set(true);
+			waitingMetaGets.remove(metaGet);
 			for(PV pv : metaGet.pvList.values()) { 
 				pv.stop();
 			}
+			if(metaGet.fieldBatch != null) metaGet.fieldBatch.releaseAll();
+			metaGet.releaseAllReservedChannels();
 			return true;
 		}
 		
@@ -278,6 +600,23 @@ public class MetaGet implements Runnable {
 	public static int getPendingMetaGetsSize() { 
 		return metaGets.size();
 	}
+
+	/**
+	 * Number of MetaGets waiting for the number of metadata channels in flight to go down.
+	 * @return
+	 */
+	public static int getWaitingMetaGetsSize() { 
+		return waitingMetaGets.size();
+	}
+
+	/**
+	 * Number of channels (reserved) for MetaGets that have started.
+	 * @return
+	 */
+	public static int getInFlightChannelCount() { 
+		return inFlightChannels.get();
+	}
+
 	public boolean isUsePVAccess() {
 		return usePVAccess;
 	}
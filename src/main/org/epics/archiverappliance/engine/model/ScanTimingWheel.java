@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ConfigService;
+
+/**
+ * Runs the periodic scans for the ScannedArchiveChannels.
+ * Previously, each ScannedArchiveChannel was scheduled as its own task on the engine's ScheduledThreadPoolExecutor; removing a channel meant a purge of the executor's queue which is O(N) and holds up all the other scans.
+ * Here, we use a hashed timing wheel.
+ * <ul>
+ * <li>Scans are grouped by period and phase; all the scans in a group are due at the same tick.
+ * The phase is determined from the name of the channel so that channels with the same period are spread out within the period.</li>
+ * <li>A single timer thread advances the wheel every tick and hands each group that is due to a pool of worker threads in batches.
+ * Groups stay in the wheel until they are due; so a wheel of a fixed size handles arbitrarily long periods.</li>
+ * <li>Adding and removing a scan is a hash map operation on the group.
+ * A group is dropped when its last scan is removed; the timer thread then takes it out of its slot in the wheel.</li>
+ * <li>As with <code>scheduleAtFixedRate</code> with no initial delay, a scan is run once right away when it is added; after that it runs with its group.</li>
+ * <li>If the batches of a group from the previous scan are still running when the group is due again, we skip this scan and count it as a missed scan.
+ * This prevents a backlog of scans from building up if the workers cannot keep up.</li>
+ * </ul>
+ *
+ * These can be configured in archappl.properties
+ * <ul>
+ * <li><code>org.epics.archiverappliance.engine.model.ScanTimingWheel.tickMillis</code> - The resolution of the wheel in milliseconds.</li>
+ * <li><code>org.epics.archiverappliance.engine.model.ScanTimingWheel.workerThreads</code> - The number of threads that run the scans.</li>
+ * <li><code>org.epics.archiverappliance.engine.model.ScanTimingWheel.batchSize</code> - Groups larger than this are split into multiple batches.</li>
+ * </ul>
+ *
+ * @author mshankar
+ *
+ */
+public class ScanTimingWheel {
+	private static final Logger logger = Logger.getLogger(ScanTimingWheel.class);
+	public static final String TICK_MILLIS_PROPERTY = "org.epics.archiverappliance.engine.model.ScanTimingWheel.tickMillis";
+	public static final String WORKER_THREADS_PROPERTY = "org.epics.archiverappliance.engine.model.ScanTimingWheel.workerThreads";
+	public static final String BATCH_SIZE_PROPERTY = "org.epics.archiverappliance.engine.model.ScanTimingWheel.batchSize";
+
+	private static final int WHEEL_SIZE = 512;
+	/**
+	 * We limit the number of phases within a period so that the number of groups is bounded.
+	 */
+	private static final int MAX_PHASES_PER_PERIOD = 64;
+
+	private final long tickMillis;
+	private final long tickNanos;
+	private final int batchSize;
+	private final long startNanos;
+	/**
+	 * The wheel; this is accessed only from the timer thread.
+	 */
+	private final ArrayList<ArrayList<ScanGroup>> wheel;
+	private final ConcurrentHashMap<String, ScanGroup> groups = new ConcurrentHashMap<String, ScanGroup>();
+	private final ConcurrentHashMap<Runnable, ScanGroup> task2Group = new ConcurrentHashMap<Runnable, ScanGroup>();
+	/**
+	 * New groups are added to the wheel and empty groups are removed from the wheel by the timer thread.
+	 */
+	private final ConcurrentLinkedQueue<ScanGroup> newGroups = new ConcurrentLinkedQueue<ScanGroup>();
+	private final ConcurrentLinkedQueue<ScanGroup> removedGroups = new ConcurrentLinkedQueue<ScanGroup>();
+	private final ThreadPoolExecutor workers;
+	private final Thread timerThread;
+	private volatile boolean shutdown = false;
+	private long currentTick = 0;
+
+	private AtomicLong scansRun = new AtomicLong(0);
+	private AtomicLong missedScans = new AtomicLong(0);
+	private AtomicLong batchesRun = new AtomicLong(0);
+	private AtomicLong totalLatenessMillis = new AtomicLong(0);
+	private AtomicLong maxLatenessMillis = new AtomicLong(0);
+	private AtomicLong lateBatches = new AtomicLong(0);
+
+	/**
+	 * All the scans with the same period and phase.
+	 */
+	private static class ScanGroup {
+		final String groupKey;
+		final long periodTicks;
+		final long phaseTicks;
+		final Set<Runnable> tasks = Collections.newSetFromMap(new ConcurrentHashMap<Runnable, Boolean>());
+		final AtomicInteger pendingBatches = new AtomicInteger(0);
+		// Set when the last task in this group is removed; the group is then no longer in the groups map.
+		volatile boolean removed = false;
+		// The tick at which this group is next due; this is accessed only from the timer thread.
+		long deadlineTick = -1;
+
+		ScanGroup(String groupKey, long periodTicks, long phaseTicks) {
+			this.groupKey = groupKey;
+			this.periodTicks = periodTicks;
+			this.phaseTicks = phaseTicks;
+		}
+	}
+
+	public ScanTimingWheel(ConfigService configService) {
+		this(Long.parseLong(configService.getInstallationProperties().getProperty(TICK_MILLIS_PROPERTY, "100")),
+				Integer.parseInt(configService.getInstallationProperties().getProperty(WORKER_THREADS_PROPERTY, "2")),
+				Integer.parseInt(configService.getInstallationProperties().getProperty(BATCH_SIZE_PROPERTY, "1000")));
+	}
+
+	public ScanTimingWheel(long tickMillis, int workerThreads, int batchSize) {
+		this.tickMillis = Math.max(1, tickMillis);
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(this.tickMillis);
+		this.batchSize = Math.max(1, batchSize);
+		this.wheel = new ArrayList<ArrayList<ScanGroup>>(WHEEL_SIZE);
+		for(int i = 0; i < WHEEL_SIZE; i++) {
+			this.wheel.add(new ArrayList<ScanGroup>());
+		}
+		final AtomicInteger workerCount = new AtomicInteger(0);
+		this.workers = new ThreadPoolExecutor(Math.max(1, workerThreads), Math.max(1, workerThreads), 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "Engine scan worker " + workerCount.incrementAndGet());
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		this.startNanos = System.nanoTime();
+		this.timerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runTimer();
+			}
+		}, "Engine scan timing wheel");
+		this.timerThread.setDaemon(true);
+		this.timerThread.start();
+		logger.info("Started scan timing wheel with a tick of " + this.tickMillis + "(ms), " + workerThreads + " worker threads and a batch size of " + this.batchSize);
+	}
+
+	/**
+	 * Scan the task periodically. If the task is already being scanned, it is moved to the new period.
+	 * @param name - Used to determine the phase of the scan within the period.
+	 * @param task - The scan
+	 * @param periodSeconds - The scan period in seconds
+	 */
+	public void add(String name, final Runnable task, double periodSeconds) {
+		long periodTicks = Math.max(1, Math.round(periodSeconds*1000.0/tickMillis));
+		int phasesForPeriod = (int) Math.min(periodTicks, MAX_PHASES_PER_PERIOD);
+		long phaseTicks = (Math.abs((long) name.hashCode()) % phasesForPeriod) * (periodTicks / phasesForPeriod);
+		String groupKey = periodTicks + "|" + phaseTicks;
+		// Adds and removes are serialized so that we never add a task to a group that is being dropped.
+		synchronized(this) {
+			remove(task);
+			ScanGroup group = groups.get(groupKey);
+			if(group == null) {
+				group = new ScanGroup(groupKey, periodTicks, phaseTicks);
+				groups.put(groupKey, group);
+				newGroups.add(group);
+			}
+			group.tasks.add(task);
+			task2Group.put(task, group);
+		}
+		if(!shutdown) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+						scansRun.incrementAndGet();
+					} catch(Throwable t) {
+						logger.error("Exception running scan", t);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stop scanning this task.
+	 * @param task
+	 * @return true if the task was being scanned.
+	 */
+	public synchronized boolean remove(Runnable task) {
+		ScanGroup group = task2Group.remove(task);
+		if(group == null) return false;
+		group.tasks.remove(task);
+		if(group.tasks.isEmpty()) {
+			groups.remove(group.groupKey, group);
+			group.removed = true;
+			removedGroups.add(group);
+		}
+		return true;
+	}
+
+	/**
+	 * The number of groups that are in the wheel; this is mostly for the unit tests.
+	 * @return
+	 */
+	public int getGroupCount() {
+		return groups.size();
+	}
+
+	public int getScanCount() {
+		return task2Group.size();
+	}
+
+	public void shutdown() {
+		shutdown = true;
+		timerThread.interrupt();
+		workers.shutdown();
+	}
+
+	public Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		long batches = batchesRun.get();
+		ret.put("scannedChannels", Integer.toString(task2Group.size()));
+		ret.put("scanGroups", Integer.toString(groups.size()));
+		ret.put("scansRun", Long.toString(scansRun.get()));
+		ret.put("missedScans", Long.toString(missedScans.get()));
+		ret.put("lateBatches", Long.toString(lateBatches.get()));
+		ret.put("avgLatenessMillis", Long.toString(batches > 0 ? totalLatenessMillis.get()/batches : 0));
+		ret.put("maxLatenessMillis", Long.toString(maxLatenessMillis.get()));
+		ret.put("pendingBatches", Integer.toString(workers.getQueue().size()));
+		return ret;
+	}
+
+	private void runTimer() {
+		while(!shutdown) {
+			try {
+				long nextTick = currentTick + 1;
+				long sleepNanos = startNanos + nextTick*tickNanos - System.nanoTime();
+				if(sleepNanos > 0) {
+					LockSupport.parkNanos(sleepNanos);
+					if(System.nanoTime() - startNanos < nextTick*tickNanos) continue;
+				}
+				currentTick = nextTick;
+				ScanGroup newGroup = newGroups.poll();
+				while(newGroup != null) {
+					if(!newGroup.removed) {
+						newGroup.deadlineTick = currentTick + ((newGroup.phaseTicks - currentTick) % newGroup.periodTicks + newGroup.periodTicks) % newGroup.periodTicks;
+						wheel.get((int) (newGroup.deadlineTick % WHEEL_SIZE)).add(newGroup);
+					}
+					newGroup = newGroups.poll();
+				}
+				ScanGroup removedGroup = removedGroups.poll();
+				while(removedGroup != null) {
+					// Groups that were removed before they made it into the wheel have a deadline of -1.
+					if(removedGroup.deadlineTick >= 0) {
+						wheel.get((int) (removedGroup.deadlineTick % WHEEL_SIZE)).remove(removedGroup);
+					}
+					removedGroup = removedGroups.poll();
+				}
+				processSlot();
+			} catch(Throwable t) {
+				logger.error("Exception in the scan timing wheel", t);
+			}
+		}
+		logger.info("Scan timing wheel has been shut down");
+	}
+
+	private void processSlot() {
+		ArrayList<ScanGroup> slot = wheel.get((int) (currentTick % WHEEL_SIZE));
+		if(slot.isEmpty()) return;
+		ArrayList<ScanGroup> remaining = new ArrayList<ScanGroup>(slot.size());
+		ArrayList<ScanGroup> rescheduled = new ArrayList<ScanGroup>();
+		for(ScanGroup group : slot) {
+			if(group.removed) continue;
+			if(group.deadlineTick > currentTick) {
+				remaining.add(group);
+				continue;
+			}
+			fire(group, group.deadlineTick);
+			group.deadlineTick += group.periodTicks;
+			rescheduled.add(group);
+		}
+		slot.clear();
+		slot.addAll(remaining);
+		for(ScanGroup group : rescheduled) {
+			wheel.get((int) (group.deadlineTick % WHEEL_SIZE)).add(group);
+		}
+	}
+
+	private void fire(final ScanGroup group, long deadlineTick) {
+		if(group.tasks.isEmpty()) return;
+		if(group.pendingBatches.get() > 0) {
+			missedScans.addAndGet(group.tasks.size());
+			return;
+		}
+		final long deadlineNanos = startNanos + deadlineTick*tickNanos;
+		Runnable[] tasks = group.tasks.toArray(new Runnable[0]);
+		for(int start = 0; start < tasks.length; start += batchSize) {
+			final Runnable[] batch = (start == 0 && tasks.length <= batchSize) ? tasks : Arrays.copyOfRange(tasks, start, Math.min(start + batchSize, tasks.length));
+			group.pendingBatches.incrementAndGet();
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						recordLateness(deadlineNanos);
+						for(Runnable task : batch) {
+							try {
+								task.run();
+							} catch(Throwable t) {
+								logger.error("Exception running scan", t);
+							}
+						}
+						scansRun.addAndGet(batch.length);
+					} finally {
+						group.pendingBatches.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+
+	private void recordLateness(long deadlineNanos) {
+		long latenessMillis = Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - deadlineNanos));
+		batchesRun.incrementAndGet();
+		totalLatenessMillis.addAndGet(latenessMillis);
+		if(latenessMillis > tickMillis) lateBatches.incrementAndGet();
+		long currentMax = maxLatenessMillis.get();
+		while(latenessMillis > currentMax && !maxLatenessMillis.compareAndSet(currentMax, latenessMillis)) {
+			currentMax = maxLatenessMillis.get();
+		}
+	}
+}
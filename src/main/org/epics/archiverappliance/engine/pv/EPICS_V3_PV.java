@@ -341,7 +341,8 @@ public class EPICS_V3_PV implements PV, ControllingPV, ConnectionListener, Monit
 		PVContext.scheduleCommand(this.name, this.jcaCommandThreadId, this.channel_ref, "connect", new Runnable() {
 			@Override
 			public void run() {
-				//
+				// Searches are rate limited and can run after commands added later; so we could have been stopped in the meantime.
+				if (!running) return;
 				try {
 					state = PVConnectionState.Connecting;
 					// Already attempted a connection?
@@ -359,7 +360,7 @@ public class EPICS_V3_PV implements PV, ControllingPV, ConnectionListener, Monit
 					logger.error("exception when connecting pv "+name, e);
 				}
 			}
-		});
+		}, true);
 	}
 	
 	/**
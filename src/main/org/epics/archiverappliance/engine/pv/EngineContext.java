@@ -42,6 +42,7 @@ import org.epics.archiverappliance.engine.ArchiveEngine;
 import org.epics.archiverappliance.engine.metadata.MetaCompletedListener;
 import org.epics.archiverappliance.engine.metadata.MetaGet;
 import org.epics.archiverappliance.engine.model.ArchiveChannel;
+import org.epics.archiverappliance.engine.model.ScanTimingWheel;
 import org.epics.archiverappliance.engine.writer.WriterRunnable;
 import org.epics.archiverappliance.mgmt.policy.PolicyConfig.SamplingMethod;
 import org.epics.archiverappliance.utils.ui.GetUrlContent;
@@ -71,6 +72,8 @@ public class EngineContext {
 	private boolean isWriteThreadStarted = false;
 	/**the thread pool to schedule all the runnable of the engine*/
 	private ScheduledThreadPoolExecutor scheduler = null;
+	/**the timing wheel that runs the scans for all the ScannedArchiveChannels*/
+	private ScanTimingWheel scanTimingWheel = null;
 	/**the writing period*/
 	private double write_period;
 	/**the channel list of channels for  all pvs,but  without the channels created for the meta fields*/
@@ -173,6 +176,13 @@ public class EngineContext {
 						scheduler.shutdown();
 					}
 					
+					synchronized(EngineContext.this) {
+						if (scanTimingWheel != null) {
+							scanTimingWheel.shutdown();
+							scanTimingWheel = null;
+						}
+					}
+					
 					Iterator<Entry<String, ArchiveChannel>> itChannel = channelList.entrySet().iterator();
 					while (itChannel.hasNext()) {
 						Entry<String, ArchiveChannel> channelentry = (Entry<String, ArchiveChannel>) itChannel.next();
@@ -298,6 +308,10 @@ public class EngineContext {
 		return this.command_threads[jcaCommandThreadId];
 	}
 
+	public int getJCACommandThreadCount() {
+		return this.command_threads.length;
+	}
+
 
 	/**
 	 * Use this to assign JCA command threads to PV's
@@ -368,6 +382,17 @@ public class EngineContext {
 		return scheduler;
 
 	}
+/**
+ * 
+ * @return the timing wheel that runs the scans for the ScannedArchiveChannels
+ */
+	public synchronized ScanTimingWheel getScanTimingWheel() {
+		if (scanTimingWheel == null) {
+			scanTimingWheel = new ScanTimingWheel(configService);
+		}
+		return scanTimingWheel;
+	}
+
 /**
  * 
  * @return the WriterRunnable for the engines
@@ -15,7 +15,13 @@ import gov.aps.jca.event.ContextExceptionListener;
 import gov.aps.jca.event.ContextMessageListener;
 
 import java.io.ByteArrayInputStream;
-import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.config.ConfigService;
@@ -31,6 +37,11 @@ import org.epics.archiverappliance.engine.model.ContextErrorHandler;
  * few requests to queue up, then periodically pumps them out with only a final
  * 'flush'
  * </ol>
+ * Commands are added to a lock-free queue by any thread and executed in batches by this thread.
+ * We execute and flush as soon as <code>batchThreshold</code> commands are queued or the oldest command has waited <code>maxFlushDelayMillis</code>; so, large bursts (like a connect storm on startup) are not released in fixed size sleeps.
+ * Commands that start CA searches are rate limited to <code>maxSearchesPerSecond</code> to avoid search storms.
+ * These are kept in a queue of their own so that searches waiting for the rate limit do not hold up the other commands; so, other commands can run before searches that were added earlier.
+ * These can be configured in archappl.properties using the <code>org.epics.archiverappliance.engine.pv.JCACommandThread.*</code> properties.
  * 
  * @author Kay Kasemir
  * @version Initial version:CSS
@@ -39,13 +50,17 @@ import org.epics.archiverappliance.engine.model.ContextErrorHandler;
 @SuppressWarnings("nls")
 public class JCACommandThread extends Thread {
 	/**
-	 * Delay between queue inspection. Longer delay results in bigger 'batches',
-	 * which is probably good, but also increases the latency.
+	 * Delay between flushes when there is nothing in the queue.
+	 * Even when the command queue is empty, there may be stuff worth flushing.
 	 */
 	final private static long DELAY_MILLIS = 100;
 
 	private static final Logger logger = Logger.getLogger(JCACommandThread.class.getName());
 
+	public static final String BATCH_THRESHOLD_PROPERTY = "org.epics.archiverappliance.engine.pv.JCACommandThread.batchThreshold";
+	public static final String MAX_FLUSH_DELAY_PROPERTY = "org.epics.archiverappliance.engine.pv.JCACommandThread.maxFlushDelayMillis";
+	public static final String MAX_SEARCHES_PER_SECOND_PROPERTY = "org.epics.archiverappliance.engine.pv.JCACommandThread.maxSearchesPerSecond";
+
 	/** The JCA Context */
 	private volatile Context jca_context = null;
 
@@ -55,18 +70,98 @@ public class JCACommandThread extends Thread {
 	/**
 	 * Command queue.
 	 * <p>
-	 * SYNC on access
+	 * This is a lock-free queue; any thread can add commands, only this thread removes them.
 	 */
-	final private LinkedList<Runnable> command_queue = new LinkedList<Runnable>();
+	final private ConcurrentLinkedQueue<QueuedCommand> command_queue = new ConcurrentLinkedQueue<QueuedCommand>();
+	/** Commands that start CA searches; these are rate limited. */
+	final private ConcurrentLinkedQueue<QueuedCommand> search_queue = new ConcurrentLinkedQueue<QueuedCommand>();
+	/** The size of the command_queue and the search_queue; ConcurrentLinkedQueue.size() is O(N) */
+	final private AtomicInteger queue_size = new AtomicInteger(0);
 
 	/** Maximum size that command_queue reached at runtime */
-	private int max_size_reached = 0;
+	private volatile int max_size_reached = 0;
 
 	/** Flag to tell thread to run or quit */
-	private boolean run = false;
+	private volatile boolean run = false;
 	
 	private ConfigService configService;
 
+	/** We execute and flush as soon as we have these many commands in the queue... */
+	private int batchThreshold = 1000;
+	/** ... or when the oldest command in the queue has waited this long. */
+	private long maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(50);
+	/** Commands that start CA searches are limited to this rate; 0 means no limit. */
+	private double maxSearchesPerSecond = 5000;
+	private double searchTokens = 0;
+	private long lastSearchTokenRefillNanos = System.nanoTime();
+
+	private final Histogram batchSizes = new Histogram();
+	private final Histogram queueLatencyMillis = new Histogram();
+	private final AtomicLong commandsExecuted = new AtomicLong(0);
+	private final AtomicLong searchesDelayed = new AtomicLong(0);
+
+	/**
+	 * A command and when it was added to the queue.
+	 */
+	private static class QueuedCommand {
+		final Runnable command;
+		final long enqueuedNanos;
+
+		QueuedCommand(Runnable command) {
+			this.command = command;
+			this.enqueuedNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * A histogram with power of two buckets; bucket 0 has the zeros and bucket i has values in [2^(i-1), 2^i).
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 20;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		public void record(long value) {
+			int bucket = (value <= 0) ? 0 : Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+			buckets.incrementAndGet(bucket);
+		}
+
+		/**
+		 * Add the counts in this histogram to the totals.
+		 * @param totals - An array of size BUCKETS
+		 */
+		public void addTo(long[] totals) {
+			for(int i = 0; i < BUCKETS; i++) {
+				totals[i] += buckets.get(i);
+			}
+		}
+
+		public static long[] newTotals() {
+			return new long[BUCKETS];
+		}
+
+		/**
+		 * Format the non empty buckets as a string like 1-1:10, 2-3:5...
+		 * @param totals
+		 * @return
+		 */
+		public static String format(long[] totals) {
+			StringBuilder buf = new StringBuilder();
+			for(int i = 0; i < BUCKETS; i++) {
+				if(totals[i] == 0) continue;
+				if(buf.length() > 0) buf.append(", ");
+				if(i == 0) {
+					buf.append("0");
+				} else if(i == BUCKETS - 1) {
+					buf.append(">=").append(1L << (i-1));
+				} else {
+					buf.append(1L << (i-1)).append("-").append((1L << i) - 1);
+				}
+				buf.append(":").append(totals[i]);
+			}
+			return buf.toString();
+		}
+	}
+
 	/**
 	 * Construct, but don't start the thread.
 	 * 
@@ -77,7 +172,12 @@ public class JCACommandThread extends Thread {
 		super("JCA Command Thread");
 		// this.jca_context = jca_context;
 		this.configService = configService;
-
+		if(configService != null && configService.getInstallationProperties() != null) {
+			Properties props = configService.getInstallationProperties();
+			this.batchThreshold = Math.max(1, Integer.parseInt(props.getProperty(BATCH_THRESHOLD_PROPERTY, "1000")));
+			this.maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(props.getProperty(MAX_FLUSH_DELAY_PROPERTY, "50")));
+			this.maxSearchesPerSecond = Double.parseDouble(props.getProperty(MAX_SEARCHES_PER_SECOND_PROPERTY, "5000"));
+		}
 	}
 
 	Context getContext() {
@@ -162,11 +262,11 @@ public class JCACommandThread extends Thread {
 
 		for (int m = 0; m < 30; m++) {
 			Thread.sleep(1000);
-			if (command_queue.size() == 0)
+			if (queue_size.get() == 0)
 				break;
 		}
 		run = false;
-		
+		LockSupport.unpark(this);
 	}
 
 	/**
@@ -176,60 +276,175 @@ public class JCACommandThread extends Thread {
 	 * @param command
 	 */
 	public void addCommand(final Runnable command) {
-		synchronized (command_queue) {
-			// New maximum queue length (+1 for the one about to get added)
-			if (command_queue.size() >= max_size_reached)
-				max_size_reached = command_queue.size() + 1;
-			command_queue.addLast(command);
-		}
+		addCommand(command, false);
 	}
 
-	/** @return Oldest queued command or <code>null</code> */
-	private Runnable getCommand() {
-		synchronized (command_queue) {
-			if (command_queue.size() > 0)
-				return command_queue.removeFirst();
+	/**
+	 * Add a command to the queue.
+	 * @param command
+	 * @param startsSearch - Set this for commands that create channels and thus start CA searches; these are rate limited.
+	 */
+	public void addCommand(final Runnable command, boolean startsSearch) {
+		QueuedCommand queuedCommand = new QueuedCommand(command);
+		if (startsSearch) {
+			search_queue.add(queuedCommand);
+		} else {
+			command_queue.add(queuedCommand);
 		}
-		return null;
+		int size = queue_size.incrementAndGet();
+		if (size > max_size_reached)
+			max_size_reached = size;
+		// Wake up the command thread if it is waiting for the first command (searches may be waiting for the rate limit) or for a full batch.
+		if (size == 1 || size == batchThreshold || (!startsSearch && command_queue.peek() == queuedCommand))
+			LockSupport.unpark(this);
 	}
 
 	@Override
 	public void run() {
 		initContext();
 
+		long lastFlushNanos = System.nanoTime();
 		while (run) {
-			// Execute all the commands currently queued...
-			Runnable command = getCommand();
-			while (command != null) { // Execute one command
-				try {
-					command.run();
-				} catch (Throwable ex) {
-					logger.error("exception when command runs  in JCACommandThread",
-							ex);
-				}
-				// Get next command
-				command = getCommand();
-			}
-			// Flush.
-			// Once, after executing all the accumulated commands.
-			// Even when the command queue was empty,
-			// there may be stuff worth flushing.
 			try {
-				if(jca_context!=null)jca_context.flushIO();
+				QueuedCommand head = command_queue.peek();
+				QueuedCommand searchHead = search_queue.peek();
+				long searchWaitNanos = (searchHead == null) ? Long.MAX_VALUE : nanosToNextSearchToken();
+				if (head == null && searchWaitNanos > 0) {
+					// Nothing we can run now; wait for a command, for the next search token or till it's time for the periodic flush.
+					long periodicFlushNanos = TimeUnit.MILLISECONDS.toNanos(DELAY_MILLIS) - (System.nanoTime() - lastFlushNanos);
+					if (periodicFlushNanos > 0) {
+						LockSupport.parkNanos(Math.min(periodicFlushNanos, searchWaitNanos));
+						continue;
+					}
+					flush();
+					lastFlushNanos = System.nanoTime();
+					continue;
+				}
+
+				// Wait for a full batch or till the oldest command that we can run has waited long enough.
+				QueuedCommand oldest = (head == null || (searchWaitNanos == 0 && searchHead.enqueuedNanos < head.enqueuedNanos)) ? searchHead : head;
+				long waitNanos = oldest.enqueuedNanos + maxFlushDelayNanos - System.nanoTime();
+				while (run && waitNanos > 0 && queue_size.get() < batchThreshold) {
+					LockSupport.parkNanos(waitNanos);
+					waitNanos = oldest.enqueuedNanos + maxFlushDelayNanos - System.nanoTime();
+				}
+
+				// Execute a batch of commands; the other commands first as these are never held up by the search rate limit...
+				int executed = 0;
+				QueuedCommand command;
+				while (executed < batchThreshold && (command = command_queue.poll()) != null) {
+					execute(command);
+					executed++;
+				}
+				boolean rateLimited = false;
+				while (executed < batchThreshold && search_queue.peek() != null) {
+					if (!takeSearchToken()) {
+						rateLimited = true;
+						break;
+					}
+					execute(search_queue.poll());
+					executed++;
+				}
+				commandsExecuted.addAndGet(executed);
+				if (executed > 0) batchSizes.record(executed);
+				if (rateLimited) searchesDelayed.incrementAndGet();
+
+				// ... and flush once after executing the batch.
+				flush();
+				lastFlushNanos = System.nanoTime();
 			} catch (Throwable ex) {
-				logger.error("exception when flushing io  in JCACommandThread",
-						ex);
-			}
-			// Then wait.
-			try {
-				Thread.sleep(DELAY_MILLIS);
-			} catch (InterruptedException ex) { /* don't even ignore */
-				logger.error("exception when thread sleeping in JCACommandThread",
-						ex);
+				logger.error("exception in JCACommandThread", ex);
 			}
 		}
 	}
 
+	private void execute(QueuedCommand command) {
+		queue_size.decrementAndGet();
+		queueLatencyMillis.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - command.enqueuedNanos));
+		try {
+			command.command.run();
+		} catch (Throwable ex) {
+			logger.error("exception when command runs  in JCACommandThread",
+					ex);
+		}
+	}
+
+	private void flush() {
+		try {
+			if(jca_context!=null)jca_context.flushIO();
+		} catch (Throwable ex) {
+			logger.error("exception when flushing io  in JCACommandThread",
+					ex);
+		}
+	}
+
+	/**
+	 * Token bucket for CA searches; we allow bursts of up to a tenth of a second's worth of searches.
+	 * @return true if we can start a search now.
+	 */
+	private boolean takeSearchToken() {
+		if (maxSearchesPerSecond <= 0) return true;
+		refillSearchTokens();
+		if (searchTokens >= 1.0) {
+			searchTokens -= 1.0;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return How long we have to wait for the next search token; 0 if we can start a search now.
+	 */
+	private long nanosToNextSearchToken() {
+		if (maxSearchesPerSecond <= 0) return 0;
+		refillSearchTokens();
+		if (searchTokens >= 1.0) return 0;
+		return Math.max(1, (long) Math.ceil(((1.0 - searchTokens)*TimeUnit.SECONDS.toNanos(1))/maxSearchesPerSecond));
+	}
+
+	private void refillSearchTokens() {
+		long now = System.nanoTime();
+		double burst = Math.max(1.0, maxSearchesPerSecond/10.0);
+		searchTokens = Math.min(burst, searchTokens + ((now - lastSearchTokenRefillNanos)*maxSearchesPerSecond)/TimeUnit.SECONDS.toNanos(1));
+		lastSearchTokenRefillNanos = now;
+	}
+
+	/**
+	 * @return The number of commands currently in the queue.
+	 */
+	public int getQueueSize() {
+		return queue_size.get();
+	}
+
+	/**
+	 * @return The maximum size the queue has reached.
+	 */
+	public int getMaxQueueSize() {
+		return max_size_reached;
+	}
+
+	public long getCommandsExecuted() {
+		return commandsExecuted.get();
+	}
+
+	/**
+	 * @return The number of batches where searches had to wait for the CA search rate limit.
+	 */
+	public long getSearchesDelayed() {
+		return searchesDelayed.get();
+	}
+
+	public Histogram getBatchSizes() {
+		return batchSizes;
+	}
+
+	/**
+	 * @return Histogram of the time (in milliseconds) commands spend in the queue.
+	 */
+	public Histogram getQueueLatencyMillis() {
+		return queueLatencyMillis;
+	}
+
 	void destoryContext() {
 		addCommand(new Runnable()
 
@@ -153,7 +153,7 @@ public class PVContext {
 	 * @throws IllegalStateException
 	 * @see #getChannel(String)
 	 */
-	synchronized static void releaseChannel(
+	public synchronized static void releaseChannel(
 			final RefCountedChannel channel_ref,
 			final ConnectionListener conn_callback)
 			throws IllegalStateException, CAException {
@@ -187,6 +187,18 @@ public class PVContext {
 	 * @param command - The runnable that will run in the specified command thread 
 	 */
 	public static void scheduleCommand(String pvName, int jcaCommandThreadId, RefCountedChannel channel_ref, String msg, final Runnable command) {
+		scheduleCommand(pvName, jcaCommandThreadId, channel_ref, msg, command, false);
+	}
+
+	/**
+	 * Add a command to the JCACommandThread.
+	 * @param pvName - The name of the PV that this applies to
+	 * @param jcaCommandThreadId - The JCA Command thread for this PV.
+	 * @param channel_ref - this can be null
+	 * @param command - The runnable that will run in the specified command thread 
+	 * @param startsSearch - Set this if the command creates a channel; these commands are rate limited.
+	 */
+	public static void scheduleCommand(String pvName, int jcaCommandThreadId, RefCountedChannel channel_ref, String msg, final Runnable command, boolean startsSearch) {
 		try { 
 			if(channel_ref != null && channel_ref.getChannel() != null) { 
 				Context context = channel_ref.getChannel().getContext();
@@ -202,7 +214,7 @@ public class PVContext {
 		} catch(Throwable t) { 
 			logger.error("Exception scheduling command for pv " + pvName, t);
 		}
-		configservice.getEngineContext().getJCACommandThread(jcaCommandThreadId).addCommand(command);
+		configservice.getEngineContext().getJCACommandThread(jcaCommandThreadId).addCommand(command, startsSearch);
 	}
 
 	/**
@@ -24,6 +24,7 @@ import org.apache.log4j.Logger;
 import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.engine.epics.JCAEventDispatcherBasedOnPVName;
 /***
  * PVMetrics includes the dynamic information of the pv
  * @author Luofeng Li
@@ -502,6 +503,7 @@ public class PVMetrics {
 		addDetailedStatus(statuses, "How many events lost because the sample buffer is full so far?", Long.toString(this.sampleBufferFullLostEventCount));
 		addDetailedStatus(statuses, "How many events lost because the DBR_Type of the PV has changed from what it used to be?", Long.toString(this.invalidTypeLostEventCount));
 		addDetailedStatus(statuses, "How many events lost totally so far?", Long.toString(this.timestampWrongEventCount + this.sampleBufferFullLostEventCount + this.invalidTypeLostEventCount));
+		addDetailedStatus(statuses, "How many monitor events dropped by the CA event dispatcher as its queue was full?", Long.toString(JCAEventDispatcherBasedOnPVName.getDroppedEvents(pvName)));
 		if (storageSize > 0 && eventCounts > 0) {
 			addDetailedStatus(statuses, "Average bytes per event", twoSignificantDigits.format(((double) this.storageSize) / this.eventCounts));
 		}
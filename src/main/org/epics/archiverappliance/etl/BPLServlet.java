@@ -25,6 +25,7 @@ import org.epics.archiverappliance.etl.bpl.ConsolidatePBFilesForOnePV;
 import org.epics.archiverappliance.etl.bpl.DeletePV;
 import org.epics.archiverappliance.etl.bpl.GetLastKnownEventTimeStamp;
 import org.epics.archiverappliance.etl.bpl.PauseArchivingPV;
+import org.epics.archiverappliance.etl.bpl.ValidateStore;
 import org.epics.archiverappliance.etl.bpl.reports.ApplianceMetrics;
 import org.epics.archiverappliance.etl.bpl.reports.ApplianceMetricsDetails;
 import org.epics.archiverappliance.etl.bpl.reports.InstanceReportDetails;
@@ -32,6 +33,7 @@ import org.epics.archiverappliance.etl.bpl.reports.PVDetails;
 import org.epics.archiverappliance.etl.bpl.reports.PVsByStorageConsumed;
 import org.epics.archiverappliance.etl.bpl.reports.StorageDetailsForAppliance;
 import org.epics.archiverappliance.etl.bpl.reports.StorageMetricsForAppliance;
+import org.epics.archiverappliance.etl.bpl.reports.StoreValidationReport;
 
 /**
  * The main business logic servlet for ETL. All BPLActions are registered here.
@@ -57,6 +59,8 @@ public class BPLServlet extends HttpServlet {
 		getActions.put("/deletePV", DeletePV.class);
 		getActions.put("/getProcessMetrics", ProcessMetricsReport.class);
 		getActions.put("/getVersion", GetVersion.class);
+		getActions.put("/validateStore", ValidateStore.class);
+		getActions.put("/getStoreValidationReport", StoreValidationReport.class);
 	}
 
 
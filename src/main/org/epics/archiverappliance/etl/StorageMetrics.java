@@ -31,4 +31,16 @@ public interface StorageMetrics {
 	 * @return
 	 */
 	public long spaceConsumedByPV(String pvName) throws IOException;
+	/**
+	 * Gets an estimate of the number of events for this PV on this device.
+	 * @param pvName
+	 * @return -1 if this device does not have an estimate.
+	 */
+	public long estimatedEventsForPV(String pvName) throws IOException;
+	/**
+	 * Gets the space consumed by all the PVs on this device as maintained by the device's accounting.
+	 * This is not the same as the space used on the device as reported by the file system. 
+	 * @return -1 if this device does not maintain this information.
+	 */
+	public long spaceConsumedByAllPVs() throws IOException;
 }
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.etl.bpl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.StoragePlugin;
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
+import org.json.simple.JSONValue;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoreValidator;
+
+/**
+ * Validate all the partitions of all the PVs in this appliance in a PlainPB store; optionally repairing the invalid ones.
+ * The validation runs in the background; use <code>getStoreValidationReport</code> to follow its progress.
+ * <ul>
+ * <li><code>storage</code> - The name of the store; for example, MTS.</li>
+ * <li><code>repair</code> - Set this to true to repair invalid partitions.</li>
+ * <li><code>cancel</code> - Set this to true to stop the active validation of this store; the next validation continues from where this one stopped.</li>
+ * </ul>
+ * @author mshankar
+ *
+ */
+public class ValidateStore implements BPLAction {
+	private static final Logger logger = Logger.getLogger(ValidateStore.class);
+
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		String storageName = req.getParameter("storage");
+		if(storageName == null || storageName.equals("")) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		boolean repair = Boolean.parseBoolean(req.getParameter("repair"));
+		boolean cancel = Boolean.parseBoolean(req.getParameter("cancel"));
+
+		HashMap<String, Object> infoValues = new HashMap<String, Object>();
+		if(cancel) {
+			PlainPBStoreValidator validator = PlainPBStoreValidator.getExistingValidator(storageName);
+			if(validator == null || !validator.isRunning()) {
+				infoValues.put("status", "ok");
+				infoValues.put("desc", "There is no validation of " + storageName + " to cancel");
+			} else {
+				validator.cancel();
+				infoValues.put("status", "ok");
+				infoValues.put("desc", "Cancelled the validation of " + storageName);
+			}
+		} else {
+			LinkedHashMap<String, PlainPBStoragePlugin> pvs = getPVsInStore(configService, storageName);
+			if(pvs.isEmpty()) {
+				logger.warn("Cannot find any PVs in a PlainPB store called " + storageName);
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			PlainPBStoreValidator validator = PlainPBStoreValidator.getValidator(storageName, configService);
+			if(validator.start(pvs, repair)) {
+				infoValues.put("status", "ok");
+				infoValues.put("desc", "Started validating " + pvs.size() + " PVs in " + storageName + (repair ? " and repairing invalid partitions" : ""));
+			} else {
+				infoValues.put("status", "failed");
+				infoValues.put("desc", "The validation of " + storageName + " is already running");
+			}
+		}
+		resp.setContentType(MimeTypeConstants.APPLICATION_JSON);
+		try(PrintWriter out = resp.getWriter()) {
+			out.println(JSONValue.toJSONString(infoValues));
+		}
+	}
+
+	/**
+	 * Find the PVs in this appliance that have a PlainPB store with this name.
+	 * @param configService
+	 * @param storageName
+	 * @return The PVs and the storage plugin for the store for each PV.
+	 */
+	private static LinkedHashMap<String, PlainPBStoragePlugin> getPVsInStore(ConfigService configService, String storageName) {
+		LinkedHashMap<String, PlainPBStoragePlugin> ret = new LinkedHashMap<String, PlainPBStoragePlugin>();
+		// Most PVs use the same few data store URLs; so we only parse each one once.
+		HashMap<String, StoragePlugin> parsedStores = new HashMap<String, StoragePlugin>();
+		for(String pvName : configService.getPVsForThisAppliance()) {
+			PVTypeInfo typeInfo = configService.getTypeInfoForPV(pvName);
+			if(typeInfo == null || typeInfo.getDataStores() == null) continue;
+			for(String dataStore : typeInfo.getDataStores()) {
+				StoragePlugin storagePlugin = parsedStores.get(dataStore);
+				if(storagePlugin == null && !parsedStores.containsKey(dataStore)) {
+					try {
+						storagePlugin = StoragePluginURLParser.parseStoragePlugin(dataStore, configService);
+					} catch(IOException ex) {
+						logger.error("Exception parsing data store " + dataStore + " for PV " + pvName, ex);
+					}
+					parsedStores.put(dataStore, storagePlugin);
+				}
+				if(storagePlugin instanceof PlainPBStoragePlugin && storageName.equals(storagePlugin.getName())) {
+					ret.put(pvName, (PlainPBStoragePlugin) storagePlugin);
+					break;
+				}
+			}
+		}
+		return ret;
+	}
+}
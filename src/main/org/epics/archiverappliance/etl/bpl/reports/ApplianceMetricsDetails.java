@@ -24,6 +24,13 @@ import org.epics.archiverappliance.config.ConfigService;
 import org.epics.archiverappliance.etl.common.ETLMetricsForLifetime;
 import org.json.simple.JSONValue;
 
+import edu.stanford.slac.archiverappliance.ObjectStorePB.ObjectStorePBStoragePlugin;
+import edu.stanford.slac.archiverappliance.PlainPB.PBFileInfoCache;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBLastKnownEventIndex;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBPostProcessorFanOut;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStorageAccounting;
+
 /**
  * Get the metrics details for an appliance for ETL. 
  * @author mshankar
@@ -85,6 +92,36 @@ public class ApplianceMetricsDetails implements BPLAction {
 			}
 		}
 
+		for(Map.Entry<String, String> cacheMetric : PBFileInfoCache.getMetrics().entrySet()) {
+			addDetailedStatus(details, "PB file info cache " + cacheMetric.getKey(), cacheMetric.getValue());
+		}
+
+		for(Map.Entry<String, Map<String, String>> accountingMetrics : PlainPBStorageAccounting.getAllMetrics().entrySet()) {
+			for(Map.Entry<String, String> accountingMetric : accountingMetrics.getValue().entrySet()) {
+				addDetailedStatus(details, "Storage accounting for " + accountingMetrics.getKey() + " " + accountingMetric.getKey(), accountingMetric.getValue());
+			}
+		}
+
+		for(Map.Entry<String, Map<String, String>> indexMetrics : PlainPBLastKnownEventIndex.getAllMetrics().entrySet()) {
+			for(Map.Entry<String, String> indexMetric : indexMetrics.getValue().entrySet()) {
+				addDetailedStatus(details, "Last known event index for " + indexMetrics.getKey() + " " + indexMetric.getKey(), indexMetric.getValue());
+			}
+		}
+
+		for(Map.Entry<String, String> fanOutMetric : PlainPBPostProcessorFanOut.getMetrics().entrySet()) {
+			addDetailedStatus(details, "Post processor data generation " + fanOutMetric.getKey(), fanOutMetric.getValue());
+		}
+
+		PlainPBCompactor compactor = PlainPBCompactor.getCompactor();
+		if(compactor != null) {
+			for(Map.Entry<String, String> compactionMetric : compactor.getMetrics().entrySet()) {
+				addDetailedStatus(details, "Compaction " + compactionMetric.getKey(), compactionMetric.getValue());
+			}
+		}
+
+		for(Map.Entry<String, String> objectStoreMetric : ObjectStorePBStoragePlugin.getMetrics().entrySet()) {
+			addDetailedStatus(details, "Object store " + objectStoreMetric.getKey(), objectStoreMetric.getValue());
+		}
 
 		return JSONValue.toJSONString(details);
 	}
@@ -10,6 +10,7 @@ package org.epics.archiverappliance.etl.bpl.reports;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.DecimalFormat;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -22,10 +23,13 @@ import org.apache.log4j.Logger;
 import org.epics.archiverappliance.common.BPLAction;
 import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.etl.StorageMetrics;
 import org.epics.archiverappliance.etl.common.ETLPVLookupItems;
 import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
 import org.json.simple.JSONValue;
 
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoreValidator;
+
 /**
  * Gets the ETL details of a PV.
  * @author mshankar
@@ -107,7 +111,34 @@ public class PVDetails implements BPLAction {
 				addDetailedStatus(statuses, "ETL " + lookupItem.getLifetimeorder() + " number of times we performed ETL", "None so far");
 			}
 		}
+		addStorageConsumed(statuses, configService, pvName, twoSignificantDigits);
+		for(Map.Entry<String, String> validationResult : PlainPBStoreValidator.getResultsForPV(pvName).entrySet()) {
+			addDetailedStatus(statuses, validationResult.getKey(), validationResult.getValue());
+		}
 		return JSONValue.toJSONString(statuses);
 	}
 
+	/**
+	 * Add the space consumed and the estimated number of events for this PV in each of the stores in this appliance.
+	 */
+	private static void addStorageConsumed(LinkedList<Map<String, String>> statuses, ConfigService configService, String pvName, DecimalFormat twoSignificantDigits) {
+		HashSet<String> storesSeen = new HashSet<String>();
+		for(ETLPVLookupItems lookupItem : configService.getETLLookup().getLookupItemsForPV(pvName)) {
+			for(Object store : new Object[] { lookupItem.getETLSource(), lookupItem.getETLDest() }) {
+				if(!(store instanceof StorageMetrics)) continue;
+				StorageMetrics storageMetrics = (StorageMetrics) store;
+				if(!storesSeen.add(storageMetrics.getName())) continue;
+				try {
+					addDetailedStatus(statuses, "Storage consumed in " + storageMetrics.getName() + " (MB)", twoSignificantDigits.format(storageMetrics.spaceConsumedByPV(pvName)*1.0/(1024*1024)));
+					long estimatedEvents = storageMetrics.estimatedEventsForPV(pvName);
+					if(estimatedEvents >= 0) {
+						addDetailedStatus(statuses, "Estimated events in " + storageMetrics.getName(), Long.toString(estimatedEvents));
+					}
+				} catch(IOException ex) {
+					logger.warn("Exception determining the storage consumed by " + pvName + " in " + storageMetrics.getName(), ex);
+				}
+			}
+		}
+	}
+
 }
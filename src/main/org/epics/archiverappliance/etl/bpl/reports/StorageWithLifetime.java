@@ -44,6 +44,7 @@ public class StorageWithLifetime {
 				storageMetrics.put("identity", storage.storageMetricsAPI.getName());
 				storageMetrics.put("totalSpace", Long.toString(storage.storageMetricsAPI.getTotalSpace(metricsForLifetime)));
 				storageMetrics.put("availableSpace", Long.toString(storage.storageMetricsAPI.getUsableSpace(metricsForLifetime)));
+				storageMetrics.put("spaceConsumedByPVs", Long.toString(storage.storageMetricsAPI.spaceConsumedByAllPVs()));
 				double avgTimeIntoThisDestInMillis = storage.totalETLTimeIntoThisDestInMillis/storage.maxTotalETLRunsIntoThisDest;
 				storageMetrics.put("avgTimeConsumedMs", Double.toString(avgTimeIntoThisDestInMillis));
 				storageMetrics.put("avgTimeConsumedPercent", Double.toString((avgTimeIntoThisDestInMillis/1000)/storage.minPartitionSourceGranularityInSecs));
@@ -73,6 +74,8 @@ public class StorageWithLifetime {
 				double availbleSpaceGB = storage.storageMetricsAPI.getUsableSpace(metricsForLifetime)*1.0/(1024*1024*1024);
 				detail.put("available_space", twoSignificantDigits.format(availbleSpaceGB));
 				detail.put("available_space_percent", twoSignificantDigits.format(availbleSpaceGB*100/totalSpaceGB));
+				long spaceConsumedByPVs = storage.storageMetricsAPI.spaceConsumedByAllPVs();
+				detail.put("space_consumed_by_pvs", spaceConsumedByPVs >= 0 ? twoSignificantDigits.format(spaceConsumedByPVs*1.0/(1024*1024*1024)) : "N/A");
 				double avgTimeIntoThisDestInMillis = storage.totalETLTimeIntoThisDestInMillis/storage.maxTotalETLRunsIntoThisDest;
 				detail.put("time_copy_data_into_store", twoSignificantDigits.format(avgTimeIntoThisDestInMillis/1000));
 				// Copy time as percent of source granularities
@@ -149,11 +152,11 @@ public class StorageWithLifetime {
 
 	/**
 	 * Get a list of PVs and the storage they consume on all the devices sorted by desc storage consumed...
+	 * Stores that maintain per PV accounting answer this from memory; the first request after startup for PVs that the accounting does not know about yet still walks the file system.
 	 * @param limit
 	 * @return
 	 */
 	public static LinkedList<StorageConsumedByPV> getPVSByStorageConsumed(ConfigService configService) throws IOException {
-		//TODO there may be some problems . When visiting the web page of reports and look up the "PVs by storage consumed(100)" , it takes a long time
 		HashMap<String, HashMap<String, StorageMetrics>> storesForAllPVs = getStoresForAllPVs(configService);
 		LinkedList<StorageConsumedByPV> storageConsumedList = new LinkedList<StorageConsumedByPV>();
 		for(String pvName: storesForAllPVs.keySet()) {
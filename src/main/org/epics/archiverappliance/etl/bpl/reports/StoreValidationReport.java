@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.etl.bpl.reports;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
+import org.json.simple.JSONValue;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoreValidator;
+
+/**
+ * The progress of the latest validation of a PlainPB store and the PVs that have invalid or repaired partitions.
+ * @author mshankar
+ *
+ */
+public class StoreValidationReport implements BPLAction {
+
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		String storageName = req.getParameter("storage");
+		if(storageName == null || storageName.equals("")) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		PlainPBStoreValidator validator = PlainPBStoreValidator.getExistingValidator(storageName);
+		if(validator == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		LinkedHashMap<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("status", validator.getStatus());
+		LinkedList<Map<String, Object>> pvsWithProblems = new LinkedList<Map<String, Object>>();
+		for(Map.Entry<String, List<String>> entry : validator.getPVsWithProblems().entrySet()) {
+			LinkedHashMap<String, Object> pvProblems = new LinkedHashMap<String, Object>();
+			pvProblems.put("pvName", entry.getKey());
+			pvProblems.put("problems", entry.getValue());
+			pvsWithProblems.add(pvProblems);
+		}
+		report.put("pvsWithProblems", pvsWithProblems);
+		resp.setContentType(MimeTypeConstants.APPLICATION_JSON);
+		try(PrintWriter out = resp.getWriter()) {
+			out.println(JSONValue.toJSONString(report));
+		}
+	}
+}
@@ -31,6 +31,8 @@ import org.epics.archiverappliance.etl.ETLDest;
 import org.epics.archiverappliance.etl.ETLSource;
 import org.epics.archiverappliance.etl.StorageMetrics;
 
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBCompactor;
+
 /**
  * Holds runtime state for ETL.
  * For now, gets all of the info from PVTypeInfo.
@@ -114,6 +116,7 @@ public final class PBThreeTierETLPVLookup {
 				}
 			}
 		}, DEFAULT_ETL_INITIAL_DELAY, DEFAULT_ETL_PERIOD, TimeUnit.SECONDS);
+		PlainPBCompactor.startCompaction(configService);
 		configlogger.debug("Done initializing ETL post startup.");
 	}
 	
@@ -789,6 +789,7 @@ function getStorageMetricsForAppliance(instanceidentity) {
 				'</td><td>' + curdata.total_space +  
 				'</td><td>' + curdata.available_space +  
 				'</td><td>' + curdata.available_space_percent +  
+				'</td><td>' + curdata.space_consumed_by_pvs +  
 				'</td></tr>';
 				detailsTable.append(row);
 			});
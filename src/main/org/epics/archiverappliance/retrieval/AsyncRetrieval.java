@@ -0,0 +1,494 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ConfigService;
+
+/**
+ * Process retrieval requests off the servlet container's threads.
+ * <ol>
+ * <li>The request is put into async mode and the container's thread is released immediately.</li>
+ * <li>A producer thread reads from the stores and generates the response into a bounded buffer of chunks.
+ * If the client is slow and the buffer is full, the producer is paused till the client catches up.</li>
+ * <li>A writer thread is used only when there are chunks to send; it sends them to the client and completes the request once the producer is done.</li>
+ * <li>If the client disconnects (or the async request times out), the request is marked as cancelled and the producer's next write fails; this stops the storage reads between events.
+ * We do not interrupt the producer; an interrupt closes any FileChannel the producer is reading from and these may be shared or cached.</li>
+ * </ol>
+ * We are limited to the Servlet 3.0 API; so writes to the client are still blocking.
+ * However, a slow client only holds a writer thread (and its share of the buffer) and not one of the container's threads.
+ * If all the producers are busy, the request is processed on the container's thread as before.
+ * Async retrieval is turned off by default; set <code>enabled</code> to true to turn it on.
+ *
+ * This can be configured in archappl.properties using <code>org.epics.archiverappliance.retrieval.AsyncRetrieval.</code> followed by
+ * <code>enabled</code>, <code>producerThreads</code>, <code>writerThreads</code>, <code>maxBufferKB</code>, <code>chunkKB</code> and <code>asyncTimeoutSeconds</code> (0 for no timeout).
+ *
+ * @author mshankar
+ *
+ */
+public class AsyncRetrieval {
+	private static final Logger logger = Logger.getLogger(AsyncRetrieval.class.getName());
+	private static final String PROPERTY_PREFIX = "org.epics.archiverappliance.retrieval.AsyncRetrieval.";
+
+	private static volatile AsyncRetrieval theAsyncRetrieval = null;
+
+	/**
+	 * Generates the response for a request; this is called on a producer thread with a response that writes into the bounded buffer.
+	 */
+	public interface RetrievalHandler {
+		public void handle(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException;
+	}
+
+	private final ThreadPoolExecutor producers;
+	private final ThreadPoolExecutor writers;
+	private final int maxBufferedBytes;
+	private final int chunkSize;
+	private final long asyncTimeoutMillis;
+
+	private final AtomicLong asyncRequests = new AtomicLong(0);
+	private final AtomicLong inlineRequests = new AtomicLong(0);
+	private final AtomicLong cancelledRequests = new AtomicLong(0);
+	private final AtomicLong producerPauses = new AtomicLong(0);
+	private final AtomicLong bufferedBytes = new AtomicLong(0);
+
+	/**
+	 * Configure async retrieval for this webapp; this is called when the retrieval servlet initializes.
+	 * @param configService
+	 */
+	public static synchronized void configure(ConfigService configService) {
+		if(theAsyncRetrieval != null) return;
+		Properties installationProperties = configService.getInstallationProperties();
+		if(!Boolean.parseBoolean(installationProperties.getProperty(PROPERTY_PREFIX + "enabled", "false"))) {
+			logger.info("Async retrieval is turned off");
+			return;
+		}
+		final AsyncRetrieval asyncRetrieval = new AsyncRetrieval(
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "producerThreads", "32")),
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "writerThreads", "32")),
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "maxBufferKB", "1024"))*1024,
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "chunkKB", "64"))*1024,
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "asyncTimeoutSeconds", "0"))*1000);
+		configService.addShutdownHook(new Runnable() {
+			@Override
+			public void run() {
+				logger.info("Shutting down async retrieval");
+				asyncRetrieval.shutdown();
+			}
+		});
+		theAsyncRetrieval = asyncRetrieval;
+	}
+
+	/**
+	 * @return Async retrieval for this webapp; null if turned off or if the retrieval servlet has not been initialized.
+	 */
+	public static AsyncRetrieval getAsyncRetrieval() {
+		return theAsyncRetrieval;
+	}
+
+	AsyncRetrieval(int producerThreads, int writerThreads, int maxBufferedBytes, int chunkSize, long asyncTimeoutMillis) {
+		this.producers = makeExecutor("Retrieval producer ", producerThreads);
+		this.writers = makeExecutor("Retrieval writer ", writerThreads);
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.chunkSize = Math.min(chunkSize, maxBufferedBytes);
+		this.asyncTimeoutMillis = asyncTimeoutMillis;
+		logger.info("Async retrieval using " + producerThreads + " producers, " + writerThreads + " writers and a buffer of " + maxBufferedBytes + " bytes per request");
+	}
+
+	private static ThreadPoolExecutor makeExecutor(final String threadNamePrefix, int threads) {
+		final AtomicInteger threadNum = new AtomicInteger(0);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, threadNamePrefix + threadNum.incrementAndGet());
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Process this request asynchronously.
+	 * @param req
+	 * @param resp
+	 * @param handler
+	 * @return false if this request cannot be processed asynchronously; the caller should then process the request itself.
+	 */
+	public boolean process(HttpServletRequest req, HttpServletResponse resp, RetrievalHandler handler) {
+		if(!req.isAsyncSupported()) {
+			return false;
+		}
+		AsyncContext asyncContext = req.startAsync(req, resp);
+		asyncContext.setTimeout(asyncTimeoutMillis);
+		AsyncResponse asyncResponse = new AsyncResponse(asyncContext, resp);
+		asyncContext.addListener(asyncResponse);
+		Producer producer = new Producer(asyncResponse, handler, req);
+		try {
+			producers.execute(producer);
+			asyncRequests.incrementAndGet();
+		} catch(RejectedExecutionException ex) {
+			logger.warn("All retrieval producers are busy; processing " + req.getPathInfo() + " on the container's thread");
+			inlineRequests.incrementAndGet();
+			producer.run();
+		}
+		return true;
+	}
+
+	public void shutdown() {
+		producers.shutdownNow();
+		writers.shutdownNow();
+	}
+
+	public Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		ret.put("asyncRequests", Long.toString(asyncRequests.get()));
+		ret.put("inlineRequests", Long.toString(inlineRequests.get()));
+		ret.put("cancelledRequests", Long.toString(cancelledRequests.get()));
+		ret.put("producerPauses", Long.toString(producerPauses.get()));
+		ret.put("activeProducers", Integer.toString(producers.getActiveCount()));
+		ret.put("activeWriters", Integer.toString(writers.getActiveCount()));
+		ret.put("bufferedKB", Long.toString(bufferedBytes.get()/1024));
+		return ret;
+	}
+
+	private static boolean isClientAbort(Throwable t) {
+		// We check for ClientAbortException etc this way to avoid including tomcat jars in the build path.
+		return t != null && t.toString() != null && t.toString().contains("ClientAbortException");
+	}
+
+	/**
+	 * Runs the handler on a producer thread.
+	 */
+	private class Producer implements Runnable {
+		private final AsyncResponse asyncResponse;
+		private final RetrievalHandler handler;
+		private final HttpServletRequest req;
+
+		Producer(AsyncResponse asyncResponse, RetrievalHandler handler, HttpServletRequest req) {
+			this.asyncResponse = asyncResponse;
+			this.handler = handler;
+			this.req = req;
+		}
+
+		@Override
+		public void run() {
+				try {
+				handler.handle(req, asyncResponse.wrapper);
+			} catch(Throwable t) {
+				if(asyncResponse.cancelled || isClientAbort(t)) {
+					logger.debug("Client disconnected processing " + req.getPathInfo(), t);
+				} else {
+					logger.error("Exception processing " + req.getPathInfo(), t);
+					if(!asyncResponse.wrapper.isCommitted()) {
+						try { asyncResponse.resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR); } catch(Throwable t2) { logger.debug("Exception sending error", t2); }
+					}
+				}
+			} finally {
+				asyncResponse.producerDone();
+			}
+		}
+	}
+
+	/**
+	 * The state of one async request - the bounded buffer of chunks between the producer and the writer.
+	 */
+	private class AsyncResponse implements AsyncListener, Runnable {
+		private final AsyncContext asyncContext;
+		private final HttpServletResponse resp;
+		private final BufferedOutputStream stream = new BufferedOutputStream();
+		private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+		private int queuedBytes = 0;
+		private boolean drainScheduled = false;
+		private boolean producerDone = false;
+		private boolean completed = false;
+		private volatile boolean cancelled = false;
+		private final HttpServletResponseWrapper wrapper;
+
+		AsyncResponse(AsyncContext asyncContext, HttpServletResponse resp) {
+			this.asyncContext = asyncContext;
+			this.resp = resp;
+			this.wrapper = new HttpServletResponseWrapper(resp) {
+				private PrintWriter writer = null;
+
+				@Override
+				public ServletOutputStream getOutputStream() throws IOException {
+					return stream;
+				}
+
+				@Override
+				public PrintWriter getWriter() throws IOException {
+					if(writer == null) {
+						writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+					}
+					return writer;
+				}
+
+				@Override
+				public void flushBuffer() throws IOException {
+					if(writer != null) writer.flush();
+					stream.flush();
+				}
+
+				@Override
+				public boolean isCommitted() {
+					return stream.bytesWritten > 0 || super.isCommitted();
+				}
+			};
+		}
+
+		void producerDone() {
+			try {
+				stream.close();
+			} catch(IOException ex) {
+				logger.debug("Exception closing the async response", ex);
+			}
+			boolean runInline;
+			synchronized(this) {
+				producerDone = true;
+				runInline = scheduleDrain();
+			}
+			if(runInline) run();
+		}
+
+		/**
+		 * Add a chunk to the buffer, pausing the producer if the buffer is full.
+		 * @param chunk
+		 * @throws IOException
+		 */
+		void enqueue(byte[] chunk) throws IOException {
+			boolean runInline;
+			synchronized(this) {
+				if(queuedBytes + chunk.length > maxBufferedBytes && !cancelled) {
+					producerPauses.incrementAndGet();
+					while(queuedBytes + chunk.length > maxBufferedBytes && !cancelled) {
+						try {
+							wait();
+						} catch(InterruptedException ex) {
+							throw new InterruptedIOException("Interrupted waiting for the client");
+						}
+					}
+				}
+				if(cancelled) {
+					// Include ClientAbortException so that callers log this the same way as the container's exception.
+					throw new IOException("ClientAbortException - the client has disconnected");
+				}
+				chunks.add(chunk);
+				queuedBytes += chunk.length;
+				bufferedBytes.addAndGet(chunk.length);
+				runInline = scheduleDrain();
+			}
+			if(runInline) run();
+		}
+
+		/**
+		 * Called with the lock held.
+		 * @return true if the writers are all busy and the caller should send the chunks itself.
+		 */
+		private boolean scheduleDrain() {
+			if(drainScheduled || completed || (chunks.isEmpty() && !producerDone)) return false;
+			drainScheduled = true;
+			try {
+				writers.execute(this);
+				return false;
+			} catch(RejectedExecutionException ex) {
+				return true;
+			}
+		}
+
+		/**
+		 * Send the buffered chunks to the client; complete the request once the producer is done and the buffer is empty.
+		 */
+		@Override
+		public void run() {
+			OutputStream os = null;
+			while(true) {
+				byte[] chunk;
+				boolean complete = false;
+				synchronized(this) {
+					chunk = cancelled ? null : chunks.poll();
+					if(chunk == null) {
+						if(cancelled) dropChunks();
+						drainScheduled = false;
+						if(producerDone && !completed) {
+							completed = true;
+							complete = true;
+						}
+					}
+				}
+				if(chunk == null) {
+					if(complete) {
+						try {
+							asyncContext.complete();
+						} catch(IllegalStateException ex) {
+							logger.debug("Async request has already completed", ex);
+						}
+					}
+					return;
+				}
+
+				boolean empty;
+				try {
+					if(os == null) os = resp.getOutputStream();
+					os.write(chunk);
+				} catch(IOException ex) {
+					if(isClientAbort(ex)) {
+						logger.debug("Client disconnected", ex);
+					} else {
+						logger.warn("Exception sending data to the client", ex);
+					}
+					cancel();
+				} finally {
+					synchronized(this) {
+						queuedBytes -= chunk.length;
+						bufferedBytes.addAndGet(-chunk.length);
+						empty = chunks.isEmpty();
+						notifyAll();
+					}
+				}
+				if(empty && !cancelled) {
+					try {
+						os.flush();
+					} catch(IOException ex) {
+						logger.debug("Exception flushing data to the client", ex);
+						cancel();
+					}
+				}
+			}
+		}
+
+		private void dropChunks() {
+			for(byte[] chunk : chunks) {
+				bufferedBytes.addAndGet(-chunk.length);
+			}
+			chunks.clear();
+			queuedBytes = 0;
+		}
+
+		/**
+		 * The client has gone away; the producer stops at its next write.
+		 */
+		void cancel() {
+			synchronized(this) {
+				if(cancelled || completed) return;
+				cancelled = true;
+				notifyAll();
+			}
+			cancelledRequests.incrementAndGet();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+			// The container completes the request on errors and timeouts; if the producer is still running, stop it.
+			cancel();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) throws IOException {
+			logger.warn("Async retrieval request timed out");
+			cancel();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) throws IOException {
+			logger.debug("Error in async retrieval request", event.getThrowable());
+			cancel();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) throws IOException {
+		}
+
+		/**
+		 * The output stream given to the producer; this accumulates bytes into chunks that are then added to the buffer.
+		 */
+		private class BufferedOutputStream extends ServletOutputStream {
+			private byte[] current = new byte[chunkSize];
+			private int pos = 0;
+			private long bytesWritten = 0;
+			private boolean closed = false;
+
+			@Override
+			public void write(int b) throws IOException {
+				ensureOpen();
+				current[pos++] = (byte) b;
+				bytesWritten++;
+				if(pos == current.length) sendCurrent();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ensureOpen();
+				while(len > 0) {
+					int toCopy = Math.min(len, current.length - pos);
+					System.arraycopy(b, off, current, pos, toCopy);
+					pos += toCopy;
+					off += toCopy;
+					len -= toCopy;
+					bytesWritten += toCopy;
+					if(pos == current.length) sendCurrent();
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				if(closed) return;
+				if(pos > 0) sendCurrent();
+			}
+
+			@Override
+			public void close() throws IOException {
+				if(closed) return;
+				try {
+					if(pos > 0 && !cancelled) sendCurrent();
+				} finally {
+					closed = true;
+				}
+			}
+
+			private void sendCurrent() throws IOException {
+				byte[] chunk = (pos == current.length) ? current : Arrays.copyOf(current, pos);
+				if(chunk == current) current = new byte[chunkSize];
+				pos = 0;
+				enqueue(chunk);
+			}
+
+			private void ensureOpen() throws IOException {
+				if(closed) throw new IOException("The response has already been closed");
+				if(cancelled) throw new IOException("ClientAbortException - the client has disconnected");
+			}
+		}
+	}
+}
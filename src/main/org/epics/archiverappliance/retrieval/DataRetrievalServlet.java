@@ -62,6 +62,8 @@ import org.epics.archiverappliance.config.StoragePluginURLParser;
 import org.epics.archiverappliance.data.ScalarValue;
 import org.epics.archiverappliance.etl.ETLDest;
 import org.epics.archiverappliance.mgmt.policy.PolicyConfig.SamplingMethod;
+import org.epics.archiverappliance.retrieval.mimeresponses.ColumnarResponse;
+import org.epics.archiverappliance.retrieval.mimeresponses.DeflatedColumnarResponse;
 import org.epics.archiverappliance.retrieval.mimeresponses.FlxXMLResponse;
 import org.epics.archiverappliance.retrieval.mimeresponses.JPlotResponse;
 import org.epics.archiverappliance.retrieval.mimeresponses.JSONResponse;
@@ -117,6 +119,8 @@ public class DataRetrievalServlet  extends HttpServlet {
 		mimeresponses.put("flx", new MimeMappingInfo(FlxXMLResponse.class, "text/xml"));
 		mimeresponses.put("txt", new MimeMappingInfo(TextResponse.class, "text/plain"));
 		mimeresponses.put("mat", new MimeMappingInfo(MatlabResponse.class, "application/matlab"));
+		mimeresponses.put("col", new MimeMappingInfo(ColumnarResponse.class, "application/x-archappl-columnar"));
+		mimeresponses.put("colz", new MimeMappingInfo(DeflatedColumnarResponse.class, "application/x-archappl-columnar"));
 	}
 	
 	
@@ -125,9 +129,37 @@ public class DataRetrievalServlet  extends HttpServlet {
 	
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-		
+		// If possible, we generate the response on a separate thread and release the container's thread.
+		AsyncRetrieval asyncRetrieval = AsyncRetrieval.getAsyncRetrieval();
+		if(asyncRetrieval != null && asyncRetrieval.process(req, resp, new AsyncRetrieval.RetrievalHandler() {
+			@Override
+			public void handle(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+				processRequest(req, resp);
+			}
+		})) {
+			return;
+		}
+		processRequest(req, resp);
+	}
+	
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		// POSTs are used only to send large lists of PVs in the body to getDataAtTime.
+		if(req.getPathInfo() != null && getRequestName(req).equals("getDataAtTime")) {
+			doGet(req, resp);
+			return;
+		}
+		super.doPost(req, resp);
+	}
+	
+	private static String getRequestName(HttpServletRequest req) {
 		String[] pathnameSplit = req.getPathInfo().split("/");
-		String requestName = (pathnameSplit[pathnameSplit.length - 1].split("\\."))[0];
+		return (pathnameSplit[pathnameSplit.length - 1].split("\\."))[0];
+	}
+	
+	private void processRequest(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		
+		String requestName = getRequestName(req);
 		
 		if (requestName.equals("getData")) {
 			logger.info("User requesting data for single PV");
@@ -135,6 +167,9 @@ public class DataRetrievalServlet  extends HttpServlet {
 		} else if (requestName.equals("getDataForPVs")) {
 			logger.info("User requesting data for multiple PVs");
 			doGetMultiPV(req, resp);
+		} else if (requestName.equals("getDataAtTime") && PointInTimeRetrieval.getPointInTimeRetrieval() != null) {
+			logger.info("User requesting data for PVs at a point in time");
+			PointInTimeRetrieval.getPointInTimeRetrieval().processRequest(req, resp);
 		} else {
 			String msg = "\"" + requestName + "\" is not a valid API method.";
 			resp.setHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, msg);
@@ -395,8 +430,43 @@ public class DataRetrievalServlet  extends HttpServlet {
 			return;
 		}
 		
+		RetrievalLanes lanes = RetrievalLanes.getLanes();
+		RetrievalLanes.Lane lane = (lanes != null) ? lanes.classify(req, extension, 1, requestTimes, postProcessor instanceof DefaultRawPostProcessor) : RetrievalLanes.Lane.INTERACTIVE;
+		
+		// Identical requests (same PV, post processor and time spans) are served from the response cache; concurrent identical requests wait for the first one.
+		// Requests that fetch the latest metadata from the engine or use a retired PV template are not cached.
+		RetrievalResponseCache responseCache = RetrievalResponseCache.getCache();
+		RetrievalResponseCache.Capture responseCapture = null;
+		if(responseCache != null && !fetchLatestMetadata && retiredPVTemplate == null) {
+			String responseCacheKey = RetrievalResponseCache.makeKey(pvNameFromRequest, pvName, postProcessor.getExtension(), requestTimes, 
+					postProcessorUserArg, req.getParameter("ca_how"), req.getParameter("ca_count"), req.getParameter("skipExternalServers"));
+			RetrievalResponseCache.Lookup lookup = responseCache.lookup(responseCacheKey, end);
+			if(lookup.cachedResponse != null) {
+				if(replayCachedResponse(responseCache, responseCacheKey, lookup.cachedResponse, resp, extension, useChunkedEncoding, lane, typeInfo, pvName, start, end)) {
+					pmansProfiler.mark("After replaying cached response");
+					return;
+				}
+			}
+			responseCapture = lookup.capture;
+		}
+		
+		RetrievalAdmissionControl.Admission admission = null;
+		RetrievalAdmissionControl admissionControl = (lanes != null) ? lanes.getAdmissionControl(lane) : null;
+		if(admissionControl != null) {
+			RetrievalAdmissionControl.QueryCost queryCost = new RetrievalAdmissionControl.QueryCost();
+			RetrievalAdmissionControl.addPVCost(queryCost, configService, pvName, typeInfo, postProcessor, requestTimes, req);
+			admission = admissionControl.admit(RetrievalAdmissionControl.getClientId(req), queryCost, pvName + " in lane " + lane);
+			pmansProfiler.mark("After admission");
+			if(!admission.isAdmitted()) {
+				if(responseCapture != null) responseCapture.complete(false);
+				sendAdmissionRejection(resp, admission);
+				return;
+			}
+		}
+		
+		boolean retrievalSuccessful = false;
 		try(BasicContext retrievalContext = new BasicContext(typeInfo.getDBRType(), pvNameFromRequest); 
-				MergeDedupConsumer mergeDedupCountingConsumer = createMergeDedupConsumer(resp, extension, useChunkedEncoding);
+				MergeDedupConsumer mergeDedupCountingConsumer = createMergeDedupConsumer(resp, extension, useChunkedEncoding, lane);
 				RetrievalExecutorResult executorResult = determineExecutorForPostProcessing(pvName, typeInfo, requestTimes, req, postProcessor)
 				) {
 			HashMap<String, String> engineMetadata = null;
@@ -442,6 +512,7 @@ public class DataRetrievalServlet  extends HttpServlet {
 						logger.debug("Switching to new PV " + pvName + " In some mime responses we insert special headers at the beginning of the response. Calling the hook for that");
 						currentlyProcessingPV = pvName;
 						mergeDedupCountingConsumer.processingPV(currentlyProcessingPV, start, end, (eventStream != null) ? sourceDesc : null);
+						if(responseCapture != null) responseCapture.processingPV();
 					}
 
 
@@ -449,10 +520,13 @@ public class DataRetrievalServlet  extends HttpServlet {
 						// If the postProcessor does not have a consolidated event stream, we send each eventstream across as we encounter it.
 						// Else we send the consolidatedEventStream down below.
 						if(!(postProcessor instanceof PostProcessorWithConsolidatedEventStream)) { 
-							mergeDedupCountingConsumer.consumeEventStream(eventStream);
+							try(EventStream capturedStream = (responseCapture != null) ? responseCapture.capture(eventStream) : null) {
+								mergeDedupCountingConsumer.consumeEventStream(capturedStream != null ? capturedStream : eventStream);
+							}
 							resp.flushBuffer();
 						}
 					} catch(Exception ex) {
+						if(responseCapture != null) responseCapture.abandon();
 						if(ex != null && ex.toString() != null && ex.toString().contains("ClientAbortException")) {
 							// We check for ClientAbortException etc this way to avoid including tomcat jars in the build path.
 							logger.debug("Exception when consuming and flushing data from " + sourceDesc.getSource(), ex);
@@ -462,6 +536,7 @@ public class DataRetrievalServlet  extends HttpServlet {
 					}
 					pmansProfiler.mark("After event stream " + eventStream.getDescription().getSource());
 				} catch(Exception ex) { 
+					if(responseCapture != null) responseCapture.abandon();
 					if(ex != null && ex.toString() != null && ex.toString().contains("ClientAbortException")) {
 						// We check for ClientAbortException etc this way to avoid including tomcat jars in the build path.
 						logger.debug("Exception when consuming and flushing data from " + (sourceDesc != null ? sourceDesc.getSource() : "N/A"), ex);
@@ -477,7 +552,9 @@ public class DataRetrievalServlet  extends HttpServlet {
 					if(sourceDesc == null) {
 						logger.error("Skipping event stream without a desc for pv " + pvName + " and post processor " + postProcessor.getExtension());
 					} else { 
-						mergeDedupCountingConsumer.consumeEventStream(eventStream);
+						try(EventStream capturedStream = (responseCapture != null) ? responseCapture.capture(eventStream) : null) {
+							mergeDedupCountingConsumer.consumeEventStream(capturedStream != null ? capturedStream : eventStream);
+						}
 						resp.flushBuffer();
 					}
 				}
@@ -487,7 +564,9 @@ public class DataRetrievalServlet  extends HttpServlet {
 			if(postProcessor instanceof AfterAllStreams) {
 				EventStream finalEventStream = ((AfterAllStreams)postProcessor).anyFinalData();
 				if(finalEventStream != null) { 
-					mergeDedupCountingConsumer.consumeEventStream(finalEventStream);
+					try(EventStream capturedStream = (responseCapture != null) ? responseCapture.capture(finalEventStream) : null) {
+						mergeDedupCountingConsumer.consumeEventStream(capturedStream != null ? capturedStream : finalEventStream);
+					}
 					resp.flushBuffer();
 				}
 			}
@@ -498,6 +577,7 @@ public class DataRetrievalServlet  extends HttpServlet {
 			logger.info("For the complete request, found a total of " + mergeDedupCountingConsumer.totalEventsForAllPVs + " in " + (s2-s1) + "(ms)" 
 					+ " skipping " + mergeDedupCountingConsumer.skippedEventsForAllPVs + " events"
 					+ " deduping involved " + mergeDedupCountingConsumer.comparedEventsForAllPVs + " compares.");
+			retrievalSuccessful = true;
 		} catch(Exception ex) {
 			if(ex != null && ex.toString() != null && ex.toString().contains("ClientAbortException")) {
 				// We check for ClientAbortException etc this way to avoid including tomcat jars in the build path.
@@ -505,6 +585,9 @@ public class DataRetrievalServlet  extends HttpServlet {
 			} else { 
 				logger.error("Exception when retrieving data " + "-->" + ex.toString(), ex);
 			}
+		} finally {
+			if(responseCapture != null) responseCapture.complete(retrievalSuccessful);
+			if(admission != null) admission.close();
 		}
 		pmansProfiler.mark("After all closes and flushing all buffers");
 		
@@ -514,6 +597,61 @@ public class DataRetrievalServlet  extends HttpServlet {
 		}
 	}
 	
+	/**
+	 * Tell the client we did not admit this request; with a hint if we have one.
+	 */
+	private static void sendAdmissionRejection(HttpServletResponse resp, RetrievalAdmissionControl.Admission admission) throws IOException {
+		resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		if(admission.getRetryAfterSeconds() > 0) {
+			resp.addHeader("Retry-After", Long.toString(admission.getRetryAfterSeconds()));
+		}
+		if(admission.getSuggestedPostProcessor() != null) {
+			resp.addHeader("X-Archappl-Suggested-PostProcessor", admission.getSuggestedPostProcessor());
+		}
+		resp.sendError(admission.getHttpStatus(), admission.getMessage());
+	}
+	
+	/**
+	 * Send a response from the response cache.
+	 * We replay the cached event streams thru the usual merge/dedup consumer and mime response.
+	 * @return false if we were not able to open the cached streams; in this case, nothing has been sent and the caller should process the request as usual.
+	 */
+	private boolean replayCachedResponse(RetrievalResponseCache responseCache, String responseCacheKey, RetrievalResponseCache.CachedResponse cachedResponse, HttpServletResponse resp, String extension, boolean useChunkedEncoding, RetrievalLanes.Lane lane, PVTypeInfo typeInfo, String pvName, Timestamp start, Timestamp end) throws ServletException, IOException {
+		List<RetrievalResponseCache.ReplayedStream> replayedStreams = null;
+		try {
+			replayedStreams = cachedResponse.openStreams();
+		} catch(IOException ex) {
+			logger.warn("Unable to open the cached response for " + pvName + "; processing the request as usual", ex);
+			responseCache.invalidate(responseCacheKey);
+			return false;
+		}
+		
+		try(MergeDedupConsumer mergeDedupCountingConsumer = createMergeDedupConsumer(resp, extension, useChunkedEncoding, lane)) {
+			for(RetrievalResponseCache.ReplayedStream replayedStream : replayedStreams) {
+				EventStreamDesc sourceDesc = replayedStream.stream.getDescription();
+				mergeTypeInfo(typeInfo, sourceDesc, null);
+				if(replayedStream.startsPV) {
+					mergeDedupCountingConsumer.processingPV(pvName, start, end, sourceDesc);
+				}
+				mergeDedupCountingConsumer.consumeEventStream(replayedStream.stream);
+				resp.flushBuffer();
+			}
+			logger.info("Replayed " + replayedStreams.size() + " cached streams for " + pvName + " with a total of " + mergeDedupCountingConsumer.totalEventsForAllPVs + " events");
+		} catch(Exception ex) {
+			if(ex != null && ex.toString() != null && ex.toString().contains("ClientAbortException")) {
+				// We check for ClientAbortException etc this way to avoid including tomcat jars in the build path.
+				logger.debug("Exception when replaying cached response ", ex);
+			} else { 
+				logger.error("Exception when replaying cached response " + "-->" + ex.toString(), ex);
+			}
+		} finally {
+			for(RetrievalResponseCache.ReplayedStream replayedStream : replayedStreams) {
+				try { replayedStream.stream.close(); } catch(Throwable t) {}
+			}
+		}
+		return true;
+	}
+	
 	private void doGetMultiPV(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 		
 		PoorMansProfiler pmansProfiler = new PoorMansProfiler();
@@ -550,8 +688,8 @@ public class DataRetrievalServlet  extends HttpServlet {
 		String extension = req.getPathInfo().split("\\.")[1];
 		logger.info("Mime is " + extension);
 		
-		if (!extension.equals("json") && !extension.equals("raw") && !extension.equals("jplot")) {
-			String msg = "Mime type " + extension + " is not supported. Please use \"json\", \"jplot\" or \"raw\".";
+		if (!extension.equals("json") && !extension.equals("raw") && !extension.equals("jplot") && !extension.equals("col") && !extension.equals("colz")) {
+			String msg = "Mime type " + extension + " is not supported. Please use \"json\", \"jplot\", \"col\", \"colz\" or \"raw\".";
 			resp.setHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
 			return;
@@ -857,14 +995,40 @@ public class DataRetrievalServlet  extends HttpServlet {
 		 * Additionally, the MergeDedupConsumer instance holds a reference to the output stream
 		 * that is used to write to the HTML response. It is stored under the name `os`.
 		 */
+		boolean allRawData = true;
+		for (PostProcessor postProcessor : postProcessors) {
+			if (!(postProcessor instanceof DefaultRawPostProcessor)) allRawData = false;
+		}
+		RetrievalLanes lanes = RetrievalLanes.getLanes();
+		RetrievalLanes.Lane lane = (lanes != null) ? lanes.classify(req, extension, pvNames.size(), requestTimes, allRawData) : RetrievalLanes.Lane.INTERACTIVE;
+		RetrievalAdmissionControl.Admission admission = null;
+		RetrievalAdmissionControl admissionControl = (lanes != null) ? lanes.getAdmissionControl(lane) : null;
+		if(admissionControl != null) {
+			RetrievalAdmissionControl.QueryCost queryCost = new RetrievalAdmissionControl.QueryCost();
+			for (int i = 0; i < pvNames.size(); i++) {
+				if (applianceForPVs.get(i).equals(configService.getMyApplianceInfo())) {
+					RetrievalAdmissionControl.addPVCost(queryCost, configService, pvNames.get(i), typeInfos.get(i), postProcessors.get(i), requestTimes, req);
+				} else {
+					queryCost.addRemoteSource();
+				}
+			}
+			admission = admissionControl.admit(RetrievalAdmissionControl.getClientId(req), queryCost, StringUtils.join(pvNames, ", ") + " in lane " + lane);
+			pmansProfiler.mark("After admission");
+			if(!admission.isAdmitted()) {
+				sendAdmissionRejection(resp, admission);
+				return;
+			}
+		}
+		
 		MergeDedupConsumer mergeDedupCountingConsumer;
 		try {
-			mergeDedupCountingConsumer = createMergeDedupConsumer(resp, extension, useChunkedEncoding);
+			mergeDedupCountingConsumer = createMergeDedupConsumer(resp, extension, useChunkedEncoding, lane);
 		} catch (ServletException se) {
 			String msg = "Exception when retrieving data " + "-->" + se.toString();
 			logger.error(msg, se);
 			resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, msg);
+			if(admission != null) admission.close();
 			return;
 		}
 
@@ -1032,6 +1196,8 @@ public class DataRetrievalServlet  extends HttpServlet {
 			} else { 
 				logger.error("Exception when retrieving data " + "-->" + ex.toString(), ex);
 			}
+		} finally {
+			if(admission != null) admission.close();
 		}
 		
 		long s2 = System.currentTimeMillis();
@@ -1131,10 +1297,11 @@ public class DataRetrievalServlet  extends HttpServlet {
 	 * @param resp
 	 * @param extension
 	 * @param useChunkedEncoding
+	 * @param lane - The retrieval lane for this request; the output is counted and throttled as per the lane.
 	 * @return
 	 * @throws ServletException
 	 */
-	private MergeDedupConsumer createMergeDedupConsumer(HttpServletResponse resp, String extension, boolean useChunkedEncoding) throws ServletException {
+	private MergeDedupConsumer createMergeDedupConsumer(HttpServletResponse resp, String extension, boolean useChunkedEncoding, RetrievalLanes.Lane lane) throws ServletException {
 		MergeDedupConsumer mergeDedupCountingConsumer = null;
 		MimeMappingInfo mimemappinginfo = mimeresponses.get(extension);
 		if(mimemappinginfo == null) {
@@ -1157,6 +1324,10 @@ public class DataRetrievalServlet  extends HttpServlet {
 					}
 				}
 				OutputStream os = resp.getOutputStream();
+				RetrievalLanes lanes = RetrievalLanes.getLanes();
+				if(lanes != null) {
+					os = lanes.wrapOutputStream(lane, os);
+				}
 				mergeDedupCountingConsumer = new MergeDedupConsumer(mimeresponse, os);
 			} catch(Exception ex) {
 				throw new ServletException(ex);
@@ -1283,6 +1454,11 @@ public class DataRetrievalServlet  extends HttpServlet {
 	@Override
 	public void init() throws ServletException {
 		this.configService = (ConfigService) this.getServletContext().getAttribute(ConfigService.CONFIG_SERVICE_NAME);
+		RetrievalResponseCache.configure(configService.getInstallationProperties());
+		RetrievalLanes.configure(configService.getInstallationProperties());
+		RetrievalAdmissionControl.configureTrustedProxies(configService);
+		AsyncRetrieval.configure(configService);
+		PointInTimeRetrieval.configure(configService);
 	}
 	
 	
@@ -1392,6 +1568,8 @@ public class DataRetrievalServlet  extends HttpServlet {
 				HttpURLConnection.setFollowRedirects(true);
 				URL url = new URL(redirectURIStr);
 				HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+				// So that per client limits on the other appliance apply to the original client.
+				urlConnection.setRequestProperty("X-Forwarded-For", RetrievalAdmissionControl.getClientId(req));
 				if(urlConnection.getResponseCode() == 200) {
 					HashSet<String> proxiedHeaders = new HashSet<String>();
 					proxiedHeaders.addAll(Arrays.asList(MimeResponse.PROXIED_HEADERS));
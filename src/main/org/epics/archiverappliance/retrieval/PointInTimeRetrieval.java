@@ -0,0 +1,578 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.Reader;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeSpan;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ApplianceInfo;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.ConfigService.STARTUP_SEQUENCE;
+import org.epics.archiverappliance.config.PVNames;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.mgmt.bpl.PVsMatchingParameter;
+import org.epics.archiverappliance.mgmt.policy.PolicyConfig.SamplingMethod;
+import org.epics.archiverappliance.retrieval.mimeresponses.MimeResponse;
+import org.epics.archiverappliance.retrieval.postprocessors.DefaultRawPostProcessor;
+import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
+
+/**
+ * Get the value of many PVs (thousands to tens of thousands) at a point in time.
+ * This is what one needs for a snapshot of the machine at the time of an incident.
+ * <ol>
+ * <li>The PVs are grouped by appliance; PVs on other appliances are sent to those appliances in one call per appliance.
+ * If any of these calls fail, the request fails with a 502 naming the appliances; we do not return a snapshot that silently leaves out the PVs on an appliance.</li>
+ * <li>The PVs on this appliance are broken into batches and looked up in parallel.
+ * For PlainPB stores, we compute the name of the partition containing the time and search within that partition; we do not list folders unless we have to.</li>
+ * <li>The results are streamed back as a JSON object keyed by PV name as each batch completes; PVs for which we have no data are omitted.</li>
+ * </ol>
+ * The <code>mode</code> parameter determines the value returned
+ * <ul>
+ * <li><code>before</code> - The last value at or before the time; this is the value the PV had at that time. This is the default.</li>
+ * <li><code>after</code> - The first value after the time.</li>
+ * <li><code>interpolate</code> - A linear interpolation between the values before and after the time for scalar numbers; the value before the time for everything else.</li>
+ * </ul>
+ *
+ * This can be configured in archappl.properties using <code>org.epics.archiverappliance.retrieval.PointInTimeRetrieval.</code> followed by
+ * <code>threads</code>, <code>batchSize</code> and <code>searchWindowMinutes</code> (for stores other than PlainPB).
+ *
+ * @author mshankar
+ *
+ */
+public class PointInTimeRetrieval {
+	private static final Logger logger = Logger.getLogger(PointInTimeRetrieval.class.getName());
+	private static final String PROPERTY_PREFIX = "org.epics.archiverappliance.retrieval.PointInTimeRetrieval.";
+
+	public enum Mode { BEFORE, AFTER, INTERPOLATE };
+
+	private static volatile PointInTimeRetrieval thePointInTimeRetrieval = null;
+
+	private final ConfigService configService;
+	private final ThreadPoolExecutor executor;
+	private final int batchSize;
+	private final int searchWindowSeconds;
+	private final int secondsToBuffer;
+
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong pvsRequested = new AtomicLong(0);
+	private final AtomicLong pvsFound = new AtomicLong(0);
+	private final AtomicLong remoteCalls = new AtomicLong(0);
+	private final AtomicLong remoteFailures = new AtomicLong(0);
+
+	/**
+	 * Configure point in time retrieval for this webapp; this is called when the retrieval servlet initializes.
+	 * @param configService
+	 */
+	public static synchronized void configure(ConfigService configService) {
+		if(thePointInTimeRetrieval != null) return;
+		Properties installationProperties = configService.getInstallationProperties();
+		final PointInTimeRetrieval pointInTimeRetrieval = new PointInTimeRetrieval(configService,
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "threads", "16")),
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "batchSize", "100")),
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "searchWindowMinutes", "60"))*60);
+		configService.addShutdownHook(new Runnable() {
+			@Override
+			public void run() {
+				logger.info("Shutting down point in time retrieval");
+				pointInTimeRetrieval.executor.shutdownNow();
+			}
+		});
+		thePointInTimeRetrieval = pointInTimeRetrieval;
+	}
+
+	/**
+	 * @return Point in time retrieval for this webapp; null if the retrieval servlet has not been initialized.
+	 */
+	public static PointInTimeRetrieval getPointInTimeRetrieval() {
+		return thePointInTimeRetrieval;
+	}
+
+	PointInTimeRetrieval(ConfigService configService, int threads, int batchSize, int searchWindowSeconds) {
+		this.configService = configService;
+		this.batchSize = Math.max(1, batchSize);
+		this.searchWindowSeconds = searchWindowSeconds;
+		this.secondsToBuffer = Integer.parseInt(configService.getInstallationProperties().getProperty("org.epics.archiverappliance.config.PVTypeInfo.secondsToBuffer", "60"));
+		final AtomicInteger threadNum = new AtomicInteger(0);
+		this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "Point in time retrieval " + threadNum.incrementAndGet());
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+		logger.info("Point in time retrieval using " + threads + " threads and batches of " + this.batchSize + " PVs");
+	}
+
+	/**
+	 * Process a <code>getDataAtTime</code> request.
+	 * The PVs are specified using <code>pv</code> parameters in a GET or in the body of a POST (same formats as the other bulk BPLs).
+	 * The time is specified using the <code>at</code> parameter; this defaults to now.
+	 * @param req
+	 * @param resp
+	 * @throws IOException
+	 */
+	public void processRequest(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		if(configService.getStartupState() != STARTUP_SEQUENCE.STARTUP_COMPLETE) {
+			String msg = "Cannot process point in time requests until the appliance has completely started up.";
+			logger.error(msg);
+			resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, msg);
+			return;
+		}
+
+		Timestamp atTime = TimeUtils.now();
+		String atTimeStr = req.getParameter("at");
+		if(atTimeStr != null) {
+			try {
+				atTime = TimeUtils.convertFromISO8601String(atTimeStr);
+			} catch(IllegalArgumentException ex) {
+				try {
+					atTime = TimeUtils.convertFromDateTimeStringWithOffset(atTimeStr);
+				} catch(IllegalArgumentException ex2) {
+					String msg = "Cannot parse time " + atTimeStr;
+					logger.warn(msg, ex2);
+					resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+					resp.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+					return;
+				}
+			}
+		}
+
+		Mode mode = Mode.BEFORE;
+		String modeStr = req.getParameter("mode");
+		if(modeStr != null) {
+			try {
+				mode = Mode.valueOf(modeStr.toUpperCase());
+			} catch(IllegalArgumentException ex) {
+				String msg = "Invalid mode " + modeStr + "; this should be one of before, after or interpolate";
+				resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+				return;
+			}
+		}
+
+		// Calls from other appliances have already been grouped by appliance.
+		boolean localOnly = Boolean.parseBoolean(req.getParameter("localOnly"));
+
+		LinkedList<String> pvNames = new LinkedList<String>();
+		if(req.getMethod() != null && req.getMethod().equals("POST")) {
+			pvNames.addAll(PVsMatchingParameter.getPVNamesFromPostBody(req, configService));
+		} else if(req.getParameterValues("pv") != null) {
+			for(String pvParam : req.getParameterValues("pv")) {
+				pvNames.addAll(Arrays.asList(pvParam.split(",")));
+			}
+		}
+		if(pvNames.isEmpty()) {
+			String msg = "Please specify the PVs using the pv parameter or in the body of a POST.";
+			resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+			return;
+		}
+
+		requests.incrementAndGet();
+		pvsRequested.addAndGet(pvNames.size());
+		logger.info("Looking up " + pvNames.size() + " PVs at " + TimeUtils.convertToISO8601String(atTime) + " using mode " + mode);
+
+		// Group the PVs by appliance.
+		String myIdentity = configService.getMyApplianceInfo().getIdentity();
+		List<String> localPVs = new ArrayList<String>();
+		HashMap<String, List<String>> remotePVs = new HashMap<String, List<String>>();
+		for(String pvName : pvNames) {
+			ApplianceInfo applianceForPV = localOnly ? null : configService.getApplianceForPV(pvName);
+			if(applianceForPV == null || applianceForPV.getIdentity().equals(myIdentity)) {
+				localPVs.add(pvName);
+			} else {
+				if(!remotePVs.containsKey(applianceForPV.getDataRetrievalURL())) {
+					remotePVs.put(applianceForPV.getDataRetrievalURL(), new ArrayList<String>());
+				}
+				remotePVs.get(applianceForPV.getDataRetrievalURL()).add(pvName);
+			}
+		}
+
+		RetrievalLanes lanes = RetrievalLanes.getLanes();
+		List<TimeSpan> requestTimes = new LinkedList<TimeSpan>();
+		requestTimes.add(new TimeSpan(atTime, atTime));
+		RetrievalLanes.Lane lane = (lanes != null) ? lanes.classify(req, "json", pvNames.size(), requestTimes, true) : RetrievalLanes.Lane.INTERACTIVE;
+		RetrievalAdmissionControl admissionControl = (lanes != null) ? lanes.getAdmissionControl(lane) : null;
+		RetrievalAdmissionControl.Admission admission = null;
+		if(admissionControl != null) {
+			// We read one or two events per PV; most of the cost is in opening the partitions.
+			RetrievalAdmissionControl.QueryCost queryCost = new RetrievalAdmissionControl.QueryCost();
+			queryCost.estimatedEvents = 2L*pvNames.size();
+			queryCost.estimatedMemoryBytes = 1024L*pvNames.size();
+			queryCost.estimatedBytesToRead = 64L*1024*localPVs.size();
+			for(int i = 0; i < remotePVs.size(); i++) { queryCost.addRemoteSource(); }
+			admission = admissionControl.admit(RetrievalAdmissionControl.getClientId(req), queryCost, pvNames.size() + " PVs at " + TimeUtils.convertToISO8601String(atTime) + " in lane " + lane);
+			if(!admission.isAdmitted()) {
+				resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+				if(admission.getRetryAfterSeconds() > 0) {
+					resp.addHeader("Retry-After", Long.toString(admission.getRetryAfterSeconds()));
+				}
+				resp.sendError(admission.getHttpStatus(), admission.getMessage());
+				return;
+			}
+		}
+
+		try {
+			// The remote lookups run in parallel with the local batches; we wait for these before starting the response so that we can report failures.
+			LinkedHashMap<String, Future<Map<String, String>>> remoteFutures = new LinkedHashMap<String, Future<Map<String, String>>>();
+			for(String dataRetrievalURL : remotePVs.keySet()) {
+				remoteFutures.put(dataRetrievalURL, executor.submit(new RemoteLookup(dataRetrievalURL, remotePVs.get(dataRetrievalURL), atTime, mode, RetrievalAdmissionControl.getClientId(req))));
+			}
+			ExecutorCompletionService<Map<String, String>> completionService = new ExecutorCompletionService<Map<String, String>>(executor);
+			List<Future<Map<String, String>>> futures = new LinkedList<Future<Map<String, String>>>(remoteFutures.values());
+			int localBatches = 0;
+			for(int i = 0; i < localPVs.size(); i += batchSize) {
+				futures.add(completionService.submit(new LocalLookup(localPVs.subList(i, Math.min(i + batchSize, localPVs.size())), atTime, mode)));
+				localBatches++;
+			}
+
+			try {
+				List<Map<String, String>> remoteResults = new LinkedList<Map<String, String>>();
+				StringBuilder remoteFailureMessages = new StringBuilder();
+				for(Map.Entry<String, Future<Map<String, String>>> remoteFuture : remoteFutures.entrySet()) {
+					try {
+						remoteResults.add(remoteFuture.getValue().get());
+					} catch(ExecutionException ex) {
+						remoteFailures.incrementAndGet();
+						logger.error("Exception looking up " + remotePVs.get(remoteFuture.getKey()).size() + " PVs using " + remoteFuture.getKey(), ex.getCause());
+						remoteFailureMessages.append(remoteFailureMessages.length() > 0 ? "; " : "").append(ex.getCause().getMessage());
+					}
+				}
+				if(remoteFailureMessages.length() > 0) {
+					resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+					resp.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Cannot look up the PVs on other appliances: " + remoteFailureMessages.toString());
+					return;
+				}
+
+				resp.setContentType(MimeTypeConstants.APPLICATION_JSON);
+				resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+				OutputStream os = resp.getOutputStream();
+				if(lanes != null) os = lanes.wrapOutputStream(lane, os);
+				try(PrintWriter out = new PrintWriter(new OutputStreamWriter(os, "UTF-8"))) {
+					out.println("{");
+					boolean needComma = false;
+					for(int i = 0; i < remoteResults.size() + localBatches; i++) {
+						Map<String, String> results;
+						if(i < remoteResults.size()) {
+							results = remoteResults.get(i);
+						} else {
+							try {
+								results = completionService.take().get();
+							} catch(ExecutionException ex) {
+								logger.error("Exception looking up a batch of PVs at " + TimeUtils.convertToISO8601String(atTime), ex.getCause());
+								continue;
+							}
+						}
+						for(Map.Entry<String, String> result : results.entrySet()) {
+							if(needComma) { out.println(","); } else { needComma = true; }
+							out.print("\"" + JSONValue.escape(result.getKey()) + "\": " + result.getValue());
+						}
+						pvsFound.addAndGet(results.size());
+						out.flush();
+						if(out.checkError()) {
+							logger.info("Client disconnected when looking up PVs at " + TimeUtils.convertToISO8601String(atTime));
+							break;
+						}
+					}
+					out.println();
+					out.println("}");
+				}
+			} catch(InterruptedException ex) {
+				throw new IOException(ex);
+			} finally {
+				for(Future<Map<String, String>> future : futures) {
+					future.cancel(true);
+				}
+			}
+		} finally {
+			if(admission != null) admission.close();
+		}
+	}
+
+	/**
+	 * Looks up a batch of PVs on this appliance.
+	 */
+	private class LocalLookup implements Callable<Map<String, String>> {
+		private final List<String> pvNames;
+		private final Timestamp atTime;
+		private final Mode mode;
+
+		LocalLookup(List<String> pvNames, Timestamp atTime, Mode mode) {
+			this.pvNames = pvNames;
+			this.atTime = atTime;
+			this.mode = mode;
+		}
+
+		@Override
+		public Map<String, String> call() throws Exception {
+			LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+			for(String pvName : pvNames) {
+				if(Thread.currentThread().isInterrupted()) break;
+				try {
+					Event[] around = getEventsAroundTime(pvName, atTime, mode);
+					if(around == null) continue;
+					String value = toJSONString(around[0], around[1], atTime, mode);
+					if(value != null) ret.put(pvName, value);
+				} catch(Exception ex) {
+					logger.error("Exception looking up " + pvName + " at " + TimeUtils.convertToISO8601String(atTime), ex);
+				}
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Get the last event at or before atTime and the first event after atTime across all the data sources for this PV.
+	 * @return null if we do not know of this PV.
+	 */
+	Event[] getEventsAroundTime(String pvName, Timestamp atTime, Mode mode) throws IOException {
+		PVTypeInfo typeInfo = PVNames.determineAppropriatePVTypeInfo(pvName, configService);
+		if(typeInfo == null) {
+			logger.debug("Cannot find PVTypeInfo for " + pvName);
+			return null;
+		}
+		String archivedPVName = typeInfo.getPvName();
+		String fieldName = PVNames.getFieldName(pvName);
+		String archivedFieldName = PVNames.getFieldName(archivedPVName);
+		if(fieldName != null && !fieldName.equals("") && !fieldName.equals("VAL") && (archivedFieldName == null || archivedFieldName.equals(""))) {
+			// Fields archived as part of the PV are stored as metadata on the PV's events; we do not support these for point in time lookups.
+			logger.debug("Skipping field " + pvName + " for point in time lookups");
+			return null;
+		}
+		boolean needBefore = (mode != Mode.AFTER);
+		boolean needAfter = (mode != Mode.BEFORE);
+		Event[] ret = new Event[2];
+		try(BasicContext context = new BasicContext(typeInfo.getDBRType(), pvName)) {
+			// The engine has data that has not yet been written out to the stores.
+			long atEpochSeconds = TimeUtils.convertToEpochSeconds(atTime);
+			if(TimeUtils.getCurrentEpochSeconds() - atEpochSeconds < 2 * secondsToBuffer && typeInfo.getSamplingMethod() != SamplingMethod.DONT_ARCHIVE) {
+				ApplianceInfo applianceInfo = configService.getAppliance(typeInfo.getApplianceIdentity());
+				String engineRawURL = URLEncoder.encode(applianceInfo.getEngineURL() + "/getData.raw", "UTF-8");
+				Reader engineReader = (Reader) StoragePluginURLParser.parseStoragePlugin("pbraw://localhost?rawURL=" + engineRawURL + "&name=engine", configService);
+				scanReader(engineReader, context, archivedPVName, TimeUtils.convertFromEpochSeconds(atEpochSeconds - 2 * secondsToBuffer, 0), TimeUtils.plusHours(TimeUtils.now(), 1), atTime, ret);
+			}
+
+			for(String store : typeInfo.getDataStores()) {
+				if(!needAfter && ret[0] != null) break;
+				Reader reader = (Reader) StoragePluginURLParser.parseStoragePlugin(store, configService);
+				if(reader instanceof PlainPBStoragePlugin) {
+					// If we already have an event before the time, we only need to look in this store's partition containing the time.
+					Event[] storeEvents = ((PlainPBStoragePlugin) reader).getEventsAroundTime(context, archivedPVName, atTime, needBefore && ret[0] == null, needAfter);
+					combine(ret, storeEvents);
+				} else {
+					scanReader(reader, context, archivedPVName, TimeUtils.convertFromEpochSeconds(atEpochSeconds - searchWindowSeconds, 0), TimeUtils.convertFromEpochSeconds(atEpochSeconds + searchWindowSeconds, 0), atTime, ret);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Keep the latest event at or before the time and the earliest event after the time.
+	 */
+	private static void combine(Event[] ret, Event[] other) {
+		if(other[0] != null && (ret[0] == null || other[0].getEventTimeStamp().after(ret[0].getEventTimeStamp()))) {
+			ret[0] = other[0];
+		}
+		if(other[1] != null && (ret[1] == null || other[1].getEventTimeStamp().before(ret[1].getEventTimeStamp()))) {
+			ret[1] = other[1];
+		}
+	}
+
+	private static void scanReader(Reader reader, BasicContext context, String pvName, Timestamp start, Timestamp end, Timestamp atTime, Event[] ret) throws IOException {
+		List<Callable<EventStream>> callables = reader.getDataForPV(context, pvName, start, end, new DefaultRawPostProcessor());
+		if(callables == null) return;
+		Event[] found = new Event[2];
+		for(Callable<EventStream> callable : callables) {
+			try(EventStream strm = callable.call()) {
+				if(strm == null) continue;
+				for(Event e : strm) {
+					if(!e.getEventTimeStamp().after(atTime)) {
+						found[0] = e.makeClone();
+					} else {
+						found[1] = e.makeClone();
+						break;
+					}
+				}
+			} catch(IOException ex) {
+				throw ex;
+			} catch(Exception ex) {
+				throw new IOException(ex);
+			}
+			if(found[1] != null) break;
+		}
+		combine(ret, found);
+	}
+
+	/**
+	 * Generate the JSON for the value of a PV at atTime; this has the same fields as an event in the JSON response.
+	 * @return null if we do not have a value for this mode.
+	 */
+	static String toJSONString(Event before, Event after, Timestamp atTime, Mode mode) {
+		switch(mode) {
+		case BEFORE:
+			return (before != null) ? toJSONString((DBRTimeEvent) before) : null;
+		case AFTER:
+			return (after != null) ? toJSONString((DBRTimeEvent) after) : null;
+		case INTERPOLATE:
+		default:
+			if(before == null) return null;
+			if(after == null || !canInterpolate(before.getDBRType()) || !before.getDBRType().equals(after.getDBRType())) {
+				return toJSONString((DBRTimeEvent) before);
+			}
+			double beforeMillis = before.getEventTimeStamp().getTime() + (before.getEventTimeStamp().getNanos() % 1000000)/1000000.0;
+			double afterMillis = after.getEventTimeStamp().getTime() + (after.getEventTimeStamp().getNanos() % 1000000)/1000000.0;
+			double atMillis = atTime.getTime() + (atTime.getNanos() % 1000000)/1000000.0;
+			double beforeValue = before.getSampleValue().getValue().doubleValue();
+			double afterValue = after.getSampleValue().getValue().doubleValue();
+			double value = (afterMillis > beforeMillis) ? beforeValue + (afterValue - beforeValue)*(atMillis - beforeMillis)/(afterMillis - beforeMillis) : beforeValue;
+			DBRTimeEvent beforeEvent = (DBRTimeEvent) before;
+			return "{ \"secs\": " + TimeUtils.convertToEpochSeconds(atTime)
+					+ ", \"val\": " + JSONValue.toJSONString(value)
+					+ ", \"nanos\": " + Integer.toString(atTime.getNanos())
+					+ ", \"severity\":" + Integer.toString(beforeEvent.getSeverity())
+					+ ", \"status\":" + Integer.toString(beforeEvent.getStatus())
+					+ " }";
+		}
+	}
+
+	private static String toJSONString(DBRTimeEvent evnt) {
+		return "{ \"secs\": " + evnt.getEpochSeconds()
+				+ ", \"val\": " + evnt.getSampleValue().toJSONString()
+				+ ", \"nanos\": " + Integer.toString(evnt.getEventTimeStamp().getNanos())
+				+ ", \"severity\":" + Integer.toString(evnt.getSeverity())
+				+ ", \"status\":" + Integer.toString(evnt.getStatus())
+				+ " }";
+	}
+
+	private static boolean canInterpolate(ArchDBRTypes dbrType) {
+		switch(dbrType) {
+		case DBR_SCALAR_SHORT:
+		case DBR_SCALAR_FLOAT:
+		case DBR_SCALAR_BYTE:
+		case DBR_SCALAR_INT:
+		case DBR_SCALAR_DOUBLE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Looks up the PVs on another appliance with one call to that appliance.
+	 */
+	private class RemoteLookup implements Callable<Map<String, String>> {
+		private final String dataRetrievalURL;
+		private final List<String> pvNames;
+		private final Timestamp atTime;
+		private final Mode mode;
+		private final String clientId;
+
+		RemoteLookup(String dataRetrievalURL, List<String> pvNames, Timestamp atTime, Mode mode, String clientId) {
+			this.dataRetrievalURL = dataRetrievalURL;
+			this.pvNames = pvNames;
+			this.atTime = atTime;
+			this.mode = mode;
+			this.clientId = clientId;
+		}
+
+		@Override
+		public Map<String, String> call() throws Exception {
+			remoteCalls.incrementAndGet();
+			String url = dataRetrievalURL + "/data/getDataAtTime?at=" + URLEncoder.encode(TimeUtils.convertToISO8601String(atTime), "UTF-8")
+					+ "&mode=" + mode.toString().toLowerCase() + "&localOnly=true";
+			logger.debug("Looking up " + pvNames.size() + " PVs using " + url);
+			HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+			try {
+				urlConnection.setRequestMethod("POST");
+				urlConnection.setDoOutput(true);
+				urlConnection.setRequestProperty("Content-Type", MimeTypeConstants.APPLICATION_JSON);
+				urlConnection.setRequestProperty(RetrievalLanes.CALLER_HEADER, RetrievalLanes.APPLIANCE_CALLER);
+				urlConnection.setRequestProperty("X-Forwarded-For", clientId);
+				try(OutputStream os = urlConnection.getOutputStream()) {
+					os.write(JSONValue.toJSONString(pvNames).getBytes("UTF-8"));
+				}
+				if(urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+					throw new IOException("Invalid status code " + urlConnection.getResponseCode() + " looking up " + pvNames.size() + " PVs using " + url);
+				}
+				LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+				try(InputStreamReader reader = new InputStreamReader(new BufferedInputStream(urlConnection.getInputStream()), "UTF-8")) {
+					JSONObject results = (JSONObject) new JSONParser().parse(reader);
+					for(Object pvName : results.keySet()) {
+						ret.put((String) pvName, ((JSONObject) results.get(pvName)).toJSONString());
+					}
+				} catch(ParseException ex) {
+					throw new IOException("Cannot parse the response from " + url, ex);
+				}
+				return ret;
+			} finally {
+				urlConnection.disconnect();
+			}
+		}
+	}
+
+	public Map<String, String> getMetrics() {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		ret.put("requests", Long.toString(requests.get()));
+		ret.put("pvsRequested", Long.toString(pvsRequested.get()));
+		ret.put("pvsFound", Long.toString(pvsFound.get()));
+		ret.put("remoteCalls", Long.toString(remoteCalls.get()));
+		ret.put("remoteFailures", Long.toString(remoteFailures.get()));
+		ret.put("activeThreads", Integer.toString(executor.getActiveCount()));
+		ret.put("queuedBatches", Integer.toString(executor.getQueue().size()));
+		return ret;
+	}
+}
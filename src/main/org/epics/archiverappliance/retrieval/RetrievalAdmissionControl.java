@@ -0,0 +1,571 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.sql.Timestamp;
+import java.text.DecimalFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.StoragePlugin;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeSpan;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ApplianceInfo;
+import org.epics.archiverappliance.config.ChannelArchiverDataServerPVInfo;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.retrieval.channelarchiver.ChannelArchiverReadOnlyPlugin;
+import org.epics.archiverappliance.retrieval.postprocessors.DefaultRawPostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+
+import edu.stanford.slac.archiverappliance.PBOverHTTP.PBOverHTTPStoragePlugin;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
+
+/**
+ * Admission control for data retrieval requests.
+ * Before we retrieve data, we estimate the cost of the request using
+ * <ol>
+ * <li>The memory estimate from the post processor.</li>
+ * <li>The size of the partitions in the local stores that overlap the request; for other stores, we use the storage rate in the PVTypeInfo.</li>
+ * <li>The number of remote sources (other appliances, external servers and ChannelArchiver data servers).</li>
+ * </ol>
+ * Each retrieval lane (see {@link RetrievalLanes}) has its own admission control.
+ * Requests are admitted against the lane's limit on concurrent requests, its budget of in-flight cost and a per client concurrency limit; requests that do not fit wait in a FIFO queue.
+ * Admitted requests run at the lane's thread priority.
+ * Requests whose cost exceeds <code>maxQueryCostMB</code> are handled using the <code>expensiveQueryPolicy</code>
+ * <ul>
+ * <li><code>QUEUE</code> - The default; the request is queued like any other request. It is charged at most the full budget, so it eventually runs by itself.</li>
+ * <li><code>REJECT</code> - The request is rejected with a 429 and a hint to narrow the time range.</li>
+ * <li><code>SUGGEST_BINNING</code> - Raw requests are rejected with a 429 and a suggestion to use a binned post processor; for example, <code>mean_3600</code>.
+ * Requests that already use a post processor are rejected as in <code>REJECT</code>.</li>
+ * </ul>
+ *
+ * Admission control is turned off by default; set <code>enabled</code> to true to turn it on for all lanes or for one lane.
+ * Note that clients that share an address (for example, dashboards behind a gateway) share the per client limit.
+ * <br>
+ * Clients are identified by their address. The <code>X-Forwarded-For</code> header is used only if the request comes from one of the <code>trustedProxies</code> or from another appliance in the cluster;
+ * otherwise, any client could set this header and get around the per client limit.
+ * <br>
+ * These can be configured in archappl.properties using <code>org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.</code> followed by an optional lane name and one of
+ * <code>enabled</code>, <code>maxConcurrentQueries</code>, <code>maxConcurrentCostMB</code>, <code>maxQueryCostMB</code>, <code>expensiveQueryPolicy</code>, <code>maxConcurrentPerClient</code>,
+ * <code>maxQueueLength</code>, <code>queueTimeoutSeconds</code>, <code>readCostFactor</code>, <code>remoteSourceCostMB</code> and <code>suggestedBins</code>.
+ *
+ * @author mshankar
+ *
+ */
+public class RetrievalAdmissionControl {
+	private static final Logger logger = Logger.getLogger(RetrievalAdmissionControl.class.getName());
+	private static final String PROPERTY_PREFIX = "org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.";
+	/**
+	 * The servlet API we build against does not have a constant for this.
+	 */
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+	private static final long MB = 1024*1024;
+
+	public enum ExpensiveQueryPolicy { QUEUE, REJECT, SUGGEST_BINNING };
+
+	/**
+	 * The addresses of the proxies and appliances whose X-Forwarded-For we trust.
+	 */
+	private static volatile Set<String> trustedProxyAddresses = Collections.emptySet();
+
+	private final String name;
+	private final int maxConcurrentQueries;
+	private final long maxConcurrentCost;
+	private final long maxQueryCost;
+	private final ExpensiveQueryPolicy expensiveQueryPolicy;
+	private final int maxConcurrentPerClient;
+	private final int maxQueueLength;
+	private final long queueTimeoutMillis;
+	private final double readCostFactor;
+	private final long remoteSourceCost;
+	private final long suggestedBins;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LinkedList<Admission> queue = new LinkedList<Admission>();
+	private final HashMap<String, Integer> inFlightPerClient = new HashMap<String, Integer>();
+	private long inFlightCost = 0;
+	private int inFlightQueries = 0;
+
+	private final AtomicLong admitted = new AtomicLong(0);
+	private final AtomicLong queued = new AtomicLong(0);
+	private final AtomicLong totalQueueWaitMillis = new AtomicLong(0);
+	private final AtomicLong maxQueueWaitMillis = new AtomicLong(0);
+	private final AtomicLong rejectedExpensive = new AtomicLong(0);
+	private final AtomicLong rejectedBusy = new AtomicLong(0);
+	private final AtomicLong suggestedBinning = new AtomicLong(0);
+	private final AtomicLong clientLimited = new AtomicLong(0);
+	private volatile int maxQueueLengthSeen = 0;
+
+	/**
+	 * Create the admission control for a retrieval lane from archappl.properties.
+	 * Each property is looked up first for this lane (<code>org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.&lt;lane&gt;.&lt;name&gt;</code>),
+	 * then for all lanes (<code>org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.&lt;name&gt;</code>) and then in the lane's defaults.
+	 * @param laneName
+	 * @param installationProperties
+	 * @param laneDefaults - Defaults for this lane; these override the defaults for all lanes.
+	 * @return null if admission control is turned off.
+	 */
+	public static RetrievalAdmissionControl fromProperties(String laneName, Properties installationProperties, Map<String, String> laneDefaults) {
+		if(!Boolean.parseBoolean(getProperty(laneName, installationProperties, laneDefaults, "enabled", "false"))) {
+			logger.info("Admission control for the " + laneName + " retrieval lane is turned off");
+			return null;
+		}
+		return new RetrievalAdmissionControl(laneName,
+				Integer.parseInt(getProperty(laneName, installationProperties, laneDefaults, "maxConcurrentQueries", "64")),
+				Long.parseLong(getProperty(laneName, installationProperties, laneDefaults, "maxConcurrentCostMB", "1024"))*MB,
+				Long.parseLong(getProperty(laneName, installationProperties, laneDefaults, "maxQueryCostMB", "512"))*MB,
+				ExpensiveQueryPolicy.valueOf(getProperty(laneName, installationProperties, laneDefaults, "expensiveQueryPolicy", ExpensiveQueryPolicy.QUEUE.toString())),
+				Integer.parseInt(getProperty(laneName, installationProperties, laneDefaults, "maxConcurrentPerClient", "16")),
+				Integer.parseInt(getProperty(laneName, installationProperties, laneDefaults, "maxQueueLength", "100")),
+				Long.parseLong(getProperty(laneName, installationProperties, laneDefaults, "queueTimeoutSeconds", "30")),
+				Double.parseDouble(getProperty(laneName, installationProperties, laneDefaults, "readCostFactor", "0.25")),
+				Long.parseLong(getProperty(laneName, installationProperties, laneDefaults, "remoteSourceCostMB", "16"))*MB,
+				Long.parseLong(getProperty(laneName, installationProperties, laneDefaults, "suggestedBins", "10000")));
+	}
+
+	private static String getProperty(String laneName, Properties installationProperties, Map<String, String> laneDefaults, String propertyName, String defaultValue) {
+		String laneValue = installationProperties.getProperty(PROPERTY_PREFIX + laneName + "." + propertyName);
+		if(laneValue != null) return laneValue;
+		String allLanesValue = installationProperties.getProperty(PROPERTY_PREFIX + propertyName);
+		if(allLanesValue != null) return allLanesValue;
+		if(laneDefaults != null && laneDefaults.containsKey(propertyName)) return laneDefaults.get(propertyName);
+		return defaultValue;
+	}
+
+	RetrievalAdmissionControl(String name, int maxConcurrentQueries, long maxConcurrentCost, long maxQueryCost, ExpensiveQueryPolicy expensiveQueryPolicy, int maxConcurrentPerClient, int maxQueueLength, long queueTimeoutSeconds, double readCostFactor, long remoteSourceCost, long suggestedBins) {
+		this.name = name;
+		this.maxConcurrentQueries = maxConcurrentQueries;
+		this.maxConcurrentCost = maxConcurrentCost;
+		this.maxQueryCost = maxQueryCost;
+		this.expensiveQueryPolicy = expensiveQueryPolicy;
+		this.maxConcurrentPerClient = maxConcurrentPerClient;
+		this.maxQueueLength = maxQueueLength;
+		this.queueTimeoutMillis = queueTimeoutSeconds*1000;
+		this.readCostFactor = readCostFactor;
+		this.remoteSourceCost = remoteSourceCost;
+		this.suggestedBins = suggestedBins;
+		logger.info("Retrieval admission control for " + name + " with " + maxConcurrentQueries + " concurrent queries, a budget of " + maxConcurrentCost/MB + "MB, a query limit of " + maxQueryCost/MB + "MB and policy " + expensiveQueryPolicy);
+	}
+
+	/**
+	 * The estimated cost of a retrieval request; this is the sum over all the PVs in the request.
+	 */
+	public static class QueryCost {
+		long estimatedMemoryBytes = 0;
+		long estimatedBytesToRead = 0;
+		long estimatedEvents = 0;
+		int remoteSources = 0;
+		long spanSeconds = 0;
+		boolean rawData = true;
+
+		public long getEstimatedMemoryBytes() {
+			return estimatedMemoryBytes;
+		}
+
+		public long getEstimatedBytesToRead() {
+			return estimatedBytesToRead;
+		}
+
+		public long getEstimatedEvents() {
+			return estimatedEvents;
+		}
+
+		public int getRemoteSources() {
+			return remoteSources;
+		}
+
+		/**
+		 * Data for a PV in the request is proxied from another appliance.
+		 */
+		public void addRemoteSource() {
+			remoteSources++;
+		}
+
+		@Override
+		public String toString() {
+			DecimalFormat twoSignificantDigits = new DecimalFormat("###,###,###,###,###,###.##");
+			return "memory " + twoSignificantDigits.format((double)estimatedMemoryBytes/MB) + "MB"
+					+ " read " + twoSignificantDigits.format((double)estimatedBytesToRead/MB) + "MB"
+					+ " events " + estimatedEvents
+					+ " remote sources " + remoteSources;
+		}
+	}
+
+	/**
+	 * Add the cost of retrieving data for this PV to the cost of the request.
+	 * The post processor should have been initialized.
+	 * This runs before admission; so we do not resolve the data sources here (which looks for the first event in each store) and we do not list any folders.
+	 * For PlainPB stores, we use the sizes of the partitions in the partition catalog; for the other stores and for PlainPB stores without a catalog, we use the storage rate of the PV.
+	 * @param cost
+	 * @param configService
+	 * @param pvName
+	 * @param typeInfo
+	 * @param postProcessor
+	 * @param requestTimes
+	 * @param req
+	 */
+	public static void addPVCost(QueryCost cost, ConfigService configService, String pvName, PVTypeInfo typeInfo, PostProcessor postProcessor, List<TimeSpan> requestTimes, HttpServletRequest req) {
+		Timestamp start = requestTimes.get(0).getStartTime();
+		Timestamp end = requestTimes.get(requestTimes.size()-1).getEndTime();
+		long spanSeconds = 0;
+		for(TimeSpan timeSpan : requestTimes) {
+			spanSeconds += Math.max(0, TimeUtils.convertToEpochSeconds(timeSpan.getEndTime()) - TimeUtils.convertToEpochSeconds(timeSpan.getStartTime()));
+		}
+		cost.spanSeconds = Math.max(cost.spanSeconds, spanSeconds);
+		if(!(postProcessor instanceof DefaultRawPostProcessor)) cost.rawData = false;
+		cost.estimatedMemoryBytes += Math.max(0, postProcessor.estimateMemoryConsumption(pvName, typeInfo, start, end, req));
+		cost.estimatedEvents += (long) (typeInfo.getComputedEventRate()*spanSeconds);
+
+		long rateBasedBytes = (long) (typeInfo.getComputedStorageRate()*spanSeconds);
+		// The engine only has the data in its buffers; so this is cheap and we do not charge for it.
+		try(BasicContext context = new BasicContext()) {
+			for(String store : typeInfo.getDataStores()) {
+				cost.estimatedBytesToRead += estimateBytesToRead(context, configService, store, pvName, requestTimes, rateBasedBytes, cost);
+			}
+		} catch(IOException ex) {
+			logger.warn("Exception closing the context when estimating the cost of the request for " + pvName, ex);
+		}
+		if(RetrievalState.includeExternalServers(req) && (typeInfo.getCreationTime() == null || start.before(typeInfo.getCreationTime()))) {
+			List<ChannelArchiverDataServerPVInfo> caServers = configService.getChannelArchiverDataServers(pvName);
+			if(caServers != null) {
+				cost.remoteSources += caServers.size();
+				cost.estimatedBytesToRead += rateBasedBytes*caServers.size();
+			}
+		}
+	}
+
+	private static long estimateBytesToRead(BasicContext context, ConfigService configService, String store, String pvName, List<TimeSpan> requestTimes, long rateBasedBytes, QueryCost cost) {
+		try {
+			StoragePlugin storagePlugin = StoragePluginURLParser.parseStoragePlugin(store, configService);
+			if(storagePlugin instanceof PlainPBStoragePlugin) {
+				long bytesToRead = 0;
+				for(TimeSpan timeSpan : requestTimes) {
+					long partitionBytes = ((PlainPBStoragePlugin) storagePlugin).estimateBytesToRead(context, pvName, timeSpan.getStartTime(), timeSpan.getEndTime());
+					if(partitionBytes < 0) return rateBasedBytes;
+					bytesToRead += partitionBytes;
+				}
+				return bytesToRead;
+			} else if(storagePlugin instanceof PBOverHTTPStoragePlugin || storagePlugin instanceof ChannelArchiverReadOnlyPlugin) {
+				cost.remoteSources++;
+			}
+		} catch(IOException ex) {
+			logger.warn("Exception estimating the size of the data for " + pvName + " in " + store + "; using the storage rate instead", ex);
+		}
+		return rateBasedBytes;
+	}
+
+	/**
+	 * The cost we charge against the budget for this request.
+	 * @param cost
+	 * @return
+	 */
+	long chargeFor(QueryCost cost) {
+		return cost.estimatedMemoryBytes + (long) (cost.estimatedBytesToRead*readCostFactor) + cost.remoteSources*remoteSourceCost;
+	}
+
+	/**
+	 * Trust the X-Forwarded-For header from the <code>trustedProxies</code> in archappl.properties and from the other appliances in the cluster.
+	 * This is called when the retrieval servlet initializes.
+	 * @param configService
+	 */
+	public static void configureTrustedProxies(ConfigService configService) {
+		LinkedList<String> hosts = new LinkedList<String>();
+		for(String trustedProxy : configService.getInstallationProperties().getProperty(PROPERTY_PREFIX + "trustedProxies", "").split(",")) {
+			if(!trustedProxy.trim().isEmpty()) hosts.add(trustedProxy.trim());
+		}
+		for(ApplianceInfo applianceInfo : configService.getAppliancesInCluster()) {
+			for(String url : new String[] { applianceInfo.getRetrievalURL(), applianceInfo.getDataRetrievalURL(), applianceInfo.getMgmtURL() }) {
+				try {
+					if(url != null) hosts.add(new URL(url).getHost());
+				} catch(IOException ex) {
+					logger.warn("Cannot determine the host for appliance " + applianceInfo.getIdentity() + " from " + url, ex);
+				}
+			}
+		}
+		setTrustedProxies(hosts);
+	}
+
+	/**
+	 * Set the proxies whose X-Forwarded-For we trust.
+	 * @param hosts - Host names or addresses.
+	 */
+	static void setTrustedProxies(Collection<String> hosts) {
+		HashSet<String> addresses = new HashSet<String>();
+		for(String host : hosts) {
+			addresses.add(host);
+			try {
+				for(InetAddress address : InetAddress.getAllByName(host)) {
+					addresses.add(address.getHostAddress());
+				}
+			} catch(UnknownHostException ex) {
+				logger.warn("Cannot resolve trusted proxy " + host, ex);
+			}
+		}
+		logger.info("Trusting X-Forwarded-For from " + addresses);
+		trustedProxyAddresses = addresses;
+	}
+
+	/**
+	 * @param req
+	 * @return Does this request come from one of the <code>trustedProxies</code> or from another appliance in the cluster?
+	 */
+	public static boolean isFromTrustedProxy(HttpServletRequest req) {
+		return trustedProxyAddresses.contains(req.getRemoteAddr());
+	}
+
+	/**
+	 * The client making the request.
+	 * If the request comes from a trusted proxy, we use the last address in X-Forwarded-For that is not a trusted proxy; else we use the remote address.
+	 * @param req
+	 * @return
+	 */
+	public static String getClientId(HttpServletRequest req) {
+		String remoteAddr = req.getRemoteAddr();
+		Set<String> trusted = trustedProxyAddresses;
+		String forwardedFor = req.getHeader("X-Forwarded-For");
+		if(forwardedFor == null || forwardedFor.isEmpty() || !trusted.contains(remoteAddr)) {
+			return remoteAddr;
+		}
+		String[] hops = forwardedFor.split(",");
+		for(int i = hops.length - 1; i >= 0; i--) {
+			String hop = hops[i].trim();
+			if(hop.isEmpty()) continue;
+			if(i == 0 || !trusted.contains(hop)) return hop;
+		}
+		return remoteAddr;
+	}
+
+	/**
+	 * The result of admission; if admitted, the caller must close this when the request is done.
+	 */
+	public class Admission implements AutoCloseable {
+		private final String clientId;
+		private final long charge;
+		private boolean admitted = false;
+		private boolean closed = false;
+		private int httpStatus = 0;
+		private String message = null;
+		private String suggestedPostProcessor = null;
+		private long retryAfterSeconds = 0;
+		private final Condition grantedCondition = lock.newCondition();
+
+		Admission(String clientId, long charge) {
+			this.clientId = clientId;
+			this.charge = charge;
+		}
+
+		public boolean isAdmitted() {
+			return admitted;
+		}
+
+		/**
+		 * @return The HTTP status to send if this request was not admitted.
+		 */
+		public int getHttpStatus() {
+			return httpStatus;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return The post processor (for example, <code>mean_3600</code>) we suggest instead of raw data; this may be null.
+		 */
+		public String getSuggestedPostProcessor() {
+			return suggestedPostProcessor;
+		}
+
+		/**
+		 * @return If this request was rejected because we were busy, when the client should retry; else 0.
+		 */
+		public long getRetryAfterSeconds() {
+			return retryAfterSeconds;
+		}
+
+		private void reject(int httpStatus, String message, long retryAfterSeconds) {
+			this.httpStatus = httpStatus;
+			this.message = message;
+			this.retryAfterSeconds = retryAfterSeconds;
+		}
+
+		@Override
+		public void close() {
+			lock.lock();
+			try {
+				if(!admitted || closed) return;
+				closed = true;
+				inFlightCost -= charge;
+				inFlightQueries--;
+				Integer clientCount = inFlightPerClient.get(clientId);
+				if(clientCount == null || clientCount <= 1) {
+					inFlightPerClient.remove(clientId);
+				} else {
+					inFlightPerClient.put(clientId, clientCount - 1);
+				}
+				grantWaiters();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Admit this request; this may wait in the queue for upto queueTimeoutSeconds.
+	 * @param clientId
+	 * @param cost
+	 * @param description - Used for logging.
+	 * @return
+	 */
+	public Admission admit(String clientId, QueryCost cost, String description) {
+		long charge = chargeFor(cost);
+		Admission admission = new Admission(clientId, Math.min(charge, maxConcurrentCost));
+		if(charge > maxQueryCost && expensiveQueryPolicy != ExpensiveQueryPolicy.QUEUE) {
+			DecimalFormat twoSignificantDigits = new DecimalFormat("###,###,###,###,###,###.##");
+			String costStr = "The estimated cost of this request (" + cost.toString() + ") exceeds the limit of " + twoSignificantDigits.format((double)maxQueryCost/MB) + "MB.";
+			if(expensiveQueryPolicy == ExpensiveQueryPolicy.SUGGEST_BINNING && cost.rawData && cost.spanSeconds > suggestedBins) {
+				long binSeconds = (cost.spanSeconds + suggestedBins - 1)/suggestedBins;
+				admission.suggestedPostProcessor = "mean_" + binSeconds;
+				admission.reject(SC_TOO_MANY_REQUESTS, costStr + " Please use a binned post processor; for example, " + admission.suggestedPostProcessor + "(pvName)", 0);
+				suggestedBinning.incrementAndGet();
+			} else {
+				admission.reject(SC_TOO_MANY_REQUESTS, costStr + " Please narrow the time range of the request.", 0);
+				rejectedExpensive.incrementAndGet();
+			}
+			logger.warn("Rejecting request " + description + " from " + clientId + ": " + admission.message);
+			return admission;
+		}
+
+		long waitStart = System.currentTimeMillis();
+		lock.lock();
+		try {
+			// Requests ahead of us in the queue may be waiting only because their client is at its limit; so we join the queue and see if we can run.
+			queue.add(admission);
+			grantWaiters();
+			if(admission.admitted) {
+				return admission;
+			}
+			queue.remove(admission);
+			if(queue.size() >= maxQueueLength) {
+				admission.reject(SC_TOO_MANY_REQUESTS, "The retrieval queue is full; please try again later.", Math.max(1, queueTimeoutMillis/1000));
+				rejectedBusy.incrementAndGet();
+				logger.warn("Rejecting request " + description + " from " + clientId + " as the queue is full");
+				return admission;
+			}
+			Integer clientCount = inFlightPerClient.get(clientId);
+			if(clientCount != null && clientCount >= maxConcurrentPerClient) clientLimited.incrementAndGet();
+			queue.add(admission);
+			queued.incrementAndGet();
+			maxQueueLengthSeen = Math.max(maxQueueLengthSeen, queue.size());
+			logger.debug("Queueing request " + description + " from " + clientId + " with cost " + cost.toString());
+			long remainingNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+			try {
+				while(!admission.admitted && remainingNanos > 0) {
+					remainingNanos = admission.grantedCondition.awaitNanos(remainingNanos);
+				}
+			} catch(InterruptedException ex) {
+				logger.debug("Interrupted waiting in the retrieval queue");
+			}
+			if(!admission.admitted) {
+				queue.remove(admission);
+				// We may have been blocking others behind us.
+				grantWaiters();
+				admission.reject(SC_TOO_MANY_REQUESTS, "Timed out waiting in the retrieval queue; please try again later.", Math.max(1, queueTimeoutMillis/1000));
+				rejectedBusy.incrementAndGet();
+				logger.warn("Rejecting request " + description + " from " + clientId + " after waiting in the queue for " + (System.currentTimeMillis() - waitStart) + "(ms)");
+			}
+		} finally {
+			lock.unlock();
+		}
+		long waitMillis = System.currentTimeMillis() - waitStart;
+		totalQueueWaitMillis.addAndGet(waitMillis);
+		if(waitMillis > maxQueueWaitMillis.get()) maxQueueWaitMillis.set(waitMillis);
+		return admission;
+	}
+
+	private boolean canRun(Admission admission) {
+		Integer clientCount = inFlightPerClient.get(admission.clientId);
+		if(clientCount != null && clientCount >= maxConcurrentPerClient) return false;
+		if(inFlightQueries >= maxConcurrentQueries) return false;
+		return inFlightQueries == 0 || (inFlightCost + admission.charge) <= maxConcurrentCost;
+	}
+
+	private void grant(Admission admission) {
+		admission.admitted = true;
+		inFlightCost += admission.charge;
+		inFlightQueries++;
+		Integer clientCount = inFlightPerClient.get(admission.clientId);
+		inFlightPerClient.put(admission.clientId, clientCount == null ? 1 : clientCount + 1);
+		admitted.incrementAndGet();
+	}
+
+	/**
+	 * Grant waiters in FIFO order.
+	 * Waiters held back only by their client's concurrency limit are skipped; we stop at the first waiter that does not fit in the budget so that large requests are not starved.
+	 * Called with the lock held.
+	 */
+	private void grantWaiters() {
+		Iterator<Admission> it = queue.iterator();
+		while(it.hasNext()) {
+			Admission waiter = it.next();
+			Integer clientCount = inFlightPerClient.get(waiter.clientId);
+			if(clientCount != null && clientCount >= maxConcurrentPerClient) continue;
+			if(!canRun(waiter)) break;
+			it.remove();
+			grant(waiter);
+			waiter.grantedCondition.signal();
+		}
+	}
+
+	public Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		lock.lock();
+		try {
+			ret.put("queueLength", Integer.toString(queue.size()));
+			ret.put("inFlightQueries", Integer.toString(inFlightQueries));
+			ret.put("inFlightCostMB", Long.toString(inFlightCost/MB));
+			ret.put("inFlightClients", Integer.toString(inFlightPerClient.size()));
+			ret.put("maxConcurrentQueries", Integer.toString(maxConcurrentQueries));
+		} finally {
+			lock.unlock();
+		}
+		ret.put("maxQueueLength", Integer.toString(maxQueueLengthSeen));
+		ret.put("admitted", Long.toString(admitted.get()));
+		ret.put("queued", Long.toString(queued.get()));
+		ret.put("avgQueueWaitMillis", Long.toString(queued.get() > 0 ? totalQueueWaitMillis.get()/queued.get() : 0));
+		ret.put("maxQueueWaitMillis", Long.toString(maxQueueWaitMillis.get()));
+		ret.put("rejectedExpensive", Long.toString(rejectedExpensive.get()));
+		ret.put("rejectedBusy", Long.toString(rejectedBusy.get()));
+		ret.put("suggestedBinning", Long.toString(suggestedBinning.get()));
+		ret.put("clientLimited", Long.toString(clientLimited.get()));
+		return ret;
+	}
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.common.TimeSpan;
+import org.epics.archiverappliance.common.TimeUtils;
+
+/**
+ * Retrieval requests are classified into lanes so that bulk exports and inter-appliance traffic do not affect the latency of interactive requests (plots in CSS/Phoebus, sparklines in web pages).
+ * <ul>
+ * <li><code>PROXY</code> - Requests from other appliances in the cluster; these are identified by the {@link #CALLER_HEADER} header that the PBOverHTTP plugin sends.
+ * As any client can set this header, we honor it only for requests from the other appliances and the trusted proxies (see {@link RetrievalAdmissionControl#isFromTrustedProxy}).</li>
+ * <li><code>BULK</code> - Requests for a bulk mime type (Matlab, CSV, text by default), requests for more than <code>bulkPVCount</code> PVs,
+ * requests for raw data spanning more than <code>bulkSpanDays</code>, and requests from the clients in <code>bulkClients</code>.</li>
+ * <li><code>INTERACTIVE</code> - Everything else.</li>
+ * </ul>
+ * The lanes do not have their own threads; requests run on the container's threads.
+ * What separates the lanes is that each lane has its own {@link RetrievalAdmissionControl}; so each lane has its own limit on the number of concurrent requests, its own memory budget and queue.
+ * As admission control is turned off by default, by default the lanes only classify and count the requests; turn on admission control to keep bulk requests from crowding out interactive ones.
+ * In addition, the output of a lane can be limited to <code>maxBytesPerSecond</code>; this applies even if admission control is turned off.
+ * When admission control is on, by default the bulk lane runs fewer requests than the interactive lane.
+ *
+ * These can be configured in archappl.properties using <code>org.epics.archiverappliance.retrieval.RetrievalLanes.</code> followed by
+ * <code>bulkSpanDays</code>, <code>bulkPVCount</code>, <code>bulkMimeTypes</code>, <code>bulkClients</code> or <code>&lt;lane&gt;.maxBytesPerSecond</code>.
+ * The admission control for each lane is configured using <code>org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.&lt;lane&gt;.</code>
+ *
+ * @author mshankar
+ *
+ */
+public class RetrievalLanes {
+	private static final Logger logger = Logger.getLogger(RetrievalLanes.class.getName());
+	private static final String PROPERTY_PREFIX = "org.epics.archiverappliance.retrieval.RetrievalLanes.";
+	/**
+	 * Appliances set this header to {@link #APPLIANCE_CALLER} when they fetch data from another appliance.
+	 */
+	public static final String CALLER_HEADER = "X-Archappl-Caller";
+	public static final String APPLIANCE_CALLER = "appliance";
+
+	public enum Lane { INTERACTIVE, BULK, PROXY };
+
+	private static volatile RetrievalLanes theLanes = null;
+
+	private final long bulkSpanSeconds;
+	private final int bulkPVCount;
+	private final HashSet<String> bulkMimeTypes = new HashSet<String>();
+	private final HashSet<String> bulkClients = new HashSet<String>();
+	private final EnumMap<Lane, RetrievalAdmissionControl> admissionControls = new EnumMap<Lane, RetrievalAdmissionControl>(Lane.class);
+	private final EnumMap<Lane, Long> maxBytesPerSecond = new EnumMap<Lane, Long>(Lane.class);
+	private final EnumMap<Lane, AtomicLong> requests = new EnumMap<Lane, AtomicLong>(Lane.class);
+	private final EnumMap<Lane, AtomicLong> bytesSent = new EnumMap<Lane, AtomicLong>(Lane.class);
+
+	/**
+	 * Configure the lanes for this webapp; this is called when the retrieval servlet initializes.
+	 * @param installationProperties
+	 */
+	public static synchronized void configure(Properties installationProperties) {
+		if(theLanes != null) return;
+		theLanes = new RetrievalLanes(installationProperties);
+	}
+
+	/**
+	 * @return The lanes for this webapp; null if the retrieval servlet has not been initialized.
+	 */
+	public static RetrievalLanes getLanes() {
+		return theLanes;
+	}
+
+	RetrievalLanes(Properties installationProperties) {
+		this.bulkSpanSeconds = Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "bulkSpanDays", "7"))*24*60*60;
+		this.bulkPVCount = Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "bulkPVCount", "20"));
+		for(String mimeType : installationProperties.getProperty(PROPERTY_PREFIX + "bulkMimeTypes", "mat,csv,txt").split(",")) {
+			if(!mimeType.trim().isEmpty()) bulkMimeTypes.add(mimeType.trim());
+		}
+		for(String client : installationProperties.getProperty(PROPERTY_PREFIX + "bulkClients", "").split(",")) {
+			if(!client.trim().isEmpty()) bulkClients.add(client.trim());
+		}
+
+		for(Lane lane : Lane.values()) {
+			HashMap<String, String> laneDefaults = new HashMap<String, String>();
+			switch(lane) {
+			case BULK:
+				laneDefaults.put("maxConcurrentQueries", "4");
+				laneDefaults.put("maxConcurrentCostMB", "512");
+				laneDefaults.put("maxConcurrentPerClient", "2");
+				laneDefaults.put("queueTimeoutSeconds", "300");
+				break;
+			case PROXY:
+				laneDefaults.put("maxConcurrentQueries", "16");
+				laneDefaults.put("maxConcurrentCostMB", "512");
+				laneDefaults.put("maxConcurrentPerClient", "16");
+				break;
+			case INTERACTIVE:
+			default:
+				break;
+			}
+			RetrievalAdmissionControl admissionControl = RetrievalAdmissionControl.fromProperties(lane.toString(), installationProperties, laneDefaults);
+			if(admissionControl != null) admissionControls.put(lane, admissionControl);
+			maxBytesPerSecond.put(lane, Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + lane.toString() + ".maxBytesPerSecond", "0")));
+			requests.put(lane, new AtomicLong(0));
+			bytesSent.put(lane, new AtomicLong(0));
+		}
+		logger.info("Retrieval lanes using bulk span " + bulkSpanSeconds + "(s), bulk PV count " + bulkPVCount + " and bulk mime types " + bulkMimeTypes);
+	}
+
+	/**
+	 * Classify this request into a lane.
+	 * @param req
+	 * @param extension - The mime type.
+	 * @param pvCount - The number of PVs in the request.
+	 * @param requestTimes - The time spans in the request.
+	 * @param rawData - Is this request for raw data? Requests for binned data are not classified as bulk based on their span.
+	 * @return
+	 */
+	public Lane classify(HttpServletRequest req, String extension, int pvCount, List<TimeSpan> requestTimes, boolean rawData) {
+		Lane lane = determineLane(req, extension, pvCount, requestTimes, rawData);
+		requests.get(lane).incrementAndGet();
+		return lane;
+	}
+
+	private Lane determineLane(HttpServletRequest req, String extension, int pvCount, List<TimeSpan> requestTimes, boolean rawData) {
+		if(APPLIANCE_CALLER.equals(req.getHeader(CALLER_HEADER)) && RetrievalAdmissionControl.isFromTrustedProxy(req)) {
+			return Lane.PROXY;
+		}
+		if(bulkMimeTypes.contains(extension)) {
+			return Lane.BULK;
+		}
+		if(pvCount > bulkPVCount) {
+			return Lane.BULK;
+		}
+		if(!bulkClients.isEmpty() && bulkClients.contains(RetrievalAdmissionControl.getClientId(req))) {
+			return Lane.BULK;
+		}
+		if(rawData) {
+			long spanSeconds = 0;
+			for(TimeSpan timeSpan : requestTimes) {
+				spanSeconds += TimeUtils.convertToEpochSeconds(timeSpan.getEndTime()) - TimeUtils.convertToEpochSeconds(timeSpan.getStartTime());
+			}
+			if(spanSeconds > bulkSpanSeconds) {
+				return Lane.BULK;
+			}
+		}
+		return Lane.INTERACTIVE;
+	}
+
+	/**
+	 * @param lane
+	 * @return The admission control for this lane; null if admission control is turned off for this lane.
+	 */
+	public RetrievalAdmissionControl getAdmissionControl(Lane lane) {
+		return admissionControls.get(lane);
+	}
+
+	/**
+	 * Wrap the response's output stream so that we count the bytes sent in this lane and throttle the lane if it has a maxBytesPerSecond.
+	 * @param lane
+	 * @param os
+	 * @return
+	 */
+	public OutputStream wrapOutputStream(Lane lane, OutputStream os) {
+		return new LaneOutputStream(os, maxBytesPerSecond.get(lane), bytesSent.get(lane));
+	}
+
+	public Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		for(Lane lane : Lane.values()) {
+			ret.put(lane.toString() + " requests", Long.toString(requests.get(lane).get()));
+			ret.put(lane.toString() + " MB sent", Long.toString(bytesSent.get(lane).get()/(1024*1024)));
+			RetrievalAdmissionControl admissionControl = admissionControls.get(lane);
+			if(admissionControl != null) {
+				for(Map.Entry<String, String> admissionMetric : admissionControl.getMetrics().entrySet()) {
+					ret.put(lane.toString() + " " + admissionMetric.getKey(), admissionMetric.getValue());
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Counts the bytes sent and, if the lane has a limit, sleeps so that this response stays under maxBytesPerSecond.
+	 * The limit is per response; the lane's limit on concurrent requests bounds the total.
+	 */
+	static class LaneOutputStream extends FilterOutputStream {
+		private static final int CHUNK_SIZE = 64*1024;
+		private final long maxBytesPerSecond;
+		private final AtomicLong bytesSent;
+		private final long startNanos = System.nanoTime();
+		private long bytesWritten = 0;
+
+		LaneOutputStream(OutputStream os, long maxBytesPerSecond, AtomicLong bytesSent) {
+			super(os);
+			this.maxBytesPerSecond = maxBytesPerSecond;
+			this.bytesSent = bytesSent;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			wrote(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				int chunk = Math.min(len, CHUNK_SIZE);
+				out.write(b, off, chunk);
+				wrote(chunk);
+				off += chunk;
+				len -= chunk;
+			}
+		}
+
+		private void wrote(int len) throws IOException {
+			bytesWritten += len;
+			bytesSent.addAndGet(len);
+			if(maxBytesPerSecond <= 0) return;
+			long expectedNanos = (bytesWritten*1000000000L)/maxBytesPerSecond;
+			long aheadNanos = expectedNanos - (System.nanoTime() - startNanos);
+			if(aheadNanos > 1000000L) {
+				try {
+					Thread.sleep(aheadNanos/1000000L, (int) (aheadNanos % 1000000L));
+				} catch(InterruptedException ex) {
+					throw new InterruptedIOException("Interrupted throttling the response");
+				}
+			}
+		}
+	}
+}
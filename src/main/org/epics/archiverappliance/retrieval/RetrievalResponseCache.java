@@ -0,0 +1,606 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.TimeSpan;
+import org.epics.archiverappliance.common.TimeUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.FieldValue;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo.Builder;
+import edu.stanford.slac.archiverappliance.PBOverHTTP.InputStreamBackedEventStream;
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * A cache of the event streams generated for single PV data retrieval requests.
+ * Control room dashboards often send identical requests (same PV, same time window, same post processor) from many clients at the same time.
+ * <ul>
+ * <li>Entries are keyed by the normalized request; the PV name, the post processor (with its arguments) and the time spans.
+ * The cached data is independent of the mime type; so a request for JSON can be served from data cached for a CSV request.</li>
+ * <li>The event streams are captured as they are sent to the first client; each stream is stored in the PB raw format (a header followed by escaped events; with a new header on a change in years).
+ * On a hit, these are replayed thru the usual merge/dedup consumer and mime response.</li>
+ * <li>Identical requests that arrive while the first request is still being processed wait for it to complete and are then served from the cache (single flight).</li>
+ * <li>Requests whose end time is older than <code>immutableAfterSeconds</code> only read data from partitions that no longer change; these are cached for <code>immutableTTLSeconds</code>.
+ * Requests that include the live tail (the engine's buffers and the current partitions) are cached only for <code>liveTTLSeconds</code>; this is mostly to coalesce bursts of identical requests.</li>
+ * <li>The cache is bounded by memory; larger entries are spilled into a folder if one is configured.
+ * Responses larger than <code>maxEntryMB</code> are not cached.</li>
+ * </ul>
+ *
+ * These can be configured in archappl.properties using <code>org.epics.archiverappliance.retrieval.RetrievalResponseCache.</code> followed by
+ * <ul>
+ * <li><code>maxMemoryMB</code> - The memory used by the cache; this defaults to 0 which turns off the cache.
+ * Cached responses are replayed without going thru retrieval admission control; so turn this on only if that is acceptable.</li>
+ * <li><code>maxEntryMB</code> - The largest response that we will cache.</li>
+ * <li><code>maxInMemoryEntryKB</code> - Responses larger than this are spilled into the spill folder.</li>
+ * <li><code>spillFolder</code> - The folder for spilled responses; if this is not specified, larger responses are not cached.</li>
+ * <li><code>maxSpillMB</code> - The space used in the spill folder.</li>
+ * <li><code>immutableAfterSeconds</code>, <code>immutableTTLSeconds</code> and <code>liveTTLSeconds</code> - See above.</li>
+ * <li><code>coalesceWaitSeconds</code> - How long identical requests wait for the first request to complete.</li>
+ * </ul>
+ *
+ * @author mshankar
+ *
+ */
+public class RetrievalResponseCache {
+	private static final Logger logger = Logger.getLogger(RetrievalResponseCache.class.getName());
+	private static final String PROPERTY_PREFIX = "org.epics.archiverappliance.retrieval.RetrievalResponseCache.";
+	// Spilled entries are accounted in the memory weight using this size.
+	private static final int SPILLED_ENTRY_WEIGHT = 1024;
+
+	private static volatile RetrievalResponseCache theCache = null;
+
+	private final long maxEntryBytes;
+	private final long maxInMemoryEntryBytes;
+	private final Path spillFolder;
+	private final long maxSpillBytes;
+	private final long immutableAfterMillis;
+	private final long immutableTTLMillis;
+	private final long liveTTLMillis;
+	private final long coalesceWaitMillis;
+	private final Cache<String, CachedResponse> responses;
+	private final ConcurrentHashMap<String, CountDownLatch> inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+
+	private final AtomicLong spilledBytes = new AtomicLong(0);
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong coalesced = new AtomicLong(0);
+	private final AtomicLong notCached = new AtomicLong(0);
+	private final AtomicLong spills = new AtomicLong(0);
+
+	/**
+	 * Configure the cache for this webapp; this is called when the retrieval servlet initializes.
+	 * @param installationProperties
+	 */
+	public static synchronized void configure(Properties installationProperties) {
+		if(theCache != null) return;
+		long maxMemoryMB = Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "maxMemoryMB", "0"));
+		if(maxMemoryMB <= 0) {
+			logger.info("The retrieval response cache is turned off");
+			return;
+		}
+		String spillFolderStr = installationProperties.getProperty(PROPERTY_PREFIX + "spillFolder");
+		theCache = new RetrievalResponseCache(maxMemoryMB*1024*1024,
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "maxEntryMB", "16"))*1024*1024,
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "maxInMemoryEntryKB", "1024"))*1024,
+				(spillFolderStr != null && !spillFolderStr.isEmpty()) ? Paths.get(spillFolderStr) : null,
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "maxSpillMB", "4096"))*1024*1024,
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "immutableAfterSeconds", "3600")),
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "immutableTTLSeconds", "600")),
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "liveTTLSeconds", "5")),
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "coalesceWaitSeconds", "60")));
+		logger.info("Created retrieval response cache with " + maxMemoryMB + "MB of memory and spill folder " + spillFolderStr);
+	}
+
+	/**
+	 * @return The cache for this webapp or null if caching is turned off.
+	 */
+	public static RetrievalResponseCache getCache() {
+		return theCache;
+	}
+
+	RetrievalResponseCache(long maxMemoryBytes, long maxEntryBytes, long maxInMemoryEntryBytes, Path spillFolder, long maxSpillBytes, long immutableAfterSeconds, long immutableTTLSeconds, long liveTTLSeconds, long coalesceWaitSeconds) {
+		this.maxEntryBytes = maxEntryBytes;
+		this.maxInMemoryEntryBytes = maxInMemoryEntryBytes;
+		this.spillFolder = spillFolder;
+		this.maxSpillBytes = maxSpillBytes;
+		this.immutableAfterMillis = immutableAfterSeconds*1000;
+		this.immutableTTLMillis = immutableTTLSeconds*1000;
+		this.liveTTLMillis = liveTTLSeconds*1000;
+		this.coalesceWaitMillis = coalesceWaitSeconds*1000;
+		this.responses = CacheBuilder.newBuilder()
+				.maximumWeight(maxMemoryBytes)
+				.weigher(new Weigher<String, CachedResponse>() {
+					@Override
+					public int weigh(String key, CachedResponse value) {
+						return value.memoryWeight();
+					}
+				})
+				.expireAfterWrite(Math.max(immutableTTLSeconds, liveTTLSeconds), TimeUnit.SECONDS)
+				.removalListener(new RemovalListener<String, CachedResponse>() {
+					@Override
+					public void onRemoval(RemovalNotification<String, CachedResponse> notification) {
+						notification.getValue().deleteSpillFiles();
+					}
+				})
+				.build();
+	}
+
+	/**
+	 * Make the key for a request.
+	 * @param pvNameFromRequest - The PV name as the user asked for it; this could be a field.
+	 * @param pvName - The PV whose data we are retrieving.
+	 * @param postProcessorExtension - The post processor with its arguments.
+	 * @param requestTimes - The time spans in the request.
+	 * @param requestModifiers - Any other request parameters that change the data we return; for example, the raw post processor argument or the ChannelArchiver options.
+	 * @return
+	 */
+	public static String makeKey(String pvNameFromRequest, String pvName, String postProcessorExtension, List<TimeSpan> requestTimes, String... requestModifiers) {
+		StringBuilder buf = new StringBuilder();
+		buf.append(pvNameFromRequest).append('|').append(pvName).append('|').append(postProcessorExtension);
+		for(String requestModifier : requestModifiers) {
+			buf.append('|').append(requestModifier);
+		}
+		for(TimeSpan timeSpan : requestTimes) {
+			buf.append('|').append(timeSpan.getStartTime().getTime()).append('.').append(timeSpan.getStartTime().getNanos())
+			.append('-').append(timeSpan.getEndTime().getTime()).append('.').append(timeSpan.getEndTime().getNanos());
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * The result of a lookup; either a cached response or a capture that the caller should fill in and complete.
+	 * If both are null, the caller should process the request without caching.
+	 */
+	public static class Lookup {
+		public final CachedResponse cachedResponse;
+		public final Capture capture;
+		Lookup(CachedResponse cachedResponse, Capture capture) {
+			this.cachedResponse = cachedResponse;
+			this.capture = capture;
+		}
+	}
+
+	/**
+	 * Lookup the response for this key.
+	 * If an identical request is in flight, we wait for it to complete.
+	 * If this is the first request for this key, we return a Capture; the caller must call {@link Capture#complete(boolean) complete} on it when done.
+	 * @param key
+	 * @param end - The end of the request; used to determine if this request includes the live tail.
+	 * @return
+	 */
+	public Lookup lookup(String key, Timestamp end) {
+		long waitUntil = System.currentTimeMillis() + coalesceWaitMillis;
+		while(true) {
+			CachedResponse cachedResponse = getIfFresh(key);
+			if(cachedResponse != null) {
+				hits.incrementAndGet();
+				return new Lookup(cachedResponse, null);
+			}
+			CountDownLatch myLatch = new CountDownLatch(1);
+			CountDownLatch existingLatch = inFlight.putIfAbsent(key, myLatch);
+			if(existingLatch == null) {
+				misses.incrementAndGet();
+				long ttlMillis = (end.getTime() < (System.currentTimeMillis() - immutableAfterMillis)) ? immutableTTLMillis : liveTTLMillis;
+				return new Lookup(null, new Capture(key, ttlMillis, myLatch));
+			}
+			coalesced.incrementAndGet();
+			long waitMillis = waitUntil - System.currentTimeMillis();
+			try {
+				if(waitMillis <= 0 || !existingLatch.await(waitMillis, TimeUnit.MILLISECONDS)) {
+					logger.debug("Timed out waiting for an identical request to complete for " + key);
+					return new Lookup(null, null);
+				}
+			} catch(InterruptedException ex) {
+				return new Lookup(null, null);
+			}
+			cachedResponse = getIfFresh(key);
+			if(cachedResponse != null) {
+				hits.incrementAndGet();
+				return new Lookup(cachedResponse, null);
+			}
+			// The request we waited for did not cache its response; we do not want to wait again.
+			return new Lookup(null, null);
+		}
+	}
+
+	/**
+	 * Remove this response; for example, if a spill file has gone missing.
+	 * @param key
+	 */
+	public void invalidate(String key) {
+		responses.invalidate(key);
+	}
+
+	private CachedResponse getIfFresh(String key) {
+		CachedResponse cachedResponse = responses.getIfPresent(key);
+		if(cachedResponse == null) return null;
+		if(System.currentTimeMillis() > cachedResponse.expiresAtMillis) {
+			responses.invalidate(key);
+			return null;
+		}
+		return cachedResponse;
+	}
+
+	public Map<String, String> getMetrics() {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		ret.put("entries", Long.toString(responses.size()));
+		ret.put("hits", Long.toString(hits.get()));
+		ret.put("misses", Long.toString(misses.get()));
+		ret.put("coalesced", Long.toString(coalesced.get()));
+		ret.put("notCached", Long.toString(notCached.get()));
+		ret.put("spills", Long.toString(spills.get()));
+		ret.put("spilledBytes", Long.toString(spilledBytes.get()));
+		return ret;
+	}
+
+	/**
+	 * A stream in a cached response; this is in the PB raw format either in memory or in a spill file.
+	 */
+	static class CachedStream {
+		final String source;
+		final boolean startsPV;
+		byte[] data;
+		Path spillFile;
+		final long size;
+
+		CachedStream(String source, boolean startsPV, byte[] data) {
+			this.source = source;
+			this.startsPV = startsPV;
+			this.data = data;
+			this.size = data.length;
+		}
+	}
+
+	/**
+	 * A cached response; a list of event streams in the order in which they were sent to the client.
+	 */
+	public class CachedResponse {
+		final List<CachedStream> streams;
+		final long expiresAtMillis;
+		final long totalSize;
+		final boolean spilled;
+
+		CachedResponse(List<CachedStream> streams, long expiresAtMillis, long totalSize, boolean spilled) {
+			this.streams = streams;
+			this.expiresAtMillis = expiresAtMillis;
+			this.totalSize = totalSize;
+			this.spilled = spilled;
+		}
+
+		int memoryWeight() {
+			return spilled ? SPILLED_ENTRY_WEIGHT : (int) Math.min(Integer.MAX_VALUE, totalSize);
+		}
+
+		/**
+		 * Open the cached streams for replay.
+		 * @return The streams in order; the caller should close these.
+		 * @throws IOException - If a spill file is missing.
+		 */
+		public List<ReplayedStream> openStreams() throws IOException {
+			LinkedList<ReplayedStream> ret = new LinkedList<ReplayedStream>();
+			try {
+				for(CachedStream cachedStream : streams) {
+					InputStream is = (cachedStream.spillFile != null) ? new BufferedInputStream(Files.newInputStream(cachedStream.spillFile)) : new ByteArrayInputStream(cachedStream.data);
+					InputStreamBackedEventStream strm = new InputStreamBackedEventStream(is, null);
+					if(strm.getDescription() != null) strm.getDescription().setSource("Response cache of " + cachedStream.source);
+					ret.add(new ReplayedStream(strm, cachedStream.startsPV));
+				}
+			} catch(IOException ex) {
+				for(ReplayedStream replayedStream : ret) replayedStream.stream.close();
+				throw ex;
+			}
+			return ret;
+		}
+
+		void deleteSpillFiles() {
+			if(!spilled) return;
+			for(CachedStream cachedStream : streams) {
+				if(cachedStream.spillFile == null) continue;
+				try {
+					Files.deleteIfExists(cachedStream.spillFile);
+				} catch(IOException ex) {
+					logger.warn("Exception deleting spill file " + cachedStream.spillFile, ex);
+				}
+			}
+			spilledBytes.addAndGet(-totalSize);
+		}
+	}
+
+	/**
+	 * A stream replayed from the cache.
+	 * startsPV is true if the original request called processingPV before this stream.
+	 */
+	public static class ReplayedStream {
+		public final InputStreamBackedEventStream stream;
+		public final boolean startsPV;
+		ReplayedStream(InputStreamBackedEventStream stream, boolean startsPV) {
+			this.stream = stream;
+			this.startsPV = startsPV;
+		}
+	}
+
+	/**
+	 * Captures the event streams as they are sent to the client.
+	 * If the response gets too large or if any of the streams cannot be captured, the capture is abandoned and nothing is cached.
+	 */
+	public class Capture {
+		private final String key;
+		private final long ttlMillis;
+		private final CountDownLatch latch;
+		private final ArrayList<CachedStream> streams = new ArrayList<CachedStream>();
+		private long totalSize = 0;
+		private boolean abandoned = false;
+		private boolean nextStreamStartsPV = false;
+
+		Capture(String key, long ttlMillis, CountDownLatch latch) {
+			this.key = key;
+			this.ttlMillis = ttlMillis;
+			this.latch = latch;
+		}
+
+		/**
+		 * The next stream follows a call to processingPV
+		 */
+		public void processingPV() {
+			nextStreamStartsPV = true;
+		}
+
+		/**
+		 * Wrap the event stream so that the events are captured as they are consumed.
+		 * @param strm
+		 * @return
+		 */
+		public EventStream capture(EventStream strm) {
+			if(abandoned) return strm;
+			if(!(strm.getDescription() instanceof RemotableEventStreamDesc)) {
+				logger.debug("Cannot capture an event stream without a RemotableEventStreamDesc for " + key);
+				abandon();
+				return strm;
+			}
+			CapturingEventStream capturingStream = new CapturingEventStream(strm, this, nextStreamStartsPV);
+			nextStreamStartsPV = false;
+			return capturingStream;
+		}
+
+		/**
+		 * Something went wrong; we do not cache this response.
+		 */
+		public void abandon() {
+			if(!abandoned) logger.debug("Abandoning capture for " + key);
+			abandoned = true;
+			streams.clear();
+		}
+
+		boolean addBytes(long bytes) {
+			totalSize += bytes;
+			if(totalSize > maxEntryBytes) {
+				logger.debug("Response for " + key + " is larger than " + maxEntryBytes + "; not caching");
+				abandon();
+				return false;
+			}
+			return true;
+		}
+
+		boolean isAbandoned() {
+			return abandoned;
+		}
+
+		void streamCaptured(CachedStream cachedStream) {
+			if(!abandoned) streams.add(cachedStream);
+		}
+
+		/**
+		 * We are done with the request; cache the response if it was successful and let any identical requests that are waiting proceed.
+		 * @param successful
+		 */
+		public void complete(boolean successful) {
+			try {
+				if(nextStreamStartsPV) {
+					// processingPV was called but we did not capture any stream after it; we cannot replay this faithfully.
+					abandon();
+				}
+				if(successful && !abandoned) {
+					boolean spilled = false;
+					if(totalSize > maxInMemoryEntryBytes) {
+						spilled = spill();
+					}
+					if(!spilled && totalSize > maxInMemoryEntryBytes) {
+						notCached.incrementAndGet();
+						return;
+					}
+					responses.put(key, new CachedResponse(new ArrayList<CachedStream>(streams), System.currentTimeMillis() + ttlMillis, totalSize, spilled));
+				} else {
+					notCached.incrementAndGet();
+				}
+			} finally {
+				inFlight.remove(key, latch);
+				latch.countDown();
+			}
+		}
+
+		private boolean spill() {
+			if(spillFolder == null) return false;
+			if(spilledBytes.addAndGet(totalSize) > maxSpillBytes) {
+				spilledBytes.addAndGet(-totalSize);
+				return false;
+			}
+			ArrayList<Path> spillFiles = new ArrayList<Path>();
+			try {
+				Files.createDirectories(spillFolder);
+				String prefix = UUID.randomUUID().toString();
+				int i = 0;
+				for(CachedStream cachedStream : streams) {
+					Path spillFile = spillFolder.resolve(prefix + "_" + (i++) + ".pb");
+					Files.write(spillFile, cachedStream.data);
+					spillFiles.add(spillFile);
+					cachedStream.spillFile = spillFile;
+				}
+				for(CachedStream cachedStream : streams) {
+					cachedStream.data = null;
+				}
+				spills.incrementAndGet();
+				return true;
+			} catch(IOException ex) {
+				logger.error("Exception spilling cached response for " + key + " into " + spillFolder, ex);
+				for(Path spillFile : spillFiles) {
+					try { Files.deleteIfExists(spillFile); } catch(IOException ex2) { }
+				}
+				for(CachedStream cachedStream : streams) {
+					cachedStream.spillFile = null;
+				}
+				spilledBytes.addAndGet(-totalSize);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * An event stream that captures the events in the PB raw format as they are iterated over.
+	 * The merge dedup consumer may iterate over the same stream more than once in case of a change in years; we simply continue capturing.
+	 */
+	static class CapturingEventStream implements EventStream, RemotableOverRaw {
+		private final EventStream strm;
+		private final Capture capture;
+		private final boolean startsPV;
+		private ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private short currentYear = 0;
+		private boolean firstChunk = true;
+
+		CapturingEventStream(EventStream strm, Capture capture, boolean startsPV) {
+			this.strm = strm;
+			this.capture = capture;
+			this.startsPV = startsPV;
+		}
+
+		@Override
+		public RemotableEventStreamDesc getDescription() {
+			return (RemotableEventStreamDesc) strm.getDescription();
+		}
+
+		@Override
+		public Iterator<Event> iterator() {
+			final Iterator<Event> it = strm.iterator();
+			return new Iterator<Event>() {
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public Event next() {
+					Event e = it.next();
+					if(e != null && out != null) captureEvent(e);
+					return e;
+				}
+
+				@Override
+				public void remove() {
+					it.remove();
+				}
+			};
+		}
+
+		private void captureEvent(Event e) {
+			try {
+				short eventYear = TimeUtils.convertToYearSecondTimestamp(e.getEventTimeStamp()).getYear();
+				int sizeBefore = out.size();
+				if(eventYear != currentYear) {
+					writeHeader(out, eventYear);
+					currentYear = eventYear;
+				}
+				ByteArray val = e.getRawForm();
+				out.write(val.data, val.off, val.len);
+				out.write(LineEscaper.NEWLINE_CHAR);
+				if(!capture.addBytes(out.size() - sizeBefore)) {
+					out = null;
+				}
+			} catch(Exception ex) {
+				logger.warn("Exception capturing event for the response cache", ex);
+				capture.abandon();
+				out = null;
+			}
+		}
+
+		private void writeHeader(OutputStream os, short year) throws IOException {
+			RemotableEventStreamDesc desc = getDescription();
+			Builder builder = PayloadInfo.newBuilder()
+					.setPvname(desc.getPvName())
+					.setType(desc.getArchDBRType().getPBPayloadType())
+					.setYear(year)
+					.setElementCount(desc.getElementCount());
+			Map<String, String> headers = desc.getHeaders();
+			if(!headers.isEmpty()) {
+				LinkedList<FieldValue> fieldValuesList = new LinkedList<FieldValue>();
+				for(String fieldName : headers.keySet()) {
+					String fieldValue = headers.get(fieldName);
+					if(fieldValue != null && !fieldValue.isEmpty()) {
+						fieldValuesList.add(EPICSEvent.FieldValue.newBuilder().setName(fieldName).setVal(fieldValue).build());
+					}
+				}
+				builder.addAllHeaders(fieldValuesList);
+			}
+			if(firstChunk) {
+				firstChunk = false;
+			} else {
+				os.write(LineEscaper.NEWLINE_CHAR);
+			}
+			os.write(LineEscaper.escapeNewLines(builder.build().toByteArray()));
+			os.write(LineEscaper.NEWLINE_CHAR);
+		}
+
+		/**
+		 * We are done consuming this stream; add what we captured to the response.
+		 * The wrapped stream is owned (and closed) by the caller.
+		 */
+		@Override
+		public void close() throws IOException {
+			if(out != null && !capture.isAbandoned()) {
+				if(out.size() == 0) {
+					// An empty stream; we still need the header so that the replayed stream has a description.
+					writeHeader(out, getDescription().getYear());
+				}
+				capture.streamCaptured(new CachedStream(strm.getDescription().getSource(), startsPV, out.toByteArray()));
+			}
+			out = null;
+		}
+	}
+}
@@ -9,17 +9,31 @@ package org.epics.archiverappliance.retrieval.bpl.reports;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.epics.archiverappliance.common.BPLAction;
 import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.retrieval.AsyncRetrieval;
+import org.epics.archiverappliance.retrieval.PointInTimeRetrieval;
+import org.epics.archiverappliance.retrieval.RetrievalLanes;
+import org.epics.archiverappliance.retrieval.RetrievalResponseCache;
+import org.epics.archiverappliance.retrieval.channelarchiver.ChannelArchiverChunkFetcher;
 import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
 import org.json.simple.JSONValue;
 
+import edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksumScrubber;
+import edu.stanford.slac.archiverappliance.PlainPB.PBBlockChecksums;
+import edu.stanford.slac.archiverappliance.PlainPB.PBFileInfoCache;
+import edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBLastKnownEventIndex;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBPrefetcher;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBReadCache;
+
 /**
  * Detail metrics for retrieval for an alliance.
  * @author mshankar
@@ -31,9 +45,81 @@ public class ApplianceMetricsDetails implements BPLAction {
 	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
 		resp.setContentType(MimeTypeConstants.APPLICATION_JSON);
 		try (PrintWriter out = resp.getWriter()) {
-			LinkedList<HashMap<String, String>> ret = new LinkedList<HashMap<String, String>>();
+			LinkedList<Map<String, String>> ret = new LinkedList<Map<String, String>>();
+			for(Map.Entry<String, String> cacheMetric : PBFileInfoCache.getMetrics().entrySet()) {
+				addDetailedStatus(ret, "PB file info cache " + cacheMetric.getKey(), cacheMetric.getValue());
+			}
+			PBPartitionSummaries partitionSummaries = configService.getPartitionSummaries();
+			if(partitionSummaries != null) {
+				for(Map.Entry<String, String> summaryMetric : partitionSummaries.getMetrics().entrySet()) {
+					addDetailedStatus(ret, "PB partition summaries " + summaryMetric.getKey(), summaryMetric.getValue());
+				}
+			}
+			for(Map.Entry<String, String> checksumMetric : PBBlockChecksums.getMetrics().entrySet()) {
+				addDetailedStatus(ret, "PB block checksums " + checksumMetric.getKey(), checksumMetric.getValue());
+			}
+			for(Map.Entry<String, Map<String, String>> scrubberMetrics : PBBlockChecksumScrubber.getAllMetrics().entrySet()) {
+				for(Map.Entry<String, String> scrubberMetric : scrubberMetrics.getValue().entrySet()) {
+					addDetailedStatus(ret, "Checksum scrub for " + scrubberMetrics.getKey() + " " + scrubberMetric.getKey(), scrubberMetric.getValue());
+				}
+			}
+			for(Map.Entry<String, Map<String, String>> indexMetrics : PlainPBLastKnownEventIndex.getAllMetrics().entrySet()) {
+				for(Map.Entry<String, String> indexMetric : indexMetrics.getValue().entrySet()) {
+					addDetailedStatus(ret, "Last known event index for " + indexMetrics.getKey() + " " + indexMetric.getKey(), indexMetric.getValue());
+				}
+			}
+			PlainPBPrefetcher prefetcher = PlainPBPrefetcher.getExistingPrefetcher();
+			if(prefetcher != null) {
+				for(Map.Entry<String, String> prefetchMetric : prefetcher.getMetrics().entrySet()) {
+					addDetailedStatus(ret, "PlainPB prefetch " + prefetchMetric.getKey(), prefetchMetric.getValue());
+				}
+			}
+			PlainPBReadCache readCache = PlainPBReadCache.getExistingReadCache();
+			if(readCache != null) {
+				for(Map.Entry<String, String> readCacheMetric : readCache.getMetrics().entrySet()) {
+					addDetailedStatus(ret, "PlainPB read cache " + readCacheMetric.getKey(), readCacheMetric.getValue());
+				}
+			}
+			RetrievalResponseCache responseCache = RetrievalResponseCache.getCache();
+			if(responseCache != null) {
+				for(Map.Entry<String, String> cacheMetric : responseCache.getMetrics().entrySet()) {
+					addDetailedStatus(ret, "Response cache " + cacheMetric.getKey(), cacheMetric.getValue());
+				}
+			}
+			RetrievalLanes lanes = RetrievalLanes.getLanes();
+			if(lanes != null) {
+				for(Map.Entry<String, String> laneMetric : lanes.getMetrics().entrySet()) {
+					addDetailedStatus(ret, "Lane " + laneMetric.getKey(), laneMetric.getValue());
+				}
+			}
+			AsyncRetrieval asyncRetrieval = AsyncRetrieval.getAsyncRetrieval();
+			if(asyncRetrieval != null) {
+				for(Map.Entry<String, String> asyncMetric : asyncRetrieval.getMetrics().entrySet()) {
+					addDetailedStatus(ret, "Async retrieval " + asyncMetric.getKey(), asyncMetric.getValue());
+				}
+			}
+			PointInTimeRetrieval pointInTimeRetrieval = PointInTimeRetrieval.getPointInTimeRetrieval();
+			if(pointInTimeRetrieval != null) {
+				for(Map.Entry<String, String> pointInTimeMetric : pointInTimeRetrieval.getMetrics().entrySet()) {
+					addDetailedStatus(ret, "Point in time " + pointInTimeMetric.getKey(), pointInTimeMetric.getValue());
+				}
+			}
+			ChannelArchiverChunkFetcher channelArchiverChunkFetcher = ChannelArchiverChunkFetcher.getExistingFetcher();
+			if(channelArchiverChunkFetcher != null) {
+				for(Map.Entry<String, String> channelArchiverMetric : channelArchiverChunkFetcher.getMetrics().entrySet()) {
+					addDetailedStatus(ret, "Channel Archiver " + channelArchiverMetric.getKey(), channelArchiverMetric.getValue());
+				}
+			}
 			out.println(JSONValue.toJSONString(ret));
 		}
 	}
 
+	private static void addDetailedStatus(LinkedList<Map<String, String>> statuses, String name, String value) {
+		Map<String, String> obj = new LinkedHashMap<String, String>();
+		obj.put("name", name);
+		obj.put("value", value);
+		obj.put("source", "retrieval");
+		statuses.add(obj);
+	}
+
 }
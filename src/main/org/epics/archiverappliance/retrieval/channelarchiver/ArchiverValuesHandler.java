@@ -138,9 +138,13 @@ public class ArchiverValuesHandler implements XMLRPCStaxProcessor, EventStream,
 	private HashMap<String, String> metaInformation = new HashMap<String, String>(); 
 	/**
 	 * A potentially partial version of the current event that is still in the process of being built. 
-	 * Once built, this becomes the current event
+	 * Once built, this is serialized into the current event; the same holder is reused for all the samples.
 	 */
-	private HashMap<String, Object> workingCopyOfEvent = null;
+	private ChannelArchiverSample workingSample = null;
+	/**
+	 * Are we in the midst of processing a sample in the values section?
+	 */
+	private boolean inSample = false;
 	/**
 	 * The current completely built event 
 	 */
@@ -172,9 +176,13 @@ public class ArchiverValuesHandler implements XMLRPCStaxProcessor, EventStream,
 		
 		if(inValues) {
 			// The Value portion of the XML document is an Array of Structs.
-			// If we are in the Values processing portion, we create a new working copy every time we encounter a struct.
+			// If we are in the Values processing portion, we start a new working copy every time we encounter a struct.
 			if(localName.equals("struct")) {
-				workingCopyOfEvent = new HashMap<String, Object>();
+				if(workingSample == null) {
+					workingSample = new ChannelArchiverSample(dbrType);
+				}
+				workingSample.reset();
+				inSample = true;
 			}
 		}
 		
@@ -266,16 +274,16 @@ public class ArchiverValuesHandler implements XMLRPCStaxProcessor, EventStream,
 		}
 		
 		if(inValues) {
-			if(localName.equals("struct") && (workingCopyOfEvent != null)) {
+			if(localName.equals("struct") && inSample) {
 				// Encountering a end struct in the values section marks the end of the current event.
 				try {
-					currentEvent = (DBRTimeEvent) serializingConstructor.newInstance(new HashMapEvent(dbrType, workingCopyOfEvent));
+					inSample = false;
+					currentEvent = (DBRTimeEvent) serializingConstructor.newInstance(workingSample);
 					long currentEventEpochSeconds = currentEvent.getEpochSeconds();
 					if(previousEventEpochSeconds > 0) { 
 						if(currentEventEpochSeconds < previousEventEpochSeconds) { 
 							logger.error("Skipping decreasing timestamp from CA " + TimeUtils.convertToHumanReadableString(currentEventEpochSeconds) + " and previous " + TimeUtils.convertToHumanReadableString(previousEventEpochSeconds));
 							currentEvent = null;
-							workingCopyOfEvent = null;
 							return continueProcessing;
 						}
 					}
@@ -287,7 +295,6 @@ public class ArchiverValuesHandler implements XMLRPCStaxProcessor, EventStream,
 						// If the years change, we throw an specific exception that the retrievers can ignore/handle
 						throwYearTransitionException = true;
 					}
-					workingCopyOfEvent = null;
 					continueProcessing = false;
 				} catch(IllegalAccessException ex) {
 					logger.error("Exception serializing DBR Type " + dbrType + " for pv " + this.pvName, ex);
@@ -307,20 +314,14 @@ public class ArchiverValuesHandler implements XMLRPCStaxProcessor, EventStream,
 					currentEvent = null;
 					continueProcessing = true;
 				}
-			} else if(lastName != null) {
+			} else if(lastName != null && inSample) {
 				if(lastTwoNodes.equals("value.i4") || lastTwoNodes.equals("value.string") || lastTwoNodes.equals("value.double")) {
-					String currentValue = value;
-					if(lastName.equals("value") && dbrType.isWaveForm()) {
-						// No choice but to add this SuppressWarnings here.
-						@SuppressWarnings("unchecked")
-						LinkedList<String> vals = (LinkedList<String>) workingCopyOfEvent.get(lastName);
-						if(vals == null) {
-							vals = new LinkedList<String>();
-							workingCopyOfEvent.put(lastName, vals);
-						}
-						vals.add(currentValue);
-					} else {
-						workingCopyOfEvent.put(lastName, currentValue);
+					try {
+						workingSample.setMember(lastName, value);
+					} catch(NumberFormatException ex) {
+						// We ignore all samples that cannot be parsed
+						logger.error("Ignoring sample that cannot be parsed " + dbrType + " for pv " + this.pvName, ex);
+						inSample = false;
 					}
 					lastName = null;
 				}
@@ -0,0 +1,483 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.channelarchiver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.ChangeInYearsException;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.postprocessors.ArrayListCollectorEventStream;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+import edu.stanford.slac.archiverappliance.PlainPB.FileBackedPBEventStream;
+import edu.stanford.slac.archiverappliance.PlainPB.PBFileInfo;
+
+/**
+ * Fetches data from a Channel Archiver data server in time chunks.
+ * Long requests (for example, a multi-year plot) are broken into chunks that are aligned to the start of the year; the chunks are fetched in parallel on a shared pool of threads, ahead of the consumer.
+ * The number of concurrent <code>archiver.values</code> calls to any one data server is limited so that we do not overwhelm the legacy servers.
+ * Each chunk is parsed completely into an array of PB events and the HTTP connection is released as soon as possible.
+ * <br>
+ * Data in legacy archives does not change; so chunks that end well in the past can be cached on disk as PB files.
+ * Caching is enabled by setting the <code>cacheFolder</code> property; the contents of this folder can be deleted at any time.
+ * @author mshankar
+ *
+ */
+public class ChannelArchiverChunkFetcher {
+	private static Logger logger = Logger.getLogger(ChannelArchiverChunkFetcher.class.getName());
+	private static final String PROPERTY_PREFIX = "org.epics.archiverappliance.retrieval.channelarchiver.ChannelArchiverChunkFetcher.";
+	private static ChannelArchiverChunkFetcher theFetcher = null;
+
+	private final ThreadPoolExecutor executor;
+	private final long chunkSeconds;
+	private final int maxConcurrentRequestsPerServer;
+	private final int chunksReadAhead;
+	private final Path cacheFolder;
+	private final long cacheOnlyOlderThanSeconds;
+	private final ConcurrentHashMap<String, Semaphore> serverPermits = new ConcurrentHashMap<String, Semaphore>();
+
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong chunksFetched = new AtomicLong(0);
+	private final AtomicLong chunksFromCache = new AtomicLong(0);
+	private final AtomicLong chunksCached = new AtomicLong(0);
+	private final AtomicLong eventsFetched = new AtomicLong(0);
+	private final AtomicLong fetchFailures = new AtomicLong(0);
+	private final AtomicInteger activeFetches = new AtomicInteger(0);
+
+	/**
+	 * Get the chunk fetcher for this webapp; this is created on first use.
+	 * @param configService - This can be null (for example, in unit tests) in which case we use the defaults.
+	 * @return The fetcher
+	 */
+	public static synchronized ChannelArchiverChunkFetcher getFetcher(ConfigService configService) {
+		if(theFetcher != null) return theFetcher;
+		Properties installationProperties = (configService != null) ? configService.getInstallationProperties() : new Properties();
+		String cacheFolderName = installationProperties.getProperty(PROPERTY_PREFIX + "cacheFolder", "");
+		final ChannelArchiverChunkFetcher fetcher = new ChannelArchiverChunkFetcher(
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "fetchThreads", "16")),
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "chunkDays", "30"))*86400,
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "maxConcurrentRequestsPerServer", "4")),
+				Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "chunksReadAhead", "8")),
+				cacheFolderName.trim().isEmpty() ? null : Paths.get(cacheFolderName.trim()),
+				Long.parseLong(installationProperties.getProperty(PROPERTY_PREFIX + "cacheOnlyOlderThanDays", "30"))*86400);
+		if(configService != null) {
+			configService.addShutdownHook(new Runnable() {
+				@Override
+				public void run() {
+					logger.info("Shutting down the Channel Archiver chunk fetcher");
+					fetcher.executor.shutdownNow();
+				}
+			});
+		}
+		theFetcher = fetcher;
+		return theFetcher;
+	}
+
+	/**
+	 * @return The chunk fetcher for this webapp; null if we have not made any calls to a Channel Archiver yet.
+	 */
+	public static ChannelArchiverChunkFetcher getExistingFetcher() {
+		return theFetcher;
+	}
+
+	/**
+	 * @param threads - Size of the thread pool used to fetch chunks
+	 * @param chunkSeconds - Requests are broken into chunks of this size; 0 turns off chunking.
+	 * @param maxConcurrentRequestsPerServer - Maximum number of concurrent <code>archiver.values</code> calls to any one data server.
+	 * @param chunksReadAhead - How many chunks we fetch ahead of the consumer.
+	 * @param cacheFolder - Folder for the on-disk cache of chunks; null turns off caching.
+	 * @param cacheOnlyOlderThanSeconds - Only chunks that end before this many seconds ago are cached.
+	 */
+	ChannelArchiverChunkFetcher(int threads, long chunkSeconds, int maxConcurrentRequestsPerServer, int chunksReadAhead, Path cacheFolder, long cacheOnlyOlderThanSeconds) {
+		this.chunkSeconds = chunkSeconds;
+		this.maxConcurrentRequestsPerServer = Math.max(1, maxConcurrentRequestsPerServer);
+		this.chunksReadAhead = Math.max(0, chunksReadAhead);
+		this.cacheFolder = cacheFolder;
+		this.cacheOnlyOlderThanSeconds = cacheOnlyOlderThanSeconds;
+		final AtomicInteger threadNum = new AtomicInteger(0);
+		this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "Channel Archiver chunk fetch " + threadNum.incrementAndGet());
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+		logger.info("Fetching Channel Archiver data in chunks of " + chunkSeconds + " seconds using " + threads + " threads and at most " + this.maxConcurrentRequestsPerServer + " concurrent requests per server. "
+				+ (cacheFolder != null ? ("Caching chunks in " + cacheFolder.toString()) : "Caching of chunks is turned off"));
+	}
+
+	/**
+	 * Get data for a PV from a Channel Archiver data server.
+	 * We return one callable per chunk; the chunks are fetched in parallel ahead of the consumer.
+	 * @param serverURL - The URL of the data server
+	 * @param archiveKey - The key of the archive in the data server
+	 * @param pvName - The name of the PV in the appliance
+	 * @param pvNameForCall - The name of the PV in the Channel Archiver
+	 * @param startTime
+	 * @param endTime
+	 * @param valuesRequested - Passed thru to <code>archiver.values</code>
+	 * @param howStr - Passed thru to <code>archiver.values</code>
+	 * @param expectedDBRType - This can be null in which case the type is inferred from the response.
+	 * @param postProcessor - This can be null
+	 * @return A list of callables in time order.
+	 */
+	public List<Callable<EventStream>> getDataForPV(String serverURL, int archiveKey, String pvName, String pvNameForCall, Timestamp startTime, Timestamp endTime, int valuesRequested, String howStr, ArchDBRTypes expectedDBRType, PostProcessor postProcessor) {
+		requests.incrementAndGet();
+		List<Timestamp[]> chunkBounds = breakIntoChunks(startTime, endTime, chunkSeconds);
+		final RequestChunks requestChunks = new RequestChunks(chunkBounds.size());
+		for(int i = 0; i < chunkBounds.size(); i++) {
+			Timestamp[] bounds = chunkBounds.get(i);
+			requestChunks.chunks[i] = new ChunkFetch(serverURL, archiveKey, pvName, pvNameForCall, bounds[0], bounds[1], i == 0, i == chunkBounds.size() - 1, valuesRequested, howStr, expectedDBRType);
+		}
+		List<Callable<EventStream>> ret = new ArrayList<Callable<EventStream>>(chunkBounds.size());
+		for(int i = 0; i < chunkBounds.size(); i++) {
+			final int chunkIndex = i;
+			Callable<EventStream> callable = new Callable<EventStream>() {
+				@Override
+				public EventStream call() throws Exception {
+					return requestChunks.get(chunkIndex);
+				}
+			};
+			ret.add(postProcessor != null ? postProcessor.wrap(callable) : callable);
+		}
+		return ret;
+	}
+
+	/**
+	 * Break the time span into chunks.
+	 * Chunk boundaries are aligned to the start of the year; so chunks never span years and the same chunk boundaries are used by all requests (which makes the cache more effective).
+	 * The first chunk starts at the start time and the last chunk ends at the end time.
+	 * @param startTime
+	 * @param endTime
+	 * @param chunkSeconds - 0 or less means we do not break the time span into chunks.
+	 * @return List of start and end times; the end time of a chunk is the start time of the next chunk.
+	 */
+	static List<Timestamp[]> breakIntoChunks(Timestamp startTime, Timestamp endTime, long chunkSeconds) {
+		List<Timestamp[]> ret = new ArrayList<Timestamp[]>();
+		long startEpochSeconds = TimeUtils.convertToEpochSeconds(startTime);
+		long endEpochSeconds = TimeUtils.convertToEpochSeconds(endTime);
+		if(chunkSeconds <= 0 || endEpochSeconds <= startEpochSeconds) {
+			ret.add(new Timestamp[] { startTime, endTime });
+			return ret;
+		}
+		Timestamp currentChunkStart = startTime;
+		long currentEpochSeconds = startEpochSeconds;
+		while(true) {
+			short year = TimeUtils.computeYearForEpochSeconds(currentEpochSeconds);
+			long startOfYear = TimeUtils.getStartOfYearInSeconds(year);
+			long startOfNextYear = TimeUtils.getStartOfYearInSeconds((short)(year + 1));
+			long nextBoundary = Math.min(startOfYear + ((currentEpochSeconds - startOfYear)/chunkSeconds + 1)*chunkSeconds, startOfNextYear);
+			if(nextBoundary >= endEpochSeconds) {
+				ret.add(new Timestamp[] { currentChunkStart, endTime });
+				return ret;
+			}
+			Timestamp nextChunkStart = TimeUtils.convertFromEpochSeconds(nextBoundary, 0);
+			ret.add(new Timestamp[] { currentChunkStart, nextChunkStart });
+			currentChunkStart = nextChunkStart;
+			currentEpochSeconds = nextBoundary;
+		}
+	}
+
+	/**
+	 * The chunks for one request; chunks are submitted to the pool as the consumer gets to within chunksReadAhead of them.
+	 * This bounds the memory used by a request that is consumed slowly.
+	 * @author mshankar
+	 *
+	 */
+	private class RequestChunks {
+		final ChunkFetch[] chunks;
+		final Future<?>[] futures;
+		RequestChunks(int chunkCount) {
+			this.chunks = new ChunkFetch[chunkCount];
+			this.futures = new Future<?>[chunkCount];
+		}
+
+		private synchronized Future<?> submitUpTo(int chunkIndex) {
+			for(int i = chunkIndex; i <= Math.min(chunkIndex + chunksReadAhead, chunks.length - 1); i++) {
+				if(futures[i] == null) {
+					futures[i] = executor.submit(chunks[i]);
+				}
+			}
+			return futures[chunkIndex];
+		}
+
+		EventStream get(int chunkIndex) throws IOException {
+			Future<?> future = submitUpTo(chunkIndex);
+			try {
+				return (EventStream) future.get();
+			} catch(InterruptedException ex) {
+				throw new IOException("Interrupted waiting for data from " + chunks[chunkIndex].toString(), ex);
+			} catch(ExecutionException ex) {
+				if(ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+				throw new IOException("Exception fetching data from " + chunks[chunkIndex].toString(), ex.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Fetch one chunk; either from the cache or from the data server.
+	 * @author mshankar
+	 *
+	 */
+	private class ChunkFetch implements Callable<EventStream> {
+		final String serverURL;
+		final int archiveKey;
+		final String pvName;
+		final String pvNameForCall;
+		final Timestamp chunkStart;
+		final Timestamp chunkEnd;
+		final boolean firstChunk;
+		final boolean lastChunk;
+		final int valuesRequested;
+		final String howStr;
+		final ArchDBRTypes expectedDBRType;
+
+		ChunkFetch(String serverURL, int archiveKey, String pvName, String pvNameForCall, Timestamp chunkStart, Timestamp chunkEnd, boolean firstChunk, boolean lastChunk, int valuesRequested, String howStr, ArchDBRTypes expectedDBRType) {
+			this.serverURL = serverURL;
+			this.archiveKey = archiveKey;
+			this.pvName = pvName;
+			this.pvNameForCall = pvNameForCall;
+			this.chunkStart = chunkStart;
+			this.chunkEnd = chunkEnd;
+			this.firstChunk = firstChunk;
+			this.lastChunk = lastChunk;
+			this.valuesRequested = valuesRequested;
+			this.howStr = howStr;
+			this.expectedDBRType = expectedDBRType;
+		}
+
+		@Override
+		public EventStream call() throws Exception {
+			Path cachePath = getCachePath();
+			if(cachePath != null && Files.exists(cachePath)) {
+				try {
+					PBFileInfo info = new PBFileInfo(cachePath);
+					EventStream ret = new FileBackedPBEventStream(pvName, cachePath, info.getType());
+					chunksFromCache.incrementAndGet();
+					return ret;
+				} catch(Exception ex) {
+					logger.error("Exception reading cached chunk " + cachePath.toString() + " for " + this.toString() + "; fetching it again", ex);
+					Files.deleteIfExists(cachePath);
+				}
+			}
+
+			ArrayListEventStream strm = fetchFromServer();
+			boolean spansYears = false;
+			short chunkYear = strm.getDescription().getYear();
+			for(Event e : strm) {
+				if(TimeUtils.computeYearForEpochSeconds(e.getEpochSeconds()) != chunkYear) {
+					spansYears = true;
+					break;
+				}
+			}
+			if(cachePath != null && !spansYears && strm.getDescription().getArchDBRType() != null) {
+				writeToCache(strm, cachePath);
+			}
+			if(spansYears) {
+				// Only the sample before the start of the first chunk can be from a different year; we let the consumer know using ChangeInYearsException.
+				return new ArrayListCollectorEventStream(strm);
+			}
+			return strm;
+		}
+
+		private ArrayListEventStream fetchFromServer() throws IOException {
+			String archiveValuesStr = new String("<?xml version=\"1.0\"?>\n"
+					+ "<methodCall>\n"
+					+ "<methodName>archiver.values</methodName>\n"
+					+ "<params>\n"
+					+ "<param><value><i4>" + archiveKey + "</i4></value></param>\n"
+					+ "<param><value><array><data><value><string>" + pvNameForCall + "</string></value></data></array></value></param>\n"
+					+ "<param><value><i4>" + TimeUtils.convertToEpochSeconds(chunkStart)+ "</i4></value></param>\n"
+					+ "<param><value><i4>" + chunkStart.getNanos() + "</i4></value></param>\n"
+					+ "<param><value><i4>" + TimeUtils.convertToEpochSeconds(chunkEnd) + "</i4></value></param>\n"
+					+ "<param><value><i4>" + chunkEnd.getNanos() + "</i4></value></param>\n"
+					+ "<param><value><i4>" + valuesRequested + "</i4></value></param>\n"
+					+ "<param><value><i4>" + howStr + "</i4></value></param>\n"
+					+ "</params>\n"
+					+ "</methodCall>\n");
+			if(logger.isDebugEnabled()) {
+				logger.debug("Making call to channel archiver " + serverURL + " with " + archiveValuesStr);
+			}
+
+			Semaphore permits = serverPermits.get(serverURL);
+			if(permits == null) {
+				serverPermits.putIfAbsent(serverURL, new Semaphore(maxConcurrentRequestsPerServer, true));
+				permits = serverPermits.get(serverURL);
+			}
+			try {
+				permits.acquire();
+			} catch(InterruptedException ex) {
+				throw new IOException("Interrupted waiting to make a call to " + serverURL, ex);
+			}
+			activeFetches.incrementAndGet();
+			try(CloseableHttpClient httpclient = HttpClients.createDefault()) {
+				HttpPost postMethod = new HttpPost(serverURL);
+				postMethod.addHeader("Content-Type", "text/xml");
+				postMethod.setEntity(new StringEntity(archiveValuesStr, ContentType.APPLICATION_XML));
+				try(CloseableHttpResponse response = httpclient.execute(postMethod)) {
+					int statusCode = response.getStatusLine().getStatusCode();
+					if(statusCode < 200 || statusCode > 206) {
+						throw new IOException("Got an invalid status code " + statusCode + " from the server " + serverURL + " for PV " + pvName);
+					}
+					HttpEntity entity = response.getEntity();
+					if(entity == null) {
+						throw new IOException("HTTP response did not have an entity associated with it");
+					}
+					InputStream is = entity.getContent();
+					// ArchiverValuesHandler takes over the burden of closing the input stream.
+					try(ArchiverValuesHandler handler = new ArchiverValuesHandler(pvName, is, serverURL + "\n" + archiveValuesStr, expectedDBRType)) {
+						ArrayList<Event> events = new ArrayList<Event>();
+						Event e = null;
+						while(true) {
+							try {
+								if(!handler.hasNext()) break;
+								e = handler.next();
+							} catch(ChangeInYearsException ex) {
+								// We take care of years when we return the data.
+								continue;
+							}
+							if(e == null) continue;
+							Timestamp ts = e.getEventTimeStamp();
+							// The data server typically returns the sample before the start time; we only keep this for the first chunk.
+							if(!firstChunk && ts.before(chunkStart)) continue;
+							if(!lastChunk && !ts.before(chunkEnd)) continue;
+							events.add(e);
+						}
+						RemotableEventStreamDesc desc = new RemotableEventStreamDesc(handler.getDescription());
+						desc.setYear(TimeUtils.computeYearForEpochSeconds(TimeUtils.convertToEpochSeconds(chunkStart)));
+						ArrayListEventStream ret = new ArrayListEventStream(events.size(), desc);
+						ret.addAll(events);
+						chunksFetched.incrementAndGet();
+						eventsFetched.addAndGet(events.size());
+						return ret;
+					}
+				}
+			} catch(IOException ex) {
+				fetchFailures.incrementAndGet();
+				throw ex;
+			} finally {
+				activeFetches.decrementAndGet();
+				permits.release();
+			}
+		}
+
+		/**
+		 * @return The path of this chunk in the cache; null if this chunk should not be cached.
+		 */
+		private Path getCachePath() {
+			if(cacheFolder == null) return null;
+			if(TimeUtils.convertToEpochSeconds(chunkEnd) > TimeUtils.getCurrentEpochSeconds() - cacheOnlyOlderThanSeconds) return null;
+			String key = serverURL + "\n" + archiveKey + "\n" + pvName + "\n" + pvNameForCall
+					+ "\n" + TimeUtils.convertToISO8601String(chunkStart) + "\n" + TimeUtils.convertToISO8601String(chunkEnd)
+					+ "\n" + firstChunk + "\n" + lastChunk
+					+ "\n" + valuesRequested + "\n" + howStr + "\n" + expectedDBRType;
+			String hash = DigestUtils.sha1Hex(key);
+			return cacheFolder.resolve(hash.substring(0, 2)).resolve(hash + ".pb");
+		}
+
+		/**
+		 * Write the chunk into the cache as a PB file.
+		 * We write into a temporary file and then move it into place so that readers never see a partial file.
+		 */
+		private void writeToCache(ArrayListEventStream strm, Path cachePath) {
+			Path tempPath = null;
+			try {
+				Files.createDirectories(cachePath.getParent());
+				tempPath = Files.createTempFile(cachePath.getParent(), cachePath.getFileName().toString(), ".tmp");
+				RemotableEventStreamDesc desc = strm.getDescription();
+				PayloadInfo.Builder builder = PayloadInfo.newBuilder()
+						.setPvname(pvName)
+						.setType(desc.getArchDBRType().getPBPayloadType())
+						.setYear(desc.getYear());
+				desc.mergeInto(builder);
+				try(OutputStream os = new BufferedOutputStream(Files.newOutputStream(tempPath))) {
+					os.write(LineEscaper.escapeNewLines(builder.build().toByteArray()));
+					os.write(LineEscaper.NEWLINE_CHAR);
+					for(Event e : strm) {
+						ByteArray val = e.getRawForm();
+						os.write(val.data, val.off, val.len);
+						os.write(LineEscaper.NEWLINE_CHAR);
+					}
+				}
+				Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				tempPath = null;
+				chunksCached.incrementAndGet();
+			} catch(Exception ex) {
+				logger.error("Exception caching " + this.toString() + " into " + cachePath.toString(), ex);
+			} finally {
+				if(tempPath != null) {
+					try { Files.deleteIfExists(tempPath); } catch(IOException ex) { logger.debug("Exception deleting temporary file " + tempPath.toString(), ex); }
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return serverURL + " for pv " + pvName + " from " + TimeUtils.convertToISO8601String(chunkStart) + " to " + TimeUtils.convertToISO8601String(chunkEnd);
+		}
+	}
+
+	/**
+	 * @return Metrics for the appliance metrics page
+	 */
+	public LinkedHashMap<String, String> getMetrics() {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		ret.put("requests", Long.toString(requests.get()));
+		ret.put("chunksFetched", Long.toString(chunksFetched.get()));
+		ret.put("chunksFromCache", Long.toString(chunksFromCache.get()));
+		ret.put("chunksCached", Long.toString(chunksCached.get()));
+		ret.put("eventsFetched", Long.toString(eventsFetched.get()));
+		ret.put("fetchFailures", Long.toString(fetchFailures.get()));
+		ret.put("activeFetches", Integer.toString(activeFetches.get()));
+		ret.put("queuedChunks", Integer.toString(executor.getQueue().size()));
+		return ret;
+	}
+}
@@ -21,13 +21,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.Event;
 import org.epics.archiverappliance.EventStream;
@@ -61,6 +54,7 @@ public class ChannelArchiverReadOnlyPlugin implements StoragePlugin {
 	private String description;
 	private String name;
 	private int valuesRequested = Integer.MAX_VALUE;
+	private ConfigService configService;
 	// private String howStr = "0";
 	
 	public ChannelArchiverReadOnlyPlugin() {
@@ -131,39 +125,8 @@ public class ChannelArchiverReadOnlyPlugin implements StoragePlugin {
 					return CallableEventStream.makeOneStreamCallableList(handler);
 				}
 			} else {
-				StringEntity archiverValues = new StringEntity(archiveValuesStr, ContentType.APPLICATION_XML);
-				if(logger.isDebugEnabled()) {
-					logger.debug(getDescription() + " making call to channel archiver with " + archiveValuesStr);
-				}
-				
-				CloseableHttpClient httpclient = HttpClients.createDefault();
-				HttpPost postMethod = new HttpPost(serverURL);
-				postMethod.addHeader("Content-Type", "text/xml");
-				postMethod.setEntity(archiverValues);
-				if(logger.isDebugEnabled()) {
-					logger.debug("About to make a POST with " + archiveValuesStr);
-				}
-				HttpResponse response = httpclient.execute(postMethod);
-				int statusCode = response.getStatusLine().getStatusCode();
-				if(statusCode >= 200 && statusCode <= 206) { 
-					HttpEntity entity = response.getEntity();
-					if (entity != null) {
-						logger.debug("Obtained a HTTP entity of length " + entity.getContentLength());
-						// ArchiverValuesHandler takes over the burden of closing the input stream.
-						InputStream is = entity.getContent();
-						ArchiverValuesHandler handler = new ArchiverValuesHandler(pvName, is, serverURL.toString() + "\n" + archiveValuesStr, context.getRetrievalExpectedDBRType());
-						if(postProcessor != null) { 
-							return CallableEventStream.makeOneStreamCallableList(handler, postProcessor, true);
-						} else { 
-							return CallableEventStream.makeOneStreamCallableList(handler);
-						}
-					} else {
-						throw new IOException("HTTP response did not have an entity associated with it");
-					}
-				} else {
-					logger.error("Got an invalid status code " + statusCode + " from the server " + serverURL + " for PV " + pvName + " so returning null");
-					return null;
-				}
+				// Break the request into chunks that are fetched in parallel and perhaps cached.
+				return ChannelArchiverChunkFetcher.getFetcher(configService).getDataForPV(serverURL, archiveKey, pvName, pvNameForCall, startTime, endTime, valuesRequested, howStr, context.getRetrievalExpectedDBRType(), postProcessor);
 			}
 		} catch(UnsupportedEncodingException ex) {
 			throw new IOException("Exception making call to Channel Archiver", ex);
@@ -184,6 +147,7 @@ public class ChannelArchiverReadOnlyPlugin implements StoragePlugin {
 
 	@Override
 	public void initialize(String configURL, ConfigService configService) throws IOException {
+		this.configService = configService;
 		try {
 			URI srcURI = new URI(configURL);
 			HashMap<String, String> queryNVPairs = URIUtils.parseQueryString(srcURI);
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.channelarchiver;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.SampleValue;
+import org.epics.archiverappliance.data.ScalarStringSampleValue;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.data.VectorStringSampleValue;
+import org.epics.archiverappliance.data.VectorValue;
+
+/**
+ * A reusable holder for one sample from an archiver.values response.
+ * The handler fills this in as it parses a struct in the values section and then hands it to the PB serializing constructor; so, unlike the {@link HashMapEvent}, we do not create a HashMap per sample.
+ * The holder is reset and reused for the next sample; only the PB event made from it is kept.
+ * @author mshankar
+ *
+ */
+class ChannelArchiverSample implements DBRTimeEvent {
+	private ArchDBRTypes type;
+	private long secs;
+	private int nano;
+	private int stat;
+	private int sevr;
+	private String scalarValue;
+	private ArrayList<String> vectorValues = new ArrayList<String>();
+
+	ChannelArchiverSample(ArchDBRTypes type) {
+		this.type = type;
+	}
+
+	/**
+	 * Clear the fields from the previous sample
+	 */
+	void reset() {
+		secs = 0;
+		nano = 0;
+		stat = 0;
+		sevr = 0;
+		scalarValue = null;
+		vectorValues.clear();
+	}
+
+	/**
+	 * Set a member of the sample struct; the names are the same as those in {@link HashMapEvent}.
+	 * @param name
+	 * @param value
+	 * @throws NumberFormatException
+	 */
+	void setMember(String name, String value) throws NumberFormatException {
+		if(name.equals(HashMapEvent.SECS_FIELD_NAME)) {
+			secs = Long.parseLong(value);
+		} else if(name.equals(HashMapEvent.NANO_FIELD_NAME)) {
+			nano = Integer.parseInt(value);
+		} else if(name.equals(HashMapEvent.STAT_FIELD_NAME)) {
+			stat = Integer.parseInt(value);
+		} else if(name.equals(HashMapEvent.SEVR_FIELD_NAME)) {
+			sevr = Integer.parseInt(value);
+		} else if(name.equals(HashMapEvent.VALUE_FIELD_NAME)) {
+			if(type.isWaveForm()) {
+				vectorValues.add(value);
+			} else {
+				scalarValue = value;
+			}
+		}
+	}
+
+	@Override
+	public Event makeClone() {
+		ChannelArchiverSample ret = new ChannelArchiverSample(type);
+		ret.secs = secs;
+		ret.nano = nano;
+		ret.stat = stat;
+		ret.sevr = sevr;
+		ret.scalarValue = scalarValue;
+		ret.vectorValues = new ArrayList<String>(vectorValues);
+		return ret;
+	}
+
+	@Override
+	public long getEpochSeconds() {
+		return secs;
+	}
+
+	@Override
+	public Timestamp getEventTimeStamp() {
+		Timestamp ret = new Timestamp(secs*1000);
+		ret.setNanos(nano);
+		return ret;
+	}
+
+	@Override
+	public ByteArray getRawForm() {
+		throw new UnsupportedOperationException("There should be no need to support a raw form here.");
+	}
+
+	@Override
+	public SampleValue getSampleValue() {
+		switch(type) {
+		case DBR_SCALAR_FLOAT:
+		case DBR_SCALAR_DOUBLE: {
+			return new ScalarValue<Double>(Double.parseDouble(scalarValue));
+		}
+		case DBR_SCALAR_BYTE:
+		case DBR_SCALAR_SHORT:
+		case DBR_SCALAR_ENUM:
+		case DBR_SCALAR_INT: {
+			return new ScalarValue<Integer>(Integer.parseInt(scalarValue));
+		}
+		case DBR_SCALAR_STRING: {
+			return new ScalarStringSampleValue(scalarValue);
+		}
+		case DBR_WAVEFORM_FLOAT:
+		case DBR_WAVEFORM_DOUBLE: {
+			ArrayList<Double> dvals = new ArrayList<Double>(vectorValues.size());
+			for(String val : vectorValues) dvals.add(Double.parseDouble(val));
+			return new VectorValue<Double>(dvals);
+		}
+		case DBR_WAVEFORM_ENUM:
+		case DBR_WAVEFORM_SHORT:
+		case DBR_WAVEFORM_BYTE:
+		case DBR_WAVEFORM_INT: {
+			ArrayList<Integer> ivals = new ArrayList<Integer>(vectorValues.size());
+			for(String val : vectorValues) ivals.add(Integer.parseInt(val));
+			return new VectorValue<Integer>(ivals);
+		}
+		case DBR_WAVEFORM_STRING: {
+			return new VectorStringSampleValue(new ArrayList<String>(vectorValues));
+		}
+		case DBR_V4_GENERIC_BYTES: {
+			throw new UnsupportedOperationException("Channel Archiver does not support V4 yet.");
+		}
+		default:
+			throw new UnsupportedOperationException("Unknown DBR type " + type);
+		}
+	}
+
+	@Override
+	public int getStatus() {
+		return stat;
+	}
+
+	@Override
+	public int getSeverity() {
+		return sevr;
+	}
+
+	@Override
+	public int getRepeatCount() {
+		return 0;
+	}
+
+	@Override
+	public void setRepeatCount(int repeatCount) {
+	}
+
+	@Override
+	public void setStatus(int status) {
+		this.stat = status;
+	}
+
+	@Override
+	public void setSeverity(int severity) {
+		this.sevr = severity;
+	}
+
+	@Override
+	public boolean hasFieldValues() {
+		return false;
+	}
+
+	@Override
+	public boolean isActualChange() {
+		return false;
+	}
+
+	@Override
+	public HashMap<String, String> getFields() {
+		return null;
+	}
+
+	@Override
+	public String getFieldValue(String fieldName) {
+		return null;
+	}
+
+	@Override
+	public void addFieldValue(String fieldName, String fieldValue) {
+		throw new UnsupportedOperationException("The Channel Archiver does not send field values.");
+	}
+
+	@Override
+	public void markAsActualChange() {
+		throw new UnsupportedOperationException("The Channel Archiver does not send field values.");
+	}
+
+	@Override
+	public void setFieldValues(HashMap<String, String> fieldValues, boolean markAsActualChange) {
+		throw new UnsupportedOperationException("The Channel Archiver does not send field values.");
+	}
+
+	@Override
+	public ArchDBRTypes getDBRType() {
+		return type;
+	}
+}
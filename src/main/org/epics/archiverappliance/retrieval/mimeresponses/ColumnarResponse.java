@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.mimeresponses;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.EventStreamDesc;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.SampleValue;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.RemotableOverRaw;
+import org.json.simple.JSONObject;
+
+/**
+ * A binary columnar response for analytics clients (numpy, Matlab, Java) that want to read large amounts of data without decoding each event.
+ * The response is a sequence of self-describing blocks; all numbers are big endian.
+ * <ol>
+ * <li>The response starts with the 8 ASCII bytes <code>AACOLUMN</code> followed by an int32 format version (currently 1).</li>
+ * <li>Each block then starts with a one byte block type and an int32 length of the block body.
+ * <ul>
+ * <li><code>H</code> - The start of a PV. The body is a UTF-8 JSON object with the <code>name</code> of the PV, its <code>dbrType</code>,
+ * the <code>valueType</code> of the value column (one of <code>int8</code>, <code>int16</code>, <code>int32</code>, <code>float32</code>, <code>float64</code> or <code>string</code>),
+ * its <code>elementCount</code>, the <code>codec</code> used for the chunks and the PV's metadata in <code>meta</code>.</li>
+ * <li><code>C</code> - A chunk of events for the current PV. The body starts with a one byte codec (0 - none, 1 - deflate), an int32 event count <i>n</i> and an int32 stride <i>s</i>.
+ * This is followed by the (possibly compressed) columns - <i>n</i> int64 epoch nanoseconds, <i>n</i> int16 severities, <i>n</i> int16 statuses and <i>n</i>x<i>s</i> values in row major order.
+ * Strings are sent as an int32 byte count followed by the UTF-8 bytes.
+ * Scalars have a stride of 1; waveforms have a stride of their element count and all the events in a chunk have the same element count.</li>
+ * <li><code>E</code> - The end of the response; clients can use this to detect truncated responses.</li>
+ * </ul>
+ * </li>
+ * </ol>
+ * Per event field values (the <code>fields</code> in the JSON response) are not included.
+ * Use {@link DeflatedColumnarResponse} for deflate compressed chunks.
+ * @author mshankar
+ *
+ */
+public class ColumnarResponse implements MimeResponse {
+	private static Logger logger = Logger.getLogger(ColumnarResponse.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	public static final byte[] MAGIC = "AACOLUMN".getBytes(Charset.forName("US-ASCII"));
+	public static final int FORMAT_VERSION = 1;
+	public static final byte PV_BLOCK = 'H';
+	public static final byte CHUNK_BLOCK = 'C';
+	public static final byte END_BLOCK = 'E';
+	public static final byte CODEC_NONE = 0;
+	public static final byte CODEC_DEFLATE = 1;
+	private static final int MAX_EVENTS_PER_CHUNK = 64*1024;
+	private static final int MAX_BYTES_PER_CHUNK = 4*1024*1024;
+
+	private final byte codec;
+	private DataOutputStream out = null;
+	private String pvName = null;
+	private RemotableEventStreamDesc pvDesc = null;
+	private boolean pvHeaderWritten = false;
+	private ArchDBRTypes dbrType = null;
+
+	private final ByteArrayOutputStream timestampBytes = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream severityBytes = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream statusBytes = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+	private final DataOutputStream timestamps = new DataOutputStream(timestampBytes);
+	private final DataOutputStream severities = new DataOutputStream(severityBytes);
+	private final DataOutputStream statuses = new DataOutputStream(statusBytes);
+	private final DataOutputStream values = new DataOutputStream(valueBytes);
+	private int eventsInChunk = 0;
+	private int strideOfChunk = 0;
+
+	public ColumnarResponse() {
+		this(CODEC_NONE);
+	}
+
+	protected ColumnarResponse(byte codec) {
+		this.codec = codec;
+	}
+
+	@Override
+	public void setOutputStream(OutputStream os) {
+		this.out = new DataOutputStream(os);
+		try {
+			out.write(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+		} catch(IOException ex) {
+			logException("Exception writing the columnar response header", ex);
+		}
+	}
+
+	@Override
+	public void processingPV(String pv, Timestamp start, Timestamp end, EventStreamDesc streamDesc) {
+		try {
+			finishPV();
+		} catch(IOException ex) {
+			logException("Exception finishing PV " + pvName + " in the columnar response", ex);
+		}
+		this.pvName = pv;
+		this.pvDesc = (streamDesc instanceof RemotableEventStreamDesc) ? (RemotableEventStreamDesc) streamDesc : null;
+		this.pvHeaderWritten = false;
+		this.dbrType = null;
+	}
+
+	@Override
+	public void swicthingToStream(EventStream strm) {
+		// Use the description of the first stream for the PV header as it has the metadata for the PV.
+		if(!pvHeaderWritten && strm instanceof RemotableOverRaw) {
+			pvDesc = ((RemotableOverRaw) strm).getDescription();
+		}
+	}
+
+	@Override
+	public void consumeEvent(Event e) throws Exception {
+		DBRTimeEvent evnt = (DBRTimeEvent) e;
+		if(!pvHeaderWritten) {
+			dbrType = evnt.getDBRType();
+			writePVHeader();
+		}
+		SampleValue sampleValue = evnt.getSampleValue();
+		int stride = (dbrType.isWaveForm() && dbrType != ArchDBRTypes.DBR_V4_GENERIC_BYTES) ? sampleValue.getElementCount() : 1;
+		if(eventsInChunk > 0 && (stride != strideOfChunk || eventsInChunk >= MAX_EVENTS_PER_CHUNK || valueBytes.size() >= MAX_BYTES_PER_CHUNK)) {
+			writeChunk();
+		}
+		strideOfChunk = stride;
+
+		Timestamp ts = evnt.getEventTimeStamp();
+		timestamps.writeLong(evnt.getEpochSeconds()*1000000000L + ts.getNanos());
+		severities.writeShort(evnt.getSeverity());
+		statuses.writeShort(evnt.getStatus());
+		switch(dbrType) {
+		case DBR_SCALAR_STRING:
+		case DBR_V4_GENERIC_BYTES:
+			writeString(sampleValue.toString());
+			break;
+		case DBR_WAVEFORM_STRING:
+			for(int i = 0; i < stride; i++) { writeString(sampleValue.getStringValue(i)); }
+			break;
+		case DBR_SCALAR_BYTE:
+		case DBR_WAVEFORM_BYTE:
+			for(int i = 0; i < stride; i++) { values.writeByte(sampleValue.getValue(i).byteValue()); }
+			break;
+		case DBR_SCALAR_SHORT:
+		case DBR_WAVEFORM_SHORT:
+			for(int i = 0; i < stride; i++) { values.writeShort(sampleValue.getValue(i).shortValue()); }
+			break;
+		case DBR_SCALAR_INT:
+		case DBR_WAVEFORM_INT:
+		case DBR_SCALAR_ENUM:
+		case DBR_WAVEFORM_ENUM:
+			for(int i = 0; i < stride; i++) { values.writeInt(sampleValue.getValue(i).intValue()); }
+			break;
+		case DBR_SCALAR_FLOAT:
+		case DBR_WAVEFORM_FLOAT:
+			for(int i = 0; i < stride; i++) { values.writeFloat(sampleValue.getValue(i).floatValue()); }
+			break;
+		case DBR_SCALAR_DOUBLE:
+		case DBR_WAVEFORM_DOUBLE:
+		default:
+			for(int i = 0; i < stride; i++) { values.writeDouble(sampleValue.getValue(i).doubleValue()); }
+			break;
+		}
+		eventsInChunk++;
+	}
+
+	@Override
+	public void close() {
+		try {
+			finishPV();
+			out.writeByte(END_BLOCK);
+			out.writeInt(0);
+			out.flush();
+		} catch(IOException ex) {
+			logException("Exception closing the columnar response", ex);
+		} finally {
+			try { out.close(); out = null; } catch(Exception ex) { }
+		}
+	}
+
+	@Override
+	public HashMap<String, String> getExtraHeaders() {
+		HashMap<String, String> ret = new HashMap<String, String>();
+		ret.put(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		return ret;
+	}
+
+	/**
+	 * The type of the value column for a DBR type.
+	 * @param dbrType
+	 * @return
+	 */
+	public static String getValueType(ArchDBRTypes dbrType) {
+		switch(dbrType) {
+		case DBR_SCALAR_STRING:
+		case DBR_WAVEFORM_STRING:
+		case DBR_V4_GENERIC_BYTES:
+			return "string";
+		case DBR_SCALAR_BYTE:
+		case DBR_WAVEFORM_BYTE:
+			return "int8";
+		case DBR_SCALAR_SHORT:
+		case DBR_WAVEFORM_SHORT:
+			return "int16";
+		case DBR_SCALAR_INT:
+		case DBR_WAVEFORM_INT:
+		case DBR_SCALAR_ENUM:
+		case DBR_WAVEFORM_ENUM:
+			return "int32";
+		case DBR_SCALAR_FLOAT:
+		case DBR_WAVEFORM_FLOAT:
+			return "float32";
+		case DBR_SCALAR_DOUBLE:
+		case DBR_WAVEFORM_DOUBLE:
+		default:
+			return "float64";
+		}
+	}
+
+	/**
+	 * Write out any pending events for the current PV; PVs without any events still get a PV block.
+	 * @throws IOException
+	 */
+	private void finishPV() throws IOException {
+		if(pvName == null) return;
+		if(!pvHeaderWritten) {
+			writePVHeader();
+		}
+		writeChunk();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void writePVHeader() throws IOException {
+		JSONObject header = new JSONObject();
+		header.put("name", pvName);
+		if(dbrType == null && pvDesc != null) {
+			dbrType = pvDesc.getArchDBRType();
+		}
+		if(dbrType != null) {
+			header.put("dbrType", dbrType.toString());
+			header.put("valueType", getValueType(dbrType));
+		}
+		header.put("elementCount", (pvDesc != null) ? pvDesc.getElementCount() : 1);
+		header.put("codec", codec == CODEC_DEFLATE ? "deflate" : "none");
+		JSONObject meta = new JSONObject();
+		if(pvDesc != null) {
+			for(String fieldName : pvDesc.getHeaders().keySet()) {
+				String fieldValue = pvDesc.getHeaders().get(fieldName);
+				if(fieldValue != null && !fieldValue.isEmpty()) {
+					meta.put(fieldName, fieldValue);
+				}
+			}
+		}
+		header.put("meta", meta);
+		byte[] headerBytes = header.toJSONString().getBytes(UTF8);
+		out.writeByte(PV_BLOCK);
+		out.writeInt(headerBytes.length);
+		out.write(headerBytes);
+		pvHeaderWritten = true;
+	}
+
+	private void writeChunk() throws IOException {
+		if(eventsInChunk == 0) return;
+		ByteArrayOutputStream columns = new ByteArrayOutputStream(timestampBytes.size() + severityBytes.size() + statusBytes.size() + valueBytes.size());
+		OutputStream columnsOut = columns;
+		Deflater deflater = null;
+		if(codec == CODEC_DEFLATE) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			columnsOut = new DeflaterOutputStream(columns, deflater, 64*1024);
+		}
+		try {
+			timestampBytes.writeTo(columnsOut);
+			severityBytes.writeTo(columnsOut);
+			statusBytes.writeTo(columnsOut);
+			valueBytes.writeTo(columnsOut);
+			columnsOut.close();
+		} finally {
+			if(deflater != null) deflater.end();
+		}
+		out.writeByte(CHUNK_BLOCK);
+		out.writeInt(1 + 4 + 4 + columns.size());
+		out.writeByte(codec);
+		out.writeInt(eventsInChunk);
+		out.writeInt(strideOfChunk);
+		columns.writeTo(out);
+		timestampBytes.reset();
+		severityBytes.reset();
+		statusBytes.reset();
+		valueBytes.reset();
+		eventsInChunk = 0;
+	}
+
+	private void writeString(String val) throws IOException {
+		byte[] bytes = (val != null) ? val.getBytes(UTF8) : new byte[0];
+		values.writeInt(bytes.length);
+		values.write(bytes);
+	}
+
+	private static void logException(String msg, IOException ex) {
+		if(ex != null && ex.toString() != null && ex.toString().contains("ClientAbortException")) {
+			// We check for ClientAbortException etc this way to avoid including tomcat jars in the build path.
+			logger.debug(msg, ex);
+		} else {
+			logger.error(msg, ex);
+		}
+	}
+}
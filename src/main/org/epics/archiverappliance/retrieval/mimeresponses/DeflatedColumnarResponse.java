@@ -0,0 +1,20 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.mimeresponses;
+
+/**
+ * A {@link ColumnarResponse} where each chunk's columns are deflate compressed.
+ * This trades server CPU for bandwidth; slowly changing PVs typically compress very well.
+ * @author mshankar
+ *
+ */
+public class DeflatedColumnarResponse extends ColumnarResponse {
+	public DeflatedColumnarResponse() {
+		super(CODEC_DEFLATE);
+	}
+}
@@ -0,0 +1,12 @@
+package org.epics.archiverappliance.retrieval.postprocessors;
+
+/**
+ * Post processors whose output for a bin depends only on the events in that bin (and the value of the previous bin for the ones that fill empty bins).
+ * Bins are <code>epochSeconds/intervalSecs</code>; so these can be computed incrementally as long as we keep the events in the last, incomplete bin.
+ * This is used by ETL to reduce data as it moves it into a store; see the <code>reducedata</code> option in the PlainPB plugin.
+ * @author mshankar
+ *
+ */
+public interface BinnedPostProcessor {
+	public int getIntervalSecs();
+}
@@ -22,7 +22,7 @@ import edu.stanford.slac.archiverappliance.PB.data.PBParseException;
  * @author mshankar
  *
  */
-public class FirstSamplePP implements PostProcessor, AfterAllStreams {
+public class FirstSamplePP implements PostProcessor, AfterAllStreams, BinnedPostProcessor {
 	private static Logger logger = Logger.getLogger(FirstSamplePP.class.getName());
 	private int intervalSecs = PostProcessors.DEFAULT_SUMMARIZING_INTERVAL;
 	private long firstBin = 0;
@@ -112,6 +112,11 @@ public class FirstSamplePP implements PostProcessor, AfterAllStreams {
 		return "firstSample";
 	}
 
+	@Override
+	public int getIntervalSecs() {
+		return intervalSecs;
+	}
+
 	@Override
 	public String getExtension() {
 		if(intervalSecs == PostProcessors.DEFAULT_SUMMARIZING_INTERVAL) {
@@ -26,7 +26,7 @@ import edu.stanford.slac.archiverappliance.PB.data.PBParseException;
  */
 
 // The implementation however is similar to lastFill.
-public class LastSample implements PostProcessor, PostProcessorWithConsolidatedEventStream {
+public class LastSample implements PostProcessor, PostProcessorWithConsolidatedEventStream, BinnedPostProcessor {
 	private static Logger logger = Logger.getLogger(LastSample.class.getName());
 	private int intervalSecs = PostProcessors.DEFAULT_SUMMARIZING_INTERVAL;
 	private long firstBin = 0;
@@ -121,6 +121,11 @@ public class LastSample implements PostProcessor, PostProcessorWithConsolidatedE
 		return "lastSample";
 	}
 
+	@Override
+	public int getIntervalSecs() {
+		return intervalSecs;
+	}
+
 	@Override
 	public String getExtension() {
 		if(intervalSecs == PostProcessors.DEFAULT_SUMMARIZING_INTERVAL) {
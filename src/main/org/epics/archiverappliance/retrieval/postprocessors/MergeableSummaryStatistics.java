@@ -0,0 +1,97 @@
+package org.epics.archiverappliance.retrieval.postprocessors;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.epics.archiverappliance.common.PartitionSummary;
+
+/**
+ * A SummaryStatistics that can also include partition summaries.
+ * Events are added to the SummaryStatistics as usual; partition summaries are merged separately and combined with the SummaryStatistics when we ask for the statistics.
+ * If no partition summaries have been added, we return exactly what the SummaryStatistics would have returned.
+ * We combine the means and the second moments using the method of Chan et al; so we do not lose precision for PVs with a large offset.
+ * @author mshankar
+ *
+ */
+public class MergeableSummaryStatistics extends SummaryStatistics {
+	private static final long serialVersionUID = 1L;
+	private long summaryN = 0;
+	private double summaryMean = 0.0;
+	private double summarySecondMoment = 0.0;
+	private double summarySum = 0.0;
+	private double summarySumsq = 0.0;
+	private double summaryMin = Double.NaN;
+	private double summaryMax = Double.NaN;
+
+	public void addPartitionSummary(PartitionSummary summary) {
+		long n = summary.getValueCount();
+		if(n <= 0) return;
+		long total = summaryN + n;
+		double delta = summary.getMean() - summaryMean;
+		summarySecondMoment += summary.getSecondMoment() + delta*delta*((double) summaryN)*n/total;
+		summaryMean += delta*n/total;
+		summarySum += summary.getSum();
+		summarySumsq += summary.getSumOfSquares();
+		summaryMin = (summaryN == 0) ? summary.getMin() : Math.min(summaryMin, summary.getMin());
+		summaryMax = (summaryN == 0) ? summary.getMax() : Math.max(summaryMax, summary.getMax());
+		summaryN = total;
+	}
+
+	@Override
+	public long getN() {
+		return super.getN() + summaryN;
+	}
+
+	@Override
+	public double getSum() {
+		if(summaryN == 0) return super.getSum();
+		return super.getN() == 0 ? summarySum : super.getSum() + summarySum;
+	}
+
+	@Override
+	public double getSumsq() {
+		if(summaryN == 0) return super.getSumsq();
+		return super.getN() == 0 ? summarySumsq : super.getSumsq() + summarySumsq;
+	}
+
+	@Override
+	public double getMean() {
+		if(summaryN == 0) return super.getMean();
+		long eventsN = super.getN();
+		if(eventsN == 0) return summaryMean;
+		double delta = summaryMean - super.getMean();
+		return super.getMean() + delta*summaryN/(eventsN + summaryN);
+	}
+
+	@Override
+	public double getSecondMoment() {
+		if(summaryN == 0) return super.getSecondMoment();
+		long eventsN = super.getN();
+		if(eventsN == 0) return summarySecondMoment;
+		double delta = summaryMean - super.getMean();
+		return super.getSecondMoment() + summarySecondMoment + delta*delta*((double) eventsN)*summaryN/(eventsN + summaryN);
+	}
+
+	@Override
+	public double getVariance() {
+		if(summaryN == 0) return super.getVariance();
+		long n = getN();
+		return n == 1 ? 0.0 : getSecondMoment()/(n - 1);
+	}
+
+	@Override
+	public double getPopulationVariance() {
+		if(summaryN == 0) return super.getPopulationVariance();
+		return getSecondMoment()/getN();
+	}
+
+	@Override
+	public double getMin() {
+		if(summaryN == 0) return super.getMin();
+		return super.getN() == 0 ? summaryMin : Math.min(super.getMin(), summaryMin);
+	}
+
+	@Override
+	public double getMax() {
+		if(summaryN == 0) return super.getMax();
+		return super.getN() == 0 ? summaryMax : Math.max(super.getMax(), summaryMax);
+	}
+}
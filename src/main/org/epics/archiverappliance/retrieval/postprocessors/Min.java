@@ -1,8 +1,8 @@
 package org.epics.archiverappliance.retrieval.postprocessors;
 
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.PartitionSummary;
 
 /**
  * Implements the min item in an interval
@@ -20,8 +20,8 @@ public class Min extends SummaryStatsPostProcessor implements PostProcessor {
 
 	@Override
 	public SummaryStatsCollector getCollector() {
-		return new SummaryStatsCollector() {
-			SummaryStatistics stats = new SummaryStatistics();
+		return new PartitionSummaryCollector() {
+			MergeableSummaryStatistics stats = new MergeableSummaryStatistics();
 			@Override
 			public void setBinParams(int intervalSecs, long binNum) {
 			}
@@ -36,6 +36,11 @@ public class Min extends SummaryStatsPostProcessor implements PostProcessor {
 				return stats.getMin();
 			}
 			
+			@Override
+			public void addPartitionSummary(PartitionSummary summary) {
+				stats.addPartitionSummary(summary);
+			}
+			
 			@Override
 			public void addEvent(Event e) {
 				double val = e.getSampleValue().getValue().doubleValue();
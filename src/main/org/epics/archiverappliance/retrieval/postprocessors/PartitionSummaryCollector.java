@@ -0,0 +1,17 @@
+package org.epics.archiverappliance.retrieval.postprocessors;
+
+import org.epics.archiverappliance.common.PartitionSummary;
+
+/**
+ * Collectors that can compute their statistic from partition summaries as well as events.
+ * When a bin completely covers a partition, the SummaryStatsPostProcessor hands the collector the partition's summary instead of the events in the partition.
+ * @author mshankar
+ *
+ */
+public interface PartitionSummaryCollector extends SummaryStatsCollector {
+	/**
+	 * Add all the events in a partition to the collector using the partition's summary.
+	 * @param summary
+	 */
+	public void addPartitionSummary(PartitionSummary summary);
+}
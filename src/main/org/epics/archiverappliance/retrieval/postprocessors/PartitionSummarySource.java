@@ -0,0 +1,19 @@
+package org.epics.archiverappliance.retrieval.postprocessors;
+
+import java.io.IOException;
+
+import org.epics.archiverappliance.common.PartitionSummary;
+
+/**
+ * Event streams that can summarize all of their events without going thru them.
+ * For example, a stream over an entire PB partition can use the summary that is stored alongside the partition.
+ * @author mshankar
+ *
+ */
+public interface PartitionSummarySource {
+	/**
+	 * @return The summary of all the events in this stream; null if there is no summary for this stream.
+	 * @throws IOException
+	 */
+	public PartitionSummary getPartitionSummary() throws IOException;
+}
@@ -1,7 +1,7 @@
 package org.epics.archiverappliance.retrieval.postprocessors;
 
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.PartitionSummary;
 
 /**
  * Implements the SummaryStatistics.getPopulationVariance
@@ -18,8 +18,8 @@ public class PopulationVariance extends SummaryStatsPostProcessor implements Pos
 
 	@Override
 	public SummaryStatsCollector getCollector() {
-		return new SummaryStatsCollector() {
-			SummaryStatistics stats = new SummaryStatistics();
+		return new PartitionSummaryCollector() {
+			MergeableSummaryStatistics stats = new MergeableSummaryStatistics();
 			@Override
 			public void setBinParams(int intervalSecs, long binNum) {
 			}
@@ -34,6 +34,11 @@ public class PopulationVariance extends SummaryStatsPostProcessor implements Pos
 				return stats.getPopulationVariance();
 			}
 			
+			@Override
+			public void addPartitionSummary(PartitionSummary summary) {
+				stats.addPartitionSummary(summary);
+			}
+			
 			@Override
 			public void addEvent(Event e) {
 				double val = e.getSampleValue().getValue().doubleValue();
@@ -3,9 +3,9 @@ package org.epics.archiverappliance.retrieval.postprocessors;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.PartitionSummary;
 
 /**
  * 
@@ -20,6 +20,12 @@ public class Statistics extends SummaryStatsPostProcessor {
     public static final String IDENTITY = "stats";
     private static Logger logger = Logger.getLogger(Statistics.class.getName());
     
+    /**
+     * The statistics for a bin can be computed from partition summaries as well as events.
+     */
+    interface StatisticsCollector extends SummaryStatsVectorCollector, PartitionSummaryCollector {
+    }
+    
     @Override
     public String getIdentity() {
         return IDENTITY;
@@ -37,8 +43,8 @@ public class Statistics extends SummaryStatsPostProcessor {
 
     @Override
     public SummaryStatsVectorCollector getCollector() {
-        return new SummaryStatsVectorCollector() {
-            SummaryStatistics stats = new SummaryStatistics();
+        return new StatisticsCollector() {
+            MergeableSummaryStatistics stats = new MergeableSummaryStatistics();
             @Override
             public void setBinParams(int intervalSecs, long binNum) {
             }
@@ -64,6 +70,11 @@ public class Statistics extends SummaryStatsPostProcessor {
                 return Double.NaN;
             }
                         
+            @Override
+            public void addPartitionSummary(PartitionSummary summary) {
+                stats.addPartitionSummary(summary);
+            }
+            
             @Override
             public void addEvent(Event e) {
                 double val = e.getSampleValue().getValue().doubleValue();
@@ -13,6 +13,7 @@ import javax.servlet.http.HttpServletRequest;
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.Event;
 import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.PartitionSummary;
 import org.epics.archiverappliance.common.TimeSpan;
 import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.config.PVTypeInfo;
@@ -28,7 +29,7 @@ import edu.stanford.slac.archiverappliance.PB.data.PBParseException;
  * @author mshankar
  *
  */
-public abstract class SummaryStatsPostProcessor implements PostProcessor, PostProcessorWithConsolidatedEventStream, FillNoFillSupport {
+public abstract class SummaryStatsPostProcessor implements PostProcessor, PostProcessorWithConsolidatedEventStream, FillNoFillSupport, BinnedPostProcessor {
 	@Override
 	public abstract String getIdentity();
 	public abstract SummaryStatsCollector getCollector();
@@ -107,6 +108,7 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 	private boolean inheritValuesFromPreviousBins = true;
 	Event lastSampleBeforeStart = null;
 	boolean lastSampleBeforeStartAdded = false;
+	private Boolean collectorTakesPartitionSummaries = null;
 	
 	@Override
 	public void initialize(String userarg, String pvName) throws IOException {
@@ -144,6 +146,9 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 				try(EventStream strm = callable.call()) {
 					// If we cache the mean/sigma etc, then we should add something to the desc telling us that this is cached data and then we can replace the stat value for that bin?
 					if(srcDesc == null) srcDesc = (RemotableEventStreamDesc) strm.getDescription();
+					if(consumePartitionSummary(strm)) {
+						return new SummaryStatsCollectorEventStream(firstBin, lastBin, intervalSecs, srcDesc, consolidatedData, inheritValuesFromPreviousBins, zeroOutEmptyBins(), vectorType, elementCount);
+					}
 					for(Event e : strm) {
 						try { 
 							DBRTimeEvent dbrTimeEvent = (DBRTimeEvent) e;
@@ -169,16 +174,7 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 								}
 								if(binNumber != currentBin) {
 									if(currentBin != -1) {
-									    SummaryValue summaryValue;
-									    if (vectorType) {
-							                summaryValue = new SummaryValue(((SummaryStatsVectorCollector)currentBinCollector).getVectorValues(), currentMaxSeverity, currentConnectionChangedEvents);
-							            } else {
-    										summaryValue = new SummaryValue(currentBinCollector.getStat(), currentMaxSeverity, currentConnectionChangedEvents);
-    										if(currentBinCollector instanceof SummaryStatsCollectorAdditionalColumns) { 
-    											summaryValue.addAdditionalColumn(((SummaryStatsCollectorAdditionalColumns)currentBinCollector).getAdditionalStats());
-    										}
-							            }
-										consolidatedData.put(currentBin, summaryValue);
+										addCurrentBinToConsolidatedData();
 									}
 									switchToNewBin(binNumber);
 								}
@@ -211,6 +207,67 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 		};
 	}
 
+	/**
+	 * If the events in this stream all fall into one bin and the stream can summarize its events, we use the summary instead of going thru the events.
+	 * For example, a daily mean over many hourly partitions needs to look at the events only in the partitions at the edges of the bins.
+	 * @param strm
+	 * @return true if we consumed the stream using its summary; false if the caller needs to go thru the events.
+	 * @throws IOException
+	 */
+	private boolean consumePartitionSummary(EventStream strm) throws IOException {
+		if(!(strm instanceof PartitionSummarySource)) return false;
+		if(collectorTakesPartitionSummaries == null) {
+			collectorTakesPartitionSummaries = Boolean.valueOf(getCollector() instanceof PartitionSummaryCollector);
+		}
+		if(!collectorTakesPartitionSummaries.booleanValue()) return false;
+		PartitionSummary summary = ((PartitionSummarySource) strm).getPartitionSummary();
+		if(summary == null || summary.getEventCount() == 0) return false;
+		if(!summary.getFirstEventTimestamp().after(previousEventTimestamp)) {
+			// This stream overlaps with data we have already seen; we need to skip the older events one at a time.
+			return false;
+		}
+		long binNumber = summary.getFirstEpochSeconds()/intervalSecs;
+		if(binNumber != summary.getLastEpochSeconds()/intervalSecs || binNumber < firstBin || binNumber > lastBin) {
+			return false;
+		}
+		if(logger.isDebugEnabled()) {
+			logger.debug("Using the summary of " + summary.getEventCount() + " events for bin " + binNumber + " from " + strm.getDescription().getSource());
+		}
+		if(!lastSampleBeforeStartAdded && lastSampleBeforeStart != null) { 
+			switchToNewBin(firstBin-1);
+			currentBinCollector.addEvent(lastSampleBeforeStart);
+			lastSampleBeforeStartAdded = true; 
+		}
+		if(binNumber != currentBin) {
+			if(currentBin != -1) {
+				addCurrentBinToConsolidatedData();
+			}
+			switchToNewBin(binNumber);
+		}
+		((PartitionSummaryCollector) currentBinCollector).addPartitionSummary(summary);
+		if(summary.getMaxSeverity() > currentMaxSeverity) { 
+			currentMaxSeverity = summary.getMaxSeverity();
+		}
+		if(summary.isConnectionChanged()) { 
+			currentConnectionChangedEvents = true;
+		}
+		previousEventTimestamp = summary.getLastEventTimestamp();
+		return true;
+	}
+
+	private void addCurrentBinToConsolidatedData() {
+		SummaryValue summaryValue;
+		if (isProvidingVectorData()) {
+			summaryValue = new SummaryValue(((SummaryStatsVectorCollector)currentBinCollector).getVectorValues(), currentMaxSeverity, currentConnectionChangedEvents);
+		} else {
+			summaryValue = new SummaryValue(currentBinCollector.getStat(), currentMaxSeverity, currentConnectionChangedEvents);
+			if(currentBinCollector instanceof SummaryStatsCollectorAdditionalColumns) { 
+				summaryValue.addAdditionalColumn(((SummaryStatsCollectorAdditionalColumns)currentBinCollector).getAdditionalStats());
+			}
+		}
+		consolidatedData.put(currentBin, summaryValue);
+	}
+
 	private void switchToNewBin(long binNumber) {
 		currentBin = binNumber;
 		currentMaxSeverity = 0;
@@ -219,6 +276,11 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 		currentBinCollector.setBinParams(intervalSecs, currentBin);
 	}
 
+	@Override
+	public int getIntervalSecs() {
+		return intervalSecs;
+	}
+
 	@Override
 	public String getExtension() {
 		String identity = this.getIdentity();
@@ -239,16 +301,7 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 			lastSampleBeforeStartAdded = true; 
 		}
 		if(currentBin != -1) {
-		    SummaryValue summaryValue;
-		    if (isProvidingVectorData()) {
-		        summaryValue = new SummaryValue(((SummaryStatsVectorCollector)currentBinCollector).getVectorValues(), currentMaxSeverity, currentConnectionChangedEvents);
-		    } else {
-    			summaryValue = new SummaryValue(currentBinCollector.getStat(), currentMaxSeverity, currentConnectionChangedEvents);
-    			if(currentBinCollector instanceof SummaryStatsCollectorAdditionalColumns) { 
-    				summaryValue.addAdditionalColumn(((SummaryStatsCollectorAdditionalColumns)currentBinCollector).getAdditionalStats());
-    			}
-		    }
-    		consolidatedData.put(currentBin, summaryValue);
+			addCurrentBinToConsolidatedData();
 			currentBinCollector = null;
 		}
 		if(consolidatedData.isEmpty()) { 
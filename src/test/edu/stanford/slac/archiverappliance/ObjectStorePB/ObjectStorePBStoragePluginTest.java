@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.ObjectStorePB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.postprocessors.DefaultRawPostProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Move a few days of data into a local stand in for the object store in several ETL runs and make sure we get it back.
+ * Check that retrieving a small time range reads a small portion of the data, that segments in the same partition are repacked when there are too many and that the packs that are no longer needed are deleted.
+ * @author mshankar
+ *
+ */
+public class ObjectStorePBStoragePluginTest {
+	private static final int DAYS = 3;
+	private static final int EVENTS_PER_DAY = 86400/10;
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "ObjectStorePBStoragePluginTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":ObjectStorePBStoragePluginTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+	ObjectStorePBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		storagePlugin = (ObjectStorePBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("objpb://localhost?name=ObjectStorePBStoragePluginTest&rootFolder=" + testFolder.getAbsolutePath() + "/store"
+				+ "&stagingFolder=" + testFolder.getAbsolutePath() + "/staging"
+				+ "&partitionGranularity=PARTITION_DAY&indexKB=4&maxSegments=" + (DAYS*2) + "&retireMinutes=0", configService);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	/**
+	 * Move the events in [start, end) using the ETL dest methods.
+	 */
+	private void etlEvents(int start, int end) throws Exception {
+		ArrayListEventStream strm = new ArrayListEventStream(end - start, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int i = start; i < end; i++) {
+			strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*10, 0), new ScalarValue<Double>((double)i), 0, 0));
+		}
+		try(ETLContext context = new ETLContext()) {
+			storagePlugin.prepareForNewPartition(pvName, strm.get(0), ArchDBRTypes.DBR_SCALAR_DOUBLE, context);
+			storagePlugin.appendToETLAppendData(pvName, strm, context);
+			storagePlugin.commitETLAppendData(pvName, context);
+		}
+	}
+
+	@Test
+	public void testObjectStorePlugin() throws Exception {
+		// One ETL run for the first day and a half and then one every half day; so the second and third days have two segments each.
+		etlEvents(0, EVENTS_PER_DAY*3/2);
+		for(int i = 3; i < DAYS*2; i++) {
+			etlEvents(EVENTS_PER_DAY*i/2, EVENTS_PER_DAY*(i+1)/2);
+		}
+		PVManifest manifest = storagePlugin.loadManifest(pvName);
+		assertTrue("Expecting five segments; got " + manifest.segments.size(), manifest.segments.size() == 5);
+		assertTrue("Expecting a pack per ETL run " + storagePlugin.getObjectStore().listObjects(""), storagePlugin.getObjectStore().listObjects("").size() == 4 + 1);
+		// Events that we already have are skipped.
+		etlEvents(EVENTS_PER_DAY*2, EVENTS_PER_DAY*5/2);
+		assertTrue("Expecting duplicate events to be skipped", storagePlugin.loadManifest(pvName).segments.size() == 5);
+
+		long start = startOfYearEpochSeconds;
+		long end = startOfYearEpochSeconds + DAYS*86400;
+		assertTrue("Expecting all the events", retrieveEvents(start, end, -1) == DAYS*EVENTS_PER_DAY);
+
+		// An hour in the middle of the second day should read a small portion of the data; we also get the event before the start.
+		long totalBytes = storagePlugin.loadManifest(pvName).getTotalBytes();
+		long bytesReadBefore = Long.parseLong(storagePlugin.getObjectStore().getMetrics().get("bytesRead"));
+		long hourStart = startOfYearEpochSeconds + 86400 + 12*3600 + 5;
+		assertTrue("Expecting an hour of events", retrieveEvents(hourStart, hourStart + 3600, (hourStart - startOfYearEpochSeconds)/10) == 360 + 1);
+		long bytesRead = Long.parseLong(storagePlugin.getObjectStore().getMetrics().get("bytesRead")) - bytesReadBefore;
+		assertTrue("Expecting range reads to read a small portion of the " + totalBytes + " bytes; read " + bytesRead, bytesRead < totalBytes/20);
+
+		// Just the last known event if we ask for data after the end.
+		assertTrue("Expecting the last known event", retrieveEvents(end + 3600, end + 7200, DAYS*EVENTS_PER_DAY - 1) == 1);
+
+		Event firstEvent = storagePlugin.getFirstKnownEvent(new BasicContext(), pvName);
+		Event lastEvent = storagePlugin.getLastKnownEvent(new BasicContext(), pvName);
+		assertTrue("First known event is incorrect", firstEvent.getEpochSeconds() == startOfYearEpochSeconds);
+		assertTrue("Last known event is incorrect", lastEvent.getEpochSeconds() == startOfYearEpochSeconds + (DAYS*EVENTS_PER_DAY - 1)*10);
+
+		// Going over the maximum number of segments merges the segments for each day.
+		etlEvents(DAYS*EVENTS_PER_DAY, DAYS*EVENTS_PER_DAY + 100);
+		etlEvents(DAYS*EVENTS_PER_DAY + 100, DAYS*EVENTS_PER_DAY + 200);
+		manifest = storagePlugin.loadManifest(pvName);
+		assertTrue("Expecting a segment per day after repacking; got " + manifest.segments.size(), manifest.segments.size() == DAYS + 1);
+		List<String> objects = storagePlugin.getObjectStore().listObjects("");
+		assertTrue("Expecting the packs that are not used to be deleted " + objects, objects.size() == manifest.getLivePacks().size() + 1 && manifest.retiredPacks.isEmpty());
+		assertTrue("Expecting all the events after repacking", retrieveEvents(start, end + 86400, -1) == DAYS*EVENTS_PER_DAY + 200);
+
+		// Renaming copies the data.
+		String newName = pvName + "_renamed";
+		storagePlugin.renamePV(new BasicContext(), pvName, newName);
+		assertTrue("Expecting the data for the new name", storagePlugin.getLastKnownEvent(new BasicContext(), newName).getEpochSeconds() == startOfYearEpochSeconds + (DAYS*EVENTS_PER_DAY + 199)*10);
+	}
+
+	/**
+	 * Retrieve events and check that they are what we wrote and in order.
+	 * @param firstValue - The value of the first event that we expect; -1 to skip this check.
+	 * @return The number of events
+	 */
+	private long retrieveEvents(long startEpochSeconds, long endEpochSeconds, long firstValue) throws Exception {
+		Timestamp start = TimeUtils.convertFromEpochSeconds(startEpochSeconds, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(endEpochSeconds, 0);
+		long eventCount = 0;
+		long previousValue = -1;
+		try(BasicContext context = new BasicContext()) {
+			for(Callable<EventStream> callable : storagePlugin.getDataForPV(context, pvName, start, end, new DefaultRawPostProcessor())) {
+				try(EventStream strm = callable.call()) {
+					for(Event e : strm) {
+						long value = e.getSampleValue().getValue().longValue();
+						assertTrue("Value does not match time", value == (e.getEpochSeconds() - startOfYearEpochSeconds)/10);
+						assertTrue("Values out of order", value > previousValue);
+						if(eventCount == 0 && firstValue != -1) assertTrue("Expecting the first event to be " + firstValue + "; got " + value, value == firstValue);
+						previousValue = value;
+						eventCount++;
+					}
+				}
+			}
+		}
+		return eventCount;
+	}
+}
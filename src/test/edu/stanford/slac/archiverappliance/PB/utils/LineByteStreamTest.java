@@ -316,6 +316,39 @@ public class LineByteStreamTest {
 	
 	
 	
+	/**
+	 * The position after seeking to the last line should point to the start of the last line even after we have read some data from the stream.
+	 * @throws Exception
+	 */
+	@Test
+	public void testPositionAfterSeekToBeforeLastLine() throws Exception {
+		String fileName = ConfigServiceForTests.getDefaultPBTestFolder() + "/" + "LineByteStreamLastLinePosition.txt";
+		File f = new File(fileName);
+		if(f.exists()) {
+			f.delete();
+		}
+		DecimalFormat formatter = new DecimalFormat("LinePattern000000");
+		int lineCount = 5000;
+		try(PrintWriter out = new PrintWriter(new BufferedOutputStream(new FileOutputStream(f, false)))) {
+			for(int line = 0; line < lineCount; line++) {
+				out.print(formatter.format(line));
+				out.print("\n");
+			}
+		}
+
+		long expectedPosition = f.length() - 18;
+		try(LineByteStream lis = new LineByteStream(f.toPath())) {
+			// Read a couple of lines first so that we have a batch in the buffer.
+			lis.readLine();
+			lis.readLine();
+			lis.seekToBeforeLastLine();
+			long posn = lis.getCurrentPosition();
+			assertTrue("Expected position " + expectedPosition + " got " + posn, posn == expectedPosition);
+			String lastLine = new String(lis.readLine(), "UTF-8");
+			assertTrue("Expected last line " + formatter.format(lineCount-1) + " got " + lastLine, lastLine.equals(formatter.format(lineCount-1)));
+		}
+	}
+
 	@Test
 	public void testSeekToPreviousLine() throws Exception {
 		String fileName = ConfigServiceForTests.getDefaultPBTestFolder() + "/" + "LineByteStream.txt";
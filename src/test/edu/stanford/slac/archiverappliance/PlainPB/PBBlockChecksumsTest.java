@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PlainPB.utils.ValidateAndFixPBFile;
+import edu.stanford.slac.archiverappliance.PlainPB.utils.ValidatePBFile;
+
+/**
+ * Write a partition with checksums in a couple of appends, damage a block and make sure the damage is detected on read, by the scrubber and by the validation tools.
+ * @author mshankar
+ *
+ */
+public class PBBlockChecksumsTest {
+	private static final int EVENTS = 20000;
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PBBlockChecksumsTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PBBlockChecksumsTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+	PlainPBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PBBlockChecksumsTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_YEAR", configService);
+		PBBlockChecksums.setEnabled(true);
+		// Append the events in two batches so that we extend the checksums of an existing partition.
+		appendEvents(0, EVENTS/2);
+		appendEvents(EVENTS/2, EVENTS);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		PBBlockChecksums.setEnabled(false);
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	private void appendEvents(int start, int end) throws Exception {
+		ArrayListEventStream strm = new ArrayListEventStream(end - start, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int i = start; i < end; i++) {
+			strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*10, 0), new ScalarValue<Double>((double)i), 0, 0));
+		}
+		try(BasicContext context = new BasicContext()) {
+			storagePlugin.appendData(context, pvName, strm);
+		}
+	}
+
+	@Test
+	public void testChecksums() throws Exception {
+		Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), testFolder.getAbsolutePath(), pvName, PlainPBStoragePlugin.PB_EXTENSION, storagePlugin.getPartitionGranularity(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		assertTrue("Expecting one partition; got " + paths.length, paths.length == 1);
+		Path path = paths[0];
+		long size = Files.size(path);
+		PBBlockChecksums.VerificationResult result = PBBlockChecksums.verify(path, null);
+		assertTrue("Expecting checksums for the whole partition " + result, result.hasChecksums() && !result.isDamaged() && result.getBytesVerified() == size && result.getUnverifiedBytes() == 0);
+		assertTrue("Expecting more than a few blocks " + result, result.getBlocksVerified() > 4);
+		assertTrue("Expecting all the events when the partition is not damaged", retrieveEvents() == EVENTS);
+
+		// Partitions without checksums are validated and checksummed by the scrubber.
+		PBBlockChecksums.partitionDeleted(path);
+		Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - 2*60*60*1000L));
+		PBBlockChecksumScrubber scrubber = new PBBlockChecksumScrubber(testFolder.getAbsolutePath(), 1024*1024*1024L, 60*60*1000L, true);
+		scrubber.scrubPass();
+		assertTrue("Expecting the scrubber to add checksums " + scrubber.getMetrics(), PBBlockChecksums.hasChecksums(path) && scrubber.getMetrics().get("checksumsAdded").equals("1"));
+
+		// Damage a block in the middle of the partition.
+		long damagedPosition = size/2;
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer buf = ByteBuffer.allocate(1);
+			channel.read(buf, damagedPosition);
+			buf.put(0, (byte) (buf.get(0) ^ 0x10));
+			buf.rewind();
+			channel.write(buf, damagedPosition);
+		}
+
+		result = PBBlockChecksums.verify(path, null);
+		List<long[]> damagedRanges = result.getDamagedRanges();
+		assertTrue("Expecting one damaged block " + result, damagedRanges.size() == 1 && damagedRanges.get(0)[0] <= damagedPosition && damagedRanges.get(0)[1] > damagedPosition);
+		assertTrue("Validation should use the checksums", !ValidatePBFile.validatePBFile(path, false, true));
+
+		long damagedBlocksBefore = Long.parseLong(PBBlockChecksums.getMetrics().get("damagedBlocksOnRead"));
+		long eventsRetrieved = retrieveEvents();
+		assertTrue("Retrieval should stop at the damaged block; got " + eventsRetrieved, eventsRetrieved > 0 && eventsRetrieved < EVENTS);
+		assertTrue("Expecting the damage on read to be counted " + PBBlockChecksums.getMetrics(), Long.parseLong(PBBlockChecksums.getMetrics().get("damagedBlocksOnRead")) > damagedBlocksBefore);
+
+		scrubber.scrubPass();
+		assertTrue("Expecting the scrubber to report the damaged partition " + scrubber.getMetrics(), scrubber.getDamagedPartitions().containsKey(path.toString()));
+
+		// Fixing the partition should only lose the events in the damaged block.
+		ValidateAndFixPBFile.fixPBFile(path, false, false);
+		result = PBBlockChecksums.verify(path, null);
+		assertTrue("Expecting the fixed partition to match its checksums " + result, result.hasChecksums() && !result.isDamaged() && result.getUnverifiedBytes() == 0);
+		eventsRetrieved = retrieveEvents();
+		long eventsInDamagedBlock = (damagedRanges.get(0)[1] - damagedRanges.get(0)[0])/(size/EVENTS) + 2;
+		assertTrue("Expecting all but the events in the damaged block; got " + eventsRetrieved, eventsRetrieved < EVENTS && eventsRetrieved >= EVENTS - 2*eventsInDamagedBlock);
+		scrubber.scrubPass();
+		assertTrue("Expecting the scrubber to no longer report the fixed partition " + scrubber.getMetrics(), scrubber.getDamagedPartitions().isEmpty());
+	}
+
+	/**
+	 * Retrieve all the events and check that they are what we wrote; events in damaged blocks may be missing.
+	 * @return The number of events
+	 */
+	private long retrieveEvents() throws Exception {
+		Timestamp start = TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + EVENTS*10 + 1, 0);
+		long eventCount = 0;
+		long previousValue = -1;
+		try(BasicContext context = new BasicContext()) {
+			for(Callable<EventStream> callable : storagePlugin.getDataForPV(context, pvName, start, end)) {
+				try(EventStream strm = callable.call()) {
+					for(Event e : strm) {
+						long value = e.getSampleValue().getValue().longValue();
+						assertTrue("Value does not match time", value == (e.getEpochSeconds() - startOfYearEpochSeconds)/10);
+						assertTrue("Values out of order", value > previousValue);
+						previousValue = value;
+						eventCount++;
+					}
+				}
+			}
+		}
+		return eventCount;
+	}
+}
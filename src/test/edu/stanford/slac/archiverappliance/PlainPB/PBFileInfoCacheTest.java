@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Make sure the PBFileInfo cache returns the same information as reading the file as we append to the file; both from within this process and behind the cache's back.
+ * @author mshankar
+ *
+ */
+public class PBFileInfoCacheTest {
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PBFileInfoCacheTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PBFileInfoCacheTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	Path pbFilePath = Paths.get(testFolder.getAbsolutePath(), pvName.replace(":", "/").replace("--", "") + ":" + currentYear + ".pb");
+	PlainPBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PBFileInfoCacheTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_YEAR", configService);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testCacheMatchesFile() throws Exception {
+		long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+		for(int batch = 0; batch < 10; batch++) {
+			ArrayListEventStream strm = new ArrayListEventStream(100, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+			for(int i = 0; i < 100; i++) {
+				int second = batch*1000 + i*10;
+				strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + second, i), new ScalarValue<Double>((double)second), 0, 0));
+			}
+			try(BasicContext context = new BasicContext()) {
+				storagePlugin.appendData(context, pvName, strm);
+			}
+			long hitsBefore = Long.parseLong(PBFileInfoCache.getMetrics().get("hits"));
+			assertSameInfo(new PBFileInfo(pbFilePath), PBFileInfoCache.getFileInfo(pbFilePath));
+			if(batch > 0) {
+				// The append should have updated the cache; so we expect a hit here.
+				long hitsAfter = Long.parseLong(PBFileInfoCache.getMetrics().get("hits"));
+				assertTrue("Expecting a cache hit after appending batch " + batch + " " + PBFileInfoCache.getMetrics(), hitsAfter == hitsBefore + 1);
+			}
+		}
+
+		// Append an event behind the cache's back.
+		POJOEvent extraEvent = new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + 20000, 0), new ScalarValue<Double>(20000.0), 0, 0);
+		ByteArray val = extraEvent.getRawForm();
+		try(OutputStream os = Files.newOutputStream(pbFilePath, StandardOpenOption.APPEND)) {
+			os.write(val.data, val.off, val.len);
+			os.write(LineEscaper.NEWLINE_CHAR);
+		}
+		PBFileInfo cachedInfo = PBFileInfoCache.getFileInfo(pbFilePath);
+		assertTrue("Expecting the cache to pick up the event appended behind its back", cachedInfo.getLastEventEpochSeconds() == startOfYearEpochSeconds + 20000);
+		assertSameInfo(new PBFileInfo(pbFilePath), cachedInfo);
+	}
+
+	private static void assertSameInfo(PBFileInfo expected, PBFileInfo actual) {
+		assertTrue("PV Name " + actual.getPVName(), expected.getPVName().equals(actual.getPVName()));
+		assertTrue("Year " + actual.getDataYear(), expected.getDataYear() == actual.getDataYear());
+		assertTrue("Type " + actual.getType(), expected.getType() == actual.getType());
+		assertTrue("First event " + TimeUtils.convertToISO8601String(actual.getFirstEvent().getEventTimeStamp()), expected.getFirstEvent().getEventTimeStamp().equals(actual.getFirstEvent().getEventTimeStamp()));
+		assertTrue("Last event " + TimeUtils.convertToISO8601String(actual.getLastEvent().getEventTimeStamp()), expected.getLastEvent().getEventTimeStamp().equals(actual.getLastEvent().getEventTimeStamp()));
+		assertTrue("Position of first sample " + actual.getPositionOfFirstSample() + "/" + expected.getPositionOfFirstSample(), expected.getPositionOfFirstSample() == actual.getPositionOfFirstSample());
+		assertTrue("Position of last sample " + actual.getPositionOfLastSample() + "/" + expected.getPositionOfLastSample(), expected.getPositionOfLastSample() == actual.getPositionOfLastSample());
+	}
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigService.WAR_FILE;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.CallableEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.postprocessors.Count;
+import org.epics.archiverappliance.retrieval.postprocessors.DefaultRawPostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.Max;
+import org.epics.archiverappliance.retrieval.postprocessors.Mean;
+import org.epics.archiverappliance.retrieval.postprocessors.Min;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessorWithConsolidatedEventStream;
+import org.epics.archiverappliance.retrieval.postprocessors.RMS;
+import org.epics.archiverappliance.retrieval.postprocessors.StandardDeviation;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Daily statistics over hourly partitions should use the partition summaries for the bins that cover entire partitions.
+ * Make sure we get the same results as we would by going thru the events.
+ * @author mshankar
+ *
+ */
+public class PBPartitionSummariesTest {
+	private static final int HOURS = 72;
+	private static final int EVENTS_PER_HOUR = 60;
+	private static final int DAY = 86400;
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PBPartitionSummariesTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PBPartitionSummariesTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+	PlainPBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		// Summary files are not written by default.
+		configService.getInstallationProperties().setProperty("edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries.writeSummaryFiles", "true");
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PBPartitionSummariesTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_HOUR", configService);
+		ArrayListEventStream strm = new ArrayListEventStream(HOURS*EVENTS_PER_HOUR, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int i = 0; i < HOURS*EVENTS_PER_HOUR; i++) {
+			// A large offset with small variations; the variance should not lose precision when merging summaries.
+			double value = 1.0e6 + Math.sin(i/10.0) + (i % 7)*0.01;
+			strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*(3600/EVENTS_PER_HOUR), 0), new ScalarValue<Double>(value), 0, (i % 11 == 0) ? 1 : 0));
+		}
+		try(BasicContext context = new BasicContext()) {
+			storagePlugin.appendData(context, pvName, strm);
+		}
+		// Partitions that have just been modified are not summarized.
+		Thread.sleep(PlainPBPartitionCatalog.RACY_INTERVAL_MILLIS + 100);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testDailyStatisticsFromSummaries() throws Exception {
+		long computedBefore = Long.parseLong(configService.getPartitionSummaries().getMetrics().get("summariesComputed"));
+		compareWithRawEvents(new Mean(), "mean_" + DAY);
+		long computed = Long.parseLong(configService.getPartitionSummaries().getMetrics().get("summariesComputed")) - computedBefore;
+		// The partitions at the start and end are partly in the time range; the ones in between are summarized.
+		assertTrue("Expecting summaries to be computed for the partitions in the middle " + configService.getPartitionSummaries().getMetrics(), computed == (HOURS-5) - 5 - 1);
+
+		Path[] summaryFiles = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), testFolder.getAbsolutePath(), pvName, PBPartitionSummaries.SUMMARY_EXTENSION, storagePlugin.getPartitionGranularity(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		assertTrue("Expecting summary files; got " + summaryFiles.length, summaryFiles.length == computed);
+
+		// The other operators should use the summaries we have already computed.
+		long memoryHitsBefore = Long.parseLong(configService.getPartitionSummaries().getMetrics().get("memoryHits"));
+		compareWithRawEvents(new Min(), "min_" + DAY);
+		compareWithRawEvents(new Max(), "max_" + DAY);
+		compareWithRawEvents(new Count(), "count_" + DAY);
+		compareWithRawEvents(new StandardDeviation(), "std_" + DAY);
+		compareWithRawEvents(new RMS(), "rms_" + DAY);
+		assertTrue("Expecting the summaries to be reused " + configService.getPartitionSummaries().getMetrics(), Long.parseLong(configService.getPartitionSummaries().getMetrics().get("memoryHits")) >= memoryHitsBefore + 5*computed);
+		assertTrue("Expecting no more summaries to be computed " + configService.getPartitionSummaries().getMetrics(), Long.parseLong(configService.getPartitionSummaries().getMetrics().get("summariesComputed")) - computedBefore == computed);
+
+		// Deleting a partition should delete its summary file.
+		PBPartitionSummaries.partitionDeleted(configService, summaryFiles[0].resolveSibling(summaryFiles[0].getFileName().toString().replace(PBPartitionSummaries.SUMMARY_EXTENSION, PlainPBStoragePlugin.PB_EXTENSION)));
+		assertTrue("Summary file " + summaryFiles[0] + " should have been deleted", !Files.exists(summaryFiles[0]));
+	}
+
+	@Test
+	public void testRetrievalDoesNotWriteSummaryFiles() throws Exception {
+		Properties props = new Properties();
+		assertTrue("Summary files should not be written by default", !PBPartitionSummaries.fromProperties(props, WAR_FILE.ETL).isWriteSummaryFiles());
+		props.setProperty("edu.stanford.slac.archiverappliance.PlainPB.PBPartitionSummaries.writeSummaryFiles", "true");
+		assertTrue(PBPartitionSummaries.fromProperties(props, WAR_FILE.ETL).isWriteSummaryFiles());
+		assertTrue("Retrieval should never write into the stores", !PBPartitionSummaries.fromProperties(props, WAR_FILE.RETRIEVAL).isWriteSummaryFiles());
+	}
+
+	/**
+	 * Retrieve the data using the post processor thru the storage plugin and compare with the same post processor going thru copies of the events.
+	 */
+	private void compareWithRawEvents(PostProcessor postProcessor, String userarg) throws Exception {
+		Timestamp start = TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + 5*3600 + 1800, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + (HOURS-5)*3600 + 1800, 0);
+		postProcessor.initialize(userarg, pvName);
+		postProcessor.estimateMemoryConsumption(pvName, new PVTypeInfo(pvName, ArchDBRTypes.DBR_SCALAR_DOUBLE, true, 1), start, end, null);
+		PostProcessor rawPostProcessor = postProcessor.getClass().getDeclaredConstructor().newInstance();
+		rawPostProcessor.initialize(userarg, pvName);
+		rawPostProcessor.estimateMemoryConsumption(pvName, new PVTypeInfo(pvName, ArchDBRTypes.DBR_SCALAR_DOUBLE, true, 1), start, end, null);
+
+		try(BasicContext context = new BasicContext()) {
+			for(Callable<EventStream> callable : storagePlugin.getDataForPV(context, pvName, start, end, postProcessor)) {
+				callable.call().close();
+			}
+			for(Callable<EventStream> callable : storagePlugin.getDataForPV(context, pvName, start, end, new DefaultRawPostProcessor())) {
+				try(EventStream strm = callable.call()) {
+					ArrayListEventStream copy = new ArrayListEventStream(0, (RemotableEventStreamDesc) strm.getDescription());
+					for(Event e : strm) {
+						copy.add(e.makeClone());
+					}
+					rawPostProcessor.wrap(CallableEventStream.makeOneStreamCallable(copy, null, false)).call();
+				}
+			}
+		}
+
+		List<Event> fromSummaries = new ArrayList<Event>();
+		for(Event e : ((PostProcessorWithConsolidatedEventStream) postProcessor).getConsolidatedEventStream()) {
+			fromSummaries.add(e.makeClone());
+		}
+		List<Event> fromEvents = new ArrayList<Event>();
+		for(Event e : ((PostProcessorWithConsolidatedEventStream) rawPostProcessor).getConsolidatedEventStream()) {
+			fromEvents.add(e.makeClone());
+		}
+		assertTrue(userarg + " expecting " + fromEvents.size() + " bins; got " + fromSummaries.size(), fromSummaries.size() == fromEvents.size() && fromEvents.size() >= 3);
+		for(int i = 0; i < fromEvents.size(); i++) {
+			Event expected = fromEvents.get(i);
+			Event actual = fromSummaries.get(i);
+			assertTrue(userarg + " bin " + i + " has a different time", expected.getEpochSeconds() == actual.getEpochSeconds());
+			assertTrue(userarg + " bin " + i + " has a different severity", ((DBRTimeEvent) expected).getSeverity() == ((DBRTimeEvent) actual).getSeverity());
+			double expectedValue = expected.getSampleValue().getValue().doubleValue();
+			double actualValue = actual.getSampleValue().getValue().doubleValue();
+			assertTrue(userarg + " bin " + i + " expecting " + expectedValue + " got " + actualValue, Math.abs(expectedValue - actualValue) <= 1.0e-9*Math.max(1.0, Math.abs(expectedValue)));
+		}
+	}
+}
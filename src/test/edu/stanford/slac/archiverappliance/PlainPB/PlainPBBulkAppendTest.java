@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Move hourly partitions into a daily partition using the bulk append (which uses a file channel transfer for plain files).
+ * Make sure we get all the events back and that the last event bookkeeping is correct after the bulk appends.
+ * @author mshankar
+ *
+ */
+public class PlainPBBulkAppendTest {
+	private static final int HOURS = 4;
+	private static final int EVENTS_PER_HOUR = 360;
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBBulkAppendTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PlainPBBulkAppendTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+	PlainPBStoragePlugin srcPlugin;
+	PlainPBStoragePlugin destPlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		srcPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=STS&rootFolder=" + testFolder.getAbsolutePath() + "/sts&partitionGranularity=PARTITION_HOUR", configService);
+		destPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=MTS&rootFolder=" + testFolder.getAbsolutePath() + "/mts&partitionGranularity=PARTITION_DAY", configService);
+		ArrayListEventStream strm = new ArrayListEventStream(HOURS*EVENTS_PER_HOUR, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int i = 0; i < HOURS*EVENTS_PER_HOUR; i++) {
+			strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*(3600/EVENTS_PER_HOUR), 0), new ScalarValue<Double>((double)i), 0, 0));
+		}
+		try(BasicContext context = new BasicContext()) {
+			srcPlugin.appendData(context, pvName, strm);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testBulkAppend() throws Exception {
+		Path[] srcPaths = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), testFolder.getAbsolutePath() + "/sts", pvName, PlainPBStoragePlugin.PB_EXTENSION, srcPlugin.getPartitionGranularity(), srcPlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		assertTrue("Expecting a partition per hour", srcPaths.length == HOURS);
+		try(ETLContext context = new ETLContext()) {
+			for(Path srcPath : srcPaths) {
+				try(FileBackedPBEventStream strm = new FileBackedPBEventStream(pvName, srcPath, ArchDBRTypes.DBR_SCALAR_DOUBLE)) {
+					destPlugin.prepareForNewPartition(pvName, strm.getFirstEvent(context), ArchDBRTypes.DBR_SCALAR_DOUBLE, context);
+					destPlugin.appendToETLAppendData(pvName, strm, context);
+				}
+			}
+			destPlugin.commitETLAppendData(pvName, context);
+		}
+
+		assertTrue("Expecting all the events in the daily partition", retrieveEvents() == HOURS*EVENTS_PER_HOUR);
+		Event lastEvent = destPlugin.getLastKnownEvent(new BasicContext(), pvName);
+		assertTrue("Last known event is incorrect", lastEvent.getEpochSeconds() == startOfYearEpochSeconds + (HOURS*EVENTS_PER_HOUR - 1)*(3600/EVENTS_PER_HOUR));
+
+		// Events after the bulk appends are appended after the copied data and older events are skipped.
+		ArrayListEventStream strm = new ArrayListEventStream(2, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds, 0), new ScalarValue<Double>(0.0), 0, 0));
+		strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + HOURS*3600, 0), new ScalarValue<Double>((double) HOURS*EVENTS_PER_HOUR), 0, 0));
+		try(BasicContext context = new BasicContext()) {
+			destPlugin.appendData(context, pvName, strm);
+		}
+		assertTrue("Expecting one more event", retrieveEvents() == HOURS*EVENTS_PER_HOUR + 1);
+	}
+
+	@Test
+	public void testTransferFileChannel() throws Exception {
+		Path srcPath = testFolder.toPath().resolve("transfer_src");
+		Path destPath = testFolder.toPath().resolve("transfer_dest");
+		StringBuilder content = new StringBuilder();
+		for(int i = 0; i < 100000; i++) {
+			content.append(i).append('\n');
+		}
+		Files.write(srcPath, ("Header\n" + content).getBytes(StandardCharsets.UTF_8));
+		Files.write(destPath, "Existing\n".getBytes(StandardCharsets.UTF_8));
+		try(FileChannel srcChannel = FileChannel.open(srcPath, StandardOpenOption.READ); FileChannel destChannel = FileChannel.open(destPath, StandardOpenOption.APPEND)) {
+			srcChannel.position("Header\n".length());
+			long bytesTransferred = AppendDataStateData.transferFileChannel(srcChannel, destChannel);
+			assertTrue("Expecting everything after the header to be copied", bytesTransferred == content.length() && srcChannel.position() == srcChannel.size());
+		}
+		assertTrue("Expecting the data to be appended", new String(Files.readAllBytes(destPath), StandardCharsets.UTF_8).equals("Existing\n" + content));
+	}
+
+	private long retrieveEvents() throws Exception {
+		Timestamp start = TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + (HOURS+1)*3600, 0);
+		long eventCount = 0;
+		long previousValue = -1;
+		try(BasicContext context = new BasicContext()) {
+			for(Callable<EventStream> callable : destPlugin.getDataForPV(context, pvName, start, end)) {
+				try(EventStream strm = callable.call()) {
+					for(Event e : strm) {
+						long value = e.getSampleValue().getValue().longValue();
+						assertTrue("Value does not match time", value == (e.getEpochSeconds() - startOfYearEpochSeconds)/(3600/EVENTS_PER_HOUR));
+						assertTrue("Values out of order", value > previousValue);
+						previousValue = value;
+						eventCount++;
+					}
+				}
+			}
+		}
+		return eventCount;
+	}
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compact the hourly partitions of a PV from last year into a yearly partition and make sure we get the same data back.
+ * Then add a late partition and make sure it is merged into the yearly partition; and that leftovers from an interrupted compaction are cleaned up.
+ * We also check what readers see while the partitions replaced by a compaction are waiting to be deleted.
+ * @author mshankar
+ *
+ */
+public class PlainPBCompactorTest {
+	private static final int HOURS = 48;
+	private static final int EVENTS_PER_HOUR = 60;
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBCompactorTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PlainPBCompactorTest";
+	short lastYear = (short) (TimeUtils.getCurrentYear() - 1);
+	long startOfLastYearEpochSeconds = TimeUtils.getStartOfYearInSeconds(lastYear);
+	PlainPBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PlainPBCompactorTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_HOUR", configService);
+		appendEvents(0, HOURS*EVENTS_PER_HOUR);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	private void appendEvents(int start, int end) throws Exception {
+		ArrayListEventStream strm = new ArrayListEventStream(end - start, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, lastYear));
+		for(int i = start; i < end; i++) {
+			strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfLastYearEpochSeconds + i*(3600/EVENTS_PER_HOUR), 0), new ScalarValue<Double>((double)i), 0, 0));
+		}
+		try(BasicContext context = new BasicContext()) {
+			storagePlugin.appendData(context, pvName, strm);
+		}
+		// The compactor leaves recently modified partitions alone.
+		for(Path path : getPaths(PlainPBStoragePlugin.PB_EXTENSION)) {
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - 2*60*60*1000L));
+		}
+	}
+
+	private Path[] getPaths(String extension) throws Exception {
+		return PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), testFolder.getAbsolutePath(), pvName, extension, storagePlugin.getPartitionGranularity(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		assertTrue("Expecting a partition per hour", getPaths(PlainPBStoragePlugin.PB_EXTENSION).length == HOURS);
+		assertTrue("Expecting all the events before compaction", retrieveEvents() == HOURS*EVENTS_PER_HOUR);
+
+		PlainPBCompactor compactor = new PlainPBCompactor(Collections.singleton("PlainPBCompactorTest"), 10, 1024*1024, 1000, 256*1024*1024, 0, 0, 0);
+		int mergedPartitions = compactor.compactPV(pvName, storagePlugin);
+		Path[] paths = getPaths(PlainPBStoragePlugin.PB_EXTENSION);
+		assertTrue("Expecting one yearly partition; got " + paths.length + " partitions and " + mergedPartitions + " merges", mergedPartitions == 1 && paths.length == 1 && paths[0].getFileName().toString().endsWith(":" + lastYear + PlainPBStoragePlugin.PB_EXTENSION));
+		assertTrue("Expecting all the events after compaction", retrieveEvents() == HOURS*EVENTS_PER_HOUR);
+		assertTrue("Expecting nothing more to compact", compactor.compactPV(pvName, storagePlugin) == 0);
+
+		// A late partition is merged into the yearly partition once the PV has too many partitions.
+		appendEvents(HOURS*EVENTS_PER_HOUR + EVENTS_PER_HOUR, HOURS*EVENTS_PER_HOUR + 2*EVENTS_PER_HOUR);
+		assertTrue("Expecting the late partition", getPaths(PlainPBStoragePlugin.PB_EXTENSION).length == 2);
+		compactor = new PlainPBCompactor(Collections.singleton("PlainPBCompactorTest"), 1, 1024*1024, 1000, 256*1024*1024, 0, 0, 0);
+		mergedPartitions = compactor.compactPV(pvName, storagePlugin);
+		assertTrue("Expecting the late partition to be merged", mergedPartitions == 1 && getPaths(PlainPBStoragePlugin.PB_EXTENSION).length == 1);
+		assertTrue("Expecting all the events after merging the late partition", retrieveEvents() == (HOURS+1)*EVENTS_PER_HOUR);
+
+		// Simulate a crash after a merged partition was moved into place but before the partitions it replaces were deleted.
+		appendEvents((HOURS+4)*EVENTS_PER_HOUR, (HOURS+5)*EVENTS_PER_HOUR);
+		String yearlyName = getPaths(PlainPBStoragePlugin.PB_EXTENSION)[0].getFileName().toString();
+		Path latePath = null;
+		for(Path path : getPaths(PlainPBStoragePlugin.PB_EXTENSION)) {
+			if(!path.getFileName().toString().equals(yearlyName)) latePath = path;
+		}
+		Path yearlyPath = latePath.resolveSibling(yearlyName);
+		String baseName = yearlyName.substring(0, yearlyName.length() - PlainPBStoragePlugin.PB_EXTENSION.length());
+		Files.write(yearlyPath.resolveSibling(baseName + PlainPBCompactor.INTENT_EXTENSION), (yearlyName + "\n" + latePath.getFileName().toString() + "\n").getBytes(StandardCharsets.UTF_8));
+		// And a crash while writing a merged partition for January.
+		Path monthlyTempPath = PlainPBPathNameUtility.getFileName(testFolder.getAbsolutePath(), pvName, startOfLastYearEpochSeconds, PlainPBCompactor.TEMP_EXTENSION, PartitionGranularity.PARTITION_MONTH, false, new ArchPaths(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		Files.write(monthlyTempPath, "Partial".getBytes(StandardCharsets.UTF_8));
+
+		compactor.compactPV(pvName, storagePlugin);
+		// The merged partition had been moved into place; so deleting the partition it replaces is the usual deletion and only the temporary file counts as a recovery.
+		assertTrue("Expecting the interrupted compactions to be cleaned up " + compactor.getMetrics(), compactor.getMetrics().get("recoveredAfterCrash").equals("1"));
+		assertTrue("Expecting the replaced partition to be deleted", !Files.exists(latePath) && Files.exists(yearlyPath));
+		assertTrue("Expecting no leftovers", getPaths(PlainPBCompactor.INTENT_EXTENSION).length == 0 && getPaths(PlainPBCompactor.TEMP_EXTENSION).length == 0);
+		assertTrue("Expecting the events in the merged partition", retrieveEvents() == (HOURS+1)*EVENTS_PER_HOUR);
+	}
+
+	@Test
+	public void testReadersDuringCompaction() throws Exception {
+		PlainPBCompactor compactor = new PlainPBCompactor(Collections.singleton("PlainPBCompactorTest"), 10, 1024*1024, 1000, 256*1024*1024, 0, 0, 60*60*1000L);
+		try(BasicContext context = new BasicContext()) {
+			// A retrieval that lists the partitions before the compaction and reads them after.
+			List<Callable<EventStream>> listedBeforeCompaction = storagePlugin.getDataForPV(context, pvName, getStart(), getEnd());
+			assertTrue("Expecting one merged partition", compactor.compactPV(pvName, storagePlugin) == 1);
+			assertTrue("Expecting all the events for a retrieval that listed the partitions before the compaction", countEvents(listedBeforeCompaction) == HOURS*EVENTS_PER_HOUR);
+		}
+
+		// The replaced partitions are still around; but readers only see the merged partition.
+		assertTrue("Expecting the replaced partitions to be deleted later", getPaths(PlainPBStoragePlugin.PB_EXTENSION).length == HOURS + 1);
+		Path[] pathsWithData = PlainPBPathNameUtility.getPathsWithData(new ArchPaths(), testFolder.getAbsolutePath(), pvName, getStart(), getEnd(), PlainPBStoragePlugin.PB_EXTENSION, storagePlugin.getPartitionGranularity(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		assertTrue("Expecting only the merged partition; got " + pathsWithData.length, pathsWithData.length == 1);
+		PlainPBPartitionCatalog catalog = storagePlugin.getPartitionCatalog();
+		assertTrue("Expecting only the merged partition from the catalog", catalog == null || catalog.getPathsWithData(new ArchPaths(), pvName, getStart(), getEnd(), PlainPBStoragePlugin.PB_EXTENSION).length == 1);
+		assertTrue("Expecting the events once", retrieveEvents() == HOURS*EVENTS_PER_HOUR);
+		assertTrue("Expecting no compaction till the replaced partitions are deleted", compactor.compactPV(pvName, storagePlugin) == 0);
+
+		compactor = new PlainPBCompactor(Collections.singleton("PlainPBCompactorTest"), 10, 1024*1024, 1000, 256*1024*1024, 0, 0, 0);
+		compactor.compactPV(pvName, storagePlugin);
+		Path[] paths = getPaths(PlainPBStoragePlugin.PB_EXTENSION);
+		assertTrue("Expecting the replaced partitions to be deleted " + compactor.getMetrics(), paths.length == 1 && compactor.getMetrics().get("partitionsRemoved").equals(Integer.toString(HOURS)));
+		Path yearlyPath = paths[0];
+
+		// A late partition sorts after the yearly partition but the yearly partition has the later data for a time after the late partition.
+		addLatePartition(yearlyPath, (HOURS-10)*EVENTS_PER_HOUR);
+		Path latePath = null;
+		for(Path path : getPaths(PlainPBStoragePlugin.PB_EXTENSION)) {
+			if(!path.equals(yearlyPath)) latePath = path;
+		}
+		assertTrue("Expecting a late partition", latePath != null && latePath.getFileName().toString().compareTo(yearlyPath.getFileName().toString()) > 0);
+		Timestamp beforeLastHour = TimeUtils.convertFromEpochSeconds(startOfLastYearEpochSeconds + (HOURS-1)*3600, 0);
+		Path mostRecentPath = PlainPBPathNameUtility.getMostRecentPathBeforeTime(new ArchPaths(), testFolder.getAbsolutePath(), pvName, beforeLastHour, PlainPBStoragePlugin.PB_EXTENSION, storagePlugin.getPartitionGranularity(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		assertTrue("Expecting the yearly partition; got " + mostRecentPath, yearlyPath.equals(mostRecentPath));
+		assertTrue("Expecting the yearly partition from the catalog", catalog == null || yearlyPath.equals(catalog.getMostRecentPathBeforeTime(new ArchPaths(), pvName, beforeLastHour, PlainPBStoragePlugin.PB_EXTENSION)));
+
+		// And the late partition when it has the later data.
+		appendEvents((HOURS+2)*EVENTS_PER_HOUR, (HOURS+2)*EVENTS_PER_HOUR + 1);
+		Timestamp afterLatePartitions = TimeUtils.convertFromEpochSeconds(startOfLastYearEpochSeconds + (HOURS+5)*3600, 0);
+		Path previousPath = PlainPBPathNameUtility.getPreviousPartitionBeforeTime(new ArchPaths(), testFolder.getAbsolutePath(), pvName, afterLatePartitions, PlainPBStoragePlugin.PB_EXTENSION, storagePlugin.getPartitionGranularity(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		assertTrue("Expecting the last late partition; got " + previousPath, previousPath != null && !previousPath.equals(yearlyPath) && previousPath.getFileName().toString().compareTo(latePath.getFileName().toString()) > 0);
+
+		// The next compaction folds the late partitions into the yearly partition even though the PV does not have too many partitions.
+		assertTrue("Expecting the late partitions to be merged", compactor.compactPV(pvName, storagePlugin) == 1 && getPaths(PlainPBStoragePlugin.PB_EXTENSION).length == 1);
+		assertTrue("Expecting all the events after merging the late partitions", retrieveEvents() == HOURS*EVENTS_PER_HOUR + 1);
+	}
+
+	/**
+	 * The store does not take events older than the ones it already has; so we write the partition for an earlier hour in another folder and move it in.
+	 */
+	private void addLatePartition(Path yearlyPath, int eventNum) throws Exception {
+		File lateFolder = new File(testFolder, "late");
+		PlainPBStoragePlugin latePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PlainPBCompactorTestLate&rootFolder=" + lateFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_HOUR", configService);
+		ArrayListEventStream strm = new ArrayListEventStream(1, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, lastYear));
+		strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfLastYearEpochSeconds + eventNum*(3600/EVENTS_PER_HOUR), 0), new ScalarValue<Double>((double)eventNum), 0, 0));
+		try(BasicContext context = new BasicContext()) {
+			latePlugin.appendData(context, pvName, strm);
+		}
+		for(Path path : PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), lateFolder.getAbsolutePath(), pvName, PlainPBStoragePlugin.PB_EXTENSION, latePlugin.getPartitionGranularity(), latePlugin.getCompressionMode(), configService.getPVNameToKeyConverter())) {
+			Path latePath = Files.move(path, yearlyPath.resolveSibling(path.getFileName()));
+			Files.setLastModifiedTime(latePath, FileTime.fromMillis(System.currentTimeMillis() - 2*60*60*1000L));
+		}
+	}
+
+	private Timestamp getStart() {
+		return TimeUtils.convertFromEpochSeconds(startOfLastYearEpochSeconds, 0);
+	}
+
+	private Timestamp getEnd() {
+		return TimeUtils.convertFromEpochSeconds(startOfLastYearEpochSeconds + (HOURS+10)*3600, 0);
+	}
+
+	/**
+	 * Retrieve all the events and check that they are what we wrote and in order.
+	 * @return The number of events
+	 */
+	private long retrieveEvents() throws Exception {
+		try(BasicContext context = new BasicContext()) {
+			return countEvents(storagePlugin.getDataForPV(context, pvName, getStart(), getEnd()));
+		}
+	}
+
+	private long countEvents(List<Callable<EventStream>> callables) throws Exception {
+		long eventCount = 0;
+		long previousValue = -1;
+		for(Callable<EventStream> callable : callables) {
+			try(EventStream strm = callable.call()) {
+				for(Event e : strm) {
+					long value = e.getSampleValue().getValue().longValue();
+					assertTrue("Value does not match time", value == (e.getEpochSeconds() - startOfLastYearEpochSeconds)/(3600/EVENTS_PER_HOUR));
+					assertTrue("Values out of order", value > previousValue);
+					previousValue = value;
+					eventCount++;
+				}
+			}
+		}
+		return eventCount;
+	}
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Point in time lookups should return the same events as a scan of all the data; including when the time falls into gaps between partitions.
+ * @author mshankar
+ *
+ */
+public class PlainPBEventsAroundTimeTest {
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBEventsAroundTimeTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PlainPBEventsAroundTimeTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	PlainPBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PlainPBEventsAroundTimeTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_HOUR", configService);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testEventsAroundTime() throws Exception {
+		long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+		List<Long> eventSeconds = new ArrayList<Long>();
+		ArrayListEventStream strm = new ArrayListEventStream(1000, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int hour = 0; hour < 24; hour++) {
+			// Leave a few hours with no data at all; and a few with a single event.
+			if(hour % 5 == 2) continue;
+			int eventsInHour = (hour % 7 == 3) ? 1 : 60;
+			for(int i = 0; i < eventsInHour; i++) {
+				long second = startOfYearEpochSeconds + hour*3600 + 300 + i*50;
+				eventSeconds.add(second);
+				strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(second, 0), new ScalarValue<Double>((double) second), 0, 0));
+			}
+		}
+		try(BasicContext context = new BasicContext()) {
+			storagePlugin.appendData(context, pvName, strm);
+		}
+
+		try(BasicContext context = new BasicContext()) {
+			for(long second = startOfYearEpochSeconds - 600; second < startOfYearEpochSeconds + 25*3600; second += 331) {
+				Timestamp atTime = TimeUtils.convertFromEpochSeconds(second, 0);
+				Long expectedBefore = null;
+				Long expectedAfter = null;
+				for(Long eventSecond : eventSeconds) {
+					if(eventSecond <= second) { expectedBefore = eventSecond; } else { expectedAfter = eventSecond; break; }
+				}
+				Event[] around = storagePlugin.getEventsAroundTime(context, pvName, atTime, true, true);
+				assertSameEvent("before " + TimeUtils.convertToISO8601String(atTime), expectedBefore, around[0]);
+				assertSameEvent("after " + TimeUtils.convertToISO8601String(atTime), expectedAfter, around[1]);
+
+				// Without looking in the other partitions, we only get events from the partition containing the time.
+				Event[] inPartition = storagePlugin.getEventsAroundTime(context, pvName, atTime, false, false);
+				long hourStart = second - ((second - startOfYearEpochSeconds) % 3600 + 3600) % 3600;
+				assertSameEvent("partition before " + TimeUtils.convertToISO8601String(atTime), (expectedBefore != null && expectedBefore >= hourStart) ? expectedBefore : null, inPartition[0]);
+				assertSameEvent("partition after " + TimeUtils.convertToISO8601String(atTime), (expectedAfter != null && expectedAfter < hourStart + 3600) ? expectedAfter : null, inPartition[1]);
+			}
+
+			// An event exactly at the time is the value at that time.
+			Event[] exact = storagePlugin.getEventsAroundTime(context, pvName, TimeUtils.convertFromEpochSeconds(eventSeconds.get(10), 0), true, true);
+			assertSameEvent("exact", eventSeconds.get(10), exact[0]);
+			assertSameEvent("exact", eventSeconds.get(11), exact[1]);
+		}
+	}
+
+	private static void assertSameEvent(String msg, Long expectedSecond, Event event) {
+		if(expectedSecond == null) {
+			assertTrue("Expecting no event " + msg + " got " + (event == null ? "null" : TimeUtils.convertToISO8601String(event.getEventTimeStamp())), event == null);
+		} else {
+			assertTrue("Expecting " + TimeUtils.convertToISO8601String(expectedSecond) + " " + msg + " got " + (event == null ? "null" : TimeUtils.convertToISO8601String(event.getEventTimeStamp())),
+					event != null && event.getEpochSeconds() == expectedSecond && event.getSampleValue().getValue().longValue() == expectedSecond);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Make sure the last known event index is used for slowly changing PVs, picks up changes made behind its back and survives a restart.
+ * @author mshankar
+ *
+ */
+public class PlainPBLastKnownEventIndexTest {
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBLastKnownEventIndexTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PlainPBLastKnownEventIndexTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	PlainPBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PlainPBLastKnownEventIndexTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_HOUR", configService);
+		storagePlugin.getLastKnownEventIndex().invalidate(pvName);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testLastKnownEventIndex() throws Exception {
+		PlainPBLastKnownEventIndex index = storagePlugin.getLastKnownEventIndex();
+		long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+		ArrayListEventStream strm = new ArrayListEventStream(100, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int i = 0; i < 100; i++) {
+			strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*100, 0), new ScalarValue<Double>((double)i), 0, 0));
+		}
+		try(BasicContext context = new BasicContext()) {
+			storagePlugin.appendData(context, pvName, strm);
+		}
+		long lastEventSecond = startOfYearEpochSeconds + 99*100;
+
+		// Let the folder's modification time settle so that the index trusts its entries.
+		Thread.sleep(PlainPBPartitionCatalog.RACY_INTERVAL_MILLIS + 100);
+		try(BasicContext context = new BasicContext()) {
+			assertTrue(storagePlugin.getLastKnownEvent(context, pvName).getEpochSeconds() == lastEventSecond);
+			long hitsBefore = Long.parseLong(index.getMetrics().get("hits"));
+			assertTrue(storagePlugin.getLastKnownEvent(context, pvName).getEpochSeconds() == lastEventSecond);
+			assertTrue("Expecting a hit " + index.getMetrics(), Long.parseLong(index.getMetrics().get("hits")) == hitsBefore + 1);
+
+			// A plot of the PV a day later should get the last known event from the index.
+			List<Callable<EventStream>> callables = storagePlugin.getDataForPV(context, pvName, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + 86400, 0), TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + 2*86400, 0));
+			assertTrue("Expecting a hit " + index.getMetrics(), Long.parseLong(index.getMetrics().get("hits")) == hitsBefore + 2);
+			int eventCount = 0;
+			for(Callable<EventStream> callable : callables) {
+				try(EventStream eventStream = callable.call()) {
+					for(Event e : eventStream) {
+						assertTrue(e.getEpochSeconds() == lastEventSecond && e.getSampleValue().getValue().doubleValue() == 99.0);
+						eventCount++;
+					}
+				}
+			}
+			assertTrue("Expecting only the last known event; got " + eventCount, eventCount == 1);
+		}
+
+		// Append an event behind the index's back; for example, from another process.
+		Path path = PlainPBPathNameUtility.getPathNameForTime(testFolder.getAbsolutePath(), pvName, lastEventSecond, storagePlugin.getPartitionGranularity(), new ArchPaths(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		POJOEvent extraEvent = new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(lastEventSecond + 10, 0), new ScalarValue<Double>(100.0), 0, 0);
+		ByteArray val = extraEvent.getRawForm();
+		try(OutputStream os = Files.newOutputStream(path, StandardOpenOption.APPEND)) {
+			os.write(val.data, val.off, val.len);
+			os.write(LineEscaper.NEWLINE_CHAR);
+		}
+		try(BasicContext context = new BasicContext()) {
+			assertTrue("The index should not return a stale event", storagePlugin.getLastKnownEvent(context, pvName).getEpochSeconds() == lastEventSecond + 10);
+			assertTrue(Long.parseLong(index.getMetrics().get("staleEntries")) >= 1);
+		}
+
+		// Persist and load into a new index for the same store
+		Path persistFile = Files.createTempFile("PlainPBLastKnownEventIndexTest", ".json");
+		try {
+			PlainPBLastKnownEventIndex first = new PlainPBLastKnownEventIndex(testFolder.getAbsolutePath(), persistFile, 600);
+			Thread.sleep(PlainPBPartitionCatalog.RACY_INTERVAL_MILLIS + 100);
+			first.lastEventFound(pvName, path, Files.readAttributes(path, BasicFileAttributes.class), Files.getLastModifiedTime(path.getParent()).toMillis(), extraEvent, currentYear);
+			first.persist();
+			PlainPBLastKnownEventIndex second = new PlainPBLastKnownEventIndex(testFolder.getAbsolutePath(), persistFile, 600);
+			second.load();
+			Event loaded = second.getLastKnownEvent(pvName);
+			assertTrue("Expecting the persisted last known event", loaded != null && loaded.getEpochSeconds() == lastEventSecond + 10 && loaded.getSampleValue().getValue().doubleValue() == 100.0);
+		} finally {
+			Files.deleteIfExists(persistFile);
+		}
+	}
+
+	@Test
+	public void testETLCommitUpdatesIndex() throws Exception {
+		PlainPBLastKnownEventIndex index = storagePlugin.getLastKnownEventIndex();
+		storagePlugin.setBackupFilesBeforeETL(true);
+		long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+		long lastEventSecond = 0;
+		for(int run = 0; run < 3; run++) {
+			ArrayListEventStream strm = new ArrayListEventStream(100, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+			for(int i = run*100; i < (run+1)*100; i++) {
+				lastEventSecond = startOfYearEpochSeconds + i*60;
+				strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(lastEventSecond, 0), new ScalarValue<Double>((double)i), 0, 0));
+			}
+			try(ETLContext context = new ETLContext()) {
+				storagePlugin.prepareForNewPartition(pvName, strm.get(0), ArchDBRTypes.DBR_SCALAR_DOUBLE, context);
+				storagePlugin.appendToETLAppendData(pvName, strm, context);
+				long missesBefore = Long.parseLong(index.getMetrics().get("misses"));
+				storagePlugin.commitETLAppendData(pvName, context);
+				assertTrue("The commit should not look for the last event in the partitions " + index.getMetrics(), Long.parseLong(index.getMetrics().get("misses")) == missesBefore);
+			}
+		}
+
+		// Let the folder's modification time settle so that the index uses the event we wrote.
+		Thread.sleep(PlainPBPartitionCatalog.RACY_INTERVAL_MILLIS + 100);
+		long hitsBefore = Long.parseLong(index.getMetrics().get("hits"));
+		try(BasicContext context = new BasicContext()) {
+			Event lastEvent = storagePlugin.getLastKnownEvent(context, pvName);
+			assertTrue("Expecting the last event we appended", lastEvent != null && lastEvent.getEpochSeconds() == lastEventSecond);
+		}
+		assertTrue("Expecting a hit " + index.getMetrics(), Long.parseLong(index.getMetrics().get("hits")) == hitsBefore + 1);
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin.CompressionMode;
+
+/**
+ * Make sure the partition catalog returns the same results as the directory listing in PlainPBPathNameUtility and that it picks up changes made behind its back.
+ * @author mshankar
+ *
+ */
+public class PlainPBPartitionCatalogTest {
+	String rootFolderStr = ConfigServiceForTests.getDefaultPBTestFolder() + "/" + "PlainPBPartitionCatalog/";
+	private ConfigService configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		File rootFolder = new File(rootFolderStr);
+		if(rootFolder.exists()) {
+			FileUtils.deleteDirectory(rootFolder);
+		}
+		rootFolder.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(new File(rootFolderStr));
+	}
+
+	@Test
+	public void testCatalogMatchesDirectoryListing() throws Exception {
+		long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+		String pvName = "First:Second:Third:CatalogHour_1";
+		PartitionGranularity partitionHour = PartitionGranularity.PARTITION_HOUR;
+		for(int hours = 0; hours < 48; hours++) {
+			mkPath(PlainPBPathNameUtility.getPathNameForTime(rootFolderStr, pvName, (startOfYearEpochSeconds + hours*3600), partitionHour, new ArchPaths(), CompressionMode.NONE, configService.getPVNameToKeyConverter()));
+		}
+
+		PlainPBPartitionCatalog catalog = new PlainPBPartitionCatalog(rootFolderStr, partitionHour, configService.getPVNameToKeyConverter(), 1000, 600);
+		try(ArchPaths paths = new ArchPaths()) {
+			for(int startHour = 0; startHour < 50; startHour += 7) {
+				Timestamp start = TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + startHour*3600, 0);
+				Timestamp end = TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + (startHour+5)*3600 - 1, 0);
+				assertSamePaths(PlainPBPathNameUtility.getPathsWithData(paths, rootFolderStr, pvName, start, end, ".pb", partitionHour, CompressionMode.NONE, configService.getPVNameToKeyConverter()),
+						catalog.getPathsWithData(paths, pvName, start, end, ".pb"));
+				assertSamePaths(PlainPBPathNameUtility.getPathsBeforeCurrentPartition(paths, rootFolderStr, pvName, start, ".pb", partitionHour, CompressionMode.NONE, configService.getPVNameToKeyConverter()),
+						catalog.getPathsBeforeCurrentPartition(paths, pvName, start, ".pb"));
+				assertSamePath(PlainPBPathNameUtility.getMostRecentPathBeforeTime(paths, rootFolderStr, pvName, start, ".pb", partitionHour, CompressionMode.NONE, configService.getPVNameToKeyConverter()),
+						catalog.getMostRecentPathBeforeTime(paths, pvName, start, ".pb"));
+				assertSamePath(PlainPBPathNameUtility.getPreviousPartitionBeforeTime(paths, rootFolderStr, pvName, start, ".pb", partitionHour, CompressionMode.NONE, configService.getPVNameToKeyConverter()),
+						catalog.getPreviousPartitionBeforeTime(paths, pvName, start, ".pb"));
+			}
+			assertSamePaths(PlainPBPathNameUtility.getAllPathsForPV(paths, rootFolderStr, pvName, ".pb", partitionHour, CompressionMode.NONE, configService.getPVNameToKeyConverter()),
+					catalog.getAllPathsForPV(paths, pvName, ".pb"));
+			assertTrue("Expecting no paths for a PV that does not exist", catalog.getAllPathsForPV(paths, "First:Second:Third:NonExistent", ".pb").length == 0);
+		}
+	}
+
+	@Test
+	public void testCatalogPicksUpChanges() throws Exception {
+		long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+		String pvName = "First:Second:Third:CatalogDay_1";
+		PartitionGranularity partitionDay = PartitionGranularity.PARTITION_DAY;
+		for(int days = 0; days < 10; days++) {
+			mkPath(PlainPBPathNameUtility.getPathNameForTime(rootFolderStr, pvName, (startOfYearEpochSeconds + days*86400), partitionDay, new ArchPaths(), CompressionMode.NONE, configService.getPVNameToKeyConverter()));
+		}
+
+		PlainPBPartitionCatalog catalog = new PlainPBPartitionCatalog(rootFolderStr, partitionDay, configService.getPVNameToKeyConverter(), 1000, 600);
+		try(ArchPaths paths = new ArchPaths()) {
+			assertTrue(catalog.getAllPathsForPV(paths, pvName, ".pb").length == 10);
+			// Let the folder's modification time settle so that the catalog trusts the listing.
+			Thread.sleep(PlainPBPartitionCatalog.RACY_INTERVAL_MILLIS + 100);
+			assertTrue(catalog.getAllPathsForPV(paths, pvName, ".pb").length == 10);
+			assertTrue(catalog.getAllPathsForPV(paths, pvName, ".pb").length == 10);
+			assertTrue("Expecting cache hits " + catalog.getMetrics(), Long.parseLong(catalog.getMetrics().get("hits")) >= 1);
+
+			// Add a file behind the catalog's back
+			Path newPath = PlainPBPathNameUtility.getPathNameForTime(rootFolderStr, pvName, (startOfYearEpochSeconds + 20*86400), partitionDay, paths, CompressionMode.NONE, configService.getPVNameToKeyConverter());
+			mkPath(newPath);
+			Path[] afterAdd = catalog.getAllPathsForPV(paths, pvName, ".pb");
+			assertTrue("Expecting 11 paths, got " + afterAdd.length, afterAdd.length == 11);
+
+			// Delete a file and let the catalog know; once the folder's modification time settles, we should not list the folder again.
+			Thread.sleep(PlainPBPartitionCatalog.RACY_INTERVAL_MILLIS + 100);
+			assertTrue(catalog.getAllPathsForPV(paths, pvName, ".pb").length == 11);
+			Files.delete(newPath);
+			catalog.partitionDeleted(pvName, ".pb", newPath);
+			Thread.sleep(PlainPBPartitionCatalog.RACY_INTERVAL_MILLIS + 100);
+			long listingsBefore = Long.parseLong(catalog.getMetrics().get("listings"));
+			assertTrue(catalog.getAllPathsForPV(paths, pvName, ".pb").length == 10);
+			assertTrue("Expecting no listings after our own change " + catalog.getMetrics(), Long.parseLong(catalog.getMetrics().get("listings")) == listingsBefore);
+
+			// Delete a file behind the catalog's back
+			Path[] allPaths = catalog.getAllPathsForPV(paths, pvName, ".pb");
+			Files.delete(allPaths[0]);
+			assertTrue(catalog.getAllPathsForPV(paths, pvName, ".pb").length == 9);
+			assertSamePaths(PlainPBPathNameUtility.getAllPathsForPV(paths, rootFolderStr, pvName, ".pb", partitionDay, CompressionMode.NONE, configService.getPVNameToKeyConverter()),
+					catalog.getAllPathsForPV(paths, pvName, ".pb"));
+		}
+	}
+
+	private static void assertSamePaths(Path[] expected, Path[] actual) {
+		assertTrue("Expected " + expected.length + " paths, got " + actual.length, expected.length == actual.length);
+		for(int i = 0; i < expected.length; i++) {
+			assertSamePath(expected[i], actual[i]);
+		}
+	}
+
+	private static void assertSamePath(Path expected, Path actual) {
+		if(expected == null) {
+			assertTrue("Expected null, got " + actual, actual == null);
+			return;
+		}
+		assertTrue("Expected " + expected + " got " + actual, actual != null && expected.toAbsolutePath().equals(actual.toAbsolutePath()));
+	}
+
+	private void mkPath(Path nf) throws IOException {
+		if(!Files.exists(nf)) {
+			Files.createDirectories(nf.getParent());
+			Files.createFile(nf);
+		}
+	}
+}
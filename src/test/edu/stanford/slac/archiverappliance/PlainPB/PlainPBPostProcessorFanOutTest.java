@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Generate the cached post processor data in several ETL runs in one pass over the raw partitions and one post processor at a time.
+ * The cached data should be the same; the single pass should decode each partition once per run.
+ * @author mshankar
+ *
+ */
+public class PlainPBPostProcessorFanOutTest {
+	private static final String[] POST_PROCESSORS = new String[] { "mean_600", "max_600", "firstSample_600", "count_600" };
+	private static final int RUNS = 6;
+	private static final int EVENTS_PER_RUN = 86400/10/3;
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBPostProcessorFanOutTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PlainPBPostProcessorFanOutTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+	PlainPBStoragePlugin fanOutPlugin;
+	PlainPBStoragePlugin sequentialPlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		StringBuilder pps = new StringBuilder();
+		for(String pp : POST_PROCESSORS) {
+			pps.append("&pp=").append(pp);
+		}
+		fanOutPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=FanOut&rootFolder=" + testFolder.getAbsolutePath() + "/fanout&partitionGranularity=PARTITION_DAY" + pps, configService);
+		sequentialPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=Sequential&rootFolder=" + testFolder.getAbsolutePath() + "/sequential&partitionGranularity=PARTITION_DAY&ppFanOut=false" + pps, configService);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testFanOut() throws Exception {
+		for(int run = 0; run < RUNS; run++) {
+			ArrayListEventStream strm = new ArrayListEventStream(EVENTS_PER_RUN, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+			for(int i = run*EVENTS_PER_RUN; i < (run+1)*EVENTS_PER_RUN; i++) {
+				strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*10, 0), new ScalarValue<Double>(Math.sin(i/100.0)), 0, 0));
+			}
+			long decodedBefore = Long.parseLong(PlainPBPostProcessorFanOut.getMetrics().get("partitionsDecoded"));
+			for(PlainPBStoragePlugin plugin : new PlainPBStoragePlugin[] { fanOutPlugin, sequentialPlugin }) {
+				try(BasicContext context = new BasicContext()) {
+					plugin.appendData(context, pvName, strm);
+				}
+				try(ETLContext context = new ETLContext()) {
+					plugin.runPostProcessors(pvName, ArchDBRTypes.DBR_SCALAR_DOUBLE, context);
+				}
+				// Age the files so that the partition changed in the next run is newer than its cached data without waiting.
+				for(Path rawPath : getPaths(plugin, PlainPBStoragePlugin.PB_EXTENSION)) {
+					Files.setLastModifiedTime(rawPath, FileTime.fromMillis(System.currentTimeMillis() - 2*3600*1000L));
+				}
+				for(String pp : POST_PROCESSORS) {
+					for(Path ppPath : getPaths(plugin, "." + pp)) {
+						Files.setLastModifiedTime(ppPath, FileTime.fromMillis(System.currentTimeMillis() - 3600*1000L));
+					}
+				}
+			}
+			long decoded = Long.parseLong(PlainPBPostProcessorFanOut.getMetrics().get("partitionsDecoded")) - decodedBefore;
+			assertTrue("Expecting the changed partition to be decoded once in run " + run + "; decoded " + decoded, decoded == 1);
+		}
+
+		for(String pp : POST_PROCESSORS) {
+			Path[] fanOutPaths = getPaths(fanOutPlugin, "." + pp);
+			Path[] sequentialPaths = getPaths(sequentialPlugin, "." + pp);
+			assertTrue("Expecting a partition per day for " + pp + "; got " + fanOutPaths.length, fanOutPaths.length == RUNS/3 && sequentialPaths.length == RUNS/3);
+			for(int i = 0; i < fanOutPaths.length; i++) {
+				assertTrue("Expecting the same file name for " + pp, fanOutPaths[i].getFileName().toString().equals(sequentialPaths[i].getFileName().toString()));
+				byte[] fanOutBytes = Files.readAllBytes(fanOutPaths[i]);
+				assertTrue("Expecting cached data for " + pp, fanOutBytes.length > 100);
+				assertTrue("Cached data for " + pp + " in " + fanOutPaths[i] + " is different", Arrays.equals(fanOutBytes, Files.readAllBytes(sequentialPaths[i])));
+			}
+		}
+	}
+
+	private Path[] getPaths(PlainPBStoragePlugin plugin, String extension) throws Exception {
+		Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), plugin.getRootFolder(), pvName, extension, plugin.getPartitionGranularity(), plugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		Arrays.sort(paths);
+		return paths;
+	}
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Retrieve data spanning many partitions with the prefetcher and make sure we get the same data as without it.
+ * @author mshankar
+ *
+ */
+public class PlainPBPrefetcherTest {
+	private static final int HOURS = 12;
+	private static final int EVENTS_PER_HOUR = 360;
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBPrefetcherTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PlainPBPrefetcherTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+	PlainPBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PlainPBPrefetcherTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_HOUR", configService);
+		ArrayListEventStream strm = new ArrayListEventStream(HOURS*EVENTS_PER_HOUR, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int i = 0; i < HOURS*EVENTS_PER_HOUR; i++) {
+			strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*(3600/EVENTS_PER_HOUR), 0), new ScalarValue<Double>((double)i), 0, 0));
+		}
+		try(BasicContext context = new BasicContext()) {
+			storagePlugin.appendData(context, pvName, strm);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testRetrievalWithPrefetch() throws Exception {
+		PlainPBPrefetcher prefetcher = PlainPBPrefetcher.getPrefetcher(configService);
+		assertTrue("Prefetching should be on by default", prefetcher != null);
+		long hitsBefore = Long.parseLong(prefetcher.getMetrics().get("prefetchHits"));
+		Timestamp start = TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + 1800, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + (HOURS-1)*3600 + 1800, 0);
+		try(BasicContext context = new BasicContext()) {
+			List<Callable<EventStream>> callables = storagePlugin.getDataForPV(context, pvName, start, end);
+			List<Long> seconds = new ArrayList<Long>();
+			for(Callable<EventStream> callable : callables) {
+				try(EventStream eventStream = callable.call()) {
+					for(Event e : eventStream) {
+						long expectedValue = (e.getEpochSeconds() - startOfYearEpochSeconds)/(3600/EVENTS_PER_HOUR);
+						assertTrue("Value does not match time", e.getSampleValue().getValue().longValue() == expectedValue);
+						if(!e.getEventTimeStamp().before(start) && e.getEventTimeStamp().before(end)) seconds.add(e.getEpochSeconds());
+					}
+				}
+			}
+			int expectedCount = (HOURS-1)*EVENTS_PER_HOUR;
+			assertTrue("Expecting " + expectedCount + " events; got " + seconds.size(), seconds.size() == expectedCount);
+			for(int i = 1; i < seconds.size(); i++) {
+				assertTrue("Events are out of order at " + i, seconds.get(i) > seconds.get(i-1));
+			}
+		}
+		assertTrue("Expecting the partitions to be prefetched " + prefetcher.getMetrics(), Long.parseLong(prefetcher.getMetrics().get("prefetchHits")) >= hitsBefore + HOURS - 2);
+	}
+
+	@Test
+	public void testPrefetchBudget() throws Exception {
+		// A budget that is too small for a partition; we should skip the prefetch and read the partitions as usual.
+		PlainPBPrefetcher prefetcher = new PlainPBPrefetcher(2, 2, 1024, 1024);
+		Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), testFolder.getAbsolutePath(), pvName, PlainPBStoragePlugin.PB_EXTENSION, storagePlugin.getPartitionGranularity(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		assertTrue("Expecting a partition per hour; got " + paths.length, paths.length == HOURS);
+		List<FileBackedPBEventStream> streams = new ArrayList<FileBackedPBEventStream>();
+		for(Path path : paths) {
+			streams.add(new FileBackedPBEventStream(pvName, path, ArchDBRTypes.DBR_SCALAR_DOUBLE));
+		}
+		prefetcher.prefetch(streams);
+		long eventCount = 0;
+		for(FileBackedPBEventStream stream : streams) {
+			try(EventStream eventStream = stream) {
+				for(Event e : eventStream) {
+					assertTrue(e.getSampleValue().getValue().longValue() == eventCount);
+					eventCount++;
+				}
+			}
+		}
+		assertTrue("Expecting " + HOURS*EVENTS_PER_HOUR + " events; got " + eventCount, eventCount == HOURS*EVENTS_PER_HOUR);
+		assertTrue("Expecting prefetches to be skipped " + prefetcher.getMetrics(), Long.parseLong(prefetcher.getMetrics().get("skippedForBudget")) > 0);
+		assertTrue("Expecting the budget to be released " + prefetcher.getMetrics(), Long.parseLong(prefetcher.getMetrics().get("bytesInUse")) == 0);
+	}
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Read partitions a few times and make sure they are copied into the read cache, that we read the same events from the copies and that stale copies are not used.
+ * Also check that the copies are evicted when we go over our budget.
+ * @author mshankar
+ *
+ */
+public class PlainPBReadCacheTest {
+	private static final int EVENTS = 10000;
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBReadCacheTest");
+	File cacheFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBReadCacheTest_cache");
+	String pvNamePrefix = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PlainPBReadCacheTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+	PlainPBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PlainPBReadCacheTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_YEAR", configService);
+		appendEvents(pvNamePrefix + 1, 0, EVENTS);
+		appendEvents(pvNamePrefix + 2, 0, EVENTS);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+		FileUtils.deleteDirectory(cacheFolder);
+	}
+
+	private void appendEvents(String pvName, int start, int end) throws Exception {
+		ArrayListEventStream strm = new ArrayListEventStream(end - start, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int i = start; i < end; i++) {
+			strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*10, 0), new ScalarValue<Double>((double)i), 0, 0));
+		}
+		try(BasicContext context = new BasicContext()) {
+			storagePlugin.appendData(context, pvName, strm);
+		}
+		// The read cache does not copy partitions that are still being written to.
+		Files.setLastModifiedTime(getPath(pvName), FileTime.fromMillis(System.currentTimeMillis() - 2*60*60*1000L));
+	}
+
+	private Path getPath(String pvName) throws Exception {
+		Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), testFolder.getAbsolutePath(), pvName, PlainPBStoragePlugin.PB_EXTENSION, storagePlugin.getPartitionGranularity(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		assertTrue("Expecting one partition for " + pvName, paths.length == 1);
+		return paths[0];
+	}
+
+	@Test
+	public void testReadCache() throws Exception {
+		Path path1 = getPath(pvNamePrefix + 1);
+		Path path2 = getPath(pvNamePrefix + 2);
+		long size = Files.size(path1);
+		PlainPBReadCache readCache = new PlainPBReadCache(cacheFolder.toPath(), new HashSet<String>(), size + size/2, size*4, 2, 60*60*1000L, 1);
+
+		assertTrue("The first read should use the partition", readCache.getPathForRead(path1).equals(path1));
+		assertTrue("The second read should use the partition and copy it in the background", readCache.getPathForRead(path1).equals(path1));
+		for(int i = 0; i < 100 && !readCache.getMetrics().get("copiesMade").equals("1"); i++) {
+			Thread.sleep(100);
+		}
+		Path readPath = readCache.getPathForRead(path1);
+		assertTrue("Expecting the third read to use the copy " + readCache.getMetrics(), !readPath.equals(path1) && readPath.startsWith(cacheFolder.toPath()) && readCache.getMetrics().get("hits").equals("1"));
+		assertTrue("Expecting all the events from the copy", readEvents(pvNamePrefix + 1, path1, readPath) == EVENTS);
+
+		// A copy of a partition that has changed is not used.
+		appendEvents(pvNamePrefix + 1, EVENTS, EVENTS + 100);
+		assertTrue("Expecting the changed partition to be read directly", readCache.getPathForRead(path1).equals(path1));
+		assertTrue("Expecting the copy to be discarded " + readCache.getMetrics(), readCache.getMetrics().get("staleCopies").equals("1") && readCache.getMetrics().get("cachedPartitions").equals("0") && !Files.exists(readPath));
+
+		// We only have room for one copy; so copying the second partition evicts the first.
+		readCache.copyPartition(path1, path1.toAbsolutePath().toString());
+		readCache.copyPartition(path2, path2.toAbsolutePath().toString());
+		assertTrue("Expecting the first copy to be evicted " + readCache.getMetrics(), readCache.getMetrics().get("evictions").equals("1") && readCache.getMetrics().get("cachedPartitions").equals("1"));
+		assertTrue("Expecting the first partition to be read directly", readCache.getPathForRead(path1).equals(path1));
+		readPath = readCache.getPathForRead(path2);
+		assertTrue("Expecting the second partition to be read from the copy", !readPath.equals(path2));
+		assertTrue("Expecting all the events from the copy of the second partition", readEvents(pvNamePrefix + 2, path2, readPath) == EVENTS);
+
+		readCache.invalidate(path2);
+		assertTrue("Expecting the copy to be dropped when the partition changes " + readCache.getMetrics(), readCache.getMetrics().get("invalidations").equals("1") && readCache.getMetrics().get("bytesCached").equals("0") && !Files.exists(readPath));
+	}
+
+	/**
+	 * Read the events of a partition from the copy and check that they are what we wrote.
+	 * @return The number of events
+	 */
+	private long readEvents(String pvName, Path path, Path readPath) throws Exception {
+		long eventCount = 0;
+		try(FileBackedPBEventStream strm = new FileBackedPBEventStream(pvName, path, readPath, ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds, 0), TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + EVENTS*10, 0), false)) {
+			for(Event e : strm) {
+				long value = e.getSampleValue().getValue().longValue();
+				assertTrue("Value does not match time", value == (e.getEpochSeconds() - startOfYearEpochSeconds)/10);
+				assertTrue("Events out of order", value == eventCount);
+				eventCount++;
+			}
+		}
+		return eventCount;
+	}
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.etl.ETLInfo;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Make sure the storage accounting matches a walk of the PV's partitions as we append and delete partitions; and that the scrub and persistence work.
+ * @author mshankar
+ *
+ */
+public class PlainPBStorageAccountingTest {
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBStorageAccountingTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PlainPBStorageAccountingTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	PlainPBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PlainPBStorageAccountingTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_HOUR", configService);
+		// The accounting is shared across tests; start afresh.
+		storagePlugin.getStorageAccounting().invalidate(pvName);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testAccountingMatchesWalk() throws Exception {
+		PlainPBStorageAccounting accounting = storagePlugin.getStorageAccounting();
+		assertTrue("Expecting no space for a PV with no data", storagePlugin.spaceConsumedByPV(pvName) == 0);
+		long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+		int totalEvents = 0;
+		for(int batch = 0; batch < 10; batch++) {
+			ArrayListEventStream strm = new ArrayListEventStream(100, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+			for(int i = 0; i < 100; i++) {
+				// Each batch spans about half an hour; so we cross partitions within a batch.
+				int second = batch*1800 + i*18;
+				strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + second, i), new ScalarValue<Double>((double)second), 0, 0));
+				totalEvents++;
+			}
+			try(BasicContext context = new BasicContext()) {
+				storagePlugin.appendData(context, pvName, strm);
+			}
+			assertTrue("After batch " + batch + " accounting has " + storagePlugin.spaceConsumedByPV(pvName) + " and the disk has " + storagePlugin.walkSpaceConsumedByPV(pvName),
+					storagePlugin.spaceConsumedByPV(pvName) == storagePlugin.walkSpaceConsumedByPV(pvName));
+		}
+		// The estimate includes the headers of the partitions; so this is approximate.
+		assertTrue("Estimated events " + storagePlugin.estimatedEventsForPV(pvName), Math.abs(storagePlugin.estimatedEventsForPV(pvName) - totalEvents) < totalEvents/20);
+		long walksBefore = Long.parseLong(accounting.getMetrics().get("walks"));
+
+		// Delete the older partitions using ETL
+		try(ETLContext etlContext = new ETLContext()) {
+			List<ETLInfo> etlInfos = storagePlugin.getETLStreams(pvName, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + 4*3600, 0), etlContext);
+			assertTrue("Expecting some partitions for ETL", etlInfos != null && etlInfos.size() > 0);
+			for(ETLInfo etlInfo : etlInfos) {
+				storagePlugin.markForDeletion(etlInfo, etlContext);
+			}
+		}
+		long afterDeletes = storagePlugin.spaceConsumedByPV(pvName);
+		assertTrue("After deletes accounting has " + afterDeletes + " and the disk has " + storagePlugin.walkSpaceConsumedByPV(pvName), afterDeletes == storagePlugin.walkSpaceConsumedByPV(pvName));
+		assertTrue("We should not have walked the PV to answer the question " + accounting.getMetrics(), Long.parseLong(accounting.getMetrics().get("walks")) == walksBefore);
+		assertTrue(accounting.spaceConsumedByAllPVs() >= afterDeletes);
+	}
+
+	@Test
+	public void testScrubAndPersistence() throws Exception {
+		PlainPBStorageAccounting accounting = storagePlugin.getStorageAccounting();
+		long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+		ArrayListEventStream strm = new ArrayListEventStream(100, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int i = 0; i < 100; i++) {
+			strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*10, 0), new ScalarValue<Double>((double)i), 0, 0));
+		}
+		assertTrue(storagePlugin.spaceConsumedByPV(pvName) == 0);
+		try(BasicContext context = new BasicContext()) {
+			storagePlugin.appendData(context, pvName, strm);
+		}
+		long accounted = storagePlugin.spaceConsumedByPV(pvName);
+		assertTrue(accounted > 0 && accounted == storagePlugin.walkSpaceConsumedByPV(pvName));
+
+		// Append an event behind the accounting's back; for example, from another process.
+		Path path = PlainPBPathNameUtility.getPathNameForTime(testFolder.getAbsolutePath(), pvName, startOfYearEpochSeconds, storagePlugin.getPartitionGranularity(), new ArchPaths(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		POJOEvent extraEvent = new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + 2000, 0), new ScalarValue<Double>(2000.0), 0, 0);
+		ByteArray val = extraEvent.getRawForm();
+		try(OutputStream os = Files.newOutputStream(path, StandardOpenOption.APPEND)) {
+			os.write(val.data, val.off, val.len);
+			os.write(LineEscaper.NEWLINE_CHAR);
+		}
+		assertTrue("The accounting should not see changes made behind its back until the scrub", storagePlugin.spaceConsumedByPV(pvName) == accounted);
+		accounting.scrubPV(pvName);
+		long afterScrub = storagePlugin.spaceConsumedByPV(pvName);
+		assertTrue("After the scrub accounting has " + afterScrub + " and the disk has " + storagePlugin.walkSpaceConsumedByPV(pvName), afterScrub == storagePlugin.walkSpaceConsumedByPV(pvName));
+		assertTrue(Long.parseLong(accounting.getMetrics().get("scrubCorrections")) >= 1);
+
+		// Persist and load into a new accounting for the same store
+		Path persistFile = Files.createTempFile("PlainPBStorageAccountingTest", ".json");
+		try {
+			PlainPBStorageAccounting first = new PlainPBStorageAccounting(testFolder.getAbsolutePath(), persistFile, 0, 600, null);
+			first.walker = storagePlugin;
+			assertTrue(first.spaceConsumedByPV(pvName) == afterScrub);
+			first.persist();
+			PlainPBStorageAccounting second = new PlainPBStorageAccounting(testFolder.getAbsolutePath(), persistFile, 0, 600, null);
+			second.load();
+			second.walker = new PlainPBStorageAccounting.SpaceWalker() {
+				@Override
+				public long walkSpaceConsumedByPV(String pvName) {
+					throw new RuntimeException("We should not walk the PV after loading the persisted accounting");
+				}
+			};
+			assertTrue(second.spaceConsumedByPV(pvName) == afterScrub);
+		} finally {
+			Files.deleteIfExists(persistFile);
+		}
+	}
+}
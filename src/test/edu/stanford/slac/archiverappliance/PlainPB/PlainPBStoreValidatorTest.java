@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PlainPB.utils.ValidatePBFile;
+
+/**
+ * Validate a store with a few PVs, one of which has an invalid partition.
+ * Make sure the results are checkpointed, that unchanged partitions are skipped and that the invalid partition is repaired.
+ * @author mshankar
+ *
+ */
+public class PlainPBStoreValidatorTest {
+	private static final int PVS = 3;
+	private static final int HOURS = 6;
+	private static final int EVENTS_PER_HOUR = 60;
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBStoreValidatorTest");
+	File checkpointFile = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBStoreValidatorTest_checkpoint" + File.separator + "checkpoint.txt");
+	String pvNamePrefix = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PlainPBStoreValidatorTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+	PlainPBStoragePlugin storagePlugin;
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		FileUtils.deleteDirectory(checkpointFile.getParentFile());
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PlainPBStoreValidatorTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_HOUR", configService);
+		for(int pv = 0; pv < PVS; pv++) {
+			String pvName = pvNamePrefix + pv;
+			ArrayListEventStream strm = new ArrayListEventStream(HOURS*EVENTS_PER_HOUR, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+			for(int i = 0; i < HOURS*EVENTS_PER_HOUR; i++) {
+				strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*(3600/EVENTS_PER_HOUR), 0), new ScalarValue<Double>((double)i), 0, 0));
+			}
+			try(BasicContext context = new BasicContext()) {
+				storagePlugin.appendData(context, pvName, strm);
+			}
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+		FileUtils.deleteDirectory(checkpointFile.getParentFile());
+	}
+
+	@Test
+	public void testValidateStore() throws Exception {
+		Map<String, PlainPBStoragePlugin> pvs = new LinkedHashMap<String, PlainPBStoragePlugin>();
+		for(int pv = 0; pv < PVS; pv++) {
+			pvs.put(pvNamePrefix + pv, storagePlugin);
+		}
+
+		// Make a partition of the second PV invalid by adding an event that goes back in time.
+		String badPVName = pvNamePrefix + 1;
+		Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), testFolder.getAbsolutePath(), badPVName, PlainPBStoragePlugin.PB_EXTENSION, storagePlugin.getPartitionGranularity(), storagePlugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		assertTrue("Expecting a partition per hour; got " + paths.length, paths.length == HOURS);
+		Path badPath = paths[HOURS/2];
+		String firstEventLine;
+		try(BufferedReader reader = Files.newBufferedReader(badPath, StandardCharsets.ISO_8859_1)) {
+			reader.readLine();
+			firstEventLine = reader.readLine();
+		}
+		Files.write(badPath, (firstEventLine + "\n").getBytes(StandardCharsets.ISO_8859_1), StandardOpenOption.APPEND);
+		Files.setLastModifiedTime(badPath, FileTime.fromMillis(System.currentTimeMillis() - 2*60*60*1000L));
+
+		PlainPBStoreValidator validator = new PlainPBStoreValidator("PlainPBStoreValidatorTest", checkpointFile.toPath(), 2, 0);
+		validator.runValidation(pvs, false);
+		Map<String, String> status = validator.getStatus();
+		assertTrue("Expecting all the partitions to be validated " + status, status.get("partitionsValidated").equals(Integer.toString(PVS*HOURS)) && status.get("partitionsUnchanged").equals("0"));
+		assertTrue("Expecting one invalid partition " + status, status.get("invalidPartitions").equals("1") && status.get("lastRun").equals("Completed"));
+		assertTrue("Expecting the PV with the invalid partition to be reported " + validator.getPVsWithProblems(), validator.getPVsWithProblems().size() == 1 && validator.getPVsWithProblems().containsKey(badPVName));
+		Map<String, String> pvResults = new LinkedHashMap<String, String>();
+		validator.addResultsForPV(badPVName, pvResults);
+		assertTrue("Expecting per PV results " + pvResults, pvResults.get("Validation of PlainPBStoreValidatorTest invalid partitions").equals("1"));
+
+		// A new validator using the same checkpoint (for example, after a restart) should skip all the partitions and still report the invalid one.
+		validator = new PlainPBStoreValidator("PlainPBStoreValidatorTest", checkpointFile.toPath(), 2, 0);
+		validator.runValidation(pvs, false);
+		status = validator.getStatus();
+		assertTrue("Expecting all the partitions to be skipped " + status, status.get("partitionsValidated").equals("0") && status.get("partitionsUnchanged").equals(Integer.toString(PVS*HOURS)));
+		assertTrue("Expecting the invalid partition to be reported from the checkpoint " + status, status.get("invalidPartitions").equals("1") && validator.getPVsWithProblems().containsKey(badPVName));
+
+		// Only the partition that we change is validated again; this time, we repair it.
+		Files.setLastModifiedTime(badPath, FileTime.fromMillis(System.currentTimeMillis() - 3*60*60*1000L));
+		validator.runValidation(pvs, true);
+		status = validator.getStatus();
+		assertTrue("Expecting only the changed partition to be validated and repaired " + status, status.get("partitionsValidated").equals("1") && status.get("repairedPartitions").equals("1") && status.get("invalidPartitions").equals("0"));
+		assertTrue("Repaired partition should be valid", ValidatePBFile.validatePBFile(badPath, false));
+
+		validator.runValidation(pvs, false);
+		status = validator.getStatus();
+		assertTrue("Expecting nothing to validate " + status, status.get("partitionsValidated").equals("0") && status.get("invalidPartitions").equals("0"));
+	}
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Move data into stores with the <code>reducedata</code> option in ETL runs that end in the middle of bins and check that the reduced data is the same as that obtained by reducing all the raw data in one go.
+ * We also have a gap that spans ETL runs (for the operators that fill empty bins) and an ETL run that repeats data we have already seen.
+ * @author mshankar
+ *
+ */
+public class PlainPBStreamingReducerTest {
+	private static final String[] REDUCEDATA_OPERATORS = new String[] { "mean_600", "firstSample_600", "lastSample_3600", "max_900" };
+	private static final int EVENT_INTERVAL_SECS = 7;
+	private static final int EVENTS_PER_RUN = 1000;
+	private static final int RUNS = 30;
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PlainPBStreamingReducerTest");
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PlainPBStreamingReducerTest";
+	short currentYear = TimeUtils.getCurrentYear();
+	long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+	private ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testIncrementalReduction() throws Exception {
+		for(String operator : REDUCEDATA_OPERATORS) {
+			testOperator(operator);
+		}
+	}
+
+	private void testOperator(String operator) throws Exception {
+		String folder = testFolder.getAbsolutePath() + File.separator + operator;
+		PlainPBStoragePlugin rawPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=Raw&rootFolder=" + folder + "/raw&partitionGranularity=PARTITION_DAY", configService);
+		PlainPBStoragePlugin reducedPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=Reduced&rootFolder=" + folder + "/reduced&partitionGranularity=PARTITION_DAY&reducedata=" + operator + "&reducedataIncremental=true", configService);
+		assertTrue("Expecting the option in the URL " + reducedPlugin.getURLRepresentation(), reducedPlugin.getURLRepresentation().contains("reducedataIncremental=true"));
+
+		int eventNum = 0;
+		for(int run = 0; run < RUNS; run++) {
+			if(run == RUNS/2) {
+				// A gap of a couple of hours that starts in one ETL run and ends in the next one
+				eventNum += 7200/EVENT_INTERVAL_SECS;
+			}
+			int start = (run == RUNS/3) ? eventNum - EVENTS_PER_RUN/2 : eventNum;
+			ArrayListEventStream strm = new ArrayListEventStream(EVENTS_PER_RUN, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+			for(int i = start; i < eventNum + EVENTS_PER_RUN; i++) {
+				strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*EVENT_INTERVAL_SECS, 0), new ScalarValue<Double>(Math.sin(i/50.0)), 0, 0));
+			}
+			eventNum += EVENTS_PER_RUN;
+			try(BasicContext context = new BasicContext()) {
+				rawPlugin.appendData(context, pvName, strm);
+			}
+			try(ETLContext context = new ETLContext()) {
+				reducedPlugin.prepareForNewPartition(pvName, strm.get(0), ArchDBRTypes.DBR_SCALAR_DOUBLE, context);
+				reducedPlugin.appendToETLAppendData(pvName, strm, context);
+				reducedPlugin.commitETLAppendData(pvName, context);
+			}
+		}
+
+		Path[] rawPaths = getPaths(rawPlugin, PlainPBStoragePlugin.PB_EXTENSION);
+		Path[] reducedPaths = getPaths(reducedPlugin, PlainPBStoragePlugin.PB_EXTENSION);
+		assertTrue("Expecting the raw data to span days for " + operator, rawPaths.length > 1 && reducedPaths.length > 1);
+		Path statePath = PlainPBStreamingReducer.getStatePath(new ArchPaths(), reducedPlugin.getRootFolder(), configService.getPVNameToKeyConverter().convertPVNameToKey(pvName), PlainPBStreamingReducer.STATE_EXTENSION);
+		assertTrue("Expecting a state file for " + operator + " at " + statePath, Files.exists(statePath));
+
+		PlainPBStreamingReducer.VerificationResult result = PlainPBStreamingReducer.verify(pvName, operator, Arrays.asList(rawPaths), Arrays.asList(reducedPaths));
+		assertTrue("Reduced data does not match for " + operator + " " + result, result.isOK());
+		assertTrue("Expecting to compare most of the bins for " + operator + " " + result, result.getMatched() > (RUNS*EVENTS_PER_RUN*EVENT_INTERVAL_SECS)/(Integer.parseInt(operator.split("_")[1])*2));
+
+		// Each bin is written out once.
+		HashSet<Long> bins = new HashSet<Long>();
+		long events = 0;
+		for(Path reducedPath : reducedPaths) {
+			try(FileBackedPBEventStream strm = new FileBackedPBEventStream(pvName, reducedPath, ArchDBRTypes.DBR_SCALAR_DOUBLE)) {
+				for(Event e : strm) {
+					bins.add(e.getEpochSeconds()/Integer.parseInt(operator.split("_")[1]));
+					events++;
+				}
+			}
+		}
+		assertTrue("Expecting one event per bin for " + operator + "; got " + events + " events in " + bins.size() + " bins", events == bins.size());
+	}
+
+	private Path[] getPaths(PlainPBStoragePlugin plugin, String extension) throws Exception {
+		Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), plugin.getRootFolder(), pvName, extension, plugin.getPartitionGranularity(), plugin.getCompressionMode(), configService.getPVNameToKeyConverter());
+		Arrays.sort(paths);
+		return paths;
+	}
+}
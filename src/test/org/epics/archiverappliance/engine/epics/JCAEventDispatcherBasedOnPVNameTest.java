@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.epics;
+
+import static org.junit.Assert.assertTrue;
+import gov.aps.jca.event.ConnectionEvent;
+import gov.aps.jca.event.ConnectionListener;
+import gov.aps.jca.event.MonitorEvent;
+import gov.aps.jca.event.MonitorListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Test the ring buffers, PV name assignment and rebalancing in the JCAEventDispatcherBasedOnPVName without a JCA context.
+ * Each event is dispatched with its own listener that knows which PV and sequence number it stands for.
+ * @author mshankar
+ *
+ */
+public class JCAEventDispatcherBasedOnPVNameTest {
+
+	private static class SequencedListener implements MonitorListener {
+		String pvName;
+		int sequence;
+		ConcurrentHashMap<String, Integer> lastSequence;
+		ConcurrentHashMap<String, String> threadForPV;
+		ConcurrentLinkedQueue<String> errors;
+		CountDownLatch done;
+
+		@Override
+		public void monitorChanged(MonitorEvent ev) {
+			Integer last = lastSequence.get(pvName);
+			if(sequence != (last == null ? 0 : last + 1)) errors.add("Out of order " + pvName + " " + sequence + " after " + last);
+			lastSequence.put(pvName, sequence);
+			String previousThread = threadForPV.putIfAbsent(pvName, Thread.currentThread().getName());
+			if(previousThread != null && !previousThread.equals(Thread.currentThread().getName())) errors.add("PV " + pvName + " processed on multiple threads");
+			if(done != null) done.countDown();
+		}
+	}
+
+	@Test
+	public void testOrderingAcrossProducers() throws Exception {
+		final JCAEventDispatcherBasedOnPVName dispatcher = new JCAEventDispatcherBasedOnPVName(4, 1024, 64, 1000, 1000, 0, 1.5);
+		try {
+			final int producers = 4;
+			final int pvsPerProducer = 50;
+			final int eventsPerPV = 200;
+			final CountDownLatch done = new CountDownLatch(producers*pvsPerProducer*eventsPerPV);
+			final ConcurrentHashMap<String, Integer> lastSequence = new ConcurrentHashMap<String, Integer>();
+			final ConcurrentHashMap<String, String> threadForPV = new ConcurrentHashMap<String, String>();
+			final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+			Thread[] threads = new Thread[producers];
+			for(int p = 0; p < producers; p++) {
+				final int producer = p;
+				threads[p] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for(int i = 0; i < eventsPerPV; i++) {
+								for(int pv = 0; pv < pvsPerProducer; pv++) {
+									SequencedListener listener = new SequencedListener();
+									listener.pvName = "Test:Dispatcher:" + producer + ":" + pv;
+									listener.sequence = i;
+									listener.lastSequence = lastSequence;
+									listener.threadForPV = threadForPV;
+									listener.errors = errors;
+									listener.done = done;
+									// Alternate between the PV and one of its fields; these should go to the same worker.
+									String channelName = (i % 2 == 0) ? listener.pvName : listener.pvName + ".HIHI";
+									if(!dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, channelName, Collections.singletonList(listener), TimeUnit.SECONDS.toNanos(1))) {
+										errors.add("Dropped event for " + channelName);
+									}
+								}
+							}
+						} catch(InterruptedException ex) {
+							errors.add(ex.toString());
+						}
+					}
+				};
+				threads[p].start();
+			}
+			assertTrue("Not all events were dispatched " + done.getCount(), done.await(30, TimeUnit.SECONDS));
+			assertTrue("Errors " + errors, errors.isEmpty());
+			assertTrue("Expecting the PVs to be spread across workers " + threadForPV.values(), new HashSet<String>(threadForPV.values()).size() > 1);
+			String droppedCount = dispatcher.getDispatcherMetrics().get("eventsDropped");
+			assertTrue("Dropped " + droppedCount, droppedCount.equals("0"));
+		} finally {
+			dispatcher.dispose();
+		}
+	}
+
+	@Test
+	public void testDropsWhenFull() throws Exception {
+		final JCAEventDispatcherBasedOnPVName dispatcher = new JCAEventDispatcherBasedOnPVName(1, 16, 1, 0, 0, 0, 1.5);
+		try {
+			final CountDownLatch blocked = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			MonitorListener blockingListener = new MonitorListener() {
+				@Override
+				public void monitorChanged(MonitorEvent ev) {
+					blocked.countDown();
+					try {
+						release.await();
+					} catch(InterruptedException ex) {
+					}
+				}
+			};
+			dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, "Test:Dispatcher:Blocking", Collections.singletonList(blockingListener), 0);
+			assertTrue(blocked.await(10, TimeUnit.SECONDS));
+			int enqueued = 0;
+			int dropped = 0;
+			List<MonitorListener> noListeners = Collections.emptyList();
+			for(int i = 0; i < 100; i++) {
+				// Monitor events are dropped only if we ask for a maximum wait.
+				if(dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, "Test:Dispatcher:Blocking", noListeners, TimeUnit.MILLISECONDS.toNanos(1))) {
+					enqueued++;
+				} else {
+					dropped++;
+				}
+			}
+			release.countDown();
+			assertTrue("Expecting the ring buffer to fill up; enqueued " + enqueued, enqueued == 16);
+			assertTrue("Expecting drops " + dropped, dropped == 84);
+			assertTrue("Metrics " + dispatcher.getDispatcherMetrics(), dispatcher.getDispatcherMetrics().get("eventsDropped").equals("84"));
+			assertTrue("Drops are counted per PV", JCAEventDispatcherBasedOnPVName.getDroppedEvents("Test:Dispatcher:Blocking.VAL") == 84);
+			assertTrue(JCAEventDispatcherBasedOnPVName.getDroppedEvents("Test:Dispatcher:Other") == 0);
+			for(int i = 0; i < 100 && !dispatcher.getDispatcherMetrics().get("queueDepth").equals("0"); i++) {
+				Thread.sleep(10);
+			}
+			assertTrue("Metrics " + dispatcher.getDispatcherMetrics(), dispatcher.getDispatcherMetrics().get("queueDepth").equals("0"));
+		} finally {
+			dispatcher.dispose();
+		}
+	}
+
+	@Test
+	public void testConnectionEventsAreNotDropped() throws Exception {
+		final JCAEventDispatcherBasedOnPVName dispatcher = new JCAEventDispatcherBasedOnPVName(1, 16, 1, 0, 0, 0, 1.5);
+		try {
+			final CountDownLatch blocked = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			MonitorListener blockingListener = new MonitorListener() {
+				@Override
+				public void monitorChanged(MonitorEvent ev) {
+					blocked.countDown();
+					try {
+						release.await();
+					} catch(InterruptedException ex) {
+					}
+				}
+			};
+			dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, "Test:Dispatcher:Connection", Collections.singletonList(blockingListener), 0);
+			assertTrue(blocked.await(10, TimeUnit.SECONDS));
+			List<MonitorListener> noListeners = Collections.emptyList();
+			for(int i = 0; i < 16; i++) {
+				assertTrue(dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, "Test:Dispatcher:Connection", noListeners, 0));
+			}
+			// The ring buffer is full; monitor events are dropped.
+			assertTrue(!dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, "Test:Dispatcher:Connection", noListeners, TimeUnit.MILLISECONDS.toNanos(1)));
+
+			// Connection events wait for space instead.
+			final CountDownLatch connectionEventDelivered = new CountDownLatch(1);
+			final AtomicBoolean enqueued = new AtomicBoolean(false);
+			final ConnectionListener connectionListener = new ConnectionListener() {
+				@Override
+				public void connectionChanged(ConnectionEvent ev) {
+					connectionEventDelivered.countDown();
+				}
+			};
+			Thread producer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						enqueued.set(dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.CONNECTION, null, "Test:Dispatcher:Connection", Collections.singletonList(connectionListener), 0));
+					} catch(InterruptedException ex) {
+					}
+				}
+			};
+			producer.start();
+			Thread.sleep(500);
+			assertTrue("The connection event should be waiting for space", producer.isAlive() && !enqueued.get());
+			release.countDown();
+			producer.join(10000);
+			assertTrue("The connection event should have been enqueued", enqueued.get());
+			assertTrue("The connection event should have been delivered", connectionEventDelivered.await(10, TimeUnit.SECONDS));
+			assertTrue("Metrics " + dispatcher.getDispatcherMetrics(), dispatcher.getDispatcherMetrics().get("eventsDropped").equals("1"));
+		} finally {
+			dispatcher.dispose();
+		}
+	}
+
+	@Test
+	public void testMonitorBackpressure() throws Exception {
+		final JCAEventDispatcherBasedOnPVName dispatcher = new JCAEventDispatcherBasedOnPVName(1, 16, 1, 0, 0, 0, 1.5);
+		try {
+			final CountDownLatch blocked = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			MonitorListener blockingListener = new MonitorListener() {
+				@Override
+				public void monitorChanged(MonitorEvent ev) {
+					blocked.countDown();
+					try {
+						release.await();
+					} catch(InterruptedException ex) {
+					}
+				}
+			};
+			dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, "Test:Dispatcher:Backpressure", Collections.singletonList(blockingListener), 0);
+			assertTrue(blocked.await(10, TimeUnit.SECONDS));
+			final List<MonitorListener> noListeners = Collections.emptyList();
+			for(int i = 0; i < 16; i++) {
+				assertTrue(dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, "Test:Dispatcher:Backpressure", noListeners, 0));
+			}
+			final AtomicBoolean enqueued = new AtomicBoolean(false);
+			Thread producer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						enqueued.set(dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, "Test:Dispatcher:Backpressure", noListeners, 0));
+					} catch(InterruptedException ex) {
+					}
+				}
+			};
+			producer.start();
+			Thread.sleep(500);
+			assertTrue("The monitor event should be waiting for space", producer.isAlive() && !enqueued.get());
+			release.countDown();
+			producer.join(10000);
+			assertTrue("The monitor event should have been enqueued", enqueued.get());
+			assertTrue("Metrics " + dispatcher.getDispatcherMetrics(), dispatcher.getDispatcherMetrics().get("eventsDropped").equals("0"));
+		} finally {
+			dispatcher.dispose();
+		}
+	}
+
+	@Test
+	public void testDispatchFromWorkerThread() throws Exception {
+		final JCAEventDispatcherBasedOnPVName dispatcher = new JCAEventDispatcherBasedOnPVName(1, 16, 1, 0, 0, 0, 1.5);
+		try {
+			final int connectionEvents = 20;
+			final CountDownLatch delivered = new CountDownLatch(connectionEvents);
+			final CountDownLatch listenerDone = new CountDownLatch(1);
+			final ConnectionListener connectionListener = new ConnectionListener() {
+				@Override
+				public void connectionChanged(ConnectionEvent ev) {
+					delivered.countDown();
+				}
+			};
+			// A listener on the worker dispatches more events for a PV on the same worker than fit in the ring buffer.
+			MonitorListener dispatchingListener = new MonitorListener() {
+				@Override
+				public void monitorChanged(MonitorEvent ev) {
+					try {
+						for(int i = 0; i < connectionEvents; i++) {
+							dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.CONNECTION, null, "Test:Dispatcher:SameWorker", Collections.singletonList(connectionListener), 0);
+						}
+					} catch(InterruptedException ex) {
+					}
+					listenerDone.countDown();
+				}
+			};
+			dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, "Test:Dispatcher:SameWorker", Collections.singletonList(dispatchingListener), 0);
+			assertTrue("The listener is waiting for itself", listenerDone.await(10, TimeUnit.SECONDS));
+			assertTrue("All the connection events should be delivered", delivered.await(10, TimeUnit.SECONDS));
+			assertTrue("Metrics " + dispatcher.getDispatcherMetrics(), dispatcher.getDispatcherMetrics().get("inlineDispatches").equals(Integer.toString(connectionEvents - 16)));
+		} finally {
+			dispatcher.dispose();
+		}
+	}
+
+	@Test
+	public void testRebalanceHotPVs() throws Exception {
+		final int workers = 4;
+		final JCAEventDispatcherBasedOnPVName dispatcher = new JCAEventDispatcherBasedOnPVName(workers, 1024, 64, 1000, 1000, 0, 1.5);
+		try {
+			// Find a bunch of PVs that hash to worker 0; for example, PVs from a hot IOC.
+			ArrayList<String> hotPVs = new ArrayList<String>();
+			for(int i = 0; hotPVs.size() < 10; i++) {
+				String pvName = "Test:Dispatcher:Hot:" + i;
+				if(dispatcher.workerForPVName(pvName) == 0) hotPVs.add(pvName);
+			}
+			final int eventsPerPV = 100;
+			final CountDownLatch done = new CountDownLatch(hotPVs.size()*eventsPerPV);
+			ConcurrentHashMap<String, Integer> lastSequence = new ConcurrentHashMap<String, Integer>();
+			ConcurrentHashMap<String, String> threadForPV = new ConcurrentHashMap<String, String>();
+			ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+			for(int i = 0; i < eventsPerPV; i++) {
+				for(String pvName : hotPVs) {
+					SequencedListener listener = new SequencedListener();
+					listener.pvName = pvName;
+					listener.sequence = i;
+					listener.lastSequence = lastSequence;
+					listener.threadForPV = threadForPV;
+					listener.errors = errors;
+					listener.done = done;
+					dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, pvName, Collections.singletonList(listener), TimeUnit.SECONDS.toNanos(1));
+				}
+			}
+			assertTrue(done.await(30, TimeUnit.SECONDS));
+			assertTrue("Errors " + errors, errors.isEmpty());
+			// The pending counts are decremented after the listeners are called.
+			Thread.sleep(100);
+			dispatcher.rebalance();
+
+			int[] pvsPerWorker = new int[workers];
+			for(String pvName : hotPVs) {
+				pvsPerWorker[dispatcher.getAssignedWorker(pvName)]++;
+			}
+			assertTrue("Expecting some PVs to be moved off worker 0 " + pvsPerWorker[0], pvsPerWorker[0] < hotPVs.size());
+			assertTrue("Expecting worker 0 to keep some PVs " + pvsPerWorker[0], pvsPerWorker[0] > 0);
+			assertTrue("Metrics " + dispatcher.getDispatcherMetrics(), !dispatcher.getDispatcherMetrics().get("pvsMoved").equals("0"));
+
+			// Assignments should be sticky; a moved PV stays where it is moved to.
+			String movedPV = null;
+			for(String pvName : hotPVs) {
+				if(dispatcher.getAssignedWorker(pvName) != 0) { movedPV = pvName; break; }
+			}
+			int movedTo = dispatcher.getAssignedWorker(movedPV);
+			final CountDownLatch oneMore = new CountDownLatch(1);
+			SequencedListener listener = new SequencedListener();
+			listener.pvName = movedPV;
+			listener.sequence = eventsPerPV;
+			listener.lastSequence = lastSequence;
+			listener.threadForPV = new ConcurrentHashMap<String, String>();
+			listener.errors = errors;
+			listener.done = oneMore;
+			dispatcher.dispatchByPVName(JCAEventDispatcherBasedOnPVName.MONITOR, null, movedPV + ".VAL", Collections.singletonList(listener), TimeUnit.SECONDS.toNanos(1));
+			assertTrue(oneMore.await(10, TimeUnit.SECONDS));
+			assertTrue("Errors " + errors, errors.isEmpty());
+			assertTrue(dispatcher.getAssignedWorker(movedPV) == movedTo);
+		} finally {
+			dispatcher.dispose();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.epics.archiverappliance.engine.pv.JCACommandThread;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the command queue in the JCACommandThread without a JCA context.
+ * Commands from multiple producers should all be executed in the order they were added, in batches and with the search rate limit; searches waiting for the rate limit should not hold up the other commands.
+ * @author mshankar
+ *
+ */
+public class JCACommandThreadTest {
+	private JCACommandThread commandThread;
+
+	@Before
+	public void setUp() throws Exception {
+		commandThread = new JCACommandThread(null);
+		commandThread.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		commandThread.shutdown();
+	}
+
+	@Test
+	public void testMultipleProducers() throws Exception {
+		final int producers = 4;
+		final int commandsPerProducer = 5000;
+		final CountDownLatch done = new CountDownLatch(producers*commandsPerProducer);
+		final ConcurrentLinkedQueue<String> outOfOrder = new ConcurrentLinkedQueue<String>();
+		Thread[] threads = new Thread[producers];
+		for(int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				int lastExecuted = -1;
+				@Override
+				public void run() {
+					for(int i = 0; i < commandsPerProducer; i++) {
+						final int commandNum = i;
+						commandThread.addCommand(new Runnable() {
+							@Override
+							public void run() {
+								if(commandNum != lastExecuted + 1) outOfOrder.add(producer + ":" + commandNum);
+								lastExecuted = commandNum;
+								done.countDown();
+							}
+						});
+					}
+				}
+			};
+			threads[p].start();
+		}
+		assertTrue("Not all commands were executed " + done.getCount(), done.await(30, TimeUnit.SECONDS));
+		assertTrue("Commands executed out of order " + outOfOrder, outOfOrder.isEmpty());
+		// The counts are updated at the end of each batch.
+		for(int i = 0; i < 100 && commandThread.getCommandsExecuted() < producers*commandsPerProducer; i++) {
+			Thread.sleep(10);
+		}
+		assertTrue("Commands executed " + commandThread.getCommandsExecuted(), commandThread.getCommandsExecuted() == producers*commandsPerProducer);
+		assertTrue(commandThread.getQueueSize() == 0);
+		long[] batchSizes = JCACommandThread.Histogram.newTotals();
+		commandThread.getBatchSizes().addTo(batchSizes);
+		long batches = 0;
+		for(long count : batchSizes) batches += count;
+		assertTrue("Expecting commands to be executed in batches " + JCACommandThread.Histogram.format(batchSizes), batches > 0 && batches < producers*commandsPerProducer/10);
+	}
+
+	@Test
+	public void testSearchRateLimit() throws Exception {
+		// The default rate limit is 5000 searches per second with bursts of 500.
+		final int searches = 2000;
+		final CountDownLatch done = new CountDownLatch(searches);
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < searches; i++) {
+			commandThread.addCommand(new Runnable() {
+				@Override
+				public void run() {
+					done.countDown();
+				}
+			}, true);
+		}
+		assertTrue("Not all searches were executed " + done.getCount(), done.await(30, TimeUnit.SECONDS));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Searches should have been rate limited; took " + elapsed + "(ms)", elapsed >= 250);
+		assertTrue(commandThread.getSearchesDelayed() > 0);
+	}
+
+	@Test
+	public void testSearchesDoNotHoldUpOtherCommands() throws Exception {
+		// At 5000 searches per second, these take most of a second.
+		final int searches = 5000;
+		final CountDownLatch searchesDone = new CountDownLatch(searches);
+		for(int i = 0; i < searches; i++) {
+			commandThread.addCommand(new Runnable() {
+				@Override
+				public void run() {
+					searchesDone.countDown();
+				}
+			}, true);
+		}
+		final CountDownLatch commandDone = new CountDownLatch(1);
+		long start = System.currentTimeMillis();
+		commandThread.addCommand(new Runnable() {
+			@Override
+			public void run() {
+				commandDone.countDown();
+			}
+		});
+		assertTrue("The command was not executed", commandDone.await(30, TimeUnit.SECONDS));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("The command should not wait for the rate limited searches; took " + elapsed + "(ms) with " + searchesDone.getCount() + " searches pending", elapsed < 200 && searchesDone.getCount() > 0);
+		assertTrue("Not all searches were executed " + searchesDone.getCount(), searchesDone.await(30, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.test;
+
+import static org.junit.Assert.assertTrue;
+import gov.aps.jca.dbr.DBR_Byte;
+import gov.aps.jca.dbr.DBR_Double;
+import gov.aps.jca.dbr.DBR_LABELS_Enum;
+import gov.aps.jca.dbr.DBR_String;
+
+import org.epics.archiverappliance.config.MetaInfo;
+import org.epics.archiverappliance.engine.metadata.MetaFieldBatchGet;
+import org.junit.Test;
+
+/**
+ * Test the conversion of the one-shot gets for the metadata fields into MetaInfo values and the rate window in MetaInfo.
+ * The gets themselves need an IOC and are tested as part of MetaTest.
+ * @author mshankar
+ *
+ */
+public class MetaFieldBatchGetTest {
+
+	@Test
+	public void testConvertValues() throws Exception {
+		DBR_LABELS_Enum scan = new DBR_LABELS_Enum(new short[] { 2 });
+		scan.setLabels(new String[] { "Passive", "Event", "I/O Intr", "10 second" });
+		assertTrue("SCAN should be converted to a label", "I/O Intr".equals(MetaFieldBatchGet.convertValue("SCAN", scan)));
+
+		DBR_LABELS_Enum badScan = new DBR_LABELS_Enum(new short[] { 7 });
+		badScan.setLabels(new String[] { "Passive" });
+		assertTrue("Invalid SCAN labels should use the index", "7".equals(MetaFieldBatchGet.convertValue("SCAN", badScan)));
+
+		DBR_LABELS_Enum otherEnum = new DBR_LABELS_Enum(new short[] { 1 });
+		otherEnum.setLabels(new String[] { "NO", "YES" });
+		assertTrue("Other enums are converted to the index", Double.valueOf(1).equals(MetaFieldBatchGet.convertValue("DISA", otherEnum)));
+
+		assertTrue("ai".equals(MetaFieldBatchGet.convertValue("RTYP", new DBR_String(new String[] { "ai" }))));
+		assertTrue(Double.valueOf(0.5).equals(MetaFieldBatchGet.convertValue("MDEL", new DBR_Double(new double[] { 0.5 }))));
+
+		byte[] longName = new byte[40];
+		byte[] nameBytes = "Some:Very:Long:Alias:Name".getBytes("UTF-8");
+		System.arraycopy(nameBytes, 0, longName, 0, nameBytes.length);
+		assertTrue("Long strings should be NULL terminated", "Some:Very:Long:Alias:Name".equals(MetaFieldBatchGet.convertValue("NAME$", new DBR_Byte(longName))));
+		assertTrue(Double.valueOf(83).equals(MetaFieldBatchGet.convertValue("SOMEARRAY", new DBR_Byte(longName))));
+	}
+
+	@Test
+	public void testRateWindow() throws Exception {
+		MetaInfo metaInfo = new MetaInfo();
+		metaInfo.setEventCount(600);
+		assertTrue("Default rate window is a minute " + metaInfo.getEventRate(), Math.abs(metaInfo.getEventRate() - 10.0) < 0.001);
+		metaInfo.setRateWindowSeconds(12);
+		assertTrue("Rate should use the measured window " + metaInfo.getEventRate(), Math.abs(metaInfo.getEventRate() - 50.0) < 0.001);
+	}
+}
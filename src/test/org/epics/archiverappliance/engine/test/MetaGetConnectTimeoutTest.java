@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.MetaInfo;
+import org.epics.archiverappliance.engine.ArchiveEngine;
+import org.epics.archiverappliance.engine.metadata.MetaCompletedListener;
+import org.epics.archiverappliance.engine.metadata.MetaGet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Request the metadata for PVs that never connect (there is no IOC for this test) and make sure they do not hold up the MetaGets queued behind them.
+ * @author mshankar
+ *
+ */
+public class MetaGetConnectTimeoutTest {
+	private static final int PV_COUNT = 10;
+	private ScheduledThreadPoolExecutor scheduler;
+	private ConfigServiceForTests testConfigService;
+
+	@Before
+	public void setUp() throws Exception {
+		scheduler = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1);
+		testConfigService = new ConfigServiceForTests(new File("./bin"));
+		testConfigService.getEngineContext().setScheduler(scheduler);
+		Properties props = testConfigService.getInstallationProperties();
+		props.setProperty(MetaGet.MAX_IN_FLIGHT_CHANNELS_PROPERTY, "4");
+		props.setProperty(MetaGet.CONNECT_TIMEOUT_PROPERTY, "2");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for(int i = 0; i < PV_COUNT; i++) {
+			MetaGet.abortMetaGet(getPVName(i));
+		}
+		testConfigService.shutdownNow();
+	}
+
+	@Test
+	public void testPVsThatNeverConnect() throws Exception {
+		String[] metaFields = { "MDEL", "ADEL", "RTYP" };
+		for(int i = 0; i < PV_COUNT; i++) {
+			ArchiveEngine.getArchiveInfo(getPVName(i), testConfigService, metaFields, false, new MetaCompletedListener() {
+				@Override
+				public void completed(MetaInfo metaInfo) {
+				}
+			});
+		}
+
+		// Only the main channel counts against the cap till the PV connects.
+		assertTrue("In flight " + MetaGet.getInFlightChannelCount(), MetaGet.getInFlightChannelCount() == 4);
+		assertTrue("Waiting " + MetaGet.getWaitingMetaGetsSize(), MetaGet.getWaitingMetaGetsSize() == PV_COUNT - 4);
+
+		// The PVs that do not connect within the connect timeout release their channels; so the waiting MetaGets get to start.
+		for(int i = 0; i < 30 && (MetaGet.getWaitingMetaGetsSize() > 0 || MetaGet.getInFlightChannelCount() > 0); i++) {
+			Thread.sleep(1000);
+		}
+		assertTrue("Waiting " + MetaGet.getWaitingMetaGetsSize(), MetaGet.getWaitingMetaGetsSize() == 0);
+		assertTrue("In flight " + MetaGet.getInFlightChannelCount(), MetaGet.getInFlightChannelCount() == 0);
+		assertTrue("Pending " + MetaGet.getPendingMetaGetsSize(), MetaGet.getPendingMetaGetsSize() == PV_COUNT);
+
+		for(int i = 0; i < PV_COUNT; i++) {
+			assertTrue(MetaGet.abortMetaGet(getPVName(i)));
+		}
+		assertTrue("Pending " + MetaGet.getPendingMetaGetsSize(), MetaGet.getPendingMetaGetsSize() == 0);
+		assertTrue("In flight " + MetaGet.getInFlightChannelCount(), MetaGet.getInFlightChannelCount() == 0);
+	}
+
+	private static String getPVName(int i) {
+		return ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":MetaGetConnectTimeoutTest:NeverConnects" + i;
+	}
+}
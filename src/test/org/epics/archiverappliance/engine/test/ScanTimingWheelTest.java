@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.epics.archiverappliance.engine.model.ScanTimingWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the scan timing wheel; make sure scans happen at roughly the right rate and that removing scans is cheap and effective.
+ * @author mshankar
+ *
+ */
+public class ScanTimingWheelTest {
+	private ScanTimingWheel wheel;
+
+	private static class CountingScan implements Runnable {
+		AtomicInteger count = new AtomicInteger(0);
+		@Override
+		public void run() {
+			count.incrementAndGet();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		wheel = new ScanTimingWheel(10, 2, 100);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		wheel.shutdown();
+	}
+
+	@Test
+	public void testScanRates() throws Exception {
+		CountingScan fast = new CountingScan();
+		CountingScan slow = new CountingScan();
+		wheel.add("Test:Fast", fast, 0.1);
+		wheel.add("Test:Slow", slow, 0.5);
+		Thread.sleep(2000);
+		int fastCount = fast.count.get();
+		int slowCount = slow.count.get();
+		assertTrue("Expecting about 20 fast scans, got " + fastCount, fastCount >= 15 && fastCount <= 21);
+		assertTrue("Expecting about 4 slow scans, got " + slowCount, slowCount >= 3 && slowCount <= 5);
+
+		assertTrue(wheel.remove(fast));
+		assertTrue(!wheel.remove(fast));
+		int countAfterRemove = fast.count.get();
+		Thread.sleep(500);
+		// Allow for a scan that was already in flight.
+		assertTrue("Scans should stop after remove", fast.count.get() <= countAfterRemove + 1);
+		assertTrue("Slow scans should continue", slow.count.get() > slowCount);
+		assertTrue("Metrics " + wheel.getMetrics(), Long.parseLong(wheel.getMetrics().get("scansRun")) > 0);
+	}
+
+	@Test
+	public void testManyScans() throws Exception {
+		ArrayList<CountingScan> scans = new ArrayList<CountingScan>();
+		for(int i = 0; i < 20000; i++) {
+			CountingScan scan = new CountingScan();
+			scans.add(scan);
+			wheel.add("Test:Many:" + i, scan, 1.0 + (i % 5));
+		}
+		assertTrue(wheel.getScanCount() == 20000);
+		Thread.sleep(2500);
+		int scannedAtLeastOnce = 0;
+		for(CountingScan scan : scans) {
+			if(scan.count.get() > 0) scannedAtLeastOnce++;
+		}
+		// The 1 and 2 second scans should have run by now.
+		assertTrue("Expecting at least 8000 scans to have run, got " + scannedAtLeastOnce, scannedAtLeastOnce >= 8000);
+
+		long startRemove = System.currentTimeMillis();
+		for(int i = 0; i < scans.size(); i += 2) {
+			assertTrue(wheel.remove(scans.get(i)));
+		}
+		long removeTime = System.currentTimeMillis() - startRemove;
+		assertTrue("Removing 10000 scans took " + removeTime + "(ms)", removeTime < 1000);
+		assertTrue(wheel.getScanCount() == 10000);
+
+		// Moving a scan to a new period should not scan it twice.
+		CountingScan moved = scans.get(1);
+		wheel.add("Test:Many:1", moved, 0.1);
+		assertTrue(wheel.getScanCount() == 10000);
+	}
+
+	@Test
+	public void testFirstScanAndGroupRemoval() throws Exception {
+		// The first scan happens right away and not a period later.
+		CountingScan scan = new CountingScan();
+		wheel.add("Test:FirstScan", scan, 60.0);
+		Thread.sleep(200);
+		assertTrue("Expecting the first scan right away, got " + scan.count.get(), scan.count.get() == 1);
+		assertTrue(wheel.getGroupCount() == 1);
+
+		// Groups go away when their last scan is removed; so adding and removing many channels does not leak groups.
+		for(int i = 0; i < 1000; i++) {
+			CountingScan other = new CountingScan();
+			wheel.add("Test:Group:" + i, other, 1.0 + (i % 50));
+			assertTrue(wheel.remove(other));
+		}
+		assertTrue(wheel.remove(scan));
+		assertTrue("Expecting all the groups to be removed " + wheel.getMetrics(), wheel.getGroupCount() == 0);
+		assertTrue(wheel.getScanCount() == 0);
+
+		// The wheel still works after the groups are removed.
+		CountingScan again = new CountingScan();
+		wheel.add("Test:FirstScan", again, 0.1);
+		Thread.sleep(1000);
+		assertTrue("Expecting about 10 scans, got " + again.count.get(), again.count.get() >= 8 && again.count.get() <= 12);
+	}
+}
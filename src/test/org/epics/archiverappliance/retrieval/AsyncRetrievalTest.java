@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the bounded buffer, the pausing of producers and the cancellation of requests in async retrieval.
+ * @author mshankar
+ *
+ */
+public class AsyncRetrievalTest {
+	private AsyncRetrieval asyncRetrieval;
+
+	@Before
+	public void setUp() throws Exception {
+		asyncRetrieval = new AsyncRetrieval(4, 4, 64*1024, 8*1024, 0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		asyncRetrieval.shutdown();
+	}
+
+	@Test
+	public void testSlowClient() throws Exception {
+		final int totalBytes = 512*1024;
+		final CountDownLatch completed = new CountDownLatch(1);
+		final CountDownLatch producerDone = new CountDownLatch(1);
+		// The client reads 1MB/s
+		ClientStream client = new ClientStream(1024*1024, Long.MAX_VALUE);
+		boolean processed = asyncRetrieval.process(makeRequest(completed), makeResponse(client), new AsyncRetrieval.RetrievalHandler() {
+			@Override
+			public void handle(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+				try(OutputStream os = resp.getOutputStream()) {
+					for(int i = 0; i < totalBytes; i++) {
+						os.write(i % 251);
+					}
+				}
+				producerDone.countDown();
+			}
+		});
+		assertTrue("The container's thread should be released immediately", processed && producerDone.getCount() == 1);
+		assertTrue("The request did not complete", completed.await(30, TimeUnit.SECONDS));
+		assertTrue(producerDone.getCount() == 0);
+		byte[] received = client.received.toByteArray();
+		assertTrue("Expecting " + totalBytes + " got " + received.length, received.length == totalBytes);
+		for(int i = 0; i < totalBytes; i++) {
+			assertTrue("Bytes received out of order at " + i, received[i] == (byte) (i % 251));
+		}
+		assertTrue("The producer should have been paused for the slow client " + asyncRetrieval.getMetrics(), Long.parseLong(asyncRetrieval.getMetrics().get("producerPauses")) > 0);
+		assertTrue(asyncRetrieval.getMetrics().get("bufferedKB").equals("0"));
+	}
+
+	@Test
+	public void testClientDisconnect() throws Exception {
+		final CountDownLatch completed = new CountDownLatch(1);
+		final CountDownLatch producerDone = new CountDownLatch(1);
+		final AtomicBoolean producerSawDisconnect = new AtomicBoolean(false);
+		final AtomicBoolean producerInterrupted = new AtomicBoolean(false);
+		final AtomicLong bytesProduced = new AtomicLong(0);
+		// The client disconnects after 100KB
+		ClientStream client = new ClientStream(0, 100*1024);
+		asyncRetrieval.process(makeRequest(completed), makeResponse(client), new AsyncRetrieval.RetrievalHandler() {
+			@Override
+			public void handle(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+				try {
+					OutputStream os = resp.getOutputStream();
+					byte[] buf = new byte[1024];
+					// This would take forever if the producer did not stop.
+					while(true) {
+						os.write(buf);
+						bytesProduced.addAndGet(buf.length);
+					}
+				} catch(IOException ex) {
+					producerSawDisconnect.set(true);
+					// An interrupt would close any FileChannel the producer is reading from.
+					producerInterrupted.set(Thread.currentThread().isInterrupted());
+					throw ex;
+				} finally {
+					producerDone.countDown();
+				}
+			}
+		});
+		assertTrue("The producer was not cancelled", producerDone.await(30, TimeUnit.SECONDS) && producerSawDisconnect.get());
+		assertTrue("The producer should be cancelled without an interrupt", !producerInterrupted.get());
+		assertTrue("The request did not complete", completed.await(30, TimeUnit.SECONDS));
+		assertTrue("The producer should not get far ahead of the client " + bytesProduced.get(), bytesProduced.get() < 100*1024 + 128*1024);
+		assertTrue(asyncRetrieval.getMetrics().get("cancelledRequests").equals("1"));
+		assertTrue(asyncRetrieval.getMetrics().get("bufferedKB").equals("0"));
+	}
+
+	/**
+	 * A client that reads at bytesPerSecond (0 for no limit) and disconnects after disconnectAfter bytes.
+	 */
+	private static class ClientStream extends ServletOutputStream {
+		private final long bytesPerSecond;
+		private final long disconnectAfter;
+		private final long startNanos = System.nanoTime();
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+		ClientStream(long bytesPerSecond, long disconnectAfter) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.disconnectAfter = disconnectAfter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			if(received.size() + len > disconnectAfter) {
+				throw new IOException("ClientAbortException - test client has disconnected");
+			}
+			received.write(b, off, len);
+			if(bytesPerSecond > 0) {
+				long aheadMillis = (received.size()*1000L)/bytesPerSecond - (System.nanoTime() - startNanos)/1000000L;
+				if(aheadMillis > 0) {
+					try { Thread.sleep(aheadMillis); } catch(InterruptedException ex) { throw new IOException(ex); }
+				}
+			}
+		}
+	}
+
+	private static HttpServletRequest makeRequest(final CountDownLatch completed) {
+		final AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(AsyncRetrievalTest.class.getClassLoader(), new Class<?>[] { AsyncContext.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("complete")) {
+					if(completed.getCount() == 0) throw new IllegalStateException("Completed twice");
+					completed.countDown();
+				}
+				return null;
+			}
+		});
+		return (HttpServletRequest) Proxy.newProxyInstance(AsyncRetrievalTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("isAsyncSupported")) return Boolean.TRUE;
+				if(method.getName().equals("startAsync")) return asyncContext;
+				if(method.getName().equals("getPathInfo")) return "/getData.raw";
+				return null;
+			}
+		});
+	}
+
+	private static HttpServletResponse makeResponse(final ServletOutputStream client) {
+		return (HttpServletResponse) Proxy.newProxyInstance(AsyncRetrievalTest.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("getOutputStream")) return client;
+				if(method.getName().equals("isCommitted")) return Boolean.FALSE;
+				if(method.getName().equals("getCharacterEncoding")) return "UTF-8";
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.epics.archiverappliance.config.ApplianceInfo;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test the lookup of PVs that live on other appliances in the point in time retrieval.
+ * We stand up a HTTP server in place of the other appliance.
+ * @author mshankar
+ *
+ */
+public class PointInTimeRetrievalTest {
+	private static final String pvPrefix = "PointInTimeRetrievalTest:";
+	private ConfigServiceForTests configService;
+	private HttpServer otherAppliance;
+	private PointInTimeRetrieval pointInTimeRetrieval;
+	private final AtomicInteger remoteStatus = new AtomicInteger(200);
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		otherAppliance = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		otherAppliance.createContext("/retrieval/data/getDataAtTime", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				JSONObject ret = new JSONObject();
+				try(InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), "UTF-8")) {
+					JSONArray pvNames = (JSONArray) new JSONParser().parse(reader);
+					for(Object pvName : pvNames) {
+						HashMap<String, Object> value = new HashMap<String, Object>();
+						value.put("secs", 1000L);
+						value.put("nanos", 0L);
+						value.put("val", 1.0);
+						ret.put(pvName, new JSONObject(value));
+					}
+				} catch(Exception ex) {
+					throw new IOException(ex);
+				}
+				byte[] body = JSONValue.toJSONString(ret).getBytes("UTF-8");
+				exchange.sendResponseHeaders(remoteStatus.get(), body.length);
+				try(OutputStream os = exchange.getResponseBody()) {
+					os.write(body);
+				}
+			}
+		});
+		otherAppliance.start();
+		ApplianceInfo otherApplianceInfo = new ApplianceInfo("appliance1", "http://localhost:1/mgmt/bpl", "http://localhost:1/engine/bpl", "http://localhost:1/retrieval/bpl", "http://localhost:1/etl/bpl", "localhost:1", "http://localhost:" + otherAppliance.getAddress().getPort() + "/retrieval");
+		for(int i = 0; i < 5; i++) {
+			configService.registerPVToAppliance(pvPrefix + i, otherApplianceInfo);
+		}
+		pointInTimeRetrieval = new PointInTimeRetrieval(configService, 4, 10, 3600);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		otherAppliance.stop(0);
+		configService.shutdownNow();
+	}
+
+	@Test
+	public void testRemoteLookup() throws Exception {
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		HashMap<String, Object> errors = new HashMap<String, Object>();
+		pointInTimeRetrieval.processRequest(makeRequest(pvPrefix + "0," + pvPrefix + "1," + pvPrefix + "2"), makeResponse(received, errors));
+		assertTrue("Unexpected error " + errors, errors.isEmpty());
+		JSONObject results = (JSONObject) new JSONParser().parse(received.toString("UTF-8"));
+		for(int i = 0; i < 3; i++) {
+			assertTrue("Missing " + pvPrefix + i + " in " + results, results.containsKey(pvPrefix + i));
+		}
+		assertTrue(pointInTimeRetrieval.getMetrics().get("remoteCalls").equals("1"));
+	}
+
+	@Test
+	public void testRemoteFailure() throws Exception {
+		remoteStatus.set(500);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		HashMap<String, Object> errors = new HashMap<String, Object>();
+		pointInTimeRetrieval.processRequest(makeRequest(pvPrefix + "3," + pvPrefix + "4"), makeResponse(received, errors));
+		assertTrue("A failure on the other appliance should be reported to the caller " + errors, Integer.valueOf(HttpServletResponse.SC_BAD_GATEWAY).equals(errors.get("status")));
+		assertTrue("We should not send a partial snapshot", received.size() == 0);
+		assertTrue(pointInTimeRetrieval.getMetrics().get("remoteFailures").equals("1"));
+	}
+
+	private static HttpServletRequest makeRequest(final String pvs) {
+		return (HttpServletRequest) Proxy.newProxyInstance(PointInTimeRetrievalTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("getMethod")) return "GET";
+				if(method.getName().equals("getRemoteAddr")) return "127.0.0.1";
+				if(method.getName().equals("getParameter") && args[0].equals("at")) return "2015-01-01T00:00:00.000Z";
+				if(method.getName().equals("getParameterValues") && args[0].equals("pv")) return new String[] { pvs };
+				return null;
+			}
+		});
+	}
+
+	private static HttpServletResponse makeResponse(final ByteArrayOutputStream received, final HashMap<String, Object> errors) {
+		final ServletOutputStream os = new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				received.write(b);
+			}
+		};
+		return (HttpServletResponse) Proxy.newProxyInstance(PointInTimeRetrievalTest.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("getOutputStream")) return os;
+				if(method.getName().equals("sendError")) {
+					errors.put("status", args[0]);
+					if(args.length > 1) errors.put("message", args[1]);
+				}
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeSpan;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.Admission;
+import org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.ExpensiveQueryPolicy;
+import org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.QueryCost;
+import org.epics.archiverappliance.retrieval.postprocessors.DefaultRawPostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBPathNameUtility;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin.CompressionMode;
+
+/**
+ * Test the admission policies, the cost budget and the per client limits of the retrieval admission control.
+ * @author mshankar
+ *
+ */
+public class RetrievalAdmissionControlTest {
+	private static final long MB = 1024*1024;
+
+	@Test
+	public void testExpensiveQueryPolicies() throws Exception {
+		QueryCost tenYearsOfRaw = makeCost(2048*MB, 10L*365*24*3600, true);
+		RetrievalAdmissionControl suggest = new RetrievalAdmissionControl("test", 64, 1024*MB, 512*MB, ExpensiveQueryPolicy.SUGGEST_BINNING, 4, 10, 1, 0.25, 16*MB, 10000);
+		try(Admission admission = suggest.admit("client1", tenYearsOfRaw, "test")) {
+			assertTrue(!admission.isAdmitted() && admission.getHttpStatus() == RetrievalAdmissionControl.SC_TOO_MANY_REQUESTS);
+			assertTrue("Expecting a binned suggestion " + admission.getSuggestedPostProcessor(), "mean_31536".equals(admission.getSuggestedPostProcessor()));
+			assertTrue(admission.getRetryAfterSeconds() == 0);
+		}
+		// Requests that are already binned are rejected without a suggestion
+		try(Admission admission = suggest.admit("client1", makeCost(2048*MB, 10L*365*24*3600, false), "test")) {
+			assertTrue(!admission.isAdmitted() && admission.getSuggestedPostProcessor() == null);
+		}
+		try(Admission admission = suggest.admit("client1", makeCost(10*MB, 3600, true), "test")) {
+			assertTrue("Cheap requests should be admitted", admission.isAdmitted());
+		}
+
+		RetrievalAdmissionControl reject = new RetrievalAdmissionControl("test", 64, 1024*MB, 512*MB, ExpensiveQueryPolicy.REJECT, 4, 10, 1, 0.25, 16*MB, 10000);
+		try(Admission admission = reject.admit("client1", tenYearsOfRaw, "test")) {
+			assertTrue(!admission.isAdmitted() && admission.getSuggestedPostProcessor() == null);
+		}
+		assertTrue(reject.getMetrics().get("rejectedExpensive").equals("1"));
+
+		// With the queue policy, expensive requests run by themselves.
+		RetrievalAdmissionControl queue = new RetrievalAdmissionControl("test", 64, 1024*MB, 512*MB, ExpensiveQueryPolicy.QUEUE, 4, 10, 1, 0.25, 16*MB, 10000);
+		try(Admission admission = queue.admit("client1", tenYearsOfRaw, "test")) {
+			assertTrue(admission.isAdmitted());
+			try(Admission second = queue.admit("client2", makeCost(10*MB, 3600, true), "test")) {
+				assertTrue("Nothing else fits while the expensive request is running", !second.isAdmitted() && second.getRetryAfterSeconds() > 0);
+			}
+		}
+		try(Admission admission = queue.admit("client2", makeCost(10*MB, 3600, true), "test")) {
+			assertTrue(admission.isAdmitted());
+		}
+	}
+
+	@Test
+	public void testQueueingAndClientLimits() throws Exception {
+		final RetrievalAdmissionControl admissionControl = new RetrievalAdmissionControl("test", 64, 100*MB, 100*MB, ExpensiveQueryPolicy.QUEUE, 2, 10, 10, 0.25, 16*MB, 10000);
+		Admission first = admissionControl.admit("client1", makeCost(60*MB, 3600, true), "first");
+		Admission second = admissionControl.admit("client2", makeCost(30*MB, 3600, true), "second");
+		assertTrue(first.isAdmitted() && second.isAdmitted());
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// This does not fit in the budget till the first request completes.
+			Future<Admission> third = executor.submit(new Callable<Admission>() {
+				@Override
+				public Admission call() throws Exception {
+					return admissionControl.admit("client3", makeCost(50*MB, 3600, true), "third");
+				}
+			});
+			Thread.sleep(500);
+			assertTrue("The third request should be queued " + admissionControl.getMetrics(), !third.isDone() && admissionControl.getMetrics().get("queueLength").equals("1"));
+			first.close();
+			Admission thirdAdmission = third.get(10, TimeUnit.SECONDS);
+			assertTrue(thirdAdmission.isAdmitted());
+			thirdAdmission.close();
+			second.close();
+			assertTrue(admissionControl.getMetrics().get("inFlightQueries").equals("0") && admissionControl.getMetrics().get("inFlightCostMB").equals("0"));
+
+			// Per client limits
+			Admission c1 = admissionControl.admit("client1", makeCost(1*MB, 3600, true), "c1");
+			Admission c2 = admissionControl.admit("client1", makeCost(1*MB, 3600, true), "c2");
+			assertTrue(c1.isAdmitted() && c2.isAdmitted());
+			Future<Admission> c3 = executor.submit(new Callable<Admission>() {
+				@Override
+				public Admission call() throws Exception {
+					return admissionControl.admit("client1", makeCost(1*MB, 3600, true), "c3");
+				}
+			});
+			Thread.sleep(500);
+			assertTrue("The client is at its limit", !c3.isDone());
+			try(Admission other = admissionControl.admit("client2", makeCost(1*MB, 3600, true), "other")) {
+				assertTrue("Other clients are not blocked behind a client at its limit", other.isAdmitted());
+			}
+			c1.close();
+			Admission c3Admission = c3.get(10, TimeUnit.SECONDS);
+			assertTrue(c3Admission.isAdmitted());
+			c3Admission.close();
+			c2.close();
+			assertTrue(admissionControl.getMetrics().get("clientLimited").equals("1"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testClientId() throws Exception {
+		try {
+			RetrievalAdmissionControl.setTrustedProxies(Collections.<String>emptyList());
+			assertTrue(RetrievalAdmissionControl.getClientId(makeRequest("10.0.0.1", null)).equals("10.0.0.1"));
+			assertTrue("X-Forwarded-For from clients should be ignored", RetrievalAdmissionControl.getClientId(makeRequest("10.0.0.1", "10.0.0.2")).equals("10.0.0.1"));
+
+			RetrievalAdmissionControl.setTrustedProxies(Arrays.asList("10.0.0.100", "10.0.0.101"));
+			assertTrue("X-Forwarded-For from trusted proxies is used", RetrievalAdmissionControl.getClientId(makeRequest("10.0.0.100", "10.0.0.2")).equals("10.0.0.2"));
+			assertTrue("Only the hops added by trusted proxies are used", RetrievalAdmissionControl.getClientId(makeRequest("10.0.0.100", "1.2.3.4, 10.0.0.2, 10.0.0.101")).equals("10.0.0.2"));
+			assertTrue(RetrievalAdmissionControl.getClientId(makeRequest("10.0.0.1", "10.0.0.2")).equals("10.0.0.1"));
+		} finally {
+			RetrievalAdmissionControl.setTrustedProxies(Collections.<String>emptyList());
+		}
+	}
+
+	@Test
+	public void testOffByDefault() throws Exception {
+		Properties props = new Properties();
+		assertTrue(RetrievalAdmissionControl.fromProperties("INTERACTIVE", props, null) == null);
+		props.setProperty("org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.BULK.enabled", "true");
+		assertTrue(RetrievalAdmissionControl.fromProperties("INTERACTIVE", props, null) == null);
+		assertTrue(RetrievalAdmissionControl.fromProperties("BULK", props, null) != null);
+	}
+
+	@Test
+	public void testPVCostFromPartitionCatalog() throws Exception {
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"));
+		File rootFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "RetrievalAdmissionControlTest");
+		FileUtils.deleteDirectory(rootFolder);
+		String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":RetrievalAdmissionControlTest";
+		try {
+			String storeURL = "pb://localhost?name=RetrievalAdmissionControlTest&rootFolder=" + rootFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_HOUR";
+			PlainPBStoragePlugin storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin(storeURL, configService);
+			short currentYear = TimeUtils.getCurrentYear();
+			long startOfYearEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+			ArrayListEventStream strm = new ArrayListEventStream(0, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+			for(int i = 0; i < 10*60; i++) {
+				strm.add(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startOfYearEpochSeconds + i*60, 0), new ScalarValue<Double>((double)i), 0, 0));
+			}
+			try(BasicContext context = new BasicContext()) {
+				storagePlugin.appendData(context, pvName, strm);
+			}
+			PVTypeInfo typeInfo = new PVTypeInfo(pvName, ArchDBRTypes.DBR_SCALAR_DOUBLE, true, 1);
+			typeInfo.setDataStores(new String[] { storeURL });
+
+			// Three of the hourly partitions overlap the request
+			LinkedList<TimeSpan> requestTimes = new LinkedList<TimeSpan>();
+			requestTimes.add(new TimeSpan(startOfYearEpochSeconds + 2*3600 + 1800, startOfYearEpochSeconds + 4*3600 + 1800));
+			long expectedBytes = 0;
+			try(BasicContext context = new BasicContext()) {
+				for(Path path : PlainPBPathNameUtility.getPathsWithData(context.getPaths(), rootFolder.getAbsolutePath(), pvName, requestTimes.get(0).getStartTime(), requestTimes.get(0).getEndTime(), PlainPBStoragePlugin.PB_EXTENSION, PartitionGranularity.PARTITION_HOUR, CompressionMode.NONE, configService.getPVNameToKeyConverter())) {
+					expectedBytes += Files.size(path);
+				}
+			}
+			PostProcessor postProcessor = new DefaultRawPostProcessor();
+			postProcessor.initialize("raw", pvName);
+			QueryCost cost = new QueryCost();
+			RetrievalAdmissionControl.addPVCost(cost, configService, pvName, typeInfo, postProcessor, requestTimes, makeRequest("127.0.0.1", null));
+			assertTrue("Expecting the size of the partitions " + expectedBytes + " got " + cost, expectedBytes > 0 && cost.getEstimatedBytesToRead() == expectedBytes && cost.getRemoteSources() == 0);
+		} finally {
+			FileUtils.deleteDirectory(rootFolder);
+			configService.shutdownNow();
+		}
+	}
+
+	private static HttpServletRequest makeRequest(final String remoteAddr, final String forwardedFor) {
+		return (HttpServletRequest) Proxy.newProxyInstance(RetrievalAdmissionControlTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("getHeader") && "X-Forwarded-For".equals(args[0])) return forwardedFor;
+				if(method.getName().equals("getRemoteAddr")) return remoteAddr;
+				return null;
+			}
+		});
+	}
+
+	private static QueryCost makeCost(long memoryBytes, long spanSeconds, boolean rawData) {
+		QueryCost cost = new QueryCost();
+		cost.estimatedMemoryBytes = memoryBytes;
+		cost.spanSeconds = spanSeconds;
+		cost.rawData = rawData;
+		return cost;
+	}
+}
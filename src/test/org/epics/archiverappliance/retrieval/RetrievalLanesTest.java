@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.epics.archiverappliance.common.TimeSpan;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.Admission;
+import org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.QueryCost;
+import org.epics.archiverappliance.retrieval.RetrievalLanes.Lane;
+import org.junit.Test;
+
+/**
+ * Test the classification of requests into retrieval lanes and the per lane limits.
+ * @author mshankar
+ *
+ */
+public class RetrievalLanesTest {
+
+	@Test
+	public void testClassification() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("org.epics.archiverappliance.retrieval.RetrievalLanes.bulkClients", "10.0.0.99");
+		RetrievalLanes lanes = new RetrievalLanes(props);
+		LinkedList<TimeSpan> oneHour = makeRequestTimes(3600);
+		LinkedList<TimeSpan> oneMonth = makeRequestTimes(30*24*3600);
+
+		assertTrue(lanes.classify(makeRequest("10.0.0.1", null), "json", 1, oneHour, true) == Lane.INTERACTIVE);
+		try {
+			RetrievalAdmissionControl.setTrustedProxies(Arrays.asList("10.0.0.2"));
+			assertTrue("Requests from other appliances go to the proxy lane", lanes.classify(makeRequest("10.0.0.2", RetrievalLanes.APPLIANCE_CALLER), "raw", 1, oneMonth, true) == Lane.PROXY);
+			assertTrue("Any client can set the caller header; only appliances get the proxy lane", lanes.classify(makeRequest("10.0.0.1", RetrievalLanes.APPLIANCE_CALLER), "json", 1, oneHour, true) == Lane.INTERACTIVE);
+		} finally {
+			RetrievalAdmissionControl.setTrustedProxies(Collections.<String>emptyList());
+		}
+		assertTrue("Exports go to the bulk lane", lanes.classify(makeRequest("10.0.0.1", null), "mat", 1, oneHour, true) == Lane.BULK);
+		assertTrue("Exports go to the bulk lane", lanes.classify(makeRequest("10.0.0.1", null), "csv", 1, oneHour, true) == Lane.BULK);
+		assertTrue("Many PVs go to the bulk lane", lanes.classify(makeRequest("10.0.0.1", null), "json", 100, oneHour, true) == Lane.BULK);
+		assertTrue("Long spans of raw data go to the bulk lane", lanes.classify(makeRequest("10.0.0.1", null), "json", 1, oneMonth, true) == Lane.BULK);
+		assertTrue("Long spans of binned data are interactive", lanes.classify(makeRequest("10.0.0.1", null), "json", 1, oneMonth, false) == Lane.INTERACTIVE);
+		assertTrue("Bulk clients go to the bulk lane", lanes.classify(makeRequest("10.0.0.99", null), "json", 1, oneHour, true) == Lane.BULK);
+		assertTrue(lanes.getMetrics().get("BULK requests").equals("5"));
+	}
+
+	@Test
+	public void testLaneLimits() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.enabled", "true");
+		props.setProperty("org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.BULK.maxConcurrentQueries", "2");
+		props.setProperty("org.epics.archiverappliance.retrieval.RetrievalAdmissionControl.BULK.queueTimeoutSeconds", "1");
+		RetrievalLanes lanes = new RetrievalLanes(props);
+		RetrievalAdmissionControl bulk = lanes.getAdmissionControl(Lane.BULK);
+		RetrievalAdmissionControl interactive = lanes.getAdmissionControl(Lane.INTERACTIVE);
+		try(Admission a1 = bulk.admit("client1", new QueryCost(), "a1"); Admission a2 = bulk.admit("client2", new QueryCost(), "a2")) {
+			assertTrue(a1.isAdmitted() && a2.isAdmitted());
+			try(Admission a3 = bulk.admit("client3", new QueryCost(), "a3")) {
+				assertTrue("The bulk lane is full", !a3.isAdmitted());
+			}
+			try(Admission i1 = interactive.admit("client3", new QueryCost(), "i1")) {
+				assertTrue("The interactive lane is not affected by the bulk lane", i1.isAdmitted());
+			}
+		}
+	}
+
+	@Test
+	public void testThrottling() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("org.epics.archiverappliance.retrieval.RetrievalLanes.BULK.maxBytesPerSecond", Integer.toString(1024*1024));
+		RetrievalLanes lanes = new RetrievalLanes(props);
+		byte[] buf = new byte[512*1024];
+		long start = System.currentTimeMillis();
+		try(OutputStream os = lanes.wrapOutputStream(Lane.INTERACTIVE, new ByteArrayOutputStream())) {
+			os.write(buf);
+		}
+		assertTrue("The interactive lane is not throttled", (System.currentTimeMillis() - start) < 250);
+		start = System.currentTimeMillis();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try(OutputStream os = lanes.wrapOutputStream(Lane.BULK, bos)) {
+			os.write(buf);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("The bulk lane is throttled to 1MB/s; 512KB took " + elapsed + "(ms)", elapsed >= 400);
+		assertTrue(bos.size() == buf.length);
+	}
+
+	private static LinkedList<TimeSpan> makeRequestTimes(long spanSeconds) {
+		Timestamp end = TimeUtils.now();
+		LinkedList<TimeSpan> requestTimes = new LinkedList<TimeSpan>();
+		requestTimes.add(new TimeSpan(TimeUtils.convertFromEpochSeconds(TimeUtils.convertToEpochSeconds(end) - spanSeconds, 0), end));
+		return requestTimes;
+	}
+
+	private static HttpServletRequest makeRequest(final String remoteAddr, String caller) {
+		final Map<String, String> headers = new HashMap<String, String>();
+		if(caller != null) headers.put(RetrievalLanes.CALLER_HEADER, caller);
+		return (HttpServletRequest) Proxy.newProxyInstance(RetrievalLanesTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("getHeader")) return headers.get(args[0]);
+				if(method.getName().equals("getRemoteAddr")) return remoteAddr;
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeSpan;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the capture and replay of event streams in the retrieval response cache; and the coalescing of identical requests.
+ * @author mshankar
+ *
+ */
+public class RetrievalResponseCacheTest {
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":RetrievalResponseCacheTest";
+	File spillFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "RetrievalResponseCacheTest");
+	short currentYear = TimeUtils.getCurrentYear();
+	Timestamp oldEnd = TimeUtils.minusDays(TimeUtils.now(), 2);
+
+	@Before
+	public void setUp() throws Exception {
+		if(spillFolder.exists()) {
+			FileUtils.deleteDirectory(spillFolder);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(spillFolder);
+	}
+
+	@Test
+	public void testCaptureAndReplay() throws Exception {
+		RetrievalResponseCache cache = new RetrievalResponseCache(64*1024*1024, 16*1024*1024, 1024*1024, null, 0, 3600, 600, 5, 60);
+		String key = makeKey();
+		RetrievalResponseCache.Lookup lookup = cache.lookup(key, oldEnd);
+		assertTrue("The first lookup should be a miss", lookup.cachedResponse == null && lookup.capture != null);
+		// The first stream crosses a year boundary; the second starts after it.
+		List<Event> expected = new ArrayList<Event>();
+		lookup.capture.processingPV();
+		consume(lookup.capture.capture(makeStream(TimeUtils.getStartOfYearInSeconds(currentYear) - 500, 100, expected)));
+		consume(lookup.capture.capture(makeStream(TimeUtils.getStartOfYearInSeconds(currentYear) + 500, 100, expected)));
+		lookup.capture.complete(true);
+
+		RetrievalResponseCache.Lookup hit = cache.lookup(key, oldEnd);
+		assertTrue("The second lookup should be a hit", hit.cachedResponse != null && hit.capture == null);
+		List<RetrievalResponseCache.ReplayedStream> replayedStreams = hit.cachedResponse.openStreams();
+		assertTrue(replayedStreams.size() == 2);
+		assertTrue("Only the first stream follows a processingPV", replayedStreams.get(0).startsPV && !replayedStreams.get(1).startsPV);
+		List<Event> replayed = new ArrayList<Event>();
+		for(RetrievalResponseCache.ReplayedStream replayedStream : replayedStreams) {
+			try(EventStream strm = replayedStream.stream) {
+				assertTrue(strm.getDescription().getPvName().equals(pvName));
+				for(Event e : strm) {
+					replayed.add(e.makeClone());
+				}
+			}
+		}
+		assertTrue("Expecting " + expected.size() + " events; got " + replayed.size(), replayed.size() == expected.size());
+		for(int i = 0; i < expected.size(); i++) {
+			assertTrue("Timestamp mismatch at " + i + " expected " + TimeUtils.convertToHumanReadableString(expected.get(i).getEventTimeStamp()) + " got " + TimeUtils.convertToHumanReadableString(replayed.get(i).getEventTimeStamp()),
+					expected.get(i).getEventTimeStamp().equals(replayed.get(i).getEventTimeStamp()));
+			assertTrue("Value mismatch at " + i, expected.get(i).getSampleValue().getValue().doubleValue() == replayed.get(i).getSampleValue().getValue().doubleValue());
+		}
+		assertTrue(cache.getMetrics().get("hits").equals("1") && cache.getMetrics().get("misses").equals("1"));
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		final RetrievalResponseCache cache = new RetrievalResponseCache(64*1024*1024, 16*1024*1024, 1024*1024, null, 0, 3600, 600, 5, 60);
+		final String key = makeKey();
+		RetrievalResponseCache.Lookup leader = cache.lookup(key, oldEnd);
+		assertTrue(leader.capture != null);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<RetrievalResponseCache.Lookup>> followers = new LinkedList<Future<RetrievalResponseCache.Lookup>>();
+			for(int i = 0; i < 4; i++) {
+				followers.add(executor.submit(new Callable<RetrievalResponseCache.Lookup>() {
+					@Override
+					public RetrievalResponseCache.Lookup call() throws Exception {
+						return cache.lookup(key, oldEnd);
+					}
+				}));
+			}
+			Thread.sleep(500);
+			for(Future<RetrievalResponseCache.Lookup> follower : followers) {
+				assertTrue("Followers should wait for the leader", !follower.isDone());
+			}
+			lookupAndConsume(leader.capture, TimeUtils.getStartOfYearInSeconds(currentYear) + 500);
+			leader.capture.complete(true);
+			for(Future<RetrievalResponseCache.Lookup> follower : followers) {
+				RetrievalResponseCache.Lookup lookup = follower.get(10, TimeUnit.SECONDS);
+				assertTrue("Followers should be served from the cache", lookup.cachedResponse != null && lookup.capture == null);
+			}
+			assertTrue("Expecting 4 coalesced requests " + cache.getMetrics(), cache.getMetrics().get("coalesced").equals("4"));
+
+			// If the leader fails, followers process the request themselves without caching.
+			final String failedKey = key + "|failed";
+			RetrievalResponseCache.Lookup failedLeader = cache.lookup(failedKey, oldEnd);
+			Future<RetrievalResponseCache.Lookup> failedFollower = executor.submit(new Callable<RetrievalResponseCache.Lookup>() {
+				@Override
+				public RetrievalResponseCache.Lookup call() throws Exception {
+					return cache.lookup(failedKey, oldEnd);
+				}
+			});
+			Thread.sleep(200);
+			failedLeader.capture.complete(false);
+			RetrievalResponseCache.Lookup lookup = failedFollower.get(10, TimeUnit.SECONDS);
+			assertTrue(lookup.cachedResponse == null && lookup.capture == null);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testTTLAndLimits() throws Exception {
+		// Live requests have a TTL of 0 seconds.
+		RetrievalResponseCache cache = new RetrievalResponseCache(64*1024*1024, 64*1024, 8*1024, spillFolder.toPath(), 1024*1024, 3600, 600, 0, 60);
+		String liveKey = makeKey() + "|live";
+		RetrievalResponseCache.Lookup lookup = cache.lookup(liveKey, TimeUtils.now());
+		lookupAndConsume(lookup.capture, TimeUtils.getStartOfYearInSeconds(currentYear) + 500);
+		lookup.capture.complete(true);
+		Thread.sleep(10);
+		assertTrue("Live responses should have expired", cache.lookup(liveKey, TimeUtils.now()).capture != null);
+
+		// Responses larger than the maximum entry size are not cached
+		String largeKey = makeKey() + "|large";
+		lookup = cache.lookup(largeKey, oldEnd);
+		List<Event> expected = new ArrayList<Event>();
+		consume(lookup.capture.capture(makeStream(TimeUtils.getStartOfYearInSeconds(currentYear), 10000, expected)));
+		lookup.capture.complete(true);
+		assertTrue("Large responses should not be cached", cache.lookup(largeKey, oldEnd).capture != null);
+
+		// Responses larger than the in memory limit are spilled.
+		String spilledKey = makeKey() + "|spilled";
+		lookup = cache.lookup(spilledKey, oldEnd);
+		expected.clear();
+		consume(lookup.capture.capture(makeStream(TimeUtils.getStartOfYearInSeconds(currentYear), 1000, expected)));
+		lookup.capture.complete(true);
+		assertTrue("Expecting a spill " + cache.getMetrics(), cache.getMetrics().get("spills").equals("1"));
+		RetrievalResponseCache.Lookup hit = cache.lookup(spilledKey, oldEnd);
+		assertTrue(hit.cachedResponse != null);
+		int replayedEvents = 0;
+		for(RetrievalResponseCache.ReplayedStream replayedStream : hit.cachedResponse.openStreams()) {
+			try(EventStream strm = replayedStream.stream) {
+				for(@SuppressWarnings("unused") Event e : strm) {
+					replayedEvents++;
+				}
+			}
+		}
+		assertTrue("Expecting " + expected.size() + " got " + replayedEvents, replayedEvents == expected.size());
+		cache.invalidate(spilledKey);
+		try(java.nio.file.DirectoryStream<Path> spillFiles = Files.newDirectoryStream(spillFolder.toPath())) {
+			assertTrue("Spill files should be deleted when the entry is removed", !spillFiles.iterator().hasNext());
+		}
+		assertTrue(cache.getMetrics().get("spilledBytes").equals("0"));
+	}
+
+	private String makeKey() {
+		LinkedList<TimeSpan> requestTimes = new LinkedList<TimeSpan>();
+		requestTimes.add(new TimeSpan(TimeUtils.minusDays(oldEnd, 1), oldEnd));
+		return RetrievalResponseCache.makeKey(pvName, pvName, "raw", requestTimes, (String) null);
+	}
+
+	private void lookupAndConsume(RetrievalResponseCache.Capture capture, long startEpochSeconds) throws Exception {
+		capture.processingPV();
+		consume(capture.capture(makeStream(startEpochSeconds, 10, new ArrayList<Event>())));
+	}
+
+	private EventStream makeStream(long startEpochSeconds, int count, List<Event> expected) {
+		ArrayListEventStream strm = new ArrayListEventStream(count, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, TimeUtils.computeYearForEpochSeconds(startEpochSeconds)));
+		for(int i = 0; i < count; i++) {
+			POJOEvent event = new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startEpochSeconds + i*10, i), new ScalarValue<Double>((double)i), 0, 0);
+			strm.add(event);
+			expected.add(event);
+		}
+		return strm;
+	}
+
+	private void consume(EventStream strm) throws Exception {
+		try(EventStream s = strm) {
+			for(@SuppressWarnings("unused") Event e : s) {
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.channelarchiver;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Fetch data from a fake Channel Archiver data server in chunks.
+ * Make sure we get the same data as a single call would return, that we respect the limit on concurrent calls and that the second call comes from the cache.
+ * @author mshankar
+ *
+ */
+public class ChannelArchiverChunkFetcherTest {
+	private static final int EVENT_INTERVAL_SECONDS = 3600;
+	File cacheFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "ChannelArchiverChunkFetcherTest");
+	HttpServer server;
+	String serverURL;
+	AtomicInteger callsToServer = new AtomicInteger(0);
+	AtomicInteger concurrentCalls = new AtomicInteger(0);
+	AtomicInteger maxConcurrentCalls = new AtomicInteger(0);
+
+	@Before
+	public void setUp() throws Exception {
+		if(cacheFolder.exists()) {
+			FileUtils.deleteDirectory(cacheFolder);
+		}
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/cgi-bin/ArchiveDataServer.cgi", new FakeDataServer());
+		server.start();
+		serverURL = "http://localhost:" + server.getAddress().getPort() + "/cgi-bin/ArchiveDataServer.cgi";
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop(0);
+		FileUtils.deleteDirectory(cacheFolder);
+	}
+
+	@Test
+	public void testChunkedFetch() throws Exception {
+		ChannelArchiverChunkFetcher fetcher = new ChannelArchiverChunkFetcher(8, 7*86400, 2, 4, cacheFolder.toPath(), 0);
+		Timestamp start = TimeUtils.convertFromISO8601String("2010-11-15T10:20:30.000Z");
+		Timestamp end = TimeUtils.convertFromISO8601String("2011-02-10T08:00:00.000Z");
+
+		// What a single call to the data server would return.
+		List<Long> expectedSeconds = new ArrayList<Long>();
+		long startEpochSeconds = TimeUtils.convertToEpochSeconds(start);
+		long endEpochSeconds = TimeUtils.convertToEpochSeconds(end);
+		for(long second = firstEventAtOrBefore(startEpochSeconds); second <= endEpochSeconds; second += EVENT_INTERVAL_SECONDS) {
+			expectedSeconds.add(second);
+		}
+
+		List<Callable<EventStream>> callables = fetcher.getDataForPV(serverURL, 1, "ArchUnitTest:ChunkFetch", "ArchUnitTest:ChunkFetch", start, end, Integer.MAX_VALUE, "3", ArchDBRTypes.DBR_SCALAR_DOUBLE, null);
+		assertTrue("Expecting many chunks; got " + callables.size(), callables.size() > 10);
+		assertSameEvents(expectedSeconds, callables);
+		int callsForFirstFetch = callsToServer.get();
+		assertTrue("Expecting a call per chunk; got " + callsForFirstFetch + " calls for " + callables.size() + " chunks", callsForFirstFetch == callables.size());
+		assertTrue("Expecting at most 2 concurrent calls; got " + maxConcurrentCalls.get(), maxConcurrentCalls.get() <= 2);
+		assertTrue("Expecting chunks to be cached " + fetcher.getMetrics(), Long.parseLong(fetcher.getMetrics().get("chunksCached")) == callables.size());
+
+		// The second time around, all the data comes from the cache.
+		callables = fetcher.getDataForPV(serverURL, 1, "ArchUnitTest:ChunkFetch", "ArchUnitTest:ChunkFetch", start, end, Integer.MAX_VALUE, "3", ArchDBRTypes.DBR_SCALAR_DOUBLE, null);
+		assertSameEvents(expectedSeconds, callables);
+		assertTrue("Expecting no more calls to the server; got " + callsToServer.get(), callsToServer.get() == callsForFirstFetch);
+		assertTrue("Expecting chunks from the cache " + fetcher.getMetrics(), Long.parseLong(fetcher.getMetrics().get("chunksFromCache")) == callables.size());
+	}
+
+	private static void assertSameEvents(List<Long> expectedSeconds, List<Callable<EventStream>> callables) throws Exception {
+		List<Long> actualSeconds = new ArrayList<Long>();
+		for(Callable<EventStream> callable : callables) {
+			try(EventStream strm = callable.call()) {
+				for(Event e : strm) {
+					assertTrue("Value does not match time", e.getSampleValue().getValue().doubleValue() == (double) e.getEpochSeconds());
+					actualSeconds.add(e.getEpochSeconds());
+				}
+			}
+		}
+		assertTrue("Expecting " + expectedSeconds.size() + " events; got " + actualSeconds.size(), actualSeconds.equals(expectedSeconds));
+	}
+
+	private static long firstEventAtOrBefore(long epochSeconds) {
+		return (epochSeconds/EVENT_INTERVAL_SECONDS)*EVENT_INTERVAL_SECONDS;
+	}
+
+	/**
+	 * Returns an event every hour; like the Channel Archiver, we include the event before the start time.
+	 */
+	private class FakeDataServer implements HttpHandler {
+		private final Pattern i4Pattern = Pattern.compile("<i4>(-?\\d+)</i4>");
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			int concurrent = concurrentCalls.incrementAndGet();
+			try {
+				callsToServer.incrementAndGet();
+				synchronized(maxConcurrentCalls) {
+					if(concurrent > maxConcurrentCalls.get()) maxConcurrentCalls.set(concurrent);
+				}
+				String body = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+				Matcher matcher = i4Pattern.matcher(body);
+				List<Long> params = new ArrayList<Long>();
+				while(matcher.find()) params.add(Long.parseLong(matcher.group(1)));
+				// Key, start secs, start nanos, end secs, end nanos, count and how.
+				long startSecs = params.get(1);
+				long endSecs = params.get(3);
+				Thread.sleep(50);
+
+				StringBuilder buf = new StringBuilder();
+				buf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<methodResponse>\n<params>\n<param><value><array><data>\n<value><struct>\n");
+				buf.append("<member><name>name</name>\n<value><string>ArchUnitTest:ChunkFetch</string></value></member>\n");
+				buf.append("<member><name>meta</name>\n<value><struct>\n<member><name>type</name>\n<value><i4>1</i4></value></member>\n");
+				buf.append("<member><name>prec</name>\n<value><i4>1</i4></value></member>\n<member><name>units</name>\n<value><string>DegF</string></value></member>\n</struct></value></member>\n");
+				buf.append("<member><name>type</name>\n<value><i4>3</i4></value></member>\n<member><name>count</name>\n<value><i4>1</i4></value></member>\n");
+				buf.append("<member><name>values</name>\n<value><array><data>\n");
+				for(long second = firstEventAtOrBefore(startSecs); second <= endSecs; second += EVENT_INTERVAL_SECONDS) {
+					buf.append("<value><struct>\n<member><name>stat</name>\n<value><i4>0</i4></value></member>\n<member><name>sevr</name>\n<value><i4>0</i4></value></member>\n");
+					buf.append("<member><name>secs</name>\n<value><i4>" + second + "</i4></value></member>\n<member><name>nano</name>\n<value><i4>0</i4></value></member>\n");
+					buf.append("<member><name>value</name>\n<value><array><data>\n<value><double>" + second + "</double>\n</value>\n</data></array></value></member>\n</struct></value>\n");
+				}
+				buf.append("</data></array></value></member>\n</struct></value>\n</data></array></value></param>\n</params>\n</methodResponse>\n");
+
+				byte[] response = buf.toString().getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type", "text/xml");
+				exchange.sendResponseHeaders(200, response.length);
+				try(OutputStream os = exchange.getResponseBody()) {
+					os.write(response);
+				}
+			} catch(InterruptedException ex) {
+				throw new IOException(ex);
+			} finally {
+				concurrentCalls.decrementAndGet();
+			}
+		}
+	}
+}
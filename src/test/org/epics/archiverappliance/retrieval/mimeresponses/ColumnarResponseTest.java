@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.mimeresponses;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.data.VectorValue;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+/**
+ * Generate columnar responses and parse them back.
+ * @author mshankar
+ *
+ */
+public class ColumnarResponseTest {
+
+	@Test
+	public void testScalarsAndWaveforms() throws Exception {
+		testResponse(new ColumnarResponse(), ColumnarResponse.CODEC_NONE);
+	}
+
+	@Test
+	public void testDeflatedResponse() throws Exception {
+		testResponse(new DeflatedColumnarResponse(), ColumnarResponse.CODEC_DEFLATE);
+	}
+
+	private void testResponse(ColumnarResponse response, byte expectedCodec) throws Exception {
+		Timestamp start = TimeUtils.convertFromISO8601String("2014-01-01T00:00:00.000Z");
+		long startEpochSeconds = TimeUtils.convertToEpochSeconds(start);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		response.setOutputStream(bos);
+
+		int scalarCount = 100*1000;
+		RemotableEventStreamDesc scalarDesc = new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, "test:scalar", (short) 2014);
+		scalarDesc.addHeader("EGU", "mm");
+		response.processingPV("test:scalar", start, start, scalarDesc);
+		for(int i = 0; i < scalarCount; i++) {
+			response.consumeEvent(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(startEpochSeconds + i, 1000), new ScalarValue<Double>((double) i), 0, i % 3));
+		}
+
+		// No events for this PV
+		response.processingPV("test:empty", start, start, null);
+
+		// A waveform whose element count changes half way through.
+		response.processingPV("test:waveform", start, start, new RemotableEventStreamDesc(ArchDBRTypes.DBR_WAVEFORM_INT, "test:waveform", (short) 2014));
+		for(int i = 0; i < 10; i++) {
+			ArrayList<Integer> vals = new ArrayList<Integer>();
+			for(int j = 0; j < (i < 5 ? 4 : 8); j++) { vals.add(i*100 + j); }
+			response.consumeEvent(new POJOEvent(ArchDBRTypes.DBR_WAVEFORM_INT, TimeUtils.convertFromEpochSeconds(startEpochSeconds + i, 0), new VectorValue<Integer>(vals), 0, 0));
+		}
+		response.close();
+
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		byte[] magic = new byte[ColumnarResponse.MAGIC.length];
+		dis.readFully(magic);
+		assertTrue(new String(magic, "US-ASCII").equals("AACOLUMN") && dis.readInt() == ColumnarResponse.FORMAT_VERSION);
+
+		List<Object[]> blocks = new LinkedList<Object[]>();
+		while(true) {
+			byte blockType = dis.readByte();
+			byte[] body = new byte[dis.readInt()];
+			dis.readFully(body);
+			blocks.add(new Object[] { blockType, body });
+			if(blockType == ColumnarResponse.END_BLOCK) break;
+		}
+		assertTrue("Unexpected data after the end block", dis.read() == -1);
+
+		// Scalar PV
+		JSONObject scalarHeader = readPVHeader(blocks.remove(0));
+		assertTrue(scalarHeader.get("name").equals("test:scalar") && scalarHeader.get("valueType").equals("float64"));
+		assertTrue(((JSONObject) scalarHeader.get("meta")).get("EGU").equals("mm"));
+		int eventsRead = 0;
+		while((Byte) blocks.get(0)[0] == ColumnarResponse.CHUNK_BLOCK) {
+			DataInputStream chunk = new DataInputStream(new ByteArrayInputStream((byte[]) blocks.remove(0)[1]));
+			byte codec = chunk.readByte();
+			assertTrue(codec == expectedCodec);
+			int n = chunk.readInt();
+			assertTrue(chunk.readInt() == 1);
+			DataInputStream columns = new DataInputStream(codec == ColumnarResponse.CODEC_DEFLATE ? new InflaterInputStream(chunk) : (InputStream) chunk);
+			for(int i = 0; i < n; i++) {
+				assertTrue(columns.readLong() == (startEpochSeconds + eventsRead + i)*1000000000L + 1000);
+			}
+			for(int i = 0; i < n; i++) { assertTrue(columns.readShort() == (eventsRead + i) % 3); }
+			for(int i = 0; i < n; i++) { assertTrue(columns.readShort() == 0); }
+			for(int i = 0; i < n; i++) { assertTrue(columns.readDouble() == (double) (eventsRead + i)); }
+			eventsRead += n;
+		}
+		assertTrue("Expecting " + scalarCount + " events, got " + eventsRead, eventsRead == scalarCount);
+
+		// Empty PV
+		JSONObject emptyHeader = readPVHeader(blocks.remove(0));
+		assertTrue(emptyHeader.get("name").equals("test:empty") && !emptyHeader.containsKey("valueType"));
+
+		// Waveform PV; we expect two chunks with strides 4 and 8.
+		JSONObject waveformHeader = readPVHeader(blocks.remove(0));
+		assertTrue(waveformHeader.get("name").equals("test:waveform") && waveformHeader.get("valueType").equals("int32"));
+		int[] expectedStrides = { 4, 8 };
+		for(int c = 0; c < 2; c++) {
+			Object[] block = blocks.remove(0);
+			assertTrue((Byte) block[0] == ColumnarResponse.CHUNK_BLOCK);
+			DataInputStream chunk = new DataInputStream(new ByteArrayInputStream((byte[]) block[1]));
+			byte codec = chunk.readByte();
+			int n = chunk.readInt();
+			int stride = chunk.readInt();
+			assertTrue("Expecting stride " + expectedStrides[c] + " got " + stride, n == 5 && stride == expectedStrides[c]);
+			DataInputStream columns = new DataInputStream(codec == ColumnarResponse.CODEC_DEFLATE ? new InflaterInputStream(chunk) : (InputStream) chunk);
+			for(int i = 0; i < n*(8+2+2); i++) { columns.readByte(); }
+			for(int i = 0; i < n; i++) {
+				for(int j = 0; j < stride; j++) {
+					assertTrue(columns.readInt() == (c*5 + i)*100 + j);
+				}
+			}
+		}
+		assertTrue((Byte) blocks.remove(0)[0] == ColumnarResponse.END_BLOCK && blocks.isEmpty());
+	}
+
+	private static JSONObject readPVHeader(Object[] block) throws Exception {
+		assertTrue((Byte) block[0] == ColumnarResponse.PV_BLOCK);
+		return (JSONObject) JSONValue.parse(new String((byte[]) block[1], "UTF-8"));
+	}
+}